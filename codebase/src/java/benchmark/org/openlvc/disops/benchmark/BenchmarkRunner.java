@@ -0,0 +1,471 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmark {@link Suite}s and writes the results out as JSON so runs can be kept
+ * and compared.
+ * <p/>
+ * Each operation is measured the way JMH measures throughput: the runner first works out
+ * how many operations to do per call so that a call takes at least a millisecond, then runs
+ * a number of fixed-length warmup iterations (to let the JIT settle) followed by the
+ * measured iterations. The score is the mean operations per second across the measured
+ * iterations, with the error being the half-width of its 99.9% confidence interval. The
+ * bytes allocated per operation by the calling thread are also recorded, which for the
+ * decode and encode paths should be zero once warmed up.
+ * <p/>
+ * The JSON follows the layout of JMH's JSON result format (benchmark, mode, primaryMetric,
+ * secondaryMetrics and so on) so the usual JMH tooling can read it.
+ *
+ * Usage: java -cp [classpath] org.openlvc.disops.benchmark.BenchmarkRunner [--args]
+ */
+public class BenchmarkRunner
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long MIN_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+	// two-sided 99.9% student t values, indexed by degrees of freedom
+	private static final double[] T_999 = { Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869,
+	                                        5.959, 5.408, 5.041, 4.781, 4.587 };
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int warmupIterations;
+	private int measurementIterations;
+	private long iterationMillis;
+	private Pattern include;
+	private File outputDirectory;
+
+	// results are consumed here so the JIT can't eliminate the work
+	private volatile double sink;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public BenchmarkRunner()
+	{
+		this.warmupIterations = 3;
+		this.measurementIterations = 5;
+		this.iterationMillis = 1000;
+		this.include = Pattern.compile( ".*" );
+		this.outputDirectory = new File( "build/java/benchmark/results" );
+		this.sink = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Run every operation in the given suites that matches the include pattern, in order.
+	 *
+	 * @return The results, one per operation run
+	 */
+	public List<Result> run( List<Suite> suites ) throws Exception
+	{
+		List<Result> results = new ArrayList<>();
+		for( Suite suite : suites )
+		{
+			List<String> selected = new ArrayList<>();
+			for( String name : suite.getOperations().keySet() )
+			{
+				if( include.matcher(name).find() )
+					selected.add( name );
+			}
+
+			// registration happens in the constructor, so we know before paying for setup
+			if( selected.isEmpty() )
+				continue;
+
+			suite.setup();
+			try
+			{
+				for( String name : selected )
+				{
+					Result result = measure( name, suite.getOperations().get(name) );
+					results.add( result );
+					System.out.println( result );
+				}
+			}
+			finally
+			{
+				suite.teardown();
+			}
+		}
+
+		return results;
+	}
+
+	private Result measure( String name, Suite.Operation operation ) throws Exception
+	{
+		System.out.printf( "# %s%n", name );
+
+		// find a batch size that makes each call long enough to time
+		long batch = 1;
+		while( true )
+		{
+			long start = System.nanoTime();
+			sink += operation.run( batch );
+			if( System.nanoTime()-start >= MIN_CALL_NANOS || batch >= (1L<<40) )
+				break;
+
+			batch <<= 1;
+		}
+
+		for( int i = 0; i < warmupIterations; i++ )
+		{
+			double score = iteration( operation, batch, null );
+			System.out.printf( "  warmup %d: %,.0f ops/s%n", i+1, score );
+		}
+
+		double[] scores = new double[measurementIterations];
+		double[] allocations = new double[measurementIterations];
+		for( int i = 0; i < measurementIterations; i++ )
+		{
+			double[] allocated = new double[1];
+			scores[i] = iteration( operation, batch, allocated );
+			allocations[i] = allocated[0];
+			System.out.printf( "  iteration %d: %,.0f ops/s%n", i+1, scores[i] );
+		}
+
+		return new Result( name, batch, scores, allocations );
+	}
+
+	/**
+	 * Run the operation in batches until the iteration time is up.
+	 *
+	 * @param allocated If not null, the bytes allocated per operation is stored at index 0
+	 * @return Operations per second
+	 */
+	private double iteration( Suite.Operation operation, long batch, double[] allocated )
+		throws Exception
+	{
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = allocatedBytes( threadId );
+		long operations = 0;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos( iterationMillis );
+		long now;
+		do
+		{
+			sink += operation.run( batch );
+			operations += batch;
+			now = System.nanoTime();
+		}
+		while( now < deadline );
+
+		if( allocated != null )
+			allocated[0] = (allocatedBytes(threadId)-allocatedBefore) / (double)operations;
+
+		return operations / ((now-start)/1e9);
+	}
+
+	/**
+	 * Write results to a timestamped JSON file in the output directory.
+	 *
+	 * @return The file written
+	 */
+	public File write( List<Result> results ) throws IOException
+	{
+		outputDirectory.mkdirs();
+		String stamp = new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() );
+		File file = new File( outputDirectory, "disops-"+stamp+".json" );
+
+		List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+		try( Writer writer = new OutputStreamWriter(new FileOutputStream(file),StandardCharsets.UTF_8) )
+		{
+			writer.write( "[\n" );
+			for( int i = 0; i < results.size(); i++ )
+			{
+				writer.write( results.get(i).toJson(this,jvmArgs) );
+				writer.write( i < results.size()-1 ? ",\n" : "\n" );
+			}
+			writer.write( "]\n" );
+		}
+
+		return file;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void setWarmupIterations( int iterations )
+	{
+		this.warmupIterations = iterations;
+	}
+
+	public void setMeasurementIterations( int iterations )
+	{
+		this.measurementIterations = Math.max( 1, iterations );
+	}
+
+	public void setIterationMillis( long millis )
+	{
+		this.iterationMillis = millis;
+	}
+
+	/** Only operations whose full name (suite.operation) contains a match are run */
+	public void setInclude( String regex )
+	{
+		this.include = Pattern.compile( regex );
+	}
+
+	public void setOutputDirectory( File directory )
+	{
+		this.outputDirectory = directory;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return A fresh instance of every suite, in the order they run */
+	public static List<Suite> suites()
+	{
+		return Arrays.asList( new DecodeSuite(),
+		                      new LineProtocolSuite(),
+		                      new EntityTableSuite(),
+		                      new SpatialIndexSuite(),
+		                      new GeodesySuite(),
+		                      new InfluxWriterSuite(),
+		                      new QueryRouterSuite(),
+		                      new RecorderSuite(),
+		                      new ConfigurationSuite() );
+	}
+
+	private static long allocatedBytes( long threadId )
+	{
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+			.getThreadAllocatedBytes( threadId );
+	}
+
+	private static String json( double value )
+	{
+		return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : Double.toString(value);
+	}
+
+	private static String json( String value )
+	{
+		return "\"" + value.replace("\\","\\\\").replace("\"","\\\"") + "\"";
+	}
+
+	public static void printHelp()
+	{
+		System.out.println( "DisOps Benchmarks" );
+		System.out.println( "Usage: ant benchmark [-Dbenchmark.include=regex]" );
+		System.out.println( "   or: java -cp [classpath] org.openlvc.disops.benchmark.BenchmarkRunner [--args]" );
+		System.out.println( "" );
+		System.out.println( "  --include             regex    (optional)  Only run operations matching this       (default: all)" );
+		System.out.println( "  --warmup              int      (optional)  Warmup iterations per operation         (default: 3)" );
+		System.out.println( "  --iterations          int      (optional)  Measured iterations per operation       (default: 5)" );
+		System.out.println( "  --time                int      (optional)  Millis per iteration                    (default: 1000)" );
+		System.out.println( "  --out                 string   (optional)  Directory for the JSON results          (default: build/java/benchmark/results)" );
+		System.out.println( "  --list                         (optional)  List the operations and exit" );
+		System.out.println( "" );
+		System.out.println( "Operations:" );
+		for( Suite suite : suites() )
+		{
+			for( String name : suite.getOperations().keySet() )
+				System.out.println( "  "+name );
+		}
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		BenchmarkRunner runner = new BenchmarkRunner();
+		for( int i = 0; i < args.length; i++ )
+		{
+			String argument = args[i];
+			if( argument.equalsIgnoreCase("--help") || argument.equalsIgnoreCase("--list") )
+			{
+				printHelp();
+				return;
+			}
+			else if( argument.equalsIgnoreCase("--include") )
+				runner.setInclude( args[++i] );
+			else if( argument.equalsIgnoreCase("--warmup") )
+				runner.setWarmupIterations( Integer.parseInt(args[++i]) );
+			else if( argument.equalsIgnoreCase("--iterations") )
+				runner.setMeasurementIterations( Integer.parseInt(args[++i]) );
+			else if( argument.equalsIgnoreCase("--time") )
+				runner.setIterationMillis( Long.parseLong(args[++i]) );
+			else if( argument.equalsIgnoreCase("--out") )
+				runner.setOutputDirectory( new File(args[++i]) );
+			else
+				throw new IllegalArgumentException( "Unknown argument: "+argument );
+		}
+
+		List<Result> results = runner.run( suites() );
+		if( results.isEmpty() )
+		{
+			System.out.println( "No operations matched "+runner.include.pattern() );
+			return;
+		}
+
+		File file = runner.write( results );
+		System.out.println( "" );
+		System.out.printf( "%-40s %16s %12s %10s %12s%n", "Benchmark", "ops/s", "error", "ns/op", "B/op" );
+		for( Result result : results )
+		{
+			System.out.printf( "%-40s %,16.0f %,12.0f %10.1f %12.2f%n", result.name, result.getScore(),
+			                   result.getError(), 1e9/result.getScore(), result.getAllocatedPerOp() );
+		}
+		System.out.println( "Results written to "+file.getAbsolutePath() );
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Result   //////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Measurements for a single operation.
+	 */
+	public static class Result
+	{
+		private final String name;
+		private final long batch;
+		private final double[] scores;
+		private final double[] allocations;
+
+		private Result( String name, long batch, double[] scores, double[] allocations )
+		{
+			this.name = name;
+			this.batch = batch;
+			this.scores = scores;
+			this.allocations = allocations;
+		}
+
+		public String getName()
+		{
+			return this.name;
+		}
+
+		/** @return Mean operations per second across the measured iterations */
+		public double getScore()
+		{
+			return mean( scores );
+		}
+
+		/** @return Half-width of the 99.9% confidence interval of the score */
+		public double getError()
+		{
+			int n = scores.length;
+			if( n < 2 )
+				return Double.NaN;
+
+			double mean = mean( scores );
+			double squares = 0;
+			for( double score : scores )
+				squares += (score-mean) * (score-mean);
+
+			double stddev = Math.sqrt( squares / (n-1) );
+			int freedom = n - 1;
+			double t = freedom < T_999.length ? T_999[freedom] : freedom <= 20 ? 3.850 :
+			           freedom <= 30 ? 3.646 : 3.291;
+			return t * stddev / Math.sqrt( n );
+		}
+
+		/** @return Mean bytes allocated per operation by the calling thread */
+		public double getAllocatedPerOp()
+		{
+			return mean( allocations );
+		}
+
+		private String toJson( BenchmarkRunner runner, List<String> jvmArgs )
+		{
+			double score = getScore();
+			double error = getError();
+			StringBuilder builder = new StringBuilder( 1024 );
+			builder.append( "  {\n" );
+			builder.append( "    \"benchmark\" : " ).append( json(name) ).append( ",\n" );
+			builder.append( "    \"mode\" : \"thrpt\",\n" );
+			builder.append( "    \"threads\" : 1,\n" );
+			builder.append( "    \"forks\" : 1,\n" );
+			builder.append( "    \"jvm\" : " ).append( json(System.getProperty("java.home")) ).append( ",\n" );
+			builder.append( "    \"jvmArgs\" : [" );
+			for( int i = 0; i < jvmArgs.size(); i++ )
+				builder.append( i == 0 ? "" : ", " ).append( json(jvmArgs.get(i)) );
+			builder.append( "],\n" );
+			builder.append( "    \"jdkVersion\" : " ).append( json(System.getProperty("java.version")) ).append( ",\n" );
+			builder.append( "    \"vmName\" : " ).append( json(System.getProperty("java.vm.name")) ).append( ",\n" );
+			builder.append( "    \"warmupIterations\" : " ).append( runner.warmupIterations ).append( ",\n" );
+			builder.append( "    \"warmupTime\" : \"" ).append( runner.iterationMillis ).append( " ms\",\n" );
+			builder.append( "    \"measurementIterations\" : " ).append( runner.measurementIterations ).append( ",\n" );
+			builder.append( "    \"measurementTime\" : \"" ).append( runner.iterationMillis ).append( " ms\",\n" );
+			builder.append( "    \"params\" : { \"batch\" : \"" ).append( batch ).append( "\" },\n" );
+			builder.append( "    \"primaryMetric\" : {\n" );
+			builder.append( "      \"score\" : " ).append( json(score) ).append( ",\n" );
+			builder.append( "      \"scoreError\" : " ).append( json(error) ).append( ",\n" );
+			builder.append( "      \"scoreConfidence\" : [" ).append( json(score-error) ).append( ", " )
+			                                                  .append( json(score+error) ).append( "],\n" );
+			builder.append( "      \"scoreUnit\" : \"ops/s\",\n" );
+			builder.append( "      \"rawData\" : [[" );
+			for( int i = 0; i < scores.length; i++ )
+				builder.append( i == 0 ? "" : ", " ).append( json(scores[i]) );
+			builder.append( "]]\n" );
+			builder.append( "    },\n" );
+			builder.append( "    \"secondaryMetrics\" : {\n" );
+			builder.append( "      \"gc.alloc.rate.norm\" : {\n" );
+			builder.append( "        \"score\" : " ).append( json(getAllocatedPerOp()) ).append( ",\n" );
+			builder.append( "        \"scoreUnit\" : \"B/op\",\n" );
+			builder.append( "        \"rawData\" : [[" );
+			for( int i = 0; i < allocations.length; i++ )
+				builder.append( i == 0 ? "" : ", " ).append( json(allocations[i]) );
+			builder.append( "]]\n" );
+			builder.append( "      },\n" );
+			builder.append( "      \"time.per.op\" : {\n" );
+			builder.append( "        \"score\" : " ).append( json(1e9/score) ).append( ",\n" );
+			builder.append( "        \"scoreUnit\" : \"ns/op\"\n" );
+			builder.append( "      }\n" );
+			builder.append( "    }\n" );
+			builder.append( "  }" );
+			return builder.toString();
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "%s: %,.0f +/- %,.0f ops/s, %.1f ns/op, %.2f B/op", name, getScore(),
+			                      getError(), 1e9/getScore(), getAllocatedPerOp() );
+		}
+
+		private static double mean( double[] values )
+		{
+			double total = 0;
+			for( double value : values )
+				total += value;
+
+			return total / values.length;
+		}
+	}
+}
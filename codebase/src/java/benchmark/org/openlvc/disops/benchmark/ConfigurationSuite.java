@@ -0,0 +1,100 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+
+/**
+ * Configuration lookups, which go back to the underlying properties (and re-parse the value)
+ * on every call: a plain string, one parsed into an int, one parsed into a boolean, and one
+ * with a ${do.data} token to replace.
+ */
+public class ConfigurationSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private InfluxConfiguration influxConfiguration;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ConfigurationSuite()
+	{
+		super( "configuration" );
+		register( "getString", this::getString );
+		register( "getInt", this::getInt );
+		register( "getBoolean", this::getBoolean );
+		register( "getTokenised", this::getTokenised );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		Configuration configuration = new Configuration( new String[0] );
+		this.influxConfiguration = configuration.getInfluxConfiguration();
+	}
+
+	private double getString( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += influxConfiguration.getUrl().length();
+
+		return checksum;
+	}
+
+	private double getInt( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += influxConfiguration.getBatchSize();
+
+		return checksum;
+	}
+
+	private double getBoolean( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += influxConfiguration.isSpillEnabled() ? 1 : 0;
+
+		return checksum;
+	}
+
+	private double getTokenised( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += influxConfiguration.getSpillDirectory().getPath().length();
+
+		return checksum;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,83 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.nio.ByteBuffer;
+
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.PduDecoder;
+
+/**
+ * PDU decoding: the mix of PDU types from {@link PduDecoderBenchmark}, and Entity State on
+ * its own as that is the bulk of real traffic.
+ */
+public class DecodeSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private PduDecoderBenchmark mixed;
+	private PduDecoder decoder;
+	private ByteBuffer[] entityStates;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public DecodeSuite()
+	{
+		super( "decode" );
+		register( "mixed", count -> mixed.decode(count) );
+		register( "entityState", this::entityState );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		this.mixed = new PduDecoderBenchmark();
+		this.decoder = new PduDecoder();
+		this.entityStates = new ByteBuffer[]{ PduDecoderBenchmark.entityState(1),
+		                                      PduDecoderBenchmark.entityState(2),
+		                                      PduDecoderBenchmark.entityState(3),
+		                                      PduDecoderBenchmark.entityState(4) };
+	}
+
+	private double entityState( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			EntityStatePdu pdu = (EntityStatePdu)decoder.decode( entityStates[(int)(i&3)] );
+			checksum += pdu.getEntityId() + pdu.getEntityType() + pdu.getAppearance();
+			checksum += pdu.getLocationX() + pdu.getLocationY() + pdu.getLocationZ();
+			checksum += pdu.getVelocityX() + pdu.getPsi() + pdu.getMarkingLength();
+		}
+
+		return checksum;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,192 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.nio.ByteBuffer;
+
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.entity.EntityRecord;
+import org.openlvc.disops.server.entity.EntityTable;
+import org.openlvc.disops.server.entity.EntityTableUpdater;
+
+/**
+ * Entity table updates from Entity State PDUs, spread over enough entities that the table
+ * doesn't fit in cache, with the entity state kept on and off the heap. Every entity is
+ * inserted during setup so the measurement is of steady state updates, not inserts.
+ * <p/>
+ * The timeout cases run simulated time at {@value #UPDATES_PER_MILLI} updates a milli, so
+ * every entity is heard from about once a second and none of them time out. One tracks
+ * timeouts with the updater's timing wheel; the other is the sweep it replaces, which scans
+ * the whole table for silent entities every pipeline tick.
+ */
+public class EntityTableSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int SITES = 256;
+	private static final int ENTITIES_PER_SITE = 256;   // SITES*ENTITIES_PER_SITE is a power of 2
+
+	private static final long TIMEOUT = 12000;
+	private static final int UPDATES_PER_MILLI = 64;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ByteBuffer[] packets;
+	private EntityTable heapTable;
+	private EntityTable offHeapTable;
+	private EntityTableUpdater heapUpdater;
+	private EntityTableUpdater offHeapUpdater;
+
+	private EntityTable timeoutTable;
+	private EntityTableUpdater timeoutUpdater;
+	private EntityTable scanTable;
+	private EntityTableUpdater scanUpdater;
+	private EntityRecord scanRecord;
+	private long startTime;
+	private long wheelUpdates;   // simulated time carries on across batches
+	private long scanUpdates;
+	private long nextScan;
+	private long scanCutoff;
+	private long scanTimedOut;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public EntityTableSuite()
+	{
+		super( "entityTable" );
+		register( "update.heap", count -> update(heapUpdater,heapTable,count) );
+		register( "update.offHeap", count -> update(offHeapUpdater,offHeapTable,count) );
+		register( "update.timeout.wheel", this::updateWithWheel );
+		register( "update.timeout.scan", this::updateWithScan );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		this.packets = new ByteBuffer[SITES*ENTITIES_PER_SITE];
+		int index = 0;
+		for( int entity = 1; entity <= ENTITIES_PER_SITE; entity++ )
+		{
+			for( int site = 1; site <= SITES; site++ )
+			{
+				ByteBuffer packet = PduDecoderBenchmark.entityState( entity );
+				packet.putShort( 12, (short)site );
+				packets[index++] = packet;
+			}
+		}
+
+		this.heapTable = new EntityTable( packets.length, false );
+		this.offHeapTable = new EntityTable( packets.length, true );
+		this.heapUpdater = new EntityTableUpdater( heapTable );
+		this.offHeapUpdater = new EntityTableUpdater( offHeapTable );
+
+		this.startTime = System.currentTimeMillis();
+		this.timeoutTable = new EntityTable( packets.length, false );
+		this.timeoutUpdater = new EntityTableUpdater( timeoutTable, TIMEOUT, startTime );
+		this.scanTable = new EntityTable( packets.length, false );
+		this.scanUpdater = new EntityTableUpdater( scanTable );
+		this.scanRecord = new EntityRecord();
+		this.wheelUpdates = 0;
+		this.scanUpdates = 0;
+		this.nextScan = startTime + PduPipeline.TICK_MILLIS;
+		this.scanTimedOut = 0;
+
+		long receiveTime = startTime;
+		for( ByteBuffer packet : packets )
+		{
+			heapUpdater.pduReceived( packet, receiveTime );
+			offHeapUpdater.pduReceived( packet, receiveTime );
+			timeoutUpdater.pduReceived( packet, receiveTime );
+			scanUpdater.pduReceived( packet, receiveTime );
+		}
+	}
+
+	private double update( EntityTableUpdater updater, EntityTable table, long count )
+	{
+		long receiveTime = System.currentTimeMillis();
+		int mask = packets.length - 1;
+		for( long i = 0; i < count; i++ )
+			updater.pduReceived( packets[(int)(i&mask)], receiveTime+i );
+
+		return table.size();
+	}
+
+	private double updateWithWheel( long count )
+	{
+		int mask = packets.length - 1;
+		for( long i = 0; i < count; i++, wheelUpdates++ )
+		{
+			long receiveTime = startTime + wheelUpdates/UPDATES_PER_MILLI;
+			timeoutUpdater.pduReceived( packets[(int)(wheelUpdates&mask)], receiveTime );
+		}
+
+		return timeoutTable.size();
+	}
+
+	private double updateWithScan( long count )
+	{
+		int mask = packets.length - 1;
+		for( long i = 0; i < count; i++, scanUpdates++ )
+		{
+			long receiveTime = startTime + scanUpdates/UPDATES_PER_MILLI;
+			scanUpdater.pduReceived( packets[(int)(scanUpdates&mask)], receiveTime );
+			if( receiveTime >= nextScan )
+			{
+				this.scanCutoff = receiveTime - TIMEOUT;
+				scanTable.forEach( scanRecord, this::checkSilence );
+				this.nextScan = receiveTime + PduPipeline.TICK_MILLIS;
+			}
+		}
+
+		return scanTable.size();
+	}
+
+	private void checkSilence( EntityRecord record )
+	{
+		if( record.lastHeard < scanCutoff )
+			++scanTimedOut;
+	}
+
+	@Override
+	public void teardown()
+	{
+		// updates must never have been taken for inserts
+		if( heapTable.size() != packets.length || offHeapTable.size() != packets.length )
+			throw new IllegalStateException( "Entity table size changed during updates" );
+
+		// and nothing heard from every second should have timed out
+		if( timeoutTable.size() != packets.length || timeoutUpdater.getDeparted() != 0 || scanTimedOut != 0 )
+			throw new IllegalStateException( "Entities timed out while still being updated" );
+
+		this.heapTable = null;
+		this.offHeapTable = null;
+		this.timeoutTable = null;
+		this.scanTable = null;
+		this.packets = null;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.util.Random;
+
+import org.openlvc.disops.Geodesy;
+
+/**
+ * Geocentric to geodetic conversion, per position, of a batch of 4096 positions spread over
+ * the whole globe: nine in ten on the ground, the rest in the air up to 15km, plus a few at
+ * the poles and out to geostationary orbit.
+ * <ul>
+ *   <li><b>batch</b>: {@link Geodesy#toGeodetic(double[], double[], double[], double[], double[], double[], int)}</li>
+ *   <li><b>single</b>: the single point version of the same</li>
+ *   <li><b>naive</b>: the textbook iteration, with trig each time round until it settles</li>
+ * </ul>
+ * Accuracy (round trip, agreement with the iteration, single against batch) is covered by
+ * GeodesyTest over the same spread of positions.
+ */
+public class GeodesySuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int POSITIONS = 4096;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private double[] x, y, z;
+	private double[] latitude, longitude, altitude;
+	private double[] point;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public GeodesySuite()
+	{
+		super( "geodesy" );
+		register( "batch", this::batch );
+		register( "single", this::single );
+		register( "naive", this::naive );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		Random random = new Random( 1 );
+		this.x = new double[POSITIONS];
+		this.y = new double[POSITIONS];
+		this.z = new double[POSITIONS];
+		this.latitude = new double[POSITIONS];
+		this.longitude = new double[POSITIONS];
+		this.altitude = new double[POSITIONS];
+		this.point = new double[3];
+
+		for( int i = 0; i < POSITIONS; i++ )
+		{
+			double lat = Math.toDegrees( Math.asin(2.0*random.nextDouble()-1.0) );
+			double lon = random.nextDouble()*360.0 - 180.0;
+			double alt = i % 10 == 0 ? random.nextDouble()*15000.0 : random.nextDouble()*3000.0 - 400.0;
+			if( i < 8 )
+				lat = i % 2 == 0 ? 90.0 : -90.0;
+			else if( i < 16 )
+				alt = 35786000.0 * random.nextDouble();
+
+			Geodesy.toEcef( lat, lon, alt, point );
+			x[i] = point[0];
+			y[i] = point[1];
+			z[i] = point[2];
+		}
+	}
+
+	private double batch( long count )
+	{
+		double total = 0.0;
+		for( long done = 0; done < count; done += POSITIONS )
+		{
+			int batch = (int)Math.min( POSITIONS, count-done );
+			Geodesy.toGeodetic( x, y, z, latitude, longitude, altitude, batch );
+			total += latitude[batch-1];
+		}
+
+		return total;
+	}
+
+	private double single( long count )
+	{
+		double total = 0.0;
+		for( long i = 0; i < count; i++ )
+		{
+			int index = (int)(i % POSITIONS);
+			Geodesy.toGeodetic( x[index], y[index], z[index], point );
+			total += point[0];
+		}
+
+		return total;
+	}
+
+	private double naive( long count )
+	{
+		double total = 0.0;
+		for( long i = 0; i < count; i++ )
+		{
+			int index = (int)(i % POSITIONS);
+			naiveToGeodetic( x[index], y[index], z[index], 1e-12, point );
+			total += point[0];
+		}
+
+		return total;
+	}
+
+	@Override
+	public void teardown()
+	{
+		this.x = null;
+		this.y = null;
+		this.z = null;
+		this.latitude = null;
+		this.longitude = null;
+		this.altitude = null;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * The usual fixed point iteration on latitude, as it is normally written: guess, work out
+	 * the height from the guess, correct the latitude from the height, and go round again until
+	 * it stops moving (by more than the given number of radians).
+	 */
+	private static void naiveToGeodetic( double x, double y, double z, double tolerance, double[] out )
+	{
+		double p = Math.sqrt( x*x + y*y );
+		double lat = Math.atan2( z, p*(1.0-Geodesy.WGS84_E2) );
+		double alt = 0.0;
+		for( int iteration = 0; iteration < 20; iteration++ )
+		{
+			double sin = Math.sin( lat );
+			double n = Geodesy.WGS84_A / Math.sqrt( 1.0 - Geodesy.WGS84_E2*sin*sin );
+			double cos = Math.cos( lat );
+			// near the poles cos is ~0, so take the height off z instead
+			alt = Math.abs(cos) > 1e-3 ? p/cos - n : z/sin - n*(1.0-Geodesy.WGS84_E2);
+			double next = Math.atan2( z, p*(1.0 - Geodesy.WGS84_E2*n/(n+alt)) );
+			boolean settled = Math.abs( next-lat ) < tolerance;
+			lat = next;
+			if( settled )
+				break;
+		}
+
+		out[0] = Math.toDegrees( lat );
+		out[1] = Math.toDegrees( Math.atan2(y,x) );
+		out[2] = alt;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.openlvc.disops.server.entity.EntityStateWriter;
+import org.openlvc.disops.server.influx.InfluxWriter;
+import org.openlvc.disops.server.influx.LineProtocolEncoder;
+import org.openlvc.disops.server.influx.PointSink;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The batching {@link InfluxWriter} writing to a stand-in for influxd: an HTTP server on
+ * loopback that reads each write request in full and answers 204 the way influxd does, so
+ * the measurement covers batching, the HTTP client and in-flight limiting without the cost
+ * of a real database on the other end. Spilling is turned off so a slow server pushes back
+ * on the writing thread rather than going to disk. <b>write</b> hands the writer strings and
+ * <b>write.bytes</b> the bytes a {@link LineProtocolEncoder} produces.
+ * <p/>
+ * Only the writing thread's allocations are counted; the HTTP client's own threads aren't.
+ */
+public class InfluxWriterSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private InfluxWriter writer;
+	private String[] lines;
+	private byte[][] encoded;
+
+	private final AtomicLong requests;
+	private final AtomicLong bytesReceived;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public InfluxWriterSuite()
+	{
+		super( "influxWriter" );
+		register( "write", this::write );
+		register( "write.bytes", this::writeBytes );
+
+		this.requests = new AtomicLong( 0 );
+		this.bytesReceived = new AtomicLong( 0 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup() throws Exception
+	{
+		// stand-in influxd
+		this.server = HttpServer.create( new InetSocketAddress("127.0.0.1",0), 64 );
+		this.serverThreads = Executors.newFixedThreadPool( 4 );
+		this.server.setExecutor( serverThreads );
+		this.server.createContext( "/", this::handle );
+		this.server.start();
+
+		Configuration configuration = new Configuration( new String[]{ "--log-level", "WARN" } );
+		InfluxConfiguration influxConfiguration = configuration.getInfluxConfiguration();
+		influxConfiguration.setUrl( "http://127.0.0.1:"+server.getAddress().getPort() );
+		influxConfiguration.setSpillEnabled( false );
+
+		this.writer = new InfluxWriter( influxConfiguration, configuration.getApplicationLogger() );
+		this.writer.startup();
+
+		// real entity state lines, captured from the writer the server uses, both as the
+		// encoded bytes it now hands over and as strings for the older path
+		this.lines = new String[64];
+		this.encoded = new byte[64][];
+		int[] count = new int[1];
+		PointSink capture = new PointSink()
+		{
+			public void write( String lineProtocol ) { lines[count[0]++] = lineProtocol; }
+			public void write( byte[] line, int offset, int length )
+			{
+				encoded[count[0]] = Arrays.copyOfRange( line, offset, offset+length );
+				PointSink.super.write( line, offset, length );
+			}
+			public void flush() {}
+		};
+		EntityStateWriter encoder = new EntityStateWriter( capture, null );
+		long receiveTime = System.currentTimeMillis();
+		for( int i = 0; i < lines.length; i++ )
+		{
+			ByteBuffer packet = PduDecoderBenchmark.entityState( i+1 );
+			encoder.pduReceived( packet, receiveTime );
+		}
+	}
+
+	private void handle( HttpExchange exchange ) throws IOException
+	{
+		long received = 0;
+		byte[] buffer = new byte[64*1024];
+		try( InputStream body = exchange.getRequestBody() )
+		{
+			int read;
+			while( (read = body.read(buffer)) != -1 )
+				received += read;
+		}
+
+		requests.incrementAndGet();
+		bytesReceived.addAndGet( received );
+		exchange.sendResponseHeaders( 204, -1 );
+		exchange.close();
+	}
+
+	private double write( long count )
+	{
+		for( long i = 0; i < count; i++ )
+			writer.write( lines[(int)(i&63)] );
+
+		return requests.get();
+	}
+
+	private double writeBytes( long count )
+	{
+		for( long i = 0; i < count; i++ )
+		{
+			byte[] line = encoded[(int)(i&63)];
+			writer.write( line, 0, line.length );
+		}
+
+		return requests.get();
+	}
+
+	@Override
+	public void teardown()
+	{
+		if( writer != null )
+			writer.shutdown();
+
+		if( server != null )
+		{
+			server.stop( 0 );
+			serverThreads.shutdownNow();
+		}
+
+		System.out.printf( "  stand-in influxd: %d requests, %d bytes, %d failed batches%n",
+		                   requests.get(), bytesReceived.get(),
+		                   writer == null ? 0 : writer.getBatchesFailed() );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
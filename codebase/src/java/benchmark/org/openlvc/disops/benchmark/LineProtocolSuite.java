@@ -0,0 +1,254 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.influxdb.dto.Point;
+import org.openlvc.disops.Geodesy;
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.PduDecoder;
+import org.openlvc.disops.server.entity.EntityStateWriter;
+import org.openlvc.disops.server.influx.LineProtocolEncoder;
+import org.openlvc.disops.server.influx.PointSink;
+import org.openlvc.disops.server.influx.Precision;
+import org.openlvc.disops.server.influx.TagDictionary;
+
+/**
+ * Line protocol encoding of Entity State PDUs, through the {@link EntityStateWriter} the
+ * server uses, and through the influxdb-java {@link Point} builder for comparison.
+ * <p/>
+ * <b>encoder</b> writes the same point as <b>influxPoint</b> (three tags, six float fields
+ * and an integer) with a {@link LineProtocolEncoder}, from values made up beforehand so that
+ * only the encoding is measured. The benchmark PDUs carry round numbers, which are the
+ * cheapest to format, so these are positions all over the earth and velocities to full
+ * precision, as real simulations send.
+ * <p/>
+ * The tag dictionary the writer uses is also run on its own, looking up markings: once with
+ * a few hundred entities that all fit (<b>tags.hit</b>), and once with more distinct
+ * markings than it holds so that nearly every lookup formats and evicts (<b>tags.churn</b>).
+ */
+public class LineProtocolSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int TAG_CAPACITY = 4096;
+	private static final int FEW_MARKINGS = 512;
+	private static final int MANY_MARKINGS = 32768;   // power of 2
+	private static final int POINTS = 1024;           // power of 2
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ByteBuffer[] packets;
+	private EntityStateWriter writer;
+	private PduDecoder decoder;
+	private long characters;
+
+	private LineProtocolEncoder encoder;
+	private int[] exercises;
+	private long[] entities;
+	private int[] forces;
+	private double[] locations;     // x, y and z of each point
+	private float[] velocities;
+	private int[] appearances;
+
+	private ByteBuffer markings;    // MANY_MARKINGS of them, one after the other
+	private TagDictionary hitTags;
+	private TagDictionary churnTags;
+	private long lookups;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public LineProtocolSuite()
+	{
+		super( "lineProtocol" );
+		register( "entityStateWriter", this::entityStateWriter );
+		register( "influxPoint", this::influxPoint );
+		register( "encoder", this::encoder );
+		register( "tags.hit", count -> lookup(hitTags,FEW_MARKINGS,count) );
+		register( "tags.churn", count -> lookup(churnTags,MANY_MARKINGS,count) );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		this.packets = new ByteBuffer[]{ PduDecoderBenchmark.entityState(1),
+		                                 PduDecoderBenchmark.entityState(2),
+		                                 PduDecoderBenchmark.entityState(3),
+		                                 PduDecoderBenchmark.entityState(4) };
+		this.decoder = new PduDecoder();
+		this.characters = 0;
+
+		// count what comes out so the encoded string is used
+		PointSink sink = new PointSink()
+		{
+			public void write( String lineProtocol ) { characters += lineProtocol.length(); }
+			public void write( byte[] line, int offset, int length ) { characters += length; }
+			public void flush() {}
+		};
+		this.writer = new EntityStateWriter( sink, null );
+
+		this.encoder = new LineProtocolEncoder( Precision.NANOSECONDS );
+		this.exercises = new int[POINTS];
+		this.entities = new long[POINTS];
+		this.forces = new int[POINTS];
+		this.locations = new double[POINTS*3];
+		this.velocities = new float[POINTS*3];
+		this.appearances = new int[POINTS];
+		Random random = new Random( 25 );
+		double[] ecef = new double[3];
+		for( int i = 0; i < POINTS; i++ )
+		{
+			exercises[i] = 1;
+			entities[i] = EntityIds.pack( 1, 1, i+1 );
+			forces[i] = 1 + random.nextInt( 3 );
+			Geodesy.toEcef( random.nextDouble()*180-90, random.nextDouble()*360-180,
+			                random.nextDouble()*10000, ecef );
+			System.arraycopy( ecef, 0, locations, i*3, 3 );
+			for( int axis = 0; axis < 3; axis++ )
+				velocities[i*3+axis] = (float)(random.nextGaussian() * 20);
+			appearances[i] = random.nextInt();
+		}
+
+		this.markings = ByteBuffer.allocate( MANY_MARKINGS*EntityStatePdu.MARKING_LENGTH );
+		for( int i = 0; i < MANY_MARKINGS; i++ )
+		{
+			byte[] marking = ("UNIT "+i).getBytes( StandardCharsets.US_ASCII );
+			markings.position( i*EntityStatePdu.MARKING_LENGTH );
+			markings.put( marking );
+		}
+		markings.clear();
+
+		TagDictionary.Formatter formatter = (raw,length,tags) -> TagDictionary.appendTag( tags, "marking", raw, 0, length );
+		this.hitTags = new TagDictionary( TAG_CAPACITY, formatter );
+		this.churnTags = new TagDictionary( TAG_CAPACITY, formatter );
+		this.lookups = 0;
+	}
+
+	private double entityStateWriter( long count )
+	{
+		long receiveTime = System.currentTimeMillis();
+		for( long i = 0; i < count; i++ )
+			writer.pduReceived( packets[(int)(i&3)], receiveTime );
+
+		return characters;
+	}
+
+	private double influxPoint( long count )
+	{
+		long receiveTime = System.currentTimeMillis();
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			EntityStatePdu pdu = (EntityStatePdu)decoder.decode( packets[(int)(i&3)] );
+			String line = Point.measurement( EntityStateWriter.MEASUREMENT )
+			                   .time( receiveTime, TimeUnit.MILLISECONDS )
+			                   .tag( "exercise", Integer.toString(pdu.getExerciseId()) )
+			                   .tag( "entity", Long.toString(pdu.getEntityId()) )
+			                   .tag( "force", Integer.toString(pdu.getForceId()) )
+			                   .addField( "x", pdu.getLocationX() )
+			                   .addField( "y", pdu.getLocationY() )
+			                   .addField( "z", pdu.getLocationZ() )
+			                   .addField( "vx", pdu.getVelocityX() )
+			                   .addField( "vy", pdu.getVelocityY() )
+			                   .addField( "vz", pdu.getVelocityZ() )
+			                   .addField( "appearance", pdu.getAppearance() )
+			                   .build()
+			                   .lineProtocol();
+			checksum += line.length();
+		}
+
+		return checksum;
+	}
+
+	private double encoder( long count )
+	{
+		long receiveTime = System.currentTimeMillis();
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			int point = (int)(i & (POINTS-1));
+			encoder.measurement( EntityStateWriter.MEASUREMENT )
+			       .tag( "exercise", exercises[point] )
+			       .tag( "entity", entities[point] )
+			       .tag( "force", forces[point] )
+			       .field( "x", locations[point*3] )
+			       .field( "y", locations[point*3+1] )
+			       .field( "z", locations[point*3+2] )
+			       .field( "vx", velocities[point*3] )
+			       .field( "vy", velocities[point*3+1] )
+			       .field( "vz", velocities[point*3+2] )
+			       .field( "appearance", appearances[point] )
+			       .timestamp( receiveTime );
+			checksum += encoder.getLength();
+		}
+
+		return checksum;
+	}
+
+	private double lookup( TagDictionary tags, int distinct, long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++, lookups++ )
+		{
+			// spread them out so consecutive lookups aren't for the same entry
+			int marking = (int)((lookups * 0x9e3779b1L) & (MANY_MARKINGS-1)) % distinct;
+			int offset = marking * EntityStatePdu.MARKING_LENGTH;
+			checksum += tags.get( markings, offset, markingLength(offset) ).length;
+		}
+
+		return checksum;
+	}
+
+	private int markingLength( int offset )
+	{
+		int length = 0;
+		while( length < EntityStatePdu.MARKING_LENGTH && markings.get(offset+length) != 0 )
+			++length;
+
+		return length;
+	}
+
+	@Override
+	public void teardown()
+	{
+		for( TagDictionary tags : new TagDictionary[]{ hitTags, churnTags } )
+		{
+			if( tags.getHits()+tags.getMisses() > 0 )
+			{
+				System.out.printf( "  tags: %d%% hits, %d evictions, %d entries, %dKB%n",
+				                   tags.getHitRate(), tags.getEvictions(), tags.size(),
+				                   tags.getMemoryUsage()/1024 );
+			}
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
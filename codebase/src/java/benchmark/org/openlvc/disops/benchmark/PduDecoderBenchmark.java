@@ -0,0 +1,170 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.openlvc.disops.server.dis.pdu.DetonationPdu;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.FirePdu;
+import org.openlvc.disops.server.dis.pdu.PduDecoder;
+import org.openlvc.disops.server.dis.pdu.PduHeader;
+
+/**
+ * Decodes a repeating mix of Entity State, Fire and Detonation PDUs held in a direct buffer
+ * and reports throughput along with the number of bytes the decoding thread allocated per
+ * PDU (via the HotSpot per-thread allocation counter). Once warmed up the allocation figure
+ * should be zero.
+ * 
+ * Usage: java -cp [classpath] org.openlvc.disops.benchmark.PduDecoderBenchmark [iterations]
+ */
+public class PduDecoderBenchmark
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ByteBuffer[] packets;
+	private final PduDecoder decoder;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PduDecoderBenchmark()
+	{
+		this.packets = new ByteBuffer[]{ entityState(1), entityState(2), entityState(3),
+		                                 fire(), detonation() };
+		this.decoder = new PduDecoder();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** Decode `count` PDUs, touching most fields, and return a checksum so the JIT can't
+	    throw the work away */
+	public double decode( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			PduHeader pdu = decoder.decode( packets[(int)(i%packets.length)] );
+			switch( pdu.getPduType() )
+			{
+				case EntityState:
+					EntityStatePdu espdu = (EntityStatePdu)pdu;
+					checksum += espdu.getEntityId() + espdu.getEntityType() + espdu.getAppearance();
+					checksum += espdu.getLocationX() + espdu.getLocationY() + espdu.getLocationZ();
+					checksum += espdu.getVelocityX() + espdu.getPsi() + espdu.getMarkingLength();
+					break;
+				case Fire:
+					FirePdu fire = (FirePdu)pdu;
+					checksum += fire.getFiringEntityId() + fire.getMunitionType() + fire.getRange();
+					break;
+				case Detonation:
+					DetonationPdu detonation = (DetonationPdu)pdu;
+					checksum += detonation.getTargetEntityId() + detonation.getDetonationResult();
+					break;
+				default:
+					break;
+			}
+		}
+
+		return checksum;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static void main( String[] args )
+	{
+		long iterations = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+		PduDecoderBenchmark benchmark = new PduDecoderBenchmark();
+
+		// warm up so the JIT has compiled and inlined the decode path
+		double sink = benchmark.decode( iterations / 5 );
+
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = allocatedBytes( threadId );
+		long start = System.nanoTime();
+		sink += benchmark.decode( iterations );
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes( threadId ) - allocatedBefore;
+
+		System.out.printf( "PDUs decoded:       %d%n", iterations );
+		System.out.printf( "Throughput:         %.1f M PDU/s%n", iterations / (elapsed/1000.0) );
+		System.out.printf( "Allocated:          %d bytes (%.4f bytes/PDU)%n",
+		                   allocated, allocated / (double)iterations );
+		System.out.printf( "(checksum %f)%n", sink );
+	}
+
+	private static long allocatedBytes( long threadId )
+	{
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+			.getThreadAllocatedBytes( threadId );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Sample PDU Construction   //////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private static ByteBuffer header( int type, int length )
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect( length );
+		buffer.put( (byte)6 ).put( (byte)1 ).put( (byte)type ).put( (byte)1 );
+		buffer.putInt( 0 ).putShort( (short)length ).putShort( (short)0 );
+		return buffer;
+	}
+
+	static ByteBuffer entityState( int entity )
+	{
+		ByteBuffer buffer = header( 1, EntityStatePdu.MINIMUM_LENGTH );
+		buffer.putShort( (short)1 ).putShort( (short)1 ).putShort( (short)entity );
+		buffer.put( (byte)1 ).put( (byte)0 );
+		buffer.putLong( 0x0101E10101030000L ).putLong( 0 );
+		buffer.putFloat( 10f ).putFloat( 0f ).putFloat( 0f );
+		buffer.putDouble( -4460000.0 ).putDouble( 2680000.0 ).putDouble( -3690000.0 );
+		buffer.putFloat( 1.5f ).putFloat( 0f ).putFloat( 0f );
+		buffer.putInt( 0 );
+		buffer.put( (byte)2 ).put( new byte[15] );
+		buffer.putFloat( 0f ).putFloat( 0f ).putFloat( 0f );
+		buffer.putFloat( 0f ).putFloat( 0f ).putFloat( 0f );
+		buffer.put( (byte)1 ).put( "TANK01\0\0\0\0\0".getBytes() );
+		buffer.putInt( 0 );
+		buffer.flip();
+		return buffer;
+	}
+
+	static ByteBuffer fire()
+	{
+		ByteBuffer buffer = header( 2, FirePdu.MINIMUM_LENGTH );
+		buffer.position( FirePdu.MINIMUM_LENGTH );
+		buffer.flip();
+		return buffer;
+	}
+
+	static ByteBuffer detonation()
+	{
+		ByteBuffer buffer = header( 3, DetonationPdu.MINIMUM_LENGTH );
+		buffer.position( DetonationPdu.MINIMUM_LENGTH );
+		buffer.flip();
+		return buffer;
+	}
+}
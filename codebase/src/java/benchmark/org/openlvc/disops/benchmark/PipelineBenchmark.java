@@ -0,0 +1,162 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.entity.EntityStateWriter;
+import org.openlvc.disops.server.entity.EntityTableUpdater;
+import org.openlvc.disops.server.entity.ShardedEntityTable;
+import org.openlvc.disops.server.influx.PointSink;
+import org.openlvc.disops.utils.SystemInformation;
+
+/**
+ * Measures how PDU pipeline throughput scales with the number of shards. A single producer
+ * thread plays the part of the receiver, routing a pre-built set of Entity State PDUs from
+ * many exercises and sites into the pipeline as fast as it can. Each shard runs the same
+ * listeners the server does: an entity table updater and an entity state writer (without DR
+ * suppression, so every PDU is turned into line protocol) feeding a sink that discards the
+ * points.
+ * <p/>
+ * Scaling needs a free core for every shard plus one for the producer, so on a machine with
+ * fewer cores than that the larger shard counts will flatten out.
+ * 
+ * Usage: java -cp [classpath] org.openlvc.disops.benchmark.PipelineBenchmark [maxShards] [seconds]
+ */
+public class PipelineBenchmark
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int EXERCISES = 4;
+	private static final int SITES = 64;
+	private static final int ENTITIES_PER_SITE = 32;
+	private static final int QUEUE_BYTES = 4*1024*1024;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ByteBuffer[] packets;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PipelineBenchmark()
+	{
+		this.packets = new ByteBuffer[EXERCISES*SITES*ENTITIES_PER_SITE];
+		int index = 0;
+		for( int entity = 1; entity <= ENTITIES_PER_SITE; entity++ )
+		{
+			for( int site = 1; site <= SITES; site++ )
+			{
+				for( int exercise = 1; exercise <= EXERCISES; exercise++ )
+				{
+					ByteBuffer packet = PduDecoderBenchmark.entityState( entity );
+					packet.put( 1, (byte)exercise );
+					packet.putShort( 12, (short)site );
+					packets[index++] = packet;
+				}
+			}
+		}
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Run the pipeline with the given number of shards for the given time.
+	 *
+	 * @return Throughput in PDUs per second
+	 */
+	public double run( int shards, long millis, Logger logger )
+	{
+		PduPipeline pipeline = new PduPipeline( shards, QUEUE_BYTES );
+		ShardedEntityTable table = new ShardedEntityTable( shards, packets.length, false );
+		PointSink discard = new PointSink()
+		{
+			public void write( String lineProtocol ) {}
+			public void write( byte[] line, int offset, int length ) {}
+			public void flush() {}
+		};
+
+		pipeline.addPduListenerFactory( shard -> new EntityTableUpdater(table.getPartition(shard)) );
+		pipeline.addPduListenerFactory( shard -> new EntityStateWriter(discard,null) );
+		pipeline.startup( logger );
+
+		// warm up for a second, then measure
+		produce( pipeline, System.currentTimeMillis()+1000 );
+		long before = pipeline.getProcessed();
+		long start = System.nanoTime();
+		produce( pipeline, System.currentTimeMillis()+millis );
+		long processed = pipeline.getProcessed() - before;
+		long elapsed = System.nanoTime() - start;
+
+		pipeline.shutdown();
+		return processed / (elapsed/1000000000.0);
+	}
+
+	/** Push packets until the deadline, retrying whenever a shard's queue is full */
+	private void produce( PduPipeline pipeline, long deadline )
+	{
+		long receiveTime = System.currentTimeMillis();
+		int index = 0;
+		while( true )
+		{
+			// checking the clock every packet would dominate, so check every 64k
+			for( int i = 0; i < 65536; i++ )
+			{
+				ByteBuffer packet = packets[index];
+				while( pipeline.route(packet,receiveTime) == false )
+					Thread.yield();
+
+				if( ++index == packets.length )
+					index = 0;
+			}
+
+			receiveTime = System.currentTimeMillis();
+			if( receiveTime >= deadline )
+				return;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static void main( String[] args )
+	{
+		int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		Logger logger = LogManager.getFormatterLogger( "benchmark" );
+
+		System.out.printf( "CPUs available: %d%n", SystemInformation.LOCAL.getCPUCount() );
+		PipelineBenchmark benchmark = new PipelineBenchmark();
+		double baseline = 0;
+		for( int shards = 1; shards <= maxShards; shards *= 2 )
+		{
+			double rate = benchmark.run( shards, seconds*1000, logger );
+			if( shards == 1 )
+				baseline = rate;
+
+			System.out.printf( "Shards: %-3d  Throughput: %6.2f M PDU/s  Speedup: %.2fx%n",
+			                   shards, rate/1000000.0, rate/baseline );
+		}
+	}
+}
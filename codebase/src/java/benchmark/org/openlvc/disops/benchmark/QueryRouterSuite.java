@@ -0,0 +1,353 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.openlvc.disops.server.entity.EntityStateWriter;
+import org.openlvc.disops.server.influx.InfluxWriter;
+import org.openlvc.disops.server.influx.QueryCache;
+import org.openlvc.disops.server.influx.QueryRouter;
+import org.openlvc.disops.server.influx.SchemaManager;
+import org.openlvc.disops.server.influx.TieredQuery;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Query latency by time range, reading every raw point versus letting the {@link QueryRouter}
+ * pick a tier. Each query asks for one field of every entity over the last hour, day or three
+ * days, at no more than 1000 points per entity (a chart's worth).
+ * <p/>
+ * The other end is a stand-in for influxd that holds three days of entity positions at 5Hz
+ * for 10 entities, plus the 1s/1m/1h rollups of them, in memory. It answers the queries the
+ * router builds by scanning every stored point of the tier asked for in the range, so the
+ * cost of a query grows with the points it touches the way it does in the real storage
+ * engine, less the disk. The result goes back as InfluxDB JSON and is parsed by the client,
+ * so the cost of the size of the response is real too. The points scanned and returned per
+ * query are printed at the end.
+ * <p/>
+ * The cached case runs the routed three day query through a {@link QueryCache}, with the end
+ * of the range moving on 100ms each time the way it does for dashboards refreshing at
+ * slightly different moments. The cache's hit rate is printed at the end.
+ */
+public class QueryRouterSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int ENTITIES = 10;
+	private static final long RAW_INTERVAL = 200;        // millis (5Hz)
+	private static final long SPAN = TimeUnit.DAYS.toMillis( 3 ) + TimeUnit.HOURS.toMillis( 1 );
+	private static final int MAX_POINTS = 1000;
+
+	private static final String[] TIERS = { SchemaManager.TIER_RAW, SchemaManager.TIER_SECOND,
+	                                        SchemaManager.TIER_MINUTE, SchemaManager.TIER_HOUR };
+	private static final long[] TIER_INTERVALS = { RAW_INTERVAL, 1000, 60000, 3600000 };
+
+	private static final Pattern FROM = Pattern.compile( "FROM \"[^\"]+\"\\.\"([^\"]+)\"\\.\"[^\"]+\" WHERE time >= (\\d+)ms AND time < (\\d+)ms" );
+	private static final Pattern BUCKET = Pattern.compile( "GROUP BY time\\((\\d+)ms\\)" );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private HttpServer server;
+	private InfluxWriter writer;
+	private QueryRouter router;
+	private QueryCache cache;
+	private long refreshes;
+
+	// stand-in storage: [tier][entity][point], point i of a tier is at origin + i*interval
+	private long origin;
+	private double[][][] data;
+
+	// tier -> [queries, points scanned, points returned]
+	private final Map<String,long[]> stats;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public QueryRouterSuite()
+	{
+		super( "queryRouter" );
+		register( "toInfluxQL", this::toInfluxQL );
+		register( "range.1h.raw", count -> range(count,TimeUnit.HOURS.toMillis(1),true) );
+		register( "range.1h.routed", count -> range(count,TimeUnit.HOURS.toMillis(1),false) );
+		register( "range.1d.raw", count -> range(count,TimeUnit.DAYS.toMillis(1),true) );
+		register( "range.1d.routed", count -> range(count,TimeUnit.DAYS.toMillis(1),false) );
+		register( "range.3d.raw", count -> range(count,TimeUnit.DAYS.toMillis(3),true) );
+		register( "range.3d.routed", count -> range(count,TimeUnit.DAYS.toMillis(3),false) );
+		register( "range.3d.cached", this::cached );
+
+		this.stats = new TreeMap<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup() throws Exception
+	{
+		// three days of positions, and the rollups the continuous queries would have made
+		this.origin = System.currentTimeMillis() - SPAN;
+		this.data = new double[TIERS.length][ENTITIES][];
+		for( int entity = 0; entity < ENTITIES; entity++ )
+		{
+			double[] raw = new double[(int)(SPAN/RAW_INTERVAL)];
+			for( int i = 0; i < raw.length; i++ )
+				raw[i] = entity*1000.0 + i*0.01;
+
+			data[0][entity] = raw;
+			for( int tier = 1; tier < TIERS.length; tier++ )
+			{
+				// last() of each bucket
+				int ratio = (int)(TIER_INTERVALS[tier] / RAW_INTERVAL);
+				double[] rollup = new double[raw.length / ratio];
+				for( int i = 0; i < rollup.length; i++ )
+					rollup[i] = raw[(i+1)*ratio - 1];
+
+				data[tier][entity] = rollup;
+			}
+		}
+
+		this.server = HttpServer.create( new InetSocketAddress("127.0.0.1",0), 16 );
+		this.server.createContext( "/query", this::handle );
+		this.server.start();
+
+		Configuration configuration = new Configuration( new String[]{ "--log-level", "WARN" } );
+		InfluxConfiguration influxConfiguration = configuration.getInfluxConfiguration();
+		influxConfiguration.setUrl( "http://127.0.0.1:"+server.getAddress().getPort() );
+		influxConfiguration.setSpillEnabled( false );
+
+		this.writer = new InfluxWriter( influxConfiguration, configuration.getApplicationLogger() );
+		this.writer.startup();
+		this.router = new QueryRouter( influxConfiguration,
+		                               new SchemaManager(influxConfiguration,configuration.getApplicationLogger()),
+		                               writer );
+		this.cache = new QueryCache( router,
+		                             influxConfiguration.getQueryCacheSize(),
+		                             influxConfiguration.getQueryCacheTtl() );
+	}
+
+	private TieredQuery query( long range, boolean raw )
+	{
+		long end = origin + SPAN;
+		TieredQuery query = new TieredQuery( EntityStateWriter.MEASUREMENT, "x" );
+		query.setTimeRange( end-range, end );
+		query.setMaxPoints( MAX_POINTS );
+		query.setGroupBy( "entity" );
+		if( raw )
+			query.setTier( SchemaManager.TIER_RAW );
+
+		return query;
+	}
+
+	private double toInfluxQL( long count )
+	{
+		TieredQuery query = query( TimeUnit.DAYS.toMillis(3), false );
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += router.toInfluxQL( query ).length();
+
+		return checksum;
+	}
+
+	private double range( long count, long range, boolean raw )
+	{
+		TieredQuery query = query( range, raw );
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			QueryResult result = router.query( query );
+			for( QueryResult.Series series : result.getResults().get(0).getSeries() )
+				checksum += series.getValues().size();
+		}
+
+		return checksum;
+	}
+
+	private double cached( long count )
+	{
+		TieredQuery query = query( TimeUnit.DAYS.toMillis(3), false );
+		long start = query.getStart();
+		long end = query.getEnd();
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			long step = (refreshes++ % 100000) * 100;
+			query.setTimeRange( start+step, end+step );
+			QueryResult result = cache.query( query );
+			for( QueryResult.Series series : result.getResults().get(0).getSeries() )
+				checksum += series.getValues().size();
+		}
+
+		return checksum;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Stand-in influxd   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void handle( HttpExchange exchange ) throws IOException
+	{
+		String body;
+		try( InputStream stream = exchange.getRequestBody() )
+		{
+			body = new String( readFully(stream), StandardCharsets.UTF_8 );
+		}
+
+		String influxql = null;
+		for( String parameter : body.split("&") )
+		{
+			if( parameter.startsWith("q=") )
+				influxql = URLDecoder.decode( parameter.substring(2), "UTF-8" );
+		}
+
+		Matcher from = FROM.matcher( influxql );
+		if( !from.find() )
+			throw new IOException( "Stand-in can't answer: "+influxql );
+
+		int tier = 0;
+		while( !TIERS[tier].equals(from.group(1)) )
+			tier++;
+
+		long start = Long.parseLong( from.group(2) );
+		long end = Long.parseLong( from.group(3) );
+		long interval = TIER_INTERVALS[tier];
+		Matcher bucketMatcher = BUCKET.matcher( influxql );
+		long bucket = bucketMatcher.find() ? Long.parseLong(bucketMatcher.group(1)) : interval;
+
+		// first and last stored point in the range; a rollup point is stamped with its bucket start
+		int first = (int)Math.max( 0, (start-origin+interval-1) / interval );
+		int last = (int)Math.min( data[tier][0].length, (end-origin+interval-1) / interval );
+
+		long scanned = 0, returned = 0;
+		StringBuilder json = new StringBuilder( 64*1024 );
+		json.append( "{\"results\":[{\"statement_id\":0,\"series\":[" );
+		for( int entity = 0; entity < ENTITIES; entity++ )
+		{
+			if( entity > 0 )
+				json.append( ',' );
+
+			json.append( "{\"name\":\"entity_state\",\"tags\":{\"entity\":\"" ).append( entity )
+			    .append( "\"},\"columns\":[\"time\",\"x\"],\"values\":[" );
+
+			// last() per bucket, scanning every point like the storage engine has to
+			double[] points = data[tier][entity];
+			long currentBucket = Long.MIN_VALUE;
+			double value = 0;
+			boolean any = false;
+			for( int i = first; i < last; i++ )
+			{
+				long time = origin + i*interval;
+				long timeBucket = time - Math.floorMod( time, bucket );
+				if( timeBucket != currentBucket && currentBucket != Long.MIN_VALUE )
+				{
+					json.append( any ? "," : "" ).append( '[' ).append( currentBucket ).append( ',' ).append( value ).append( ']' );
+					any = true;
+					returned++;
+				}
+
+				currentBucket = timeBucket;
+				value = points[i];
+				scanned++;
+			}
+
+			if( currentBucket != Long.MIN_VALUE )
+			{
+				json.append( any ? "," : "" ).append( '[' ).append( currentBucket ).append( ',' ).append( value ).append( ']' );
+				returned++;
+			}
+
+			json.append( "]}" );
+		}
+		json.append( "]}]}" );
+
+		synchronized( stats )
+		{
+			long[] tierStats = stats.computeIfAbsent( TIERS[tier], key -> new long[3] );
+			tierStats[0]++;
+			tierStats[1] += scanned;
+			tierStats[2] += returned;
+		}
+
+		byte[] response = json.toString().getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+		exchange.sendResponseHeaders( 200, response.length );
+		try( OutputStream stream = exchange.getResponseBody() )
+		{
+			stream.write( response );
+		}
+	}
+
+	private static byte[] readFully( InputStream stream ) throws IOException
+	{
+		byte[] buffer = new byte[4096];
+		int length = 0, read;
+		while( (read = stream.read(buffer,length,buffer.length-length)) != -1 )
+		{
+			length += read;
+			if( length == buffer.length )
+				buffer = Arrays.copyOf( buffer, buffer.length*2 );
+		}
+
+		return Arrays.copyOf( buffer, length );
+	}
+
+	@Override
+	public void teardown()
+	{
+		if( writer != null )
+			writer.shutdown();
+		if( server != null )
+			server.stop( 0 );
+
+		for( Map.Entry<String,long[]> entry : stats.entrySet() )
+		{
+			long[] tierStats = entry.getValue();
+			System.out.printf( "  tier %-4s %6d queries, %,12d points scanned/query, %,7d returned/query%n",
+			                   entry.getKey(), tierStats[0], tierStats[1]/tierStats[0], tierStats[2]/tierStats[0] );
+		}
+
+		if( cache != null )
+		{
+			System.out.printf( "  cache: %d hits, %d misses, %d%% hit rate, %d entries, %,d bytes%n",
+			                   cache.getHits(), cache.getMisses(), cache.getHitRate(),
+			                   cache.getEntryCount(), cache.getMemoryUsage() );
+		}
+
+		this.data = null; // let the next suite have the heap back
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
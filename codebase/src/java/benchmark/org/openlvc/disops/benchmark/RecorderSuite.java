@@ -0,0 +1,266 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.RecorderConfiguration;
+import org.openlvc.disops.server.recorder.CompressedSegment;
+import org.openlvc.disops.server.recorder.PduRecorder;
+import org.openlvc.disops.server.recorder.RecordingReader;
+import org.openlvc.disops.server.recorder.SegmentCompressor;
+
+/**
+ * The raw PDU recorder, from both ends:
+ * <ul>
+ *   <li><b>record</b>: what recording costs the receiver thread, which is handing an Entity
+ *       State PDU to the recorder's queue. Packets the recorder thread can't keep up with
+ *       are dropped, the same as they would be live, and the count is printed at the end.</li>
+ *   <li><b>seek</b>: finding a random moment in a 12 hour recording and reading the record
+ *       there, with the segments as recorded and once they have been compressed.</li>
+ *   <li><b>decode</b>: inflating a block of a compressed segment.</li>
+ *   <li><b>scan.compressed</b>: reading a compressed recording from start to end, per record.</li>
+ * </ul>
+ * The recording is Entity State heavy traffic: 200 entities moving about at 10 updates a
+ * second between them, with the odd Fire and Detonation, in 16MB segments. How well the
+ * segments compressed, and how fast, is printed at the end. Recordings are made in a
+ * temporary directory that is removed afterwards.
+ */
+public class RecorderSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long HOURS = 12;
+	private static final long INTERVAL = 100;    // millis between recorded PDUs (10/s)
+	private static final int ENTITIES = 200;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+	private Configuration configuration;
+	private PduRecorder recorder;
+	private ByteBuffer[] packets;
+	private ByteBuffer fire;
+	private ByteBuffer detonation;
+
+	private long recordingStart;
+	private RecordingReader reader;
+	private RecordingReader compressedReader;
+	private CompressedSegment compressedSegment;
+	private SegmentCompressor compressor;
+	private long seed;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public RecorderSuite()
+	{
+		super( "recorder" );
+		register( "record", this::record );
+		register( "seek", count -> seek(count,reader) );
+		register( "seek.compressed", count -> seek(count,compressedReader) );
+		register( "decode", this::decode );
+		register( "scan.compressed", this::scan );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup() throws Exception
+	{
+		this.directory = Files.createTempDirectory( "disops-recorder" ).toFile();
+		this.configuration = new Configuration( new String[]{ "--log-level", "WARN" } );
+		RecorderConfiguration recorderConfiguration = configuration.getRecorderConfiguration();
+		recorderConfiguration.setDirectory( directory.getAbsolutePath() );
+		recorderConfiguration.setSegmentSize( 16*1024*1024 );
+		recorderConfiguration.setCompressionEnabled( false );
+
+		this.packets = new ByteBuffer[ENTITIES];
+		for( int i = 0; i < packets.length; i++ )
+			packets[i] = PduDecoderBenchmark.entityState( i+1 );
+		this.fire = PduDecoderBenchmark.fire();
+		this.detonation = PduDecoderBenchmark.detonation();
+
+		// the same recording twice, one to leave as it is and one to compress
+		this.recordingStart = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( HOURS );
+		File recorded = makeRecording( recorderConfiguration );
+		File compressed = makeRecording( recorderConfiguration );
+
+		this.compressor = new SegmentCompressor( 1,
+		                                         recorderConfiguration.getCompressionBlockSize(),
+		                                         recorderConfiguration.getCompressionLevel(),
+		                                         configuration.getApplicationLogger() );
+		File[] segments = compressed.listFiles();
+		for( File segment : segments )
+			compressor.compress( segment );
+
+		this.reader = new RecordingReader( recorded );
+		this.compressedReader = new RecordingReader( compressed );
+		this.compressedSegment = CompressedSegment.open( compressed.listFiles()[0] );
+
+		// the recorder being measured
+		this.recorder = new PduRecorder( recorderConfiguration, configuration.getApplicationLogger() );
+		this.recorder.startup();
+		this.seed = 1;
+	}
+
+	/** Record 12 hours of traffic as fast as the recorder will take it */
+	private File makeRecording( RecorderConfiguration recorderConfiguration )
+	{
+		PduRecorder fixture = new PduRecorder( recorderConfiguration, configuration.getApplicationLogger() );
+		fixture.startup();
+		long count = TimeUnit.HOURS.toMillis( HOURS ) / INTERVAL;
+		for( long i = 0; i < count; i++ )
+		{
+			ByteBuffer packet = traffic( i );
+			while( !fixture.record(packet,recordingStart+i*INTERVAL) )
+				Thread.yield();
+		}
+
+		fixture.shutdown();
+		return fixture.getDirectory();
+	}
+
+	/** The i'th PDU of the traffic, mostly Entity State from entities on the move */
+	private ByteBuffer traffic( long i )
+	{
+		if( i % 97 == 0 )
+			return fire;
+		if( i % 97 == 1 )
+			return detonation;
+
+		int entity = (int)(i % ENTITIES);
+		double t = i * INTERVAL / 1000.0;
+		ByteBuffer packet = packets[entity];
+		packet.putInt( 4, (int)(i*INTERVAL*1000) );                    // timestamp
+		packet.putFloat( 36, (float)(8.0 + entity%5) );                 // velocity
+		packet.putFloat( 40, (float)Math.sin(t/60.0) );
+		packet.putDouble( 48, -4460000.0 + entity*150 + t*7.9 );        // location
+		packet.putDouble( 56, 2680000.0 - entity*90 + t*3.1 );
+		packet.putDouble( 64, -3690000.0 + entity*40 + Math.sin(t/30.0)*5 );
+		packet.putFloat( 72, (float)(entity*0.03 + t/600.0) );          // orientation
+		return packet;
+	}
+
+	private double record( long count )
+	{
+		double checksum = 0;
+		long now = System.currentTimeMillis();
+		for( long i = 0; i < count; i++ )
+			checksum += recorder.record( packets[(int)(i%ENTITIES)], now ) ? 1 : 0;
+
+		return checksum;
+	}
+
+	private double seek( long count, RecordingReader reader )
+	{
+		long span = TimeUnit.HOURS.toMillis( HOURS );
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			reader.seek( recordingStart + Math.floorMod(seed>>>16,span) );
+			if( reader.next() )
+				checksum += reader.getTime() + reader.getPacket().remaining();
+		}
+
+		return checksum;
+	}
+
+	private double decode( long count ) throws Exception
+	{
+		// alternate blocks so we never get the one already inflated
+		int blocks = compressedSegment.getBlockCount();
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+			checksum += compressedSegment.getBlock( (int)(i%blocks) ).limit();
+
+		return checksum;
+	}
+
+	private double scan( long count )
+	{
+		double checksum = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			if( !compressedReader.next() )
+			{
+				compressedReader.seek( 0 );
+				compressedReader.next();
+			}
+
+			checksum += compressedReader.getPacket().remaining();
+		}
+
+		return checksum;
+	}
+
+	@Override
+	public void teardown()
+	{
+		if( reader != null )
+			reader.close();
+		if( compressedReader != null )
+			compressedReader.close();
+
+		if( compressedSegment != null )
+		{
+			System.out.printf( "  compression: %d segments, %,d -> %,d bytes, ratio %.2f, %.1f MB/s per thread, "+
+			                   "%,d bytes/block uncompressed, %,d compressed%n",
+			                   compressor.getSegmentsCompressed(), compressor.getBytesIn(), compressor.getBytesOut(),
+			                   compressor.getRatio(), compressor.getThroughput()/1e6,
+			                   compressedSegment.getUncompressedSize()/compressedSegment.getBlockCount(),
+			                   compressedSegment.getCompressedSize()/compressedSegment.getBlockCount() );
+			compressedSegment.close();
+		}
+
+		if( recorder != null )
+		{
+			recorder.shutdown();
+			System.out.printf( "  recorder: %,d recorded, %,d dropped, %d segments%n", recorder.getPdusRecorded(),
+			                   recorder.getDropped(), recorder.getSegmentCount() );
+		}
+
+		delete( directory );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static void delete( File file )
+	{
+		if( file == null )
+			return;
+
+		File[] children = file.listFiles();
+		if( children != null )
+		{
+			for( File child : children )
+				delete( child );
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.util.Random;
+
+import org.openlvc.disops.Geodesy;
+
+import org.openlvc.disops.server.entity.Region;
+import org.openlvc.disops.server.entity.SpatialIndex;
+
+/**
+ * Region queries against the {@link SpatialIndex} with 100,000 entities spread over a 400km
+ * square, nine in ten on the ground and the rest in the air up to 12km. Each query is one of
+ * a set of regions scattered over the same area, so hits and misses are both in there:
+ * <ul>
+ *   <li><b>update</b>: moving an entity, which now and then takes it into another cell</li>
+ *   <li><b>count.*</b>: counting what is in a 5km or 50km radius or a 1 degree box</li>
+ *   <li><b>query.circle.5km</b>: collecting the IDs of what is in a 5km radius</li>
+ *   <li><b>scan.circle.5km</b>: the same count by testing every entity, for comparison</li>
+ * </ul>
+ * The average number of entities found per query is printed at the end.
+ */
+public class SpatialIndexSuite extends Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int ENTITIES = 100000;
+	private static final int REGIONS = 1024;     // power of 2
+	private static final double CENTER_LATITUDE = 35.0;
+	private static final double CENTER_LONGITUDE = -117.0;
+	private static final double AREA_DEGREES = 3.6; // about 400km
+	private static final double CELL_SIZE = 4000.0;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private SpatialIndex index;
+	private double[] x, y, z;        // entity positions
+	private double[] vx, vy, vz;     // and how far each moves per update
+	private Region[] circles5km;
+	private Region[] circles50km;
+	private Region[] boxes;
+	private long moves;
+	private long found;
+	private long queries;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public SpatialIndexSuite()
+	{
+		super( "spatial" );
+		register( "update", this::update );
+		register( "count.circle.5km", count -> count(circles5km,count) );
+		register( "count.circle.50km", count -> count(circles50km,count) );
+		register( "count.box.1deg", count -> count(boxes,count) );
+		register( "query.circle.5km", this::query );
+		register( "scan.circle.5km", this::scan );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void setup()
+	{
+		Random random = new Random( 1 );
+		this.x = new double[ENTITIES];
+		this.y = new double[ENTITIES];
+		this.z = new double[ENTITIES];
+		this.vx = new double[ENTITIES];
+		this.vy = new double[ENTITIES];
+		this.vz = new double[ENTITIES];
+		this.index = new SpatialIndex( CELL_SIZE, ENTITIES );
+
+		double[] position = new double[3];
+		for( int i = 0; i < ENTITIES; i++ )
+		{
+			boolean air = i % 10 == 0;
+			double altitude = air ? 1000.0 + random.nextDouble()*11000.0 : random.nextDouble()*200.0;
+			Geodesy.toEcef( randomLatitude(random), randomLongitude(random), altitude, position );
+			x[i] = position[0];
+			y[i] = position[1];
+			z[i] = position[2];
+
+			// a second or so of travel: ~10m/s on the ground, ~200m/s in the air
+			double speed = air ? 200.0 : 10.0;
+			vx[i] = (random.nextDouble()-0.5) * speed;
+			vy[i] = (random.nextDouble()-0.5) * speed;
+			vz[i] = (random.nextDouble()-0.5) * speed;
+			index.update( i, x[i], y[i], z[i] );
+		}
+
+		this.circles5km = new Region[REGIONS];
+		this.circles50km = new Region[REGIONS];
+		this.boxes = new Region[REGIONS];
+		for( int i = 0; i < REGIONS; i++ )
+		{
+			double latitude = randomLatitude( random );
+			double longitude = randomLongitude( random );
+			circles5km[i] = Region.circle( latitude, longitude, 5000.0 );
+			circles50km[i] = Region.circle( latitude, longitude, 50000.0 );
+			boxes[i] = Region.box( latitude-0.5, longitude-0.5, latitude+0.5, longitude+0.5 );
+		}
+
+		this.moves = 0;
+		this.found = 0;
+		this.queries = 0;
+	}
+
+	private double update( long count )
+	{
+		for( long i = 0; i < count; i++, moves++ )
+		{
+			int entity = (int)(moves % ENTITIES);
+			x[entity] += vx[entity];
+			y[entity] += vy[entity];
+			z[entity] += vz[entity];
+			index.update( entity, x[entity], y[entity], z[entity] );
+		}
+
+		return index.getCellCount();
+	}
+
+	private double count( Region[] regions, long count )
+	{
+		long total = 0;
+		for( long i = 0; i < count; i++ )
+			total += index.count( regions[(int)(i&(REGIONS-1))] );
+
+		found += total;
+		queries += count;
+		return total;
+	}
+
+	private double query( long count )
+	{
+		long[] checksum = new long[1];
+		long total = 0;
+		for( long i = 0; i < count; i++ )
+			total += index.query( circles5km[(int)(i&(REGIONS-1))], id -> checksum[0] += id );
+
+		return total + checksum[0];
+	}
+
+	private double scan( long count )
+	{
+		long total = 0;
+		for( long i = 0; i < count; i++ )
+		{
+			Region region = circles5km[(int)(i&(REGIONS-1))];
+			for( int entity = 0; entity < ENTITIES; entity++ )
+			{
+				if( region.contains(x[entity],y[entity],z[entity]) )
+					++total;
+			}
+		}
+
+		return total;
+	}
+
+	@Override
+	public void teardown()
+	{
+		if( queries > 0 )
+		{
+			System.out.printf( "  %d cells occupied, %.1f entities found per count query, %dKB%n",
+			                   index.getCellCount(), found/(double)queries, index.getMemoryUsage()/1024 );
+		}
+
+		this.index = null;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static double randomLatitude( Random random )
+	{
+		return CENTER_LATITUDE + (random.nextDouble()-0.5) * AREA_DEGREES;
+	}
+
+	private static double randomLongitude( Random random )
+	{
+		return CENTER_LONGITUDE + (random.nextDouble()-0.5) * AREA_DEGREES;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A group of related benchmarks sharing the same fixture, run by the {@link BenchmarkRunner}.
+ * <p/>
+ * Subclasses build their fixture in {@link #setup()}, {@link #register(String, Operation)}
+ * each operation they want measured, and release anything they hold in {@link #teardown()}.
+ * An operation is asked to do a number of units of work in one call, so the cost of the
+ * call and the clock reads are spread across many operations, and returns a checksum of what
+ * it did so the JIT can't decide the work is dead and remove it.
+ */
+public abstract class Suite
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final String name;
+	private final Map<String,Operation> operations;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	protected Suite( String name )
+	{
+		this.name = name;
+		this.operations = new LinkedHashMap<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** Build the fixture. Called once before any of the suite's operations are run. */
+	public abstract void setup() throws Exception;
+
+	/** Release the fixture. Called once after the last operation, even if one failed. */
+	public void teardown() throws Exception
+	{
+	}
+
+	protected void register( String operation, Operation body )
+	{
+		operations.put( name+"."+operation, body );
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/** @return Operations keyed by their full name (suite.operation), in registration order */
+	public Map<String,Operation> getOperations()
+	{
+		return this.operations;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Operation Interface   /////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	@FunctionalInterface
+	public interface Operation
+	{
+		/**
+		 * Perform the operation `count` times.
+		 *
+		 * @return A checksum of the work done, which the runner consumes
+		 */
+		public double run( long count ) throws Exception;
+	}
+}
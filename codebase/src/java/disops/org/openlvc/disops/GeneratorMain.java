@@ -0,0 +1,258 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.generator.TrafficGenerator;
+import org.openlvc.disops.replay.PacketSink;
+import org.openlvc.disops.server.DisOpsServer;
+import org.openlvc.disops.server.dis.PduPipeline;
+
+/**
+ * Generates synthetic DIS load with a {@link TrafficGenerator}, either sending it to a UDP
+ * address (<b>loopback</b> mode) or routing it straight into the pipeline of a DisOps server
+ * started in this JVM (<b>inprocess</b> mode), and reports the rate achieved as it goes.
+ * <p/>
+ * Any arguments not used by the generator are passed on to the server configuration.
+ */
+public class GeneratorMain
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long REPORT_INTERVAL = 5000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String mode;
+	private InetSocketAddress target;
+	private long duration;        // seconds, 0 = until stopped
+	private List<String> serverArgs;
+	private List<String> generatorArgs;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private GeneratorMain()
+	{
+		this.mode = "loopback";
+		this.target = new InetSocketAddress( "127.0.0.1", 3000 );
+		this.duration = 0;
+		this.serverArgs = new ArrayList<>();
+		this.generatorArgs = new ArrayList<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void run( String[] args ) throws Exception
+	{
+		// split our args from the server's, then we can make the config (and logger)
+		for( int i = 0; i < args.length; i++ )
+		{
+			String argument = args[i];
+			if( argument.equalsIgnoreCase("--mode") )
+				this.mode = args[++i].toLowerCase();
+			else if( argument.equalsIgnoreCase("--target") )
+				this.target = parseAddress( args[++i] );
+			else if( argument.equalsIgnoreCase("--duration") )
+				this.duration = Long.parseLong( args[++i] );
+			else if( isGeneratorArg(argument) )
+			{
+				generatorArgs.add( argument );
+				generatorArgs.add( args[++i] );
+			}
+			else
+				serverArgs.add( argument );
+		}
+
+		if( !mode.equals("loopback") && !mode.equals("inprocess") )
+			throw new DisOpsException( "Unknown generator mode: "+mode );
+
+		Configuration configuration = new Configuration( serverArgs.toArray(new String[0]) );
+		Logger logger = configuration.getApplicationLogger();
+		TrafficGenerator generator = new TrafficGenerator( logger );
+		applyGeneratorArgs( generator );
+
+		// set up where the traffic goes
+		DisOpsServer server = null;
+		List<DatagramChannel> channels = new ArrayList<>();
+		if( mode.equals("inprocess") )
+		{
+			configuration.getDisConfiguration().setReceiverEnabled( false );
+			server = new DisOpsServer( configuration );
+			server.startup();
+
+			PduPipeline pipeline = server.getDisManager().getPipeline();
+			generator.setShardCount( pipeline.getShardCount() );
+			generator.startup( worker -> PacketSink.pipeline(pipeline,false) );
+		}
+		else
+		{
+			generator.startup( worker -> {
+				try
+				{
+					DatagramChannel channel = DatagramChannel.open();
+					channel.connect( target );
+					synchronized( channels ) { channels.add(channel); }
+					return PacketSink.udp( channel );
+				}
+				catch( IOException ioex )
+				{
+					throw new DisOpsException( "Could not open generator socket: "+ioex.getMessage(), ioex );
+				}
+			});
+		}
+
+		// run until the duration is up or we are told to stop
+		CountDownLatch stopped = new CountDownLatch( 1 );
+		Runtime.getRuntime().addShutdownHook( new Thread(stopped::countDown,"generator-stop") );
+		long start = System.currentTimeMillis();
+		long lastTime = start;
+		long lastSent = 0;
+		while( true )
+		{
+			long remaining = duration > 0 ? start + duration*1000 - System.currentTimeMillis() : REPORT_INTERVAL;
+			if( remaining <= 0 || stopped.await(Math.min(remaining,REPORT_INTERVAL),TimeUnit.MILLISECONDS) )
+				break;
+
+			long now = System.currentTimeMillis();
+			long sent = generator.getTotalSent();
+			String pipelineStats = "";
+			if( server != null )
+			{
+				PduPipeline pipeline = server.getDisManager().getPipeline();
+				pipelineStats = String.format( ", pipeline processed=%d dropped=%d",
+				                               pipeline.getProcessed(), pipeline.getDropped() );
+			}
+
+			logger.info( "Generator: %.0f PDU/s (total=%d, errors=%d%s)",
+			             (sent-lastSent) / ((now-lastTime)/1000.0), sent, generator.getSendErrors(),
+			             pipelineStats );
+			lastTime = now;
+			lastSent = sent;
+		}
+
+		generator.shutdown();
+		for( DatagramChannel channel : channels )
+			channel.close();
+		if( server != null )
+			server.shutdown();
+
+		long[] sent = generator.getSent();
+		double seconds = Math.max( 1, System.currentTimeMillis()-start ) / 1000.0;
+		logger.info( "Generator finished: %d PDUs (%s) in %.1fs, %.0f PDU/s [es=%d, fire=%d, detonation=%d, signal=%d]",
+		             generator.getTotalSent(), Utils.bytesToString(generator.getBytesSent()), seconds,
+		             generator.getTotalSent()/seconds, sent[0], sent[1], sent[2], sent[3] );
+	}
+
+	private boolean isGeneratorArg( String argument )
+	{
+		switch( argument.toLowerCase() )
+		{
+			case "--entities":
+			case "--rate":
+			case "--fire":
+			case "--detonation":
+			case "--signal":
+			case "--threads":
+			case "--exercise":
+			case "--sites":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void applyGeneratorArgs( TrafficGenerator generator )
+	{
+		for( int i = 0; i < generatorArgs.size(); i += 2 )
+		{
+			String value = generatorArgs.get( i+1 );
+			switch( generatorArgs.get(i).toLowerCase() )
+			{
+				case "--entities":   generator.setEntityCount( Integer.parseInt(value) ); break;
+				case "--rate":       generator.setEntityRate( value.equalsIgnoreCase("max") ? 0.0 : Double.parseDouble(value) ); break;
+				case "--fire":       generator.setFireRate( Double.parseDouble(value) ); break;
+				case "--detonation": generator.setDetonationRate( Double.parseDouble(value) ); break;
+				case "--signal":     generator.setSignalRate( Double.parseDouble(value) ); break;
+				case "--threads":    generator.setThreadCount( Integer.parseInt(value) ); break;
+				case "--exercise":   generator.setExerciseId( Integer.parseInt(value) ); break;
+				case "--sites":      generator.setSiteCount( Integer.parseInt(value) ); break;
+				default: break;
+			}
+		}
+	}
+
+	private InetSocketAddress parseAddress( String value )
+	{
+		int colon = value.lastIndexOf( ':' );
+		if( colon == -1 )
+			throw new DisOpsException( "Generator target must be host:port: "+value );
+
+		return new InetSocketAddress( value.substring(0,colon), Integer.parseInt(value.substring(colon+1)) );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static void printHelp()
+	{
+		System.out.println( "DisOps Generator - Synthetic DIS traffic for scale testing" );
+		System.out.println( "Usage: bin/disops-generator [--args] [server args]" );
+		System.out.println( "" );
+		System.out.println( "  --entities            int      (optional)  Number of entities                      (default: 1000)" );
+		System.out.println( "  --rate                string   (optional)  Entity State Hz per entity, or max      (default: 5)" );
+		System.out.println( "  --fire                double   (optional)  Fire PDUs per second                    (default: 0)" );
+		System.out.println( "  --detonation          double   (optional)  Detonation PDUs per second              (default: 0)" );
+		System.out.println( "  --signal              double   (optional)  Signal PDUs per second                  (default: 0)" );
+		System.out.println( "  --threads             int      (optional)  Sending threads                         (default: 1)" );
+		System.out.println( "  --exercise            int      (optional)  DIS exercise id                         (default: 1)" );
+		System.out.println( "  --sites               int      (optional)  Sites the entities are spread across    (default: 16)" );
+		System.out.println( "  --mode                string   (optional)  [loopback,inprocess]                    (default: loopback)" );
+		System.out.println( "  --target              string   (optional)  host:port to send to in loopback mode   (default: 127.0.0.1:3000)" );
+		System.out.println( "  --duration            int      (optional)  Seconds to run for, 0 = until stopped   (default: 0)" );
+		System.out.println( "" );
+		System.out.println( "In inprocess mode the remaining arguments configure the server:" );
+		Configuration.printHelp();
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		for( String string : args )
+		{
+			if( string.equalsIgnoreCase("--help") )
+			{
+				printHelp();
+				return;
+			}
+		}
+
+		new GeneratorMain().run( args );
+	}
+}
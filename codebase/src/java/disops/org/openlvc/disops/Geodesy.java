@@ -0,0 +1,275 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops;
+
+/**
+ * Conversions between the geocentric (ECEF) coordinates DIS carries and geodetic latitude,
+ * longitude and height on the WGS84 ellipsoid.
+ * <p/>
+ * The usual way to get latitude out of ECEF is to iterate, calling sin, cos and atan2 each
+ * time round until it settles. Here it is done in closed form instead: Bowring's formula gives
+ * the latitude from the parametric latitude to within a fraction of a millimetre anywhere near
+ * the Earth, and a second round of it takes that to the limits of double precision out to
+ * geostationary orbit. Both rounds are written using only arithmetic and square roots, with
+ * latitude carried as its sine and cosine, so there are no branches and no calls to the trig
+ * functions in the inner loop. The angles at the end come from an arctangent built the same
+ * way, so over primitive arrays the whole loop is one the JIT can unroll and turn into SIMD
+ * instructions.
+ * <p/>
+ * Batches are the fast path; {@link #toGeodetic(double, double, double, double[])} converts a
+ * single point the same way for callers that only have one. Latitude and longitude are in
+ * degrees, heights in metres above the ellipsoid. The geocentre itself has no latitude, and
+ * comes out as 0, 0 and a height of minus the equatorial radius.
+ */
+public class Geodesy
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** WGS84 semi-major axis (equatorial radius), metres */
+	public static final double WGS84_A = 6378137.0;
+	/** WGS84 flattening */
+	public static final double WGS84_F = 1.0 / 298.257223563;
+	/** WGS84 semi-minor axis (polar radius), metres */
+	public static final double WGS84_B = WGS84_A * (1.0-WGS84_F);
+	/** WGS84 first eccentricity squared */
+	public static final double WGS84_E2 = WGS84_F * (2.0-WGS84_F);
+
+	private static final double EP2 = WGS84_E2 / (1.0-WGS84_E2);   // second eccentricity squared
+	private static final double AE2 = WGS84_A * WGS84_E2;
+	private static final double BEP2 = WGS84_B * EP2;
+	private static final double B_OVER_A = WGS84_B / WGS84_A;
+
+	// Keeps 0/0 out of the normalisations at the geocentre without moving anything else
+	private static final double TINY = Double.MIN_NORMAL;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Geodesy()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Convert a batch of geocentric positions to geodetic. The output arrays are used as
+	 * scratch space on the way, so they must be distinct from the input arrays.
+	 *
+	 * @param x         Geocentric X (metres)
+	 * @param y         Geocentric Y (metres)
+	 * @param z         Geocentric Z (metres)
+	 * @param latitude  Filled with latitudes (degrees)
+	 * @param longitude Filled with longitudes (degrees, -180 to 180)
+	 * @param altitude  Filled with heights above the ellipsoid (metres)
+	 * @param count     Number of positions to convert, from the start of each array
+	 */
+	public static void toGeodetic( double[] x, double[] y, double[] z,
+	                               double[] latitude, double[] longitude, double[] altitude,
+	                               int count )
+	{
+		if( count < 0 || count > x.length || count > y.length || count > z.length ||
+		    count > latitude.length || count > longitude.length || count > altitude.length )
+			throw new IllegalArgumentException( "Count out of range for the arrays: "+count );
+
+		// C2 only unrolls (and so only vectorizes) small loops, so the conversion is done in
+		// passes with the intermediate values held in the output arrays. Each pass is the
+		// same arithmetic, in the same order, as the single point version.
+		for( int i = 0; i < count; i++ )
+			altitude[i] = Math.sqrt( x[i]*x[i] + y[i]*y[i] );
+
+		// Bowring, from the parametric latitude of the point itself: numerator and denominator
+		// of tan(latitude) go in latitude and longitude
+		for( int i = 0; i < count; i++ )
+		{
+			double p = altitude[i];
+			double su = WGS84_A * z[i];
+			double cu = WGS84_B * p;
+			double u = 1.0 / Math.sqrt( su*su + cu*cu + TINY );
+			su *= u;
+			cu *= u;
+			latitude[i] = z[i] + BEP2*su*su*su;
+			longitude[i] = p - AE2*cu*cu*cu;
+		}
+
+		// and again, from the parametric latitude of that first estimate
+		for( int i = 0; i < count; i++ )
+		{
+			double su = B_OVER_A * latitude[i];
+			double cu = longitude[i];
+			double u = 1.0 / Math.sqrt( su*su + cu*cu + TINY );
+			su *= u;
+			cu *= u;
+			latitude[i] = z[i] + BEP2*su*su*su;
+			longitude[i] = altitude[i] - AE2*cu*cu*cu;
+		}
+
+		// sine and cosine of the latitude, and the height from them
+		for( int i = 0; i < count; i++ )
+		{
+			double n = latitude[i];
+			double d = longitude[i];
+			double h = 1.0 / Math.sqrt( n*n + d*d + TINY );
+			double sin = n * h;
+			double cos = d * h;
+			altitude[i] = height( altitude[i], z[i], sin, cos );
+			latitude[i] = sin;
+			longitude[i] = cos;
+		}
+
+		angles( latitude, longitude, latitude, count );
+		angles( y, x, longitude, count );
+	}
+
+	/** Turn (x,y) pairs into angles in degrees, as {@link #angle(double, double)} does */
+	private static void angles( double[] y, double[] x, double[] out, int count )
+	{
+		for( int i = 0; i < count; i++ )
+			out[i] = eighthTangent( y[i], x[i] );
+
+		for( int i = 0; i < count; i++ )
+			out[i] = arctangent( out[i] );
+
+		for( int i = 0; i < count; i++ )
+			out[i] = Math.toDegrees( unfold(out[i],x[i]) );
+	}
+
+	/**
+	 * Convert a single geocentric position to geodetic, exactly as the batch version does.
+	 *
+	 * @param out Filled with latitude (degrees), longitude (degrees) and height (metres)
+	 */
+	public static void toGeodetic( double x, double y, double z, double[] out )
+	{
+		double p = Math.sqrt( x*x + y*y );
+
+		double su = WGS84_A * z;
+		double cu = WGS84_B * p;
+		double u = 1.0 / Math.sqrt( su*su + cu*cu + TINY );
+		su *= u;
+		cu *= u;
+		double n = z + BEP2*su*su*su;
+		double d = p - AE2*cu*cu*cu;
+
+		su = B_OVER_A * n;
+		cu = d;
+		u = 1.0 / Math.sqrt( su*su + cu*cu + TINY );
+		su *= u;
+		cu *= u;
+		n = z + BEP2*su*su*su;
+		d = p - AE2*cu*cu*cu;
+
+		double h = 1.0 / Math.sqrt( n*n + d*d + TINY );
+		double sin = n * h;
+		double cos = d * h;
+
+		out[0] = Math.toDegrees( angle(sin,cos) );
+		out[1] = Math.toDegrees( angle(y,x) );
+		out[2] = height( p, z, sin, cos );
+	}
+
+	/** Height along the normal: p.cos + z.sin - a.sqrt(1 - e^2.sin^2) */
+	private static double height( double p, double z, double sin, double cos )
+	{
+		return p*cos + z*sin - WGS84_A*Math.sqrt( 1.0 - WGS84_E2*sin*sin );
+	}
+
+	/**
+	 * The same as {@link Math#atan2(double, double)} to within a few ulps, but with nothing
+	 * in it the JIT can't vectorize: Math.atan2 is a call into fdlibm and costs more than the
+	 * rest of the conversion put together.
+	 * <p/>
+	 * The angle of (|x|,y) is halved three times by adding the radius to the x side, which
+	 * leaves a tangent no bigger than tan(pi/16) for the arctangent series to finish off in
+	 * thirteen terms. The sign of x is then put back without a branch: for negative x the
+	 * angle is reflected to pi-a (or -pi-a), using a 0 or 1 worked out from |x|-x. An x of
+	 * -0.0 is taken as positive, as is a y of -0.0, so the far side of the antimeridian is
+	 * always +180.
+	 */
+	private static double angle( double y, double x )
+	{
+		return unfold( arctangent(eighthTangent(y,x)), x );
+	}
+
+	/** @return tan(a/8), where a is the angle of (|x|,y) */
+	private static double eighthTangent( double y, double x )
+	{
+		double ax = Math.abs( x );
+		double u = ax + Math.sqrt( ax*ax + y*y );
+		u += Math.sqrt( u*u + y*y );
+		u += Math.sqrt( u*u + y*y );
+		return y / (u+TINY);
+	}
+
+	/** @return 8.atan(t) for |t| <= tan(pi/16), by the series t - t^3/3 + t^5/5 - ... to t^25 */
+	private static double arctangent( double t )
+	{
+		double t2 = t*t;
+		double series = 1.0/25;
+		series = 1.0/23 - t2*series;
+		series = 1.0/21 - t2*series;
+		series = 1.0/19 - t2*series;
+		series = 1.0/17 - t2*series;
+		series = 1.0/15 - t2*series;
+		series = 1.0/13 - t2*series;
+		series = 1.0/11 - t2*series;
+		series = 1.0/9 - t2*series;
+		series = 1.0/7 - t2*series;
+		series = 1.0/5 - t2*series;
+		series = 1.0/3 - t2*series;
+		series = 1.0 - t2*series;
+		return 8.0 * t * series;
+	}
+
+	/** @return The angle of (x,y), given the angle a of (|x|,y). The sign of a is that of y. */
+	private static double unfold( double a, double x )
+	{
+		double ax = Math.abs( x );
+		double negative = (ax-x) / (ax+ax+TINY);     // 1 if x < 0, otherwise 0
+		double sign = (a+TINY) / (Math.abs(a)+TINY); // -1 if a < 0, otherwise 1
+		return a + (Math.PI*sign - 2.0*a) * negative;
+	}
+
+	/**
+	 * Convert a geodetic position to geocentric.
+	 *
+	 * @param latitude  Degrees
+	 * @param longitude Degrees
+	 * @param altitude  Metres above the ellipsoid
+	 * @param out       Filled with X, Y and Z (metres)
+	 */
+	public static void toEcef( double latitude, double longitude, double altitude, double[] out )
+	{
+		double lat = Math.toRadians( latitude );
+		double lon = Math.toRadians( longitude );
+		double sinLat = Math.sin( lat ), cosLat = Math.cos( lat );
+		double n = WGS84_A / Math.sqrt( 1.0 - WGS84_E2*sinLat*sinLat );
+		out[0] = (n+altitude) * cosLat * Math.cos( lon );
+		out[1] = (n+altitude) * cosLat * Math.sin( lon );
+		out[2] = (n*(1.0-WGS84_E2)+altitude) * sinLat;
+	}
+}
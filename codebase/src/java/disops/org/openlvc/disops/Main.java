@@ -45,8 +45,10 @@ public class Main
 		// Run the load master
 		DisOpsServer server = new DisOpsServer( configuration );
 		server.startup();
-		
-		Thread.sleep( 2000 );
+
+		// Run until we're told to stop (Ctrl-C, SIGTERM, ...)
+		Runtime.getRuntime().addShutdownHook( new Thread(server::shutdown,"disops-shutdown") );
+		server.awaitShutdown();
 	}
 
 	//----------------------------------------------------------
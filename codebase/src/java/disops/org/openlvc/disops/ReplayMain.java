@@ -0,0 +1,207 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.replay.PacketSink;
+import org.openlvc.disops.replay.PcapReader;
+import org.openlvc.disops.replay.PcapReplayer;
+import org.openlvc.disops.server.DisOpsServer;
+
+/**
+ * Replays the DIS traffic in a pcap/pcapng capture, to reproduce a real load offline.
+ * <p/>
+ * In <b>loopback</b> mode packets are sent to a UDP address (a DisOps server running
+ * elsewhere, by default one on this host). In <b>inprocess</b> mode a DisOps server is
+ * started in this JVM with its network receiver turned off and the packets are routed
+ * straight into its processing pipeline, which takes the network out of the measurement.
+ * <p/>
+ * Any arguments not used by the replay are passed on to the server configuration.
+ */
+public class ReplayMain
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File capture;
+	private String mode;
+	private InetSocketAddress target;
+	private double speed;
+	private int loops;
+	private int portFilter;
+	private List<String> serverArgs;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private ReplayMain()
+	{
+		this.capture = null;
+		this.mode = "loopback";
+		this.target = new InetSocketAddress( "127.0.0.1", 3000 );
+		this.speed = 1.0;
+		this.loops = 1;
+		this.portFilter = -1;
+		this.serverArgs = new ArrayList<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	private void run( String[] args ) throws Exception
+	{
+		parseArgs( args );
+
+		Configuration configuration = new Configuration( serverArgs.toArray(new String[0]) );
+		Logger logger = configuration.getApplicationLogger();
+
+		PcapReader reader = new PcapReader( capture );
+		reader.setPortFilter( portFilter );
+		reader.open();
+		logger.info( "Replaying %s (%s, %s) in %s mode at %s, loops=%s", capture, reader.getFormat(),
+		             Utils.bytesToString(reader.getFileSize()), mode,
+		             speed > 0 ? speed+"x" : "max speed", loops > 0 ? ""+loops : "forever" );
+
+		DisOpsServer server = null;
+		DatagramChannel channel = null;
+		PacketSink sink;
+		if( mode.equals("inprocess") )
+		{
+			configuration.getDisConfiguration().setReceiverEnabled( false );
+			server = new DisOpsServer( configuration );
+			server.startup();
+			// at max speed measure how fast the pipeline goes, otherwise drop like the receiver
+			sink = PacketSink.pipeline( server.getDisManager().getPipeline(), speed <= 0.0 );
+		}
+		else
+		{
+			channel = DatagramChannel.open();
+			channel.connect( target );
+			sink = PacketSink.udp( channel );
+		}
+
+		PcapReplayer replayer = new PcapReplayer( reader, sink, logger );
+		replayer.setSpeed( speed );
+		replayer.setLoops( loops );
+		Runtime.getRuntime().addShutdownHook( new Thread(replayer::stop,"replay-stop") );
+
+		try
+		{
+			replayer.run();
+		}
+		finally
+		{
+			reader.close();
+			if( channel != null )
+				channel.close();
+			if( server != null )
+				server.shutdown();
+		}
+
+		double seconds = Math.max( 1, replayer.getElapsedMillis() ) / 1000.0;
+		logger.info( "Replay complete: %d packets (%s) in %.2fs, %.0f pkt/s, %s/s, max lag %.1fms",
+		             replayer.getPacketsSent(), Utils.bytesToString(replayer.getBytesSent()), seconds,
+		             replayer.getPacketsSent()/seconds, Utils.bytesToString((long)(replayer.getBytesSent()/seconds)),
+		             replayer.getMaxLagMillis() );
+		logger.info( "Capture: frames=%d, udp=%d, skipped=%d, fragments=%d, send errors=%d",
+		             reader.getFrameCount(), reader.getPacketCount(), reader.getSkippedCount(),
+		             reader.getFragmentCount(), replayer.getSendErrors() );
+	}
+
+	private void parseArgs( String[] args )
+	{
+		for( int i = 0; i < args.length; i++ )
+		{
+			String argument = args[i];
+			if( argument.equalsIgnoreCase("--pcap") )
+				this.capture = new File( args[++i] );
+			else if( argument.equalsIgnoreCase("--mode") )
+				this.mode = args[++i].toLowerCase();
+			else if( argument.equalsIgnoreCase("--target") )
+				this.target = parseAddress( args[++i] );
+			else if( argument.equalsIgnoreCase("--speed") )
+				this.speed = args[++i].equalsIgnoreCase("max") ? 0.0 : Double.parseDouble( args[i] );
+			else if( argument.equalsIgnoreCase("--loops") )
+				this.loops = Integer.parseInt( args[++i] );
+			else if( argument.equalsIgnoreCase("--port") )
+				this.portFilter = Integer.parseInt( args[++i] );
+			else
+				this.serverArgs.add( argument );
+		}
+
+		if( capture == null )
+			throw new DisOpsException( "No capture file given (--pcap)" );
+		if( !capture.isFile() )
+			throw new DisOpsException( "Capture file not found: "+capture );
+		if( !mode.equals("loopback") && !mode.equals("inprocess") )
+			throw new DisOpsException( "Unknown replay mode: "+mode );
+	}
+
+	private InetSocketAddress parseAddress( String value )
+	{
+		int colon = value.lastIndexOf( ':' );
+		if( colon == -1 )
+			throw new DisOpsException( "Replay target must be host:port: "+value );
+
+		return new InetSocketAddress( value.substring(0,colon), Integer.parseInt(value.substring(colon+1)) );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static void printHelp()
+	{
+		System.out.println( "DisOps Replay - Replay captured DIS traffic for load testing" );
+		System.out.println( "Usage: bin/disops-replay --pcap <file> [--args] [server args]" );
+		System.out.println( "" );
+		System.out.println( "  --pcap                file     (required)  pcap or pcapng capture to replay" );
+		System.out.println( "  --mode                string   (optional)  [loopback,inprocess]                    (default: loopback)" );
+		System.out.println( "  --target              string   (optional)  host:port to send to in loopback mode   (default: 127.0.0.1:3000)" );
+		System.out.println( "  --speed               string   (optional)  Multiple of real time, or max           (default: 1)" );
+		System.out.println( "  --loops               int      (optional)  Times to play the capture, 0 = forever  (default: 1)" );
+		System.out.println( "  --port                int      (optional)  Only replay packets sent to this port   (default: any)" );
+		System.out.println( "" );
+		System.out.println( "In inprocess mode the remaining arguments configure the server:" );
+		Configuration.printHelp();
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		for( String string : args )
+		{
+			if( string.equalsIgnoreCase("--help") )
+			{
+				printHelp();
+				return;
+			}
+		}
+
+		new ReplayMain().run( args );
+	}
+}
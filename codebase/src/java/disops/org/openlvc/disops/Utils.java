@@ -17,6 +17,9 @@
  */
 package org.openlvc.disops;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -143,6 +146,60 @@ public class Utils
 		return String.format( "%.1f %sB", bytes/Math.pow(unit,exp), "kMGTPE".charAt(exp-1) );
 	}
 
+	////////////////////////////////////////////////////////////////////////
+	/// Memory Mapping Helper Methods   ////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////
+	/**
+	 * Release the memory behind a direct or memory-mapped buffer right now rather than
+	 * waiting for it to be garbage collected. Windows won't let a file be deleted while it
+	 * is still mapped, so anything that maps files and then deletes them needs this. The
+	 * buffer must never be touched again afterwards.
+	 * <p/>
+	 * There is no public API for this in Java 8, so we go through Unsafe.invokeCleaner() on
+	 * Java 9+ and the buffer's cleaner on Java 8. If neither works the buffer is left for
+	 * the GC and false is returned.
+	 */
+	public static boolean unmap( ByteBuffer buffer )
+	{
+		if( buffer == null || !buffer.isDirect() )
+			return false;
+
+		try
+		{
+			// Java 9+
+			Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			Field field = unsafeClass.getDeclaredField( "theUnsafe" );
+			field.setAccessible( true );
+			invokeCleaner.invoke( field.get(null), buffer );
+			return true;
+		}
+		catch( NoSuchMethodException nsme )
+		{
+			// Java 8 - fall through
+		}
+		catch( Exception e )
+		{
+			return false;
+		}
+
+		try
+		{
+			Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			Object cleaner = cleanerMethod.invoke( buffer );
+			if( cleaner == null )
+				return false;
+
+			cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+			return true;
+		}
+		catch( Exception e )
+		{
+			return false;
+		}
+	}
+
 	////////////////////////////////////////////////////////////////////////
 	/// JSON Helper Methods   //////////////////////////////////////////////
 	////////////////////////////////////////////////////////////////////////
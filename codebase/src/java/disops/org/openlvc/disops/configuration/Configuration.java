@@ -65,6 +65,9 @@ public class Configuration
 	
 	// Child Configuration Objects
 	private InfluxConfiguration influxConfiguration;
+	private DisConfiguration disConfiguration;
+	private HttpConfiguration httpConfiguration;
+	private RecorderConfiguration recorderConfiguration;
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -86,6 +89,9 @@ public class Configuration
 		
 		// Sub-Component Configuration
 		this.influxConfiguration = new InfluxConfiguration( this );
+		this.disConfiguration = new DisConfiguration( this );
+		this.httpConfiguration = new HttpConfiguration( this );
+		this.recorderConfiguration = new RecorderConfiguration( this );
 		
 		// TODO Split out into a "Configurator" object
 		// see if the user specified a config file on the command line before we process it
@@ -108,6 +114,21 @@ public class Configuration
 		return this.influxConfiguration;
 	}
 
+	public DisConfiguration getDisConfiguration()
+	{
+		return this.disConfiguration;
+	}
+
+	public HttpConfiguration getHttpConfiguration()
+	{
+		return this.httpConfiguration;
+	}
+
+	public RecorderConfiguration getRecorderConfiguration()
+	{
+		return this.recorderConfiguration;
+	}
+
 	////////////////////////////////////////////////////////////////////////////////////////////
 	/// Configuration Outside Config File    ///////////////////////////////////////////////////
 	////////////////////////////////////////////////////////////////////////////////////////////
@@ -357,6 +378,73 @@ public class Configuration
 		return value;
 	}
 
+	/**
+	 * Same as {@link #getProperty(String, String)} except that the value is parsed into an int.
+	 * 
+	 * @throws ConfigurationException If the value cannot be parsed into an int
+	 */
+	protected final int getIntProperty( String key, String defaultValue )
+		throws ConfigurationException
+	{
+		String value = getProperty( key, defaultValue );
+		try
+		{
+			return Integer.parseInt( value.trim() );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new ConfigurationException( "Invalid value for "+key+": "+value, nfe );
+		}
+	}
+
+	/**
+	 * Same as {@link #getProperty(String, String)} except that the value is parsed into a long.
+	 * 
+	 * @throws ConfigurationException If the value cannot be parsed into a long
+	 */
+	protected final long getLongProperty( String key, String defaultValue )
+		throws ConfigurationException
+	{
+		String value = getProperty( key, defaultValue );
+		try
+		{
+			return Long.parseLong( value.trim() );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new ConfigurationException( "Invalid value for "+key+": "+value, nfe );
+		}
+	}
+
+	/**
+	 * Same as {@link #getProperty(String, String)} except that the value is parsed into a
+	 * double.
+	 * 
+	 * @throws ConfigurationException If the value cannot be parsed into a double
+	 */
+	protected final double getDoubleProperty( String key, String defaultValue )
+		throws ConfigurationException
+	{
+		String value = getProperty( key, defaultValue );
+		try
+		{
+			return Double.parseDouble( value.trim() );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new ConfigurationException( "Invalid value for "+key+": "+value, nfe );
+		}
+	}
+
+	/**
+	 * Same as {@link #getProperty(String, String)} except that the value is parsed into a
+	 * boolean. Anything other than "true" (case insensitive) is considered false.
+	 */
+	protected final boolean getBooleanProperty( String key, String defaultValue )
+	{
+		return Boolean.valueOf( getProperty(key,defaultValue).trim() );
+	}
+
 	protected final void setProperty( String key, String value )
 	{
 		properties.setProperty( key, value );
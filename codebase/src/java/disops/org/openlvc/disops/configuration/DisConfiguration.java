@@ -0,0 +1,342 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.configuration;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openlvc.disops.utils.SystemInformation;
+
+public class DisConfiguration
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// Turn off to run the processing pipeline without listening to the network (for replay)
+	public static final String KEY_RECEIVER_ENABLED = "dis.receiver.enabled";
+	public static final String DEFAULT_RECEIVER_ENABLED = "true";
+
+	// Address and port to bind the unicast/broadcast receiver to
+	public static final String KEY_ADDRESS         = "dis.address";
+	public static final String DEFAULT_ADDRESS     = "0.0.0.0";
+	public static final String KEY_PORT            = "dis.port";
+	public static final String DEFAULT_PORT        = "3000";
+
+	// Broadcast and Multicast settings
+	public static final String KEY_BROADCAST       = "dis.broadcast";
+	public static final String DEFAULT_BROADCAST   = "true";
+	public static final String KEY_MULTICAST       = "dis.multicast.groups";  // comma separated
+	public static final String DEFAULT_MULTICAST   = "";
+	public static final String KEY_NIC             = "dis.nic";               // name or address
+	public static final String DEFAULT_NIC         = "";
+
+	// Socket and Buffer Sizing
+	public static final String KEY_RECEIVE_BUFFER  = "dis.socket.recvbuffer"; // bytes
+	public static final String DEFAULT_RECEIVE_BUFFER = "16777216";
+	public static final String KEY_BUFFER_SIZE     = "dis.buffer.size";       // bytes
+	public static final String DEFAULT_BUFFER_SIZE = "8192";
+
+	// Processing Pipeline
+	public static final String KEY_SHARDS          = "dis.shards";            // count, or "auto"
+	public static final String DEFAULT_SHARDS      = "auto";
+	public static final String KEY_SHARD_BUFFER    = "dis.shard.buffer";      // bytes of queue per shard
+	public static final String DEFAULT_SHARD_BUFFER = "4194304";
+
+	// Live Entity Table
+	public static final String KEY_ENTITY_CAPACITY = "dis.entities.expected";
+	public static final String DEFAULT_ENTITY_CAPACITY = "65536";
+	public static final String KEY_ENTITY_OFFHEAP  = "dis.entities.offheap";
+	public static final String DEFAULT_ENTITY_OFFHEAP = "false";
+	public static final String KEY_ENTITY_TIMEOUT  = "dis.entities.timeout";  // millis, 0 to disable
+	public static final String DEFAULT_ENTITY_TIMEOUT = "12000";
+	public static final String KEY_SPATIAL_ENABLED = "dis.entities.spatial.enabled";
+	public static final String DEFAULT_SPATIAL_ENABLED = "true";
+	public static final String KEY_SPATIAL_CELL    = "dis.entities.spatial.cell";  // metres
+	public static final String DEFAULT_SPATIAL_CELL = "4000";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Configuration rootConfiguration;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	protected DisConfiguration( Configuration rootConfiguration )
+	{
+		this.rootConfiguration = rootConfiguration;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	///////////////////////////////////////////////
+	/// Network Settings  /////////////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return False if the DIS sockets should not be opened. The processing pipeline still runs,
+	 *         but only gets the packets something else routes into it (such as a replay).
+	 */
+	public boolean isReceiverEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_RECEIVER_ENABLED, DEFAULT_RECEIVER_ENABLED );
+	}
+
+	public void setReceiverEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_RECEIVER_ENABLED, ""+enabled );
+	}
+
+	public InetAddress getAddress() throws ConfigurationException
+	{
+		String value = rootConfiguration.getProperty( KEY_ADDRESS, DEFAULT_ADDRESS );
+		try
+		{
+			return InetAddress.getByName( value );
+		}
+		catch( UnknownHostException uhe )
+		{
+			throw new ConfigurationException( "Unknown DIS bind address: "+value, uhe );
+		}
+	}
+
+	public void setAddress( String address )
+	{
+		rootConfiguration.setProperty( KEY_ADDRESS, address );
+	}
+
+	public int getPort()
+	{
+		return rootConfiguration.getIntProperty( KEY_PORT, DEFAULT_PORT );
+	}
+
+	public void setPort( int port )
+	{
+		rootConfiguration.setProperty( KEY_PORT, ""+port );
+	}
+
+	public boolean isBroadcastEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_BROADCAST, DEFAULT_BROADCAST );
+	}
+
+	public void setBroadcastEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_BROADCAST, ""+enabled );
+	}
+
+	/**
+	 * @return The list of multicast groups we should join. Empty if multicast is not in use.
+	 * @throws ConfigurationException If any of the addresses are not valid multicast addresses
+	 */
+	public List<InetAddress> getMulticastGroups() throws ConfigurationException
+	{
+		List<InetAddress> groups = new ArrayList<>();
+		String value = rootConfiguration.getProperty( KEY_MULTICAST, DEFAULT_MULTICAST );
+		for( String token : value.split(",") )
+		{
+			token = token.trim();
+			if( token.isEmpty() )
+				continue;
+
+			try
+			{
+				InetAddress address = InetAddress.getByName( token );
+				if( address.isMulticastAddress() == false )
+					throw new ConfigurationException( "Not a multicast address: "+token );
+
+				groups.add( address );
+			}
+			catch( UnknownHostException uhe )
+			{
+				throw new ConfigurationException( "Unknown multicast group: "+token, uhe );
+			}
+		}
+
+		return groups;
+	}
+
+	public void setMulticastGroups( String groups )
+	{
+		rootConfiguration.setProperty( KEY_MULTICAST, groups );
+	}
+
+	/**
+	 * @return The network interface to join multicast groups on. If none has been configured
+	 *         this will return null and the OS default will be used.
+	 * @throws ConfigurationException If a NIC was specified but cannot be found
+	 */
+	public NetworkInterface getNetworkInterface() throws ConfigurationException
+	{
+		String value = rootConfiguration.getProperty( KEY_NIC, DEFAULT_NIC ).trim();
+		if( value.isEmpty() )
+			return null;
+
+		try
+		{
+			// try by name first (eth0), then fall back to address
+			NetworkInterface nic = NetworkInterface.getByName( value );
+			if( nic == null )
+				nic = NetworkInterface.getByInetAddress( InetAddress.getByName(value) );
+
+			if( nic == null )
+				throw new ConfigurationException( "Cannot find network interface: "+value );
+			else
+				return nic;
+		}
+		catch( SocketException | UnknownHostException e )
+		{
+			throw new ConfigurationException( "Cannot find network interface: "+value, e );
+		}
+	}
+
+	public void setNetworkInterface( String nic )
+	{
+		rootConfiguration.setProperty( KEY_NIC, nic );
+	}
+
+	///////////////////////////////////////////////
+	/// Buffer Settings  //////////////////////////
+	///////////////////////////////////////////////
+	/** @return The SO_RCVBUF size to request for each socket. The OS may cap this. */
+	public int getSocketReceiveBufferSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_RECEIVE_BUFFER, DEFAULT_RECEIVE_BUFFER );
+	}
+
+	public void setSocketReceiveBufferSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_RECEIVE_BUFFER, ""+bytes );
+	}
+
+	/** @return Size of the packet receive buffer. Must be large enough for the largest PDU. */
+	public int getPacketBufferSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_BUFFER_SIZE, DEFAULT_BUFFER_SIZE );
+	}
+
+	public void setPacketBufferSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_BUFFER_SIZE, ""+bytes );
+	}
+
+	///////////////////////////////////////////////
+	/// Pipeline Settings  ////////////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return The number of shards (processing threads) to spread PDUs across. If set to
+	 *         "auto" this is one less than the number of CPUs, leaving one for the receiver.
+	 */
+	public int getShardCount()
+	{
+		String value = rootConfiguration.getProperty( KEY_SHARDS, DEFAULT_SHARDS ).trim();
+		if( value.equalsIgnoreCase("auto") )
+			return Math.max( 1, SystemInformation.LOCAL.getCPUCount()-1 );
+
+		int shards = rootConfiguration.getIntProperty( KEY_SHARDS, DEFAULT_SHARDS );
+		if( shards < 1 )
+			throw new ConfigurationException( "Invalid value for "+KEY_SHARDS+": "+value );
+
+		return shards;
+	}
+
+	public void setShardCount( int shards )
+	{
+		rootConfiguration.setProperty( KEY_SHARDS, ""+shards );
+	}
+
+	/** @return Bytes of queue space between the receiver and each shard */
+	public int getShardBufferSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_SHARD_BUFFER, DEFAULT_SHARD_BUFFER );
+	}
+
+	public void setShardBufferSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_SHARD_BUFFER, ""+bytes );
+	}
+
+	///////////////////////////////////////////////
+	/// Entity Table Settings  ////////////////////
+	///////////////////////////////////////////////
+	/** @return The number of entities to pre-size the live entity table for */
+	public int getExpectedEntityCount()
+	{
+		return rootConfiguration.getIntProperty( KEY_ENTITY_CAPACITY, DEFAULT_ENTITY_CAPACITY );
+	}
+
+	public void setExpectedEntityCount( int count )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_CAPACITY, ""+count );
+	}
+
+	/** @return True if the live entity table should keep its state in native memory */
+	public boolean isEntityTableOffHeap()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_ENTITY_OFFHEAP, DEFAULT_ENTITY_OFFHEAP );
+	}
+
+	public void setEntityTableOffHeap( boolean offHeap )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_OFFHEAP, ""+offHeap );
+	}
+
+	/**
+	 * @return Millis without an Entity State PDU after which an entity is considered to have
+	 *         departed and is removed from the table. Zero means entities are never removed.
+	 */
+	public long getEntityTimeout()
+	{
+		return rootConfiguration.getLongProperty( KEY_ENTITY_TIMEOUT, DEFAULT_ENTITY_TIMEOUT );
+	}
+
+	public void setEntityTimeout( long millis )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_TIMEOUT, ""+millis );
+	}
+
+	/** @return True if entity positions should be indexed for region queries */
+	public boolean isSpatialIndexEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_SPATIAL_ENABLED, DEFAULT_SPATIAL_ENABLED );
+	}
+
+	public void setSpatialIndexEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_SPATIAL_ENABLED, ""+enabled );
+	}
+
+	/** @return Edge length (metres) of the spatial index grid cells */
+	public double getSpatialCellSize()
+	{
+		return rootConfiguration.getDoubleProperty( KEY_SPATIAL_CELL, DEFAULT_SPATIAL_CELL );
+	}
+
+	public void setSpatialCellSize( double metres )
+	{
+		rootConfiguration.setProperty( KEY_SPATIAL_CELL, ""+metres );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,114 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.configuration;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+public class HttpConfiguration
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// Embedded HTTP server for metrics scraping and the like
+	public static final String KEY_ENABLED         = "http.enabled";
+	public static final String DEFAULT_ENABLED     = "true";
+	public static final String KEY_ADDRESS         = "http.address";
+	public static final String DEFAULT_ADDRESS     = "0.0.0.0";
+	public static final String KEY_PORT            = "http.port";
+	public static final String DEFAULT_PORT        = "9464";
+
+	// Where the Prometheus exposition is served from
+	public static final String KEY_METRICS_PATH    = "http.metrics.path";
+	public static final String DEFAULT_METRICS_PATH = "/metrics";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Configuration rootConfiguration;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	protected HttpConfiguration( Configuration rootConfiguration )
+	{
+		this.rootConfiguration = rootConfiguration;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	///////////////////////////////////////////////
+	/// Server Settings  //////////////////////////
+	///////////////////////////////////////////////
+	public boolean isEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_ENABLED, DEFAULT_ENABLED );
+	}
+
+	public void setEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_ENABLED, ""+enabled );
+	}
+
+	public InetAddress getAddress() throws ConfigurationException
+	{
+		String value = rootConfiguration.getProperty( KEY_ADDRESS, DEFAULT_ADDRESS );
+		try
+		{
+			return InetAddress.getByName( value );
+		}
+		catch( UnknownHostException uhe )
+		{
+			throw new ConfigurationException( "Unknown HTTP bind address: "+value, uhe );
+		}
+	}
+
+	public void setAddress( String address )
+	{
+		rootConfiguration.setProperty( KEY_ADDRESS, address );
+	}
+
+	/** @return Port to listen on. 0 picks a free port. */
+	public int getPort()
+	{
+		return rootConfiguration.getIntProperty( KEY_PORT, DEFAULT_PORT );
+	}
+
+	public void setPort( int port )
+	{
+		rootConfiguration.setProperty( KEY_PORT, ""+port );
+	}
+
+	///////////////////////////////////////////////
+	/// Endpoint Settings  ////////////////////////
+	///////////////////////////////////////////////
+	public String getMetricsPath()
+	{
+		return rootConfiguration.getProperty( KEY_METRICS_PATH, DEFAULT_METRICS_PATH );
+	}
+
+	public void setMetricsPath( String path )
+	{
+		rootConfiguration.setProperty( KEY_METRICS_PATH, path );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
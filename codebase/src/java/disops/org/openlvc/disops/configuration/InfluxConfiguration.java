@@ -19,6 +19,7 @@ package org.openlvc.disops.configuration;
 
 import java.io.File;
 
+import org.openlvc.disops.server.influx.Precision;
 import org.openlvc.disops.utils.OS;
 
 public class InfluxConfiguration
@@ -34,6 +35,105 @@ public class InfluxConfiguration
 	public static final String KEY_METADATA_DIR     = "influxdb.meta.dir";
 	public static final String DEFAULT_METADATA_DIR = "${do.data}/influxdb/meta";
 	
+	// InfluxDB HTTP API Connection
+	public static final String KEY_URL              = "influxdb.url";
+	public static final String DEFAULT_URL          = "http://localhost:8086";
+	public static final String KEY_DATABASE         = "influxdb.database";
+	public static final String DEFAULT_DATABASE     = "disops";
+	public static final String KEY_USERNAME         = "influxdb.username";
+	public static final String KEY_PASSWORD         = "influxdb.password";
+
+	// Write Batching
+	public static final String KEY_BATCH_SIZE       = "influxdb.batch.size";      // points
+	public static final String DEFAULT_BATCH_SIZE   = "5000";
+	public static final String KEY_BATCH_INTERVAL   = "influxdb.batch.interval";  // millis
+	public static final String DEFAULT_BATCH_INTERVAL = "250";
+	public static final String KEY_BATCH_INFLIGHT   = "influxdb.batch.inflight";  // concurrent requests
+	public static final String DEFAULT_BATCH_INFLIGHT = "4";
+	public static final String KEY_PRECISION        = "influxdb.precision";       // ns, u, ms or s
+	public static final String DEFAULT_PRECISION    = "ns";
+	
+	// UDP Line Protocol Listener (influxd [[udp]] section)
+	public static final String KEY_UDP_ENABLED      = "influxdb.udp.enabled";
+	public static final String DEFAULT_UDP_ENABLED  = "false";
+	public static final String KEY_UDP_PORT         = "influxdb.udp.port";
+	public static final String DEFAULT_UDP_PORT     = "8089";
+	public static final String KEY_UDP_DATABASE     = "influxdb.udp.database";   // defaults to influxdb.database
+	public static final String KEY_UDP_PAYLOAD      = "influxdb.udp.payload";    // max bytes per datagram
+	public static final String DEFAULT_UDP_PAYLOAD  = "8192";
+	public static final String KEY_UDP_READ_BUFFER  = "influxdb.udp.readbuffer"; // influxd SO_RCVBUF, 0 = OS default
+	public static final String DEFAULT_UDP_READ_BUFFER = "8388608";
+	
+	// Process Management
+	public static final String KEY_STARTUP_TIMEOUT  = "influxdb.startup.timeout"; // millis
+	public static final String DEFAULT_STARTUP_TIMEOUT = "30000";
+	public static final String KEY_RESTART_LIMIT    = "influxdb.restart.limit";   // restarts in a row
+	public static final String DEFAULT_RESTART_LIMIT = "5";
+	public static final String KEY_OUTPUT_BUFFER    = "influxdb.output.buffer";   // lines of process output queued for logging
+	public static final String DEFAULT_OUTPUT_BUFFER = "10000";
+	public static final String KEY_TELEGRAF_ENABLED = "telegraf.enabled";
+	public static final String DEFAULT_TELEGRAF_ENABLED = "false";
+	public static final String KEY_TELEGRAF_CONFIG  = "telegraf.config";
+	public static final String DEFAULT_TELEGRAF_CONFIG = "${do.home}/etc/influxdb/telegraf.conf";
+	public static final String KEY_KAPACITOR_ENABLED = "kapacitor.enabled";
+	public static final String DEFAULT_KAPACITOR_ENABLED = "false";
+	public static final String KEY_KAPACITOR_CONFIG = "kapacitor.config";
+	public static final String DEFAULT_KAPACITOR_CONFIG = "${do.home}/etc/influxdb/kapacitor.conf";
+	public static final String KEY_KAPACITOR_URL    = "kapacitor.url";
+	public static final String DEFAULT_KAPACITOR_URL = "http://localhost:9092";
+
+	// Write-ahead spill log for when influxd can't keep up (or is down)
+	public static final String KEY_SPILL_ENABLED    = "influxdb.spill.enabled";
+	public static final String DEFAULT_SPILL_ENABLED = "true";
+	public static final String KEY_SPILL_DIR        = "influxdb.spill.dir";
+	public static final String DEFAULT_SPILL_DIR    = "${do.data}/influxdb/spill";
+	public static final String KEY_SPILL_SEGMENT    = "influxdb.spill.segment";   // bytes per segment file
+	public static final String DEFAULT_SPILL_SEGMENT = "67108864";
+	public static final String KEY_SPILL_MAX        = "influxdb.spill.max";       // total bytes on disk
+	public static final String DEFAULT_SPILL_MAX    = "2147483648";
+
+	// Entity State Write Suppression (dead reckoning)
+	public static final String KEY_ENTITY_DR_ENABLED      = "influxdb.entity.dr.enabled";
+	public static final String DEFAULT_ENTITY_DR_ENABLED  = "true";
+	public static final String KEY_ENTITY_DR_POSITION     = "influxdb.entity.dr.position";    // meters
+	public static final String DEFAULT_ENTITY_DR_POSITION = "1.0";
+	public static final String KEY_ENTITY_DR_ORIENTATION  = "influxdb.entity.dr.orientation"; // degrees
+	public static final String DEFAULT_ENTITY_DR_ORIENTATION = "3.0";
+	public static final String KEY_ENTITY_DR_KEYFRAME     = "influxdb.entity.dr.keyframe";    // millis
+	public static final String DEFAULT_ENTITY_DR_KEYFRAME = "5000";
+
+	// Entity State tags, formatted once and reused
+	public static final String KEY_ENTITY_TAG_CAPACITY     = "influxdb.entity.tags.capacity"; // entries per dictionary
+	public static final String DEFAULT_ENTITY_TAG_CAPACITY = "4096";
+
+	// DisOps' own metrics, kept in a database of their own
+	public static final String KEY_METRICS_ENABLED  = "influxdb.metrics.enabled";
+	public static final String DEFAULT_METRICS_ENABLED = "true";
+	public static final String KEY_METRICS_DATABASE = "influxdb.metrics.database";
+	public static final String DEFAULT_METRICS_DATABASE = "disops_metrics";
+	public static final String KEY_METRICS_INTERVAL = "influxdb.metrics.interval"; // millis
+	public static final String DEFAULT_METRICS_INTERVAL = "10000";
+
+	// Retention tiers. Durations are InfluxQL durations (7d, 12h...) or INF to keep forever.
+	public static final String KEY_TIERS_ENABLED    = "influxdb.tiers.enabled";
+	public static final String DEFAULT_TIERS_ENABLED = "true";
+	public static final String KEY_TIER_RAW         = "influxdb.tiers.raw";       // every point as written
+	public static final String DEFAULT_TIER_RAW     = "7d";
+	public static final String KEY_TIER_SECOND      = "influxdb.tiers.1s";        // rolled up to 1s
+	public static final String DEFAULT_TIER_SECOND  = "30d";
+	public static final String KEY_TIER_MINUTE      = "influxdb.tiers.1m";        // rolled up to 1m
+	public static final String DEFAULT_TIER_MINUTE  = "365d";
+	public static final String KEY_TIER_HOUR        = "influxdb.tiers.1h";        // rolled up to 1h
+	public static final String DEFAULT_TIER_HOUR    = "INF";
+
+	// Query result cache
+	public static final String KEY_QUERY_CACHE_ENABLED = "influxdb.query.cache.enabled";
+	public static final String DEFAULT_QUERY_CACHE_ENABLED = "true";
+	public static final String KEY_QUERY_CACHE_SIZE = "influxdb.query.cache.size";   // bytes (estimated)
+	public static final String DEFAULT_QUERY_CACHE_SIZE = "67108864";
+	public static final String KEY_QUERY_CACHE_TTL  = "influxdb.query.cache.ttl";    // millis, for ranges in the past
+	public static final String DEFAULT_QUERY_CACHE_TTL = "300000";
+	
 	
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -78,6 +178,514 @@ public class InfluxConfiguration
 	{
 		rootConfiguration.setProperty( KEY_METADATA_DIR, path );
 	}
+
+	///////////////////////////////////////////////
+	/// InfluxDB Connection Settings  /////////////
+	///////////////////////////////////////////////
+	/** @return Base URL of the InfluxDB HTTP API, without a trailing slash */
+	public String getUrl()
+	{
+		String url = rootConfiguration.getProperty( KEY_URL, DEFAULT_URL ).trim();
+		return url.endsWith("/") ? url.substring(0,url.length()-1) : url;
+	}
+
+	public void setUrl( String url )
+	{
+		rootConfiguration.setProperty( KEY_URL, url );
+	}
+
+	/** @return The database that DisOps writes its measurements into */
+	public String getDatabase()
+	{
+		return rootConfiguration.getProperty( KEY_DATABASE, DEFAULT_DATABASE );
+	}
+
+	public void setDatabase( String database )
+	{
+		rootConfiguration.setProperty( KEY_DATABASE, database );
+	}
+
+	/** @return The username to authenticate with, or null if auth is not in use */
+	public String getUsername()
+	{
+		return rootConfiguration.getProperty( KEY_USERNAME, null );
+	}
+
+	public String getPassword()
+	{
+		return rootConfiguration.getProperty( KEY_PASSWORD, null );
+	}
+
+	public void setCredentials( String username, String password )
+	{
+		rootConfiguration.setProperty( KEY_USERNAME, username );
+		rootConfiguration.setProperty( KEY_PASSWORD, password );
+	}
+
+	///////////////////////////////////////////////
+	/// Write Batching Settings  //////////////////
+	///////////////////////////////////////////////
+	/** @return The number of points to accumulate before a batch is sent */
+	public int getBatchSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE );
+	}
+
+	public void setBatchSize( int points )
+	{
+		rootConfiguration.setProperty( KEY_BATCH_SIZE, ""+points );
+	}
+
+	/** @return The longest time (millis) a point may wait in a partial batch before it's sent */
+	public long getBatchInterval()
+	{
+		return rootConfiguration.getLongProperty( KEY_BATCH_INTERVAL, DEFAULT_BATCH_INTERVAL );
+	}
+
+	public void setBatchInterval( long millis )
+	{
+		rootConfiguration.setProperty( KEY_BATCH_INTERVAL, ""+millis );
+	}
+
+	/** @return The maximum number of batch write requests that may be outstanding at once */
+	public int getBatchInFlight()
+	{
+		return rootConfiguration.getIntProperty( KEY_BATCH_INFLIGHT, DEFAULT_BATCH_INFLIGHT );
+	}
+
+	public void setBatchInFlight( int requests )
+	{
+		rootConfiguration.setProperty( KEY_BATCH_INFLIGHT, ""+requests );
+	}
+
+	/**
+	 * @return The unit timestamps in the exercise data are written in (HTTP and UDP alike).
+	 *         Spilled batches are replayed at whatever this is when they are replayed, so
+	 *         don't change it while there is a backlog.
+	 * @throws ConfigurationException If the value isn't a precision InfluxDB knows
+	 */
+	public Precision getPrecision()
+	{
+		String value = rootConfiguration.getProperty( KEY_PRECISION, DEFAULT_PRECISION );
+		try
+		{
+			return Precision.fromString( value );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			throw new ConfigurationException( "Invalid value for "+KEY_PRECISION+": "+value, iae );
+		}
+	}
+
+	public void setPrecision( Precision precision )
+	{
+		rootConfiguration.setProperty( KEY_PRECISION, precision.getHttpValue() );
+	}
+
+	///////////////////////////////////////////////
+	/// UDP Listener Settings  ////////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return True if the influxd UDP listener should be enabled, and high-rate, loss-tolerant
+	 *         measurements sent to it rather than through the HTTP writer
+	 */
+	public boolean isUdpEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_UDP_ENABLED, DEFAULT_UDP_ENABLED );
+	}
+
+	public void setUdpEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_UDP_ENABLED, ""+enabled );
+	}
+
+	public int getUdpPort()
+	{
+		return rootConfiguration.getIntProperty( KEY_UDP_PORT, DEFAULT_UDP_PORT );
+	}
+
+	public void setUdpPort( int port )
+	{
+		rootConfiguration.setProperty( KEY_UDP_PORT, ""+port );
+	}
+
+	/** @return The database influxd writes UDP points into. Same as the main one by default. */
+	public String getUdpDatabase()
+	{
+		return rootConfiguration.getProperty( KEY_UDP_DATABASE, getDatabase() );
+	}
+
+	public void setUdpDatabase( String database )
+	{
+		rootConfiguration.setProperty( KEY_UDP_DATABASE, database );
+	}
+
+	/** @return The most line protocol we will pack into a single datagram (bytes) */
+	public int getUdpPayloadSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_UDP_PAYLOAD, DEFAULT_UDP_PAYLOAD );
+	}
+
+	public void setUdpPayloadSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_UDP_PAYLOAD, ""+bytes );
+	}
+
+	/** @return The socket receive buffer size we ask influxd to use for its UDP listener */
+	public int getUdpReadBuffer()
+	{
+		return rootConfiguration.getIntProperty( KEY_UDP_READ_BUFFER, DEFAULT_UDP_READ_BUFFER );
+	}
+
+	public void setUdpReadBuffer( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_UDP_READ_BUFFER, ""+bytes );
+	}
+
+	///////////////////////////////////////////////
+	/// Process Management Settings  //////////////
+	///////////////////////////////////////////////
+	/** @return Millis each managed process has to pass its readiness check */
+	public long getStartupTimeout()
+	{
+		return rootConfiguration.getLongProperty( KEY_STARTUP_TIMEOUT, DEFAULT_STARTUP_TIMEOUT );
+	}
+
+	public void setStartupTimeout( long millis )
+	{
+		rootConfiguration.setProperty( KEY_STARTUP_TIMEOUT, ""+millis );
+	}
+
+	/** @return Times a crashed process is restarted in a row before we give up on it */
+	public int getRestartLimit()
+	{
+		return rootConfiguration.getIntProperty( KEY_RESTART_LIMIT, DEFAULT_RESTART_LIMIT );
+	}
+
+	public void setRestartLimit( int restarts )
+	{
+		rootConfiguration.setProperty( KEY_RESTART_LIMIT, ""+restarts );
+	}
+
+	/** @return Lines of managed process output that can be waiting to be logged before we drop */
+	public int getOutputBufferSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_OUTPUT_BUFFER, DEFAULT_OUTPUT_BUFFER );
+	}
+
+	public void setOutputBufferSize( int lines )
+	{
+		rootConfiguration.setProperty( KEY_OUTPUT_BUFFER, ""+lines );
+	}
+
+	public boolean isTelegrafEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_TELEGRAF_ENABLED, DEFAULT_TELEGRAF_ENABLED );
+	}
+
+	public void setTelegrafEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_TELEGRAF_ENABLED, ""+enabled );
+	}
+
+	public File getTelegrafConfigFile()
+	{
+		return new File( rootConfiguration.getProperty(KEY_TELEGRAF_CONFIG,DEFAULT_TELEGRAF_CONFIG) );
+	}
+
+	public void setTelegrafConfigFile( String path )
+	{
+		rootConfiguration.setProperty( KEY_TELEGRAF_CONFIG, path );
+	}
+
+	public boolean isKapacitorEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_KAPACITOR_ENABLED, DEFAULT_KAPACITOR_ENABLED );
+	}
+
+	public void setKapacitorEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_KAPACITOR_ENABLED, ""+enabled );
+	}
+
+	public File getKapacitorConfigFile()
+	{
+		return new File( rootConfiguration.getProperty(KEY_KAPACITOR_CONFIG,DEFAULT_KAPACITOR_CONFIG) );
+	}
+
+	public void setKapacitorConfigFile( String path )
+	{
+		rootConfiguration.setProperty( KEY_KAPACITOR_CONFIG, path );
+	}
+
+	/** @return Base URL of the Kapacitor HTTP API (no trailing slash) */
+	public String getKapacitorUrl()
+	{
+		String url = rootConfiguration.getProperty( KEY_KAPACITOR_URL, DEFAULT_KAPACITOR_URL ).trim();
+		return url.endsWith("/") ? url.substring(0,url.length()-1) : url;
+	}
+
+	public void setKapacitorUrl( String url )
+	{
+		rootConfiguration.setProperty( KEY_KAPACITOR_URL, url );
+	}
+
+	///////////////////////////////////////////////
+	/// Spill Log Settings  ///////////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return True if batches that can't be written to influxd right away should be spilled
+	 *         to disk and replayed later. If false, the writer blocks when influxd is slow and
+	 *         drops batches when it is down.
+	 */
+	public boolean isSpillEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_SPILL_ENABLED, DEFAULT_SPILL_ENABLED );
+	}
+
+	public void setSpillEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_SPILL_ENABLED, ""+enabled );
+	}
+
+	public File getSpillDirectory()
+	{
+		return new File( rootConfiguration.getProperty(KEY_SPILL_DIR,DEFAULT_SPILL_DIR) );
+	}
+
+	public void setSpillDirectory( String path )
+	{
+		rootConfiguration.setProperty( KEY_SPILL_DIR, path );
+	}
+
+	/** @return Size of each memory-mapped spill segment file */
+	public int getSpillSegmentSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_SPILL_SEGMENT, DEFAULT_SPILL_SEGMENT );
+	}
+
+	public void setSpillSegmentSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_SPILL_SEGMENT, ""+bytes );
+	}
+
+	/** @return Most bytes the spill log may hold on disk. Batches beyond this are dropped. */
+	public long getSpillMaxSize()
+	{
+		return rootConfiguration.getLongProperty( KEY_SPILL_MAX, DEFAULT_SPILL_MAX );
+	}
+
+	public void setSpillMaxSize( long bytes )
+	{
+		rootConfiguration.setProperty( KEY_SPILL_MAX, ""+bytes );
+	}
+
+	///////////////////////////////////////////////
+	/// Entity State Suppression Settings  ////////
+	///////////////////////////////////////////////
+	/**
+	 * @return True if Entity State points should only be written when an entity deviates from
+	 *         its dead reckoned position/orientation (plus periodic keyframes). False to write
+	 *         every Entity State PDU we receive.
+	 */
+	public boolean isEntityDeadReckoningEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_ENTITY_DR_ENABLED, DEFAULT_ENTITY_DR_ENABLED );
+	}
+
+	public void setEntityDeadReckoningEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_DR_ENABLED, ""+enabled );
+	}
+
+	/** @return Position error (meters) beyond which we write a new Entity State point */
+	public double getEntityPositionThreshold()
+	{
+		return rootConfiguration.getDoubleProperty( KEY_ENTITY_DR_POSITION, DEFAULT_ENTITY_DR_POSITION );
+	}
+
+	public void setEntityPositionThreshold( double meters )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_DR_POSITION, ""+meters );
+	}
+
+	/** @return Orientation error (radians) beyond which we write a new Entity State point */
+	public double getEntityOrientationThreshold()
+	{
+		double degrees = rootConfiguration.getDoubleProperty( KEY_ENTITY_DR_ORIENTATION,
+		                                                      DEFAULT_ENTITY_DR_ORIENTATION );
+		return Math.toRadians( degrees );
+	}
+
+	public void setEntityOrientationThreshold( double degrees )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_DR_ORIENTATION, ""+degrees );
+	}
+
+	/** @return Max millis between points for an entity, regardless of how well it DRs */
+	public long getEntityKeyframeInterval()
+	{
+		return rootConfiguration.getLongProperty( KEY_ENTITY_DR_KEYFRAME, DEFAULT_ENTITY_DR_KEYFRAME );
+	}
+
+	public void setEntityKeyframeInterval( long millis )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_DR_KEYFRAME, ""+millis );
+	}
+
+	///////////////////////////////////////////////
+	/// Entity State Tag Settings  ////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return Most distinct values of each kind of tag (markings, entity types, and so on)
+	 *         each Entity State writer keeps formatted, before the least used are dropped
+	 */
+	public int getEntityTagCapacity()
+	{
+		return rootConfiguration.getIntProperty( KEY_ENTITY_TAG_CAPACITY, DEFAULT_ENTITY_TAG_CAPACITY );
+	}
+
+	public void setEntityTagCapacity( int entries )
+	{
+		rootConfiguration.setProperty( KEY_ENTITY_TAG_CAPACITY, ""+entries );
+	}
+
+	///////////////////////////////////////////////
+	/// Self Metrics Settings  ////////////////////
+	///////////////////////////////////////////////
+	/** @return True if DisOps should periodically write metrics about itself to InfluxDB */
+	public boolean isMetricsEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_METRICS_ENABLED, DEFAULT_METRICS_ENABLED );
+	}
+
+	public void setMetricsEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_METRICS_ENABLED, ""+enabled );
+	}
+
+	/** @return The database DisOps' own metrics are written to */
+	public String getMetricsDatabase()
+	{
+		return rootConfiguration.getProperty( KEY_METRICS_DATABASE, DEFAULT_METRICS_DATABASE );
+	}
+
+	public void setMetricsDatabase( String database )
+	{
+		rootConfiguration.setProperty( KEY_METRICS_DATABASE, database );
+	}
+
+	/** @return Millis between metrics reports */
+	public long getMetricsInterval()
+	{
+		return rootConfiguration.getLongProperty( KEY_METRICS_INTERVAL, DEFAULT_METRICS_INTERVAL );
+	}
+
+	public void setMetricsInterval( long millis )
+	{
+		rootConfiguration.setProperty( KEY_METRICS_INTERVAL, ""+millis );
+	}
+
+	///////////////////////////////////////////////
+	/// Retention Tier Settings  //////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return True if DisOps should create the raw/1s/1m/1h retention policies and the
+	 *         continuous queries that fill them when it starts
+	 */
+	public boolean isTiersEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_TIERS_ENABLED, DEFAULT_TIERS_ENABLED );
+	}
+
+	public void setTiersEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_TIERS_ENABLED, ""+enabled );
+	}
+
+	/** @return How long points are kept at full resolution (InfluxQL duration or INF) */
+	public String getRawRetention()
+	{
+		return rootConfiguration.getProperty( KEY_TIER_RAW, DEFAULT_TIER_RAW ).trim();
+	}
+
+	public void setRawRetention( String duration )
+	{
+		rootConfiguration.setProperty( KEY_TIER_RAW, duration );
+	}
+
+	/** @return How long the 1 second rollups are kept (InfluxQL duration or INF) */
+	public String getSecondRetention()
+	{
+		return rootConfiguration.getProperty( KEY_TIER_SECOND, DEFAULT_TIER_SECOND ).trim();
+	}
+
+	public void setSecondRetention( String duration )
+	{
+		rootConfiguration.setProperty( KEY_TIER_SECOND, duration );
+	}
+
+	/** @return How long the 1 minute rollups are kept (InfluxQL duration or INF) */
+	public String getMinuteRetention()
+	{
+		return rootConfiguration.getProperty( KEY_TIER_MINUTE, DEFAULT_TIER_MINUTE ).trim();
+	}
+
+	public void setMinuteRetention( String duration )
+	{
+		rootConfiguration.setProperty( KEY_TIER_MINUTE, duration );
+	}
+
+	/** @return How long the 1 hour rollups are kept (InfluxQL duration or INF) */
+	public String getHourRetention()
+	{
+		return rootConfiguration.getProperty( KEY_TIER_HOUR, DEFAULT_TIER_HOUR ).trim();
+	}
+
+	public void setHourRetention( String duration )
+	{
+		rootConfiguration.setProperty( KEY_TIER_HOUR, duration );
+	}
+
+	///////////////////////////////////////////////
+	/// Query Cache Settings  /////////////////////
+	///////////////////////////////////////////////
+	/** @return True if results of tiered queries should be cached and shared */
+	public boolean isQueryCacheEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_QUERY_CACHE_ENABLED, DEFAULT_QUERY_CACHE_ENABLED );
+	}
+
+	public void setQueryCacheEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_QUERY_CACHE_ENABLED, ""+enabled );
+	}
+
+	/** @return Roughly how many bytes of results to keep before evicting the least recently used */
+	public long getQueryCacheSize()
+	{
+		return rootConfiguration.getLongProperty( KEY_QUERY_CACHE_SIZE, DEFAULT_QUERY_CACHE_SIZE );
+	}
+
+	public void setQueryCacheSize( long bytes )
+	{
+		rootConfiguration.setProperty( KEY_QUERY_CACHE_SIZE, ""+bytes );
+	}
+
+	/**
+	 * @return Millis to keep the result of a query over a range that is over and done with.
+	 *         Results for a range that is still filling in only last until the end of the
+	 *         current time bucket.
+	 */
+	public long getQueryCacheTtl()
+	{
+		return rootConfiguration.getLongProperty( KEY_QUERY_CACHE_TTL, DEFAULT_QUERY_CACHE_TTL );
+	}
+
+	public void setQueryCacheTtl( long millis )
+	{
+		rootConfiguration.setProperty( KEY_QUERY_CACHE_TTL, ""+millis );
+	}
 	
 	////////////////////////////////////////////////////////////////////////////////////////////
 	/// Executable Location Methods   //////////////////////////////////////////////////////////
@@ -123,13 +731,33 @@ public class InfluxConfiguration
 	 */
 	public File getBinaryInfluxd() throws ConfigurationException
 	{
-		switch( OS.getSystemOS() )
-		{
-			case Windows:
-				return new File( getBinaryDirectory(), "influxd.exe" );
-			default:
-				throw new ConfigurationException( "Unsupported Operating System: "+OS.getSystemOS() );
-		}
+		return getBinary( "influxd" );
+	}
+
+	/**
+	 * @return the path to the telegraf executable, adjusted for the current OS.
+	 * @throws ConfigurationException If the current OS is not supported
+	 */
+	public File getBinaryTelegraf() throws ConfigurationException
+	{
+		return getBinary( "telegraf" );
+	}
+
+	/**
+	 * @return the path to the kapacitord executable, adjusted for the current OS.
+	 * @throws ConfigurationException If the current OS is not supported
+	 */
+	public File getBinaryKapacitor() throws ConfigurationException
+	{
+		return getBinary( "kapacitord" );
+	}
+
+	private File getBinary( String name ) throws ConfigurationException
+	{
+		if( OS.getSystemOS() == OS.Windows )
+			return new File( getBinaryDirectory(), name+".exe" );
+		else
+			return new File( getBinaryDirectory(), name );
 	}
 
 	//----------------------------------------------------------
@@ -0,0 +1,187 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.configuration;
+
+import java.io.File;
+
+public class RecorderConfiguration
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// Raw PDU recording
+	public static final String KEY_ENABLED          = "recorder.enabled";
+	public static final String DEFAULT_ENABLED      = "true";
+	public static final String KEY_DIRECTORY        = "recorder.dir";
+	public static final String DEFAULT_DIRECTORY    = "${do.data}/recordings";
+	public static final String KEY_SEGMENT_SIZE     = "recorder.segment";         // bytes per segment file
+	public static final String DEFAULT_SEGMENT_SIZE = "268435456";                // 256MB
+	public static final String KEY_BUFFER_SIZE      = "recorder.buffer";          // bytes queued for the writer
+	public static final String DEFAULT_BUFFER_SIZE  = "33554432";                 // 32MB
+
+	// Sparse time index
+	public static final String KEY_INDEX_INTERVAL   = "recorder.index.interval";  // millis between index entries
+	public static final String DEFAULT_INDEX_INTERVAL = "1000";
+
+	// Background compression of finished segments
+	public static final String KEY_COMPRESSION_ENABLED  = "recorder.compression.enabled";
+	public static final String DEFAULT_COMPRESSION_ENABLED = "true";
+	public static final String KEY_COMPRESSION_THREADS  = "recorder.compression.threads";
+	public static final String DEFAULT_COMPRESSION_THREADS = "2";
+	public static final String KEY_COMPRESSION_LEVEL    = "recorder.compression.level";  // deflate, 1-9
+	public static final String DEFAULT_COMPRESSION_LEVEL = "1";
+	public static final String KEY_COMPRESSION_BLOCK    = "recorder.compression.block";  // bytes per block
+	public static final String DEFAULT_COMPRESSION_BLOCK = "65536";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Configuration rootConfiguration;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	protected RecorderConfiguration( Configuration rootConfiguration )
+	{
+		this.rootConfiguration = rootConfiguration;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	///////////////////////////////////////////////
+	/// Recording Settings  ///////////////////////
+	///////////////////////////////////////////////
+	public boolean isEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_ENABLED, DEFAULT_ENABLED );
+	}
+
+	public void setEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_ENABLED, ""+enabled );
+	}
+
+	/** @return Directory each run's recording is created under */
+	public File getDirectory()
+	{
+		return new File( rootConfiguration.getProperty(KEY_DIRECTORY,DEFAULT_DIRECTORY) );
+	}
+
+	public void setDirectory( String path )
+	{
+		rootConfiguration.setProperty( KEY_DIRECTORY, path );
+	}
+
+	/** @return Size of each memory-mapped segment file */
+	public int getSegmentSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE );
+	}
+
+	public void setSegmentSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_SEGMENT_SIZE, ""+bytes );
+	}
+
+	/**
+	 * @return Bytes of queue between the DIS receiver and the recorder. If the recorder falls
+	 *         this far behind, PDUs are left out of the recording rather than hold up ingest.
+	 */
+	public int getBufferSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_BUFFER_SIZE, DEFAULT_BUFFER_SIZE );
+	}
+
+	public void setBufferSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_BUFFER_SIZE, ""+bytes );
+	}
+
+	///////////////////////////////////////////////
+	/// Index Settings  ///////////////////////////
+	///////////////////////////////////////////////
+	/**
+	 * @return Millis of recording between entries in the time index. A seek reads through
+	 *         at most this much recording after finding its place in the index.
+	 */
+	public long getIndexInterval()
+	{
+		return rootConfiguration.getLongProperty( KEY_INDEX_INTERVAL, DEFAULT_INDEX_INTERVAL );
+	}
+
+	public void setIndexInterval( long millis )
+	{
+		rootConfiguration.setProperty( KEY_INDEX_INTERVAL, ""+millis );
+	}
+
+	///////////////////////////////////////////////
+	/// Compression Settings  /////////////////////
+	///////////////////////////////////////////////
+	/** @return True if segments are compressed once they are full */
+	public boolean isCompressionEnabled()
+	{
+		return rootConfiguration.getBooleanProperty( KEY_COMPRESSION_ENABLED, DEFAULT_COMPRESSION_ENABLED );
+	}
+
+	public void setCompressionEnabled( boolean enabled )
+	{
+		rootConfiguration.setProperty( KEY_COMPRESSION_ENABLED, ""+enabled );
+	}
+
+	/** @return Number of segments compressed at once, each on a thread of its own */
+	public int getCompressionThreads()
+	{
+		return rootConfiguration.getIntProperty( KEY_COMPRESSION_THREADS, DEFAULT_COMPRESSION_THREADS );
+	}
+
+	public void setCompressionThreads( int threads )
+	{
+		rootConfiguration.setProperty( KEY_COMPRESSION_THREADS, ""+threads );
+	}
+
+	/** @return Deflate level, from 1 (fastest) to 9 (smallest) */
+	public int getCompressionLevel()
+	{
+		return rootConfiguration.getIntProperty( KEY_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL );
+	}
+
+	public void setCompressionLevel( int level )
+	{
+		rootConfiguration.setProperty( KEY_COMPRESSION_LEVEL, ""+level );
+	}
+
+	/**
+	 * @return Bytes of records compressed together. Reading anything in a block means
+	 *         inflating all of it, so smaller blocks make random reads cheaper and larger
+	 *         ones compress better.
+	 */
+	public int getCompressionBlockSize()
+	{
+		return rootConfiguration.getIntProperty( KEY_COMPRESSION_BLOCK, DEFAULT_COMPRESSION_BLOCK );
+	}
+
+	public void setCompressionBlockSize( int bytes )
+	{
+		rootConfiguration.setProperty( KEY_COMPRESSION_BLOCK, ""+bytes );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,644 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.generator;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.replay.PacketSink;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.dis.pdu.DetonationPdu;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.FirePdu;
+import org.openlvc.disops.server.dis.pdu.PduType;
+import org.openlvc.disops.server.dis.pdu.SignalPdu;
+
+/**
+ * Generates synthetic DIS traffic for scale testing: a population of entities each driving
+ * round its own circle, sending Entity State at a fixed rate, plus Fire, Detonation and
+ * Signal PDUs at their own rates.
+ * <p/>
+ * The work is split across a number of worker threads, each owning a fixed set of entities
+ * and its own {@link PacketSink}. Every PDU a worker sends is encoded once up front into a
+ * direct buffer and only the fields that change (timestamp, location, velocity,
+ * orientation, event number) are patched in place before it goes out, so the send loop
+ * does no allocation and next to no encoding.
+ * <p/>
+ * Rates are paced against the clock rather than per tick: each worker works out how many
+ * PDUs of each kind it should have sent by now and sends the difference, which spreads the
+ * load evenly across each interval instead of sending every entity in one burst. An Entity
+ * State rate of 0 sends as fast as the sink will take them.
+ * <p/>
+ * When the sinks feed a {@link PduPipeline} directly, each shard of the pipeline must only
+ * ever be fed by one thread. Call {@link #setShardCount(int)} and entities are assigned to
+ * workers by the shard they hash to, so that each worker feeds a separate set of shards.
+ */
+public class TrafficGenerator
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int ES_LENGTH = EntityStatePdu.MINIMUM_LENGTH;
+	private static final int SIGNAL_DATA = 64;                 // bytes of payload per signal
+	private static final int SIGNAL_LENGTH = SignalPdu.MINIMUM_LENGTH + SIGNAL_DATA;
+	private static final int FLAT_OUT_BATCH = 64;
+	private static final long IDLE_PARK = TimeUnit.MICROSECONDS.toNanos( 100 );
+
+	// Where the entities are (roughly Fort Irwin), and the size of the area
+	private static final double CENTER_LATITUDE = 35.26;
+	private static final double CENTER_LONGITUDE = -116.68;
+	private static final double AREA = 40000.0;                // metres across
+
+	private static final double WGS84_A = 6378137.0;
+	private static final double WGS84_E2 = 6.69437999014e-3;
+
+	// 1.1.225.1.1.3 - US M1A2 tank
+	private static final long ENTITY_TYPE = 0x0101E10101030000L;
+	private static final long MUNITION_TYPE = 0x0201E10201000000L;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Logger logger;
+
+	// Settings
+	private int entities;
+	private double entityRate;    // Hz per entity, 0 = flat out
+	private double fireRate;      // PDUs/s across all workers
+	private double detonationRate;
+	private double signalRate;
+	private int exercise;
+	private int sites;
+	private int threads;
+	private int shardCount;       // 0 = not feeding a pipeline
+	private long seed;
+
+	// Entity paths, indexed by entity. Read-only once started.
+	private double[] centerX, centerY, centerZ;
+	private double[] radius;
+	private double[] omega;       // radians/s round the circle
+	private double[] phase;
+	private double eastX, eastY, eastZ;
+	private double northX, northY, northZ;
+
+	private Worker[] workers;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public TrafficGenerator( Logger logger )
+	{
+		this.logger = logger;
+		this.entities = 1000;
+		this.entityRate = 5.0;
+		this.fireRate = 0.0;
+		this.detonationRate = 0.0;
+		this.signalRate = 0.0;
+		this.exercise = 1;
+		this.sites = 16;
+		this.threads = 1;
+		this.shardCount = 0;
+		this.seed = 42;
+		this.workers = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Lay out the entities, encode every worker's PDUs and start the workers.
+	 *
+	 * @param sinks Creates the sink for each worker, given the worker index. Called once per
+	 *              worker, before the worker starts.
+	 */
+	public void startup( IntFunction<PacketSink> sinks ) throws DisOpsException
+	{
+		if( entities < 1 || sites < 1 )
+			throw new DisOpsException( "Need at least one entity and one site" );
+		if( entities > sites*65534 )
+			throw new DisOpsException( "Too many entities for "+sites+" sites (max "+(sites*65534)+")" );
+
+		// each shard must only be fed by one worker, so there's no point having more
+		int workerCount = Math.max( 1, threads );
+		if( shardCount > 0 && workerCount > shardCount )
+		{
+			logger.warn( "Limiting generator threads to the %d pipeline shards", shardCount );
+			workerCount = shardCount;
+		}
+
+		layoutEntities();
+
+		// hand the entities out
+		int[] counts = new int[workerCount];
+		for( int i = 0; i < entities; i++ )
+			++counts[workerOf(i,workerCount)];
+
+		this.workers = new Worker[workerCount];
+		for( int w = 0; w < workerCount; w++ )
+		{
+			int[] owned = new int[counts[w]];
+			int next = 0;
+			for( int i = 0; i < entities; i++ )
+			{
+				if( workerOf(i,workerCount) == w )
+					owned[next++] = i;
+			}
+
+			double share = (double)owned.length / entities;
+			workers[w] = new Worker( w, owned, sinks.apply(w), share );
+		}
+
+		for( Worker worker : workers )
+			worker.start();
+
+		logger.info( "Traffic generator started: entities=%d @ %sHz, fire=%.0f/s, detonation=%.0f/s, "+
+		             "signal=%.0f/s, threads=%d", entities, entityRate > 0 ? ""+entityRate : "max",
+		             fireRate, detonationRate, signalRate, workerCount );
+	}
+
+	public void shutdown()
+	{
+		if( workers == null )
+			return;
+
+		for( Worker worker : workers )
+			worker.running = false;
+
+		for( Worker worker : workers )
+		{
+			try
+			{
+				worker.join( 2000 );
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** @return The worker an entity belongs to */
+	private int workerOf( int entity, int workerCount )
+	{
+		if( shardCount > 0 )
+			return PduPipeline.shardOf( exercise, siteOf(entity), shardCount ) % workerCount;
+		else
+			return entity % workerCount;
+	}
+
+	private int siteOf( int entity )
+	{
+		return 1 + (entity % sites);
+	}
+
+	private int entityNumberOf( int entity )
+	{
+		return 1 + (entity / sites);
+	}
+
+	/**
+	 * Give each entity a circle to drive round: a centre somewhere in the area, a radius
+	 * and a speed, all on the local tangent plane at the middle of the area.
+	 */
+	private void layoutEntities()
+	{
+		Random random = new Random( seed );
+		this.centerX = new double[entities];
+		this.centerY = new double[entities];
+		this.centerZ = new double[entities];
+		this.radius = new double[entities];
+		this.omega = new double[entities];
+		this.phase = new double[entities];
+
+		double latitude = Math.toRadians( CENTER_LATITUDE );
+		double longitude = Math.toRadians( CENTER_LONGITUDE );
+		double sinLat = Math.sin( latitude ), cosLat = Math.cos( latitude );
+		double sinLon = Math.sin( longitude ), cosLon = Math.cos( longitude );
+		this.eastX = -sinLon;
+		this.eastY = cosLon;
+		this.eastZ = 0.0;
+		this.northX = -sinLat*cosLon;
+		this.northY = -sinLat*sinLon;
+		this.northZ = cosLat;
+
+		double n = WGS84_A / Math.sqrt( 1.0 - WGS84_E2*sinLat*sinLat );
+		double originX = n * cosLat * cosLon;
+		double originY = n * cosLat * sinLon;
+		double originZ = n * (1.0-WGS84_E2) * sinLat;
+
+		for( int i = 0; i < entities; i++ )
+		{
+			double east = (random.nextDouble()-0.5) * AREA;
+			double north = (random.nextDouble()-0.5) * AREA;
+			centerX[i] = originX + east*eastX + north*northX;
+			centerY[i] = originY + east*eastY + north*northY;
+			centerZ[i] = originZ + east*eastZ + north*northZ;
+			radius[i] = 100.0 + random.nextDouble()*1900.0;
+			double speed = 5.0 + random.nextDouble()*25.0;            // m/s
+			omega[i] = (random.nextBoolean() ? speed : -speed) / radius[i];
+			phase[i] = random.nextDouble() * 2 * Math.PI;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getEntityCount()
+	{
+		return this.entities;
+	}
+
+	public void setEntityCount( int entities )
+	{
+		this.entities = entities;
+	}
+
+	/** @return Entity State PDUs per second sent for each entity, 0 for flat out */
+	public double getEntityRate()
+	{
+		return this.entityRate;
+	}
+
+	public void setEntityRate( double hertz )
+	{
+		this.entityRate = hertz;
+	}
+
+	/** Fire PDUs per second, across all entities */
+	public void setFireRate( double perSecond )
+	{
+		this.fireRate = perSecond;
+	}
+
+	/** Detonation PDUs per second, across all entities */
+	public void setDetonationRate( double perSecond )
+	{
+		this.detonationRate = perSecond;
+	}
+
+	/** Signal PDUs per second, across all entities */
+	public void setSignalRate( double perSecond )
+	{
+		this.signalRate = perSecond;
+	}
+
+	public void setExerciseId( int exercise )
+	{
+		this.exercise = exercise;
+	}
+
+	/** Entities are spread across this many sites (which is what shards are picked by) */
+	public void setSiteCount( int sites )
+	{
+		this.sites = sites;
+	}
+
+	public void setThreadCount( int threads )
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * Set when the sinks feed a {@link PduPipeline} with this many shards, so workers can be
+	 * kept to separate shards. Leave at 0 when sending to the network.
+	 */
+	public void setShardCount( int shards )
+	{
+		this.shardCount = shards;
+	}
+
+	public void setSeed( long seed )
+	{
+		this.seed = seed;
+	}
+
+	/** @return Counts of PDUs sent so far, across all workers: [entity state, fire, detonation, signal] */
+	public long[] getSent()
+	{
+		long[] sent = new long[4];
+		if( workers == null )
+			return sent;
+
+		for( Worker worker : workers )
+		{
+			sent[0] += worker.entityStates;
+			sent[1] += worker.fires;
+			sent[2] += worker.detonations;
+			sent[3] += worker.signals;
+		}
+
+		return sent;
+	}
+
+	/** @return Total PDUs sent so far */
+	public long getTotalSent()
+	{
+		long total = 0;
+		for( long count : getSent() )
+			total += count;
+		return total;
+	}
+
+	/** @return Bytes of PDU sent so far */
+	public long getBytesSent()
+	{
+		long[] sent = getSent();
+		return sent[0]*ES_LENGTH + sent[1]*FirePdu.MINIMUM_LENGTH +
+		       sent[2]*DetonationPdu.MINIMUM_LENGTH + sent[3]*SIGNAL_LENGTH;
+	}
+
+	/** @return Sends that failed (the sink threw), across all workers */
+	public long getSendErrors()
+	{
+		long errors = 0;
+		if( workers != null )
+		{
+			for( Worker worker : workers )
+				errors += worker.errors;
+		}
+
+		return errors;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** DIS absolute timestamp: units of 3600s/2^31 past the hour, low bit set */
+	private static int timestamp( long millis )
+	{
+		long pastHour = millis % 3600000L;
+		return (int)(((pastHour << 31) / 3600000L) << 1) | 1;
+	}
+
+	private static void header( ByteBuffer buffer, int offset, int exercise, PduType type,
+	                            int family, int length )
+	{
+		buffer.put( offset, (byte)7 );                     // DIS 7
+		buffer.put( offset+1, (byte)exercise );
+		buffer.put( offset+2, (byte)type.value() );
+		buffer.put( offset+3, (byte)family );
+		buffer.putShort( offset+8, (short)length );
+	}
+
+	private static void entityId( ByteBuffer buffer, int offset, int site, int application, int entity )
+	{
+		buffer.putShort( offset, (short)site );
+		buffer.putShort( offset+2, (short)application );
+		buffer.putShort( offset+4, (short)entity );
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Worker Thread   ///////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private class Worker extends Thread
+	{
+		private final int[] owned;
+		private final PacketSink sink;
+		private final double share;         // of the fire/detonation/signal rates
+
+		// Pre-encoded PDUs. Entity State has one per owned entity, back to back.
+		private final ByteBuffer states;
+		private final ByteBuffer statesView;
+		private final ByteBuffer fire;
+		private final ByteBuffer detonation;
+		private final ByteBuffer signal;
+		private int eventNumber;
+
+		volatile boolean running;
+		volatile long entityStates;
+		volatile long fires;
+		volatile long detonations;
+		volatile long signals;
+		volatile long errors;
+
+		Worker( int index, int[] owned, PacketSink sink, double share )
+		{
+			super( "generator-"+index );
+			setDaemon( true );
+			this.owned = owned;
+			this.sink = sink;
+			this.share = share;
+			this.eventNumber = 0;
+			this.running = true;
+
+			this.states = ByteBuffer.allocateDirect( Math.max(1,owned.length) * ES_LENGTH );
+			for( int i = 0; i < owned.length; i++ )
+				encodeEntityState( i*ES_LENGTH, owned[i] );
+			this.statesView = states.duplicate();
+
+			this.fire = ByteBuffer.allocateDirect( FirePdu.MINIMUM_LENGTH );
+			header( fire, 0, exercise, PduType.Fire, 2, FirePdu.MINIMUM_LENGTH );
+			entityId( fire, 24, 1, 1, 0 );                 // munition
+			fire.putLong( 64, MUNITION_TYPE );
+			fire.putShort( 72, (short)1000 );              // warhead: HE
+			fire.putShort( 74, (short)1000 );              // fuse: contact
+			fire.putShort( 76, (short)1 );                 // quantity
+			fire.putFloat( 92, 2000f );                    // range
+
+			this.detonation = ByteBuffer.allocateDirect( DetonationPdu.MINIMUM_LENGTH );
+			header( detonation, 0, exercise, PduType.Detonation, 2, DetonationPdu.MINIMUM_LENGTH );
+			detonation.putLong( 72, MUNITION_TYPE );
+			detonation.putShort( 80, (short)1000 );
+			detonation.putShort( 82, (short)1000 );
+			detonation.putShort( 84, (short)1 );
+			detonation.put( 100, (byte)1 );               // result: entity impact
+
+			this.signal = ByteBuffer.allocateDirect( SIGNAL_LENGTH );
+			header( signal, 0, exercise, PduType.Signal, 4, SIGNAL_LENGTH );
+			signal.putShort( 18, (short)1 );               // radio
+			signal.putShort( 20, (short)0x4001 );          // encoding class/type: 8-bit mu-law
+			signal.putInt( 24, 8000 );                     // sample rate
+			signal.putShort( 28, (short)(SIGNAL_DATA*8) ); // data length in bits
+			signal.putShort( 30, (short)SIGNAL_DATA );     // samples
+		}
+
+		/** Write the parts of an Entity State PDU that never change */
+		private void encodeEntityState( int offset, int entity )
+		{
+			header( states, offset, exercise, PduType.EntityState, 1, ES_LENGTH );
+			entityId( states, offset+12, siteOf(entity), 1, entityNumberOf(entity) );
+			states.put( offset+18, (byte)(1 + entity%2) );       // force: friendly/opposing
+			states.putLong( offset+20, ENTITY_TYPE );
+			states.putLong( offset+28, ENTITY_TYPE );
+			states.put( offset+88, (byte)4 );                     // DRM_RVW
+			states.put( offset+128, (byte)1 );                    // ASCII marking
+			String marking = String.format( "GEN%08d", entity );
+			for( int i = 0; i < EntityStatePdu.MARKING_LENGTH; i++ )
+				states.put( offset+129+i, (byte)marking.charAt(i) );
+		}
+
+		public void run()
+		{
+			long start = System.nanoTime();
+			int cursor = 0;
+			while( running )
+			{
+				double elapsed = (System.nanoTime()-start) / 1e9;
+				boolean sent = false;
+
+				// Entity State, round robin through our entities
+				if( owned.length > 0 )
+				{
+					long due = entityRate > 0 ? (long)(elapsed * entityRate * owned.length)
+					                          : entityStates + FLAT_OUT_BATCH;
+					if( entityStates < due )
+					{
+						long now = System.currentTimeMillis();
+						int time = timestamp( now );
+						double seconds = now / 1000.0;
+						while( entityStates < due && running )
+						{
+							sendEntityState( cursor, time, seconds );
+							if( ++cursor == owned.length )
+								cursor = 0;
+						}
+						sent = true;
+					}
+				}
+
+				// Weapons and radio
+				if( owned.length > 0 )
+				{
+					sent |= sendEvents( elapsed );
+				}
+
+				if( !sent )
+					LockSupport.parkNanos( IDLE_PARK );
+			}
+		}
+
+		private void sendEntityState( int index, int time, double seconds )
+		{
+			int entity = owned[index];
+			int offset = index * ES_LENGTH;
+
+			// where are we on the circle
+			double angle = phase[entity] + omega[entity]*seconds;
+			double cos = Math.cos( angle ), sin = Math.sin( angle );
+			double r = radius[entity];
+			double x = centerX[entity] + r*(cos*eastX + sin*northX);
+			double y = centerY[entity] + r*(cos*eastY + sin*northY);
+			double z = centerZ[entity] + r*(cos*eastZ + sin*northZ);
+			double speed = r * omega[entity];
+			double vx = speed * (-sin*eastX + cos*northX);
+			double vy = speed * (-sin*eastY + cos*northY);
+			double vz = speed * (-sin*eastZ + cos*northZ);
+
+			states.putInt( offset+4, time );
+			states.putFloat( offset+36, (float)vx );
+			states.putFloat( offset+40, (float)vy );
+			states.putFloat( offset+44, (float)vz );
+			states.putDouble( offset+48, x );
+			states.putDouble( offset+56, y );
+			states.putDouble( offset+64, z );
+
+			// pointing along the velocity vector
+			double horizontal = Math.sqrt( vx*vx + vy*vy );
+			states.putFloat( offset+72, (float)Math.atan2(vy,vx) );
+			states.putFloat( offset+76, (float)Math.atan2(-vz,horizontal) );
+
+			statesView.limit( offset+ES_LENGTH ).position( offset );
+			send( statesView );
+			++entityStates;
+		}
+
+		/** Send whatever fire/detonation/signal PDUs are due. @return True if we sent any. */
+		private boolean sendEvents( double elapsed )
+		{
+			boolean sent = false;
+			int time = 0;
+			if( fireRate > 0 && fires < (long)(elapsed*fireRate*share) )
+			{
+				time = timestamp( System.currentTimeMillis() );
+				int shooter = owned[(int)(fires % owned.length)];
+				entityId( fire, 12, siteOf(shooter), 1, entityNumberOf(shooter) );
+				entityId( fire, 30, siteOf(shooter), 1, ++eventNumber & 0xffff );
+				fire.putInt( 4, time );
+				positionOf( fire, 40, shooter );
+				fire.clear();
+				send( fire );
+				++fires;
+				sent = true;
+			}
+
+			if( detonationRate > 0 && detonations < (long)(elapsed*detonationRate*share) )
+			{
+				if( time == 0 )
+					time = timestamp( System.currentTimeMillis() );
+
+				int shooter = owned[(int)(detonations % owned.length)];
+				int target = owned[(int)((detonations+1) % owned.length)];
+				entityId( detonation, 12, siteOf(shooter), 1, entityNumberOf(shooter) );
+				entityId( detonation, 18, siteOf(target), 1, entityNumberOf(target) );
+				entityId( detonation, 30, siteOf(shooter), 1, eventNumber & 0xffff );
+				detonation.putInt( 4, time );
+				positionOf( detonation, 48, target );
+				detonation.clear();
+				send( detonation );
+				++detonations;
+				sent = true;
+			}
+
+			if( signalRate > 0 && signals < (long)(elapsed*signalRate*share) )
+			{
+				if( time == 0 )
+					time = timestamp( System.currentTimeMillis() );
+
+				int talker = owned[(int)(signals % owned.length)];
+				entityId( signal, 12, siteOf(talker), 1, entityNumberOf(talker) );
+				signal.putInt( 4, time );
+				signal.clear();
+				send( signal );
+				++signals;
+				sent = true;
+			}
+
+			return sent;
+		}
+
+		/** Write the centre of an entity's circle, which is near enough for weapons events */
+		private void positionOf( ByteBuffer buffer, int offset, int entity )
+		{
+			buffer.putDouble( offset, centerX[entity] );
+			buffer.putDouble( offset+8, centerY[entity] );
+			buffer.putDouble( offset+16, centerZ[entity] );
+		}
+
+		private void send( ByteBuffer buffer )
+		{
+			try
+			{
+				sink.send( buffer );
+			}
+			catch( Exception e )
+			{
+				if( errors++ == 0 )
+					logger.warn( "Generator send failed (further failures counted): "+e.getMessage() );
+			}
+		}
+	}
+}
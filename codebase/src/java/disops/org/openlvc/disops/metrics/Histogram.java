@@ -0,0 +1,317 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative values, laid out the same way as an
+ * HdrHistogram with two significant digits. Values below 128 each get their own bucket, and
+ * above that every power of two range is split into 64 equal buckets, so any recorded value
+ * is reported to within 1/64th (about 1.6%) of what it was, from microseconds to hours, in
+ * a couple of thousand counters.
+ * <p/>
+ * Recording is a bit of arithmetic and an atomic increment, with no allocation or locking,
+ * and is safe from any number of threads. Values above the highest trackable value are
+ * clamped to it. Readers take a {@link Snapshot}, and the difference between two snapshots
+ * gives the distribution over the interval between them.
+ */
+public class Histogram
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;   // linear range, 0-127
+	private static final int HALF = SUB_BUCKETS / 2;               // buckets per power of 2 above that
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final String name;
+	private final String unit;
+	private final long highestTrackable;
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param name             Name the histogram is reported under
+	 * @param unit             Unit of the recorded values (for reporting only)
+	 * @param highestTrackable Largest value that can be recorded; anything above is clamped
+	 */
+	public Histogram( String name, String unit, long highestTrackable )
+	{
+		if( highestTrackable < SUB_BUCKETS )
+			highestTrackable = SUB_BUCKETS;
+
+		this.name = name;
+		this.unit = unit;
+		this.highestTrackable = highestTrackable;
+		this.counts = new AtomicLongArray( indexOf(highestTrackable)+1 );
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong( 0 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Record a single value. Negative values are recorded as zero.
+	 */
+	public void record( long value )
+	{
+		if( value < 0 )
+			value = 0;
+		else if( value > highestTrackable )
+			value = highestTrackable;
+
+		counts.incrementAndGet( indexOf(value) );
+		count.increment();
+		sum.add( value );
+
+		long current = max.get();
+		while( value > current && !max.compareAndSet(current,value) )
+			current = max.get();
+	}
+
+	/**
+	 * @return A copy of the current counts. Recording carries on while the copy is taken, so
+	 *         it may include some of the values recorded during the copy but not others.
+	 */
+	public Snapshot snapshot()
+	{
+		long[] copy = new long[counts.length()];
+		for( int i = 0; i < copy.length; i++ )
+			copy[i] = counts.get( i );
+
+		return new Snapshot( copy, sum.sum() );
+	}
+
+	/**
+	 * Count the recorded values at or below each of the given bounds, straight from the live
+	 * counters without taking a snapshot. Values are compared to bucket precision, so a bound
+	 * that falls part way through a bucket takes the whole bucket. Like a snapshot, values
+	 * recorded while this runs may or may not be included.
+	 *
+	 * @param bounds Upper bounds, in ascending order
+	 * @param out    Filled with the count at or below each bound (same length as bounds)
+	 * @return Total of all the counts, which is at least the last entry of out
+	 */
+	public long getCumulativeCounts( long[] bounds, long[] out )
+	{
+		long seen = 0;
+		int next = 0;
+		for( int i = 0; i < counts.length(); i++ )
+		{
+			while( next < bounds.length && indexOf(Math.min(bounds[next],highestTrackable)) < i )
+				out[next++] = seen;
+
+			seen += counts.get( i );
+		}
+
+		while( next < bounds.length )
+			out[next++] = seen;
+
+		return seen;
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public String getUnit()
+	{
+		return this.unit;
+	}
+
+	/** @return Number of values recorded since the histogram was created */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/** @return Largest value recorded since the histogram was created */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/** @return Sum of all values recorded since the histogram was created */
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	/** @return Mean of all values recorded since the histogram was created */
+	public double getMean()
+	{
+		long total = count.sum();
+		return total == 0 ? 0.0 : sum.sum() / (double)total;
+	}
+
+	@Override
+	public String toString()
+	{
+		Snapshot snapshot = snapshot();
+		return String.format( "%s: count=%d, mean=%.1f%s, p50=%d, p99=%d, max=%d", name,
+		                      snapshot.getCount(), snapshot.getMean(), unit,
+		                      snapshot.getValueAtPercentile(50.0), snapshot.getValueAtPercentile(99.0),
+		                      getMax() );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	static int indexOf( long value )
+	{
+		if( value < SUB_BUCKETS )
+			return (int)value;
+
+		// shift the value down so its top bits fall in [HALF,SUB_BUCKETS)
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS-1);
+		return SUB_BUCKETS + (shift-1)*HALF + (int)((value >>> shift) - HALF);
+	}
+
+	/** @return The largest value that would be counted in the given bucket */
+	static long highestValueAt( int index )
+	{
+		if( index < SUB_BUCKETS )
+			return index;
+
+		int shift = (index-SUB_BUCKETS) / HALF + 1;
+		long subBucket = (index-SUB_BUCKETS) % HALF + HALF;
+		return ((subBucket+1) << shift) - 1;
+	}
+
+	/** @return The smallest value that would be counted in the given bucket */
+	static long lowestValueAt( int index )
+	{
+		if( index < SUB_BUCKETS )
+			return index;
+
+		int shift = (index-SUB_BUCKETS) / HALF + 1;
+		long subBucket = (index-SUB_BUCKETS) % HALF + HALF;
+		return subBucket << shift;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Snapshot   ////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * The bucket counts of a histogram at a point in time (or the difference between two).
+	 */
+	public static class Snapshot
+	{
+		private final long[] counts;
+		private final long sum;
+		private final long count;
+
+		private Snapshot( long[] counts, long sum )
+		{
+			this.counts = counts;
+			this.sum = sum;
+
+			long total = 0;
+			for( long bucket : counts )
+				total += bucket;
+			this.count = total;
+		}
+
+		/**
+		 * @return The values recorded between the given earlier snapshot and this one. Null
+		 *         may be passed for the earlier snapshot, in which case this one is returned.
+		 */
+		public Snapshot since( Snapshot earlier )
+		{
+			if( earlier == null )
+				return this;
+
+			long[] difference = new long[counts.length];
+			for( int i = 0; i < counts.length; i++ )
+				difference[i] = counts[i] - earlier.counts[i];
+
+			return new Snapshot( difference, sum-earlier.sum );
+		}
+
+		public long getCount()
+		{
+			return this.count;
+		}
+
+		/** @return Mean of the recorded values (exact, not bucketed), or 0 if there are none */
+		public double getMean()
+		{
+			return count == 0 ? 0.0 : sum / (double)count;
+		}
+
+		/** @return The smallest value recorded (to bucket precision), or 0 if there are none */
+		public long getMin()
+		{
+			for( int i = 0; i < counts.length; i++ )
+			{
+				if( counts[i] > 0 )
+					return lowestValueAt( i );
+			}
+
+			return 0;
+		}
+
+		/** @return The largest value recorded (to bucket precision), or 0 if there are none */
+		public long getMax()
+		{
+			for( int i = counts.length-1; i >= 0; i-- )
+			{
+				if( counts[i] > 0 )
+					return highestValueAt( i );
+			}
+
+			return 0;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100
+		 * @return The value that the given percentage of recorded values are at or below (to
+		 *         bucket precision), or 0 if there are none
+		 */
+		public long getValueAtPercentile( double percentile )
+		{
+			if( count == 0 )
+				return 0;
+
+			long target = Math.max( 1, (long)Math.ceil(count * Math.min(percentile,100.0) / 100.0) );
+			long seen = 0;
+			for( int i = 0; i < counts.length; i++ )
+			{
+				seen += counts[i];
+				if( seen >= target )
+					return highestValueAt( i );
+			}
+
+			return getMax();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.metrics;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+import org.openlvc.disops.utils.LongIntHashMap;
+
+/**
+ * Numbers DisOps keeps about itself: how many PDUs of each type and for each exercise have
+ * come through, who sent them, how long they took to get from the socket to the writer and
+ * how long InfluxDB takes to accept a batch. On top of those, components can register gauges
+ * (queue depths, writer counters and so on) that are read when the metrics are reported.
+ * <p/>
+ * Everything that is updated per PDU is allocation free. Counters are {@link LongAdder}s,
+ * which stripe their count across cells when several threads hit them at once, so the
+ * pipeline shards can all count into the same registry without fighting over a cache line.
+ * Counters for every PDU type and exercise ID are created up front and indexed by the wire
+ * value. Senders are found through a primitive map keyed on the IPv4 address and port, so
+ * the lookup for a sender we've already seen doesn't allocate either.
+ * <p/>
+ * The registry only collects. {@link MetricsReporter} periodically writes it to InfluxDB.
+ */
+public class MetricsRegistry
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Distinct senders we track individually. Anyone after that is counted as "other". */
+	public static final int MAX_SENDERS = 1024;
+
+	private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros( 10 );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final LongAdder[] pduTypes;
+	private final LongAdder[] exercises;
+	private final LongAdder pdus;
+
+	// Senders - the map is only touched by the (single) receiver thread, readers use the array
+	private final LongIntHashMap senderIndex;
+	private volatile Sender[] senders;
+	private final Sender otherSenders;
+
+	private final Histogram ingestLatency;
+	private final Histogram flushTime;
+
+	// name -> supplier, guarded by "this"
+	private final Map<String,LongSupplier> gauges;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public MetricsRegistry()
+	{
+		this.pduTypes = new LongAdder[256];
+		this.exercises = new LongAdder[256];
+		for( int i = 0; i < 256; i++ )
+		{
+			this.pduTypes[i] = new LongAdder();
+			this.exercises[i] = new LongAdder();
+		}
+		this.pdus = new LongAdder();
+
+		this.senderIndex = new LongIntHashMap( 64 );
+		this.senders = new Sender[0];
+		this.otherSenders = new Sender( "other" );
+
+		this.ingestLatency = new Histogram( "ingest", "us", HIGHEST_LATENCY );
+		this.flushTime = new Histogram( "flush", "us", HIGHEST_LATENCY );
+
+		this.gauges = new LinkedHashMap<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Recording Methods   ////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Count a PDU against its type and exercise. Only the header is looked at, so this can
+	 * be called before the PDU is decoded. Safe from any thread.
+	 *
+	 * @param packet The PDU, from position to limit
+	 */
+	public void recordPdu( ByteBuffer packet )
+	{
+		int start = packet.position();
+		if( packet.limit()-start < 3 )
+			return;
+
+		pdus.increment();
+		exercises[packet.get(start+1) & 0xff].increment();
+		pduTypes[packet.get(start+2) & 0xff].increment();
+	}
+
+	/**
+	 * Count a packet against the address it came from. <b>Must only be called from a single
+	 * thread</b> (the DIS receiver). Addresses are expected to be IPv4, which is all the
+	 * receiver binds to.
+	 *
+	 * @param address Where the packet came from
+	 * @param bytes   Size of the packet
+	 */
+	public void recordSender( InetSocketAddress address, int bytes )
+	{
+		// Inet4Address.hashCode() is the address itself, so this doesn't allocate
+		long key = ((address.getAddress().hashCode() & 0xffffffffL) << 16) | address.getPort();
+		int index = senderIndex.get( key );
+
+		Sender sender;
+		if( index != LongIntHashMap.MISSING )
+			sender = senders[index];
+		else if( senderIndex.size() < MAX_SENDERS )
+			sender = addSender( key, address );
+		else
+			sender = otherSenders;
+
+		sender.packets.increment();
+		sender.bytes.add( bytes );
+	}
+
+	/** First packet from a new sender - grow the published array. Receiver thread only. */
+	private Sender addSender( long key, InetSocketAddress address )
+	{
+		int index = senders.length;
+		Sender sender = new Sender( address.getAddress().getHostAddress()+":"+address.getPort() );
+		Sender[] updated = Arrays.copyOf( senders, index+1 );
+		updated[index] = sender;
+		this.senders = updated;
+		senderIndex.put( key, index );
+		return sender;
+	}
+
+	/**
+	 * Register a value to be read each time the metrics are reported. Registering a name
+	 * again replaces the supplier.
+	 *
+	 * @param name     Name it is reported as (must be a valid line protocol field key)
+	 * @param supplier Called from the reporting thread, so it must be thread safe and quick
+	 */
+	public synchronized void addGauge( String name, LongSupplier supplier )
+	{
+		this.gauges.put( name, supplier );
+	}
+
+	public synchronized void removeGauge( String name )
+	{
+		this.gauges.remove( name );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Total PDUs counted by {@link #recordPdu(ByteBuffer)} */
+	public long getPduCount()
+	{
+		return pdus.sum();
+	}
+
+	/** @return PDUs counted for the given type (wire value, 0-255) */
+	public long getPduCount( int type )
+	{
+		return pduTypes[type & 0xff].sum();
+	}
+
+	/** @return PDUs counted for the given exercise ID (0-255) */
+	public long getExerciseCount( int exercise )
+	{
+		return exercises[exercise & 0xff].sum();
+	}
+
+	/**
+	 * @return Every sender seen so far, in the order they were first heard from, followed by
+	 *         the catch-all for senders past {@link #MAX_SENDERS} if it has been used
+	 */
+	public Sender[] getSenders()
+	{
+		Sender[] current = this.senders;
+		if( otherSenders.getPackets() == 0 )
+			return current;
+
+		Sender[] all = Arrays.copyOf( current, current.length+1 );
+		all[current.length] = otherSenders;
+		return all;
+	}
+
+	/** @return Time (micros) between a PDU being received and its point being handed to a writer */
+	public Histogram getIngestLatency()
+	{
+		return this.ingestLatency;
+	}
+
+	/** @return Time (micros) between sending a batch to InfluxDB and it being accepted */
+	public Histogram getFlushTime()
+	{
+		return this.flushTime;
+	}
+
+	/** @return A copy of the registered gauges, in registration order */
+	public synchronized Map<String,LongSupplier> getGauges()
+	{
+		return new LinkedHashMap<>( this.gauges );
+	}
+
+	/**
+	 * Read every gauge without copying the set. The consumer is called with the lock held, so
+	 * it mustn't register or remove gauges.
+	 *
+	 * @param consumer Given the name and current value of each gauge, in registration order
+	 */
+	public synchronized void forEachGauge( ObjLongConsumer<String> consumer )
+	{
+		for( Map.Entry<String,LongSupplier> gauge : gauges.entrySet() )
+			consumer.accept( gauge.getKey(), gauge.getValue().getAsLong() );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Sender   //////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Traffic counts for a single source address.
+	 */
+	public static class Sender
+	{
+		private final String name;
+		private final LongAdder packets;
+		private final LongAdder bytes;
+
+		private Sender( String name )
+		{
+			this.name = name;
+			this.packets = new LongAdder();
+			this.bytes = new LongAdder();
+		}
+
+		/** @return host:port the traffic came from */
+		public String getName()
+		{
+			return this.name;
+		}
+
+		public long getPackets()
+		{
+			return packets.sum();
+		}
+
+		public long getBytes()
+		{
+			return bytes.sum();
+		}
+	}
+}
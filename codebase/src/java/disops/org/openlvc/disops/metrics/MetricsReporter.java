@@ -0,0 +1,267 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.server.dis.pdu.PduType;
+import org.openlvc.disops.server.influx.PointSink;
+
+/**
+ * Writes the contents of a {@link MetricsRegistry} to a {@link PointSink} at a fixed
+ * interval. The sink is expected to point at a database of its own, so DisOps' numbers about
+ * itself don't get mixed in with the exercise data. Each report writes:
+ * <ul>
+ *   <li><b>pdu_type</b> (tag type): total PDUs of each type seen, and the rate over the interval</li>
+ *   <li><b>pdu_exercise</b> (tag exercise): the same, per exercise</li>
+ *   <li><b>pdu_sender</b> (tag sender): packets and bytes from each source address, and rate</li>
+ *   <li><b>latency</b> (tag histogram): count, mean, min, percentiles and max of the values
+ *       recorded in each histogram during the interval</li>
+ *   <li><b>server</b>: the current value of every registered gauge</li>
+ * </ul>
+ * Totals are cumulative so nothing is lost if a report doesn't make it; rates are a
+ * convenience for dashboards.
+ */
+public class MetricsReporter
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+	private static final String[] PERCENTILE_FIELDS = { "p50", "p90", "p99", "p999" };
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final MetricsRegistry registry;
+	private final PointSink sink;
+	private final Logger logger;
+	private final long interval;
+	private ScheduledExecutorService timer;
+
+	// State from the last report, to work out rates and interval histograms
+	private long lastReport;
+	private final long[] lastTypes;
+	private final long[] lastExercises;
+	private final Map<String,Long> lastSenders;
+	private Histogram.Snapshot lastIngest;
+	private Histogram.Snapshot lastFlush;
+	private final StringBuilder line;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param registry Metrics to report
+	 * @param sink     Where to write them
+	 * @param interval Millis between reports
+	 * @param logger   Logger to report problems to
+	 */
+	public MetricsReporter( MetricsRegistry registry, PointSink sink, long interval, Logger logger )
+	{
+		this.registry = registry;
+		this.sink = sink;
+		this.logger = logger;
+		this.interval = Math.max( 100, interval );
+		this.timer = null; // set in startup()
+
+		this.lastReport = System.currentTimeMillis();
+		this.lastTypes = new long[256];
+		this.lastExercises = new long[256];
+		this.lastSenders = new HashMap<>();
+		this.lastIngest = null;
+		this.lastFlush = null;
+		this.line = new StringBuilder( 256 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup()
+	{
+		this.lastReport = System.currentTimeMillis();
+		this.timer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "metrics-reporter" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		this.timer.scheduleAtFixedRate( this::reportSafely, interval, interval, TimeUnit.MILLISECONDS );
+		logger.info( "Metrics reporter started: interval=%dms", interval );
+	}
+
+	/**
+	 * Stop reporting, writing one last report first so the final counts make it out.
+	 */
+	public void shutdown()
+	{
+		if( this.timer == null )
+			return;
+
+		this.timer.shutdownNow();
+		try
+		{
+			this.timer.awaitTermination( 5, TimeUnit.SECONDS );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		this.timer = null;
+		reportSafely();
+		sink.flush();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reporting Methods   ////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** A timer task that throws is never run again, so make sure nothing gets out */
+	private void reportSafely()
+	{
+		try
+		{
+			report();
+		}
+		catch( Exception e )
+		{
+			logger.warn( "Failed to report metrics: "+e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Write a report now. Called from the timer thread; only call it directly if the
+	 * reporter hasn't been started.
+	 */
+	public synchronized void report()
+	{
+		long now = System.currentTimeMillis();
+		double seconds = Math.max( 1, now-lastReport ) / 1000.0;
+		long timestamp = now * 1000000L;
+		this.lastReport = now;
+
+		// PDU types and exercises we've seen anything for
+		for( int i = 0; i < 256; i++ )
+		{
+			long count = registry.getPduCount( i );
+			if( count == 0 )
+				continue;
+
+			PduType type = PduType.fromValue( i );
+			start( "pdu_type" ).append( ",type=" ).append( type );
+			if( type == PduType.Other && i != 0 )
+				line.append( '_' ).append( i ); // keep unknown types apart
+			count( count, lastTypes[i], seconds, timestamp );
+			lastTypes[i] = count;
+		}
+
+		for( int i = 0; i < 256; i++ )
+		{
+			long count = registry.getExerciseCount( i );
+			if( count == 0 )
+				continue;
+
+			start( "pdu_exercise" ).append( ",exercise=" ).append( i );
+			count( count, lastExercises[i], seconds, timestamp );
+			lastExercises[i] = count;
+		}
+
+		for( MetricsRegistry.Sender sender : registry.getSenders() )
+		{
+			long packets = sender.getPackets();
+			Long last = lastSenders.put( sender.getName(), packets );
+			start( "pdu_sender" ).append( ",sender=" ).append( sender.getName() );
+			line.append( " packets=" ).append( packets ).append( 'i' );
+			line.append( ",bytes=" ).append( sender.getBytes() ).append( 'i' );
+			line.append( ",rate=" ).append( (packets-(last == null ? 0 : last)) / seconds );
+			line.append( ' ' ).append( timestamp );
+			sink.write( line.toString() );
+		}
+
+		// Histograms - the distribution over this interval
+		Histogram.Snapshot ingest = registry.getIngestLatency().snapshot();
+		histogram( "ingest", ingest.since(lastIngest), timestamp );
+		this.lastIngest = ingest;
+
+		Histogram.Snapshot flush = registry.getFlushTime().snapshot();
+		histogram( "flush", flush.since(lastFlush), timestamp );
+		this.lastFlush = flush;
+
+		// Gauges
+		Map<String,LongSupplier> gauges = registry.getGauges();
+		if( gauges.isEmpty() == false )
+		{
+			start( "server" ).append( ' ' );
+			boolean first = true;
+			for( Map.Entry<String,LongSupplier> gauge : gauges.entrySet() )
+			{
+				if( !first )
+					line.append( ',' );
+
+				line.append( gauge.getKey() ).append( '=' ).append( gauge.getValue().getAsLong() ).append( 'i' );
+				first = false;
+			}
+
+			line.append( ' ' ).append( timestamp );
+			sink.write( line.toString() );
+		}
+	}
+
+	private StringBuilder start( String measurement )
+	{
+		line.setLength( 0 );
+		return line.append( measurement );
+	}
+
+	private void count( long count, long last, double seconds, long timestamp )
+	{
+		line.append( " count=" ).append( count ).append( 'i' );
+		line.append( ",rate=" ).append( (count-last) / seconds );
+		line.append( ' ' ).append( timestamp );
+		sink.write( line.toString() );
+	}
+
+	private void histogram( String name, Histogram.Snapshot snapshot, long timestamp )
+	{
+		start( "latency" ).append( ",histogram=" ).append( name );
+		line.append( " count=" ).append( snapshot.getCount() ).append( 'i' );
+		line.append( ",mean=" ).append( snapshot.getMean() );
+		line.append( ",min=" ).append( snapshot.getMin() ).append( 'i' );
+		for( int i = 0; i < PERCENTILES.length; i++ )
+		{
+			line.append( ',' ).append( PERCENTILE_FIELDS[i] ).append( '=' )
+			    .append( snapshot.getValueAtPercentile(PERCENTILES[i]) ).append( 'i' );
+		}
+		line.append( ",max=" ).append( snapshot.getMax() ).append( 'i' );
+		line.append( ' ' ).append( timestamp );
+		sink.write( line.toString() );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.openlvc.disops.server.dis.PduPipeline;
+
+/**
+ * Destination for replayed or generated packets. The buffer holds a single packet from
+ * position to limit, and is only valid for the duration of the call.
+ */
+public interface PacketSink
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public void send( ByteBuffer payload ) throws IOException;
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return A sink that writes each packet to the given (connected) datagram channel
+	 */
+	public static PacketSink udp( DatagramChannel channel )
+	{
+		return payload -> channel.write( payload );
+	}
+
+	/**
+	 * A sink that routes packets straight into a pipeline, stamped with the current time.
+	 * {@link PduPipeline#route(ByteBuffer, long)} allows one producer per shard, so a sink
+	 * must only be used from one thread, and sinks used from separate threads must only see
+	 * traffic for separate shards.
+	 *
+	 * @param block If true, wait for room when a shard is full rather than drop the packet.
+	 *              Use this to measure how fast the pipeline can go. Leave it off to drop
+	 *              like the network receiver does, so the pipeline's drop count shows whether
+	 *              it kept up with the offered load.
+	 */
+	public static PacketSink pipeline( PduPipeline pipeline, boolean block )
+	{
+		if( !block )
+			return payload -> pipeline.route( payload, System.currentTimeMillis() );
+
+		return payload -> {
+			while( !pipeline.route(payload,System.currentTimeMillis()) )
+				Thread.yield();
+		};
+	}
+}
@@ -0,0 +1,675 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.Utils;
+
+/**
+ * Reads the UDP payloads out of a pcap or pcapng capture file.
+ * <p/>
+ * The file is memory-mapped a window at a time rather than read, and only one window is
+ * mapped at once, so a capture of any size is read with the same (small) footprint. When a
+ * record runs off the end of the current window that window is unmapped and the next one is
+ * mapped starting at the record.
+ * <p/>
+ * Nothing is copied. {@link #getPayload()} hands back a view onto the mapped file that is
+ * positioned at the start of the UDP payload with its limit at the end. Like the buffers
+ * given to a {@link org.openlvc.disops.server.dis.PduListener}, it is only valid until the
+ * next call to {@link #next()}.
+ * <p/>
+ * Ethernet (with VLAN tags), Linux cooked (v1 and v2), BSD loopback and raw IP link types
+ * are understood, carrying IPv4 or IPv6. Anything that isn't UDP, and IP fragments (which
+ * would need copying to reassemble), are skipped and counted.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class PcapReader implements Closeable
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public enum Format { Pcap, PcapNG };
+
+	private static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+	private static final long PAGE = 4096;
+
+	// pcap
+	private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+	private static final int PCAP_MAGIC_NANOS  = 0xa1b23c4d;
+	private static final int PCAP_HEADER = 24;
+	private static final int PCAP_RECORD = 16;
+
+	// pcapng
+	private static final int BLOCK_SECTION_HEADER   = 0x0a0d0d0a;
+	private static final int BLOCK_INTERFACE        = 0x00000001;
+	private static final int BLOCK_PACKET           = 0x00000002; // obsolete, still written by old tools
+	private static final int BLOCK_SIMPLE_PACKET    = 0x00000003;
+	private static final int BLOCK_ENHANCED_PACKET  = 0x00000006;
+	private static final int BYTE_ORDER_MAGIC       = 0x1a2b3c4d;
+	private static final int OPTION_TSRESOL         = 9;
+	private static final int MAX_INTERFACES         = 256;
+
+	// link types
+	private static final int LINK_NULL     = 0;
+	private static final int LINK_ETHERNET = 1;
+	private static final int LINK_RAW      = 101;
+	private static final int LINK_RAW_BSD  = 12;
+	private static final int LINK_LOOP     = 108;
+	private static final int LINK_SLL      = 113;
+	private static final int LINK_IPV4     = 228;
+	private static final int LINK_IPV6     = 229;
+	private static final int LINK_SLL2     = 276;
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86dd;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int ETHERTYPE_QINQ = 0x88a8;
+	private static final int PROTOCOL_UDP = 17;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final File file;
+	private final int windowSize;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long fileSize;
+	private Format format;
+	private ByteOrder order;
+
+	// Current window onto the file
+	private MappedByteBuffer window;  // kept so we can unmap it
+	private ByteBuffer view;          // big-endian duplicate handed out as the payload
+	private long windowStart;
+	private long windowEnd;
+	private long offset;              // file offset of the next record
+
+	// Per-interface settings (pcap has exactly one interface)
+	private int[] linkTypes;
+	private long[] tsUnitsPerSecond;
+	private int interfaceCount;
+	private boolean nanos;            // pcap only
+
+	// Current packet
+	private long timestamp;           // nanos since the epoch
+	private int sourcePort;
+	private int destinationPort;
+	private int portFilter;
+
+	// Statistics
+	private long frames;
+	private long packets;
+	private long skipped;
+	private long fragments;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PcapReader( File file )
+	{
+		this( file, DEFAULT_WINDOW );
+	}
+
+	/**
+	 * @param file       The capture to read
+	 * @param windowSize Bytes of the file mapped at any one time. Must be larger than the
+	 *                   biggest record in the file.
+	 */
+	public PcapReader( File file, int windowSize )
+	{
+		this.file = file;
+		this.windowSize = windowSize;
+		this.linkTypes = new int[MAX_INTERFACES];
+		this.tsUnitsPerSecond = new long[MAX_INTERFACES];
+		this.portFilter = -1;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Open the file and work out what format it is in.
+	 *
+	 * @throws DisOpsException If the file can't be opened or isn't a capture we understand
+	 */
+	public void open() throws DisOpsException
+	{
+		try
+		{
+			this.raf = new RandomAccessFile( file, "r" );
+			this.channel = raf.getChannel();
+			this.fileSize = channel.size();
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not open capture "+file+": "+ioex.getMessage(), ioex );
+		}
+
+		if( fileSize < PCAP_HEADER || !map(0,PCAP_HEADER) )
+			throw new DisOpsException( "Not a capture file (too short): "+file );
+
+		rewind();
+	}
+
+	/**
+	 * Go back to the first packet in the file
+	 */
+	public void rewind() throws DisOpsException
+	{
+		map( 0, PCAP_HEADER );
+		this.interfaceCount = 0;
+		this.timestamp = 0;
+
+		int magic = window.order(ByteOrder.BIG_ENDIAN).getInt( 0 );
+		if( magic == BLOCK_SECTION_HEADER )
+		{
+			// byte order comes from the section header, which is read like any other block
+			this.format = Format.PcapNG;
+			this.offset = 0;
+			return;
+		}
+
+		this.format = Format.Pcap;
+		if( magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS )
+			this.order = ByteOrder.BIG_ENDIAN;
+		else if( Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS ||
+		         Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS )
+			this.order = ByteOrder.LITTLE_ENDIAN;
+		else
+			throw new DisOpsException( String.format("Not a pcap/pcapng file (magic=%08x): %s",magic,file) );
+
+		window.order( order );
+		this.nanos = window.getInt(0) == PCAP_MAGIC_NANOS;
+		this.linkTypes[0] = window.getInt( 20 );
+		this.tsUnitsPerSecond[0] = nanos ? 1000000000L : 1000000L;
+		this.interfaceCount = 1;
+		this.offset = PCAP_HEADER;
+	}
+
+	@Override
+	public void close()
+	{
+		unmap();
+		try
+		{
+			if( raf != null )
+				raf.close();
+		}
+		catch( IOException ioex )
+		{
+			// ignore
+		}
+
+		this.raf = null;
+		this.channel = null;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Move to the next UDP packet in the file, skipping anything else.
+	 *
+	 * @return True if there is a packet, false if we have reached the end of the file
+	 */
+	public boolean next() throws DisOpsException
+	{
+		while( true )
+		{
+			boolean found = format == Format.Pcap ? nextPcap() : nextPcapNG();
+			if( found )
+				return true;
+			else if( offset >= fileSize )
+				return false;
+		}
+	}
+
+	/**
+	 * Read the next pcap record. Returns false for both end of file and a frame that isn't
+	 * what we're after; the caller tells the two apart by the offset.
+	 */
+	private boolean nextPcap()
+	{
+		if( !map(offset,PCAP_RECORD) )
+		{
+			offset = fileSize;
+			return false;
+		}
+
+		int at = (int)(offset - windowStart);
+		long seconds = window.getInt(at) & 0xffffffffL;
+		long fraction = window.getInt(at+4) & 0xffffffffL;
+		int captured = window.getInt( at+8 );
+		if( captured < 0 || !map(offset,PCAP_RECORD+captured) )
+		{
+			// truncated capture (the capture was stopped mid-write)
+			offset = fileSize;
+			return false;
+		}
+
+		at = (int)(offset - windowStart);
+		long frame = offset + PCAP_RECORD;
+		offset = frame + captured;
+		++frames;
+
+		this.timestamp = seconds*1000000000L + (nanos ? fraction : fraction*1000L);
+		return decode( linkTypes[0], (int)(frame-windowStart), captured );
+	}
+
+	/** As for {@link #nextPcap()}, but reads a pcapng block */
+	private boolean nextPcapNG() throws DisOpsException
+	{
+		if( !map(offset,8) )
+		{
+			offset = fileSize;
+			return false;
+		}
+
+		int at = (int)(offset - windowStart);
+		int type = window.order(ByteOrder.BIG_ENDIAN).getInt( at );
+		if( type == BLOCK_SECTION_HEADER )
+		{
+			// a new section can change byte order, so read the magic before the length
+			if( !map(offset,12) )
+			{
+				offset = fileSize;
+				return false;
+			}
+
+			at = (int)(offset - windowStart);
+			int magic = window.getInt( at+8 );
+			this.order = magic == BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			if( magic != BYTE_ORDER_MAGIC && Integer.reverseBytes(magic) != BYTE_ORDER_MAGIC )
+				throw new DisOpsException( "Corrupt pcapng section header at offset "+offset );
+
+			this.interfaceCount = 0;
+		}
+
+		window.order( order );
+		int length = window.getInt( at+4 );
+		if( length < 12 || !map(offset,length) )
+		{
+			offset = fileSize;
+			return false;
+		}
+
+		at = (int)(offset - windowStart);
+		offset += length;
+		switch( type )
+		{
+			case BLOCK_INTERFACE:
+				readInterface( at, length );
+				return false;
+
+			case BLOCK_ENHANCED_PACKET:
+			{
+				++frames;
+				int iface = window.getInt( at+8 );
+				long ts = ((window.getInt(at+12) & 0xffffffffL) << 32) | (window.getInt(at+16) & 0xffffffffL);
+				int captured = window.getInt( at+20 );
+				if( iface >= interfaceCount )
+				{
+					++skipped;
+					return false;
+				}
+
+				this.timestamp = toNanos( ts, tsUnitsPerSecond[iface] );
+				return decode( linkTypes[iface], at+28, captured );
+			}
+
+			case BLOCK_PACKET:
+			{
+				++frames;
+				int iface = window.getShort(at+8) & 0xffff;
+				long ts = ((window.getInt(at+12) & 0xffffffffL) << 32) | (window.getInt(at+16) & 0xffffffffL);
+				int captured = window.getInt( at+20 );
+				if( iface >= interfaceCount )
+				{
+					++skipped;
+					return false;
+				}
+
+				this.timestamp = toNanos( ts, tsUnitsPerSecond[iface] );
+				return decode( linkTypes[iface], at+28, captured );
+			}
+
+			case BLOCK_SIMPLE_PACKET:
+			{
+				// no timestamp, so it goes out with the one before it
+				++frames;
+				if( interfaceCount == 0 )
+				{
+					++skipped;
+					return false;
+				}
+
+				int captured = Math.min( window.getInt(at+8), length-16 );
+				return decode( linkTypes[0], at+12, captured );
+			}
+
+			default:
+				// section headers, name resolution, statistics, custom blocks...
+				return false;
+		}
+	}
+
+	/** Read an Interface Description Block: link type and timestamp resolution */
+	private void readInterface( int at, int length )
+	{
+		if( interfaceCount >= MAX_INTERFACES )
+			return;
+
+		int linkType = window.getShort(at+8) & 0xffff;
+		long units = 1000000L; // default is micros
+
+		// options follow the fixed fields, each padded to 32 bits
+		int option = at + 16;
+		int end = at + length - 4;
+		while( option+4 <= end )
+		{
+			int code = window.getShort(option) & 0xffff;
+			int size = window.getShort(option+2) & 0xffff;
+			if( code == 0 )
+				break;
+
+			if( code == OPTION_TSRESOL && size >= 1 )
+			{
+				int resolution = window.get( option+4 ) & 0xff;
+				if( (resolution & 0x80) == 0 )
+					units = (long)Math.pow( 10, resolution );
+				else
+					units = 1L << (resolution & 0x7f);
+			}
+
+			option += 4 + ((size+3) & ~3);
+		}
+
+		linkTypes[interfaceCount] = linkType;
+		tsUnitsPerSecond[interfaceCount] = units;
+		++interfaceCount;
+	}
+
+	/**
+	 * Walk down from the link layer to the UDP payload of the frame at the given position in
+	 * the window, and point the view at it.
+	 *
+	 * @return True if the frame was a UDP packet we want
+	 */
+	private boolean decode( int linkType, int frame, int captured )
+	{
+		int end = frame + captured;
+		int ip;
+		switch( linkType )
+		{
+			case LINK_ETHERNET:
+			{
+				int type = u16( frame+12 );
+				ip = frame + 14;
+				while( (type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ) && ip+4 <= end )
+				{
+					type = u16( ip+2 );
+					ip += 4;
+				}
+
+				if( type != ETHERTYPE_IPV4 && type != ETHERTYPE_IPV6 )
+					return skip();
+				break;
+			}
+			case LINK_SLL:
+				ip = frame + 16;
+				break;
+			case LINK_SLL2:
+				ip = frame + 20;
+				break;
+			case LINK_NULL:
+			case LINK_LOOP:
+				ip = frame + 4;
+				break;
+			case LINK_RAW:
+			case LINK_RAW_BSD:
+			case LINK_IPV4:
+			case LINK_IPV6:
+				ip = frame;
+				break;
+			default:
+				return skip();
+		}
+
+		if( ip+20 > end )
+			return skip();
+
+		// find the UDP header, whichever version of IP this is
+		int udp;
+		int version = (window.get(ip) & 0xff) >> 4;
+		if( version == 4 )
+		{
+			if( (window.get(ip+9) & 0xff) != PROTOCOL_UDP )
+				return skip();
+
+			// more fragments set, or not the first fragment
+			if( (u16(ip+6) & 0x3fff) != 0 )
+			{
+				++fragments;
+				return skip();
+			}
+
+			// trust the IP length over the frame length, which may include ethernet padding
+			end = Math.min( end, ip + u16(ip+2) );
+			udp = ip + (window.get(ip) & 0x0f)*4;
+		}
+		else if( version == 6 )
+		{
+			if( (window.get(ip+6) & 0xff) != PROTOCOL_UDP )
+				return skip();
+
+			end = Math.min( end, ip + 40 + u16(ip+4) );
+			udp = ip + 40;
+		}
+		else
+		{
+			return skip();
+		}
+
+		if( udp+8 > end )
+			return skip();
+
+		this.sourcePort = u16( udp );
+		this.destinationPort = u16( udp+2 );
+		if( portFilter != -1 && destinationPort != portFilter )
+			return skip();
+
+		int payloadEnd = Math.min( end, udp + u16(udp+4) );
+		if( payloadEnd < udp+8 )
+			return skip();
+
+		view.limit( payloadEnd ).position( udp+8 );
+		++packets;
+		return true;
+	}
+
+	private boolean skip()
+	{
+		++skipped;
+		return false;
+	}
+
+	/** Big-endian unsigned short at the given position in the window (network headers) */
+	private int u16( int position )
+	{
+		return ((window.get(position) & 0xff) << 8) | (window.get(position+1) & 0xff);
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Mapping Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Make sure the given range of the file is in the current window, moving the window if it
+	 * isn't.
+	 *
+	 * @return False if the range runs past the end of the file
+	 */
+	private boolean map( long start, int length )
+	{
+		if( start + length > fileSize )
+			return false;
+		if( window != null && start >= windowStart && start+length <= windowEnd )
+			return true;
+
+		// line the window up on a page boundary at or before the start
+		long mapStart = start & ~(PAGE-1);
+		long mapSize = Math.min( Math.max(windowSize,length+PAGE), fileSize-mapStart );
+		if( mapSize > Integer.MAX_VALUE )
+			throw new DisOpsException( "Capture record too large to map at offset "+start );
+
+		unmap();
+		try
+		{
+			this.window = channel.map( MapMode.READ_ONLY, mapStart, mapSize );
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not map "+file+" at offset "+mapStart+": "+
+			                           ioex.getMessage(), ioex );
+		}
+
+		if( order != null )
+			window.order( order );
+		this.view = window.duplicate(); // big-endian, which is what DIS is
+		this.windowStart = mapStart;
+		this.windowEnd = mapStart + mapSize;
+		return true;
+	}
+
+	private void unmap()
+	{
+		if( window == null )
+			return;
+
+		Utils.unmap( window );
+		this.window = null;
+		this.view = null;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * @return The UDP payload of the current packet, from position to limit. Only valid until
+	 *         the next call to {@link #next()}.
+	 */
+	public ByteBuffer getPayload()
+	{
+		return this.view;
+	}
+
+	/** @return Capture time of the current packet, in nanos since the epoch */
+	public long getTimestamp()
+	{
+		return this.timestamp;
+	}
+
+	public int getSourcePort()
+	{
+		return this.sourcePort;
+	}
+
+	public int getDestinationPort()
+	{
+		return this.destinationPort;
+	}
+
+	/** Only return packets sent to the given UDP port. -1 (the default) for any port. */
+	public void setPortFilter( int port )
+	{
+		this.portFilter = port;
+	}
+
+	public Format getFormat()
+	{
+		return this.format;
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public long getFileSize()
+	{
+		return this.fileSize;
+	}
+
+	/** @return Offset into the file we have read up to */
+	public long getOffset()
+	{
+		return this.offset;
+	}
+
+	/** @return Frames read from the file, including the ones we skipped */
+	public long getFrameCount()
+	{
+		return this.frames;
+	}
+
+	/** @return UDP packets returned by {@link #next()} */
+	public long getPacketCount()
+	{
+		return this.packets;
+	}
+
+	/** @return Frames skipped because they weren't UDP (or didn't match the port filter) */
+	public long getSkippedCount()
+	{
+		return this.skipped;
+	}
+
+	/** @return IP fragments skipped */
+	public long getFragmentCount()
+	{
+		return this.fragments;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Convert a timestamp in the given units per second to nanos */
+	private static long toNanos( long value, long unitsPerSecond )
+	{
+		if( unitsPerSecond == 1000000000L )
+			return value;
+
+		long seconds = value / unitsPerSecond;
+		long fraction = value % unitsPerSecond;
+		return seconds*1000000000L + (long)(fraction * (1e9/unitsPerSecond));
+	}
+}
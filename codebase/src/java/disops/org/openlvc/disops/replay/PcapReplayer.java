@@ -0,0 +1,255 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+
+/**
+ * Plays the packets from a {@link PcapReader} into a {@link PacketSink}, either keeping the
+ * gaps between them that were in the capture (scaled by a speed factor) or as fast as the
+ * sink will take them.
+ * <p/>
+ * When pacing, each packet has a due time worked out from its capture time relative to the
+ * first packet. We park until shortly before it's due and spin the rest of the way, so
+ * bursts come out as bursts rather than smeared across scheduler ticks. If the sink can't
+ * keep up we don't try to catch up by skipping; packets go out late and the worst lag is
+ * reported.
+ */
+public class PcapReplayer
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos( 200 );
+	private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos( 5 );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final PcapReader reader;
+	private final PacketSink sink;
+	private final Logger logger;
+	private double speed;
+	private int loops;
+	private volatile boolean running;
+
+	// Statistics
+	private volatile long packetsSent;
+	private volatile long bytesSent;
+	private volatile long sendErrors;
+	private volatile long maxLagNanos;
+	private volatile long elapsedNanos;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param reader An opened reader
+	 * @param sink   Where to send the packets
+	 * @param logger Logger to report progress on
+	 */
+	public PcapReplayer( PcapReader reader, PacketSink sink, Logger logger )
+	{
+		this.reader = reader;
+		this.sink = sink;
+		this.logger = logger;
+		this.speed = 1.0;
+		this.loops = 1;
+		this.running = false;
+
+		this.packetsSent = 0;
+		this.bytesSent = 0;
+		this.sendErrors = 0;
+		this.maxLagNanos = 0;
+		this.elapsedNanos = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Play the capture through the configured number of times, returning when done or when
+	 * {@link #stop()} is called.
+	 */
+	public void run() throws DisOpsException
+	{
+		this.running = true;
+		long start = System.nanoTime();
+		long lastReport = start;
+		long lastReportPackets = 0;
+		try
+		{
+			for( int loop = 0; running && (loops <= 0 || loop < loops); loop++ )
+			{
+				if( loop > 0 )
+					reader.rewind();
+
+				// time base for pacing, reset each loop so we don't have a gap between them
+				long firstCapture = -1;
+				long loopStart = System.nanoTime();
+				while( running && reader.next() )
+				{
+					if( speed > 0.0 )
+					{
+						long captured = reader.getTimestamp();
+						if( firstCapture == -1 )
+							firstCapture = captured;
+
+						long due = loopStart + (long)((captured-firstCapture) / speed);
+						long lag = awaitDue( due );
+						if( lag > maxLagNanos )
+							maxLagNanos = lag;
+					}
+
+					ByteBuffer payload = reader.getPayload();
+					int length = payload.remaining();
+					try
+					{
+						sink.send( payload );
+						++packetsSent;
+						bytesSent += length;
+					}
+					catch( IOException ioex )
+					{
+						if( sendErrors++ == 0 )
+							logger.warn( "Replay send failed (further failures counted): "+ioex.getMessage() );
+					}
+
+					// check the clock every 256 packets rather than run a timer thread
+					if( (packetsSent & 0xff) == 0 )
+					{
+						long now = System.nanoTime();
+						if( now-lastReport >= REPORT_INTERVAL )
+						{
+							double rate = (packetsSent-lastReportPackets) / ((now-lastReport)/1e9);
+							logger.info( "Replay: %d packets, %.0f pkt/s, %.1f%% of file, max lag %.1fms",
+							             packetsSent, rate, 100.0*reader.getOffset()/reader.getFileSize(),
+							             maxLagNanos/1e6 );
+							lastReport = now;
+							lastReportPackets = packetsSent;
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			this.elapsedNanos = System.nanoTime() - start;
+			this.running = false;
+		}
+	}
+
+	/**
+	 * Wait until the given nanoTime.
+	 *
+	 * @return How far past the due time we already were (0 if we weren't late)
+	 */
+	private long awaitDue( long due )
+	{
+		long now = System.nanoTime();
+		if( now >= due )
+			return now - due;
+
+		// park for most of it, then spin for accuracy
+		while( due-now > SPIN_THRESHOLD )
+		{
+			LockSupport.parkNanos( due-now-SPIN_THRESHOLD );
+			now = System.nanoTime();
+		}
+
+		while( System.nanoTime() < due )
+		{
+			// spin
+		}
+
+		return 0;
+	}
+
+	/** Ask a running replay to stop after the current packet */
+	public void stop()
+	{
+		this.running = false;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Speed relative to the capture (1.0 is real time). 0 or less means flat out. */
+	public double getSpeed()
+	{
+		return this.speed;
+	}
+
+	public void setSpeed( double speed )
+	{
+		this.speed = speed;
+	}
+
+	/** @return Times to play the capture. 0 or less to loop until stopped. */
+	public int getLoops()
+	{
+		return this.loops;
+	}
+
+	public void setLoops( int loops )
+	{
+		this.loops = loops;
+	}
+
+	public boolean isRunning()
+	{
+		return this.running;
+	}
+
+	public long getPacketsSent()
+	{
+		return this.packetsSent;
+	}
+
+	public long getBytesSent()
+	{
+		return this.bytesSent;
+	}
+
+	public long getSendErrors()
+	{
+		return this.sendErrors;
+	}
+
+	/** @return The furthest behind schedule a packet went out, in millis */
+	public double getMaxLagMillis()
+	{
+		return this.maxLagNanos / 1e6;
+	}
+
+	/** @return Millis the last run took */
+	public long getElapsedMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis( this.elapsedNanos );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -17,9 +17,35 @@
  */
 package org.openlvc.disops.server;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.function.ToLongFunction;
+
 import org.apache.logging.log4j.Logger;
 import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.DisConfiguration;
+import org.openlvc.disops.configuration.HttpConfiguration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.openlvc.disops.metrics.MetricsRegistry;
+import org.openlvc.disops.metrics.MetricsReporter;
+import org.openlvc.disops.server.dis.DisManager;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.dis.PduListener;
+import org.openlvc.disops.server.dis.PduListenerFactory;
+import org.openlvc.disops.server.entity.DeadReckoningFilter;
+import org.openlvc.disops.server.entity.EntityDepartureListener;
+import org.openlvc.disops.server.entity.EntityDepartureWriter;
+import org.openlvc.disops.server.entity.EntityStateWriter;
+import org.openlvc.disops.server.entity.EntityTableUpdater;
+import org.openlvc.disops.server.entity.ShardedEntityTable;
+import org.openlvc.disops.server.entity.ShardedSpatialIndex;
+import org.openlvc.disops.server.http.HttpManager;
+import org.openlvc.disops.server.http.PrometheusHandler;
 import org.openlvc.disops.server.influx.InfluxManager;
+import org.openlvc.disops.server.influx.InfluxWriter;
+import org.openlvc.disops.server.influx.QueryCache;
+import org.openlvc.disops.server.influx.TagDictionary;
+import org.openlvc.disops.server.recorder.PduRecorder;
+import org.openlvc.disops.server.recorder.SegmentCompressor;
 
 public class DisOpsServer
 {
@@ -32,7 +58,17 @@ public class DisOpsServer
 	//----------------------------------------------------------
 	private Configuration configuration;
 	private InfluxManager influxManager;
+	private DisManager disManager;
+	private ShardedEntityTable entityTable;
+	private EntityTableUpdater[] entityTableUpdaters;
+	private ShardedSpatialIndex spatialIndex;
+	private EntityStateWriter[] entityStateWriters;
+	private MetricsRegistry metrics;
+	private MetricsReporter metricsReporter;
+	private HttpManager httpManager;
+	private PduRecorder recorder;
 	private Logger logger;
+	private CountDownLatch terminated;
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -41,7 +77,57 @@ public class DisOpsServer
 	{
 		this.configuration = configuration;
 		this.influxManager = new InfluxManager( configuration );
+		this.disManager = new DisManager( configuration );
 		this.logger = this.configuration.getApplicationLogger();
+
+		// Live entity state, one partition per pipeline shard
+		DisConfiguration disConfiguration = configuration.getDisConfiguration();
+		this.entityTable = new ShardedEntityTable( disManager.getPipeline().getShardCount(),
+		                                           disConfiguration.getExpectedEntityCount(),
+		                                           disConfiguration.isEntityTableOffHeap(),
+		                                           logger );
+		this.spatialIndex = null;
+		if( disConfiguration.isSpatialIndexEnabled() )
+		{
+			this.spatialIndex = new ShardedSpatialIndex( entityTable,
+			                                             disConfiguration.getSpatialCellSize(),
+			                                             disConfiguration.getExpectedEntityCount() );
+		}
+
+		long entityTimeout = disConfiguration.getEntityTimeout();
+		long now = System.currentTimeMillis();
+		PduListener[] updaters = this.disManager.addPduListenerFactory( shard -> {
+			EntityTableUpdater updater = new EntityTableUpdater( entityTable.getPartition(shard), entityTimeout, now );
+			if( spatialIndex != null )
+				updater.setSpatialIndex( spatialIndex.getPartition(shard) );
+			return updater;
+		});
+		this.entityTableUpdaters = new EntityTableUpdater[updaters.length];
+		for( int i = 0; i < updaters.length; i++ )
+			this.entityTableUpdaters[i] = (EntityTableUpdater)updaters[i];
+
+		this.entityStateWriters = null; // needs influx, set in startup()
+
+		// Rolled up entity state is the last known state in each bucket
+		this.influxManager.getSchemaManager().addRollup( EntityStateWriter.MEASUREMENT, "last", EntityStateWriter.FIELDS );
+
+		// Metrics about ourselves. Counting is always on; reporting them is optional.
+		this.metrics = new MetricsRegistry();
+		this.metricsReporter = null; // set in startup() if enabled
+		this.influxManager.setMetrics( metrics );
+		this.disManager.setMetrics( metrics );
+		this.disManager.addPduListener( (buffer,receiveTime) -> metrics.recordPdu(buffer) );
+		this.httpManager = new HttpManager( configuration );
+
+		// Everything we hear, as it came off the wire
+		this.recorder = null;
+		if( configuration.getRecorderConfiguration().isEnabled() )
+		{
+			this.recorder = new PduRecorder( configuration.getRecorderConfiguration(), logger );
+			this.disManager.setRecorder( recorder );
+		}
+
+		this.terminated = new CountDownLatch( 1 );
 	}
 
 	//----------------------------------------------------------
@@ -51,18 +137,318 @@ public class DisOpsServer
 	public void startup()
 	{
 		this.logger.info( "Starting DisOps Server" );
+		long started = System.currentTimeMillis();
 		this.influxManager.startup();
+
+		// Entity State points go to the bulk sink, which only exists once influx is up.
+		// DR state is per entity, so each shard gets its own filter.
+		InfluxConfiguration influxConfiguration = configuration.getInfluxConfiguration();
+		int shards = disManager.getPipeline().getShardCount();
+		int expectedEntities = configuration.getDisConfiguration().getExpectedEntityCount() / shards;
+		PduListenerFactory writerFactory = shard -> {
+			DeadReckoningFilter filter = null;
+			if( influxConfiguration.isEntityDeadReckoningEnabled() )
+			{
+				filter = new DeadReckoningFilter( influxConfiguration.getEntityPositionThreshold(),
+				                                  influxConfiguration.getEntityOrientationThreshold(),
+				                                  influxConfiguration.getEntityKeyframeInterval(),
+				                                  expectedEntities );
+			}
+			EntityStateWriter writer = new EntityStateWriter( influxManager.getBulkSink(),
+			                                                  filter,
+			                                                  influxConfiguration.getEntityTagCapacity() );
+			writer.setLatencyHistogram( metrics.getIngestLatency() );
+			return writer;
+		};
+
+		PduListener[] writers = this.disManager.addPduListenerFactory( writerFactory );
+		this.entityStateWriters = new EntityStateWriter[writers.length];
+		for( int i = 0; i < writers.length; i++ )
+			this.entityStateWriters[i] = (EntityStateWriter)writers[i];
+
+		// Departures go to influx, and a departed entity's DR state can go. The updater and
+		// the writer for a shard run on the same thread, so the filter can be touched directly.
+		for( int i = 0; i < shards; i++ )
+		{
+			entityTableUpdaters[i].addDepartureListener( new EntityDepartureWriter(influxManager.getBulkSink()) );
+			DeadReckoningFilter filter = entityStateWriters[i].getFilter();
+			if( filter != null )
+				entityTableUpdaters[i].addDepartureListener( (entity,departed) -> filter.remove(entity.id) );
+		}
+
+		if( this.recorder != null )
+			this.recorder.startup();
+
+		this.disManager.startup();
+
+		registerGauges();
+		if( influxConfiguration.isMetricsEnabled() )
+		{
+			this.metricsReporter = new MetricsReporter( metrics,
+			                                            influxManager.getMetricsSink(),
+			                                            influxConfiguration.getMetricsInterval(),
+			                                            logger );
+			this.metricsReporter.startup();
+		}
+
+		// Metrics for scraping. Last up, so everything it reads from is already running.
+		HttpConfiguration httpConfiguration = configuration.getHttpConfiguration();
+		if( httpConfiguration.isEnabled() )
+		{
+			this.httpManager.addHandler( httpConfiguration.getMetricsPath(),
+			                             new PrometheusHandler(metrics,disManager.getPipeline(),influxManager,logger) );
+			this.httpManager.startup();
+		}
+
+		logger.info( "DisOps Server ready in %dms", System.currentTimeMillis()-started );
 	}
 	
 	public void shutdown()
 	{
+		if( this.terminated.getCount() == 0 )
+			return;
+
 		this.logger.info( "Shutting down DisOps Server" );
+		this.httpManager.shutdown();
+		
+		// stop the flow of traffic before we take down its destination
+		this.disManager.shutdown();
+		if( this.recorder != null )
+			this.recorder.shutdown();
+
+		if( this.metricsReporter != null )
+		{
+			// one last report with the final counts, while influx is still up
+			this.metricsReporter.shutdown();
+			this.metricsReporter = null;
+		}
+
+		if( this.entityStateWriters != null )
+		{
+			long received = 0, written = 0, keyframes = 0;
+			for( EntityStateWriter writer : entityStateWriters )
+			{
+				this.disManager.removePduListener( writer );
+				DeadReckoningFilter filter = writer.getFilter();
+				if( filter != null )
+				{
+					received += filter.getReceived();
+					written += filter.getWritten();
+					keyframes += filter.getKeyframes();
+				}
+			}
+
+			if( received > 0 )
+			{
+				logger.info( "Entity State suppression: received=%d, written=%d (keyframes=%d), suppressed=%d",
+				             received, written, keyframes, received-written );
+			}
+
+			this.entityStateWriters = null;
+		}
+
 		this.influxManager.shutdown();
+		this.terminated.countDown();
+	}
+
+	/** Gauges for the numbers components already keep, read when metrics are reported */
+	private void registerGauges()
+	{
+		PduPipeline pipeline = disManager.getPipeline();
+		metrics.addGauge( "packets_received", disManager::getPacketsReceived );
+		metrics.addGauge( "bytes_received", disManager::getBytesReceived );
+		metrics.addGauge( "pipeline_processed", pipeline::getProcessed );
+		metrics.addGauge( "pipeline_dropped", pipeline::getDropped );
+		metrics.addGauge( "pipeline_runts", pipeline::getRunts );
+		metrics.addGauge( "packet_errors", disManager::getPacketErrors );
+		metrics.addGauge( "pipeline_queued_bytes", () -> {
+			long total = 0;
+			for( int i = 0; i < pipeline.getShardCount(); i++ )
+				total += pipeline.getQueueDepth( i );
+			return total;
+		});
+		metrics.addGauge( "entities", entityTable::size );
+		metrics.addGauge( "entities_rejected", entityTable::getRejected );
+		metrics.addGauge( "entities_departed", () -> {
+			long total = 0;
+			for( EntityTableUpdater updater : entityTableUpdaters )
+				total += updater.getDeparted();
+			return total;
+		});
+		if( spatialIndex != null )
+		{
+			metrics.addGauge( "spatial_cells", spatialIndex::getCellCount );
+			metrics.addGauge( "spatial_bytes", spatialIndex::getMemoryUsage );
+		}
+
+		InfluxWriter writer = influxManager.getWriter();
+		metrics.addGauge( "influx_points", writer::getPointsWritten );
+		metrics.addGauge( "influx_batches", writer::getBatchesWritten );
+		metrics.addGauge( "influx_batches_failed", writer::getBatchesFailed );
+		metrics.addGauge( "influx_in_flight", writer::getInFlight );
+		metrics.addGauge( "influx_spill_bytes", writer::getSpillDepth );
+
+		if( recorder != null )
+		{
+			metrics.addGauge( "recorder_pdus", recorder::getPdusRecorded );
+			metrics.addGauge( "recorder_bytes", recorder::getBytesRecorded );
+			metrics.addGauge( "recorder_dropped", recorder::getDropped );
+			metrics.addGauge( "recorder_queued_bytes", recorder::getQueueDepth );
+			metrics.addGauge( "recorder_segments", recorder::getSegmentCount );
+
+			SegmentCompressor compressor = recorder.getCompressor();
+			if( compressor != null )
+			{
+				metrics.addGauge( "recorder_compress_queued", compressor::getQueued );
+				metrics.addGauge( "recorder_compressed_segments", compressor::getSegmentsCompressed );
+				metrics.addGauge( "recorder_compress_failed", compressor::getSegmentsFailed );
+				metrics.addGauge( "recorder_compress_in_bytes", compressor::getBytesIn );
+				metrics.addGauge( "recorder_compress_out_bytes", compressor::getBytesOut );
+			}
+		}
+
+		metrics.addGauge( "entity_tag_hits", () -> sumTagDictionaries(TagDictionary::getHits) );
+		metrics.addGauge( "entity_tag_misses", () -> sumTagDictionaries(TagDictionary::getMisses) );
+		metrics.addGauge( "entity_tag_evictions", () -> sumTagDictionaries(TagDictionary::getEvictions) );
+		metrics.addGauge( "entity_tag_hit_percent", () -> {
+			long hits = sumTagDictionaries( TagDictionary::getHits );
+			long total = hits + sumTagDictionaries( TagDictionary::getMisses );
+			return total == 0 ? 0 : hits * 100 / total;
+		});
+		metrics.addGauge( "entity_tag_bytes", () -> sumTagDictionaries(TagDictionary::getMemoryUsage) );
+		metrics.addGauge( "entity_fields_skipped", () -> {
+			long total = 0;
+			for( EntityStateWriter stateWriter : entityStateWriters )
+				total += stateWriter.getSkippedFields();
+			return total;
+		});
+
+		QueryCache cache = influxManager.getQueryCache();
+		if( cache != null )
+		{
+			metrics.addGauge( "query_cache_hits", cache::getHits );
+			metrics.addGauge( "query_cache_misses", cache::getMisses );
+			metrics.addGauge( "query_cache_coalesced", cache::getCoalesced );
+			metrics.addGauge( "query_cache_evictions", cache::getEvictions );
+			metrics.addGauge( "query_cache_hit_percent", cache::getHitRate );
+			metrics.addGauge( "query_cache_entries", cache::getEntryCount );
+			metrics.addGauge( "query_cache_bytes", cache::getMemoryUsage );
+		}
+	}
+
+	private long sumTagDictionaries( ToLongFunction<TagDictionary> counter )
+	{
+		long total = 0;
+		for( EntityStateWriter writer : entityStateWriters )
+		{
+			for( TagDictionary dictionary : writer.getTagDictionaries() )
+				total += counter.applyAsLong( dictionary );
+		}
+
+		return total;
+	}
+
+	/**
+	 * Block until the server has been shut down (by another thread or a shutdown hook).
+	 */
+	public void awaitShutdown() throws InterruptedException
+	{
+		this.terminated.await();
+	}
+
+	/**
+	 * Register a listener that will be handed every PDU received from the DIS network.
+	 * See {@link PduListener} for the rules on what listeners can and can't do.
+	 */
+	public void addPduListener( PduListener listener )
+	{
+		this.disManager.addPduListener( listener );
+	}
+
+	/**
+	 * Register a listener per pipeline shard. Use this for listeners that keep per-entity
+	 * state, as each instance only ever sees the PDUs for its own shard, on a single thread.
+	 */
+	public void addPduListenerFactory( PduListenerFactory factory )
+	{
+		this.disManager.addPduListenerFactory( factory );
+	}
+
+	public void removePduListener( PduListener listener )
+	{
+		this.disManager.removePduListener( listener );
+	}
+
+	/**
+	 * Register a listener to be told when an entity times out (see
+	 * {@link DisConfiguration#getEntityTimeout()}). The listener is called from every pipeline
+	 * shard, so it must be thread safe.
+	 */
+	public void addEntityDepartureListener( EntityDepartureListener listener )
+	{
+		for( EntityTableUpdater updater : entityTableUpdaters )
+			updater.addDepartureListener( listener );
+	}
+
+	public void removeEntityDepartureListener( EntityDepartureListener listener )
+	{
+		for( EntityTableUpdater updater : entityTableUpdaters )
+			updater.removeDepartureListener( listener );
 	}
 
 	////////////////////////////////////////////////////////////////////////////////////////////
 	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
 	////////////////////////////////////////////////////////////////////////////////////////////
+	public Configuration getConfiguration()
+	{
+		return this.configuration;
+	}
+
+	public InfluxManager getInfluxManager()
+	{
+		return this.influxManager;
+	}
+
+	public DisManager getDisManager()
+	{
+		return this.disManager;
+	}
+
+	public HttpManager getHttpManager()
+	{
+		return this.httpManager;
+	}
+
+	/** @return The raw PDU recorder, or null if recording is disabled */
+	public PduRecorder getRecorder()
+	{
+		return this.recorder;
+	}
+
+	/** @return Counters and histograms DisOps keeps about its own operation */
+	public MetricsRegistry getMetrics()
+	{
+		return this.metrics;
+	}
+
+	/**
+	 * @return The table holding the latest state of every entity we've heard from. Any
+	 *         thread may read from it.
+	 */
+	public ShardedEntityTable getEntityTable()
+	{
+		return this.entityTable;
+	}
+
+	/**
+	 * @return Index of where every entity in the entity table is, for finding what is in a
+	 *         {@link org.openlvc.disops.server.entity.Region Region}, or null if it is
+	 *         disabled. Any thread may query it.
+	 */
+	public ShardedSpatialIndex getSpatialIndex()
+	{
+		return this.spatialIndex;
+	}
 
 	//----------------------------------------------------------
 	//                     STATIC METHODS
@@ -0,0 +1,238 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a child process run by the {@link ProcessSupervisor} (influxd, telegraf and so
+ * on) and holds its runtime state: the current process, whether it is ready, how often it
+ * has been restarted and how long each phase of its last start took.
+ * <p/>
+ * Readiness is decided by polling an HTTP URL (the /ping style endpoints all of the TICK
+ * components provide) until it answers with a 2xx. Processes that have no such endpoint are
+ * considered ready once they have stayed up for a short grace period.
+ */
+public class ManagedProcess
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public enum State { Stopped, Starting, Ready, Restarting, Failed };
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	// Definition
+	private final String name;
+	private final List<String> command;
+	private final Map<String,String> environment;
+	private File workingDirectory;
+	private ProcessOutputPump.LineParser outputParser;
+	private String readinessUrl;
+	private int restartLimit;
+	private boolean required;
+
+	// Runtime state - written by the supervisor
+	volatile Process process;
+	volatile State state;
+	volatile boolean stopping;
+	volatile long startedAt;       // millis since epoch of the last launch
+	volatile long spawnMillis;     // time to get the OS process going
+	volatile long readyMillis;     // time from spawn to ready
+	volatile int probes;           // readiness probes made during the last start
+	volatile int restarts;         // total restarts since the supervisor started
+	volatile int recentRestarts;   // restarts without a stable run in between
+	volatile int lastExitCode;
+	Thread watcher;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ManagedProcess( String name, List<String> command )
+	{
+		this.name = name;
+		this.command = new ArrayList<>( command );
+		this.environment = new HashMap<>();
+		this.workingDirectory = null;
+		this.outputParser = null;
+		this.readinessUrl = null;
+		this.restartLimit = 5;
+		this.required = true;
+
+		this.process = null;
+		this.state = State.Stopped;
+		this.stopping = false;
+		this.startedAt = 0;
+		this.spawnMillis = 0;
+		this.readyMillis = 0;
+		this.probes = 0;
+		this.restarts = 0;
+		this.recentRestarts = 0;
+		this.lastExitCode = 0;
+		this.watcher = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** @return Builder for the process, with the command and environment set up */
+	ProcessBuilder createBuilder()
+	{
+		ProcessBuilder builder = new ProcessBuilder( command );
+		builder.environment().putAll( environment );
+		builder.redirectErrorStream( true );
+		if( workingDirectory != null )
+			builder.directory( workingDirectory );
+
+		return builder;
+	}
+
+	public boolean isAlive()
+	{
+		Process current = this.process;
+		return current != null && current.isAlive();
+	}
+
+	public String toString()
+	{
+		return this.name;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public List<String> getCommand()
+	{
+		return this.command;
+	}
+
+	/** Set an environment variable for the process, overriding any inherited value */
+	public void setEnvironment( String key, String value )
+	{
+		this.environment.put( key, value );
+	}
+
+	public void setWorkingDirectory( File directory )
+	{
+		this.workingDirectory = directory;
+	}
+
+	/** @return Parser that sees each line of the process' output, or null if there isn't one */
+	public ProcessOutputPump.LineParser getOutputParser()
+	{
+		return this.outputParser;
+	}
+
+	/** Have each line the process writes to stdout/stderr passed to the given parser */
+	public void setOutputParser( ProcessOutputPump.LineParser parser )
+	{
+		this.outputParser = parser;
+	}
+
+	/** @return The URL polled to decide if the process is ready, or null if there isn't one */
+	public String getReadinessUrl()
+	{
+		return this.readinessUrl;
+	}
+
+	public void setReadinessUrl( String url )
+	{
+		this.readinessUrl = url;
+	}
+
+	/** @return Restarts allowed in a row (without a stable run between) before giving up */
+	public int getRestartLimit()
+	{
+		return this.restartLimit;
+	}
+
+	public void setRestartLimit( int limit )
+	{
+		this.restartLimit = limit;
+	}
+
+	/** @return True if the supervisor should fail to start when this process can't be started */
+	public boolean isRequired()
+	{
+		return this.required;
+	}
+
+	public void setRequired( boolean required )
+	{
+		this.required = required;
+	}
+
+	public State getState()
+	{
+		return this.state;
+	}
+
+	public boolean isReady()
+	{
+		return this.state == State.Ready;
+	}
+
+	/** @return Millis taken to spawn the OS process during the last start */
+	public long getSpawnMillis()
+	{
+		return this.spawnMillis;
+	}
+
+	/** @return Millis from spawning to passing the readiness check during the last start */
+	public long getReadyMillis()
+	{
+		return this.readyMillis;
+	}
+
+	/** @return Readiness probes made during the last start */
+	public int getProbeCount()
+	{
+		return this.probes;
+	}
+
+	/** @return Times the process has been restarted after exiting unexpectedly */
+	public int getRestartCount()
+	{
+		return this.restarts;
+	}
+
+	public int getLastExitCode()
+	{
+		return this.lastExitCode;
+	}
+
+	/** @return Millis the current process has been running, 0 if it isn't */
+	public long getUptime()
+	{
+		return isAlive() ? System.currentTimeMillis() - startedAt : 0;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
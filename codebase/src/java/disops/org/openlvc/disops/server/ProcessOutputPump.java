@@ -0,0 +1,309 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Drains the combined stdout/stderr of the {@link ManagedProcess}es and sends it to log4j.
+ * <p/>
+ * Each process gets a reader thread that pulls its output in large chunks and splits it
+ * into lines. Lines are handed to the process' {@link LineParser} (if it has one) and then
+ * put on a bounded queue. A single logging thread takes them off the queue and writes them
+ * to a logger named <code>disops.process.&lt;name&gt;</code>, so each process can be
+ * levelled or routed to its own appender in the log4j config.
+ * <p/>
+ * The reader never blocks on the queue. If the logging side can't keep up (a very chatty
+ * influxd writing to a slow console, say) lines are dropped and counted rather than letting
+ * the pipe fill, which would stall the child process. The parser still sees every line, so
+ * the counters it keeps stay accurate while logging is being dropped.
+ */
+public class ProcessOutputPump
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int READ_SIZE = 65536;
+	private static final int MAX_LINE = 8192;   // longer lines are truncated
+	private static final String LOGGER_PREFIX = "disops.process.";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Logger logger;
+	private final BlockingQueue<Line> queue;
+	private Thread dispatcher;
+	private volatile boolean running;
+
+	// Statistics - read and dropped are bumped by every reader thread
+	private final AtomicLong linesRead;
+	private final AtomicLong linesDropped;
+	private volatile long linesLogged;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param logger   Logger to report problems with the pump itself on
+	 * @param capacity Lines that can be waiting to be logged before we start dropping
+	 */
+	public ProcessOutputPump( Logger logger, int capacity )
+	{
+		this.logger = logger;
+		this.queue = new ArrayBlockingQueue<>( Math.max(1,capacity) );
+		this.dispatcher = null; // set in startup()
+		this.running = false;
+
+		this.linesRead = new AtomicLong();
+		this.linesDropped = new AtomicLong();
+		this.linesLogged = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public synchronized void startup()
+	{
+		if( this.running )
+			return;
+
+		this.running = true;
+		this.dispatcher = new Thread( this::dispatch, "process-output" );
+		this.dispatcher.setDaemon( true );
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Stop the logging thread once it has written out whatever is queued. Call this after
+	 * the processes have been stopped so their last words make it to the log.
+	 */
+	public synchronized void shutdown()
+	{
+		if( !this.running )
+			return;
+
+		this.running = false;
+		try
+		{
+			this.dispatcher.join( 2000 );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if( linesDropped.get() > 0 )
+			logger.warn( "Process output: %d lines dropped (logging couldn't keep up)", linesDropped.get() );
+	}
+
+	/**
+	 * Start pumping the output of a newly launched process. The reader thread ends by itself
+	 * when the process exits and its output is closed.
+	 */
+	public void attach( ManagedProcess managed, Process process )
+	{
+		Logger target = LogManager.getFormatterLogger( LOGGER_PREFIX+managed.getName() );
+		Thread reader = new Thread( () -> read(process.getInputStream(),target,managed.getOutputParser()),
+		                            "output-"+managed.getName() );
+		reader.setDaemon( true );
+		reader.start();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading and Dispatching Methods   //////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** Body of a reader thread. Reads in bulk and splits into lines until the stream ends. */
+	private void read( InputStream stream, Logger target, LineParser parser )
+	{
+		byte[] chunk = new byte[READ_SIZE];
+		byte[] line = new byte[MAX_LINE];
+		int length = 0;
+		try
+		{
+			int read;
+			while( (read=stream.read(chunk)) != -1 )
+			{
+				for( int i = 0; i < read; i++ )
+				{
+					byte b = chunk[i];
+					if( b == '\n' )
+					{
+						emit( line, length, target, parser );
+						length = 0;
+					}
+					else if( length < MAX_LINE )
+					{
+						line[length++] = b;
+					}
+				}
+			}
+		}
+		catch( IOException ioex )
+		{
+			// the process has gone and taken its pipe with it
+		}
+		finally
+		{
+			if( length > 0 )
+				emit( line, length, target, parser );
+
+			try
+			{
+				stream.close();
+			}
+			catch( IOException ioex )
+			{
+				// ignore
+			}
+		}
+	}
+
+	private void emit( byte[] bytes, int length, Logger target, LineParser parser )
+	{
+		// Windows line endings
+		if( length > 0 && bytes[length-1] == '\r' )
+			--length;
+		if( length == 0 )
+			return;
+
+		linesRead.incrementAndGet();
+		String text = new String( bytes, 0, length, StandardCharsets.UTF_8 );
+		if( parser != null )
+		{
+			try
+			{
+				parser.parse( text );
+			}
+			catch( RuntimeException re )
+			{
+				logger.debug( "Exception parsing process output: "+re.getMessage(), re );
+			}
+		}
+
+		if( !running || !queue.offer(new Line(target,text)) )
+			linesDropped.incrementAndGet();
+	}
+
+	/** Body of the logging thread */
+	private void dispatch()
+	{
+		try
+		{
+			while( running || !queue.isEmpty() )
+			{
+				Line line = queue.poll( 100, TimeUnit.MILLISECONDS );
+				if( line == null )
+					continue;
+
+				// formatter loggers treat the message as a format string, so pass it as an argument
+				line.logger.log( levelOf(line.text), "%s", line.text );
+				++linesLogged;
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			// shutting down
+		}
+	}
+
+	/**
+	 * Pick a level from the markers the TICK components put in their lines. Current versions
+	 * log in logfmt with <code>lvl=</code>, older ones prefix lines with <code>[E]</code> etc.
+	 */
+	private Level levelOf( String text )
+	{
+		if( text.contains("lvl=error") || text.startsWith("[E]") || text.contains(" E! ") )
+			return Level.ERROR;
+		else if( text.contains("lvl=warn") || text.startsWith("[W]") || text.contains(" W! ") )
+			return Level.WARN;
+		else if( text.contains("lvl=debug") || text.startsWith("[D]") || text.contains(" D! ") )
+			return Level.DEBUG;
+		else
+			return Level.INFO;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Lines read from all processes */
+	public long getLinesRead()
+	{
+		return this.linesRead.get();
+	}
+
+	public long getLinesLogged()
+	{
+		return this.linesLogged;
+	}
+
+	/** @return Lines not logged because the queue was full */
+	public long getLinesDropped()
+	{
+		return this.linesDropped.get();
+	}
+
+	/** @return Lines waiting to be logged */
+	public int getQueueDepth()
+	{
+		return this.queue.size();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Line Parser   /////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Picks information out of the output of a process as it is read. Called on the reader
+	 * thread for the process, once for every line (without the line terminator), whether or
+	 * not the line ends up being logged. Must be quick - the process can't write while we
+	 * aren't reading.
+	 */
+	public interface LineParser
+	{
+		public void parse( String line );
+	}
+
+	private static class Line
+	{
+		final Logger logger;
+		final String text;
+
+		Line( Logger logger, String text )
+		{
+			this.logger = logger;
+			this.text = text;
+		}
+	}
+}
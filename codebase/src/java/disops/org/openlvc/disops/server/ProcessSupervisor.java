@@ -0,0 +1,401 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.Utils;
+
+/**
+ * Starts, watches and stops a set of {@link ManagedProcess}es.
+ * <p/>
+ * <b>Startup:</b> All processes are launched at the same time, each on its own thread, and
+ * each is then polled for readiness with an exponential backoff (starting at a few millis
+ * so a fast starter is picked up quickly, capped so a slow one isn't hammered). Startup
+ * returns as soon as the last one is ready, rather than after some fixed sleep. The time
+ * spent spawning and waiting for readiness is recorded for each process and logged.
+ * <p/>
+ * <b>Supervision:</b> Once ready, a watcher thread waits on each process. If one exits
+ * without being asked to it is restarted after a backoff that grows with each consecutive
+ * failure. A process that stays up for a minute is considered stable again and its backoff
+ * resets. After too many consecutive failures the supervisor gives up on it.
+ * <p/>
+ * <b>Shutdown:</b> Processes are stopped in the reverse of the order they were added, so
+ * anything added after (and depending on) influxd is taken down first. Each is asked to
+ * stop nicely and killed if it hasn't gone after a timeout.
+ * <p/>
+ * The output of every process is drained by a {@link ProcessOutputPump} into log4j.
+ */
+public class ProcessSupervisor
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long PROBE_DELAY_MIN = 10;
+	private static final long PROBE_DELAY_MAX = 500;
+	private static final int  PROBE_TIMEOUT = 1000;
+	private static final long GRACE_PERIOD = 500;      // readiness for processes with no URL
+	private static final long STABLE_UPTIME = 60000;
+	private static final long RESTART_BACKOFF_MIN = 1000;
+	private static final long RESTART_BACKOFF_MAX = 30000;
+	private static final long STOP_TIMEOUT = 10000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Logger logger;
+	private final long startupTimeout;
+	private final List<ManagedProcess> processes;
+	private final ProcessOutputPump outputPump;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param logger         Logger to report on
+	 * @param startupTimeout Millis a process has to become ready before we consider it failed
+	 * @param outputBuffer   Lines of process output that can be queued for logging
+	 */
+	public ProcessSupervisor( Logger logger, long startupTimeout, int outputBuffer )
+	{
+		this.logger = logger;
+		this.startupTimeout = startupTimeout;
+		this.processes = new ArrayList<>();
+		this.outputPump = new ProcessOutputPump( logger, outputBuffer );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Add a process to be managed. Must be called before {@link #startup()}.
+	 */
+	public void add( ManagedProcess process )
+	{
+		this.processes.add( process );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Launch all processes in parallel and wait until they are all ready.
+	 *
+	 * @throws DisOpsException If a required process can't be started or isn't ready in time.
+	 *                         Anything that was started is stopped again before this is thrown.
+	 */
+	public void startup() throws DisOpsException
+	{
+		if( processes.isEmpty() )
+			return;
+
+		this.outputPump.startup();
+
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + startupTimeout;
+		ExecutorService launcher = Executors.newFixedThreadPool( processes.size(), runnable -> {
+			Thread thread = new Thread( runnable, "supervisor-launch" );
+			thread.setDaemon( true );
+			return thread;
+		});
+
+		List<Future<?>> futures = new ArrayList<>();
+		for( ManagedProcess process : processes )
+		{
+			futures.add( launcher.submit(() -> {
+				launch( process );
+				awaitReady( process, deadline );
+				return null;
+			}) );
+		}
+
+		DisOpsException failure = null;
+		for( int i = 0; i < processes.size(); i++ )
+		{
+			ManagedProcess process = processes.get( i );
+			try
+			{
+				futures.get(i).get();
+				logger.info( "%s ready in %dms (spawn=%dms, readiness=%dms, probes=%d)",
+				             process, process.spawnMillis+process.readyMillis, process.spawnMillis,
+				             process.readyMillis, process.probes );
+				startWatcher( process );
+			}
+			catch( ExecutionException ee )
+			{
+				process.state = ManagedProcess.State.Failed;
+				destroy( process );
+				String message = "Could not start "+process+": "+ee.getCause().getMessage();
+				if( process.isRequired() )
+				{
+					if( failure == null )
+						failure = new DisOpsException( message, ee.getCause() );
+				}
+				else
+				{
+					logger.error( message+" (continuing without it)" );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				failure = new DisOpsException( "Interrupted while starting managed processes" );
+				break;
+			}
+		}
+
+		launcher.shutdownNow();
+		if( failure != null )
+		{
+			shutdown();
+			throw failure;
+		}
+
+		logger.info( "Managed processes ready in %dms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start) );
+	}
+
+	/**
+	 * Stop all processes, in the reverse order they were added.
+	 */
+	public void shutdown()
+	{
+		List<ManagedProcess> reversed = new ArrayList<>( processes );
+		Collections.reverse( reversed );
+		for( ManagedProcess process : reversed )
+			stop( process );
+
+		this.outputPump.shutdown();
+	}
+
+	private void launch( ManagedProcess process ) throws IOException
+	{
+		process.state = ManagedProcess.State.Starting;
+		long start = System.nanoTime();
+		process.process = process.createBuilder().start();
+		outputPump.attach( process, process.process );
+		process.startedAt = System.currentTimeMillis();
+		process.spawnMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime()-start );
+	}
+
+	/**
+	 * Poll the process until it's ready, it dies or we pass the deadline.
+	 */
+	private void awaitReady( ManagedProcess process, long deadline ) throws DisOpsException
+	{
+		long start = System.nanoTime();
+		long delay = PROBE_DELAY_MIN;
+		String url = process.getReadinessUrl();
+		process.probes = 0;
+		while( true )
+		{
+			if( !process.isAlive() )
+			{
+				throw new DisOpsException( process+" exited during startup (code "+
+				                           process.process.exitValue()+")" );
+			}
+
+			if( url == null )
+			{
+				if( System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(GRACE_PERIOD) )
+					break;
+			}
+			else
+			{
+				++process.probes;
+				if( probe(url) )
+					break;
+			}
+
+			if( System.currentTimeMillis() > deadline )
+				throw new DisOpsException( process+" was not ready within "+startupTimeout+"ms" );
+
+			Utils.sleep( delay );
+			delay = Math.min( delay*2, PROBE_DELAY_MAX );
+		}
+
+		process.readyMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime()-start );
+		process.state = ManagedProcess.State.Ready;
+	}
+
+	/** @return True if the URL answers with a 2xx */
+	private boolean probe( String url )
+	{
+		HttpURLConnection connection = null;
+		try
+		{
+			connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setConnectTimeout( PROBE_TIMEOUT );
+			connection.setReadTimeout( PROBE_TIMEOUT );
+			int code = connection.getResponseCode();
+			return code >= 200 && code < 300;
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+		finally
+		{
+			if( connection != null )
+				connection.disconnect();
+		}
+	}
+
+	private void stop( ManagedProcess process )
+	{
+		process.stopping = true;
+		if( process.watcher != null )
+			process.watcher.interrupt();
+
+		if( process.isAlive() )
+		{
+			logger.info( "Stopping %s", process );
+			destroy( process );
+		}
+
+		process.state = ManagedProcess.State.Stopped;
+	}
+
+	/** Ask the process to exit, and kill it if it won't */
+	private void destroy( ManagedProcess process )
+	{
+		Process current = process.process;
+		if( current == null || !current.isAlive() )
+			return;
+
+		current.destroy();
+		try
+		{
+			if( !current.waitFor(STOP_TIMEOUT,TimeUnit.MILLISECONDS) )
+			{
+				logger.warn( "%s did not exit within %dms, killing it", process, STOP_TIMEOUT );
+				current.destroyForcibly();
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			current.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Supervision Methods   //////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void startWatcher( ManagedProcess process )
+	{
+		process.watcher = new Thread( () -> watch(process), "supervisor-"+process.getName() );
+		process.watcher.setDaemon( true );
+		process.watcher.start();
+	}
+
+	/** Body of the watcher thread. Waits for the process to exit and restarts it. */
+	private void watch( ManagedProcess process )
+	{
+		try
+		{
+			while( !process.stopping )
+			{
+				int code = process.process.waitFor();
+				if( process.stopping )
+					return;
+
+				process.lastExitCode = code;
+				long uptime = System.currentTimeMillis() - process.startedAt;
+				if( uptime >= STABLE_UPTIME )
+					process.recentRestarts = 0;
+
+				if( process.recentRestarts >= process.getRestartLimit() )
+				{
+					process.state = ManagedProcess.State.Failed;
+					logger.error( "%s exited (code %d) after %d restarts in a row, giving up on it",
+					              process, code, process.recentRestarts );
+					return;
+				}
+
+				long backoff = Math.min( RESTART_BACKOFF_MIN << process.recentRestarts, RESTART_BACKOFF_MAX );
+				process.state = ManagedProcess.State.Restarting;
+				logger.warn( "%s exited unexpectedly (code %d) after %s, restarting in %dms",
+				             process, code, Utils.formatDuration(uptime), backoff );
+				Thread.sleep( backoff );
+				if( process.stopping )
+					return;
+
+				++process.recentRestarts;
+				++process.restarts;
+				try
+				{
+					launch( process );
+					awaitReady( process, System.currentTimeMillis()+startupTimeout );
+					logger.info( "%s restarted and ready in %dms", process,
+					             process.spawnMillis+process.readyMillis );
+				}
+				catch( Exception e )
+				{
+					// we'll come around again with a longer backoff
+					logger.error( "Restart of %s failed: %s", process, e.getMessage() );
+					destroy( process );
+				}
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			// we are being stopped
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public List<ManagedProcess> getProcesses()
+	{
+		return Collections.unmodifiableList( this.processes );
+	}
+
+	public ProcessOutputPump getOutputPump()
+	{
+		return this.outputPump;
+	}
+
+	/** @return The process with the given name, or null if there isn't one */
+	public ManagedProcess getProcess( String name )
+	{
+		for( ManagedProcess process : processes )
+		{
+			if( process.getName().equals(name) )
+				return process;
+		}
+
+		return null;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,422 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.DisConfiguration;
+import org.openlvc.disops.metrics.MetricsRegistry;
+import org.openlvc.disops.server.recorder.PduRecorder;
+import org.openlvc.disops.utils.OS;
+
+/**
+ * This class manages the DIS network connection. It binds a set of non-blocking datagram
+ * channels (unicast/broadcast on the configured address, plus one per multicast group) and
+ * services them all from a single selector thread.
+ * <p/>
+ * When a channel becomes readable the receiver drains it completely before going back to
+ * the selector. Each packet is read into a direct buffer and routed straight into the
+ * {@link PduPipeline}, which hands it to the registered {@link PduListener}s on one of its
+ * shard threads. If a {@link PduRecorder} is set, the packet is also copied into its queue.
+ * The receiver does no other work, and keeping the socket drained and the SO_RCVBUF large is
+ * what stops the kernel dropping packets during bursts.
+ */
+public class DisManager
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Configuration configuration;
+	private DisConfiguration disConfiguration;
+	private Logger logger;
+
+	// Network Components
+	private Selector selector;
+	private List<DatagramChannel> channels;
+	private Receiver receiver;
+
+	// Processing stages the receiver hands packets to
+	private PduPipeline pipeline;
+	private MetricsRegistry metrics; // may be null
+	private PduRecorder recorder;    // may be null
+
+	// Statistics - written only by the receiver thread
+	private volatile long packetsReceived;
+	private volatile long bytesReceived;
+	private volatile long packetErrors;      // written only by the receiver
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public DisManager( Configuration configuration )
+	{
+		this.configuration = configuration;
+		this.disConfiguration = configuration.getDisConfiguration();
+		this.logger = null; // set in startup()
+
+		this.selector = null;
+		this.channels = new ArrayList<>();
+		this.receiver = null;
+
+		// created now so listeners can be registered before we start
+		this.pipeline = new PduPipeline( disConfiguration.getShardCount(),
+		                                 disConfiguration.getShardBufferSize() );
+
+		this.metrics = null;
+		this.recorder = null;
+		this.packetsReceived = 0;
+		this.packetErrors = 0;
+		this.bytesReceived = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup() throws DisOpsException
+	{
+		this.logger = this.configuration.getApplicationLogger();
+		this.logger.info( "Starting DIS receiver" );
+
+		this.pipeline.startup( logger );
+		if( disConfiguration.isReceiverEnabled() == false )
+		{
+			logger.info( "DIS receiver disabled, pipeline will only see injected traffic" );
+			return;
+		}
+
+		try
+		{
+			this.selector = Selector.open();
+
+			// Unicast/Broadcast on the configured address
+			InetAddress address = disConfiguration.getAddress();
+			int port = disConfiguration.getPort();
+			DatagramChannel channel = openChannel( new InetSocketAddress(address,port) );
+			channel.setOption( StandardSocketOptions.SO_BROADCAST, disConfiguration.isBroadcastEnabled() );
+			registerChannel( channel );
+			logger.info( "DIS unicast/broadcast receiver bound to %s:%d (broadcast=%s)",
+			             address.getHostAddress(), port, disConfiguration.isBroadcastEnabled() );
+
+			// Multicast - one channel per group. Where the OS allows it we bind to the group
+			// address itself so these channels don't also see copies of broadcast traffic.
+			// Windows won't let us do that, so there we fall back to the wildcard address.
+			NetworkInterface nic = disConfiguration.getNetworkInterface();
+			for( InetAddress group : disConfiguration.getMulticastGroups() )
+			{
+				NetworkInterface joinNic = nic != null ? nic : findMulticastInterface();
+				InetSocketAddress bindAddress = OS.getSystemOS() == OS.Windows ?
+					new InetSocketAddress(port) : new InetSocketAddress(group,port);
+
+				DatagramChannel mchannel = openChannel( bindAddress );
+				mchannel.setOption( StandardSocketOptions.IP_MULTICAST_IF, joinNic );
+				mchannel.join( group, joinNic );
+				registerChannel( mchannel );
+				logger.info( "DIS multicast receiver joined %s:%d on %s",
+				             group.getHostAddress(), port, joinNic.getName() );
+			}
+		}
+		catch( IOException ioex )
+		{
+			closeChannels();
+			pipeline.shutdown();
+			throw new DisOpsException( "Could not open DIS network channels: "+ioex.getMessage(), ioex );
+		}
+
+		this.receiver = new Receiver();
+		this.receiver.start();
+	}
+
+	public void shutdown()
+	{
+		if( this.receiver == null )
+		{
+			// receiver disabled, but the pipeline still needs to drain and stop
+			this.pipeline.shutdown();
+			return;
+		}
+
+		logger.info( "Shutting down DIS receiver [packets=%d, bytes=%d]", packetsReceived, bytesReceived );
+
+		// Closing the selector kicks the receiver out of select()
+		this.receiver.interrupt();
+		closeChannels();
+
+		try
+		{
+			this.receiver.join( 2000 );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		this.receiver = null;
+
+		// lets the shards finish what is queued before the writers go away
+		this.pipeline.shutdown();
+	}
+
+	private DatagramChannel openChannel( InetSocketAddress bindAddress ) throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open( StandardProtocolFamily.INET );
+		channel.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+		channel.setOption( StandardSocketOptions.SO_RCVBUF, disConfiguration.getSocketReceiveBufferSize() );
+		channel.bind( bindAddress );
+		channel.configureBlocking( false );
+
+		// let people know if the OS didn't give us what we asked for
+		int requested = disConfiguration.getSocketReceiveBufferSize();
+		int actual = channel.getOption( StandardSocketOptions.SO_RCVBUF );
+		if( actual < requested )
+		{
+			logger.warn( "Socket receive buffer capped by OS: requested=%d, actual=%d "+
+			             "(on Linux, raise net.core.rmem_max)", requested, actual );
+		}
+
+		return channel;
+	}
+
+	private void registerChannel( DatagramChannel channel ) throws IOException
+	{
+		channel.register( selector, SelectionKey.OP_READ );
+		this.channels.add( channel );
+	}
+
+	private NetworkInterface findMulticastInterface() throws IOException
+	{
+		for( NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces()) )
+		{
+			if( nic.isUp() && nic.supportsMulticast() && nic.getInetAddresses().hasMoreElements() )
+				return nic;
+		}
+
+		throw new DisOpsException( "Could not find a multicast capable network interface" );
+	}
+
+	private void closeChannels()
+	{
+		for( DatagramChannel channel : channels )
+		{
+			try
+			{
+				channel.close();
+			}
+			catch( IOException ioex )
+			{
+				logger.debug( "Exception closing DIS channel: "+ioex.getMessage(), ioex );
+			}
+		}
+
+		channels.clear();
+
+		try
+		{
+			if( selector != null )
+				selector.close();
+		}
+		catch( IOException ioex )
+		{
+			logger.debug( "Exception closing DIS selector: "+ioex.getMessage(), ioex );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Listener Management Methods   //////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Register a listener with every shard. See {@link PduPipeline#addPduListener(PduListener)}
+	 * for the threading rules.
+	 */
+	public void addPduListener( PduListener listener )
+	{
+		this.pipeline.addPduListener( listener );
+	}
+
+	/**
+	 * Register a separate listener with each shard.
+	 * 
+	 * @return The created listeners, indexed by shard
+	 */
+	public PduListener[] addPduListenerFactory( PduListenerFactory factory )
+	{
+		return this.pipeline.addPduListenerFactory( factory );
+	}
+
+	public void removePduListener( PduListener listener )
+	{
+		this.pipeline.removePduListener( listener );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public PduPipeline getPipeline()
+	{
+		return this.pipeline;
+	}
+
+	/**
+	 * Count received packets against their sender in the given registry. Must be set before
+	 * startup.
+	 */
+	public void setMetrics( MetricsRegistry metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Copy every received packet to the given recorder, in the order they arrive. Must be set
+	 * before startup. Injected traffic doesn't come through the receiver and isn't recorded.
+	 */
+	public void setRecorder( PduRecorder recorder )
+	{
+		this.recorder = recorder;
+	}
+
+	public long getPacketsReceived()
+	{
+		return this.packetsReceived;
+	}
+
+	public long getBytesReceived()
+	{
+		return this.bytesReceived;
+	}
+
+	/** @return Packets the receiver gave up on because handling them threw an exception */
+	public long getPacketErrors()
+	{
+		return this.packetErrors;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Receiver Thread   /////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private class Receiver extends Thread
+	{
+		private final ByteBuffer buffer;
+
+		Receiver()
+		{
+			super( "dis-receiver" );
+			setDaemon( true );
+			this.buffer = ByteBuffer.allocateDirect( disConfiguration.getPacketBufferSize() );
+		}
+
+		public void run()
+		{
+			try
+			{
+				while( !isInterrupted() )
+				{
+					if( selector.select() == 0 )
+						continue;
+
+					long receiveTime = System.currentTimeMillis();
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while( iterator.hasNext() )
+					{
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						drain( (DatagramChannel)key.channel(), receiveTime );
+					}
+				}
+			}
+			catch( ClosedSelectorException cse )
+			{
+				// we are shutting down
+			}
+			catch( IOException ioex )
+			{
+				logger.error( "DIS receiver stopped with exception: "+ioex.getMessage(), ioex );
+			}
+		}
+
+		/** Read everything the channel has queued before going back to the selector */
+		private void drain( DatagramChannel channel, long receiveTime ) throws IOException
+		{
+			while( true )
+			{
+				buffer.clear();
+				SocketAddress sender = channel.receive( buffer );
+				if( sender == null )
+					return;
+
+				buffer.flip();
+				++packetsReceived;
+				bytesReceived += buffer.remaining();
+				try
+				{
+					if( metrics != null )
+						metrics.recordSender( (InetSocketAddress)sender, buffer.remaining() );
+
+					// copied into the recorder's and shard's queues, so we can reuse the buffer straight away
+					if( recorder != null )
+						recorder.record( buffer, receiveTime );
+
+					pipeline.route( buffer, receiveTime );
+				}
+				catch( RuntimeException re )
+				{
+					// one bad packet mustn't take the receiver (and all ingest) down with it
+					packetFailed( sender, re );
+				}
+			}
+		}
+
+		private void packetFailed( SocketAddress sender, RuntimeException re )
+		{
+			if( packetErrors == 0 )
+				logger.warn( "Dropped packet from "+sender+" that could not be handled: "+re, re );
+			else
+				logger.debug( "Dropped packet from "+sender+" that could not be handled: "+re );
+
+			packetErrors = packetErrors+1;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by any component that wants to consume raw DIS PDUs as they arrive from the
+ * network. Listeners are registered with the {@link DisManager} (or through the DisOpsServer).
+ * <p/>
+ * Listeners are called on the shard threads of the {@link PduPipeline}, so they must be fast
+ * and must never block. A listener registered directly is called from every shard; one
+ * created through a {@link PduListenerFactory} is only ever called from its own shard.
+ * The buffer is positioned at the start of the PDU with its limit at the end of the packet.
+ * It is <b>only valid for the duration of the call</b>. It will be recycled as soon as the
+ * call returns, so anything that needs to be kept must be copied out. Listeners should use
+ * absolute get methods or restore the position if they move it, as the same buffer is handed
+ * to each listener in turn.
+ */
+public interface PduListener
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * A PDU has been received from the network.
+	 *
+	 * @param buffer      Buffer containing the PDU, from position to limit
+	 * @param receiveTime Time the packet was read from the socket (millis since the epoch)
+	 */
+	public void pduReceived( ByteBuffer buffer, long receiveTime );
+
+	/**
+	 * Called on the listener's shard thread every {@link PduPipeline#TICK_MILLIS} or so,
+	 * whether or not any PDUs are arriving, for listeners that need to act on time passing
+	 * (timeouts and the like). Never called at the same time as {@link #pduReceived}. Does
+	 * nothing by default.
+	 *
+	 * @param now The current time (millis since the epoch)
+	 */
+	public default void tick( long now )
+	{
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+/**
+ * Creates one {@link PduListener} for each shard of the {@link PduPipeline}. This is how
+ * components that keep per-entity state get a separate, single-threaded instance per shard
+ * instead of one instance that has to cope with being called from every shard at once.
+ * <p/>
+ * All PDUs from a given exercise and site land on the same shard, so the listener created
+ * for a shard sees every PDU for the entities it is responsible for.
+ */
+public interface PduListenerFactory
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @param shard Index of the shard the listener will be called from (0 to count-1)
+	 * @return The listener for that shard
+	 */
+	public PduListener createListener( int shard );
+
+}
@@ -0,0 +1,421 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.Utils;
+import org.openlvc.disops.server.dis.pdu.PduHeader;
+
+/**
+ * Spreads PDU processing across a set of shards so ingest isn't limited to a single core.
+ * <p/>
+ * The pipeline has three stages. The receive thread (stage one) does nothing but read a
+ * packet, peek at its exercise and site, and copy it into the {@link SpscRingBuffer} of the
+ * shard that owns that exercise/site. Each shard has its own thread (stage two) that drains
+ * its ring and hands the PDUs to its listeners, which decode them, update state and prepare
+ * writes. The writers they feed (stage three) batch and send on their own threads.
+ * <p/>
+ * Because every PDU from a given exercise and site goes to the same shard, state kept per
+ * entity only ever has a single writer, so it needs no locking. Components that keep such
+ * state should register a {@link PduListenerFactory} so each shard gets its own instance.
+ * <p/>
+ * If a shard falls behind and its ring fills, packets for it are dropped (and counted)
+ * rather than stalling the receive thread and every other shard with it. Packets too short
+ * to hold a PDU header are dropped (and counted) before they are routed.
+ */
+public class PduPipeline
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final PduListener[] NO_LISTENERS = new PduListener[0];
+
+	private static final int DRAIN_BATCH = 256;
+	private static final int IDLE_SPINS  = 100;
+	private static final int IDLE_YIELDS = 200;
+	private static final long IDLE_PARK_NANOS = 50000;
+
+	/** Roughly how often each shard calls {@link PduListener#tick(long)} on its listeners */
+	public static final long TICK_MILLIS = 100;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Shard[] shards;
+	private final AtomicLong runts;
+	private Logger logger;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param shardCount Number of processing shards (threads)
+	 * @param bufferSize Bytes of queue between the receive thread and each shard
+	 */
+	public PduPipeline( int shardCount, int bufferSize )
+	{
+		if( shardCount < 1 )
+			throw new IllegalArgumentException( "Shard count must be at least 1: "+shardCount );
+
+		this.shards = new Shard[shardCount];
+		for( int i = 0; i < shardCount; i++ )
+			this.shards[i] = new Shard( i, bufferSize );
+
+		this.runts = new AtomicLong( 0 );
+		this.logger = null; // set in startup()
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup( Logger logger )
+	{
+		this.logger = logger;
+		for( Shard shard : shards )
+			shard.start();
+
+		logger.info( "PDU pipeline started: shards=%d, queue=%s/shard", shards.length,
+		             Utils.bytesToString(shards[0].ring.getCapacity()) );
+	}
+
+	/**
+	 * Stop the shard threads. Anything already queued is processed before they exit.
+	 */
+	public void shutdown()
+	{
+		for( Shard shard : shards )
+			shard.running = false;
+
+		for( Shard shard : shards )
+		{
+			LockSupport.unpark( shard );
+			try
+			{
+				shard.join( 2000 );
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if( logger != null )
+			logger.info( "PDU pipeline stopped [processed=%d, dropped=%d, runts=%d]",
+			             getProcessed(), getDropped(), getRunts() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Routing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Queue a packet on the shard responsible for it. The packet is copied, so the buffer can
+	 * be reused as soon as this returns.
+	 * <p/>
+	 * Each shard's queue is single producer, so all the packets for a shard must come from
+	 * one thread. The easy way to get that is to route everything from one thread, as the
+	 * network receiver does. Several threads can route at once as long as no two of them
+	 * ever send to the same shard, which holds if traffic is split between them by
+	 * {@link #shardOf(int, int, int)} (the in-process traffic generator works this way). The
+	 * first thread to route to a shard becomes its producer. A second thread routing to it
+	 * while the first is still alive gets an {@link IllegalStateException}.
+	 *
+	 * @param packet      The packet, from position to limit
+	 * @param receiveTime Time it was received (millis since the epoch)
+	 * @return True if it was queued, false if it was dropped because the shard is full or the
+	 *         packet is too short to be a PDU
+	 */
+	public boolean route( ByteBuffer packet, long receiveTime )
+	{
+		if( packet.remaining() < PduHeader.HEADER_LENGTH )
+		{
+			runts.incrementAndGet();
+			return false;
+		}
+
+		Shard shard = shards[shardOf(packet)];
+		Thread current = Thread.currentThread();
+		if( shard.producer.get() != current )
+			claim( shard, current );
+
+		return shard.ring.offer( packet, receiveTime );
+	}
+
+	/** Make the given thread the shard's producer, unless another thread still is */
+	private void claim( Shard shard, Thread current )
+	{
+		Thread owner = shard.producer.get();
+		while( owner != current )
+		{
+			if( owner != null && owner.isAlive() )
+			{
+				throw new IllegalStateException( "Shard "+shard.index+" is fed by "+owner.getName()+
+				                                 ", it can't also take packets from "+current.getName() );
+			}
+
+			if( shard.producer.compareAndSet(owner,current) )
+				return;
+
+			owner = shard.producer.get();
+		}
+	}
+
+	/**
+	 * @return The index of the shard that will process the given packet. Anything too short
+	 *         to have a PDU header goes to the first shard.
+	 */
+	public int shardOf( ByteBuffer packet )
+	{
+		int start = packet.position();
+		if( shards.length == 1 || packet.limit()-start < PduHeader.HEADER_LENGTH )
+			return 0;
+
+		// Nearly every PDU starts its body with the ID of the entity that sent it, so the
+		// site we use is the first field after the 12 byte header (entity ID for Entity
+		// State and the radio PDUs, firing entity for Fire/Detonation, and so on).
+		int exercise = packet.get( start+1 ) & 0xff;
+		int site = packet.limit()-start >= 14 ? packet.getShort(start+12) & 0xffff : 0;
+		return shardOf( exercise, site, shards.length );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Listener Management Methods   //////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Register a single listener with every shard. If there is more than one shard it will be
+	 * called from several threads at once, so it must be thread safe. Listeners with state
+	 * should use {@link #addPduListenerFactory(PduListenerFactory)} instead.
+	 */
+	public void addPduListener( PduListener listener )
+	{
+		for( Shard shard : shards )
+			shard.addListener( listener );
+	}
+
+	/**
+	 * Register a separate listener with each shard, as created by the factory.
+	 *
+	 * @return The listeners that were created, indexed by shard
+	 */
+	public PduListener[] addPduListenerFactory( PduListenerFactory factory )
+	{
+		PduListener[] created = new PduListener[shards.length];
+		for( int i = 0; i < shards.length; i++ )
+		{
+			created[i] = factory.createListener( i );
+			shards[i].addListener( created[i] );
+		}
+
+		return created;
+	}
+
+	public void removePduListener( PduListener listener )
+	{
+		for( Shard shard : shards )
+			shard.removeListener( listener );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getShardCount()
+	{
+		return this.shards.length;
+	}
+
+	/** @return Bytes currently queued for the given shard */
+	public long getQueueDepth( int shard )
+	{
+		return shards[shard].ring.getDepth();
+	}
+
+	/** @return Packets processed by the given shard */
+	public long getProcessed( int shard )
+	{
+		return shards[shard].processed;
+	}
+
+	/** @return Packets processed across all shards */
+	public long getProcessed()
+	{
+		long total = 0;
+		for( Shard shard : shards )
+			total += shard.processed;
+
+		return total;
+	}
+
+	/** @return Packets dropped because the shard they were bound for was full */
+	public long getDropped()
+	{
+		long total = 0;
+		for( Shard shard : shards )
+			total += shard.ring.getRejected();
+
+		return total;
+	}
+
+	/** @return Packets dropped because they were too short to hold a PDU header */
+	public long getRunts()
+	{
+		return runts.get();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * The shard responsible for a given exercise and site. Anything else that partitions
+	 * state the same way as the pipeline (see EntityTable sharding) must use this.
+	 */
+	public static int shardOf( int exercise, int site, int shardCount )
+	{
+		int key = (exercise << 16) | site;
+		key *= 0x9E3779B9;           // golden ratio multiplicative hash
+		key ^= key >>> 16;
+		return (key & 0x7fffffff) % shardCount;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Shard Thread   ////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private class Shard extends Thread implements SpscRingBuffer.Handler
+	{
+		private final int index;
+		private final SpscRingBuffer ring;
+		private final AtomicReference<Thread> producer;  // the only thread that may offer to the ring
+		private volatile PduListener[] listeners;
+		private volatile boolean running;
+		private volatile long processed;  // written only by this thread
+
+		Shard( int index, int bufferSize )
+		{
+			super( "dis-shard-"+index );
+			setDaemon( true );
+			this.index = index;
+			this.ring = new SpscRingBuffer( bufferSize );
+			this.producer = new AtomicReference<>();
+			this.listeners = NO_LISTENERS;
+			this.running = true;
+			this.processed = 0;
+		}
+
+		public void run()
+		{
+			int idle = 0;
+			long lastTick = System.currentTimeMillis();
+			while( running )
+			{
+				long now = System.currentTimeMillis();
+				if( now-lastTick >= TICK_MILLIS )
+				{
+					tick( now );
+					lastTick = now;
+				}
+
+				if( ring.drain(this,DRAIN_BATCH) > 0 )
+				{
+					idle = 0;
+				}
+				else if( idle < IDLE_SPINS )
+				{
+					++idle;
+				}
+				else if( idle < IDLE_YIELDS )
+				{
+					++idle;
+					Thread.yield();
+				}
+				else
+				{
+					// the receiver never wakes us, so this bounds the latency after a lull
+					LockSupport.parkNanos( IDLE_PARK_NANOS );
+				}
+			}
+
+			// process whatever was left in the queue when we were stopped
+			while( ring.drain(this,DRAIN_BATCH) > 0 )
+				;
+		}
+
+		@Override
+		public void onPacket( ByteBuffer packet, long timestamp )
+		{
+			++processed;
+
+			int start = packet.position();
+			PduListener[] current = this.listeners;
+			for( int i = 0; i < current.length; i++ )
+			{
+				try
+				{
+					current[i].pduReceived( packet, timestamp );
+				}
+				catch( Exception e )
+				{
+					logger.warn( "Exception in PDU listener "+current[i]+" (shard "+index+"): "+
+					             e.getMessage(), e );
+				}
+
+				packet.position( start );
+			}
+		}
+
+		private void tick( long now )
+		{
+			PduListener[] current = this.listeners;
+			for( int i = 0; i < current.length; i++ )
+			{
+				try
+				{
+					current[i].tick( now );
+				}
+				catch( Exception e )
+				{
+					logger.warn( "Exception in PDU listener tick "+current[i]+" (shard "+index+"): "+
+					             e.getMessage(), e );
+				}
+			}
+		}
+
+		synchronized void addListener( PduListener listener )
+		{
+			PduListener[] updated = Arrays.copyOf( listeners, listeners.length+1 );
+			updated[listeners.length] = listener;
+			this.listeners = updated;
+		}
+
+		synchronized void removeListener( PduListener listener )
+		{
+			List<PduListener> list = new ArrayList<>( Arrays.asList(listeners) );
+			list.remove( listener );
+			this.listeners = list.toArray( NO_LISTENERS );
+		}
+	}
+}
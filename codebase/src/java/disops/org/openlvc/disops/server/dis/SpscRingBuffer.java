@@ -0,0 +1,252 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free, single-producer/single-consumer queue of variable length packets.
+ * This is what connects the receive thread to each processing shard.
+ * <p/>
+ * Packets are copied into one pre-allocated direct buffer as records of
+ * <code>[int length][int reserved][long timestamp][data...]</code>, aligned to 16 bytes. A
+ * record never wraps; if it won't fit before the end of the buffer, the producer writes a
+ * padding record and starts again at the front. The producer and consumer each own one
+ * sequence counter (total bytes written/consumed) and publish it with an ordered write, so
+ * there is no locking, no CAS and no allocation. Each side caches the other's counter and
+ * only re-reads it when it looks like it has run out of room/data.
+ * <p/>
+ * When the buffer is full, {@link #offer(ByteBuffer, long)} returns false straight away
+ * rather than blocking the producer. The receive thread must never stall, as the socket
+ * buffer would overflow and the kernel would start dropping packets anyway.
+ * <p/>
+ * Exactly one thread may call {@link #offer(ByteBuffer, long)} and exactly one (other)
+ * thread may call {@link #drain(Handler, int)}.
+ */
+public class SpscRingBuffer
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int HEADER_LENGTH = 16;
+	private static final int ALIGNMENT = 16;
+	private static final int PADDING = -1;
+	private static final int MIN_CAPACITY = 4096;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+
+	// each counter is padded out to its own cache line so the two threads don't contend
+	private final Sequence head;       // bytes consumed, written by the consumer
+	private final Sequence tail;       // bytes produced, written by the producer
+
+	// Producer side
+	private final ByteBuffer writer;   // duplicate used for bulk copies in
+	private long headCache;
+	private long producerPosition;
+	private volatile long rejected;
+
+	// Consumer side
+	private final ByteBuffer reader;   // duplicate handed to the handler
+	private long tailCache;
+	private long consumerPosition;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param requestedCapacity Size of the buffer in bytes. Rounded up to a power of two.
+	 */
+	public SpscRingBuffer( int requestedCapacity )
+	{
+		int size = MIN_CAPACITY;
+		while( size < requestedCapacity )
+			size <<= 1;
+
+		this.buffer = ByteBuffer.allocateDirect( size );
+		this.capacity = size;
+		this.mask = size-1;
+
+		this.head = new Sequence();
+		this.tail = new Sequence();
+
+		this.writer = buffer.duplicate();
+		this.headCache = 0;
+		this.producerPosition = 0;
+		this.rejected = 0;
+
+		this.reader = buffer.duplicate();
+		this.tailCache = 0;
+		this.consumerPosition = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Copy the remaining bytes of the source buffer into the ring. The source's position is
+	 * left where it was. <b>Producer thread only.</b>
+	 *
+	 * @param source    Packet data, from position to limit
+	 * @param timestamp Value handed back to the consumer with the packet (receive time)
+	 * @return True if the packet was queued, false if there wasn't room for it
+	 */
+	public boolean offer( ByteBuffer source, long timestamp )
+	{
+		int length = source.remaining();
+		int recordLength = align( HEADER_LENGTH+length );
+
+		long position = this.producerPosition;
+		int index = (int)(position & mask);
+		int toEnd = capacity - index;
+		int required = recordLength <= toEnd ? recordLength : toEnd+recordLength;
+
+		if( required > capacity - (position-headCache) )
+		{
+			this.headCache = head.get();
+			if( required > capacity - (position-headCache) )
+			{
+				++rejected;
+				return false;
+			}
+		}
+
+		// skip to the front if the record would run off the end
+		if( recordLength > toEnd )
+		{
+			buffer.putInt( index, PADDING );
+			buffer.putInt( index+4, toEnd );
+			position += toEnd;
+			index = 0;
+		}
+
+		buffer.putInt( index, length );
+		buffer.putLong( index+8, timestamp );
+
+		int sourcePosition = source.position();
+		writer.limit( index+HEADER_LENGTH+length ).position( index+HEADER_LENGTH );
+		writer.put( source );
+		source.position( sourcePosition );
+
+		position += recordLength;
+		this.producerPosition = position;
+		tail.lazySet( position );
+		return true;
+	}
+
+	/**
+	 * Hand up to <code>limit</code> queued packets to the handler, in order. The buffer passed
+	 * to the handler is positioned at the packet with its limit at the packet end, and is only
+	 * valid for the duration of the call. <b>Consumer thread only.</b>
+	 *
+	 * @return The number of packets handed to the handler
+	 */
+	public int drain( Handler handler, int limit )
+	{
+		long position = this.consumerPosition;
+		if( position == tailCache )
+		{
+			this.tailCache = tail.get();
+			if( position == tailCache )
+				return 0;
+		}
+
+		int count = 0;
+		try
+		{
+			while( position < tailCache && count < limit )
+			{
+				int index = (int)(position & mask);
+				int length = buffer.getInt( index );
+				if( length == PADDING )
+				{
+					position += buffer.getInt( index+4 );
+					continue;
+				}
+
+				long timestamp = buffer.getLong( index+8 );
+				reader.limit( index+HEADER_LENGTH+length ).position( index+HEADER_LENGTH );
+				position += align( HEADER_LENGTH+length );
+				++count;
+
+				handler.onPacket( reader, timestamp );
+			}
+		}
+		finally
+		{
+			// hand the space back to the producer once per batch rather than per packet
+			this.consumerPosition = position;
+			head.lazySet( position );
+		}
+
+		return count;
+	}
+
+	/** @return Capacity of the ring in bytes */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/** @return Approximate number of bytes currently queued. Safe from any thread. */
+	public long getDepth()
+	{
+		return Math.max( 0, tail.get() - head.get() );
+	}
+
+	/** @return Number of packets turned away because the ring was full */
+	public long getRejected()
+	{
+		return this.rejected;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static int align( int length )
+	{
+		return (length + ALIGNMENT-1) & ~(ALIGNMENT-1);
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Support Types   ///////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Receives packets drained from the ring.
+	 */
+	public interface Handler
+	{
+		public void onPacket( ByteBuffer packet, long timestamp );
+	}
+
+	/**
+	 * AtomicLong padded out past the end of a cache line so that the producer and consumer
+	 * counters never share one.
+	 */
+	@SuppressWarnings("unused")
+	private static class Sequence extends AtomicLong
+	{
+		private static final long serialVersionUID = 1L;
+		private long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
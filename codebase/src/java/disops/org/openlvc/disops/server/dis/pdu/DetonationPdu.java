@@ -0,0 +1,201 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a Detonation PDU. See {@link PduHeader} for how flyweights are used.
+ */
+public class DetonationPdu extends PduHeader
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int MINIMUM_LENGTH = 104;
+
+	private static final int OFFSET_FIRING_ID          = 12;
+	private static final int OFFSET_TARGET_ID          = 18;
+	private static final int OFFSET_MUNITION_ID        = 24;
+	private static final int OFFSET_EVENT_ID           = 30;
+	private static final int OFFSET_VELOCITY           = 36;  // 3x float32
+	private static final int OFFSET_LOCATION           = 48;  // 3x float64
+	private static final int OFFSET_MUNITION_TYPE      = 72;
+	private static final int OFFSET_WARHEAD            = 80;
+	private static final int OFFSET_FUSE               = 82;
+	private static final int OFFSET_QUANTITY           = 84;
+	private static final int OFFSET_RATE               = 86;
+	private static final int OFFSET_ENTITY_LOCATION    = 88;  // 3x float32
+	private static final int OFFSET_RESULT             = 100;
+	private static final int OFFSET_ARTICULATION_COUNT = 101;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public DetonationPdu()
+	{
+		super();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public DetonationPdu wrap( ByteBuffer buffer, int offset )
+	{
+		super.wrap( buffer, offset );
+		return this;
+	}
+
+	@Override
+	public DetonationPdu wrap( ByteBuffer buffer )
+	{
+		super.wrap( buffer );
+		return this;
+	}
+
+	@Override
+	public int getMinimumLength()
+	{
+		return MINIMUM_LENGTH;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Participants and Event   ///////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Packed Entity ID of the shooter. See {@link EntityIds}. */
+	public long getFiringEntityId()
+	{
+		return entityId( OFFSET_FIRING_ID );
+	}
+
+	/** @return Packed Entity ID of the target. See {@link EntityIds}. */
+	public long getTargetEntityId()
+	{
+		return entityId( OFFSET_TARGET_ID );
+	}
+
+	/** @return Packed Entity ID of the munition, if it is tracked. See {@link EntityIds}. */
+	public long getMunitionEntityId()
+	{
+		return entityId( OFFSET_MUNITION_ID );
+	}
+
+	/** @return Packed Event ID (site/app/event number). Same layout as {@link EntityIds}. */
+	public long getEventId()
+	{
+		return entityId( OFFSET_EVENT_ID );
+	}
+
+	public int getDetonationResult()
+	{
+		return uint8( OFFSET_RESULT );
+	}
+
+	public int getArticulationParameterCount()
+	{
+		return uint8( OFFSET_ARTICULATION_COUNT );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Spatial   //////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public float getVelocityX()
+	{
+		return float32( OFFSET_VELOCITY );
+	}
+
+	public float getVelocityY()
+	{
+		return float32( OFFSET_VELOCITY+4 );
+	}
+
+	public float getVelocityZ()
+	{
+		return float32( OFFSET_VELOCITY+8 );
+	}
+
+	/** @return Location of the detonation in geocentric (ECEF) world coordinates (m) */
+	public double getLocationX()
+	{
+		return float64( OFFSET_LOCATION );
+	}
+
+	public double getLocationY()
+	{
+		return float64( OFFSET_LOCATION+8 );
+	}
+
+	public double getLocationZ()
+	{
+		return float64( OFFSET_LOCATION+16 );
+	}
+
+	/** @return Location of the detonation relative to the target's body coordinates (m) */
+	public float getEntityLocationX()
+	{
+		return float32( OFFSET_ENTITY_LOCATION );
+	}
+
+	public float getEntityLocationY()
+	{
+		return float32( OFFSET_ENTITY_LOCATION+4 );
+	}
+
+	public float getEntityLocationZ()
+	{
+		return float32( OFFSET_ENTITY_LOCATION+8 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Burst Descriptor   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The munition Entity Type packed into a long. See {@link EntityTypes}. */
+	public long getMunitionType()
+	{
+		return entityType( OFFSET_MUNITION_TYPE );
+	}
+
+	public int getWarhead()
+	{
+		return uint16( OFFSET_WARHEAD );
+	}
+
+	public int getFuse()
+	{
+		return uint16( OFFSET_FUSE );
+	}
+
+	public int getQuantity()
+	{
+		return uint16( OFFSET_QUANTITY );
+	}
+
+	public int getRate()
+	{
+		return uint16( OFFSET_RATE );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
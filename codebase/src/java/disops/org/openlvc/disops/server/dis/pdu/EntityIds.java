@@ -0,0 +1,105 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+/**
+ * Helpers for working with DIS Entity IDs packed into a primitive long. A DIS Entity ID is
+ * three unsigned 16-bit values (site, application, entity) which fit comfortably into the
+ * low 48 bits of a long. Using the packed form lets us key maps and tables on a primitive,
+ * avoiding the per-lookup allocation of an ID object.
+ * <p/>
+ * Layout: <code>[8 unused][8 exercise][16 site][16 application][16 entity]</code>
+ * <p/>
+ * The exercise byte is zero in IDs read from a PDU. Components that track entities across
+ * several exercises at once qualify the ID with {@link #withExercise(int, long)} so that the
+ * same site/app/entity in two exercises don't collide.
+ */
+public class EntityIds
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private EntityIds()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static long pack( int site, int application, int entity )
+	{
+		return ((long)(site & 0xffff) << 32) |
+		       ((long)(application & 0xffff) << 16) |
+		       (entity & 0xffff);
+	}
+
+	/** @return The given packed ID qualified with an exercise ID in bits 48-55 */
+	public static long withExercise( int exercise, long packed )
+	{
+		return ((long)(exercise & 0xff) << 48) | (packed & 0xffffffffffffL);
+	}
+
+	public static int getExercise( long packed )
+	{
+		return (int)(packed >>> 48) & 0xff;
+	}
+
+	/** @return The packed ID with any exercise qualifier removed */
+	public static long withoutExercise( long packed )
+	{
+		return packed & 0xffffffffffffL;
+	}
+
+	public static int getSite( long packed )
+	{
+		return (int)(packed >>> 32) & 0xffff;
+	}
+
+	public static int getApplication( long packed )
+	{
+		return (int)(packed >>> 16) & 0xffff;
+	}
+
+	public static int getEntity( long packed )
+	{
+		return (int)packed & 0xffff;
+	}
+
+	/** @return The site and application portion only, as used to identify a simulation */
+	public static long getSiteApplication( long packed )
+	{
+		return (packed >>> 16) & 0xffffffffL;
+	}
+
+	public static String toString( long packed )
+	{
+		return getSite(packed)+"-"+getApplication(packed)+"-"+getEntity(packed);
+	}
+}
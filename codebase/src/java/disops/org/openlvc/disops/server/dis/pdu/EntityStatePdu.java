@@ -0,0 +1,300 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight over an Entity State PDU. See {@link PduHeader} for how flyweights are used.
+ */
+public class EntityStatePdu extends PduHeader
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int MINIMUM_LENGTH = 144;
+	public static final int MARKING_LENGTH = 11;
+
+	private static final int OFFSET_ENTITY_ID          = 12;
+	private static final int OFFSET_FORCE_ID           = 18;
+	private static final int OFFSET_ARTICULATION_COUNT = 19;
+	private static final int OFFSET_ENTITY_TYPE        = 20;
+	private static final int OFFSET_ALT_ENTITY_TYPE    = 28;
+	private static final int OFFSET_VELOCITY           = 36;  // 3x float32
+	private static final int OFFSET_LOCATION           = 48;  // 3x float64
+	private static final int OFFSET_ORIENTATION        = 72;  // 3x float32
+	private static final int OFFSET_APPEARANCE         = 84;
+	private static final int OFFSET_DR_ALGORITHM       = 88;
+	private static final int OFFSET_DR_ACCELERATION    = 104; // 3x float32
+	private static final int OFFSET_DR_ANGULAR_VEL     = 116; // 3x float32
+	private static final int OFFSET_MARKING_CHARSET    = 128;
+	private static final int OFFSET_MARKING            = 129;
+	private static final int OFFSET_CAPABILITIES       = 140;
+	private static final int OFFSET_ARTICULATIONS      = 144;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public EntityStatePdu()
+	{
+		super();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public EntityStatePdu wrap( ByteBuffer buffer, int offset )
+	{
+		super.wrap( buffer, offset );
+		return this;
+	}
+
+	@Override
+	public EntityStatePdu wrap( ByteBuffer buffer )
+	{
+		super.wrap( buffer );
+		return this;
+	}
+
+	@Override
+	public int getMinimumLength()
+	{
+		return MINIMUM_LENGTH;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Identification   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The Entity ID packed into a long. See {@link EntityIds}. */
+	public long getEntityId()
+	{
+		return entityId( OFFSET_ENTITY_ID );
+	}
+
+	public int getSiteId()
+	{
+		return uint16( OFFSET_ENTITY_ID );
+	}
+
+	public int getApplicationId()
+	{
+		return uint16( OFFSET_ENTITY_ID+2 );
+	}
+
+	public int getEntityNumber()
+	{
+		return uint16( OFFSET_ENTITY_ID+4 );
+	}
+
+	public int getForceId()
+	{
+		return uint8( OFFSET_FORCE_ID );
+	}
+
+	public int getArticulationParameterCount()
+	{
+		return uint8( OFFSET_ARTICULATION_COUNT );
+	}
+
+	/** @return The Entity Type packed into a long. See {@link EntityTypes}. */
+	public long getEntityType()
+	{
+		return entityType( OFFSET_ENTITY_TYPE );
+	}
+
+	/** @return The Alternative Entity Type packed into a long. See {@link EntityTypes}. */
+	public long getAlternativeEntityType()
+	{
+		return entityType( OFFSET_ALT_ENTITY_TYPE );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Spatial   //////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Linear velocity X in world coordinates (m/s) */
+	public float getVelocityX()
+	{
+		return float32( OFFSET_VELOCITY );
+	}
+
+	public float getVelocityY()
+	{
+		return float32( OFFSET_VELOCITY+4 );
+	}
+
+	public float getVelocityZ()
+	{
+		return float32( OFFSET_VELOCITY+8 );
+	}
+
+	/** @return Location X in geocentric (ECEF) world coordinates (m) */
+	public double getLocationX()
+	{
+		return float64( OFFSET_LOCATION );
+	}
+
+	public double getLocationY()
+	{
+		return float64( OFFSET_LOCATION+8 );
+	}
+
+	public double getLocationZ()
+	{
+		return float64( OFFSET_LOCATION+16 );
+	}
+
+	/** @return Euler angle psi (heading) in radians */
+	public float getPsi()
+	{
+		return float32( OFFSET_ORIENTATION );
+	}
+
+	/** @return Euler angle theta (pitch) in radians */
+	public float getTheta()
+	{
+		return float32( OFFSET_ORIENTATION+4 );
+	}
+
+	/** @return Euler angle phi (roll) in radians */
+	public float getPhi()
+	{
+		return float32( OFFSET_ORIENTATION+8 );
+	}
+
+	public int getAppearance()
+	{
+		return int32( OFFSET_APPEARANCE );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Dead Reckoning   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getDeadReckoningAlgorithm()
+	{
+		return uint8( OFFSET_DR_ALGORITHM );
+	}
+
+	public float getAccelerationX()
+	{
+		return float32( OFFSET_DR_ACCELERATION );
+	}
+
+	public float getAccelerationY()
+	{
+		return float32( OFFSET_DR_ACCELERATION+4 );
+	}
+
+	public float getAccelerationZ()
+	{
+		return float32( OFFSET_DR_ACCELERATION+8 );
+	}
+
+	/** @return Angular velocity about the body X axis (rad/s) */
+	public float getAngularVelocityX()
+	{
+		return float32( OFFSET_DR_ANGULAR_VEL );
+	}
+
+	public float getAngularVelocityY()
+	{
+		return float32( OFFSET_DR_ANGULAR_VEL+4 );
+	}
+
+	public float getAngularVelocityZ()
+	{
+		return float32( OFFSET_DR_ANGULAR_VEL+8 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Marking and Capabilities   /////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getMarkingCharacterSet()
+	{
+		return uint8( OFFSET_MARKING_CHARSET );
+	}
+
+	/** @return Absolute offset into the buffer at which the 11 marking bytes start */
+	public int getMarkingOffset()
+	{
+		return offset + OFFSET_MARKING;
+	}
+
+	/**
+	 * @return The number of marking characters before the first null (0-11). Use this with
+	 *         {@link #getMarkingOffset()} to read the marking without copying it.
+	 */
+	public int getMarkingLength()
+	{
+		int start = offset + OFFSET_MARKING;
+		for( int i = 0; i < MARKING_LENGTH; i++ )
+		{
+			if( buffer.get(start+i) == 0 )
+				return i;
+		}
+
+		return MARKING_LENGTH;
+	}
+
+	/**
+	 * Copy the marking bytes (up to the first null) into the given array, which must be at
+	 * least {@link #MARKING_LENGTH} long.
+	 * 
+	 * @return The number of bytes copied
+	 */
+	public int getMarking( byte[] destination )
+	{
+		int length = getMarkingLength();
+		int start = offset + OFFSET_MARKING;
+		for( int i = 0; i < length; i++ )
+			destination[i] = buffer.get( start+i );
+
+		return length;
+	}
+
+	/**
+	 * Convenience method that decodes the marking into a String. <b>This allocates</b>, so it
+	 * should not be used on the hot path.
+	 */
+	public String getMarkingString()
+	{
+		byte[] bytes = new byte[MARKING_LENGTH];
+		int length = getMarking( bytes );
+		return new String( bytes, 0, length, StandardCharsets.US_ASCII );
+	}
+
+	public int getCapabilities()
+	{
+		return int32( OFFSET_CAPABILITIES );
+	}
+
+	/** @return Absolute buffer offset of the given (zero-based) articulation parameter record */
+	public int getArticulationParameterOffset( int index )
+	{
+		return offset + OFFSET_ARTICULATIONS + (index*16);
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,103 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+/**
+ * Helpers for working with DIS Entity Type records packed into a primitive long. The eight
+ * byte record is read straight off the wire in network order, so the layout is:
+ * <code>[8 kind][8 domain][16 country][8 category][8 subcategory][8 specific][8 extra]</code>
+ */
+public class EntityTypes
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private EntityTypes()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	public static long pack( int kind, int domain, int country, int category,
+	                         int subcategory, int specific, int extra )
+	{
+		return ((long)(kind & 0xff) << 56) |
+		       ((long)(domain & 0xff) << 48) |
+		       ((long)(country & 0xffff) << 32) |
+		       ((long)(category & 0xff) << 24) |
+		       ((long)(subcategory & 0xff) << 16) |
+		       ((long)(specific & 0xff) << 8) |
+		       (extra & 0xff);
+	}
+
+	public static int getKind( long packed )
+	{
+		return (int)(packed >>> 56) & 0xff;
+	}
+
+	public static int getDomain( long packed )
+	{
+		return (int)(packed >>> 48) & 0xff;
+	}
+
+	public static int getCountry( long packed )
+	{
+		return (int)(packed >>> 32) & 0xffff;
+	}
+
+	public static int getCategory( long packed )
+	{
+		return (int)(packed >>> 24) & 0xff;
+	}
+
+	public static int getSubcategory( long packed )
+	{
+		return (int)(packed >>> 16) & 0xff;
+	}
+
+	public static int getSpecific( long packed )
+	{
+		return (int)(packed >>> 8) & 0xff;
+	}
+
+	public static int getExtra( long packed )
+	{
+		return (int)packed & 0xff;
+	}
+
+	/** @return The usual dotted representation, e.g. "1.1.225.1.1.3.0" */
+	public static String toString( long packed )
+	{
+		return getKind(packed)+"."+getDomain(packed)+"."+getCountry(packed)+"."+
+		       getCategory(packed)+"."+getSubcategory(packed)+"."+getSpecific(packed)+"."+
+		       getExtra(packed);
+	}
+}
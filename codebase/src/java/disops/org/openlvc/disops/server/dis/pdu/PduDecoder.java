@@ -0,0 +1,146 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds one flyweight for each PDU type we understand and points the right one at each
+ * buffer handed to {@link #decode(ByteBuffer)}. Consumers switch on the returned PDU's type
+ * and cast to the specific flyweight:
+ * 
+ * <pre>
+ *   PduHeader pdu = decoder.decode( buffer );
+ *   if( pdu != null && pdu.getPduType() == PduType.EntityState )
+ *       handle( (EntityStatePdu)pdu );
+ * </pre>
+ * 
+ * Nothing is allocated per PDU. The returned flyweight is overwritten on the next call, and
+ * a decoder must only be used from one thread. Each {@link org.openlvc.disops.server.dis.PduListener}
+ * should create its own.
+ */
+public class PduDecoder
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final PduHeader header;
+	private final EntityStatePdu entityState;
+	private final FirePdu fire;
+	private final DetonationPdu detonation;
+	private final SignalPdu signal;
+
+	private long invalid;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PduDecoder()
+	{
+		this.header = new PduHeader();
+		this.entityState = new EntityStatePdu();
+		this.fire = new FirePdu();
+		this.detonation = new DetonationPdu();
+		this.signal = new SignalPdu();
+		this.invalid = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Wrap the PDU starting at the buffer's position with the appropriate flyweight.
+	 * 
+	 * @return The flyweight for the PDU type (or a plain {@link PduHeader} for types we don't
+	 *         have a specific flyweight for), or null if the packet is too short to be valid
+	 */
+	public PduHeader decode( ByteBuffer buffer )
+	{
+		return decode( buffer, buffer.position() );
+	}
+
+	/**
+	 * Same as {@link #decode(ByteBuffer)} but for a PDU at the given absolute offset
+	 */
+	public PduHeader decode( ByteBuffer buffer, int offset )
+	{
+		if( buffer.limit()-offset < PduHeader.HEADER_LENGTH )
+		{
+			++invalid;
+			return null;
+		}
+
+		PduHeader pdu;
+		switch( buffer.get(offset+2) & 0xff )
+		{
+			case 1:  pdu = entityState.wrap( buffer, offset ); break;
+			case 2:  pdu = fire.wrap( buffer, offset ); break;
+			case 3:  pdu = detonation.wrap( buffer, offset ); break;
+			case 26: pdu = signal.wrap( buffer, offset ); break;
+			default: pdu = header.wrap( buffer, offset ); break;
+		}
+
+		if( pdu.isValid() )
+			return pdu;
+
+		++invalid;
+		return null;
+	}
+
+	/** @return The number of packets rejected as malformed by this decoder */
+	public long getInvalidCount()
+	{
+		return this.invalid;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Direct Flyweight Access   //////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public PduHeader getHeader()
+	{
+		return this.header;
+	}
+
+	public EntityStatePdu getEntityState()
+	{
+		return this.entityState;
+	}
+
+	public FirePdu getFire()
+	{
+		return this.fire;
+	}
+
+	public DetonationPdu getDetonation()
+	{
+		return this.detonation;
+	}
+
+	public SignalPdu getSignal()
+	{
+		return this.signal;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,225 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over the standard 12-byte DIS PDU header. A flyweight holds no PDU state of its
+ * own; it is pointed at a buffer with {@link #wrap(ByteBuffer, int)} and each getter reads
+ * the field straight out of the buffer at its fixed offset. One instance can be re-wrapped
+ * around every packet that arrives, so decoding does not allocate.
+ * <p/>
+ * All reads use absolute offsets, so wrapping never changes the buffer's position or limit.
+ * The flyweight is only valid for as long as the buffer contents are, and instances are
+ * not thread safe - each consuming thread should keep its own.
+ * <p/>
+ * Subclasses add the accessors for the body of specific PDU types. Field offsets follow
+ * IEEE 1278.1 and are expressed relative to the start of the PDU.
+ */
+public class PduHeader
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int HEADER_LENGTH = 12;
+
+	private static final int OFFSET_PROTOCOL_VERSION = 0;
+	private static final int OFFSET_EXERCISE_ID      = 1;
+	private static final int OFFSET_PDU_TYPE         = 2;
+	private static final int OFFSET_PROTOCOL_FAMILY  = 3;
+	private static final int OFFSET_TIMESTAMP        = 4;
+	private static final int OFFSET_LENGTH           = 8;
+	private static final int OFFSET_PDU_STATUS       = 10;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	protected ByteBuffer buffer;
+	protected int offset;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PduHeader()
+	{
+		this.buffer = null;
+		this.offset = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Point this flyweight at the PDU that starts at the given offset in the buffer.
+	 * 
+	 * @return This flyweight so calls can be chained
+	 */
+	public PduHeader wrap( ByteBuffer buffer, int offset )
+	{
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Point this flyweight at the PDU that starts at the buffer's current position.
+	 */
+	public PduHeader wrap( ByteBuffer buffer )
+	{
+		return wrap( buffer, buffer.position() );
+	}
+
+	/**
+	 * @return The minimum number of bytes a PDU of this type can occupy
+	 */
+	public int getMinimumLength()
+	{
+		return HEADER_LENGTH;
+	}
+
+	/**
+	 * @return True if the wrapped buffer holds at least enough bytes for the fixed part of
+	 *         this PDU type, and the length field in the header does not claim more bytes
+	 *         than we actually have.
+	 */
+	public boolean isValid()
+	{
+		int available = buffer.limit() - offset;
+		if( available < getMinimumLength() )
+			return false;
+
+		int declared = getLength();
+		return declared >= getMinimumLength() && declared <= available;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Header Fields   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getProtocolVersion()
+	{
+		return uint8( OFFSET_PROTOCOL_VERSION );
+	}
+
+	public int getExerciseId()
+	{
+		return uint8( OFFSET_EXERCISE_ID );
+	}
+
+	public int getPduTypeValue()
+	{
+		return uint8( OFFSET_PDU_TYPE );
+	}
+
+	public PduType getPduType()
+	{
+		return PduType.fromValue( getPduTypeValue() );
+	}
+
+	public int getProtocolFamily()
+	{
+		return uint8( OFFSET_PROTOCOL_FAMILY );
+	}
+
+	/** @return The raw DIS timestamp (units of 3600s/2^31 past the hour, low bit = absolute) */
+	public long getTimestamp()
+	{
+		return uint32( OFFSET_TIMESTAMP );
+	}
+
+	/** @return The length of the whole PDU in bytes, as declared in the header */
+	public int getLength()
+	{
+		return uint16( OFFSET_LENGTH );
+	}
+
+	/** @return The PDU Status byte (DIS 7 only, zero in earlier versions) */
+	public int getPduStatus()
+	{
+		return uint8( OFFSET_PDU_STATUS );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public ByteBuffer getBuffer()
+	{
+		return this.buffer;
+	}
+
+	public int getOffset()
+	{
+		return this.offset;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Field Readers   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	// DIS is big-endian on the wire, which is the ByteBuffer default
+	protected final int uint8( int field )
+	{
+		return buffer.get( offset+field ) & 0xff;
+	}
+
+	protected final int uint16( int field )
+	{
+		return buffer.getShort( offset+field ) & 0xffff;
+	}
+
+	protected final long uint32( int field )
+	{
+		return buffer.getInt( offset+field ) & 0xffffffffL;
+	}
+
+	protected final int int32( int field )
+	{
+		return buffer.getInt( offset+field );
+	}
+
+	protected final long int64( int field )
+	{
+		return buffer.getLong( offset+field );
+	}
+
+	protected final float float32( int field )
+	{
+		return buffer.getFloat( offset+field );
+	}
+
+	protected final double float64( int field )
+	{
+		return buffer.getDouble( offset+field );
+	}
+
+	/** Read a 6-byte Entity ID (site/app/entity) into a single long. See {@link EntityIds}. */
+	protected final long entityId( int field )
+	{
+		return EntityIds.pack( uint16(field), uint16(field+2), uint16(field+4) );
+	}
+
+	/** Read an 8-byte Entity Type record into a single long (one byte per field, country
+	    takes two), in wire order. See {@link EntityTypes}. */
+	protected final long entityType( int field )
+	{
+		return buffer.getLong( offset+field );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
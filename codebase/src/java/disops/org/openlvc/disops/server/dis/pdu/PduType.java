@@ -0,0 +1,146 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+/**
+ * The DIS PDU types that DisOps knows about. The numeric values are those from the
+ * IEEE 1278.1 enumerations. Lookup from the wire value is a straight array index so that
+ * it can be used on the receive path without allocating.
+ */
+public enum PduType
+{
+	//----------------------------------------------------------
+	//                        VALUES
+	//----------------------------------------------------------
+	Other( 0 ),
+	EntityState( 1 ),
+	Fire( 2 ),
+	Detonation( 3 ),
+	Collision( 4 ),
+	ServiceRequest( 5 ),
+	ResupplyOffer( 6 ),
+	ResupplyReceived( 7 ),
+	ResupplyCancel( 8 ),
+	RepairComplete( 9 ),
+	RepairResponse( 10 ),
+	CreateEntity( 11 ),
+	RemoveEntity( 12 ),
+	StartResume( 13 ),
+	StopFreeze( 14 ),
+	Acknowledge( 15 ),
+	ActionRequest( 16 ),
+	ActionResponse( 17 ),
+	DataQuery( 18 ),
+	SetData( 19 ),
+	Data( 20 ),
+	EventReport( 21 ),
+	Comment( 22 ),
+	Emission( 23 ),
+	Designator( 24 ),
+	Transmitter( 25 ),
+	Signal( 26 ),
+	Receiver( 27 ),
+	IFF( 28 ),
+	UnderwaterAcoustic( 29 ),
+	SupplementalEmission( 30 ),
+	IntercomSignal( 31 ),
+	IntercomControl( 32 ),
+	AggregateState( 33 ),
+	IsGroupOf( 34 ),
+	TransferOwnership( 35 ),
+	IsPartOf( 36 ),
+	MinefieldState( 37 ),
+	MinefieldQuery( 38 ),
+	MinefieldData( 39 ),
+	MinefieldResponseNack( 40 ),
+	EnvironmentalProcess( 41 ),
+	GriddedData( 42 ),
+	PointObjectState( 43 ),
+	LinearObjectState( 44 ),
+	ArealObjectState( 45 ),
+	TSPI( 46 ),
+	Appearance( 47 ),
+	ArticulatedParts( 48 ),
+	LEFire( 49 ),
+	LEDetonation( 50 ),
+	CreateEntityR( 51 ),
+	RemoveEntityR( 52 ),
+	StartResumeR( 53 ),
+	StopFreezeR( 54 ),
+	AcknowledgeR( 55 ),
+	ActionRequestR( 56 ),
+	ActionResponseR( 57 ),
+	DataQueryR( 58 ),
+	SetDataR( 59 ),
+	DataR( 60 ),
+	EventReportR( 61 ),
+	CommentR( 62 ),
+	RecordR( 63 ),
+	SetRecordR( 64 ),
+	RecordQueryR( 65 ),
+	CollisionElastic( 66 ),
+	EntityStateUpdate( 67 ),
+	DirectedEnergyFire( 68 ),
+	EntityDamageStatus( 69 ),
+	InformationOperationsAction( 70 ),
+	InformationOperationsReport( 71 ),
+	Attribute( 72 );
+
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final PduType[] LOOKUP = new PduType[256];
+	static
+	{
+		for( PduType type : values() )
+			LOOKUP[type.value] = type;
+	}
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final int value;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private PduType( int value )
+	{
+		this.value = value;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public int value()
+	{
+		return this.value;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The type for the given wire value, or {@link #Other} if it isn't one we know
+	 */
+	public static PduType fromValue( int value )
+	{
+		PduType type = LOOKUP[value & 0xff];
+		return type == null ? Other : type;
+	}
+}
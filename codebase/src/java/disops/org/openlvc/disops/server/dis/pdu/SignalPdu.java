@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a Signal PDU. See {@link PduHeader} for how flyweights are used.
+ * <p/>
+ * The signal data itself is not copied out; use {@link #getDataOffset()} and
+ * {@link #getDataLengthBytes()} to read it in place.
+ */
+public class SignalPdu extends PduHeader
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final int MINIMUM_LENGTH = 32;
+
+	private static final int OFFSET_ENTITY_ID       = 12;
+	private static final int OFFSET_RADIO_ID        = 18;
+	private static final int OFFSET_ENCODING_SCHEME = 20;
+	private static final int OFFSET_TDL_TYPE        = 22;
+	private static final int OFFSET_SAMPLE_RATE     = 24;
+	private static final int OFFSET_DATA_LENGTH     = 28;  // in bits
+	private static final int OFFSET_SAMPLES         = 30;
+	private static final int OFFSET_DATA            = 32;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public SignalPdu()
+	{
+		super();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public SignalPdu wrap( ByteBuffer buffer, int offset )
+	{
+		super.wrap( buffer, offset );
+		return this;
+	}
+
+	@Override
+	public SignalPdu wrap( ByteBuffer buffer )
+	{
+		super.wrap( buffer );
+		return this;
+	}
+
+	@Override
+	public int getMinimumLength()
+	{
+		return MINIMUM_LENGTH;
+	}
+
+	/** @return Packed Entity ID of the entity the radio is attached to. See {@link EntityIds}. */
+	public long getEntityId()
+	{
+		return entityId( OFFSET_ENTITY_ID );
+	}
+
+	public int getRadioId()
+	{
+		return uint16( OFFSET_RADIO_ID );
+	}
+
+	public int getEncodingScheme()
+	{
+		return uint16( OFFSET_ENCODING_SCHEME );
+	}
+
+	public int getTdlType()
+	{
+		return uint16( OFFSET_TDL_TYPE );
+	}
+
+	public long getSampleRate()
+	{
+		return uint32( OFFSET_SAMPLE_RATE );
+	}
+
+	/** @return Length of the signal data in bits, as declared in the PDU */
+	public int getDataLengthBits()
+	{
+		return uint16( OFFSET_DATA_LENGTH );
+	}
+
+	public int getDataLengthBytes()
+	{
+		return (getDataLengthBits()+7) / 8;
+	}
+
+	public int getSampleCount()
+	{
+		return uint16( OFFSET_SAMPLES );
+	}
+
+	/** @return Absolute offset into the buffer at which the signal data starts */
+	public int getDataOffset()
+	{
+		return offset + OFFSET_DATA;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
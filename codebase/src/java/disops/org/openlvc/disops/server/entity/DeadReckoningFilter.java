@@ -0,0 +1,535 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.util.Arrays;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.utils.LongIntHashMap;
+
+/**
+ * Decides which Entity State PDUs are worth writing to InfluxDB. Simulations send entity
+ * state far more often than the entity actually does anything interesting, and the receiver
+ * of any PDU is expected to dead reckon between updates anyway. So for each entity we keep
+ * the state we last wrote, run the entity's own DIS dead reckoning algorithm forward from it,
+ * and only write again when the reported position or orientation has drifted beyond the
+ * configured thresholds. A keyframe is also written every so often so that queries over
+ * short windows still find something, and any change of appearance or algorithm is always
+ * written.
+ * <p/>
+ * Position and orientation are extrapolated with the closed forms from IEEE 1278.1 Annex E.
+ * Orientation is kept as a rotation matrix and turned by the DR rotation matrix, and the
+ * orientation error is the angle of the single rotation that takes the extrapolated
+ * orientation to the reported one. For the body-axis algorithms the baseline world velocity
+ * is taken into body axes, and the body velocity and acceleration are integrated along the
+ * rotating body (the R1 and R2 matrices) before being taken back out to world axes.
+ * <p/>
+ * Elapsed time is taken from our receive time rather than the PDU timestamp, which is often
+ * relative or just plain wrong. Any difference between the two shifts where we think the
+ * entity should be. For an entity moving at v m/s, receive jitter of d seconds moves the
+ * extrapolated position by about v*d either way (and, turning at w rad/s, its orientation
+ * by w*d). Depending on the direction, that can
+ * cause a write a sender-timed filter wouldn't make, or hide a drift of up to v*d that it
+ * would have written. At 300 m/s and 5ms of jitter that is 1.5m, so on busy networks the
+ * position threshold should be comfortably above the expected v*d. The keyframe interval
+ * bounds how long any error can go unwritten.
+ * <p/>
+ * Per-entity state lives in primitive arrays indexed through a {@link LongIntHashMap}, so
+ * nothing is allocated per PDU once an entity has been seen.
+ * <p/>
+ * This class is <b>not</b> thread safe. It is meant to be driven from a single pipeline shard.
+ */
+public class DeadReckoningFilter
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// DIS Dead Reckoning Algorithms (IEEE 1278.1 Annex B)
+	public static final int DRM_OTHER  = 0;
+	public static final int DRM_STATIC = 1;
+	public static final int DRM_FPW    = 2;
+	public static final int DRM_RPW    = 3;
+	public static final int DRM_RVW    = 4;
+	public static final int DRM_FVW    = 5;
+	public static final int DRM_FPB    = 6;
+	public static final int DRM_RPB    = 7;
+	public static final int DRM_RVB    = 8;
+	public static final int DRM_FVB    = 9;
+
+	// Layout of the per-entity state in the "state" array
+	private static final int POSITION     = 0;  // x,y,z (meters, ECEF)
+	private static final int VELOCITY     = 3;  // x,y,z (m/s, world axes)
+	private static final int ACCELERATION = 6;  // x,y,z (m/s^2, body axes for body algorithms)
+	private static final int ANGULAR      = 9;  // x,y,z (rad/s, body axes)
+	private static final int ROTATION     = 12; // world to body rotation matrix, row major
+	private static final int STRIDE       = 24;
+
+	// Below this (|w|*dt)^2 the DR coefficients are taken from their series, as the closed
+	// forms lose everything to cancellation
+	private static final double SMALL_ROTATION = 1e-8;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final double positionThreshold;
+	private final double positionThresholdSquared;
+	private final double orientationThreshold;
+	private final double orientationCosine;
+	private final long keyframeInterval;
+
+	private final LongIntHashMap index;  // entity id -> row
+	private double[] state;              // STRIDE doubles per row
+	private long[] lastWritten;
+	private int[] appearance;
+	private byte[] algorithm;
+	private int rowCount;                // rows ever handed out (high water mark)
+	private int[] freeRows;              // rows released by remove()
+	private int freeCount;
+
+	// Scratch space for extrapolating, so nothing is allocated per PDU
+	private final double[] displacement;
+	private final double[] predicted;
+	private final double[] reported;
+
+	// Statistics - written only by the filtering thread
+	private volatile long received;
+	private volatile long written;
+	private volatile long keyframes;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param positionThreshold    Position error (meters) that triggers a write
+	 * @param orientationThreshold Orientation error (radians, about any axis) that triggers a
+	 *                             write
+	 * @param keyframeInterval     Max millis between writes for an entity
+	 * @param expectedEntities     Entity count to size the initial storage for
+	 */
+	public DeadReckoningFilter( double positionThreshold,
+	                            double orientationThreshold,
+	                            long keyframeInterval,
+	                            int expectedEntities )
+	{
+		this.positionThreshold = positionThreshold;
+		this.positionThresholdSquared = positionThreshold * positionThreshold;
+		this.orientationThreshold = orientationThreshold;
+		this.orientationCosine = Math.cos( Math.min(orientationThreshold,Math.PI) );
+		this.keyframeInterval = keyframeInterval;
+
+		int capacity = Math.max( 16, expectedEntities );
+		this.index = new LongIntHashMap( capacity );
+		this.state = new double[capacity*STRIDE];
+		this.lastWritten = new long[capacity];
+		this.appearance = new int[capacity];
+		this.algorithm = new byte[capacity];
+		this.rowCount = 0;
+		this.freeRows = new int[16];
+		this.freeCount = 0;
+
+		this.displacement = new double[3];
+		this.predicted = new double[9];
+		this.reported = new double[9];
+
+		this.received = 0;
+		this.written = 0;
+		this.keyframes = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Decide whether the given PDU should be written. If it should, it becomes the new
+	 * baseline that the entity is dead reckoned from.
+	 *
+	 * @param pdu         The Entity State PDU we just received
+	 * @param receiveTime When it was received (millis since the epoch)
+	 * @return True if the PDU should be written, false if it can be suppressed
+	 */
+	public boolean filter( EntityStatePdu pdu, long receiveTime )
+	{
+		++received;
+		long id = EntityIds.withExercise( pdu.getExerciseId(), pdu.getEntityId() );
+
+		int row = index.get( id );
+		if( row == LongIntHashMap.MISSING )
+		{
+			row = allocateRow();
+			index.put( id, row );
+			return accept( row, pdu, receiveTime );
+		}
+
+		// Anything discrete changing is always interesting
+		if( pdu.getAppearance() != appearance[row] ||
+		    pdu.getDeadReckoningAlgorithm() != (algorithm[row] & 0xff) )
+			return accept( row, pdu, receiveTime );
+
+		long elapsed = receiveTime - lastWritten[row];
+		if( elapsed >= keyframeInterval )
+		{
+			++keyframes;
+			return accept( row, pdu, receiveTime );
+		}
+
+		if( exceedsThresholds(row,pdu,elapsed/1000.0) )
+			return accept( row, pdu, receiveTime );
+
+		return false;
+	}
+
+	/**
+	 * Forget everything we know about an entity (it has gone away). The next PDU we see from
+	 * it will always be written.
+	 *
+	 * @param id Entity ID packed with its exercise (see {@link EntityIds#withExercise(int, long)})
+	 */
+	public void remove( long id )
+	{
+		int row = index.remove( id );
+		if( row == LongIntHashMap.MISSING )
+			return;
+
+		if( freeCount == freeRows.length )
+			freeRows = Arrays.copyOf( freeRows, freeCount*2 );
+
+		freeRows[freeCount++] = row;
+	}
+
+	private boolean exceedsThresholds( int row, EntityStatePdu pdu, double dt )
+	{
+		int base = row * STRIDE;
+		int drm = algorithm[row] & 0xff;
+
+		// Position
+		double dx = pdu.getLocationX() - state[base+POSITION];
+		double dy = pdu.getLocationY() - state[base+POSITION+1];
+		double dz = pdu.getLocationZ() - state[base+POSITION+2];
+		if( drm >= DRM_FPW && drm <= DRM_FVB )
+		{
+			extrapolate( base, drm, dt );
+			dx -= displacement[0];
+			dy -= displacement[1];
+			dz -= displacement[2];
+		}
+
+		if( dx*dx + dy*dy + dz*dz > positionThresholdSquared )
+			return true;
+
+		// Orientation
+		double[] expected = this.predicted;
+		if( isRotating(drm) )
+			rotate( state, base, dt, expected );
+		else
+			System.arraycopy( state, base+ROTATION, expected, 0, 9 );
+
+		toRotation( pdu.getPsi(), pdu.getTheta(), pdu.getPhi(), reported, 0 );
+
+		// The angle of the rotation between the two is acos((trace(A*B^T)-1)/2)
+		double trace = 0.0;
+		for( int i = 0; i < 9; i++ )
+			trace += reported[i] * expected[i];
+
+		return (trace-1.0) * 0.5 < orientationCosine;
+	}
+
+	/**
+	 * Work out how far the entity in the given row should have moved (world axes) after the
+	 * given time under the given algorithm, and leave it in {@link #displacement}.
+	 */
+	private void extrapolate( int base, int drm, double dt )
+	{
+		double vx = state[base+VELOCITY];
+		double vy = state[base+VELOCITY+1];
+		double vz = state[base+VELOCITY+2];
+		double ax = state[base+ACCELERATION];
+		double ay = state[base+ACCELERATION+1];
+		double az = state[base+ACCELERATION+2];
+		double half = 0.5 * dt * dt;
+
+		switch( drm )
+		{
+			case DRM_FPW:
+			case DRM_RPW:
+			case DRM_FPB:
+				// constant velocity, world velocity doesn't change with orientation
+				displacement[0] = vx * dt;
+				displacement[1] = vy * dt;
+				displacement[2] = vz * dt;
+				break;
+
+			case DRM_FVW:
+			case DRM_RVW:
+				displacement[0] = vx*dt + ax*half;
+				displacement[1] = vy*dt + ay*half;
+				displacement[2] = vz*dt + az*half;
+				break;
+
+			case DRM_FVB:
+				// body doesn't turn, so its acceleration points the same way in the world
+				displacement[0] = vx*dt + bodyToWorld( state, base, 0, ax, ay, az ) * half;
+				displacement[1] = vy*dt + bodyToWorld( state, base, 1, ax, ay, az ) * half;
+				displacement[2] = vz*dt + bodyToWorld( state, base, 2, ax, ay, az ) * half;
+				break;
+
+			default:
+				// RPB and RVB: velocity (and acceleration) are fixed to the turning body
+				extrapolateRotatingBody( base, dt, drm == DRM_RVB );
+				break;
+		}
+	}
+
+	/**
+	 * P = P0 + R0^T * (R1*v + R2*a) (1278.1 Annex E), where v is the baseline velocity in
+	 * body axes, R1 is the integral of the body's rotation over the interval and R2 the same
+	 * weighted by time. Both are of the form xI + yW + zW^2 where W is the cross product with
+	 * the angular velocity, so they are applied as cross products rather than built as
+	 * matrices.
+	 */
+	private void extrapolateRotatingBody( int base, double dt, boolean accelerating )
+	{
+		double wx = state[base+ANGULAR];
+		double wy = state[base+ANGULAR+1];
+		double wz = state[base+ANGULAR+2];
+		double w2 = wx*wx + wy*wy + wz*wz;
+
+		// R1 = dt*I + r1w*W + r1ww*W^2, R2 = dt^2/2*I + r2w*W + r2ww*W^2
+		double r1w, r1ww, r2w, r2ww;
+		if( w2*dt*dt < SMALL_ROTATION )
+		{
+			r1w  = dt*dt / 2.0;
+			r1ww = dt*dt*dt / 6.0;
+			r2w  = dt*dt*dt / 3.0;
+			r2ww = dt*dt*dt*dt / 8.0;
+		}
+		else
+		{
+			double w = Math.sqrt( w2 );
+			double sin = Math.sin( w*dt );
+			double cos = Math.cos( w*dt );
+			r1w  = (1.0-cos) / w2;
+			r1ww = (dt - sin/w) / w2;
+			r2w  = (sin - w*dt*cos) / (w2*w);
+			r2ww = (dt*dt/2.0 - (cos + w*dt*sin - 1.0)/w2) / w2;
+		}
+
+		// world velocity into body axes
+		double vx = worldToBody( state, base, 0, state[base+VELOCITY], state[base+VELOCITY+1], state[base+VELOCITY+2] );
+		double vy = worldToBody( state, base, 1, state[base+VELOCITY], state[base+VELOCITY+1], state[base+VELOCITY+2] );
+		double vz = worldToBody( state, base, 2, state[base+VELOCITY], state[base+VELOCITY+1], state[base+VELOCITY+2] );
+
+		// w x v and w x (w x v)
+		double cx = wy*vz - wz*vy;
+		double cy = wz*vx - wx*vz;
+		double cz = wx*vy - wy*vx;
+		double bx = dt*vx + r1w*cx + r1ww*(wy*cz - wz*cy);
+		double by = dt*vy + r1w*cy + r1ww*(wz*cx - wx*cz);
+		double bz = dt*vz + r1w*cz + r1ww*(wx*cy - wy*cx);
+
+		if( accelerating )
+		{
+			double ax = state[base+ACCELERATION];
+			double ay = state[base+ACCELERATION+1];
+			double az = state[base+ACCELERATION+2];
+			double half = dt*dt / 2.0;
+			cx = wy*az - wz*ay;
+			cy = wz*ax - wx*az;
+			cz = wx*ay - wy*ax;
+			bx += half*ax + r2w*cx + r2ww*(wy*cz - wz*cy);
+			by += half*ay + r2w*cy + r2ww*(wz*cx - wx*cz);
+			bz += half*az + r2w*cz + r2ww*(wx*cy - wy*cx);
+		}
+
+		displacement[0] = bodyToWorld( state, base, 0, bx, by, bz );
+		displacement[1] = bodyToWorld( state, base, 1, bx, by, bz );
+		displacement[2] = bodyToWorld( state, base, 2, bx, by, bz );
+	}
+
+	/** Make the PDU the new baseline for the entity and say that it should be written */
+	private boolean accept( int row, EntityStatePdu pdu, long receiveTime )
+	{
+		int base = row * STRIDE;
+		state[base+POSITION]       = pdu.getLocationX();
+		state[base+POSITION+1]     = pdu.getLocationY();
+		state[base+POSITION+2]     = pdu.getLocationZ();
+		state[base+VELOCITY]       = pdu.getVelocityX();
+		state[base+VELOCITY+1]     = pdu.getVelocityY();
+		state[base+VELOCITY+2]     = pdu.getVelocityZ();
+		state[base+ACCELERATION]   = pdu.getAccelerationX();
+		state[base+ACCELERATION+1] = pdu.getAccelerationY();
+		state[base+ACCELERATION+2] = pdu.getAccelerationZ();
+		state[base+ANGULAR]        = pdu.getAngularVelocityX();
+		state[base+ANGULAR+1]      = pdu.getAngularVelocityY();
+		state[base+ANGULAR+2]      = pdu.getAngularVelocityZ();
+		toRotation( pdu.getPsi(), pdu.getTheta(), pdu.getPhi(), state, base+ROTATION );
+		lastWritten[row] = receiveTime;
+		appearance[row] = pdu.getAppearance();
+		algorithm[row] = (byte)pdu.getDeadReckoningAlgorithm();
+
+		++written;
+		return true;
+	}
+
+	private int allocateRow()
+	{
+		if( freeCount > 0 )
+			return freeRows[--freeCount];
+
+		if( rowCount == lastWritten.length )
+		{
+			int capacity = rowCount * 2;
+			state = Arrays.copyOf( state, capacity*STRIDE );
+			lastWritten = Arrays.copyOf( lastWritten, capacity );
+			appearance = Arrays.copyOf( appearance, capacity );
+			algorithm = Arrays.copyOf( algorithm, capacity );
+		}
+
+		return rowCount++;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public double getPositionThreshold()
+	{
+		return this.positionThreshold;
+	}
+
+	public double getOrientationThreshold()
+	{
+		return this.orientationThreshold;
+	}
+
+	public long getKeyframeInterval()
+	{
+		return this.keyframeInterval;
+	}
+
+	/** @return Number of entities we are currently tracking */
+	public int getEntityCount()
+	{
+		return this.index.size();
+	}
+
+	/** @return Number of PDUs that have been through the filter */
+	public long getReceived()
+	{
+		return this.received;
+	}
+
+	/** @return Number of PDUs the filter said should be written (including keyframes) */
+	public long getWritten()
+	{
+		return this.written;
+	}
+
+	/** @return Number of PDUs written only because the keyframe interval had expired */
+	public long getKeyframes()
+	{
+		return this.keyframes;
+	}
+
+	/** @return Number of PDUs the filter suppressed */
+	public long getSuppressed()
+	{
+		return this.received - this.written;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static boolean isRotating( int drm )
+	{
+		return drm == DRM_RPW || drm == DRM_RVW || drm == DRM_RPB || drm == DRM_RVB;
+	}
+
+	/**
+	 * Fill in the world to body rotation matrix (row major) for the given DIS Euler angles
+	 * (psi about z, then theta about y, then phi about x).
+	 */
+	private static void toRotation( double psi, double theta, double phi, double[] matrix, int offset )
+	{
+		double cosPsi = Math.cos( psi ),     sinPsi = Math.sin( psi );
+		double cosTheta = Math.cos( theta ), sinTheta = Math.sin( theta );
+		double cosPhi = Math.cos( phi ),     sinPhi = Math.sin( phi );
+
+		matrix[offset]   = cosTheta * cosPsi;
+		matrix[offset+1] = cosTheta * sinPsi;
+		matrix[offset+2] = -sinTheta;
+		matrix[offset+3] = sinPhi*sinTheta*cosPsi - cosPhi*sinPsi;
+		matrix[offset+4] = sinPhi*sinTheta*sinPsi + cosPhi*cosPsi;
+		matrix[offset+5] = sinPhi * cosTheta;
+		matrix[offset+6] = cosPhi*sinTheta*cosPsi + sinPhi*sinPsi;
+		matrix[offset+7] = cosPhi*sinTheta*sinPsi - sinPhi*cosPsi;
+		matrix[offset+8] = cosPhi * cosTheta;
+	}
+
+	/**
+	 * Turn the baseline orientation in the given row by its angular velocity over the given
+	 * time: R = DR * R0, where DR = cos(wt)I + (1-cos(wt))/w^2 ww^T - sin(wt)/w W. Each column
+	 * of R0 is a vector, so DR is applied to it as dot and cross products.
+	 */
+	private static void rotate( double[] state, int base, double dt, double[] result )
+	{
+		double wx = state[base+ANGULAR];
+		double wy = state[base+ANGULAR+1];
+		double wz = state[base+ANGULAR+2];
+		double w2 = wx*wx + wy*wy + wz*wz;
+
+		double cos, outer, sin;   // coefficients of I, ww^T and W
+		if( w2*dt*dt < SMALL_ROTATION )
+		{
+			cos = 1.0 - w2*dt*dt/2.0;
+			outer = dt*dt / 2.0;
+			sin = dt;
+		}
+		else
+		{
+			double w = Math.sqrt( w2 );
+			cos = Math.cos( w*dt );
+			outer = (1.0-cos) / w2;
+			sin = Math.sin( w*dt ) / w;
+		}
+
+		for( int column = 0; column < 3; column++ )
+		{
+			double x = state[base+ROTATION+column];
+			double y = state[base+ROTATION+3+column];
+			double z = state[base+ROTATION+6+column];
+			double dot = outer * (wx*x + wy*y + wz*z);
+			result[column]   = cos*x + dot*wx - sin*(wy*z - wz*y);
+			result[3+column] = cos*y + dot*wy - sin*(wz*x - wx*z);
+			result[6+column] = cos*z + dot*wz - sin*(wx*y - wy*x);
+		}
+	}
+
+	/** @return Component i of the given world vector in body axes (R0 * v) */
+	private static double worldToBody( double[] state, int base, int i, double x, double y, double z )
+	{
+		int row = base + ROTATION + i*3;
+		return state[row]*x + state[row+1]*y + state[row+2]*z;
+	}
+
+	/** @return Component i of the given body vector in world axes (R0^T * v) */
+	private static double bodyToWorld( double[] state, int base, int i, double x, double y, double z )
+	{
+		int column = base + ROTATION + i;
+		return state[column]*x + state[column+3]*y + state[column+6]*z;
+	}
+}
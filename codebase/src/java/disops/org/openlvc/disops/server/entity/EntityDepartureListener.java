@@ -0,0 +1,43 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+/**
+ * Implemented by anything that wants to know when an entity leaves the exercise. DIS has no
+ * reliable way for an entity to say it is leaving, so an entity is taken to have departed
+ * when we stop hearing from it (see {@link EntityTableUpdater}).
+ * <p/>
+ * Listeners are called on the pipeline shard thread that owns the entity, after it has been
+ * taken out of the {@link EntityTable}. As with a PDU listener they must be quick and must
+ * never block.
+ */
+public interface EntityDepartureListener
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * An entity has departed.
+	 *
+	 * @param entity   The last known state of the entity. The record is reused, so it is only
+	 *                 valid for the duration of the call.
+	 * @param departed Time the departure was noticed (millis since the epoch)
+	 */
+	public void entityDeparted( EntityRecord entity, long departed );
+
+}
@@ -0,0 +1,93 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityTypes;
+import org.openlvc.disops.server.influx.LineProtocolEncoder;
+import org.openlvc.disops.server.influx.PointSink;
+
+/**
+ * Writes a point to the {@value #MEASUREMENT} measurement each time an entity departs. The
+ * point has the same identifying tags as {@link EntityStateWriter} (without the marking, as
+ * the table doesn't keep it) and records where the entity was last seen, when it was last
+ * heard from and how long it had been silent. The timestamp is when the departure was noticed.
+ * <p/>
+ * Not thread safe. Each pipeline shard's {@link EntityTableUpdater} needs its own writer; the
+ * sink is shared between them.
+ */
+public class EntityDepartureWriter implements EntityDepartureListener
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String MEASUREMENT = "entity_departed";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final PointSink sink;
+	private final LineProtocolEncoder encoder;
+	private long written;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public EntityDepartureWriter( PointSink sink )
+	{
+		this.sink = sink;
+		this.encoder = new LineProtocolEncoder( sink.getPrecision() );
+		this.written = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void entityDeparted( EntityRecord entity, long departed )
+	{
+		long id = entity.id;
+		long type = entity.entityType;
+
+		encoder.measurement( MEASUREMENT )
+		       .tag( "exercise", EntityIds.getExercise(id) )
+		       .tag( "site", EntityIds.getSite(id) )
+		       .tag( "app", EntityIds.getApplication(id) )
+		       .tag( "entity", EntityIds.getEntity(id) )
+		       .tag( "force", entity.forceId )
+		       .tag( "type", EntityTypes.toString(type) )
+		       .field( "x", entity.locationX )
+		       .field( "y", entity.locationY )
+		       .field( "z", entity.locationZ )
+		       .field( "last_heard", entity.lastHeard )
+		       .field( "silent", departed-entity.lastHeard )
+		       .timestamp( departed )
+		       .writeTo( sink );
+		++written;
+	}
+
+	/** @return The number of departures written */
+	public long getWritten()
+	{
+		return this.written;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
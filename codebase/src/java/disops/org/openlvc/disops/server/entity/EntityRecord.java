@@ -0,0 +1,90 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityTypes;
+
+/**
+ * A mutable snapshot of one row of the {@link EntityTable}. Readers create one of these and
+ * reuse it for every lookup, so that reading the table doesn't allocate. The fields are
+ * public so that they can be read without call overhead; they are just a copy, and changing
+ * them has no effect on the table.
+ */
+public class EntityRecord
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	/** Exercise-qualified packed Entity ID. See {@link EntityIds}. */
+	public long id;
+	/** Packed Entity Type. See {@link EntityTypes}. */
+	public long entityType;
+	public int forceId;
+	public int appearance;
+	public int deadReckoningAlgorithm;
+
+	// Geocentric (ECEF) location in metres
+	public double locationX;
+	public double locationY;
+	public double locationZ;
+
+	// World velocity in m/s
+	public float velocityX;
+	public float velocityY;
+	public float velocityZ;
+
+	// Euler angles in radians
+	public float psi;
+	public float theta;
+	public float phi;
+
+	/** Time the last update was received, in millis since the epoch */
+	public long lastHeard;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public EntityRecord()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	public int getExerciseId()
+	{
+		return EntityIds.getExercise( id );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Entity "+EntityIds.toString(id)+" (exercise "+getExerciseId()+") type="+
+		       EntityTypes.toString(entityType)+" force="+forceId+" location=["+
+		       locationX+","+locationY+","+locationZ+"]";
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,218 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+
+import org.openlvc.disops.metrics.Histogram;
+import org.openlvc.disops.server.dis.PduListener;
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.EntityTypes;
+import org.openlvc.disops.server.dis.pdu.PduDecoder;
+import org.openlvc.disops.server.dis.pdu.PduHeader;
+import org.openlvc.disops.server.dis.pdu.PduType;
+import org.openlvc.disops.server.influx.LineProtocolEncoder;
+import org.openlvc.disops.server.influx.PointSink;
+import org.openlvc.disops.server.influx.TagDictionary;
+
+/**
+ * Writes Entity State PDUs into InfluxDB as points in the {@value #MEASUREMENT} measurement.
+ * If a {@link DeadReckoningFilter} is supplied, only the PDUs it passes are written.
+ * <p/>
+ * Each point is tagged with the exercise, the parts of the entity ID, the force, the
+ * entity type (dotted form) and the marking. Fields hold the location, velocity and
+ * orientation, plus appearance and DR algorithm. The timestamp is our receive time.
+ * <p/>
+ * Apart from the entity number, the tags are looked up by their raw PDU bytes in
+ * {@link TagDictionary}s: one for the exercise, site, application and force together, one
+ * for the entity type and one for the marking. Each is formatted and escaped the first time
+ * it is seen and spliced in from then on. The point is put together by a
+ * {@link LineProtocolEncoder}, so writing one doesn't allocate.
+ * <p/>
+ * The filter is not thread safe, so there must be one writer (and one filter) per pipeline
+ * shard. The sink is shared between them.
+ */
+public class EntityStateWriter implements PduListener
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String MEASUREMENT = "entity_state";
+
+	/** Every field written for an entity, for anything that needs to select them by name */
+	public static final String[] FIELDS = { "x", "y", "z", "vx", "vy", "vz", "psi", "theta", "phi",
+	                                        "appearance", "drm" };
+
+	/** Distinct values of each kind of tag kept formatted, unless told otherwise */
+	public static final int DEFAULT_TAG_CAPACITY = 4096;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final PointSink sink;
+	private final DeadReckoningFilter filter; // may be null
+	private final PduDecoder decoder;
+
+	// reused for every point
+	private final LineProtocolEncoder encoder;
+	private final TagDictionary sourceTags;   // exercise, site, app and force
+	private final TagDictionary typeTags;
+	private final TagDictionary markingTags;
+
+	private Histogram latency; // may be null
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param sink   Where points are written
+	 * @param filter Filter deciding which PDUs are written, or null to write every one
+	 */
+	public EntityStateWriter( PointSink sink, DeadReckoningFilter filter )
+	{
+		this( sink, filter, DEFAULT_TAG_CAPACITY );
+	}
+
+	/**
+	 * @param sink        Where points are written
+	 * @param filter      Filter deciding which PDUs are written, or null to write every one
+	 * @param tagCapacity Distinct values of each kind of tag to keep formatted
+	 */
+	public EntityStateWriter( PointSink sink, DeadReckoningFilter filter, int tagCapacity )
+	{
+		this.sink = sink;
+		this.filter = filter;
+		this.decoder = new PduDecoder();
+		this.encoder = new LineProtocolEncoder( sink.getPrecision() );
+		this.sourceTags = new TagDictionary( tagCapacity, EntityStateWriter::formatSource );
+		this.typeTags = new TagDictionary( tagCapacity, EntityStateWriter::formatType );
+		this.markingTags = new TagDictionary( tagCapacity, EntityStateWriter::formatMarking );
+		this.latency = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void pduReceived( ByteBuffer buffer, long receiveTime )
+	{
+		PduHeader header = decoder.decode( buffer );
+		if( header == null || header.getPduType() != PduType.EntityState )
+			return;
+
+		EntityStatePdu pdu = (EntityStatePdu)header;
+		if( filter != null && filter.filter(pdu,receiveTime) == false )
+			return;
+
+		encode( pdu, receiveTime ).writeTo( sink );
+		if( latency != null )
+			latency.record( (System.currentTimeMillis()-receiveTime) * 1000 );
+	}
+
+	private LineProtocolEncoder encode( EntityStatePdu pdu, long receiveTime )
+	{
+		long id = pdu.getEntityId();
+		long source = ((long)pdu.getExerciseId() << 48) |
+		              ((long)EntityIds.getSite(id) << 32) |
+		              ((long)EntityIds.getApplication(id) << 16) |
+		              pdu.getForceId();
+
+		return encoder.measurement( MEASUREMENT )
+		              .tags( sourceTags.get(source) )
+		              .tag( "entity", EntityIds.getEntity(id) )
+		              .tags( typeTags.get(pdu.getEntityType()) )
+		              .tags( markingTags.get(pdu.getBuffer(),pdu.getMarkingOffset(),pdu.getMarkingLength()) )
+		              .field( "x", pdu.getLocationX() )
+		              .field( "y", pdu.getLocationY() )
+		              .field( "z", pdu.getLocationZ() )
+		              .field( "vx", pdu.getVelocityX() )
+		              .field( "vy", pdu.getVelocityY() )
+		              .field( "vz", pdu.getVelocityZ() )
+		              .field( "psi", pdu.getPsi() )
+		              .field( "theta", pdu.getTheta() )
+		              .field( "phi", pdu.getPhi() )
+		              .field( "appearance", (long)pdu.getAppearance() )
+		              .field( "drm", (long)pdu.getDeadReckoningAlgorithm() )
+		              .timestamp( receiveTime );
+	}
+
+	public DeadReckoningFilter getFilter()
+	{
+		return this.filter;
+	}
+
+	/**
+	 * Record the time (micros) between each PDU being received and its point being handed to
+	 * the sink in the given histogram. Receive times are only to the millisecond, so that is
+	 * the resolution of the measurement. Set before the writer is registered with a pipeline.
+	 */
+	public void setLatencyHistogram( Histogram histogram )
+	{
+		this.latency = histogram;
+	}
+
+	/** @return Fields left out of points because the PDU had NaN or infinity in them */
+	public long getSkippedFields()
+	{
+		return encoder.getSkippedFields();
+	}
+
+	/** @return The writer's tag dictionaries, for their counters */
+	public TagDictionary[] getTagDictionaries()
+	{
+		return new TagDictionary[]{ sourceTags, typeTags, markingTags };
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Exercise, site, application and force, two bytes each */
+	private static void formatSource( byte[] raw, int length, StringBuilder tags )
+	{
+		TagDictionary.appendTag( tags, "exercise", uint16(raw,0) );
+		TagDictionary.appendTag( tags, "site", uint16(raw,2) );
+		TagDictionary.appendTag( tags, "app", uint16(raw,4) );
+		TagDictionary.appendTag( tags, "force", uint16(raw,6) );
+	}
+
+	/** The eight bytes of an entity type, as they are on the wire */
+	private static void formatType( byte[] raw, int length, StringBuilder tags )
+	{
+		long type = 0;
+		for( int i = 0; i < 8; i++ )
+			type = (type << 8) | (raw[i] & 0xff);
+
+		String dotted = EntityTypes.getKind(type)+"."+EntityTypes.getDomain(type)+"."+
+		                EntityTypes.getCountry(type)+"."+EntityTypes.getCategory(type)+"."+
+		                EntityTypes.getSubcategory(type)+"."+EntityTypes.getSpecific(type)+"."+
+		                EntityTypes.getExtra(type);
+		TagDictionary.appendTag( tags, "type", dotted );
+	}
+
+	/** Markings are free text. An empty one is left off, as empty tag values aren't allowed. */
+	private static void formatMarking( byte[] raw, int length, StringBuilder tags )
+	{
+		TagDictionary.appendTag( tags, "marking", raw, 0, length );
+	}
+
+	private static int uint16( byte[] raw, int offset )
+	{
+		return ((raw[offset] & 0xff) << 8) | (raw[offset+1] & 0xff);
+	}
+}
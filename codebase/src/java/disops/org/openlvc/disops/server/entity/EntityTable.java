@@ -0,0 +1,504 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+
+/**
+ * Live table of the last known state of every entity on the network.
+ * <p/>
+ * <b>Layout:</b> The table is an open-addressing hash table (linear probing) keyed on the
+ * exercise-qualified packed Entity ID (see {@link EntityIds}), so there are no key objects
+ * and no per-entity allocation. Keys live in a <code>long[]</code> and the state for each
+ * slot is a fixed-size record in a single {@link ByteBuffer}. That buffer can be allocated
+ * off-heap so a very large table adds nothing to GC scanning. Each entity costs roughly
+ * 88 bytes at full occupancy, plus the free slots kept to hold the load factor down.
+ * <p/>
+ * <b>Concurrency:</b> There must only be a single writing thread (the ingest thread). Any
+ * number of other threads may read at the same time without blocking it. Each slot is
+ * covered by one of a set of striped {@link StampedLock}s; the writer takes the write lock
+ * for the few nanoseconds it takes to update a row, and readers use an optimistic read that
+ * they validate afterwards, retrying if the row changed underneath them. When the table has
+ * to grow, the writer builds a new generation of storage off to the side and publishes it
+ * with a volatile write, so readers always see a complete table.
+ * <p/>
+ * <b>Limits:</b> The table stops growing at 2^24 slots (a little over 10 million entities).
+ * Once it is that full, entities we haven't seen before are turned away and counted rather
+ * than stored. Entities already in the table carry on being updated.
+ */
+public class EntityTable
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long EMPTY = -1L;
+	private static final long TOMBSTONE = -2L;
+
+	private static final double LOAD_FACTOR = 0.6;
+	private static final int MAX_CAPACITY = 1 << 24;
+	private static final int STRIPES = 512;             // must be a power of 2
+	private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+	// Record layout (bytes from the start of the slot's record)
+	private static final int REC_LOCATION     = 0;      // 3x float64
+	private static final int REC_VELOCITY     = 24;     // 3x float32
+	private static final int REC_ORIENTATION  = 36;     // 3x float32
+	private static final int REC_APPEARANCE   = 48;     // int32
+	private static final int REC_FORCE        = 52;     // int32
+	private static final int REC_ENTITY_TYPE  = 56;     // int64
+	private static final int REC_LAST_HEARD   = 64;     // int64
+	private static final int REC_DR_ALGORITHM = 72;     // int32
+	private static final int RECORD_SIZE      = 80;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final boolean offHeap;
+	private final Logger logger;         // may be null
+	private final int maxCapacity;       // slots, power of 2
+	private final int maxEntities;
+	private final StampedLock[] locks;
+	private volatile Storage storage;
+
+	// Owned by the writer thread
+	private int size;
+	private int tombstones;
+	private int threshold;
+
+	// Published for readers
+	private volatile int publishedSize;
+	private volatile long rejected;      // written only by the writer
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public EntityTable( int expectedEntities, boolean offHeap )
+	{
+		this( expectedEntities, offHeap, null );
+	}
+
+	/**
+	 * @param expectedEntities The number of entities to size the table for up front. It will
+	 *                         grow beyond this if it has to, but growing means a rehash.
+	 * @param offHeap          If true, entity state is stored in native memory outside the
+	 *                         Java heap
+	 * @param logger           Told when the table fills up and starts turning entities away.
+	 *                         May be null.
+	 */
+	public EntityTable( int expectedEntities, boolean offHeap, Logger logger )
+	{
+		this( expectedEntities, offHeap, logger, MAX_CAPACITY );
+	}
+
+	/**
+	 * As {@link #EntityTable(int, boolean, Logger)}, but stopping at the given number of
+	 * slots rather than 2^24, so that running out of room can be tested.
+	 */
+	EntityTable( int expectedEntities, boolean offHeap, Logger logger, int maxCapacity )
+	{
+		this.offHeap = offHeap;
+		this.logger = logger;
+		this.maxCapacity = maxCapacity;
+		this.maxEntities = (int)(maxCapacity * LOAD_FACTOR);
+		this.locks = new StampedLock[STRIPES];
+		for( int i = 0; i < STRIPES; i++ )
+			this.locks[i] = new StampedLock();
+
+		this.storage = new Storage( capacityFor(expectedEntities,maxCapacity), offHeap );
+		this.size = 0;
+		this.tombstones = 0;
+		this.threshold = (int)(storage.capacity * LOAD_FACTOR);
+		this.publishedSize = 0;
+		this.rejected = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writer Methods (single thread only)   //////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Apply an Entity State PDU to the table, inserting the entity if we haven't seen it.
+	 * <b>Must only be called from the writer thread.</b>
+	 *
+	 * @return True if the entity was new to the table, false if it was an update or if the
+	 *         entity was new but the table is full (see {@link #isFull()})
+	 */
+	public boolean update( EntityStatePdu pdu, long receiveTime )
+	{
+		long key = EntityIds.withExercise( pdu.getExerciseId(), pdu.getEntityId() );
+		Storage current = this.storage;
+		int slot = current.find( key );
+		boolean inserted = false;
+		if( slot < 0 )
+		{
+			if( size >= maxEntities )
+			{
+				reject( key );
+				return false;
+			}
+
+			// growing always leaves room for at least one more below the threshold, so
+			// there is always an empty slot to end a probe
+			if( size+tombstones+1 > threshold )
+				current = grow();
+
+			slot = current.findInsertSlot( key );
+			inserted = true;
+		}
+
+		StampedLock lock = locks[slot & (STRIPES-1)];
+		long stamp = lock.writeLock();
+		try
+		{
+			if( inserted )
+			{
+				if( current.keys[slot] == TOMBSTONE )
+					--tombstones;
+				current.keys[slot] = key;
+				++size;
+			}
+
+			ByteBuffer records = current.records;
+			int base = slot * RECORD_SIZE;
+			records.putDouble( base+REC_LOCATION,       pdu.getLocationX() );
+			records.putDouble( base+REC_LOCATION+8,     pdu.getLocationY() );
+			records.putDouble( base+REC_LOCATION+16,    pdu.getLocationZ() );
+			records.putFloat(  base+REC_VELOCITY,       pdu.getVelocityX() );
+			records.putFloat(  base+REC_VELOCITY+4,     pdu.getVelocityY() );
+			records.putFloat(  base+REC_VELOCITY+8,     pdu.getVelocityZ() );
+			records.putFloat(  base+REC_ORIENTATION,    pdu.getPsi() );
+			records.putFloat(  base+REC_ORIENTATION+4,  pdu.getTheta() );
+			records.putFloat(  base+REC_ORIENTATION+8,  pdu.getPhi() );
+			records.putInt(    base+REC_APPEARANCE,     pdu.getAppearance() );
+			records.putInt(    base+REC_FORCE,          pdu.getForceId() );
+			records.putLong(   base+REC_ENTITY_TYPE,    pdu.getEntityType() );
+			records.putLong(   base+REC_LAST_HEARD,     receiveTime );
+			records.putInt(    base+REC_DR_ALGORITHM,   pdu.getDeadReckoningAlgorithm() );
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+
+		if( inserted )
+			this.publishedSize = size;
+
+		return inserted;
+	}
+
+	/** The table is as big as it gets. Count the entity, and say so the first time. */
+	private void reject( long key )
+	{
+		if( rejected == 0 && logger != null )
+		{
+			logger.error( "Entity table is full (%d entities), ignoring new entities starting with %s",
+			              size, EntityIds.toString(key) );
+		}
+
+		this.rejected = rejected+1;
+	}
+
+	/**
+	 * Remove the entity with the given exercise-qualified ID from the table.
+	 * <b>Must only be called from the writer thread.</b>
+	 *
+	 * @return True if the entity was in the table
+	 */
+	public boolean remove( long id )
+	{
+		Storage current = this.storage;
+		int slot = current.find( id );
+		if( slot < 0 )
+			return false;
+
+		StampedLock lock = locks[slot & (STRIPES-1)];
+		long stamp = lock.writeLock();
+		try
+		{
+			current.keys[slot] = TOMBSTONE;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+
+		--size;
+		++tombstones;
+		this.publishedSize = size;
+		return true;
+	}
+
+	/**
+	 * Build a new storage generation big enough for the current population plus growth,
+	 * copy every live entity across (dropping tombstones) and publish it.
+	 */
+	private Storage grow()
+	{
+		Storage old = this.storage;
+		int capacity = capacityFor( Math.max(size*2,16), maxCapacity );
+		if( capacity < old.capacity && tombstones == 0 )
+			capacity = old.capacity;
+
+		Storage replacement = new Storage( capacity, offHeap );
+		for( int slot = 0; slot < old.capacity; slot++ )
+		{
+			long key = old.keys[slot];
+			if( key < 0 )
+				continue;
+
+			int target = replacement.findInsertSlot( key );
+			replacement.keys[target] = key;
+			copyRecord( old.records, slot, replacement.records, target );
+		}
+
+		this.tombstones = 0;
+		this.threshold = (int)(capacity * LOAD_FACTOR);
+		this.storage = replacement;
+		return replacement;
+	}
+
+	private static void copyRecord( ByteBuffer from, int fromSlot, ByteBuffer to, int toSlot )
+	{
+		int source = fromSlot * RECORD_SIZE;
+		int target = toSlot * RECORD_SIZE;
+		for( int i = 0; i < RECORD_SIZE; i += 8 )
+			to.putLong( target+i, from.getLong(source+i) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reader Methods (any thread)   //////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Copy the current state of the given entity into the given record. Safe to call from
+	 * any thread, concurrently with the writer.
+	 *
+	 * @param id     Exercise-qualified packed entity ID (see {@link EntityIds#withExercise})
+	 * @param record The record to fill. Callers should reuse this between lookups.
+	 * @return True if the entity was found and the record filled, false otherwise
+	 */
+	public boolean get( long id, EntityRecord record )
+	{
+		Storage current = this.storage;
+		int slot = current.find( id );
+		if( slot < 0 )
+			return false;
+
+		return read( current, slot, id, record );
+	}
+
+	/**
+	 * @return True if the given exercise-qualified entity ID is in the table
+	 */
+	public boolean contains( long id )
+	{
+		return storage.find( id ) >= 0;
+	}
+
+	/**
+	 * Visit every entity in the table. The same record instance is refilled and passed to
+	 * the visitor for each entity, so the visitor must copy anything it wants to keep. The
+	 * iteration sees a consistent view of each entity, but not of the table as a whole.
+	 */
+	public void forEach( EntityRecord scratch, Consumer<EntityRecord> visitor )
+	{
+		Storage current = this.storage;
+		for( int slot = 0; slot < current.capacity; slot++ )
+		{
+			long key = current.keys[slot];
+			if( key >= 0 && read(current,slot,key,scratch) )
+				visitor.accept( scratch );
+		}
+	}
+
+	/**
+	 * Optimistically read a slot, falling back to a proper read lock if the writer keeps
+	 * getting in the way.
+	 */
+	private boolean read( Storage current, int slot, long id, EntityRecord record )
+	{
+		StampedLock lock = locks[slot & (STRIPES-1)];
+		for( int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++ )
+		{
+			long stamp = lock.tryOptimisticRead();
+			if( stamp == 0 )
+				continue;
+
+			boolean present = current.keys[slot] == id;
+			if( present )
+				copyOut( current.records, slot, id, record );
+
+			if( lock.validate(stamp) )
+				return present;
+		}
+
+		long stamp = lock.readLock();
+		try
+		{
+			if( current.keys[slot] != id )
+				return false;
+
+			copyOut( current.records, slot, id, record );
+			return true;
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	private static void copyOut( ByteBuffer records, int slot, long id, EntityRecord record )
+	{
+		int base = slot * RECORD_SIZE;
+		record.id = id;
+		record.locationX  = records.getDouble( base+REC_LOCATION );
+		record.locationY  = records.getDouble( base+REC_LOCATION+8 );
+		record.locationZ  = records.getDouble( base+REC_LOCATION+16 );
+		record.velocityX  = records.getFloat( base+REC_VELOCITY );
+		record.velocityY  = records.getFloat( base+REC_VELOCITY+4 );
+		record.velocityZ  = records.getFloat( base+REC_VELOCITY+8 );
+		record.psi        = records.getFloat( base+REC_ORIENTATION );
+		record.theta      = records.getFloat( base+REC_ORIENTATION+4 );
+		record.phi        = records.getFloat( base+REC_ORIENTATION+8 );
+		record.appearance = records.getInt( base+REC_APPEARANCE );
+		record.forceId    = records.getInt( base+REC_FORCE );
+		record.entityType = records.getLong( base+REC_ENTITY_TYPE );
+		record.lastHeard  = records.getLong( base+REC_LAST_HEARD );
+		record.deadReckoningAlgorithm = records.getInt( base+REC_DR_ALGORITHM );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The number of entities in the table. Safe to call from any thread. */
+	public int size()
+	{
+		return this.publishedSize;
+	}
+
+	/** @return The number of slots in the current storage generation */
+	public int getCapacity()
+	{
+		return this.storage.capacity;
+	}
+
+	public boolean isOffHeap()
+	{
+		return this.offHeap;
+	}
+
+	/** @return True if the table can't take any more entities. Safe to call from any thread. */
+	public boolean isFull()
+	{
+		return this.publishedSize >= maxEntities;
+	}
+
+	/** @return The number of updates for new entities turned away because the table was full */
+	public long getRejected()
+	{
+		return this.rejected;
+	}
+
+	/** @return Approximate bytes used by the current storage generation (keys + records) */
+	public long getMemoryUsage()
+	{
+		long capacity = storage.capacity;
+		return (capacity * 8) + (capacity * RECORD_SIZE);
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return The power-of-two slot count needed to hold the given number of entities */
+	private static int capacityFor( int entities, int maxCapacity )
+	{
+		long needed = (long)Math.ceil( Math.max(entities,1) / LOAD_FACTOR );
+		int capacity = 16;
+		while( capacity < needed && capacity < maxCapacity )
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	/** Murmur3 finalizer - spreads the structured entity IDs across the table */
+	private static int hash( long key )
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// One generation of table storage   /////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class Storage
+	{
+		final int capacity;
+		final int mask;
+		final long[] keys;
+		final ByteBuffer records;
+
+		Storage( int capacity, boolean offHeap )
+		{
+			this.capacity = capacity;
+			this.mask = capacity-1;
+			this.keys = new long[capacity];
+			Arrays.fill( this.keys, EMPTY );
+			this.records = offHeap ? ByteBuffer.allocateDirect( capacity*RECORD_SIZE ) :
+			                         ByteBuffer.allocate( capacity*RECORD_SIZE );
+		}
+
+		/** @return The slot holding the key, or -1 if it isn't present */
+		int find( long key )
+		{
+			int slot = hash(key) & mask;
+			while( true )
+			{
+				long existing = keys[slot];
+				if( existing == key )
+					return slot;
+				else if( existing == EMPTY )
+					return -1;
+
+				slot = (slot+1) & mask;
+			}
+		}
+
+		/** @return The first free (empty or tombstoned) slot in the key's probe sequence */
+		int findInsertSlot( long key )
+		{
+			int slot = hash(key) & mask;
+			while( keys[slot] >= 0 )
+				slot = (slot+1) & mask;
+
+			return slot;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.openlvc.disops.server.dis.PduListener;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.openlvc.disops.server.dis.pdu.PduDecoder;
+import org.openlvc.disops.server.dis.pdu.PduHeader;
+import org.openlvc.disops.server.dis.pdu.PduType;
+import org.openlvc.disops.utils.TimingWheel;
+
+/**
+ * Listens for Entity State PDUs and applies them to an {@link EntityTable}. This must be
+ * the table's only writer, so each one must only ever be registered with a single pipeline
+ * shard (see {@link ShardedEntityTable}).
+ * <p/>
+ * <b>Timeouts:</b> If given a timeout, the updater also removes entities we haven't heard
+ * from in that long and tells its {@link EntityDepartureListener}s. Each entity has a
+ * deadline in a {@link TimingWheel}, which is moved on by the receive time of each PDU and
+ * by the pipeline's {@link PduListener#tick(long) tick} when the shard is quiet. Updates
+ * don't touch the wheel at all: the table already has the time each entity was last heard
+ * from, so when an entity's deadline comes up we check that, and either push the deadline
+ * back to a timeout after it or let the entity go. Keeping track of timeouts then costs
+ * one reschedule per entity per timeout period, rather than one per update or a sweep of
+ * the whole table. Departures are noticed up to a wheel tick plus a pipeline tick late.
+ * <p/>
+ * <b>Spatial index:</b> If given a {@link SpatialIndex}, the updater keeps the position of
+ * every entity in it up to date as well, and takes entities out of it when they depart.
+ */
+public class EntityTableUpdater implements PduListener
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final EntityDepartureListener[] NO_LISTENERS = new EntityDepartureListener[0];
+
+	/** Resolution of the timeout wheel */
+	private static final long TICK_MILLIS = PduPipeline.TICK_MILLIS;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final EntityTable table;
+	private final PduDecoder decoder;
+	private SpatialIndex spatialIndex;   // may be null
+
+	// Timeouts - all null/zero if they are turned off
+	private final long timeout;
+	private final TimingWheel wheel;
+	private final LongConsumer expiry;   // bound once so advancing the wheel doesn't allocate
+	private final EntityRecord departing;
+	private long now;
+	private volatile EntityDepartureListener[] listeners;
+	private volatile long departed;      // written only by the shard thread
+	private volatile int tracked;        // written only by the shard thread
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * Create an updater that never times entities out.
+	 */
+	public EntityTableUpdater( EntityTable table )
+	{
+		this( table, 0, 0 );
+	}
+
+	/**
+	 * @param table   The table to update
+	 * @param timeout Millis after the last update that an entity is considered to have
+	 *                departed. Zero or less never times entities out.
+	 * @param now     The current time (millis since the epoch)
+	 */
+	public EntityTableUpdater( EntityTable table, long timeout, long now )
+	{
+		this.table = table;
+		this.decoder = new PduDecoder();
+		this.spatialIndex = null;
+
+		this.timeout = Math.max( 0, timeout );
+		this.wheel = timeout > 0 ? new TimingWheel( TICK_MILLIS, table.getCapacity()/2, now ) : null;
+		this.expiry = this::expire;
+		this.departing = new EntityRecord();
+		this.now = now;
+		this.listeners = NO_LISTENERS;
+		this.departed = 0;
+		this.tracked = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void pduReceived( ByteBuffer buffer, long receiveTime )
+	{
+		PduHeader pdu = decoder.decode( buffer );
+		if( pdu != null && pdu.getPduType() == PduType.EntityState )
+		{
+			EntityStatePdu entityState = (EntityStatePdu)pdu;
+			boolean inserted = table.update( entityState, receiveTime );
+			long id = EntityIds.withExercise( entityState.getExerciseId(), entityState.getEntityId() );
+			if( inserted && wheel != null )
+				wheel.schedule( id, receiveTime+timeout );
+
+			// an entity the table is too full to take doesn't go in the index either, as
+			// nothing would ever take it out again
+			if( spatialIndex != null && (inserted || !table.isFull() || table.contains(id)) )
+			{
+				spatialIndex.update( id, entityState.getLocationX(),
+				                         entityState.getLocationY(),
+				                         entityState.getLocationZ() );
+			}
+		}
+
+		if( wheel != null )
+			advance( receiveTime );
+	}
+
+	@Override
+	public void tick( long now )
+	{
+		if( wheel != null )
+		{
+			advance( now );
+			this.tracked = wheel.size();
+		}
+	}
+
+	private void advance( long time )
+	{
+		if( time > now )
+			this.now = time;
+
+		wheel.advance( time, expiry );
+	}
+
+	/**
+	 * An entity's deadline has come up. If we have heard from it since it was set, set it
+	 * again from then. Otherwise it has gone quiet: take it out and tell people.
+	 */
+	private void expire( long id )
+	{
+		if( table.get(id,departing) == false )
+			return;
+
+		long deadline = departing.lastHeard + timeout;
+		if( deadline > now )
+		{
+			wheel.schedule( id, deadline );
+			return;
+		}
+
+		table.remove( id );
+		if( spatialIndex != null )
+			spatialIndex.remove( id );
+
+		++departed;
+
+		EntityDepartureListener[] current = this.listeners;
+		for( int i = 0; i < current.length; i++ )
+			current[i].entityDeparted( departing, now );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Departure Listener Methods   ///////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Register a listener to be told about entities this updater times out. Safe to call from
+	 * any thread. Has no effect if the updater was created without a timeout.
+	 */
+	public synchronized void addDepartureListener( EntityDepartureListener listener )
+	{
+		EntityDepartureListener[] updated = Arrays.copyOf( listeners, listeners.length+1 );
+		updated[listeners.length] = listener;
+		this.listeners = updated;
+	}
+
+	public synchronized void removeDepartureListener( EntityDepartureListener listener )
+	{
+		List<EntityDepartureListener> list = new ArrayList<>( Arrays.asList(listeners) );
+		list.remove( listener );
+		this.listeners = list.toArray( NO_LISTENERS );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public EntityTable getTable()
+	{
+		return this.table;
+	}
+
+	public SpatialIndex getSpatialIndex()
+	{
+		return this.spatialIndex;
+	}
+
+	/**
+	 * Keep the given index up to date with entity positions as well. It must be the index
+	 * for this updater's table partition. Set before the updater is registered with a pipeline.
+	 */
+	public void setSpatialIndex( SpatialIndex spatialIndex )
+	{
+		this.spatialIndex = spatialIndex;
+	}
+
+	/** @return Millis of silence before an entity is timed out, or 0 if they never are */
+	public long getTimeout()
+	{
+		return this.timeout;
+	}
+
+	/** @return The number of entities timed out since the updater was created */
+	public long getDeparted()
+	{
+		return this.departed;
+	}
+
+	/** @return The number of entities with a timeout pending, as of the last tick */
+	public int getTracked()
+	{
+		return this.tracked;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
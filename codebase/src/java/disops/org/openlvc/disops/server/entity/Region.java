@@ -0,0 +1,421 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import org.openlvc.disops.Geodesy;
+
+/**
+ * An area of the world to search a {@link SpatialIndex} for. Positions are geocentric (ECEF)
+ * metres, the same as the DIS world coordinates in an Entity State PDU.
+ * <p/>
+ * A region is an exact test ({@link #contains(double, double, double)}) plus an ECEF
+ * bounding box enclosing everything the test can accept, which is what the index uses to
+ * decide which grid cells to look in. The geodetic regions ({@link #box box} and
+ * {@link #circle circle}) are tested without any trigonometry per position: lines of
+ * latitude are cones about the polar axis, meridians are planes through it, and altitude is
+ * taken along the geocentric radius (within a few metres of the geodetic altitude anywhere
+ * an entity is likely to be).
+ * <p/>
+ * Geodetic regions only reach from {@value #DEFAULT_FLOOR}m to {@value #DEFAULT_CEILING}m
+ * unless they are given an altitude band. A tighter band means fewer cells to look in.
+ * <p/>
+ * Regions are immutable and can be shared between threads and reused between queries.
+ */
+public abstract class Region
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Lowest altitude (metres) a geodetic region reaches by default */
+	public static final double DEFAULT_FLOOR = -1000.0;
+	/** Highest altitude (metres) a geodetic region reaches by default */
+	public static final double DEFAULT_CEILING = 30000.0;
+
+	private static final double WGS84_A = Geodesy.WGS84_A;
+	private static final double WGS84_B = Geodesy.WGS84_B;
+	private static final double WGS84_E2 = Geodesy.WGS84_E2;
+	private static final double MIN_CURVATURE_RADIUS = 6335439.0;  // meridional, at the equator
+
+	// Slack for approximate altitudes, so the bounds always hold whatever the test accepts
+	private static final double PAD = 100.0;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	protected double minX, minY, minZ;
+	protected double maxX, maxY, maxZ;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	protected Region()
+	{
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return True if the given geocentric position is in the region
+	 */
+	public abstract boolean contains( double x, double y, double z );
+
+	/** Grow the bounds to take in the given point */
+	protected void include( double x, double y, double z )
+	{
+		minX = Math.min( minX, x );
+		minY = Math.min( minY, y );
+		minZ = Math.min( minZ, z );
+		maxX = Math.max( maxX, x );
+		maxY = Math.max( maxY, y );
+		maxZ = Math.max( maxZ, z );
+	}
+
+	protected void resetBounds()
+	{
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** Geocentric bounds of everything {@link #contains} can accept */
+	public double getMinX()
+	{
+		return this.minX;
+	}
+
+	public double getMinY()
+	{
+		return this.minY;
+	}
+
+	public double getMinZ()
+	{
+		return this.minZ;
+	}
+
+	public double getMaxX()
+	{
+		return this.maxX;
+	}
+
+	public double getMaxY()
+	{
+		return this.maxY;
+	}
+
+	public double getMaxZ()
+	{
+		return this.maxZ;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return Everything inside the given geocentric (ECEF) box
+	 */
+	public static Region ecefBox( double minX, double minY, double minZ,
+	                              double maxX, double maxY, double maxZ )
+	{
+		return new EcefBox( minX, minY, minZ, maxX, maxY, maxZ );
+	}
+
+	/**
+	 * @return Everything within a straight-line distance (metres) of the given geocentric point
+	 */
+	public static Region sphere( double x, double y, double z, double radius )
+	{
+		return new Sphere( x, y, z, radius );
+	}
+
+	/**
+	 * Everything between the given latitudes and longitudes (degrees), from
+	 * {@link #DEFAULT_FLOOR} to {@link #DEFAULT_CEILING}. The box runs east from the minimum
+	 * longitude to the maximum, so a box across the antimeridian has minLon > maxLon.
+	 */
+	public static Region box( double minLat, double minLon, double maxLat, double maxLon )
+	{
+		return new GeodeticBox( minLat, minLon, maxLat, maxLon, DEFAULT_FLOOR, DEFAULT_CEILING );
+	}
+
+	/**
+	 * As {@link #box(double, double, double, double)}, between the given altitudes (metres
+	 * above the WGS84 ellipsoid).
+	 */
+	public static Region box( double minLat, double minLon, double maxLat, double maxLon,
+	                          double floor, double ceiling )
+	{
+		return new GeodeticBox( minLat, minLon, maxLat, maxLon, floor, ceiling );
+	}
+
+	/**
+	 * Everything within a horizontal distance (metres) of the given latitude and longitude
+	 * (degrees), from {@link #DEFAULT_FLOOR} to {@link #DEFAULT_CEILING}. Distance is taken in
+	 * the plane tangent to the ellipsoid at the centre, which is within 0.1% of the distance
+	 * over the ground out to a radius of about 350km.
+	 */
+	public static Region circle( double latitude, double longitude, double radius )
+	{
+		return new Circle( latitude, longitude, radius, DEFAULT_FLOOR, DEFAULT_CEILING );
+	}
+
+	/**
+	 * As {@link #circle(double, double, double)}, between the given altitudes (metres above
+	 * the WGS84 ellipsoid).
+	 */
+	public static Region circle( double latitude, double longitude, double radius,
+	                             double floor, double ceiling )
+	{
+		return new Circle( latitude, longitude, radius, floor, ceiling );
+	}
+
+	/** @return Height (metres) above the ellipsoid, measured along the geocentric radius */
+	static double altitudeOf( double x, double y, double z )
+	{
+		double r = Math.sqrt( x*x + y*y + z*z );
+		if( r == 0.0 )
+			return -WGS84_B;
+
+		double sin = z / r;
+		double cos2 = 1.0 - sin*sin;
+		double surface = (WGS84_A*WGS84_B) / Math.sqrt( WGS84_B*WGS84_B*cos2 + WGS84_A*WGS84_A*sin*sin );
+		return r - surface;
+	}
+
+	/** Geodetic (radians, metres) to geocentric, into the given array */
+	static void toEcef( double latitude, double longitude, double altitude, double[] out )
+	{
+		double sinLat = Math.sin( latitude ), cosLat = Math.cos( latitude );
+		double n = WGS84_A / Math.sqrt( 1.0 - WGS84_E2*sinLat*sinLat );
+		out[0] = (n+altitude) * cosLat * Math.cos( longitude );
+		out[1] = (n+altitude) * cosLat * Math.sin( longitude );
+		out[2] = (n*(1.0-WGS84_E2)+altitude) * sinLat;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Geocentric Box   //////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class EcefBox extends Region
+	{
+		EcefBox( double minX, double minY, double minZ, double maxX, double maxY, double maxZ )
+		{
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.maxZ = maxZ;
+		}
+
+		@Override
+		public boolean contains( double x, double y, double z )
+		{
+			return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Geocentric Sphere   ///////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class Sphere extends Region
+	{
+		private final double x, y, z;
+		private final double radiusSquared;
+
+		Sphere( double x, double y, double z, double radius )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.radiusSquared = radius * radius;
+			this.minX = x - radius;
+			this.minY = y - radius;
+			this.minZ = z - radius;
+			this.maxX = x + radius;
+			this.maxY = y + radius;
+			this.maxZ = z + radius;
+		}
+
+		@Override
+		public boolean contains( double px, double py, double pz )
+		{
+			double dx = px-x, dy = py-y, dz = pz-z;
+			return dx*dx + dy*dy + dz*dz <= radiusSquared;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Latitude/Longitude Box   //////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class GeodeticBox extends Region
+	{
+		private final double floor, ceiling;
+
+		// Latitude limits as cones: (z-apex)*cos >= rho*sin (south) and <= (north)
+		private final double southApex, southSin, southCos;
+		private final double northApex, northSin, northCos;
+
+		// Longitude limits as meridian planes, and whether the box is wider than 180 degrees
+		private final double westSin, westCos, eastSin, eastCos;
+		private final boolean wide, allLongitudes;
+
+		GeodeticBox( double minLat, double minLon, double maxLat, double maxLon,
+		             double floor, double ceiling )
+		{
+			if( minLat > maxLat )
+				throw new IllegalArgumentException( "Minimum latitude is above the maximum: "+minLat+" > "+maxLat );
+
+			double span = maxLon - minLon;
+			if( span < 0 )
+				span += 360.0;
+
+			this.floor = floor;
+			this.ceiling = ceiling;
+			this.allLongitudes = maxLon - minLon >= 360.0;
+			this.wide = span > 180.0;
+
+			double south = Math.toRadians( Math.max(-90.0,minLat) );
+			double north = Math.toRadians( Math.min(90.0,maxLat) );
+			this.southSin = Math.sin( south );
+			this.southCos = Math.cos( south );
+			this.southApex = apex( southSin );
+			this.northSin = Math.sin( north );
+			this.northCos = Math.cos( north );
+			this.northApex = apex( northSin );
+
+			double west = Math.toRadians( minLon );
+			double east = Math.toRadians( minLon+span );
+			this.westSin = Math.sin( west );
+			this.westCos = Math.cos( west );
+			this.eastSin = Math.sin( east );
+			this.eastCos = Math.cos( east );
+
+			// The extremes of x, y and z are at the corners, or where the box crosses the
+			// equator or a multiple of 90 degrees longitude
+			double[] latitudes = { south, north, 0.0 };
+			int latitudeCount = (south < 0.0 && north > 0.0) ? 3 : 2;
+
+			double[] longitudes = new double[6];
+			int longitudeCount = 0;
+			longitudes[longitudeCount++] = west;
+			longitudes[longitudeCount++] = east;
+			if( allLongitudes )
+				span = 360.0;
+			for( double quadrant = Math.ceil(minLon/90.0)*90.0; quadrant < minLon+span; quadrant += 90.0 )
+				longitudes[longitudeCount++] = Math.toRadians( quadrant );
+
+			resetBounds();
+			double[] point = new double[3];
+			for( int i = 0; i < latitudeCount; i++ )
+			{
+				for( int j = 0; j < longitudeCount; j++ )
+				{
+					toEcef( latitudes[i], longitudes[j], floor-PAD, point );
+					include( point[0], point[1], point[2] );
+					toEcef( latitudes[i], longitudes[j], ceiling+PAD, point );
+					include( point[0], point[1], point[2] );
+				}
+			}
+		}
+
+		@Override
+		public boolean contains( double x, double y, double z )
+		{
+			double rho = Math.sqrt( x*x + y*y );
+			if( (z-southApex)*southCos < rho*southSin || (z-northApex)*northCos > rho*northSin )
+				return false;
+
+			if( allLongitudes == false )
+			{
+				double fromWest = westCos*y - westSin*x;     // rho * sin(lon-west)
+				double toEast = eastSin*x - eastCos*y;       // rho * sin(east-lon)
+				boolean inside = wide ? (fromWest >= 0 || toEast >= 0) : (fromWest >= 0 && toEast >= 0);
+				if( !inside )
+					return false;
+			}
+
+			double altitude = altitudeOf( x, y, z );
+			return altitude >= floor && altitude <= ceiling;
+		}
+
+		/** The normal to the ellipsoid at a latitude crosses the polar axis here */
+		private static double apex( double sinLat )
+		{
+			double n = WGS84_A / Math.sqrt( 1.0 - WGS84_E2*sinLat*sinLat );
+			return -n * WGS84_E2 * sinLat;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Horizontal Radius   ///////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class Circle extends Region
+	{
+		private final double centerX, centerY, centerZ;
+		private final double upX, upY, upZ;
+		private final double radiusSquared;
+		private final double floor, ceiling;
+
+		Circle( double latitude, double longitude, double radius, double floor, double ceiling )
+		{
+			double lat = Math.toRadians( latitude );
+			double lon = Math.toRadians( longitude );
+			double[] center = new double[3];
+			toEcef( lat, lon, 0.0, center );
+			this.centerX = center[0];
+			this.centerY = center[1];
+			this.centerZ = center[2];
+			this.upX = Math.cos( lat ) * Math.cos( lon );
+			this.upY = Math.cos( lat ) * Math.sin( lon );
+			this.upZ = Math.sin( lat );
+			this.radiusSquared = radius * radius;
+			this.floor = floor;
+			this.ceiling = ceiling;
+
+			// A cylinder about the vertical, long enough to reach the floor at the rim where
+			// the ground has curved away below the tangent plane
+			double drop = radiusSquared / (2.0*MIN_CURVATURE_RADIUS);
+			double low = floor - drop - PAD;
+			double high = ceiling + PAD;
+			resetBounds();
+			include( centerX+upX*low, centerY+upY*low, centerZ+upZ*low );
+			include( centerX+upX*high, centerY+upY*high, centerZ+upZ*high );
+			double spreadX = radius * Math.sqrt( 1.0-upX*upX );
+			double spreadY = radius * Math.sqrt( 1.0-upY*upY );
+			double spreadZ = radius * Math.sqrt( 1.0-upZ*upZ );
+			minX -= spreadX; maxX += spreadX;
+			minY -= spreadY; maxY += spreadY;
+			minZ -= spreadZ; maxZ += spreadZ;
+		}
+
+		@Override
+		public boolean contains( double x, double y, double z )
+		{
+			double dx = x-centerX, dy = y-centerY, dz = z-centerZ;
+			double up = dx*upX + dy*upY + dz*upZ;
+			if( dx*dx + dy*dy + dz*dz - up*up > radiusSquared )
+				return false;
+
+			double altitude = altitudeOf( x, y, z );
+			return altitude >= floor && altitude <= ceiling;
+		}
+	}
+}
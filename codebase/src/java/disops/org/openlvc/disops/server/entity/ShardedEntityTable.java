@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+
+/**
+ * The live entity table, partitioned the same way as the {@link PduPipeline}. Each pipeline
+ * shard owns one {@link EntityTable} partition and is its only writer, so the single-writer
+ * rule of the table holds no matter how many shards there are.
+ * <p/>
+ * Readers use this class and never need to know about the partitions: lookups go to the
+ * partition that owns the entity's exercise and site, and iteration and sizes cover all of
+ * them. All of the reader methods are safe to call from any thread.
+ */
+public class ShardedEntityTable
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final EntityTable[] partitions;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public ShardedEntityTable( int shardCount, int expectedEntities, boolean offHeap )
+	{
+		this( shardCount, expectedEntities, offHeap, null );
+	}
+
+	/**
+	 * @param shardCount       Number of partitions. Must match the pipeline shard count.
+	 * @param expectedEntities Total entities expected, spread evenly across the partitions
+	 * @param offHeap          Whether the partitions keep their records in native memory
+	 * @param logger           Told if a partition fills up. May be null.
+	 */
+	public ShardedEntityTable( int shardCount, int expectedEntities, boolean offHeap, Logger logger )
+	{
+		this.partitions = new EntityTable[shardCount];
+		int perPartition = Math.max( 16, expectedEntities / shardCount );
+		for( int i = 0; i < shardCount; i++ )
+			this.partitions[i] = new EntityTable( perPartition, offHeap, logger );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The partition written by the given pipeline shard
+	 */
+	public EntityTable getPartition( int shard )
+	{
+		return this.partitions[shard];
+	}
+
+	public int getPartitionCount()
+	{
+		return this.partitions.length;
+	}
+
+	/**
+	 * @return The partition holding the given exercise-qualified entity ID
+	 */
+	public EntityTable getPartitionFor( long id )
+	{
+		int shard = PduPipeline.shardOf( EntityIds.getExercise(id),
+		                                 EntityIds.getSite(id),
+		                                 partitions.length );
+		return partitions[shard];
+	}
+
+	/**
+	 * @see EntityTable#get(long, EntityRecord)
+	 */
+	public boolean get( long id, EntityRecord record )
+	{
+		return getPartitionFor(id).get( id, record );
+	}
+
+	/**
+	 * @see EntityTable#contains(long)
+	 */
+	public boolean contains( long id )
+	{
+		return getPartitionFor(id).contains( id );
+	}
+
+	/**
+	 * Visit every entity in every partition. See {@link EntityTable#forEach(EntityRecord, Consumer)}.
+	 */
+	public void forEach( EntityRecord scratch, Consumer<EntityRecord> visitor )
+	{
+		for( EntityTable partition : partitions )
+			partition.forEach( scratch, visitor );
+	}
+
+	/** @return The number of entities across all partitions */
+	public int size()
+	{
+		int total = 0;
+		for( EntityTable partition : partitions )
+			total += partition.size();
+
+		return total;
+	}
+
+	/** @return Approximate bytes used by all partitions */
+	public long getMemoryUsage()
+	{
+		long total = 0;
+		for( EntityTable partition : partitions )
+			total += partition.getMemoryUsage();
+
+		return total;
+	}
+
+	/** @return New entities turned away by full partitions */
+	public long getRejected()
+	{
+		long total = 0;
+		for( EntityTable partition : partitions )
+			total += partition.getRejected();
+
+		return total;
+	}
+
+	public boolean isOffHeap()
+	{
+		return this.partitions[0].isOffHeap();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
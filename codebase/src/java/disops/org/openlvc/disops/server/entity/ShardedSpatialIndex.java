@@ -0,0 +1,150 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.util.function.Consumer;
+
+import org.openlvc.disops.server.dis.PduPipeline;
+
+/**
+ * The spatial index over the live entity table, partitioned the same way as the
+ * {@link ShardedEntityTable}. Each pipeline shard keeps its own {@link SpatialIndex}
+ * partition up to date alongside its table partition, and queries here cover them all.
+ * All of the query methods are safe to call from any thread.
+ */
+public class ShardedSpatialIndex
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final ShardedEntityTable table;
+	private final SpatialIndex[] partitions;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param table            The table being indexed. There is one index partition for each
+	 *                         of its partitions.
+	 * @param cellSize         Edge length (metres) of the grid cells
+	 * @param expectedEntities Total entities expected, spread evenly across the partitions
+	 */
+	public ShardedSpatialIndex( ShardedEntityTable table, double cellSize, int expectedEntities )
+	{
+		this.table = table;
+		this.partitions = new SpatialIndex[table.getPartitionCount()];
+		int perPartition = Math.max( 16, expectedEntities / partitions.length );
+		for( int i = 0; i < partitions.length; i++ )
+			this.partitions[i] = new SpatialIndex( cellSize, perPartition );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The partition written by the given {@link PduPipeline} shard
+	 */
+	public SpatialIndex getPartition( int shard )
+	{
+		return this.partitions[shard];
+	}
+
+	public int getPartitionCount()
+	{
+		return this.partitions.length;
+	}
+
+	/**
+	 * @return The number of entities in the region right now
+	 */
+	public int count( Region region )
+	{
+		int total = 0;
+		for( SpatialIndex partition : partitions )
+			total += partition.search( region, null );
+
+		return total;
+	}
+
+	/**
+	 * Visit the current state of every entity in the region. As with
+	 * {@link EntityTable#forEach(EntityRecord, Consumer)}, the same record is refilled for each
+	 * entity, so the visitor must copy anything it wants to keep. Each entity is checked
+	 * against the region again using the state in its record, so the visitor only ever sees
+	 * records that are inside it.
+	 *
+	 * @return The number of entities visited
+	 */
+	public int query( Region region, EntityRecord scratch, Consumer<EntityRecord> visitor )
+	{
+		SpatialIndex.Matches matches = new SpatialIndex.Matches();
+		for( SpatialIndex partition : partitions )
+			partition.search( region, matches );
+
+		int visited = 0;
+		for( int i = 0; i < matches.size; i++ )
+		{
+			if( table.get(matches.ids[i],scratch) &&
+			    region.contains(scratch.locationX,scratch.locationY,scratch.locationZ) )
+			{
+				visitor.accept( scratch );
+				++visited;
+			}
+		}
+
+		return visited;
+	}
+
+	/** @return The number of entities across all partitions */
+	public int size()
+	{
+		int total = 0;
+		for( SpatialIndex partition : partitions )
+			total += partition.size();
+
+		return total;
+	}
+
+	/** @return The number of occupied grid cells across all partitions */
+	public int getCellCount()
+	{
+		int total = 0;
+		for( SpatialIndex partition : partitions )
+			total += partition.getCellCount();
+
+		return total;
+	}
+
+	/** @return Approximate bytes used by all partitions */
+	public long getMemoryUsage()
+	{
+		long total = 0;
+		for( SpatialIndex partition : partitions )
+			total += partition.getMemoryUsage();
+
+		return total;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
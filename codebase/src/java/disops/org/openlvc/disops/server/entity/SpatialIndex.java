@@ -0,0 +1,627 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+
+import org.openlvc.disops.utils.LongIntHashMap;
+
+/**
+ * Grid index over entity positions, for finding what is inside a {@link Region} without
+ * looking at every entity. One of these sits beside each {@link EntityTable} partition and
+ * is kept up to date by the same writer (see {@link EntityTableUpdater}).
+ * <p/>
+ * <b>Layout:</b> Space is cut into cubes of a fixed size in geocentric (ECEF) coordinates.
+ * Working out which cube a position is in is three multiplies, so keeping the index up to
+ * date adds next to nothing to each update. The cells that have anything in them are kept in
+ * an open-addressing table keyed on the packed cell coordinates, and each cell is a circular
+ * doubly-linked list of entities threaded through primitive arrays, so moving an entity from
+ * one cell to another is O(1) and nothing is allocated per entity. Each entity's position is
+ * kept alongside, so a query never has to go to the entity table to test a candidate.
+ * <p/>
+ * A query works out the range of cells the region's bounds cover, and either looks each
+ * of them up or, if there are fewer occupied cells than that, walks the occupied cells, then
+ * tests every entity in them against the region.
+ * <p/>
+ * <b>Concurrency:</b> There must only be a single writing thread, and any number of threads
+ * may query at the same time. Most updates move an entity within its cell, which is a plain
+ * write of its position. Only moving between cells, adding and removing take the write side
+ * of a {@link StampedLock}, for a handful of array writes. Queries run as an optimistic read
+ * and start again if one of those happened while they ran, falling back to a read lock if
+ * they keep being interrupted. A query may see an entity's position from just before or just
+ * after an update happening at the same time.
+ */
+public class SpatialIndex
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long EMPTY = -1L;
+	private static final long TOMBSTONE = -2L;
+	private static final int NONE = -1;
+
+	// Cell coordinates are 21 bit signed values packed into a non-negative long
+	private static final int COORDINATE_BITS = 21;
+	private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+	private static final long COORDINATE_OFFSET = 1L << (COORDINATE_BITS-1);
+
+	private static final double LOAD_FACTOR = 0.5;
+	private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final double cellSize;
+	private final double inverseCellSize;
+	private final StampedLock lock;
+
+	// Nodes: one per entity, plus a sentinel heading each occupied cell's list
+	private long[] ids;
+	private double[] positions;    // x, y, z per node
+	private long[] nodeCells;      // cell key each entity is listed in
+	private int[] links;           // next and previous node, side by side
+	private int freeNode;          // head of the free list, linked through next
+	private int highWater;
+
+	// Occupied cells: cell key -> sentinel node
+	private long[] cellKeys;
+	private int[] cellSentinels;
+	private int cellCount;
+	private int cellTombstones;
+	private int cellThreshold;
+
+	// Owned by the writer thread
+	private final LongIntHashMap entities;   // entity id -> node
+
+	// Published for readers
+	private volatile int publishedSize;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param cellSize         Edge length (metres) of each grid cell. Smaller cells mean
+	 *                         fewer entities to test in a small region, but more cells to
+	 *                         look up in a large one.
+	 * @param expectedEntities Number of entities to size the index for up front
+	 */
+	public SpatialIndex( double cellSize, int expectedEntities )
+	{
+		if( !(cellSize >= 1.0) )
+			throw new IllegalArgumentException( "Cell size must be at least 1m: "+cellSize );
+
+		this.cellSize = cellSize;
+		this.inverseCellSize = 1.0 / cellSize;
+		this.lock = new StampedLock();
+
+		int capacity = Math.max( 16, expectedEntities + expectedEntities/4 );
+		this.ids = new long[capacity];
+		this.positions = new double[capacity*3];
+		this.nodeCells = new long[capacity];
+		this.links = new int[capacity*2];
+		this.freeNode = NONE;
+		this.highWater = 0;
+
+		allocateCells( 16 );
+		this.entities = new LongIntHashMap( expectedEntities );
+		this.publishedSize = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writer Methods (single thread only)   //////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Record the entity's position, adding it to the index if it isn't already there.
+	 * <b>Must only be called from the writer thread.</b>
+	 *
+	 * @param id Exercise-qualified packed entity ID
+	 */
+	public void update( long id, double x, double y, double z )
+	{
+		long cell = cellOf( x, y, z );
+		int node = entities.get( id );
+		if( node != LongIntHashMap.MISSING && nodeCells[node] == cell )
+		{
+			// still in the same cell, nothing structural changes
+			setPosition( node, x, y, z );
+			return;
+		}
+
+		boolean inserted = node == LongIntHashMap.MISSING;
+		long stamp = lock.writeLock();
+		try
+		{
+			if( inserted )
+			{
+				node = allocate();
+				ids[node] = id;
+			}
+			else
+			{
+				removeFromCell( node );
+			}
+
+			nodeCells[node] = cell;
+			setPosition( node, x, y, z );
+			addToCell( node, cell );
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+
+		if( inserted )
+		{
+			entities.put( id, node );
+			this.publishedSize = entities.size();
+		}
+	}
+
+	/**
+	 * Take the entity out of the index. <b>Must only be called from the writer thread.</b>
+	 *
+	 * @return True if the entity was in the index
+	 */
+	public boolean remove( long id )
+	{
+		int node = entities.remove( id );
+		if( node == LongIntHashMap.MISSING )
+			return false;
+
+		long stamp = lock.writeLock();
+		try
+		{
+			removeFromCell( node );
+			release( node );
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+
+		this.publishedSize = entities.size();
+		return true;
+	}
+
+	private void setPosition( int node, double x, double y, double z )
+	{
+		int base = node * 3;
+		positions[base]   = x;
+		positions[base+1] = y;
+		positions[base+2] = z;
+	}
+
+	/** Link a node onto the end of a cell's list, creating the cell if it's new. Locked. */
+	private void addToCell( int node, long cell )
+	{
+		int slot = findCell( cellKeys, cell );
+		int sentinel;
+		if( slot >= 0 )
+		{
+			sentinel = cellSentinels[slot];
+		}
+		else
+		{
+			if( cellCount+cellTombstones+1 > cellThreshold )
+				rebuildCells();
+
+			sentinel = allocate();
+			setNext( sentinel, sentinel );
+			setPrev( sentinel, sentinel );
+
+			slot = findInsertSlot( cell );
+			if( cellKeys[slot] == TOMBSTONE )
+				--cellTombstones;
+			cellKeys[slot] = cell;
+			cellSentinels[slot] = sentinel;
+			++cellCount;
+		}
+
+		int tail = prev( sentinel );
+		setNext( tail, node );
+		setPrev( node, tail );
+		setNext( node, sentinel );
+		setPrev( sentinel, node );
+	}
+
+	/** Unlink a node from its cell, dropping the cell if that leaves it empty. Locked. */
+	private void removeFromCell( int node )
+	{
+		int before = prev( node );
+		int after = next( node );
+		setNext( before, after );
+		setPrev( after, before );
+
+		if( before == after )
+		{
+			// the only thing left is the sentinel
+			int slot = findCell( cellKeys, nodeCells[node] );
+			cellKeys[slot] = TOMBSTONE;
+			--cellCount;
+			++cellTombstones;
+			release( before );
+		}
+	}
+
+	/** Make room for more cells, dropping tombstones. Locked. */
+	private void rebuildCells()
+	{
+		long[] oldKeys = this.cellKeys;
+		int[] oldSentinels = this.cellSentinels;
+
+		int capacity = 16;
+		while( capacity * LOAD_FACTOR < (cellCount+1) * 2 )
+			capacity <<= 1;
+
+		allocateCells( capacity );
+		for( int slot = 0; slot < oldKeys.length; slot++ )
+		{
+			if( oldKeys[slot] < 0 )
+				continue;
+
+			int target = findInsertSlot( oldKeys[slot] );
+			cellKeys[target] = oldKeys[slot];
+			cellSentinels[target] = oldSentinels[slot];
+			++cellCount;
+		}
+	}
+
+	private void allocateCells( int capacity )
+	{
+		long[] keys = new long[capacity];
+		Arrays.fill( keys, EMPTY );
+		this.cellSentinels = new int[capacity];
+		this.cellKeys = keys;
+		this.cellCount = 0;
+		this.cellTombstones = 0;
+		this.cellThreshold = (int)(capacity * LOAD_FACTOR);
+	}
+
+	private int findInsertSlot( long cell )
+	{
+		int mask = cellKeys.length - 1;
+		int slot = hash(cell) & mask;
+		while( cellKeys[slot] >= 0 )
+			slot = (slot+1) & mask;
+
+		return slot;
+	}
+
+	private int allocate()
+	{
+		if( freeNode != NONE )
+		{
+			int node = freeNode;
+			this.freeNode = next( node );
+			return node;
+		}
+
+		if( highWater == ids.length )
+		{
+			int capacity = ids.length << 1;
+			this.ids = Arrays.copyOf( ids, capacity );
+			this.positions = Arrays.copyOf( positions, capacity*3 );
+			this.nodeCells = Arrays.copyOf( nodeCells, capacity );
+			this.links = Arrays.copyOf( links, capacity*2 );
+		}
+
+		return highWater++;
+	}
+
+	private void release( int node )
+	{
+		setNext( node, freeNode );
+		this.freeNode = node;
+	}
+
+	private int next( int node )
+	{
+		return links[node<<1];
+	}
+
+	private int prev( int node )
+	{
+		return links[(node<<1)+1];
+	}
+
+	private void setNext( int node, int next )
+	{
+		links[node<<1] = next;
+	}
+
+	private void setPrev( int node, int prev )
+	{
+		links[(node<<1)+1] = prev;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reader Methods (any thread)   //////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * @return The number of entities in the region. Safe to call from any thread.
+	 */
+	public int count( Region region )
+	{
+		return search( region, null );
+	}
+
+	/**
+	 * Hand the ID of every entity in the region to the visitor. Safe to call from any thread.
+	 * The visitor is only called once the search is known to be consistent, so it is called
+	 * exactly once per entity found.
+	 *
+	 * @return The number of entities found
+	 */
+	public int query( Region region, LongConsumer visitor )
+	{
+		Matches matches = new Matches();
+		int found = search( region, matches );
+		for( int i = 0; i < matches.size; i++ )
+			visitor.accept( matches.ids[i] );
+
+		return found;
+	}
+
+	/**
+	 * Search optimistically, starting again if the writer changes the structure underneath
+	 * us, and fall back to a proper read lock if it keeps doing that.
+	 *
+	 * @param matches IDs found are appended to this, or null to just count them
+	 */
+	int search( Region region, Matches matches )
+	{
+		int mark = matches == null ? 0 : matches.size;
+		for( int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++ )
+		{
+			long stamp = lock.tryOptimisticRead();
+			if( stamp == 0 )
+				continue;
+
+			int found = scan( region, matches );
+			if( found >= 0 && lock.validate(stamp) )
+				return found;
+
+			if( matches != null )
+				matches.size = mark;
+		}
+
+		long stamp = lock.readLock();
+		try
+		{
+			return scan( region, matches );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Look through every cell the region's bounds touch. When running optimistically the
+	 * arrays may be mid-change, so everything read is checked before it's followed.
+	 *
+	 * @return The number found, or -1 if what we read didn't hang together
+	 */
+	private int scan( Region region, Matches matches )
+	{
+		long[] keys = this.cellKeys;
+		int[] sentinels = this.cellSentinels;
+		double[] nodePositions = this.positions;
+		long[] nodeIds = this.ids;
+		int[] nodeLinks = this.links;
+		int occupied = this.cellCount;
+		int capacity = Math.min( nodeIds.length, Math.min(nodePositions.length/3, nodeLinks.length/2) );
+		if( sentinels.length != keys.length )
+			return -1;
+
+		long x0 = coordinate( region.getMinX() ), x1 = coordinate( region.getMaxX() );
+		long y0 = coordinate( region.getMinY() ), y1 = coordinate( region.getMaxY() );
+		long z0 = coordinate( region.getMinZ() ), z1 = coordinate( region.getMaxZ() );
+		double range = (double)(x1-x0+1) * (y1-y0+1) * (z1-z0+1);  // can overflow a long
+
+		int found = 0;
+		if( range > occupied )
+		{
+			// fewer occupied cells than cells in range, so walk those instead
+			for( int slot = 0; slot < keys.length; slot++ )
+			{
+				long key = keys[slot];
+				if( key < 0 )
+					continue;
+
+				long cx = (key >>> (COORDINATE_BITS*2)) - COORDINATE_OFFSET;
+				long cy = ((key >>> COORDINATE_BITS) & COORDINATE_MASK) - COORDINATE_OFFSET;
+				long cz = (key & COORDINATE_MASK) - COORDINATE_OFFSET;
+				if( cx < x0 || cx > x1 || cy < y0 || cy > y1 || cz < z0 || cz > z1 )
+					continue;
+
+				int count = scanCell( sentinels[slot], region, matches, nodeIds, nodePositions, nodeLinks, capacity );
+				if( count < 0 )
+					return -1;
+
+				found += count;
+			}
+
+			return found;
+		}
+
+		for( long cx = x0; cx <= x1; cx++ )
+		{
+			for( long cy = y0; cy <= y1; cy++ )
+			{
+				for( long cz = z0; cz <= z1; cz++ )
+				{
+					int slot = findCell( keys, pack(cx,cy,cz) );
+					if( slot < 0 )
+						continue;
+
+					int count = scanCell( sentinels[slot], region, matches, nodeIds, nodePositions, nodeLinks, capacity );
+					if( count < 0 )
+						return -1;
+
+					found += count;
+				}
+			}
+		}
+
+		return found;
+	}
+
+	private static int scanCell( int sentinel,
+	                             Region region,
+	                             Matches matches,
+	                             long[] nodeIds,
+	                             double[] nodePositions,
+	                             int[] nodeLinks,
+	                             int capacity )
+	{
+		if( sentinel < 0 || sentinel >= capacity )
+			return -1;
+
+		int found = 0;
+		int steps = 0;
+		int node = nodeLinks[sentinel<<1];
+		while( node != sentinel )
+		{
+			if( node < 0 || node >= capacity || ++steps > capacity )
+				return -1;
+
+			int base = node * 3;
+			if( region.contains(nodePositions[base],nodePositions[base+1],nodePositions[base+2]) )
+			{
+				++found;
+				if( matches != null )
+					matches.add( nodeIds[node] );
+			}
+
+			node = nodeLinks[node<<1];
+		}
+
+		return found;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The number of entities in the index. Safe to call from any thread. */
+	public int size()
+	{
+		return this.publishedSize;
+	}
+
+	/** @return The number of grid cells with at least one entity in them */
+	public int getCellCount()
+	{
+		return this.cellCount;
+	}
+
+	public double getCellSize()
+	{
+		return this.cellSize;
+	}
+
+	/** @return Approximate heap bytes held by the node, cell and entity arrays */
+	public long getMemoryUsage()
+	{
+		return (ids.length * 48L) + (cellKeys.length * 12L) + entities.getMemoryUsage();
+	}
+
+	/** @return Packed key of the cell holding the given position */
+	private long cellOf( double x, double y, double z )
+	{
+		return pack( coordinate(x), coordinate(y), coordinate(z) );
+	}
+
+	/** @return The cell coordinate along one axis, clamped to what fits in a key */
+	private long coordinate( double value )
+	{
+		double cell = Math.floor( value * inverseCellSize );
+		if( cell < -COORDINATE_OFFSET )
+			return -COORDINATE_OFFSET;
+		else if( cell > COORDINATE_OFFSET-1 )
+			return COORDINATE_OFFSET-1;
+		else
+			return (long)cell; // NaN lands in cell 0
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long pack( long cx, long cy, long cz )
+	{
+		return ((cx+COORDINATE_OFFSET) << (COORDINATE_BITS*2)) |
+		       ((cy+COORDINATE_OFFSET) << COORDINATE_BITS) |
+		       (cz+COORDINATE_OFFSET);
+	}
+
+	/**
+	 * @return The slot holding the cell, or -1 if it isn't there. Gives up rather than going
+	 *         round forever if the table is being changed underneath a reader.
+	 */
+	private static int findCell( long[] keys, long cell )
+	{
+		int mask = keys.length - 1;
+		int slot = hash(cell) & mask;
+		for( int probes = 0; probes <= mask; probes++ )
+		{
+			long existing = keys[slot];
+			if( existing == cell )
+				return slot;
+			else if( existing == EMPTY )
+				return -1;
+
+			slot = (slot+1) & mask;
+		}
+
+		return -1;
+	}
+
+	/** Murmur3 finalizer - neighbouring cells differ in only a few bits */
+	private static int hash( long key )
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// IDs found by a search   ///////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	static class Matches
+	{
+		long[] ids = new long[64];
+		int size = 0;
+
+		void add( long id )
+		{
+			if( size == ids.length )
+				ids = Arrays.copyOf( ids, size*2 );
+
+			ids[size++] = id;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.HttpConfiguration;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the small embedded HTTP server that monitoring tools talk to. It uses the HTTP server
+ * that ships with the JDK, so there is nothing extra to deploy.
+ * <p/>
+ * Requests are served one at a time on a single daemon thread. Scrapes are infrequent and
+ * quick, and handling them serially lets handlers reuse their buffers from one request to
+ * the next rather than making garbage on every scrape. It also means a flood of requests
+ * can only ever take one core away from the ingest threads.
+ * <p/>
+ * Handlers are registered against a path before {@link #startup()}.
+ */
+public class HttpManager
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int BACKLOG = 16;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private HttpConfiguration httpConfiguration;
+	private Logger logger;
+	private Map<String,HttpHandler> handlers;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public HttpManager( Configuration configuration )
+	{
+		this.httpConfiguration = configuration.getHttpConfiguration();
+		this.logger = configuration.getApplicationLogger();
+		this.handlers = new LinkedHashMap<>();
+
+		this.server = null;   // set in startup()
+		this.executor = null; // set in startup()
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup() throws DisOpsException
+	{
+		InetSocketAddress address = new InetSocketAddress( httpConfiguration.getAddress(),
+		                                                   httpConfiguration.getPort() );
+		try
+		{
+			this.server = HttpServer.create( address, BACKLOG );
+		}
+		catch( IOException ioe )
+		{
+			throw new DisOpsException( "Could not open HTTP server on "+address+": "+ioe.getMessage(), ioe );
+		}
+
+		this.executor = Executors.newSingleThreadExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "http-server" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		this.server.setExecutor( executor );
+
+		for( Map.Entry<String,HttpHandler> entry : handlers.entrySet() )
+			this.server.createContext( entry.getKey(), entry.getValue() );
+
+		this.server.start();
+		logger.info( "HTTP server listening on %s:%d %s", address.getAddress().getHostAddress(),
+		             getPort(), handlers.keySet() );
+	}
+
+	public void shutdown()
+	{
+		if( this.server == null )
+			return;
+
+		// give a scrape that is part way through a moment to finish
+		this.server.stop( 1 );
+		this.executor.shutdownNow();
+		try
+		{
+			this.executor.awaitTermination( 1, TimeUnit.SECONDS );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		this.server = null;
+		this.executor = null;
+		logger.info( "HTTP server stopped" );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Serve requests for the given path (and anything under it) with the given handler.
+	 * Handlers are only picked up at startup.
+	 */
+	public void addHandler( String path, HttpHandler handler )
+	{
+		if( this.server != null )
+			throw new DisOpsException( "HTTP handlers must be added before startup: "+path );
+
+		this.handlers.put( path, handler );
+	}
+
+	/** @return The port we are listening on, or -1 if we haven't been started */
+	public int getPort()
+	{
+		return server == null ? -1 : server.getAddress().getPort();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,604 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.metrics.Histogram;
+import org.openlvc.disops.metrics.MetricsRegistry;
+import org.openlvc.disops.server.ManagedProcess;
+import org.openlvc.disops.server.ProcessSupervisor;
+import org.openlvc.disops.server.dis.PduPipeline;
+import org.openlvc.disops.server.dis.pdu.PduType;
+import org.openlvc.disops.server.influx.InfluxManager;
+import org.openlvc.disops.server.influx.InfluxdLogParser;
+import org.openlvc.disops.utils.SystemInformation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves DisOps' metrics in the Prometheus text exposition format (version 0.0.4):
+ * <ul>
+ *   <li>Build and platform information, start time and uptime</li>
+ *   <li>PDU counts by type, exercise and sender. These are counters, so ingest rates come from
+ *       <code>rate(disops_pdus_total[1m])</code> and friends on the Prometheus side.</li>
+ *   <li>Ingest latency and InfluxDB flush time as histograms, in seconds</li>
+ *   <li>Pipeline queue depth per shard, and every gauge registered with the
+ *       {@link MetricsRegistry}</li>
+ *   <li>Health of influxd and the other supervised processes, plus the counters picked out
+ *       of the influxd log</li>
+ *   <li>JVM memory, threads, classes, GC and CPU</li>
+ * </ul>
+ * The page is rendered straight into a byte buffer that is kept from one scrape to the next,
+ * with numbers and names written a character at a time rather than through Strings, so a
+ * scrape makes next to no garbage for the collector to chase the ingest threads over. The
+ * {@link HttpManager} serves one request at a time; the handler is synchronized as well so
+ * that it stays safe if it is ever put behind a server that doesn't.
+ */
+public class PrometheusHandler implements HttpHandler
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** Histogram bucket bounds, in micros (the unit the histograms record in) */
+	private static final long[] LATENCY_BOUNDS = { 100, 250, 500,
+	                                               1000, 2500, 5000,
+	                                               10000, 25000, 50000,
+	                                               100000, 250000, 500000,
+	                                               1000000, 2500000, 5000000, 10000000 };
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final MetricsRegistry metrics;
+	private final PduPipeline pipeline;
+	private final InfluxManager influxManager;
+	private final Logger logger;
+
+	// JVM beans, looked up once
+	private final MemoryMXBean memory;
+	private final ThreadMXBean threads;
+	private final ClassLoadingMXBean classes;
+	private final OperatingSystemMXBean os;
+	private final List<GarbageCollectorMXBean> collectors;
+
+	// Rendering state, reused for every scrape
+	private byte[] buffer;
+	private int length;
+	private boolean labelsOpen;
+	private final long[] bucketCounts;
+	private final ObjLongConsumer<String> gaugeWriter;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param metrics       Counters, histograms and gauges to expose
+	 * @param pipeline      The PDU pipeline, for per-shard queue depths
+	 * @param influxManager For the health of influxd and friends. May be null.
+	 * @param logger        Logger to report problems to
+	 */
+	public PrometheusHandler( MetricsRegistry metrics,
+	                          PduPipeline pipeline,
+	                          InfluxManager influxManager,
+	                          Logger logger )
+	{
+		this.metrics = metrics;
+		this.pipeline = pipeline;
+		this.influxManager = influxManager;
+		this.logger = logger;
+
+		this.memory = ManagementFactory.getMemoryMXBean();
+		this.threads = ManagementFactory.getThreadMXBean();
+		this.classes = ManagementFactory.getClassLoadingMXBean();
+		this.os = ManagementFactory.getOperatingSystemMXBean();
+		this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+		this.buffer = new byte[32*1024];
+		this.length = 0;
+		this.labelsOpen = false;
+		this.bucketCounts = new long[LATENCY_BOUNDS.length];
+		this.gaugeWriter = this::writeGauge;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Request Handling Methods   /////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Override
+	public synchronized void handle( HttpExchange exchange ) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			boolean head = method.equals( "HEAD" );
+			if( !head && !method.equals("GET") )
+			{
+				exchange.getResponseHeaders().set( "Allow", "GET, HEAD" );
+				exchange.sendResponseHeaders( 405, -1 );
+				return;
+			}
+
+			render();
+			exchange.getResponseHeaders().set( "Content-Type", CONTENT_TYPE );
+			if( head )
+			{
+				exchange.sendResponseHeaders( 200, -1 );
+			}
+			else
+			{
+				exchange.sendResponseHeaders( 200, length );
+				OutputStream body = exchange.getResponseBody();
+				body.write( buffer, 0, length );
+				body.flush();
+			}
+		}
+		catch( Exception e )
+		{
+			logger.warn( "Failed to serve metrics: "+e.getMessage(), e );
+			try
+			{
+				exchange.sendResponseHeaders( 500, -1 );
+			}
+			catch( IOException ioe )
+			{
+				// headers already went, nothing more we can say
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Render the full exposition into the internal buffer.
+	 *
+	 * @return The rendered page (a copy, for callers outside the HTTP server)
+	 */
+	public synchronized byte[] renderPage()
+	{
+		render();
+		return Arrays.copyOf( buffer, length );
+	}
+
+	private void render()
+	{
+		this.length = 0;
+		renderServer();
+		renderIngest();
+		renderInflux();
+		renderJvm();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Section Rendering Methods   ////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void renderServer()
+	{
+		SystemInformation system = SystemInformation.LOCAL;
+		type( "disops_info", "DisOps build and platform", "gauge" );
+		metric( "disops_info", null ).label( "version", system.getVersion() )
+		                             .label( "build", system.getBuildNumber() )
+		                             .label( "java", system.getJavaVersion() )
+		                             .label( "os", system.getOS() )
+		                             .value( 1 );
+
+		type( "disops_start_time_seconds", "When DisOps started, since the epoch", "gauge" );
+		metric( "disops_start_time_seconds", null ).value( system.getRawStartupTime(), 3 );
+
+		type( "disops_uptime_seconds", "How long DisOps has been running", "gauge" );
+		metric( "disops_uptime_seconds", null ).value( system.getRawUptime(), 3 );
+	}
+
+	private void renderIngest()
+	{
+		type( "disops_pdus_total", "PDUs received, by type", "counter" );
+		for( int i = 0; i < 256; i++ )
+		{
+			long count = metrics.getPduCount( i );
+			if( count == 0 )
+				continue;
+
+			PduType type = PduType.fromValue( i );
+			metric( "disops_pdus_total", null ).labelStart( "type" ).escaped( type.name() );
+			if( type == PduType.Other && i != 0 )
+				ascii( "_" ).number( i ); // keep unknown types apart
+			labelEnd().value( count );
+		}
+
+		type( "disops_exercise_pdus_total", "PDUs received, by exercise ID", "counter" );
+		for( int i = 0; i < 256; i++ )
+		{
+			long count = metrics.getExerciseCount( i );
+			if( count > 0 )
+				metric( "disops_exercise_pdus_total", null ).labelStart( "exercise" ).number( i ).labelEnd().value( count );
+		}
+
+		MetricsRegistry.Sender[] senders = metrics.getSenders();
+		type( "disops_sender_packets_total", "Packets received, by source address", "counter" );
+		for( MetricsRegistry.Sender sender : senders )
+			metric( "disops_sender_packets_total", null ).label( "sender", sender.getName() ).value( sender.getPackets() );
+
+		type( "disops_sender_bytes_total", "Bytes received, by source address", "counter" );
+		for( MetricsRegistry.Sender sender : senders )
+			metric( "disops_sender_bytes_total", null ).label( "sender", sender.getName() ).value( sender.getBytes() );
+
+		histogram( "disops_ingest_latency_seconds",
+		           "Time from a PDU being received to its point being handed to a writer",
+		           metrics.getIngestLatency() );
+		histogram( "disops_influx_flush_seconds",
+		           "Time from sending a batch to InfluxDB to it being accepted",
+		           metrics.getFlushTime() );
+
+		type( "disops_shard_queued_bytes", "Bytes waiting in each pipeline shard's queue", "gauge" );
+		for( int i = 0; i < pipeline.getShardCount(); i++ )
+			metric( "disops_shard_queued_bytes", null ).labelStart( "shard" ).number( i ).labelEnd().value( pipeline.getQueueDepth(i) );
+
+		// Whatever components have registered. Some are counters and some aren't, and the
+		// registry doesn't know which, so they go out untyped.
+		metrics.forEachGauge( gaugeWriter );
+	}
+
+	private void writeGauge( String name, long value )
+	{
+		ascii( "# TYPE disops_" ).name( name ).ascii( " untyped\n" );
+		ascii( "disops_" ).name( name );
+		this.labelsOpen = false;
+		value( value );
+	}
+
+	private void renderInflux()
+	{
+		if( influxManager == null )
+			return;
+
+		ProcessSupervisor supervisor = influxManager.getSupervisor();
+		if( supervisor != null )
+		{
+			List<ManagedProcess> processes = supervisor.getProcesses();
+			type( "disops_process_up", "1 if the supervised process is running and ready", "gauge" );
+			for( int i = 0; i < processes.size(); i++ )
+			{
+				ManagedProcess process = processes.get( i );
+				metric( "disops_process_up", null ).label( "process", process.getName() ).value( process.isReady() ? 1 : 0 );
+			}
+
+			type( "disops_process_restarts_total", "Restarts after the process exited unexpectedly", "counter" );
+			for( int i = 0; i < processes.size(); i++ )
+			{
+				ManagedProcess process = processes.get( i );
+				metric( "disops_process_restarts_total", null ).label( "process", process.getName() ).value( process.getRestartCount() );
+			}
+
+			type( "disops_process_uptime_seconds", "How long the current process has been running", "gauge" );
+			for( int i = 0; i < processes.size(); i++ )
+			{
+				ManagedProcess process = processes.get( i );
+				metric( "disops_process_uptime_seconds", null ).label( "process", process.getName() ).value( process.getUptime(), 3 );
+			}
+		}
+
+		InfluxdLogParser log = influxManager.getInfluxdLog();
+		counter( "disops_influxd_writes_total", "Writes influxd logged", log.getWrites() );
+		counter( "disops_influxd_write_errors_total", "Writes influxd logged as failed", log.getWriteErrors() );
+		type( "disops_influxd_write_seconds_total", "Time influxd logged spending on writes", "counter" );
+		metric( "disops_influxd_write_seconds_total", null ).value( log.getWriteMicros(), 6 );
+		counter( "disops_influxd_queries_total", "Queries influxd logged", log.getQueries() );
+		counter( "disops_influxd_compactions_total", "Compactions influxd logged", log.getCompactions() );
+		counter( "disops_influxd_snapshots_total", "Cache snapshots influxd logged", log.getSnapshots() );
+		counter( "disops_influxd_log_warnings_total", "Warnings in the influxd log", log.getWarnings() );
+		counter( "disops_influxd_log_errors_total", "Errors in the influxd log", log.getErrors() );
+	}
+
+	private void renderJvm()
+	{
+		// Each of these makes a small MemoryUsage, which is the only way to get at the numbers
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+		type( "jvm_memory_bytes_used", "Used bytes of a given JVM memory area", "gauge" );
+		metric( "jvm_memory_bytes_used", null ).label( "area", "heap" ).value( heap.getUsed() );
+		metric( "jvm_memory_bytes_used", null ).label( "area", "nonheap" ).value( nonHeap.getUsed() );
+		type( "jvm_memory_bytes_committed", "Committed bytes of a given JVM memory area", "gauge" );
+		metric( "jvm_memory_bytes_committed", null ).label( "area", "heap" ).value( heap.getCommitted() );
+		metric( "jvm_memory_bytes_committed", null ).label( "area", "nonheap" ).value( nonHeap.getCommitted() );
+		type( "jvm_memory_bytes_max", "Max bytes of a given JVM memory area (-1 if undefined)", "gauge" );
+		metric( "jvm_memory_bytes_max", null ).label( "area", "heap" ).value( heap.getMax() );
+		metric( "jvm_memory_bytes_max", null ).label( "area", "nonheap" ).value( nonHeap.getMax() );
+
+		type( "jvm_threads_current", "Current thread count", "gauge" );
+		metric( "jvm_threads_current", null ).value( threads.getThreadCount() );
+		type( "jvm_threads_daemon", "Daemon thread count", "gauge" );
+		metric( "jvm_threads_daemon", null ).value( threads.getDaemonThreadCount() );
+		type( "jvm_threads_peak", "Peak thread count", "gauge" );
+		metric( "jvm_threads_peak", null ).value( threads.getPeakThreadCount() );
+
+		type( "jvm_classes_loaded", "Classes currently loaded", "gauge" );
+		metric( "jvm_classes_loaded", null ).value( classes.getLoadedClassCount() );
+
+		type( "jvm_gc_collection_seconds", "Time spent in a given JVM garbage collector", "summary" );
+		for( int i = 0; i < collectors.size(); i++ )
+		{
+			GarbageCollectorMXBean collector = collectors.get( i );
+			metric( "jvm_gc_collection_seconds", "_count" ).label( "gc", collector.getName() ).value( collector.getCollectionCount() );
+			metric( "jvm_gc_collection_seconds", "_sum" ).label( "gc", collector.getName() ).value( collector.getCollectionTime(), 3 );
+		}
+
+		type( "process_cpu_count", "Processors available to the JVM", "gauge" );
+		metric( "process_cpu_count", null ).value( os.getAvailableProcessors() );
+
+		// not every platform can tell us these
+		if( os instanceof com.sun.management.OperatingSystemMXBean )
+		{
+			long cpu = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+			if( cpu >= 0 )
+			{
+				type( "process_cpu_seconds_total", "User and system CPU time spent", "counter" );
+				metric( "process_cpu_seconds_total", null ).value( cpu, 9 );
+			}
+		}
+
+		double load = os.getSystemLoadAverage();
+		if( load >= 0 )
+		{
+			type( "node_load1", "System load average over the last minute", "gauge" );
+			metric( "node_load1", null ).value( (long)(load*100), 2 );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Exposition Writing Methods   ///////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void type( String metric, String help, String type )
+	{
+		ascii( "# HELP " ).ascii( metric ).ascii( " " ).ascii( help ).ascii( "\n" );
+		ascii( "# TYPE " ).ascii( metric ).ascii( " " ).ascii( type ).ascii( "\n" );
+	}
+
+	private void counter( String metric, String help, long value )
+	{
+		type( metric, help, "counter" );
+		metric( metric, null ).value( value );
+	}
+
+	/**
+	 * Write a histogram that records in micros, converting to seconds (the Prometheus base
+	 * unit) on the way out.
+	 */
+	private void histogram( String metric, String help, Histogram histogram )
+	{
+		long total = histogram.getCumulativeCounts( LATENCY_BOUNDS, bucketCounts );
+		type( metric, help, "histogram" );
+		for( int i = 0; i < LATENCY_BOUNDS.length; i++ )
+		{
+			metric( metric, "_bucket" ).labelStart( "le" ).decimal( LATENCY_BOUNDS[i], 6 ).labelEnd()
+			                           .value( bucketCounts[i] );
+		}
+
+		metric( metric, "_bucket" ).label( "le", "+Inf" ).value( total );
+		metric( metric, "_sum" ).value( histogram.getSum(), 6 );
+		metric( metric, "_count" ).value( total );
+	}
+
+	/** Start a sample line. The suffix (_bucket, _sum...) may be null. */
+	private PrometheusHandler metric( String name, String suffix )
+	{
+		ascii( name );
+		if( suffix != null )
+			ascii( suffix );
+
+		this.labelsOpen = false;
+		return this;
+	}
+
+	private PrometheusHandler label( String key, String value )
+	{
+		return labelStart( key ).escaped( value ).labelEnd();
+	}
+
+	private PrometheusHandler labelStart( String key )
+	{
+		put( labelsOpen ? (byte)',' : (byte)'{' );
+		this.labelsOpen = true;
+		return ascii( key ).ascii( "=\"" );
+	}
+
+	private PrometheusHandler labelEnd()
+	{
+		put( (byte)'"' );
+		return this;
+	}
+
+	/** Finish the sample line with a whole number */
+	private void value( long value )
+	{
+		if( labelsOpen )
+			put( (byte)'}' );
+
+		put( (byte)' ' );
+		number( value );
+		put( (byte)'\n' );
+	}
+
+	/** Finish the sample line with a fixed point number: value / 10^scale */
+	private void value( long value, int scale )
+	{
+		if( labelsOpen )
+			put( (byte)'}' );
+
+		put( (byte)' ' );
+		decimal( value, scale );
+		put( (byte)'\n' );
+	}
+
+	private PrometheusHandler ascii( String text )
+	{
+		ensure( text.length() );
+		for( int i = 0; i < text.length(); i++ )
+		{
+			char c = text.charAt( i );
+			buffer[length++] = c < 128 ? (byte)c : (byte)'?';
+		}
+
+		return this;
+	}
+
+	/** A metric name: anything that isn't allowed in one becomes an underscore */
+	private PrometheusHandler name( String text )
+	{
+		ensure( text.length() );
+		for( int i = 0; i < text.length(); i++ )
+		{
+			char c = text.charAt( i );
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+			                (c >= '0' && c <= '9') || c == '_' || c == ':';
+			buffer[length++] = valid ? (byte)c : (byte)'_';
+		}
+
+		return this;
+	}
+
+	/** A label value: backslash, double-quote and line feed must be escaped */
+	private PrometheusHandler escaped( String text )
+	{
+		ensure( text.length()*2 );
+		for( int i = 0; i < text.length(); i++ )
+		{
+			char c = text.charAt( i );
+			if( c == '\\' || c == '"' )
+			{
+				buffer[length++] = '\\';
+				buffer[length++] = (byte)c;
+			}
+			else if( c == '\n' )
+			{
+				buffer[length++] = '\\';
+				buffer[length++] = 'n';
+			}
+			else
+			{
+				buffer[length++] = c < 128 ? (byte)c : (byte)'?';
+			}
+		}
+
+		return this;
+	}
+
+	private PrometheusHandler number( long value )
+	{
+		ensure( 20 );
+		if( value == 0 )
+		{
+			buffer[length++] = '0';
+			return this;
+		}
+
+		// work with the negative so Long.MIN_VALUE doesn't overflow
+		if( value < 0 )
+			buffer[length++] = '-';
+		else
+			value = -value;
+
+		int start = length;
+		while( value != 0 )
+		{
+			buffer[length++] = (byte)('0' - (value % 10));
+			value /= 10;
+		}
+
+		// digits went in backwards
+		for( int i = start, j = length-1; i < j; i++, j-- )
+		{
+			byte temp = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = temp;
+		}
+
+		return this;
+	}
+
+	/** value / 10^scale, without trailing zeros */
+	private PrometheusHandler decimal( long value, int scale )
+	{
+		long divisor = 1;
+		for( int i = 0; i < scale; i++ )
+			divisor *= 10;
+
+		if( value < 0 )
+		{
+			put( (byte)'-' );
+			value = -value;
+		}
+
+		number( value / divisor );
+		long fraction = value % divisor;
+		if( fraction == 0 )
+			return this;
+
+		// leading zeros of the fraction, then its digits less any trailing zeros
+		put( (byte)'.' );
+		int digits = scale;
+		while( fraction % 10 == 0 )
+		{
+			fraction /= 10;
+			digits--;
+		}
+
+		for( long check = fraction; check > 0; check /= 10 )
+			digits--;
+		for( int i = 0; i < digits; i++ )
+			put( (byte)'0' );
+
+		return number( fraction );
+	}
+
+	private void put( byte value )
+	{
+		ensure( 1 );
+		buffer[length++] = value;
+	}
+
+	private void ensure( int extra )
+	{
+		// only grows until it fits the page, after which scrapes reuse it
+		if( length+extra > buffer.length )
+			this.buffer = Arrays.copyOf( buffer, Math.max(buffer.length*2, length+extra) );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -17,20 +17,17 @@
  */
 package org.openlvc.disops.server.influx;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.logging.log4j.Logger;
-import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.QueryResult;
 import org.openlvc.disops.DisOpsException;
 import org.openlvc.disops.configuration.Configuration;
 import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.openlvc.disops.metrics.MetricsRegistry;
+import org.openlvc.disops.server.ManagedProcess;
+import org.openlvc.disops.server.ProcessSupervisor;
 
 /**
  * This class manages the lifecycle and configuration of the underyling InfluxDB instance
@@ -44,6 +41,11 @@ public class InfluxManager
 	//                    STATIC VARIABLES
 	//----------------------------------------------------------
 	private static final String INFLUX_METADATA_DIR = "INFLUXDB_META_DIR";
+	private static final String INFLUX_UDP_ENABLED  = "INFLUXDB_UDP_0_ENABLED";
+	private static final String INFLUX_UDP_BIND     = "INFLUXDB_UDP_0_BIND_ADDRESS";
+	private static final String INFLUX_UDP_DATABASE = "INFLUXDB_UDP_0_DATABASE";
+	private static final String INFLUX_UDP_PRECISION = "INFLUXDB_UDP_0_PRECISION";
+	private static final String INFLUX_UDP_READ_BUFFER = "INFLUXDB_UDP_0_READ_BUFFER";
 
 	//----------------------------------------------------------
 	//                   INSTANCE VARIABLES
@@ -53,8 +55,17 @@ public class InfluxManager
 	private Logger logger;
 	
 	// Runtime Processes
-	private Process processInfluxd;
-	private StreamGobbler gobblerInfluxd;
+	private ProcessSupervisor supervisor;
+	private InfluxdLogParser influxdLog;
+	private SchemaManager schemaManager;
+	private QueryRouter queryRouter;
+	private QueryCache queryCache;
+	
+	// Data Path
+	private InfluxWriter writer;
+	private InfluxUdpWriter udpWriter;
+	private InfluxWriter metricsWriter;
+	private MetricsRegistry metrics;
 
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
@@ -65,8 +76,15 @@ public class InfluxManager
 		this.influxConfiguration = configuration.getInfluxConfiguration();
 		
 		this.logger = null; // set in startup()
-		this.processInfluxd = null;
-		this.gobblerInfluxd = null;
+		this.supervisor = null; // set in startup()
+		this.influxdLog = new InfluxdLogParser();
+		this.schemaManager = new SchemaManager( influxConfiguration, configuration.getApplicationLogger() );
+		this.queryRouter = null; // set in startup()
+		this.queryCache = null;  // set in startup() if enabled
+		this.writer = null;    // set in startup()
+		this.udpWriter = null; // set in startup() if enabled
+		this.metricsWriter = null; // set in startup() if enabled
+		this.metrics = null;
 	}
 
 	//----------------------------------------------------------
@@ -79,80 +97,261 @@ public class InfluxManager
 	public void startup() throws DisOpsException
 	{
 		this.logger = this.configuration.getApplicationLogger();
-		this.logger.info( "Starting Influxd process" );
+		this.logger.info( "Starting InfluxDB processes" );
 
-		// Build up the command line for InfluxDB Daemon
-		List<String> commandline = new ArrayList<String>();
-		commandline.add( influxConfiguration.getBinaryInfluxd().getAbsolutePath() );
-		//commandline.add( "-config" );
-		//commandline.add( influxConfiguration.getInfluxConfigFile().getAbsolutePath() );
-		commandline.add( "config" );
-		
-		// Set up the environment, overriding env-vars with any settings from our config
-		ProcessBuilder builder = new ProcessBuilder( commandline );
-		builder.environment().put( INFLUX_METADATA_DIR, influxConfiguration.getMetadataDirectoryPath() );
-		
-		builder.redirectOutput( new File("eldumpo.txt") );
-		logger.info( builder.command() );
-		
-		testConnection();
+		// Bring up influxd and friends in parallel. This returns once they all answer.
+		this.supervisor = new ProcessSupervisor( logger,
+		                                         influxConfiguration.getStartupTimeout(),
+		                                         influxConfiguration.getOutputBufferSize() );
+		this.supervisor.add( createInfluxd() );
+		if( influxConfiguration.isTelegrafEnabled() )
+			this.supervisor.add( createTelegraf() );
+		if( influxConfiguration.isKapacitorEnabled() )
+			this.supervisor.add( createKapacitor() );
+
+		this.supervisor.startup();
 		
-		try
+		// Bring up the long-lived writer and make sure our database exists
+		this.writer = new InfluxWriter( influxConfiguration, logger );
+		if( metrics != null )
+			this.writer.setFlushHistogram( metrics.getFlushTime() );
+		this.writer.startup();
+		createDatabase();
+		if( influxConfiguration.isTiersEnabled() )
+			createTiers();
+		this.queryRouter = new QueryRouter( influxConfiguration, schemaManager, writer );
+		if( influxConfiguration.isQueryCacheEnabled() )
 		{
-			this.processInfluxd = builder.start();
-			logger.info( "Influxd process started: "+this.processInfluxd );
+			this.queryCache = new QueryCache( queryRouter,
+			                                  influxConfiguration.getQueryCacheSize(),
+			                                  influxConfiguration.getQueryCacheTtl() );
 		}
-		catch( IOException ioex )
+
+		// Our own metrics go to a database of their own, through a writer of their own so
+		// they get out even when the main one is backed up. The reporter stamps them to the
+		// nanosecond whatever the exercise data is written at.
+		if( influxConfiguration.isMetricsEnabled() )
 		{
-			throw new DisOpsException( "Could not start InfluxDB Daemon: "+ioex.getMessage(), ioex );
+			String database = influxConfiguration.getMetricsDatabase();
+			writer.execute( "CREATE DATABASE \""+database+"\"" );
+			logger.info( "InfluxDB database ready: "+database+" (metrics)" );
+			this.metricsWriter = new InfluxWriter( influxConfiguration, database, Precision.NANOSECONDS,
+			                                       false, logger );
+			this.metricsWriter.startup();
 		}
 		
+		if( influxConfiguration.isUdpEnabled() )
+		{
+			this.udpWriter = new InfluxUdpWriter( influxConfiguration, logger );
+			this.udpWriter.startup();
+		}
 	}
 	
 	public void shutdown()
 	{
-		logger.info( "Shutting down influxd process [isAlive="+processInfluxd.isAlive()+"]" );
-		if( this.processInfluxd.isAlive() )
-			this.processInfluxd.destroy();
+		// push out anything still sitting in a batch while the daemon is still up
+		if( this.udpWriter != null )
+			this.udpWriter.shutdown();
+		if( this.writer != null )
+			this.writer.shutdown();
+		if( this.metricsWriter != null )
+			this.metricsWriter.shutdown();
+
+		if( this.supervisor != null )
+		{
+			this.supervisor.shutdown();
+			logger.info( "influxd activity: %s", influxdLog );
+		}
 	}
-	
-	
-	
-	private void testConnection()
+
+	private ManagedProcess createInfluxd()
+	{
+		List<String> commandline = new ArrayList<String>();
+		commandline.add( influxConfiguration.getBinaryInfluxd().getAbsolutePath() );
+		commandline.add( "-config" );
+		commandline.add( influxConfiguration.getInfluxConfigFile().getAbsolutePath() );
+		ManagedProcess influxd = new ManagedProcess( "influxd", commandline );
+
+		// Set up the environment, overriding env-vars with any settings from our config
+		influxd.setEnvironment( INFLUX_METADATA_DIR, influxConfiguration.getMetadataDirectoryPath() );
+		if( influxConfiguration.isUdpEnabled() )
+		{
+			// Turn on the [[udp]] listener from influxdb.conf, reading timestamps in the
+			// precision we write them in
+			influxd.setEnvironment( INFLUX_UDP_ENABLED, "true" );
+			influxd.setEnvironment( INFLUX_UDP_BIND, ":"+influxConfiguration.getUdpPort() );
+			influxd.setEnvironment( INFLUX_UDP_DATABASE, influxConfiguration.getUdpDatabase() );
+			influxd.setEnvironment( INFLUX_UDP_PRECISION, influxConfiguration.getPrecision().getUdpValue() );
+			influxd.setEnvironment( INFLUX_UDP_READ_BUFFER, ""+influxConfiguration.getUdpReadBuffer() );
+		}
+
+		influxd.setOutputParser( influxdLog );
+		influxd.setReadinessUrl( influxConfiguration.getUrl()+"/ping" );
+		influxd.setRestartLimit( influxConfiguration.getRestartLimit() );
+		logger.debug( "influxd command: "+commandline );
+		return influxd;
+	}
+
+	private ManagedProcess createTelegraf()
+	{
+		List<String> commandline = new ArrayList<String>();
+		commandline.add( influxConfiguration.getBinaryTelegraf().getAbsolutePath() );
+		commandline.add( "--config" );
+		commandline.add( influxConfiguration.getTelegrafConfigFile().getAbsolutePath() );
+		ManagedProcess telegraf = new ManagedProcess( "telegraf", commandline );
+
+		// telegraf has no API to ask, so it is ready once it has stayed up for a moment.
+		// It only collects system metrics, so we can carry on without it.
+		telegraf.setRestartLimit( influxConfiguration.getRestartLimit() );
+		telegraf.setRequired( false );
+		logger.debug( "telegraf command: "+commandline );
+		return telegraf;
+	}
+
+	private ManagedProcess createKapacitor()
 	{
-		logger.error( "(A)" );
-		InfluxDB influxDB = InfluxDBFactory.connect("http://localhost:8086", "root", "root");
-		influxDB.createDatabase( "test" );
-		logger.error( "(B)" );
+		List<String> commandline = new ArrayList<String>();
+		commandline.add( influxConfiguration.getBinaryKapacitor().getAbsolutePath() );
+		commandline.add( "-config" );
+		commandline.add( influxConfiguration.getKapacitorConfigFile().getAbsolutePath() );
+		ManagedProcess kapacitor = new ManagedProcess( "kapacitord", commandline );
+
+		kapacitor.setReadinessUrl( influxConfiguration.getKapacitorUrl()+"/kapacitor/v1/ping" );
+		kapacitor.setRestartLimit( influxConfiguration.getRestartLimit() );
+		kapacitor.setRequired( false );
+		logger.debug( "kapacitord command: "+commandline );
+		return kapacitor;
 	}
 	
-	//----------------------------------------------------------
-	//                     STATIC METHODS
-	//----------------------------------------------------------
-	
-	///////////////////////////////////////////////////////////////////////////////////////////
-	private class StreamGobbler extends Thread
+	/**
+	 * Create the DisOps database if it isn't there already (CREATE DATABASE is a no-op for an
+	 * existing database). The supervisor has already waited for influxd to answer pings.
+	 */
+	private void createDatabase() throws DisOpsException
 	{
-		private InputStream istream;
-		StreamGobbler( InputStream istream )
-		{
-			this.istream = istream;
-		}
+		String database = influxConfiguration.getDatabase();
+		writer.execute( "CREATE DATABASE \""+database+"\"" );
+		logger.info( "InfluxDB database ready: "+database );
 		
-		public void run()
+		// the UDP listener can only write to a database that already exists
+		String udpDatabase = influxConfiguration.getUdpDatabase();
+		if( influxConfiguration.isUdpEnabled() && !udpDatabase.equals(database) )
 		{
-			try
-			{
-				InputStreamReader reader = new InputStreamReader( istream );
-				BufferedReader buffered = new BufferedReader( reader );
-				String line = null;
-				while( (line=buffered.readLine()) != null )
-					System.out.println( line );
-			}
-			catch( IOException ioex )
-			{
-			}
+			writer.execute( "CREATE DATABASE \""+udpDatabase+"\"" );
+			logger.info( "InfluxDB database ready: "+udpDatabase+" (UDP)" );
 		}
 	}
 	
+	/**
+	 * Set up the retention tiers and rollups in every database the exercise data lands in.
+	 * Safe to run against a database that already has them.
+	 */
+	private void createTiers() throws DisOpsException
+	{
+		String database = influxConfiguration.getDatabase();
+		schemaManager.apply( writer, database );
+
+		String udpDatabase = influxConfiguration.getUdpDatabase();
+		if( influxConfiguration.isUdpEnabled() && !udpDatabase.equals(database) )
+			schemaManager.apply( writer, udpDatabase );
+	}
+	
+	/**
+	 * Run a query against exercise data, from the cache if it is enabled and has the answer,
+	 * otherwise through the query router. Only available once the manager has been started.
+	 *
+	 * @return The result, which may be shared with other callers, so don't modify it
+	 * @throws DisOpsException If the query can't be built or InfluxDB rejects it
+	 */
+	public QueryResult query( TieredQuery query ) throws DisOpsException
+	{
+		if( queryCache != null )
+			return queryCache.query( query );
+		else
+			return queryRouter.query( query );
+	}
+	
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * @return The writer that all DisOps components should use to send points to InfluxDB.
+	 *         Only available once the manager has been started.
+	 */
+	public InfluxWriter getWriter()
+	{
+		return this.writer;
+	}
+
+	/**
+	 * @return The sink to use for high-rate measurements that can tolerate the occasional
+	 *         lost point (per-entity positions and the like). This is the UDP writer if the
+	 *         influxd UDP listener is enabled, otherwise it is the regular HTTP writer.
+	 */
+	public PointSink getBulkSink()
+	{
+		return this.udpWriter != null ? this.udpWriter : this.writer;
+	}
+
+	/**
+	 * @return The sink for DisOps' own metrics, which writes to the metrics database. Null if
+	 *         metrics are disabled or the manager hasn't been started.
+	 */
+	public PointSink getMetricsSink()
+	{
+		return this.metricsWriter;
+	}
+
+	/**
+	 * Collect write timings into the given registry. Must be set before startup.
+	 */
+	public void setMetrics( MetricsRegistry metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return The manager for retention tiers. Register rollups with it before startup.
+	 */
+	public SchemaManager getSchemaManager()
+	{
+		return this.schemaManager;
+	}
+
+	/**
+	 * @return The way to query exercise data without having to pick a retention tier. Only
+	 *         available once the manager has been started.
+	 */
+	public QueryRouter getQueryRouter()
+	{
+		return this.queryRouter;
+	}
+
+	/** @return The cache in front of the query router, or null if it is disabled */
+	public QueryCache getQueryCache()
+	{
+		return this.queryCache;
+	}
+
+	/**
+	 * @return The supervisor running influxd (and telegraf/kapacitor if enabled). Only
+	 *         available once the manager has been started.
+	 */
+	public ProcessSupervisor getSupervisor()
+	{
+		return this.supervisor;
+	}
+
+	/**
+	 * @return Counters picked out of the influxd log: server-side write timings, compactions,
+	 *         snapshots and errors
+	 */
+	public InfluxdLogParser getInfluxdLog()
+	{
+		return this.influxdLog;
+	}
+	
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
 }
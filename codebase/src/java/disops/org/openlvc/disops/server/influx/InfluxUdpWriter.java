@@ -0,0 +1,237 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Streams line protocol to the influxd UDP listener. Lines are packed into datagrams up to
+ * the configured payload size and a datagram is sent as soon as the next line won't fit.
+ * A background task sends any partially filled datagram every batch interval so that
+ * points don't sit around during quiet periods.
+ * <p/>
+ * UDP has no acknowledgement, so anything dropped by the network or by influxd is lost
+ * without us knowing. It also can't report per-batch errors. In return we avoid all the
+ * HTTP request overhead, which makes it the right choice for very high-rate measurements
+ * where the odd missing point doesn't matter (entity positions, for example). Anything
+ * that must arrive should go through the {@link InfluxWriter} instead.
+ * <p/>
+ * This class is thread safe.
+ */
+public class InfluxUdpWriter implements PointSink
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int MAX_DATAGRAM = 65507;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private InfluxConfiguration influxConfiguration;
+	private Logger logger;
+	private final Precision precision;
+
+	private DatagramChannel channel;
+	private ByteBuffer payload;           // guarded by "this"
+	private ScheduledExecutorService flusher;
+
+	// Statistics
+	private volatile long pointsSent;
+	private volatile long datagramsSent;
+	private volatile long pointsDropped;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public InfluxUdpWriter( InfluxConfiguration influxConfiguration, Logger logger )
+	{
+		this.influxConfiguration = influxConfiguration;
+		this.logger = logger;
+		this.precision = influxConfiguration.getPrecision();
+
+		int size = Math.min( influxConfiguration.getUdpPayloadSize(), MAX_DATAGRAM );
+		this.channel = null; // set in startup()
+		this.payload = ByteBuffer.allocateDirect( size );
+		this.flusher = null; // set in startup()
+
+		this.pointsSent = 0;
+		this.datagramsSent = 0;
+		this.pointsDropped = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup() throws DisOpsException
+	{
+		// the UDP listener lives on the same host as the HTTP API
+		HttpUrl url = HttpUrl.parse( influxConfiguration.getUrl() );
+		if( url == null )
+			throw new DisOpsException( "Invalid InfluxDB URL: "+influxConfiguration.getUrl() );
+
+		InetSocketAddress target = new InetSocketAddress( url.host(), influxConfiguration.getUdpPort() );
+		try
+		{
+			this.channel = DatagramChannel.open();
+			this.channel.connect( target );
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not open InfluxDB UDP channel to "+target+": "+
+			                           ioex.getMessage(), ioex );
+		}
+
+		long period = Math.max( 1, influxConfiguration.getBatchInterval() );
+		this.flusher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "influx-udp-flusher" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		this.flusher.scheduleAtFixedRate( this::flush, period, period, TimeUnit.MILLISECONDS );
+
+		logger.info( "InfluxDB UDP writer started: target=%s, db=%s, payload=%d bytes",
+		             target, influxConfiguration.getUdpDatabase(), payload.capacity() );
+	}
+
+	public void shutdown()
+	{
+		if( this.channel == null )
+			return;
+
+		this.flusher.shutdownNow();
+		flush();
+
+		try
+		{
+			this.channel.close();
+		}
+		catch( IOException ioex )
+		{
+			logger.debug( "Exception closing InfluxDB UDP channel: "+ioex.getMessage(), ioex );
+		}
+
+		logger.info( "InfluxDB UDP writer stopped [points=%d, datagrams=%d, dropped=%d]",
+		             pointsSent, datagramsSent, pointsDropped );
+		this.channel = null;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Override
+	public void write( String lineProtocol )
+	{
+		byte[] bytes = lineProtocol.getBytes( StandardCharsets.UTF_8 );
+		write( bytes, 0, bytes.length );
+	}
+
+	@Override
+	public synchronized void write( byte[] line, int offset, int length )
+	{
+		// one for the newline
+		if( length+1 > payload.capacity() )
+		{
+			++pointsDropped;
+			logger.warn( "Point too large for UDP payload (%d bytes), dropping", length );
+			return;
+		}
+
+		if( payload.remaining() < length+1 )
+			send();
+
+		payload.put( line, offset, length ).put( (byte)'\n' );
+		++pointsSent;
+	}
+
+	@Override
+	public synchronized void flush()
+	{
+		if( payload.position() > 0 )
+			send();
+	}
+
+	/** Send the current datagram and reset the payload. Must hold the lock. */
+	private void send()
+	{
+		payload.flip();
+		try
+		{
+			channel.write( payload );
+			++datagramsSent;
+		}
+		catch( IOException ioex )
+		{
+			// nothing listening (ICMP port unreachable) shows up here on a connected channel
+			logger.debug( "InfluxDB UDP send failed: "+ioex.getMessage() );
+		}
+		finally
+		{
+			payload.clear();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * @return The configured precision. DisOps sets the listener up to match when it starts
+	 *         influxd; a listener it doesn't manage has to be configured the same way.
+	 */
+	@Override
+	public Precision getPrecision()
+	{
+		return this.precision;
+	}
+
+	public long getPointsSent()
+	{
+		return this.pointsSent;
+	}
+
+	public long getDatagramsSent()
+	{
+		return this.datagramsSent;
+	}
+
+	public long getPointsDropped()
+	{
+		return this.pointsDropped;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,846 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.Utils;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.openlvc.disops.metrics.Histogram;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+
+/**
+ * Long-lived, batching writer for the InfluxDB HTTP API.
+ * <p/>
+ * Points are appended as line protocol into the current batch. A batch is sent when it
+ * reaches the configured size, or when the background flusher finds it has been waiting
+ * longer than the configured interval, whichever comes first. Sending is asynchronous and
+ * several batches may be in flight at once over a shared, kept-alive okhttp connection pool.
+ * <p/>
+ * The number of outstanding requests is capped. What happens when the cap is reached
+ * depends on whether the {@link SpillLog} is enabled:
+ * <ul>
+ *   <li><b>Enabled (default):</b> The batch is appended to the memory-mapped spill log
+ *       rather than waiting, and so are any failed batches. Once anything has been spilled,
+ *       all new batches go to the log too, so that data reaches influxd in the order it was
+ *       written. A replay thread drains the log, oldest first, in large requests as soon as
+ *       influxd will take them, backing off while it is down.</li>
+ *   <li><b>Disabled:</b> The thread that fills the next batch blocks until a slot frees up,
+ *       pushing backpressure onto the caller. Failed batches are dropped.</li>
+ * </ul>
+ * <p/>
+ * This class is thread safe.
+ */
+public class InfluxWriter implements PointSink
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final MediaType TEXT_PLAIN = MediaType.parse( "text/plain; charset=utf-8" );
+
+	// Replay of spilled batches
+	private static final int REPLAY_MAX_BYTES = 4*1024*1024;
+	private static final long REPLAY_BACKOFF_MIN = 250;
+	private static final long REPLAY_BACKOFF_MAX = 5000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private InfluxConfiguration influxConfiguration;
+	private Logger logger;
+
+	// Settings
+	private final String database;
+	private final Precision precision;
+	private final int batchSize;
+	private final long batchIntervalNanos;
+	private final int maxInFlight;
+
+	// Networking
+	private OkHttpClient client;
+	private volatile boolean running;
+	private HttpUrl writeUrl;
+	private HttpUrl queryUrl;
+	private HttpUrl pingUrl;
+	private JsonAdapter<QueryResult> resultAdapter;
+	private Semaphore inFlight;
+
+	// Batching - all guarded by "this"
+	private Buffer batch;
+	private int batchPoints;
+	private long batchStarted;
+	private ScheduledExecutorService flusher;
+
+	// Spilling - null if disabled
+	private SpillLog spill;
+	private Thread replayer;
+	private volatile boolean spilling;
+
+	// Statistics
+	private final AtomicLong pointsWritten;
+	private final AtomicLong batchesWritten;
+	private final AtomicLong batchesFailed;
+	private final AtomicLong flushNanosTotal;
+	private final AtomicLong flushNanosMax;
+	private volatile long flushNanosLast;
+	private Histogram flushHistogram; // may be null
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * Create a writer for the main DisOps database, spilling if that is configured, with
+	 * timestamps in the configured precision.
+	 */
+	public InfluxWriter( InfluxConfiguration influxConfiguration, Logger logger )
+	{
+		this( influxConfiguration, influxConfiguration.getDatabase(),
+		      influxConfiguration.getPrecision(), influxConfiguration.isSpillEnabled(), logger );
+	}
+
+	/**
+	 * Create a writer for the given database. Only one writer may spill, as the spill log
+	 * directory can't be shared.
+	 *
+	 * @param database     The database points are written to
+	 * @param precision    Unit of the timestamps in the points written to it
+	 * @param spillEnabled True to spill batches to disk when influxd falls behind (see above)
+	 */
+	public InfluxWriter( InfluxConfiguration influxConfiguration,
+	                     String database,
+	                     Precision precision,
+	                     boolean spillEnabled,
+	                     Logger logger )
+	{
+		this.influxConfiguration = influxConfiguration;
+		this.logger = logger;
+
+		this.database = database;
+		this.precision = precision;
+		this.batchSize = influxConfiguration.getBatchSize();
+		this.batchIntervalNanos = TimeUnit.MILLISECONDS.toNanos( influxConfiguration.getBatchInterval() );
+		this.maxInFlight = influxConfiguration.getBatchInFlight();
+
+		this.client = null;      // set in startup()
+		this.running = false;
+		this.inFlight = new Semaphore( maxInFlight );
+
+		this.batch = new Buffer();
+		this.batchPoints = 0;
+		this.batchStarted = 0;
+		this.flusher = null;     // set in startup()
+
+		this.spill = null;
+		if( spillEnabled )
+		{
+			this.spill = new SpillLog( influxConfiguration.getSpillDirectory(),
+			                           influxConfiguration.getSpillSegmentSize(),
+			                           influxConfiguration.getSpillMaxSize(),
+			                           logger );
+		}
+		this.replayer = null;    // set in startup()
+		this.spilling = false;
+
+		this.pointsWritten = new AtomicLong( 0 );
+		this.batchesWritten = new AtomicLong( 0 );
+		this.batchesFailed = new AtomicLong( 0 );
+		this.flushNanosTotal = new AtomicLong( 0 );
+		this.flushNanosMax = new AtomicLong( 0 );
+		this.flushNanosLast = 0;
+		this.flushHistogram = null;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup() throws DisOpsException
+	{
+		HttpUrl base = HttpUrl.parse( influxConfiguration.getUrl() );
+		if( base == null )
+			throw new DisOpsException( "Invalid InfluxDB URL: "+influxConfiguration.getUrl() );
+
+		// One connection per in-flight request, all to the same host
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests( maxInFlight );
+		dispatcher.setMaxRequestsPerHost( maxInFlight );
+		this.client = new OkHttpClient.Builder().connectionPool( new ConnectionPool(maxInFlight,5,TimeUnit.MINUTES) )
+		                                        .dispatcher( dispatcher )
+		                                        .connectTimeout( 5, TimeUnit.SECONDS )
+		                                        .readTimeout( 30, TimeUnit.SECONDS )
+		                                        .writeTimeout( 30, TimeUnit.SECONDS )
+		                                        .build();
+
+		this.writeUrl = authenticate( base.newBuilder().addPathSegment("write")
+		                                  .addQueryParameter("db",database)
+		                                  .addQueryParameter("precision",precision.getHttpValue()) ).build();
+		this.queryUrl = authenticate( base.newBuilder().addPathSegment("query") ).build();
+		this.pingUrl = base.newBuilder().addPathSegment("ping").build();
+		this.resultAdapter = new Moshi.Builder().build().adapter( QueryResult.class );
+
+		// Background flusher makes sure partial batches don't sit around
+		long period = Math.max( 1, TimeUnit.NANOSECONDS.toMillis(batchIntervalNanos)/2 );
+		this.flusher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "influx-flusher" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		this.flusher.scheduleAtFixedRate( this::flushIfStale, period, period, TimeUnit.MILLISECONDS );
+
+		// Spill log - anything left over from last time gets replayed once influxd is up
+		if( spill != null )
+		{
+			spill.open();
+			this.spilling = !spill.isEmpty();
+			this.replayer = new Thread( this::replay, "influx-replay" );
+			this.replayer.setDaemon( true );
+			this.replayer.start();
+		}
+
+		logger.info( "InfluxDB writer started: url=%s, db=%s, precision=%s, batchSize=%d, interval=%dms, inFlight=%d, spill=%s",
+		             influxConfiguration.getUrl(), database, precision.getHttpValue(), batchSize,
+		             influxConfiguration.getBatchInterval(), maxInFlight,
+		             spill == null ? "disabled" : spill.getDirectory().getAbsolutePath() );
+		this.running = true;
+	}
+
+	/**
+	 * Send whatever is batched up and stop. The client is kept rather than thrown away so
+	 * that a write racing with this doesn't trip over it. A batch that comes in after the
+	 * dispatcher has stopped, or that fails after the spill log has been closed, is counted
+	 * as failed.
+	 */
+	public void shutdown()
+	{
+		if( !this.running )
+			return;
+
+		this.running = false;
+		this.flusher.shutdownNow();
+		if( this.replayer != null )
+		{
+			this.replayer.interrupt();
+			try
+			{
+				this.replayer.join( 5000 );
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			this.replayer = null;
+		}
+
+		// with the replayer gone this goes to the spill log if there's a backlog
+		flush();
+
+		// wait for outstanding requests to finish
+		try
+		{
+			if( inFlight.tryAcquire(maxInFlight,10,TimeUnit.SECONDS) )
+				inFlight.release( maxInFlight );
+			else
+				logger.warn( "Timed out waiting for outstanding InfluxDB writes to complete" );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		logger.info( "InfluxDB writer stopped [points=%d, batches=%d, failed=%d, avgFlush=%.2fms, maxFlush=%.2fms]",
+		             pointsWritten.get(), batchesWritten.get(), batchesFailed.get(),
+		             getAverageFlushMillis(), flushNanosMax.get()/1000000.0 );
+
+		if( spill != null )
+		{
+			if( !spill.isEmpty() )
+			{
+				logger.warn( "%s of spilled data will be replayed on next startup",
+				             Utils.bytesToString(spill.getDepth()) );
+			}
+
+			spill.close();
+		}
+
+		this.client.dispatcher().executorService().shutdown();
+		this.client.connectionPool().evictAll();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Override
+	public void write( String lineProtocol )
+	{
+		Buffer full = null;
+		synchronized( this )
+		{
+			if( batchPoints == 0 )
+				batchStarted = System.nanoTime();
+
+			batch.writeUtf8( lineProtocol ).writeByte( '\n' );
+			if( ++batchPoints >= batchSize )
+				full = swapBatch();
+		}
+
+		if( full != null )
+			send( full );
+	}
+
+	/**
+	 * Copy an encoded point straight into the current batch, with no string in between.
+	 */
+	@Override
+	public void write( byte[] line, int offset, int length )
+	{
+		Buffer full = null;
+		synchronized( this )
+		{
+			if( batchPoints == 0 )
+				batchStarted = System.nanoTime();
+
+			batch.write( line, offset, length ).writeByte( '\n' );
+			if( ++batchPoints >= batchSize )
+				full = swapBatch();
+		}
+
+		if( full != null )
+			send( full );
+	}
+
+	/**
+	 * Send whatever is in the current batch now, regardless of size or age.
+	 */
+	@Override
+	public void flush()
+	{
+		Buffer full;
+		synchronized( this )
+		{
+			full = swapBatch();
+		}
+
+		if( full != null )
+			send( full );
+	}
+
+	private void flushIfStale()
+	{
+		Buffer full = null;
+		synchronized( this )
+		{
+			if( batchPoints > 0 && (System.nanoTime()-batchStarted) >= batchIntervalNanos )
+				full = swapBatch();
+		}
+
+		if( full != null )
+			send( full );
+	}
+
+	/** Hand back the current batch and start a new one. Null if current batch is empty.
+	    Must be called while holding the lock. */
+	private Buffer swapBatch()
+	{
+		if( batchPoints == 0 )
+			return null;
+
+		Buffer full = this.batch;
+		this.batch = new Buffer();
+		this.batchPoints = 0;
+		return full;
+	}
+
+	/**
+	 * Post the batch asynchronously. If we already have the maximum number of requests in
+	 * flight, spill it (or if spilling is disabled, block until a request completes).
+	 */
+	private void send( final Buffer payload )
+	{
+		if( spill != null )
+		{
+			// once anything has been spilled, everything goes through the log until it has
+			// been replayed, otherwise newer data would overtake older data
+			if( !spill.isEmpty() || !inFlight.tryAcquire() )
+			{
+				spill( payload );
+				return;
+			}
+		}
+		else
+		{
+			try
+			{
+				inFlight.acquire();
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				batchesFailed.incrementAndGet();
+				return;
+			}
+		}
+
+		final long sendTime = System.nanoTime();
+		Request request = new Request.Builder().url( writeUrl ).post( new BufferBody(payload) ).build();
+		try
+		{
+			client.newCall( request ).enqueue( new Callback()
+			{
+				public void onResponse( Call call, Response response )
+				{
+					try
+					{
+						if( response.isSuccessful() )
+						{
+							recordFlush( System.nanoTime()-sendTime, payload );
+						}
+						else if( response.code() >= 500 && spill != null )
+						{
+							// server side trouble (overloaded, shutting down) - try again later
+							spill( payload );
+						}
+						else
+						{
+							batchesFailed.incrementAndGet();
+							logger.warn( "InfluxDB rejected batch (HTTP %d): %s",
+							             response.code(), response.body().string() );
+						}
+					}
+					catch( IOException ioex )
+					{
+						batchesFailed.incrementAndGet();
+					}
+					finally
+					{
+						response.close();
+						inFlight.release();
+					}
+				}
+
+				public void onFailure( Call call, IOException ioex )
+				{
+					if( spill != null )
+					{
+						spill( payload );
+					}
+					else
+					{
+						batchesFailed.incrementAndGet();
+						logger.warn( "InfluxDB batch write failed: "+ioex.getMessage() );
+					}
+
+					inFlight.release();
+				}
+			});
+		}
+		catch( RejectedExecutionException ree )
+		{
+			// the writer has been shut down under us
+			batchesFailed.incrementAndGet();
+			inFlight.release();
+		}
+	}
+
+	/** Put the batch in the spill log for the replay thread to send later */
+	private void spill( Buffer payload )
+	{
+		byte[] bytes = payload.readByteArray();
+		if( spill.append(bytes,0,bytes.length) == false )
+		{
+			batchesFailed.incrementAndGet();
+			return;
+		}
+
+		if( !spilling )
+		{
+			spilling = true;
+			logger.warn( "InfluxDB is not keeping up, spilling batches to %s", spill.getDirectory() );
+		}
+	}
+
+	/**
+	 * Body of the replay thread. Sends the oldest spilled batches (several at a time) as fast
+	 * as influxd will accept them, backing off while it is unavailable.
+	 */
+	private void replay()
+	{
+		long backoff = REPLAY_BACKOFF_MIN;
+		boolean reported = false;
+		while( !Thread.currentThread().isInterrupted() )
+		{
+			try
+			{
+				spill.awaitData( 1000 );
+				if( spill.isEmpty() )
+				{
+					if( spilling )
+					{
+						spilling = false;
+						logger.info( "Spill log drained [spilled=%d, replayed=%d, dropped=%d]",
+						             spill.getBatchesSpilled(), spill.getBatchesReplayed(),
+						             spill.getBatchesDropped() );
+					}
+
+					continue;
+				}
+
+				// share the in-flight limit with the regular writes
+				inFlight.acquire();
+				boolean sent;
+				try
+				{
+					Buffer body = new Buffer();
+					if( spill.peek(body,REPLAY_MAX_BYTES) == 0 )
+						continue;
+
+					sent = postReplay( body );
+				}
+				finally
+				{
+					inFlight.release();
+				}
+
+				if( sent )
+				{
+					spill.commit();
+					backoff = REPLAY_BACKOFF_MIN;
+					reported = false;
+				}
+				else
+				{
+					if( !reported )
+					{
+						reported = true;
+						logger.warn( "InfluxDB unavailable, holding %s of spilled data",
+						             Utils.bytesToString(spill.getDepth()) );
+					}
+
+					Thread.sleep( backoff );
+					backoff = Math.min( backoff*2, REPLAY_BACKOFF_MAX );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Synchronously write replayed data.
+	 *
+	 * @return True if the data has been dealt with (written, or rejected as bad data that
+	 *         will never be accepted), false if it should be retried
+	 */
+	private boolean postReplay( Buffer body )
+	{
+		long sendTime = System.nanoTime();
+		Request request = new Request.Builder().url( writeUrl ).post( new BufferBody(body) ).build();
+		try( Response response = client.newCall(request).execute() )
+		{
+			if( response.isSuccessful() )
+			{
+				recordFlush( System.nanoTime()-sendTime, body );
+				return true;
+			}
+			else if( response.code() < 500 )
+			{
+				batchesFailed.incrementAndGet();
+				logger.warn( "InfluxDB rejected replayed batch (HTTP %d): %s",
+				             response.code(), response.body().string() );
+				return true;
+			}
+
+			return false;
+		}
+		catch( IOException ioex )
+		{
+			logger.debug( "Replay of spilled batch failed: "+ioex.getMessage() );
+			return false;
+		}
+	}
+
+	/** A batch has been accepted. Its points are counted now rather than when it was sent. */
+	private void recordFlush( long nanos, Buffer payload )
+	{
+		pointsWritten.addAndGet( countLines(payload) );
+		batchesWritten.incrementAndGet();
+		flushNanosTotal.addAndGet( nanos );
+		flushNanosLast = nanos;
+
+		long max = flushNanosMax.get();
+		while( nanos > max && !flushNanosMax.compareAndSet(max,nanos) )
+			max = flushNanosMax.get();
+
+		if( flushHistogram != null )
+			flushHistogram.record( nanos / 1000 );
+
+		if( logger.isDebugEnabled() )
+			logger.debug( "InfluxDB batch flushed in %.2fms", nanos/1000000.0 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Administrative Methods   ///////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * @return True if the server responds to a ping
+	 */
+	public boolean ping()
+	{
+		Request request = new Request.Builder().url( pingUrl ).get().build();
+		try( Response response = client.newCall(request).execute() )
+		{
+			return response.isSuccessful();
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Synchronously run an administrative InfluxQL statement (CREATE DATABASE etc).
+	 *
+	 * @return The body of the response
+	 * @throws DisOpsException If the request fails or the server returns an error
+	 */
+	public String execute( String influxql ) throws DisOpsException
+	{
+		RequestBody body = new FormBody.Builder().add( "q", influxql ).build();
+		Request request = new Request.Builder().url( queryUrl ).post( body ).build();
+		try( Response response = client.newCall(request).execute() )
+		{
+			String result = response.body().string();
+			if( !response.isSuccessful() || result.contains("\"error\"") )
+				throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+result );
+
+			return result;
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+ioex.getMessage(), ioex );
+		}
+	}
+
+	/**
+	 * Synchronously run an InfluxQL query, with times in the result as epoch millis. The
+	 * response is parsed as it streams in rather than being read into a string first.
+	 *
+	 * @return The parsed result
+	 * @throws DisOpsException If the request fails, or the server or any statement in the
+	 *                         query returns an error
+	 */
+	public QueryResult query( String influxql ) throws DisOpsException
+	{
+		RequestBody body = new FormBody.Builder().add( "q", influxql ).add( "epoch", "ms" ).build();
+		Request request = new Request.Builder().url( queryUrl ).post( body ).build();
+		QueryResult result;
+		try( Response response = client.newCall(request).execute() )
+		{
+			if( !response.isSuccessful() )
+				throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+response.body().string() );
+
+			result = resultAdapter.fromJson( response.body().source() );
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+ioex.getMessage(), ioex );
+		}
+
+		if( result == null )
+			throw new DisOpsException( "InfluxDB query returned nothing ["+influxql+"]" );
+		if( result.hasError() )
+			throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+result.getError() );
+
+		if( result.getResults() != null )
+		{
+			for( QueryResult.Result statement : result.getResults() )
+			{
+				if( statement.hasError() )
+					throw new DisOpsException( "InfluxDB query failed ["+influxql+"]: "+statement.getError() );
+			}
+		}
+
+		return result;
+	}
+
+	private HttpUrl.Builder authenticate( HttpUrl.Builder builder )
+	{
+		String username = influxConfiguration.getUsername();
+		if( username != null )
+		{
+			builder.addQueryParameter( "u", username );
+			builder.addQueryParameter( "p", influxConfiguration.getPassword() );
+		}
+
+		return builder;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Record the time each successful write request takes (in micros) in the given histogram.
+	 * Set before the writer is started.
+	 */
+	public void setFlushHistogram( Histogram histogram )
+	{
+		this.flushHistogram = histogram;
+	}
+
+	public String getDatabase()
+	{
+		return this.database;
+	}
+
+	@Override
+	public Precision getPrecision()
+	{
+		return this.precision;
+	}
+
+	/** @return The number of points InfluxDB has accepted */
+	public long getPointsWritten()
+	{
+		return pointsWritten.get();
+	}
+
+	public long getBatchesWritten()
+	{
+		return batchesWritten.get();
+	}
+
+	public long getBatchesFailed()
+	{
+		return batchesFailed.get();
+	}
+
+	/**
+	 * @return The spill log, or null if spilling is disabled. Its depth is the number of bytes
+	 *         waiting to be replayed to influxd.
+	 */
+	public SpillLog getSpillLog()
+	{
+		return this.spill;
+	}
+
+	/** @return Bytes of spilled data waiting to be replayed (0 if spilling is disabled) */
+	public long getSpillDepth()
+	{
+		return spill == null ? 0 : spill.getDepth();
+	}
+
+	/** @return True if batches are currently being spilled or replayed rather than sent */
+	public boolean isSpilling()
+	{
+		return this.spilling;
+	}
+
+	/** @return Number of write requests currently outstanding */
+	public int getInFlight()
+	{
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/** @return Time between sending the last successful batch and getting its response */
+	public double getLastFlushMillis()
+	{
+		return flushNanosLast / 1000000.0;
+	}
+
+	public double getMaxFlushMillis()
+	{
+		return flushNanosMax.get() / 1000000.0;
+	}
+
+	public double getAverageFlushMillis()
+	{
+		long count = batchesWritten.get();
+		return count == 0 ? 0.0 : (flushNanosTotal.get() / (double)count) / 1000000.0;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return The number of points in a batch, which has one per line */
+	private static long countLines( Buffer payload )
+	{
+		long lines = 0;
+		long index = payload.indexOf( (byte)'\n' );
+		while( index != -1 )
+		{
+			++lines;
+			index = payload.indexOf( (byte)'\n', index+1 );
+		}
+
+		return lines;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Request body that streams an okio Buffer without copying it into a byte[] first
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class BufferBody extends RequestBody
+	{
+		private final Buffer buffer;
+		private final long length;
+		BufferBody( Buffer buffer )
+		{
+			this.buffer = buffer;
+			this.length = buffer.size();
+		}
+
+		@Override public MediaType contentType() { return TEXT_PLAIN; }
+		@Override public long contentLength()    { return length; }
+
+		@Override
+		public void writeTo( BufferedSink sink ) throws IOException
+		{
+			// clone so that okhttp can retry the body if it needs to
+			sink.writeAll( buffer.clone() );
+		}
+	}
+}
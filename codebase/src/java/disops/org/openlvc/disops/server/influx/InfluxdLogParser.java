@@ -0,0 +1,338 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import org.openlvc.disops.server.ProcessOutputPump;
+
+/**
+ * Turns the log output of influxd into counters, so we can tell how the database is coping
+ * without having to query it. We pick out:
+ * <ul>
+ *   <li><b>HTTP requests</b> from the access log. influxd finishes each entry with the time
+ *       taken to serve the request in microseconds, which gives us write latency as seen by
+ *       the server rather than by our client.</li>
+ *   <li><b>TSM compactions</b> and <b>cache snapshots</b>, with how long they took. A
+ *       backlog of these is usually the first sign of influxd falling behind.</li>
+ *   <li><b>Warnings and errors</b> of any kind.</li>
+ * </ul>
+ * Both the logfmt output of influxd 1.5+ (<code>lvl=info msg="TSM compaction (end)" ...
+ * op_elapsed=12.3ms</code>) and the older bracketed format (<code>[I] ... [tsm1] compacted
+ * level 1 4 files into 1 files in 12.3ms</code>) are understood.
+ * <p/>
+ * Lines arrive on a single reader thread, so the counters are plain volatiles.
+ */
+public class InfluxdLogParser implements ProcessOutputPump.LineParser
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	// HTTP
+	private volatile long writes;
+	private volatile long writeErrors;
+	private volatile long writeMicros;
+	private volatile long writeMicrosMax;
+	private volatile long queries;
+
+	// Storage engine
+	private volatile long compactions;
+	private volatile long compactionMicros;
+	private volatile long snapshots;
+	private volatile long snapshotMicros;
+
+	// Everything else
+	private volatile long warnings;
+	private volatile long errors;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public InfluxdLogParser()
+	{
+		reset();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Override
+	public void parse( String line )
+	{
+		if( line.contains("lvl=error") || line.startsWith("[E]") )
+			++errors;
+		else if( line.contains("lvl=warn") || line.startsWith("[W]") )
+			++warnings;
+
+		if( line.contains("[httpd]") )
+			parseAccess( line );
+		else if( line.contains("op_event=end") )
+			parseOperation( line );
+		else if( line.contains("compacted level") || line.contains("compacted full") )
+			parseLegacyCompaction( line );
+	}
+
+	/**
+	 * Access log entries look like:
+	 * <pre>
+	 * [httpd] 127.0.0.1 - - [18/Oct/2017:07:00:00 +0000] "POST /write?db=disops HTTP/1.1" 204 0 "-" "okhttp/3.8.1" 4c5e... 1520
+	 * </pre>
+	 * (with a logfmt or bracketed prefix depending on the version)
+	 */
+	private void parseAccess( String line )
+	{
+		int request = line.indexOf( '"' );
+		if( request == -1 )
+			return;
+
+		boolean write = line.startsWith( "/write", line.indexOf(' ',request)+1 );
+		boolean query = !write && line.startsWith( "/query", line.indexOf(' ',request)+1 );
+		if( !write && !query )
+			return;
+
+		if( query )
+		{
+			++queries;
+			return;
+		}
+
+		// status follows the closing quote of the request
+		int close = line.indexOf( '"', request+1 );
+		int status = (int)parseLong( line, close+2 );
+		long micros = parseLong( line, line.lastIndexOf(' ')+1 );
+
+		++writes;
+		if( status >= 400 )
+			++writeErrors;
+		if( micros > 0 )
+		{
+			writeMicros += micros;
+			if( micros > writeMicrosMax )
+				writeMicrosMax = micros;
+		}
+	}
+
+	/** logfmt trace events: <code>op_name=tsm1_compact_group op_event=end op_elapsed=12.3ms</code> */
+	private void parseOperation( String line )
+	{
+		long micros = parseDuration( valueOf(line,"op_elapsed=") );
+		if( line.contains("op_name=tsm1_compact_group") )
+		{
+			++compactions;
+			compactionMicros += micros;
+		}
+		else if( line.contains("op_name=tsm1_cache_snapshot") )
+		{
+			++snapshots;
+			snapshotMicros += micros;
+		}
+	}
+
+	/** Pre-1.5: <code>[tsm1] compacted level 1 4 files into 1 files in 12.3ms</code> */
+	private void parseLegacyCompaction( String line )
+	{
+		++compactions;
+		int in = line.lastIndexOf( " in " );
+		if( in != -1 )
+			compactionMicros += parseDuration( line.substring(in+4).trim() );
+	}
+
+	/** @return The value of a logfmt key (up to the next space), or null if it isn't there */
+	private String valueOf( String line, String key )
+	{
+		int start = line.indexOf( key );
+		if( start == -1 )
+			return null;
+
+		start += key.length();
+		int end = line.indexOf( ' ', start );
+		return end == -1 ? line.substring(start) : line.substring(start,end);
+	}
+
+	public void reset()
+	{
+		this.writes = 0;
+		this.writeErrors = 0;
+		this.writeMicros = 0;
+		this.writeMicrosMax = 0;
+		this.queries = 0;
+		this.compactions = 0;
+		this.compactionMicros = 0;
+		this.snapshots = 0;
+		this.snapshotMicros = 0;
+		this.warnings = 0;
+		this.errors = 0;
+	}
+
+	public String toString()
+	{
+		return String.format( "writes=%d (errors=%d, avg=%.2fms, max=%.2fms), queries=%d, "+
+		                      "compactions=%d (%.1fms), snapshots=%d (%.1fms), warnings=%d, errors=%d",
+		                      writes, writeErrors, getAverageWriteMillis(), writeMicrosMax/1000.0,
+		                      queries, compactions, compactionMicros/1000.0, snapshots,
+		                      snapshotMicros/1000.0, warnings, errors );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Write requests influxd has served */
+	public long getWrites()
+	{
+		return this.writes;
+	}
+
+	/** @return Write requests influxd answered with a 4xx or 5xx */
+	public long getWriteErrors()
+	{
+		return this.writeErrors;
+	}
+
+	/** @return Total time influxd spent serving write requests, in micros */
+	public long getWriteMicros()
+	{
+		return this.writeMicros;
+	}
+
+	/** @return Longest time influxd took to serve a write request, in micros */
+	public long getWriteMicrosMax()
+	{
+		return this.writeMicrosMax;
+	}
+
+	public double getAverageWriteMillis()
+	{
+		long count = this.writes;
+		return count == 0 ? 0.0 : (writeMicros/1000.0)/count;
+	}
+
+	public long getQueries()
+	{
+		return this.queries;
+	}
+
+	/** @return TSM compactions that have finished */
+	public long getCompactions()
+	{
+		return this.compactions;
+	}
+
+	public long getCompactionMicros()
+	{
+		return this.compactionMicros;
+	}
+
+	/** @return Cache snapshots written to TSM files */
+	public long getSnapshots()
+	{
+		return this.snapshots;
+	}
+
+	public long getSnapshotMicros()
+	{
+		return this.snapshotMicros;
+	}
+
+	public long getWarnings()
+	{
+		return this.warnings;
+	}
+
+	public long getErrors()
+	{
+		return this.errors;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Parse the run of digits starting at the given index (0 if there isn't one) */
+	private static long parseLong( String string, int index )
+	{
+		long value = 0;
+		if( index < 0 )
+			return 0;
+
+		for( int i = index; i < string.length(); i++ )
+		{
+			char c = string.charAt( i );
+			if( c < '0' || c > '9' )
+				break;
+
+			value = value*10 + (c-'0');
+		}
+
+		return value;
+	}
+
+	/**
+	 * Parse a Go duration string ("12.3ms", "1m2.5s", "850us") into micros.
+	 *
+	 * @return The duration in micros, or 0 if it can't be parsed
+	 */
+	static long parseDuration( String string )
+	{
+		if( string == null )
+			return 0;
+
+		double micros = 0.0;
+		int i = 0;
+		int length = string.length();
+		while( i < length )
+		{
+			// number
+			int start = i;
+			while( i < length && (Character.isDigit(string.charAt(i)) || string.charAt(i) == '.') )
+				++i;
+			if( start == i )
+				return (long)micros;
+
+			double value;
+			try
+			{
+				value = Double.parseDouble( string.substring(start,i) );
+			}
+			catch( NumberFormatException nfe )
+			{
+				return (long)micros;
+			}
+
+			// unit
+			start = i;
+			while( i < length && !Character.isDigit(string.charAt(i)) && string.charAt(i) != '.' )
+				++i;
+
+			switch( string.substring(start,i) )
+			{
+				case "h":  micros += value * 3600e6; break;
+				case "m":  micros += value * 60e6; break;
+				case "s":  micros += value * 1e6; break;
+				case "ms": micros += value * 1e3; break;
+				case "us":
+				case "\u00b5s":
+				case "\u03bcs": micros += value; break;
+				case "ns": micros += value / 1e3; break;
+				default:   return (long)micros;
+			}
+		}
+
+		return (long)micros;
+	}
+}
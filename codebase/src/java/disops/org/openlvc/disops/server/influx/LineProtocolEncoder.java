@@ -0,0 +1,871 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes InfluxDB line protocol straight into a byte array that is reused from one point to
+ * the next, so that encoding a point allocates nothing: no builder, no maps of tags and
+ * fields, no boxed values and no string at the end. The bytes are handed to a
+ * {@link PointSink}, which copies them into its own batch.
+ * <p/>
+ * A point is built up in order: {@link #measurement(String)} starts it, then any tags, then
+ * at least one field and finally the timestamp, which is written in the encoder's
+ * {@link Precision}. Names and tag values are escaped as they are written. Keys are nearly
+ * always constants, so each is escaped once and kept, looked up by identity. Tags that have
+ * been formatted and escaped already (from a {@link TagDictionary}, say) can be spliced in
+ * as they are.
+ * <p/>
+ * Floating point fields are written with as few digits as it takes for InfluxDB to read
+ * back exactly the same value, without going through the JDK's formatting in the common
+ * cases:
+ * <ul>
+ *   <li>A double is first tried to 16 significant digits. If the decimal and the power of
+ *       ten it is scaled by both fit exactly in a double, dividing one by the other is
+ *       exactly what a correct parser makes of the text, so that is the check. Sixteen
+ *       digits at or above 2^53 can't be checked like this, so the odd value whose digits
+ *       start 9007 or more gets 17 digits where 16 would have done.</li>
+ *   <li>Doubles that fail it are worked out to 17 digits exactly in 128-bit integer
+ *       arithmetic, which is always enough to get back the same double.</li>
+ *   <li>Either way, digits are then taken off for as long as the check still passes.</li>
+ *   <li>Floats start at 8 digits (9 is always enough) and are trimmed the same way, which
+ *       gives what {@link Float#toString(float)} does.</li>
+ * </ul>
+ * Values outside the range these handle (very small or very large) are formatted by the
+ * JDK into a scratch buffer, which also doesn't allocate.
+ * <p/>
+ * Line protocol has no way to write NaN or infinity, and InfluxDB rejects the whole batch
+ * if one point has them. Values like that come straight off the wire, so a float field
+ * that isn't finite is left out of the point and counted ({@link #getSkippedFields()}). A
+ * point left with no fields at all isn't written.
+ * <p/>
+ * This class is <b>not</b> thread safe. Each thread that writes points needs its own.
+ */
+public class LineProtocolEncoder
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int INITIAL_CAPACITY = 256;
+
+	// Exactly representable powers of ten
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// Nearest doubles to the negative powers, only used to estimate exponents
+	private static final double[] NEGATIVE_POW10 = {
+		1e0, 1e-1, 1e-2, 1e-3, 1e-4, 1e-5, 1e-6, 1e-7, 1e-8
+	};
+
+	private static final long[] LONG_POW10 = new long[19];
+	static
+	{
+		LONG_POW10[0] = 1;
+		for( int i = 1; i < LONG_POW10.length; i++ )
+			LONG_POW10[i] = LONG_POW10[i-1] * 10;
+	}
+
+	private static final double EXACT_LIMIT = 9007199254740992.0;  // 2^53
+	private static final double MIN_FAST = 1e-6;
+	private static final double MAX_FAST_FLOAT = 1e15;
+
+	private static final long MANTISSA_MASK = (1L << 52) - 1;
+	private static final long HIDDEN_BIT = 1L << 52;
+	private static final long LOW_32 = 0xffffffffL;
+
+	// Tens and units of 0-99
+	private static final byte[] DIGIT_TENS = new byte[100];
+	private static final byte[] DIGIT_ONES = new byte[100];
+	static
+	{
+		for( int i = 0; i < 100; i++ )
+		{
+			DIGIT_TENS[i] = (byte)('0' + i/10);
+			DIGIT_ONES[i] = (byte)('0' + i%10);
+		}
+	}
+
+	private static final int KEY_CACHE_SIZE = 64;  // power of 2
+
+	private static final byte[] MIN_LONG = "-9223372036854775808".getBytes( StandardCharsets.US_ASCII );
+
+	// Where we are in the point
+	private static final int EMPTY = 0;
+	private static final int TAGS = 1;
+	private static final int FIELDS = 2;
+	private static final int DONE = 3;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Precision precision;
+	private byte[] buffer;
+	private int length;
+	private int state;
+	private boolean skipped;                 // a field of this point has been left out
+	private volatile long skippedFields;     // written only by the encoding thread
+	private volatile long skippedPoints;
+
+	// Escaped names, so constants aren't escaped every time
+	private String lastMeasurement;
+	private byte[] measurementBytes;
+	private final String[] cachedKeys;
+	private final byte[][] cachedKeyBytes;   // with the '=' on the end
+
+	// for the odd value the fast paths can't do
+	private final StringBuilder scratch;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param precision Unit the timestamps are written in. This must be what the sink the
+	 *                  points go to expects ({@link PointSink#getPrecision()}).
+	 */
+	public LineProtocolEncoder( Precision precision )
+	{
+		this.precision = precision;
+		this.buffer = new byte[INITIAL_CAPACITY];
+		this.length = 0;
+		this.state = EMPTY;
+		this.skipped = false;
+		this.skippedFields = 0;
+		this.skippedPoints = 0;
+		this.lastMeasurement = null;
+		this.measurementBytes = null;
+		this.cachedKeys = new String[KEY_CACHE_SIZE];
+		this.cachedKeyBytes = new byte[KEY_CACHE_SIZE][];
+		this.scratch = new StringBuilder( 32 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Encoding Methods   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Throw away whatever is in the buffer and start a new point.
+	 *
+	 * @param measurement Name of the measurement. Commas and spaces are escaped.
+	 */
+	public LineProtocolEncoder measurement( String measurement )
+	{
+		this.length = 0;
+		this.state = TAGS;
+		this.skipped = false;
+		if( measurement != lastMeasurement )
+		{
+			appendEscaped( measurement, false );
+			this.lastMeasurement = measurement;
+			this.measurementBytes = Arrays.copyOf( buffer, length );
+		}
+		else
+		{
+			appendBytes( measurementBytes );
+		}
+
+		return this;
+	}
+
+	/**
+	 * Add a tag. An empty value is left out, as InfluxDB doesn't allow them.
+	 */
+	public LineProtocolEncoder tag( String key, String value )
+	{
+		checkState( TAGS, "Tags must come before fields" );
+		if( value.isEmpty() )
+			return this;
+
+		put( (byte)',' );
+		appendKey( key );
+		appendEscaped( value, true );
+		return this;
+	}
+
+	/**
+	 * Add a tag with a numeric value (tag values are always strings to InfluxDB).
+	 */
+	public LineProtocolEncoder tag( String key, long value )
+	{
+		checkState( TAGS, "Tags must come before fields" );
+		put( (byte)',' );
+		appendKey( key );
+		appendLong( value );
+		return this;
+	}
+
+	/**
+	 * Splice in tags that are already formatted and escaped, each with its leading comma, as
+	 * {@link TagDictionary} hands them out.
+	 */
+	public LineProtocolEncoder tags( byte[] tags )
+	{
+		checkState( TAGS, "Tags must come before fields" );
+		appendBytes( tags );
+		return this;
+	}
+
+	/** Add a float field. NaN and infinity are left out. */
+	public LineProtocolEncoder field( String key, double value )
+	{
+		if( !Double.isFinite(value) )
+			return skipField();
+
+		startField( key );
+		appendDouble( value );
+		return this;
+	}
+
+	/**
+	 * Add a float field, written with no more digits than a float needs. NaN and infinity
+	 * are left out.
+	 */
+	public LineProtocolEncoder field( String key, float value )
+	{
+		if( !Float.isFinite(value) )
+			return skipField();
+
+		startField( key );
+		appendFloat( value );
+		return this;
+	}
+
+	/** Add an integer field */
+	public LineProtocolEncoder field( String key, long value )
+	{
+		startField( key );
+		appendLong( value );
+		put( (byte)'i' );
+		return this;
+	}
+
+	public LineProtocolEncoder field( String key, boolean value )
+	{
+		startField( key );
+		put( value ? (byte)'t' : (byte)'f' );
+		return this;
+	}
+
+	/**
+	 * Finish the point with a timestamp. A point with no timestamp is given the time it
+	 * arrives at influxd.
+	 *
+	 * @param millis The time of the point (millis since the epoch)
+	 */
+	public LineProtocolEncoder timestamp( long millis )
+	{
+		return timestamp( millis, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Finish the point with a timestamp, converted to the encoder's precision.
+	 */
+	public LineProtocolEncoder timestamp( long time, TimeUnit unit )
+	{
+		if( state == TAGS && skipped )
+			return this;   // nothing left to write, see writeTo()
+
+		checkState( FIELDS, "A point needs at least one field before its timestamp" );
+		put( (byte)' ' );
+		appendLong( precision.convert(time,unit) );
+		this.state = DONE;
+		return this;
+	}
+
+	/**
+	 * Hand the point to the sink. The encoder can be reused as soon as this returns.
+	 *
+	 * @return True if the point was written, false if every field was left out of it
+	 */
+	public boolean writeTo( PointSink sink )
+	{
+		if( state < FIELDS )
+		{
+			if( state == TAGS && skipped )
+			{
+				++skippedPoints;
+				return false;
+			}
+
+			throw new IllegalStateException( "A point needs at least one field" );
+		}
+
+		sink.write( buffer, 0, length );
+		return true;
+	}
+
+	/** Leave out a field that can't be written, checking it was in the right place */
+	private LineProtocolEncoder skipField()
+	{
+		if( state != FIELDS )
+			checkState( TAGS, "Fields must come after the measurement and tags" );
+
+		this.skipped = true;
+		++skippedFields;
+		return this;
+	}
+
+	private void startField( String key )
+	{
+		if( state == FIELDS )
+		{
+			put( (byte)',' );
+		}
+		else
+		{
+			checkState( TAGS, "Fields must come after the measurement and tags" );
+			put( (byte)' ' );
+			this.state = FIELDS;
+		}
+
+		appendKey( key );
+	}
+
+	private void checkState( int expected, String message )
+	{
+		if( state != expected )
+			throw new IllegalStateException( message );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Formatting Methods   ///////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Write a tag or field key and the equals sign after it. Keys are nearly always constants,
+	 * so they are escaped once and kept, looked up by identity.
+	 */
+	private void appendKey( String key )
+	{
+		int slot = key.hashCode() & (KEY_CACHE_SIZE-1);
+		if( cachedKeys[slot] != key )
+		{
+			int start = length;
+			appendEscaped( key, true );
+			put( (byte)'=' );
+			cachedKeys[slot] = key;
+			cachedKeyBytes[slot] = Arrays.copyOfRange( buffer, start, length );
+			return;
+		}
+
+		appendBytes( cachedKeyBytes[slot] );
+	}
+
+	/**
+	 * Write a measurement, key or tag value as UTF-8, escaping spaces, commas and backslashes
+	 * (and equals signs in keys and tag values, but not in measurements).
+	 */
+	private void appendEscaped( String text, boolean escapeEquals )
+	{
+		int count = text.length();
+		ensure( count*3 );
+		byte[] buffer = this.buffer;
+		int length = this.length;
+		for( int i = 0; i < count; i++ )
+		{
+			char c = text.charAt( i );
+			if( c < 0x80 )
+			{
+				if( c == ' ' || c == ',' || c == '\\' || (c == '=' && escapeEquals) )
+					buffer[length++] = '\\';
+				buffer[length++] = (byte)c;
+			}
+			else if( c < 0x800 )
+			{
+				buffer[length++] = (byte)(0xc0 | (c >> 6));
+				buffer[length++] = (byte)(0x80 | (c & 0x3f));
+			}
+			else if( Character.isHighSurrogate(c) && i+1 < count && Character.isLowSurrogate(text.charAt(i+1)) )
+			{
+				int code = Character.toCodePoint( c, text.charAt(++i) );
+				buffer[length++] = (byte)(0xf0 | (code >> 18));
+				buffer[length++] = (byte)(0x80 | ((code >> 12) & 0x3f));
+				buffer[length++] = (byte)(0x80 | ((code >> 6) & 0x3f));
+				buffer[length++] = (byte)(0x80 | (code & 0x3f));
+			}
+			else if( Character.isSurrogate(c) )
+			{
+				buffer[length++] = '?';
+			}
+			else
+			{
+				buffer[length++] = (byte)(0xe0 | (c >> 12));
+				buffer[length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buffer[length++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+
+		this.length = length;
+	}
+
+	private void appendLong( long value )
+	{
+		if( value < 0 )
+		{
+			if( value == Long.MIN_VALUE )
+			{
+				ensure( MIN_LONG.length );
+				System.arraycopy( MIN_LONG, 0, buffer, length, MIN_LONG.length );
+				this.length += MIN_LONG.length;
+				return;
+			}
+
+			put( (byte)'-' );
+			value = -value;
+		}
+
+		appendDigits( value, digitCount(value) );
+	}
+
+	private void appendDouble( double value )
+	{
+		if( value == 0.0 )
+		{
+			appendZero( Double.doubleToRawLongBits(value) < 0 );
+			return;
+		}
+
+		if( value < 0 )
+		{
+			put( (byte)'-' );
+			value = -value;
+		}
+
+		if( value >= MIN_FAST && value < EXACT_LIMIT )
+		{
+			// 16 digits, if that is enough to get the same value back. Above 2^53 they can't
+			// be checked, so see if 15 will do instead.
+			int exponent = decimalExponent( value );
+			int scale = 15 - exponent;
+			long digits = (long)(value * POW10[scale] + 0.5);
+			if( digits >= EXACT_LIMIT )
+				digits = scaleAndRound( value, --scale );
+
+			if( isDouble(value,digits,scale) )
+			{
+				appendShortest( value, digits, scale );
+				return;
+			}
+
+			// 17 then, which always is
+			if( value >= 1.0 )
+			{
+				appendSeventeenDigits( value, exponent );
+				return;
+			}
+		}
+
+		scratch.setLength( 0 );
+		scratch.append( value );
+		appendScratch();
+	}
+
+	/**
+	 * Work out the 17 significant digits of a value in [1,2^53) exactly, as the mantissa
+	 * times a power of ten shifted down by the binary exponent, rounding half to even.
+	 */
+	private void appendSeventeenDigits( double value, int exponent )
+	{
+		long bits = Double.doubleToRawLongBits( value );
+		long mantissa = (bits & MANTISSA_MASK) | HIDDEN_BIT;
+		int shift = 1075 - (int)(bits >>> 52);  // value = mantissa / 2^shift
+		if( shift <= 0 )
+		{
+			// a whole number, nothing to round (the 16 digit check nearly always has it)
+			appendScaled( mantissa, 0 );
+			return;
+		}
+
+		int scale = 16 - exponent;
+		long digits = roundExactly( mantissa, shift, scale );
+
+		// The guess in appendDouble() was scaled in floating point, so it can be one off
+		// where rounding these isn't. Same again: 16 digits, or 15 if 16 can't be checked.
+		// Each is rounded from the exact value, as rounding the 17 digits again can be off.
+		int dropped = 1;
+		long shorter = roundExactly( mantissa, shift, scale-1 );
+		if( shorter >= EXACT_LIMIT )
+		{
+			dropped = 2;
+			shorter = roundExactly( mantissa, shift, scale-2 );
+		}
+
+		if( isDouble(value,shorter,scale-dropped) )
+			appendShortest( value, shorter, scale-dropped );
+		else
+			appendScaled( digits, scale );
+	}
+
+	private void appendFloat( float value )
+	{
+		if( value == 0.0f )
+		{
+			appendZero( Float.floatToRawIntBits(value) < 0 );
+			return;
+		}
+
+		if( value < 0 )
+		{
+			put( (byte)'-' );
+			value = -value;
+		}
+
+		double wide = value;
+		if( wide >= MIN_FAST && wide < MAX_FAST_FLOAT )
+		{
+			// Most floats need 8 digits or fewer, so start there. 9 is always enough.
+			int scale = 7 - decimalExponent( wide );
+			long digits = scaleAndRound( wide, scale );
+			if( isFloat(value,digits,scale) )
+			{
+				appendShortest( value, digits, scale );
+				return;
+			}
+
+			digits = scaleAndRound( wide, ++scale );
+			if( isFloat(value,digits,scale) )
+			{
+				appendScaled( digits, scale );
+				return;
+			}
+		}
+
+		scratch.setLength( 0 );
+		scratch.append( value );
+		appendScratch();
+	}
+
+	/**
+	 * Take digits off a decimal that reads back as the given value for as long as it still
+	 * does, then write it
+	 */
+	private void appendShortest( double value, long digits, int scale )
+	{
+		while( true )
+		{
+			while( digits % 10000 == 0 )
+			{
+				digits /= 10000;
+				scale -= 4;
+			}
+
+			while( digits % 10 == 0 )
+			{
+				digits /= 10;
+				--scale;
+			}
+
+			long shorter = scaleAndRound( value, scale-1 );
+			if( shorter == 0 || !isDouble(value,shorter,scale-1) )
+				break;
+
+			digits = shorter;
+			--scale;
+		}
+
+		appendScaled( digits, scale );
+	}
+
+	/** As above, for a float */
+	private void appendShortest( float value, long digits, int scale )
+	{
+		while( true )
+		{
+			while( digits % 10000 == 0 )
+			{
+				digits /= 10000;
+				scale -= 4;
+			}
+
+			while( digits % 10 == 0 )
+			{
+				digits /= 10;
+				--scale;
+			}
+
+			long shorter = scaleAndRound( value, scale-1 );
+			if( shorter == 0 || !isFloat(value,shorter,scale-1) )
+				break;
+
+			digits = shorter;
+			--scale;
+		}
+
+		appendScaled( digits, scale );
+	}
+
+	private void appendZero( boolean negative )
+	{
+		if( negative )
+			put( (byte)'-' );
+		put( (byte)'0' );
+	}
+
+	/**
+	 * Write digits / 10^scale as a plain decimal, without trailing zeros after the point. A
+	 * negative scale is written as trailing zeros before it.
+	 */
+	private void appendScaled( long digits, int scale )
+	{
+		while( scale > 0 && digits % 10 == 0 )
+		{
+			digits /= 10;
+			--scale;
+		}
+
+		int count = digitCount( digits );
+		if( scale <= 0 )
+		{
+			appendDigits( digits, count );
+			ensure( -scale );
+			for( int i = scale; i < 0; i++ )
+				buffer[length++] = '0';
+		}
+		else if( count <= scale )
+		{
+			ensure( scale+2 );
+			buffer[length++] = '0';
+			buffer[length++] = '.';
+			for( int i = count; i < scale; i++ )
+				buffer[length++] = '0';
+			appendDigits( digits, count );
+		}
+		else
+		{
+			// write the digits one along, then move the whole part back over the gap
+			int start = length;
+			ensure( count+1 );
+			this.length = start + 1;
+			appendDigits( digits, count );
+			int point = start + count - scale;
+			for( int i = start; i < point; i++ )
+				buffer[i] = buffer[i+1];
+			buffer[point] = '.';
+		}
+	}
+
+	/**
+	 * Write a non-negative value that has the given number of digits, two at a time. Each
+	 * division depends on the one before, so eight digits at a time are split off into an
+	 * int, which the processor can get on with alongside the next lot.
+	 */
+	private void appendDigits( long value, int count )
+	{
+		ensure( count );
+		byte[] buffer = this.buffer;
+		int position = length + count;
+		this.length = position;
+		while( value >= 100000000 )
+		{
+			long high = value / 100000000;
+			int low = (int)(value - high*100000000);
+			for( int i = 0; i < 4; i++ )
+			{
+				int next = low / 100;
+				int pair = low - next*100;
+				buffer[--position] = DIGIT_ONES[pair];
+				buffer[--position] = DIGIT_TENS[pair];
+				low = next;
+			}
+
+			value = high;
+		}
+
+		int remaining = (int)value;
+		while( remaining >= 100 )
+		{
+			int next = remaining / 100;
+			int pair = remaining - next*100;
+			buffer[--position] = DIGIT_ONES[pair];
+			buffer[--position] = DIGIT_TENS[pair];
+			remaining = next;
+		}
+
+		if( remaining >= 10 )
+		{
+			buffer[--position] = DIGIT_ONES[remaining];
+			buffer[--position] = DIGIT_TENS[remaining];
+		}
+		else
+		{
+			buffer[--position] = (byte)('0' + remaining);
+		}
+	}
+
+	/** Copy bytes that need no escaping. Mostly short, so a loop beats an arraycopy. */
+	private void appendBytes( byte[] bytes )
+	{
+		int count = bytes.length;
+		ensure( count );
+		byte[] buffer = this.buffer;
+		int length = this.length;
+		for( int i = 0; i < count; i++ )
+			buffer[length+i] = bytes[i];
+		this.length = length + count;
+	}
+
+	/** The JDK's formatting is all ASCII */
+	private void appendScratch()
+	{
+		int count = scratch.length();
+		ensure( count );
+		for( int i = 0; i < count; i++ )
+			buffer[length++] = (byte)scratch.charAt( i );
+	}
+
+	private void put( byte value )
+	{
+		ensure( 1 );
+		buffer[length++] = value;
+	}
+
+	private void ensure( int bytes )
+	{
+		if( length+bytes > buffer.length )
+			this.buffer = Arrays.copyOf( buffer, Math.max(buffer.length*2,length+bytes) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public Precision getPrecision()
+	{
+		return this.precision;
+	}
+
+	/** @return The array the point is in. Only the first {@link #getLength()} bytes are used. */
+	public byte[] getBuffer()
+	{
+		return this.buffer;
+	}
+
+	/** @return Bytes in the point so far */
+	public int getLength()
+	{
+		return this.length;
+	}
+
+	/** @return Float fields left out because they were NaN or infinite */
+	public long getSkippedFields()
+	{
+		return this.skippedFields;
+	}
+
+	/** @return Points not written because every field was left out */
+	public long getSkippedPoints()
+	{
+		return this.skippedPoints;
+	}
+
+	/** @return The point so far, for debugging (this allocates) */
+	@Override
+	public String toString()
+	{
+		return new String( buffer, 0, length, StandardCharsets.UTF_8 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return floor(log10(value)) for a positive value below 2^53. Exact from 1 up; below
+	 *         that it may be out by one either way, which only costs a digit.
+	 */
+	private static int decimalExponent( double value )
+	{
+		// floor(e*log10(2)) is right or one short
+		int exponent = (Math.getExponent(value) * 1233) >> 12;
+		double next = exponent >= -1 ? POW10[exponent+1] : NEGATIVE_POW10[-exponent-1];
+		return value >= next ? exponent+1 : exponent;
+	}
+
+	/** @return value * 10^scale, rounded to the nearest whole number */
+	private static long scaleAndRound( double value, int scale )
+	{
+		return (long)((scale >= 0 ? value * POW10[scale] : value / POW10[-scale]) + 0.5);
+	}
+
+	/**
+	 * @return True if digits * 10^-scale reads back as the given double. When the digits and
+	 *         the power of ten are both exact doubles, dividing one by the other is exactly
+	 *         what parsing the decimal would give. When they aren't, we can't tell.
+	 */
+	private static boolean isDouble( double value, long digits, int scale )
+	{
+		return digits < EXACT_LIMIT && parse( digits, scale ) == value;
+	}
+
+	/** @return True if digits * 10^-scale reads back as the given float (see above) */
+	private static boolean isFloat( float value, long digits, int scale )
+	{
+		return digits < EXACT_LIMIT && (float)parse( digits, scale ) == value;
+	}
+
+	private static double parse( long digits, int scale )
+	{
+		return scale >= 0 ? digits / POW10[scale] : digits * POW10[-scale];
+	}
+
+	/** @return Number of decimal digits in a non-negative value */
+	private static int digitCount( long value )
+	{
+		int bits = 64 - Long.numberOfLeadingZeros( value | 1 );
+		int count = (bits * 1233) >>> 12;  // floor(bits*log10(2)), right or one short
+		return count < LONG_POW10.length && value >= LONG_POW10[count] ? count+1 : Math.max( count, 1 );
+	}
+
+	/**
+	 * @return mantissa / 2^shift * 10^scale, rounded half to even, worked out exactly. The
+	 *         shift must be 1-63 and the result must fit in a long.
+	 */
+	private static long roundExactly( long mantissa, int shift, int scale )
+	{
+		long power = LONG_POW10[scale];
+		long high = multiplyHigh( mantissa, power );
+		long low = mantissa * power;
+
+		long digits = (high << (64-shift)) | (low >>> shift);
+		long remainder = low & ((1L << shift) - 1);
+		long half = 1L << (shift-1);
+		if( remainder > half || (remainder == half && (digits & 1) != 0) )
+			++digits;
+
+		return digits;
+	}
+
+	/** @return The high 64 bits of the 128-bit product of two non-negative longs */
+	private static long multiplyHigh( long a, long b )
+	{
+		long a1 = a >>> 32;
+		long a0 = a & LOW_32;
+		long b1 = b >>> 32;
+		long b0 = b & LOW_32;
+
+		long low = a0 * b0;
+		long cross1 = a1 * b0;
+		long cross0 = a0 * b1;
+		long middle = (low >>> 32) + (cross1 & LOW_32) + (cross0 & LOW_32);
+		return (a1 * b1) + (cross1 >>> 32) + (cross0 >>> 32) + (middle >>> 32);
+	}
+}
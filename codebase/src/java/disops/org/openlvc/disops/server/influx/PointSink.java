@@ -0,0 +1,72 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.nio.charset.StandardCharsets;
+
+import org.influxdb.dto.Point;
+
+/**
+ * Somewhere that InfluxDB points can be sent. Implementations decide how and when the points
+ * actually reach influxd (batched HTTP, UDP datagrams, ...). All implementations must be
+ * safe to call from multiple threads.
+ */
+public interface PointSink
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Queue a single point, already formatted as line protocol (without a trailing newline).
+	 * The timestamp, if present, must be in the sink's {@link #getPrecision() precision}.
+	 */
+	public void write( String lineProtocol );
+
+	/**
+	 * Queue a single point held as UTF-8 line protocol (without a trailing newline) in the
+	 * given array, as a {@link LineProtocolEncoder} produces it. The bytes are copied before
+	 * this returns, so the array can be reused straight away. Sinks that batch bytes should
+	 * override this; by default the bytes are turned into a string.
+	 */
+	public default void write( byte[] line, int offset, int length )
+	{
+		write( new String(line,offset,length,StandardCharsets.UTF_8) );
+	}
+
+	/**
+	 * Push anything that has been queued but not yet sent.
+	 */
+	public void flush();
+
+	/**
+	 * Queue an influxdb-java point. These always carry nanosecond timestamps, so this is only
+	 * for sinks at {@link Precision#NANOSECONDS}.
+	 */
+	public default void write( Point point )
+	{
+		write( point.lineProtocol() );
+	}
+
+	/**
+	 * @return The unit timestamps written to this sink must be in
+	 */
+	public default Precision getPrecision()
+	{
+		return Precision.NANOSECONDS;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The unit that line protocol timestamps are written in. InfluxDB stores everything to the
+ * nanosecond, but it has to be told what the numbers it is sent mean: in the <code>precision</code>
+ * parameter of an HTTP write, or in the UDP listener's configuration. Coarser timestamps are
+ * shorter (13 digits for milliseconds against 19 for nanoseconds), which adds up at entity
+ * state rates. Our receive times are only to the millisecond anyway.
+ */
+public enum Precision
+{
+	//----------------------------------------------------------
+	//                        VALUES
+	//----------------------------------------------------------
+	NANOSECONDS( "ns", "n", TimeUnit.NANOSECONDS ),
+	MICROSECONDS( "u", "u", TimeUnit.MICROSECONDS ),
+	MILLISECONDS( "ms", "ms", TimeUnit.MILLISECONDS ),
+	SECONDS( "s", "s", TimeUnit.SECONDS );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final String httpValue;
+	private final String udpValue;
+	private final TimeUnit unit;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private Precision( String httpValue, String udpValue, TimeUnit unit )
+	{
+		this.httpValue = httpValue;
+		this.udpValue = udpValue;
+		this.unit = unit;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** @return Timestamp in this precision for the given time (millis). Rounds down. */
+	public long fromMillis( long millis )
+	{
+		return unit.convert( millis, TimeUnit.MILLISECONDS );
+	}
+
+	/** @return Timestamp in this precision for the given time. Rounds down. */
+	public long convert( long time, TimeUnit from )
+	{
+		return unit.convert( time, from );
+	}
+
+	/** @return Value of the <code>precision</code> parameter on an HTTP write */
+	public String getHttpValue()
+	{
+		return this.httpValue;
+	}
+
+	/** @return Value of <code>precision</code> in an influxd <code>[[udp]]</code> section */
+	public String getUdpValue()
+	{
+		return this.udpValue;
+	}
+
+	public TimeUnit getTimeUnit()
+	{
+		return this.unit;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @param value One of the InfluxDB names (ns, n, u, us, ms, s) or the name of a constant
+	 * @return The matching precision
+	 * @throws IllegalArgumentException If the value isn't one of those
+	 */
+	public static Precision fromString( String value )
+	{
+		String trimmed = value.trim();
+		switch( trimmed.toLowerCase() )
+		{
+			case "ns":
+			case "n":
+				return NANOSECONDS;
+			case "u":
+			case "us":
+				return MICROSECONDS;
+			case "ms":
+				return MILLISECONDS;
+			case "s":
+				return SECONDS;
+			default:
+				break;
+		}
+
+		for( Precision precision : values() )
+		{
+			if( precision.name().equalsIgnoreCase(trimmed) )
+				return precision;
+		}
+
+		throw new IllegalArgumentException( "Unknown timestamp precision: "+value );
+	}
+}
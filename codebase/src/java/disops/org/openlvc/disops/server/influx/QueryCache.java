@@ -0,0 +1,416 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.DisOpsException;
+
+/**
+ * Sits in front of a {@link QueryRouter} so that the same query asked by a room full of
+ * dashboards only goes to influxd once.
+ * <p/>
+ * For that to work, queries asked a few moments apart have to look the same, so before a
+ * query is looked up its resolution is rounded up to the next 1-2-5 step and its range is
+ * widened out to whole buckets of that resolution. Everyone looking at "the last three days"
+ * within the same bucket then shares a single result.
+ * <p/>
+ * How long a result is kept depends on whether its range is finished:
+ * <ul>
+ *   <li>A range still filling in (it ends in the future, or recently enough that rollups may
+ *       still be catching up) is kept until the end of the current bucket, when a refresh
+ *       would give a new point anyway.</li>
+ *   <li>A range over and done with won't change, and is kept for the historic TTL.</li>
+ * </ul>
+ * Results are held in an LRU map bounded by an estimate of their size in memory; results
+ * too large to be worth caching are passed straight through. When several threads ask for
+ * a query nobody has the result for, the first goes to influxd and the rest wait for its
+ * answer rather than asking again.
+ * <p/>
+ * Cached results are shared between callers, so they must not be modified.
+ */
+public class QueryCache
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Alignment for queries that return every point, which have no bucket of their own */
+	private static final long RAW_ALIGNMENT = 1000;
+
+	/** Shortest time a result is kept for, so a query right at a bucket boundary still shares */
+	private static final long MIN_TTL = 250;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final QueryRouter router;
+	private final long maxBytes;
+	private final long historicTtl;
+
+	// key (the InfluxQL) -> result, in access order. Guarded by itself, as is bytes.
+	private final LinkedHashMap<String,Entry> entries;
+	private long bytes;
+
+	private final ConcurrentHashMap<String,CompletableFuture<QueryResult>> inFlight;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder coalesced;
+	private final LongAdder evictions;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param router      The router queries are sent through on a miss
+	 * @param maxBytes    Roughly how much memory results may take up
+	 * @param historicTtl Millis to keep results for ranges that are finished
+	 */
+	public QueryCache( QueryRouter router, long maxBytes, long historicTtl )
+	{
+		this.router = router;
+		this.maxBytes = maxBytes;
+		this.historicTtl = historicTtl;
+
+		this.entries = new LinkedHashMap<>( 64, 0.75f, true );
+		this.bytes = 0;
+		this.inFlight = new ConcurrentHashMap<>();
+
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.coalesced = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Query Methods   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Answer the query from the cache if we can, otherwise run it (or wait for whoever is
+	 * already running it) and keep the result.
+	 *
+	 * @return The result, shared with other callers, so don't modify it
+	 * @throws DisOpsException If the query can't be built or InfluxDB rejects it
+	 */
+	public QueryResult query( TieredQuery query ) throws DisOpsException
+	{
+		long now = System.currentTimeMillis();
+		TieredQuery aligned = align( query );
+		String key = router.toInfluxQL( aligned );
+
+		QueryResult result = lookup( key, now );
+		if( result != null )
+		{
+			hits.increment();
+			return result;
+		}
+
+		// join a request that is already on its way, or become the one that makes it
+		CompletableFuture<QueryResult> ours = new CompletableFuture<>();
+		CompletableFuture<QueryResult> running = inFlight.putIfAbsent( key, ours );
+		if( running != null )
+		{
+			coalesced.increment();
+			return await( running );
+		}
+
+		try
+		{
+			// someone may have finished and stored it between our lookup and now
+			result = lookup( key, now );
+			if( result != null )
+			{
+				hits.increment();
+			}
+			else
+			{
+				misses.increment();
+				result = router.query( aligned );
+				store( key, result, now+getTtl(aligned,now) );
+			}
+
+			ours.complete( result );
+			return result;
+		}
+		catch( RuntimeException e )
+		{
+			ours.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove( key, ours );
+		}
+	}
+
+	/**
+	 * @return A copy of the query with its resolution rounded up to a 1-2-5 step and its
+	 *         range widened to whole buckets, so queries made moments apart match
+	 */
+	TieredQuery align( TieredQuery query )
+	{
+		TieredQuery aligned = new TieredQuery( query );
+		aligned.setResolution( roundUp(query.getEffectiveResolution()) );
+		aligned.setMaxPoints( 0 );
+
+		long bucket = alignment( aligned );
+		long start = Math.floorDiv( query.getStart(), bucket ) * bucket;
+		long end = Math.floorDiv( query.getEnd()+bucket-1, bucket ) * bucket;
+		aligned.setTimeRange( start, end );
+		return aligned;
+	}
+
+	private long alignment( TieredQuery aligned )
+	{
+		long bucket = router.getBucketMillis( aligned );
+		return bucket > 0 ? bucket : RAW_ALIGNMENT;
+	}
+
+	/** @return Millis to keep the result of an aligned query made at the given time */
+	long getTtl( TieredQuery aligned, long now )
+	{
+		// Until a bucket or two after its end, a range may still get points (and rollups of
+		// them). Keep it until the next bucket boundary, when it would look different anyway.
+		long bucket = alignment( aligned );
+		if( now < aligned.getEnd() + 2*bucket )
+			return Math.max( MIN_TTL, bucket - Math.floorMod(now,bucket) );
+		else
+			return historicTtl;
+	}
+
+	private QueryResult await( CompletableFuture<QueryResult> running )
+	{
+		try
+		{
+			return running.get();
+		}
+		catch( ExecutionException | CompletionException e )
+		{
+			Throwable cause = e.getCause();
+			if( cause instanceof DisOpsException )
+				throw (DisOpsException)cause;
+			else
+				throw new DisOpsException( "Query failed: "+cause.getMessage(), cause );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			throw new DisOpsException( "Interrupted waiting for query", ie );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Storage Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private QueryResult lookup( String key, long now )
+	{
+		synchronized( entries )
+		{
+			Entry entry = entries.get( key );
+			if( entry == null )
+				return null;
+
+			if( entry.expires <= now )
+			{
+				entries.remove( key );
+				bytes -= entry.size;
+				return null;
+			}
+
+			return entry.result;
+		}
+	}
+
+	private void store( String key, QueryResult result, long expires )
+	{
+		// one huge result shouldn't clear out everything else
+		long size = estimateSize( key, result );
+		if( size > maxBytes/4 )
+			return;
+
+		synchronized( entries )
+		{
+			Entry previous = entries.put( key, new Entry(result,size,expires) );
+			if( previous != null )
+				bytes -= previous.size;
+			bytes += size;
+
+			// least recently used first; expired entries go wherever they are
+			Iterator<Entry> iterator = entries.values().iterator();
+			while( bytes > maxBytes && iterator.hasNext() )
+			{
+				Entry eldest = iterator.next();
+				iterator.remove();
+				bytes -= eldest.size;
+				evictions.increment();
+			}
+		}
+	}
+
+	/** Throw away everything cached (results already handed out are unaffected) */
+	public void clear()
+	{
+		synchronized( entries )
+		{
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Queries answered from the cache */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/** @return Queries that had to go to influxd */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/** @return Queries that waited for an identical query already on its way to influxd */
+	public long getCoalesced()
+	{
+		return coalesced.sum();
+	}
+
+	/** @return Results evicted to make room */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/** @return Percentage of queries that didn't go to influxd (hits and coalesced) */
+	public long getHitRate()
+	{
+		long saved = hits.sum() + coalesced.sum();
+		long total = saved + misses.sum();
+		return total == 0 ? 0 : saved * 100 / total;
+	}
+
+	public int getEntryCount()
+	{
+		synchronized( entries )
+		{
+			return entries.size();
+		}
+	}
+
+	/** @return Estimated bytes held by cached results */
+	public long getMemoryUsage()
+	{
+		synchronized( entries )
+		{
+			return this.bytes;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return The smallest of 1, 2 or 5 times a power of ten that is at least the value */
+	static long roundUp( long value )
+	{
+		if( value <= 0 )
+			return 0;
+
+		long step = 1;
+		while( true )
+		{
+			if( value <= step ) return step;
+			if( value <= step*2 ) return step*2;
+			if( value <= step*5 ) return step*5;
+			step *= 10;
+		}
+	}
+
+	/**
+	 * A rough count of the heap a result takes up: object headers, boxed numbers and the
+	 * characters of strings. It only needs to be close enough to bound the cache.
+	 */
+	static long estimateSize( String key, QueryResult result )
+	{
+		long size = 96 + key.length()*2;
+		if( result.getResults() == null )
+			return size;
+
+		for( QueryResult.Result statement : result.getResults() )
+		{
+			size += 48;
+			if( statement.getSeries() == null )
+				continue;
+
+			for( QueryResult.Series series : statement.getSeries() )
+			{
+				size += 128;
+				if( series.getTags() != null )
+				{
+					for( Map.Entry<String,String> tag : series.getTags().entrySet() )
+						size += 96 + (tag.getKey().length() + tag.getValue().length())*2;
+				}
+
+				List<List<Object>> values = series.getValues();
+				if( values == null )
+					continue;
+
+				for( List<Object> row : values )
+				{
+					size += 56 + row.size()*8;
+					for( Object value : row )
+						size += value instanceof String ? 48 + ((String)value).length()*2 : 16;
+				}
+			}
+		}
+
+		return size;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Entry   ///////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class Entry
+	{
+		private final QueryResult result;
+		private final long size;
+		private final long expires;
+
+		private Entry( QueryResult result, long size, long expires )
+		{
+			this.result = result;
+			this.size = size;
+			this.expires = expires;
+		}
+	}
+}
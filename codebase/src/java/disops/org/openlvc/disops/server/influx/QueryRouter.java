@@ -0,0 +1,235 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+
+/**
+ * Turns a {@link TieredQuery} into InfluxQL against the cheapest retention tier that can
+ * answer it, so callers don't need to know the tiers exist. A three day chart 1000 pixels
+ * wide wants a point every ~4 minutes; reading that from the 1m rollups scans a few
+ * thousand points per entity rather than every raw point written in those three days.
+ * <p/>
+ * The tier chosen is the coarsest one that:
+ * <ul>
+ *   <li>has buckets no wider than the resolution asked for, and</li>
+ *   <li>still holds data as old as the start of the range.</li>
+ * </ul>
+ * If no tier meets both (the data asked for at a fine resolution has aged out of the finer
+ * tiers), the finest tier still holding the data is used, coarser than asked but the best
+ * there is. If the resolution is wider than the tier's buckets, the query aggregates into
+ * buckets of the resolution; if it matches, the rolled up points are read as they are.
+ * <p/>
+ * Rollups are written by continuous queries that run behind real time, so the most recent
+ * few buckets of a coarse tier may not be filled in yet. Ranges that end at "now" will show
+ * that as a short gap at the end.
+ * <p/>
+ * The tiers are read from the configuration when the router is created.
+ */
+public class QueryRouter
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final InfluxWriter writer;
+	private final String defaultDatabase;
+	private final List<SchemaManager.Tier> tiers;  // finest first, empty if tiers are disabled
+	private final long[] retention;                // per tier, millis, 0 = forever
+	private final long[] interval;                 // per tier, millis, 0 = raw
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param influxConfiguration Where the database and tier settings come from
+	 * @param schemaManager       The manager that set the tiers up
+	 * @param writer              The connection to run the queries through
+	 */
+	public QueryRouter( InfluxConfiguration influxConfiguration,
+	                    SchemaManager schemaManager,
+	                    InfluxWriter writer )
+	{
+		this.writer = writer;
+		this.defaultDatabase = influxConfiguration.getDatabase();
+		this.tiers = influxConfiguration.isTiersEnabled() ? schemaManager.getTiers()
+		                                                  : Collections.emptyList();
+
+		this.retention = new long[tiers.size()];
+		this.interval = new long[tiers.size()];
+		for( int i = 0; i < tiers.size(); i++ )
+		{
+			this.retention[i] = tiers.get(i).getRetentionMillis();
+			this.interval[i] = tiers.get(i).getIntervalMillis();
+		}
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Run the query against the tier that suits it.
+	 *
+	 * @return The result, with times as epoch millis
+	 * @throws DisOpsException If the query can't be built or InfluxDB rejects it
+	 */
+	public QueryResult query( TieredQuery query ) throws DisOpsException
+	{
+		return writer.query( toInfluxQL(query) );
+	}
+
+	/**
+	 * @return The tier the query should read from, or null if tiers are disabled and the
+	 *         database's default retention policy should be used
+	 * @throws DisOpsException If the query names a tier that doesn't exist
+	 */
+	public SchemaManager.Tier selectTier( TieredQuery query ) throws DisOpsException
+	{
+		if( tiers.isEmpty() )
+			return null;
+
+		// the caller knows best
+		if( query.getTier() != null )
+		{
+			for( SchemaManager.Tier tier : tiers )
+			{
+				if( tier.getName().equals(query.getTier()) )
+					return tier;
+			}
+
+			throw new DisOpsException( "Unknown retention tier: "+query.getTier() );
+		}
+
+		long resolution = query.getEffectiveResolution();
+		long age = System.currentTimeMillis() - query.getStart();
+		int chosen = -1;
+		for( int i = 0; i < tiers.size(); i++ )
+		{
+			boolean holdsRange = retention[i] == 0 || age <= retention[i];
+			if( !holdsRange )
+				continue;
+
+			if( interval[i] <= resolution )
+				chosen = i;       // fine enough, but keep looking for a coarser one
+			else if( chosen == -1 )
+				chosen = i;       // too coarse, but nothing finer has the data
+			else
+				break;            // too coarse, and we've got one that will do
+		}
+
+		// nothing holds data that old; the coarsest tier keeps the longest
+		return chosen == -1 ? tiers.get(tiers.size()-1) : tiers.get(chosen);
+	}
+
+	/**
+	 * @return The InfluxQL for the query, reading from the tier that suits it
+	 * @throws DisOpsException If the query has no fields or names a tier that doesn't exist
+	 */
+	public String toInfluxQL( TieredQuery query ) throws DisOpsException
+	{
+		String[] fields = query.getFields();
+		if( fields == null || fields.length == 0 )
+			throw new DisOpsException( "Query has no fields: "+query );
+
+		SchemaManager.Tier tier = selectTier( query );
+		long tierInterval = tier == null ? 0 : tier.getIntervalMillis();
+		long bucket = getBucketMillis( query, tier );
+		boolean aggregate = bucket > tierInterval;
+
+		StringBuilder builder = new StringBuilder( 256 );
+		builder.append( "SELECT " );
+		for( int i = 0; i < fields.length; i++ )
+		{
+			if( i > 0 )
+				builder.append( ", " );
+
+			String field = SchemaManager.quote( fields[i] );
+			if( aggregate )
+				builder.append( query.getFunction() ).append( '(' ).append( field ).append( ") AS " );
+			builder.append( field );
+		}
+
+		// "db".."measurement" reads from the default retention policy
+		String database = query.getDatabase() == null ? defaultDatabase : query.getDatabase();
+		builder.append( " FROM " ).append( SchemaManager.quote(database) ).append( '.' );
+		if( tier != null )
+			builder.append( SchemaManager.quote(tier.getName()) );
+		builder.append( '.' ).append( SchemaManager.quote(query.getMeasurement()) );
+
+		builder.append( " WHERE time >= " ).append( query.getStart() ).append( "ms" );
+		builder.append( " AND time < " ).append( query.getEnd() ).append( "ms" );
+		if( query.getCondition() != null )
+			builder.append( " AND (" ).append( query.getCondition() ).append( ')' );
+
+		String[] tags = query.getGroupBy();
+		boolean grouped = aggregate || (tags != null && tags.length > 0);
+		if( grouped )
+		{
+			builder.append( " GROUP BY " );
+			if( aggregate )
+				builder.append( "time(" ).append( bucket ).append( "ms)" );
+
+			for( int i = 0; tags != null && i < tags.length; i++ )
+			{
+				if( aggregate || i > 0 )
+					builder.append( ", " );
+
+				builder.append( tags[i].equals("*") ? "*" : SchemaManager.quote(tags[i]) );
+			}
+		}
+
+		if( aggregate )
+			builder.append( " fill(none)" );
+
+		return builder.toString();
+	}
+
+	/**
+	 * @return Width in millis of the time buckets the query will return: the resolution
+	 *         asked for, or the buckets of the tier it reads, whichever is wider. 0 if it
+	 *         returns every point as it was written.
+	 */
+	public long getBucketMillis( TieredQuery query ) throws DisOpsException
+	{
+		return getBucketMillis( query, selectTier(query) );
+	}
+
+	private long getBucketMillis( TieredQuery query, SchemaManager.Tier tier )
+	{
+		long tierInterval = tier == null ? 0 : tier.getIntervalMillis();
+		return Math.max( query.getEffectiveResolution(), tierInterval );
+	}
+
+	/** @return The tiers queries are routed across, finest first. Empty if tiers are disabled. */
+	public List<SchemaManager.Tier> getTiers()
+	{
+		return this.tiers;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,378 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Logger;
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.ConfigurationException;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+
+/**
+ * Sets up retention tiers in a database so that queries over long time ranges don't have to
+ * scan every raw point. There are four tiers, each a retention policy of its own:
+ * <ul>
+ *   <li><b>raw</b>: every point as written. This is made the default policy, so writers
+ *       carry on writing without naming a policy.</li>
+ *   <li><b>1s</b>, <b>1m</b>, <b>1h</b>: rollups of each registered measurement into buckets
+ *       of that size, each filled by a continuous query reading from the tier below</li>
+ * </ul>
+ * How long each tier is kept comes from {@link InfluxConfiguration}. What goes into a rollup
+ * is registered per measurement with {@link #addRollup(String, String, String...)}.
+ * <p/>
+ * {@link #apply(InfluxWriter, String)} is idempotent. It looks at what the database already
+ * has and only creates or alters what is missing or different, so it runs on every startup.
+ * Continuous queries can't be altered, so each one is named after a hash of its definition.
+ * When the definition changes, the old query no longer matches what we want; it is dropped
+ * and the new one created. Only queries with our prefix are ever touched.
+ * <p/>
+ * Each continuous query resamples a window a few buckets wide rather than just the last
+ * bucket, so points that arrive late (from a batch, a spill replay or over UDP) still make
+ * it into their rollup.
+ */
+public class SchemaManager
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String TIER_RAW    = "raw";
+	public static final String TIER_SECOND = "1s";
+	public static final String TIER_MINUTE = "1m";
+	public static final String TIER_HOUR   = "1h";
+
+	/** Every continuous query we create has a name starting with this */
+	public static final String CQ_PREFIX = "disops_";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final InfluxConfiguration influxConfiguration;
+	private final Logger logger;
+
+	// measurement -> selectors, in registration order
+	private final Map<String,String> rollups;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public SchemaManager( InfluxConfiguration influxConfiguration, Logger logger )
+	{
+		this.influxConfiguration = influxConfiguration;
+		this.logger = logger;
+		this.rollups = new LinkedHashMap<>();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Rollup Registration Methods   //////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Roll the given measurement up into each tier, applying the same aggregate to every
+	 * listed field. Fields keep their names in the rollups, so queries against any tier look
+	 * the same. All tags are kept. Register before {@link #apply(InfluxWriter, String)}.
+	 *
+	 * @param measurement The measurement to roll up
+	 * @param function    InfluxQL aggregate or selector to apply (last, mean, max...)
+	 * @param fields      The fields to roll up
+	 */
+	public synchronized void addRollup( String measurement, String function, String... fields )
+	{
+		StringBuilder selectors = new StringBuilder();
+		for( String field : fields )
+		{
+			if( selectors.length() > 0 )
+				selectors.append( ", " );
+
+			selectors.append( function ).append( '(' ).append( quote(field) ).append( ") AS " )
+			         .append( quote(field) );
+		}
+
+		this.rollups.put( measurement, selectors.toString() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Schema Management Methods   ////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Bring the given database's retention policies and continuous queries into line with
+	 * the configured tiers and registered rollups. The database must already exist.
+	 *
+	 * @throws ConfigurationException If any of the tier durations can't be understood
+	 * @throws DisOpsException If InfluxDB rejects any of the statements
+	 */
+	public synchronized void apply( InfluxWriter writer, String database ) throws DisOpsException
+	{
+		List<Tier> tiers = getTiers();
+		applyRetentionPolicies( writer, database, tiers );
+		applyContinuousQueries( writer, database, tiers );
+	}
+
+	private void applyRetentionPolicies( InfluxWriter writer, String database, List<Tier> tiers )
+	{
+		// name -> [duration, default]
+		Map<String,Object[]> existing = new HashMap<>();
+		for( List<Object> row : show(writer,"SHOW RETENTION POLICIES ON "+quote(database),database) )
+			existing.put( (String)row.get(0), new Object[]{ row.get(1), row.get(4) } );
+
+		for( Tier tier : tiers )
+		{
+			Object[] current = existing.get( tier.name );
+			boolean makeDefault = tier.name.equals( TIER_RAW );
+			String policy = quote(tier.name)+" ON "+quote(database)+" DURATION "+tier.duration;
+			if( current == null )
+			{
+				writer.execute( "CREATE RETENTION POLICY "+policy+" REPLICATION 1"+(makeDefault ? " DEFAULT" : "") );
+				logger.info( "Created retention policy %s.%s (%s)", database, tier.name, tier.duration );
+				continue;
+			}
+
+			boolean durationChanged = parseDuration((String)current[0]) != parseDuration(tier.duration);
+			boolean defaultChanged = makeDefault && !Boolean.TRUE.equals(current[1]);
+			if( durationChanged || defaultChanged )
+			{
+				writer.execute( "ALTER RETENTION POLICY "+policy+(makeDefault ? " DEFAULT" : "") );
+				logger.info( "Updated retention policy %s.%s (%s, was %s)",
+				             database, tier.name, tier.duration, current[0] );
+			}
+		}
+	}
+
+	private void applyContinuousQueries( InfluxWriter writer, String database, List<Tier> tiers )
+	{
+		// what we want: name -> statement
+		Map<String,String> wanted = new LinkedHashMap<>();
+		for( int i = 1; i < tiers.size(); i++ )
+		{
+			Tier source = tiers.get( i-1 );
+			Tier target = tiers.get( i );
+			for( Map.Entry<String,String> rollup : rollups.entrySet() )
+			{
+				String measurement = rollup.getKey();
+				String select = "SELECT "+rollup.getValue()+
+				                " INTO "+quote(database)+"."+quote(target.name)+"."+quote(measurement)+
+				                " FROM "+quote(database)+"."+quote(source.name)+"."+quote(measurement)+
+				                " GROUP BY time("+target.name+"), *";
+				String name = CQ_PREFIX+target.name+"_"+measurement+"_"+Integer.toHexString( select.hashCode() );
+				wanted.put( name, "CREATE CONTINUOUS QUERY "+quote(name)+" ON "+quote(database)+
+				                  " RESAMPLE EVERY "+target.resampleEvery+" FOR "+target.resampleFor+
+				                  " BEGIN "+select+" END" );
+			}
+		}
+
+		// what we have; SHOW returns a series per database
+		List<String> existing = new ArrayList<>();
+		for( List<Object> row : show(writer,"SHOW CONTINUOUS QUERIES",database) )
+			existing.add( (String)row.get(0) );
+
+		for( String name : existing )
+		{
+			if( name.startsWith(CQ_PREFIX) && !wanted.containsKey(name) )
+			{
+				writer.execute( "DROP CONTINUOUS QUERY "+quote(name)+" ON "+quote(database) );
+				logger.info( "Dropped continuous query %s.%s (no longer wanted)", database, name );
+			}
+		}
+
+		int created = 0;
+		for( Map.Entry<String,String> query : wanted.entrySet() )
+		{
+			if( existing.contains(query.getKey()) )
+				continue;
+
+			writer.execute( query.getValue() );
+			logger.debug( "Created continuous query: "+query.getValue() );
+			created++;
+		}
+
+		logger.info( "Retention tiers ready on %s: %d continuous queries (%d new)", database, wanted.size(), created );
+	}
+
+	/**
+	 * Run a SHOW statement and return the rows of the series for the given database (SHOW
+	 * RETENTION POLICIES has a single unnamed series, SHOW CONTINUOUS QUERIES has one per
+	 * database).
+	 */
+	private List<List<Object>> show( InfluxWriter writer, String statement, String database )
+	{
+		QueryResult result = writer.query( statement );
+		if( result.getResults() == null )
+			return Collections.emptyList();
+
+		for( QueryResult.Result statementResult : result.getResults() )
+		{
+			if( statementResult.getSeries() == null )
+				continue;
+
+			for( QueryResult.Series series : statementResult.getSeries() )
+			{
+				if( series.getValues() == null )
+					continue;
+
+				if( series.getName() == null || series.getName().equals(database) )
+					return series.getValues();
+			}
+		}
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return The tiers, finest first, with their current configuration
+	 * @throws ConfigurationException If any of the tier durations can't be understood
+	 */
+	public List<Tier> getTiers() throws ConfigurationException
+	{
+		List<Tier> tiers = new ArrayList<>();
+		tiers.add( new Tier(TIER_RAW, influxConfiguration.getRawRetention(), null, null) );
+		tiers.add( new Tier(TIER_SECOND, influxConfiguration.getSecondRetention(), "10s", "1m") );
+		tiers.add( new Tier(TIER_MINUTE, influxConfiguration.getMinuteRetention(), "1m", "5m") );
+		tiers.add( new Tier(TIER_HOUR, influxConfiguration.getHourRetention(), "1h", "2h") );
+
+		// catch typos here rather than as an InfluxQL error
+		for( Tier tier : tiers )
+		{
+			try
+			{
+				parseDuration( tier.duration );
+			}
+			catch( IllegalArgumentException iae )
+			{
+				throw new ConfigurationException( "Invalid retention for tier "+tier.name+": "+tier.duration );
+			}
+		}
+
+		return tiers;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Double-quote an InfluxQL identifier, escaping any quotes inside it */
+	static String quote( String identifier )
+	{
+		return "\"" + identifier.replace( "\"", "\\\"" ) + "\"";
+	}
+
+	/**
+	 * Parse an InfluxQL duration, either the way it is written in a statement (7d, 1h30m) or
+	 * the way InfluxDB reports it back (168h0m0s). INF (and InfluxDB's 0s) mean forever.
+	 *
+	 * @return The duration in seconds, 0 for forever
+	 * @throws IllegalArgumentException If it isn't a duration
+	 */
+	static long parseDuration( String duration )
+	{
+		if( duration.equalsIgnoreCase("INF") )
+			return 0;
+
+		long seconds = 0;
+		int index = 0;
+		while( index < duration.length() )
+		{
+			int start = index;
+			while( index < duration.length() && Character.isDigit(duration.charAt(index)) )
+				index++;
+
+			int unitStart = index;
+			while( index < duration.length() && Character.isLetter(duration.charAt(index)) )
+				index++;
+
+			if( start == unitStart || unitStart == index )
+				throw new IllegalArgumentException( "Not a duration: "+duration );
+
+			long value = Long.parseLong( duration.substring(start,unitStart) );
+			switch( duration.substring(unitStart,index) )
+			{
+				case "w":  seconds += value * 604800; break;
+				case "d":  seconds += value * 86400; break;
+				case "h":  seconds += value * 3600; break;
+				case "m":  seconds += value * 60; break;
+				case "s":  seconds += value; break;
+				case "ms": seconds += value / 1000; break;
+				case "u":
+				case "ns": break; // below our resolution
+				default: throw new IllegalArgumentException( "Not a duration: "+duration );
+			}
+		}
+
+		return seconds;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Tier   ////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * A retention policy, and for the rollup tiers, how often its continuous queries run and
+	 * how far back they look each time.
+	 */
+	public static class Tier
+	{
+		private final String name;          // also the GROUP BY interval for rollups
+		private final String duration;
+		private final String resampleEvery;
+		private final String resampleFor;
+
+		private Tier( String name, String duration, String resampleEvery, String resampleFor )
+		{
+			this.name = name;
+			this.duration = duration;
+			this.resampleEvery = resampleEvery;
+			this.resampleFor = resampleFor;
+		}
+
+		/** @return Name of the retention policy */
+		public String getName()
+		{
+			return this.name;
+		}
+
+		/** @return How long the tier keeps points, as configured (7d, INF...) */
+		public String getDuration()
+		{
+			return this.duration;
+		}
+
+		/** @return How long the tier keeps points in millis, 0 for forever */
+		public long getRetentionMillis()
+		{
+			return parseDuration( duration ) * 1000;
+		}
+
+		/** @return Width of the tier's rollup buckets in millis, 0 for the raw tier */
+		public long getIntervalMillis()
+		{
+			return resampleEvery == null ? 0 : parseDuration( name ) * 1000;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+}
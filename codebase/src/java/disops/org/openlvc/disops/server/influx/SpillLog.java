@@ -0,0 +1,543 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.Utils;
+
+import okio.Buffer;
+
+/**
+ * A segmented, memory-mapped log that holds batches of line protocol that couldn't be sent
+ * to influxd when they were ready (it was busy compacting, restarting, or just not keeping
+ * up). Batches are appended at the tail and read back from the head in the order they went
+ * in, so nothing is reordered while the backlog is replayed.
+ * <p/>
+ * <b>Layout:</b> The log is a series of fixed-size segment files named
+ * <code>spill-[sequence].log</code>. Each starts with a 16 byte header holding the offset
+ * of the first unreplayed record, followed by records of <code>[int length][bytes]</code>.
+ * Files are zero-filled when created, so a zero length marks the end of the written data.
+ * The payload is written before its length so a half-written record is never seen.
+ * <p/>
+ * Writes only touch the mapped memory, so spilling costs about as much as a memory copy;
+ * the OS writes the pages out in its own time. Segments are not forced to disk until the
+ * log is closed, so the log survives influxd or DisOps restarting but not the host losing
+ * power. Any segments left behind are picked up and replayed when the log is next opened.
+ * Segments are deleted once everything in them has been replayed.
+ * <p/>
+ * Readers use {@link #peek(Buffer, int)} to copy out the next records and then
+ * {@link #commit()} once they are safely written. If the write fails they simply peek
+ * again and get the same records.
+ * <p/>
+ * This class is thread safe.
+ */
+public class SpillLog
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".log";
+
+	private static final int MAGIC = 0x44535031;        // "DSP1"
+	private static final int HEADER_LENGTH = 16;        // [long readOffset][int magic][int unused]
+	private static final int OFFSET_READ = 0;
+	private static final int OFFSET_MAGIC = 8;
+	private static final int RECORD_HEADER = 4;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final File directory;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final Logger logger;
+
+	private final ArrayDeque<Segment> segments;         // oldest first, last is the write segment
+	private long nextSequence;
+	private boolean open;
+	private byte[] copyBuffer;
+
+	// What the last peek() handed out, waiting on commit()
+	private Segment peekSegment;
+	private int peekEnd;
+	private int peekRecords;
+
+	// Statistics
+	private volatile long depth;                        // bytes waiting to be replayed
+	private volatile int segmentCount;
+	private volatile long batchesSpilled;
+	private volatile long batchesReplayed;
+	private volatile long batchesDropped;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param directory   Where the segment files live
+	 * @param segmentSize Size of each segment file in bytes
+	 * @param maxBytes    Most bytes of segment files to keep on disk at once
+	 * @param logger      Logger to report on
+	 */
+	public SpillLog( File directory, int segmentSize, long maxBytes, Logger logger )
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+		this.logger = logger;
+
+		this.segments = new ArrayDeque<>();
+		this.nextSequence = 0;
+		this.open = false;
+		this.copyBuffer = new byte[64*1024];
+
+		this.peekSegment = null;
+		this.peekEnd = 0;
+		this.peekRecords = 0;
+
+		this.depth = 0;
+		this.segmentCount = 0;
+		this.batchesSpilled = 0;
+		this.batchesReplayed = 0;
+		this.batchesDropped = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Open the log, picking up any segments left over from a previous run.
+	 *
+	 * @throws DisOpsException If the directory can't be created or a segment can't be mapped
+	 */
+	public synchronized void open() throws DisOpsException
+	{
+		if( !directory.exists() && !directory.mkdirs() )
+			throw new DisOpsException( "Could not create spill directory: "+directory.getAbsolutePath() );
+
+		File[] files = directory.listFiles( (dir,name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX) );
+		if( files == null )
+			files = new File[0];
+
+		// sequence numbers are zero padded, so name order is replay order
+		Arrays.sort( files );
+		for( File file : files )
+		{
+			long sequence = parseSequence( file );
+			if( sequence < 0 )
+				continue;
+
+			nextSequence = Math.max( nextSequence, sequence+1 );
+			Segment segment = Segment.recover( file, sequence, logger );
+			if( segment == null )
+				continue;
+
+			if( segment.isExhausted() )
+			{
+				segment.delete();
+				continue;
+			}
+
+			// left over segments are never appended to again
+			segment.sealed = true;
+			segments.addLast( segment );
+			depth += segment.writePosition - segment.readPosition;
+		}
+
+		this.segmentCount = segments.size();
+		this.open = true;
+		if( segmentCount > 0 )
+		{
+			logger.info( "Spill log recovered %d segment(s), %s waiting to be replayed: %s",
+			             segmentCount, Utils.bytesToString(depth), directory.getAbsolutePath() );
+		}
+	}
+
+	/**
+	 * Flush everything to disk and unmap the segments. Anything not yet replayed stays on
+	 * disk for next time. Batches appended after this are dropped.
+	 */
+	public synchronized void close()
+	{
+		this.open = false;
+		for( Segment segment : segments )
+		{
+			if( segment.isExhausted() )
+				segment.delete();
+			else
+				segment.close();
+		}
+
+		segments.clear();
+		this.peekSegment = null;
+		this.segmentCount = 0;
+		notifyAll();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Append a batch to the tail of the log.
+	 *
+	 * @return True if the batch was stored, false if the log is full or closed (or the batch
+	 *         is bigger than a segment) and it was dropped
+	 */
+	public synchronized boolean append( byte[] data, int offset, int length )
+	{
+		if( !open )
+		{
+			// a late write failure after shutdown; a segment created now would never be
+			// forced or unmapped
+			++batchesDropped;
+			logger.warn( "Spill log is closed, dropping batch of %s", Utils.bytesToString(length) );
+			return false;
+		}
+
+		int needed = RECORD_HEADER + length;
+		if( needed > segmentSize - HEADER_LENGTH )
+		{
+			++batchesDropped;
+			logger.warn( "Batch of %s is larger than a spill segment, dropping it",
+			             Utils.bytesToString(length) );
+			return false;
+		}
+
+		Segment tail = segments.peekLast();
+		if( tail == null || tail.sealed || tail.remaining() < needed )
+		{
+			if( (long)(segments.size()+1) * segmentSize > maxBytes )
+			{
+				if( batchesDropped++ == 0 )
+					logger.error( "Spill log is full (%s), dropping batches", Utils.bytesToString(maxBytes) );
+
+				return false;
+			}
+
+			if( tail != null )
+				tail.sealed = true;
+
+			tail = createSegment();
+		}
+
+		tail.append( data, offset, length );
+		depth += needed;
+		++batchesSpilled;
+		notifyAll();
+		return true;
+	}
+
+	private Segment createSegment()
+	{
+		long sequence = nextSequence++;
+		File file = new File( directory, String.format("%s%020d%s",PREFIX,sequence,SUFFIX) );
+		try
+		{
+			Segment segment = Segment.create( file, sequence, segmentSize );
+			segments.addLast( segment );
+			this.segmentCount = segments.size();
+			return segment;
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not create spill segment "+file+": "+ioex.getMessage(), ioex );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Copy the oldest unreplayed batches into the given buffer, up to the given number of
+	 * bytes (at least one batch is always returned if there is one). Nothing is removed from
+	 * the log until {@link #commit()} is called. Calling this again without committing hands
+	 * back the same batches.
+	 *
+	 * @return The number of batches copied, 0 if the log is empty
+	 */
+	public synchronized int peek( Buffer destination, int maxBytes )
+	{
+		this.peekSegment = null;
+		this.peekRecords = 0;
+
+		// skip past (and clean up) any segments that have been fully replayed
+		Segment head = segments.peekFirst();
+		while( head != null && head.isExhausted() && head != segments.peekLast() )
+		{
+			segments.removeFirst().delete();
+			this.segmentCount = segments.size();
+			head = segments.peekFirst();
+		}
+
+		if( head == null || head.isExhausted() )
+			return 0;
+
+		int position = head.readPosition;
+		int copied = 0;
+		while( position < head.writePosition )
+		{
+			int length = head.map.getInt( position );
+			if( copied > 0 && copied+length > maxBytes )
+				break;
+
+			copyOut( head, position+RECORD_HEADER, length, destination );
+			position += RECORD_HEADER + length;
+			copied += length;
+			++peekRecords;
+		}
+
+		this.peekSegment = head;
+		this.peekEnd = position;
+		return peekRecords;
+	}
+
+	/**
+	 * Mark the batches handed out by the last {@link #peek(Buffer, int)} as replayed.
+	 */
+	public synchronized void commit()
+	{
+		if( peekSegment == null )
+			return;
+
+		depth -= peekEnd - peekSegment.readPosition;
+		peekSegment.commit( peekEnd );
+		batchesReplayed += peekRecords;
+
+		// the write segment stays around to be reused, the rest go as soon as they're done
+		if( peekSegment.isExhausted() && peekSegment != segments.peekLast() )
+		{
+			segments.remove( peekSegment );
+			peekSegment.delete();
+			this.segmentCount = segments.size();
+		}
+
+		this.peekSegment = null;
+	}
+
+	/**
+	 * Wait up to the given time for something to be appended, returning straight away if
+	 * the log already has something in it.
+	 */
+	public synchronized void awaitData( long millis ) throws InterruptedException
+	{
+		if( depth == 0 )
+			wait( millis );
+	}
+
+	private void copyOut( Segment segment, int position, int length, Buffer destination )
+	{
+		// duplicate so we can use bulk gets without disturbing the shared map's position
+		ByteBuffer source = segment.map.duplicate();
+		source.position( position );
+		while( length > 0 )
+		{
+			int chunk = Math.min( length, copyBuffer.length );
+			source.get( copyBuffer, 0, chunk );
+			destination.write( copyBuffer, 0, chunk );
+			length -= chunk;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public File getDirectory()
+	{
+		return this.directory;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.depth == 0;
+	}
+
+	/** @return Bytes spilled but not yet replayed */
+	public long getDepth()
+	{
+		return this.depth;
+	}
+
+	/** @return The number of segment files currently in use */
+	public int getSegmentCount()
+	{
+		return this.segmentCount;
+	}
+
+	public long getBatchesSpilled()
+	{
+		return this.batchesSpilled;
+	}
+
+	public long getBatchesReplayed()
+	{
+		return this.batchesReplayed;
+	}
+
+	/** @return Batches that couldn't be spilled because the log was full or closed */
+	public long getBatchesDropped()
+	{
+		return this.batchesDropped;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long parseSequence( File file )
+	{
+		String name = file.getName();
+		try
+		{
+			return Long.parseLong( name.substring(PREFIX.length(), name.length()-SUFFIX.length()) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			return -1;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Segment   /////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private static class Segment
+	{
+		private final File file;
+		private final long sequence;
+		private final MappedByteBuffer map;
+		private int readPosition;
+		private int writePosition;
+		private boolean sealed;
+
+		private Segment( File file, long sequence, MappedByteBuffer map )
+		{
+			this.file = file;
+			this.sequence = sequence;
+			this.map = map;
+			this.readPosition = HEADER_LENGTH;
+			this.writePosition = HEADER_LENGTH;
+			this.sealed = false;
+		}
+
+		private int remaining()
+		{
+			return map.capacity() - writePosition;
+		}
+
+		private boolean isExhausted()
+		{
+			return readPosition >= writePosition;
+		}
+
+		private void append( byte[] data, int offset, int length )
+		{
+			ByteBuffer target = map.duplicate();
+			target.position( writePosition+RECORD_HEADER );
+			target.put( data, offset, length );
+
+			// length last, so a partial record always reads as the end of the log
+			map.putInt( writePosition, length );
+			writePosition += RECORD_HEADER + length;
+		}
+
+		private void commit( int position )
+		{
+			this.readPosition = position;
+			map.putLong( OFFSET_READ, position );
+		}
+
+		private void close()
+		{
+			map.force();
+			Utils.unmap( map );
+		}
+
+		private void delete()
+		{
+			Utils.unmap( map );
+			file.delete();
+		}
+
+		public String toString()
+		{
+			return file.getName()+" [seq="+sequence+", read="+readPosition+", write="+writePosition+"]";
+		}
+
+		private static Segment create( File file, long sequence, int size ) throws IOException
+		{
+			try( RandomAccessFile raf = new RandomAccessFile(file,"rw") )
+			{
+				raf.setLength( size );
+				MappedByteBuffer map = raf.getChannel().map( MapMode.READ_WRITE, 0, size );
+				map.putLong( OFFSET_READ, HEADER_LENGTH );
+				map.putInt( OFFSET_MAGIC, MAGIC );
+				return new Segment( file, sequence, map );
+			}
+		}
+
+		/** Map an existing segment and find where its data ends. Null if it isn't valid. */
+		private static Segment recover( File file, long sequence, Logger logger )
+		{
+			try( RandomAccessFile raf = new RandomAccessFile(file,"rw") )
+			{
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer map = channel.map( MapMode.READ_WRITE, 0, channel.size() );
+				if( map.capacity() < HEADER_LENGTH || map.getInt(OFFSET_MAGIC) != MAGIC )
+				{
+					logger.warn( "Ignoring invalid spill segment: "+file );
+					Utils.unmap( map );
+					return null;
+				}
+
+				Segment segment = new Segment( file, sequence, map );
+				int position = HEADER_LENGTH;
+				while( position+RECORD_HEADER <= map.capacity() )
+				{
+					int length = map.getInt( position );
+					if( length <= 0 || position+RECORD_HEADER+length > map.capacity() )
+						break;
+
+					position += RECORD_HEADER + length;
+				}
+
+				segment.writePosition = position;
+				long read = map.getLong( OFFSET_READ );
+				segment.readPosition = (int)Math.max( HEADER_LENGTH, Math.min(read,position) );
+				return segment;
+			}
+			catch( IOException ioex )
+			{
+				logger.warn( "Could not open spill segment "+file+": "+ioex.getMessage() );
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded cache from the raw bytes of a PDU field (a marking, an entity type, a site and
+ * application) to the line protocol tags they turn into, already formatted and escaped. The
+ * same few hundred entities send the same fields thousands of times a second, so formatting
+ * each value once and splicing the bytes into every point after that saves decoding and
+ * escaping them, and creating a String for each, on every PDU.
+ * <p/>
+ * Keys are up to {@value #MAX_KEY_LENGTH} bytes, held as two longs, so looking one up is a
+ * hash and a compare with nothing allocated. On a miss the dictionary's {@link Formatter} is
+ * handed the raw bytes and appends the tags for them (using {@link #appendTag}, which does
+ * the escaping). Values are ASCII: anything outside printable ASCII in a tag value is
+ * replaced, so a value's bytes can be spliced straight into a line.
+ * <p/>
+ * The dictionary holds at most a fixed number of entries. Once it is full, each new entry
+ * replaces an old one chosen by the CLOCK algorithm: entries are marked when they're used,
+ * and a hand sweeps round clearing marks and takes the first entry it finds that hasn't
+ * been used since it last came past. Entities that are still sending keep their entries, and
+ * those that have gone quiet are the ones that make room.
+ * <p/>
+ * This class is <b>not</b> thread safe. Each pipeline shard has its own. The counters may be
+ * read from any thread.
+ */
+public class TagDictionary
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Longest key that can be looked up, in bytes */
+	public static final int MAX_KEY_LENGTH = 16;
+
+	private static final int EMPTY = 0;   // slots hold entry+1
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final Formatter formatter;
+	private final int capacity;
+
+	// Open addressing with linear probing, removal by backward shift (no tombstones)
+	private final int[] slots;
+	private final int mask;
+
+	// Entries, indexed by entry
+	private final long[] keyHigh;      // key bytes 0-7, big endian, zero padded
+	private final long[] keyLow;       // key bytes 8-15
+	private final int[] keyLengths;
+	private final int[] hashes;
+	private final byte[][] values;
+	private final boolean[] referenced;
+	private int size;
+	private int hand;
+
+	// Miss path
+	private final byte[] raw;
+	private final StringBuilder tags;
+
+	private volatile long hits;        // written only by the owning thread
+	private volatile long misses;
+	private volatile long evictions;
+	private volatile long valueBytes;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param capacity  Most entries to hold before old ones are evicted
+	 * @param formatter Turns the raw bytes of a key into tags the first time they're seen
+	 */
+	public TagDictionary( int capacity, Formatter formatter )
+	{
+		if( capacity < 1 )
+			throw new IllegalArgumentException( "Capacity must be at least 1: "+capacity );
+
+		this.formatter = formatter;
+		this.capacity = capacity;
+
+		int tableSize = Integer.highestOneBit( Math.max(2,capacity*2-1) ) << 1; // under half full
+		this.slots = new int[tableSize];
+		this.mask = tableSize-1;
+
+		this.keyHigh = new long[capacity];
+		this.keyLow = new long[capacity];
+		this.keyLengths = new int[capacity];
+		this.hashes = new int[capacity];
+		this.values = new byte[capacity][];
+		this.referenced = new boolean[capacity];
+		this.size = 0;
+		this.hand = 0;
+
+		this.raw = new byte[MAX_KEY_LENGTH];
+		this.tags = new StringBuilder( 64 );
+
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+		this.valueBytes = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lookup Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Look up an eight byte key (a packed entity type, say). The formatter sees the bytes of
+	 * the long, most significant first.
+	 *
+	 * @return The tags for the key, which must not be modified. Empty if there are none.
+	 */
+	public byte[] get( long key )
+	{
+		return get( key, 0L, 8 );
+	}
+
+	/**
+	 * Look up the bytes of a field in a buffer, without copying them out.
+	 *
+	 * @param buffer The buffer holding the field
+	 * @param offset Absolute offset of the field in the buffer
+	 * @param length Length of the field, no more than {@link #MAX_KEY_LENGTH}
+	 * @return The tags for the key, which must not be modified. Empty if there are none.
+	 */
+	public byte[] get( ByteBuffer buffer, int offset, int length )
+	{
+		if( length < 0 || length > MAX_KEY_LENGTH )
+			throw new IllegalArgumentException( "Key must be 0-"+MAX_KEY_LENGTH+" bytes: "+length );
+
+		long high;
+		long low;
+		if( offset+MAX_KEY_LENGTH <= buffer.limit() )
+		{
+			// room to read whole longs and mask off what isn't part of the key
+			high = buffer.getLong( offset ) & leading( Math.min(length,8) );
+			low = buffer.getLong( offset+8 ) & leading( Math.max(length-8,0) );
+		}
+		else
+		{
+			high = 0L;
+			low = 0L;
+			for( int i = 0; i < length; i++ )
+			{
+				long b = buffer.get( offset+i ) & 0xffL;
+				if( i < 8 )
+					high |= b << (56-i*8);
+				else
+					low |= b << (120-i*8);
+			}
+		}
+
+		return get( high, low, length );
+	}
+
+	private byte[] get( long high, long low, int length )
+	{
+		int hash = hash( high, low, length );
+		int slot = hash & mask;
+		int entry;
+		while( (entry = slots[slot]) != EMPTY )
+		{
+			--entry;
+			if( keyHigh[entry] == high && keyLow[entry] == low && keyLengths[entry] == length )
+			{
+				referenced[entry] = true;
+				++hits;
+				return values[entry];
+			}
+
+			slot = (slot+1) & mask;
+		}
+
+		++misses;
+		return insert( slot, hash, high, low, length );
+	}
+
+	/** Format the key and add it, at the given empty slot if nothing has to be evicted */
+	private byte[] insert( int slot, int hash, long high, long low, int length )
+	{
+		for( int i = 0; i < length; i++ )
+			raw[i] = (byte)((i < 8 ? high >>> (56-i*8) : low >>> (120-i*8)) & 0xff);
+
+		tags.setLength( 0 );
+		formatter.format( raw, length, tags );
+		byte[] value = new byte[tags.length()];
+		for( int i = 0; i < value.length; i++ )
+			value[i] = (byte)tags.charAt( i );
+
+		int entry;
+		if( size < capacity )
+		{
+			entry = size++;
+		}
+		else
+		{
+			entry = evict();
+			// removing the victim may have shifted entries into the probe path, so look again
+			slot = hash & mask;
+			while( slots[slot] != EMPTY )
+				slot = (slot+1) & mask;
+		}
+
+		keyHigh[entry] = high;
+		keyLow[entry] = low;
+		keyLengths[entry] = length;
+		hashes[entry] = hash;
+		values[entry] = value;
+		referenced[entry] = false;
+		slots[slot] = entry+1;
+		this.valueBytes += value.length;
+		return value;
+	}
+
+	/** Sweep the hand round to an entry that hasn't been used lately, and remove it */
+	private int evict()
+	{
+		while( referenced[hand] )
+		{
+			referenced[hand] = false;
+			hand = (hand+1) % capacity;
+		}
+
+		int entry = hand;
+		hand = (hand+1) % capacity;
+
+		int slot = hashes[entry] & mask;
+		while( slots[slot] != entry+1 )
+			slot = (slot+1) & mask;
+
+		// Backward shift: pull each later entry in the run back into the hole if the hole is
+		// between its home slot and where it is now, so every probe path stays unbroken
+		int hole = slot;
+		int next = (hole+1) & mask;
+		while( slots[next] != EMPTY )
+		{
+			int home = hashes[slots[next]-1] & mask;
+			if( ((next-home) & mask) >= ((next-hole) & mask) )
+			{
+				slots[hole] = slots[next];
+				hole = next;
+			}
+
+			next = (next+1) & mask;
+		}
+		slots[hole] = EMPTY;
+
+		this.valueBytes -= values[entry].length;
+		values[entry] = null;
+		++evictions;
+		return entry;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/** @return Number of entries held. Only accurate from the owning thread. */
+	public int size()
+	{
+		return this.size;
+	}
+
+	public long getHits()
+	{
+		return this.hits;
+	}
+
+	public long getMisses()
+	{
+		return this.misses;
+	}
+
+	public long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/** @return Percentage of lookups that were already in the dictionary */
+	public long getHitRate()
+	{
+		long found = this.hits;
+		long total = found + this.misses;
+		return total == 0 ? 0 : found * 100 / total;
+	}
+
+	/** @return Approximate heap bytes held by the table, the keys and the values */
+	public long getMemoryUsage()
+	{
+		// 33 bytes of entry arrays, and a 16 byte array header per value
+		return (slots.length * 4L) + (capacity * (33L+16L)) + valueBytes;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return A mask of the first n (0-8) bytes of a long, most significant first */
+	private static long leading( int bytes )
+	{
+		return bytes == 0 ? 0L : -1L << (64-bytes*8);
+	}
+
+	private static int hash( long high, long low, int length )
+	{
+		long h = high * 0x9e3779b97f4a7c15L ^ Long.rotateLeft( low*0xc2b2ae3d27d4eb4fL, 31 ) ^ length;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+
+	/**
+	 * Append ",key=value" to the tags, escaping the value for line protocol and replacing
+	 * anything that isn't printable ASCII with '_'. Nothing is appended for an empty value,
+	 * which line protocol doesn't allow.
+	 */
+	public static void appendTag( StringBuilder tags, String key, byte[] value, int offset, int length )
+	{
+		if( length == 0 )
+			return;
+
+		tags.append( ',' ).append( key ).append( '=' );
+		for( int i = offset; i < offset+length; i++ )
+			appendEscaped( tags, (char)(value[i] & 0xff) );
+	}
+
+	/** @see #appendTag(StringBuilder, String, byte[], int, int) */
+	public static void appendTag( StringBuilder tags, String key, CharSequence value )
+	{
+		if( value.length() == 0 )
+			return;
+
+		tags.append( ',' ).append( key ).append( '=' );
+		for( int i = 0; i < value.length(); i++ )
+			appendEscaped( tags, value.charAt(i) );
+	}
+
+	/** Numbers need no escaping, so they don't need a String either */
+	public static void appendTag( StringBuilder tags, String key, long value )
+	{
+		tags.append( ',' ).append( key ).append( '=' ).append( value );
+	}
+
+	private static void appendEscaped( StringBuilder tags, char c )
+	{
+		if( c == ' ' || c == ',' || c == '=' || c == '\\' )
+			tags.append( '\\' );
+		else if( c < ' ' || c > '~' )
+			c = '_';
+
+		tags.append( c );
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Formatter   ///////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Turns the raw bytes of a key into tags. Only called on a miss, so it is free to
+	 * allocate, but it is called on the owning thread so it should still be quick.
+	 */
+	@FunctionalInterface
+	public interface Formatter
+	{
+		/**
+		 * @param raw    The key. Only the first length bytes are meaningful.
+		 * @param length Number of bytes in the key
+		 * @param tags   Append zero or more tags to this, as ",key=value" with the value
+		 *               escaped (see {@link TagDictionary#appendTag})
+		 */
+		public void format( byte[] raw, int length, StringBuilder tags );
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.Arrays;
+
+/**
+ * A query for some fields of a measurement over a time range, at a resolution, without
+ * saying which retention tier it should read from. {@link QueryRouter} works that out and
+ * turns it into InfluxQL.
+ * <p/>
+ * The resolution is the width of the time buckets the caller wants back, which for a chart
+ * is usually the range divided by its width in pixels ({@link #setMaxPoints(int)} does that
+ * sum). A resolution of 0 asks for every point as it was written.
+ */
+public class TieredQuery
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private String database;     // null for the configured database
+	private String measurement;
+	private String[] fields;
+	private String function;
+	private long start;          // millis, inclusive
+	private long end;            // millis, exclusive
+	private long resolution;     // millis, 0 for every point
+	private int maxPoints;       // 0 to use the resolution as given
+	private String condition;    // extra WHERE clause, may be null
+	private String[] groupBy;    // tags, may be empty
+	private String tier;         // forced tier, null to let the router choose
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param measurement The measurement to read
+	 * @param fields      The fields to read from it
+	 */
+	public TieredQuery( String measurement, String... fields )
+	{
+		this.database = null;
+		this.measurement = measurement;
+		this.fields = fields;
+		this.function = "last";
+		this.start = 0;
+		this.end = System.currentTimeMillis();
+		this.resolution = 0;
+		this.maxPoints = 0;
+		this.condition = null;
+		this.groupBy = new String[]{ "*" };
+		this.tier = null;
+	}
+
+	/**
+	 * Copy another query, so it can be adjusted without changing the original.
+	 */
+	public TieredQuery( TieredQuery other )
+	{
+		this.database = other.database;
+		this.measurement = other.measurement;
+		this.fields = other.fields;
+		this.function = other.function;
+		this.start = other.start;
+		this.end = other.end;
+		this.resolution = other.resolution;
+		this.maxPoints = other.maxPoints;
+		this.condition = other.condition;
+		this.groupBy = other.groupBy;
+		this.tier = other.tier;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The bucket width in millis to query at. If a maximum number of points has been
+	 *         set, this is the larger of the resolution and what that number of points allows.
+	 */
+	public long getEffectiveResolution()
+	{
+		if( maxPoints <= 0 )
+			return resolution;
+
+		long range = Math.max( 0, end-start );
+		return Math.max( resolution, (range+maxPoints-1) / maxPoints );
+	}
+
+	@Override
+	public String toString()
+	{
+		return measurement+Arrays.toString(fields)+" ["+start+","+end+") @"+getEffectiveResolution()+"ms";
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public String getDatabase()
+	{
+		return this.database;
+	}
+
+	/** Query the given database rather than the configured one */
+	public void setDatabase( String database )
+	{
+		this.database = database;
+	}
+
+	public String getMeasurement()
+	{
+		return this.measurement;
+	}
+
+	public String[] getFields()
+	{
+		return this.fields;
+	}
+
+	public String getFunction()
+	{
+		return this.function;
+	}
+
+	/**
+	 * Set the InfluxQL aggregate applied to each field when points are bucketed. Defaults to
+	 * last, which is what the rollups hold.
+	 */
+	public void setFunction( String function )
+	{
+		this.function = function;
+	}
+
+	public long getStart()
+	{
+		return this.start;
+	}
+
+	public long getEnd()
+	{
+		return this.end;
+	}
+
+	/**
+	 * @param start Start of the range in epoch millis (inclusive)
+	 * @param end   End of the range in epoch millis (exclusive)
+	 */
+	public void setTimeRange( long start, long end )
+	{
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getResolution()
+	{
+		return this.resolution;
+	}
+
+	/** @param millis Width of the time buckets wanted back, 0 for every point */
+	public void setResolution( long millis )
+	{
+		this.resolution = millis;
+	}
+
+	public int getMaxPoints()
+	{
+		return this.maxPoints;
+	}
+
+	/**
+	 * Ask for no more than this many buckets per series over the time range. Set the range
+	 * first, or the resolution will be worked out from the default range.
+	 */
+	public void setMaxPoints( int points )
+	{
+		this.maxPoints = points;
+	}
+
+	public String getCondition()
+	{
+		return this.condition;
+	}
+
+	/** @param condition InfluxQL to AND onto the time range in the WHERE clause (tag filters) */
+	public void setCondition( String condition )
+	{
+		this.condition = condition;
+	}
+
+	public String[] getGroupBy()
+	{
+		return this.groupBy;
+	}
+
+	/** @param tags Tags to split the results into series by. Defaults to every tag (*). */
+	public void setGroupBy( String... tags )
+	{
+		this.groupBy = tags;
+	}
+
+	public String getTier()
+	{
+		return this.tier;
+	}
+
+	/** Read from the named tier no matter what, rather than letting the router choose */
+	public void setTier( String tier )
+	{
+		this.tier = tier;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
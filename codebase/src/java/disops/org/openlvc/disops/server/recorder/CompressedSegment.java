@@ -0,0 +1,435 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.openlvc.disops.Utils;
+
+/**
+ * A sealed {@link RecordingSegment} compressed a block at a time, so that reading from the
+ * middle of it only means inflating the block the reader needs.
+ * <p/>
+ * <b>Layout:</b> A 64 byte header, the compressed blocks, then the block index.
+ * <ul>
+ *   <li><b>Header:</b> <code>[int magic][int version][long sequence][long firstTime]
+ *       [long lastTime][int recordCount][int blockCount][long indexOffset][int blockSize]
+ *       [int level][long uncompressedBytes]</code>. Everything up to the last time is
+ *       where it is in an uncompressed segment.</li>
+ *   <li><b>Block:</b> a run of whole records, byte for byte as they were in the segment,
+ *       deflated (zlib format). A block holds as many records as fit in the block size,
+ *       and always at least one.</li>
+ *   <li><b>Index entry:</b> <code>[long firstTime][long offset][int compressedLength]
+ *       [int uncompressedLength][int firstRecord][int unused]</code> for each block, in
+ *       order, so finding a time is a binary search of the index.</li>
+ * </ul>
+ * Deflate is used as it ships with the JDK. Entity State traffic is very repetitive
+ * (headers, entity types, markings and appearance rarely change between updates), so even
+ * the fastest level does well on it.
+ * <p/>
+ * A compressed segment is read-only, and like the segment it came from, is only ever used
+ * by one thread at a time.
+ */
+public class CompressedSegment implements SegmentSource
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String SUFFIX = ".rcz";
+
+	private static final int MAGIC = 0x44525a31;        // "DRZ1"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 64;
+	private static final int INDEX_ENTRY = 32;
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_SEQUENCE = 8;
+	private static final int OFFSET_FIRST = 16;
+	private static final int OFFSET_LAST = 24;
+	private static final int OFFSET_RECORDS = 32;
+	private static final int OFFSET_BLOCKS = 36;
+	private static final int OFFSET_INDEX = 40;
+	private static final int OFFSET_BLOCK_SIZE = 48;
+	private static final int OFFSET_LEVEL = 52;
+	private static final int OFFSET_UNCOMPRESSED = 56;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final File file;
+	private final MappedByteBuffer map;
+	private final int blockCount;
+	private final int indexOffset;
+
+	// Inflating - reused for every block
+	private final Inflater inflater;
+	private byte[] compressed;
+	private byte[] uncompressed;
+	private ByteBuffer records;
+	private int loadedBlock;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private CompressedSegment( File file, MappedByteBuffer map )
+	{
+		this.file = file;
+		this.map = map;
+		this.blockCount = map.getInt( OFFSET_BLOCKS );
+		this.indexOffset = (int)map.getLong( OFFSET_INDEX );
+
+		this.inflater = new Inflater();
+		this.compressed = new byte[0];
+		this.uncompressed = new byte[0];
+		this.records = null;
+		this.loadedBlock = -1;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Override
+	public int findBlock( long time )
+	{
+		// last block starting before the time, as the block before may end at that time too
+		int low = 0, high = blockCount-1, found = 0;
+		while( low <= high )
+		{
+			int middle = (low+high) >>> 1;
+			if( map.getLong(indexPosition(middle)) < time )
+			{
+				found = middle;
+				low = middle+1;
+			}
+			else
+			{
+				high = middle-1;
+			}
+		}
+
+		return found;
+	}
+
+	/** Inflate the given block (unless it is the one already inflated) */
+	@Override
+	public ByteBuffer getBlock( int block ) throws IOException
+	{
+		if( block == loadedBlock )
+		{
+			records.limit( records.capacity() ).position( 0 );
+			return records;
+		}
+
+		int entry = indexPosition( block );
+		long offset = map.getLong( entry+8 );
+		int compressedLength = map.getInt( entry+16 );
+		int uncompressedLength = map.getInt( entry+20 );
+		if( compressed.length < compressedLength )
+			compressed = new byte[compressedLength];
+		if( uncompressed.length < uncompressedLength )
+			uncompressed = new byte[uncompressedLength];
+
+		ByteBuffer source = map.duplicate();
+		source.position( (int)offset );
+		source.get( compressed, 0, compressedLength );
+
+		this.loadedBlock = -1;
+		inflater.reset();
+		inflater.setInput( compressed, 0, compressedLength );
+		try
+		{
+			int inflated = 0;
+			while( inflated < uncompressedLength && !inflater.finished() )
+			{
+				int count = inflater.inflate( uncompressed, inflated, uncompressedLength-inflated );
+				if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) )
+					break;
+
+				inflated += count;
+			}
+
+			if( inflated != uncompressedLength )
+				throw new IOException( "Block "+block+" of "+file+" is truncated" );
+		}
+		catch( DataFormatException dfe )
+		{
+			throw new IOException( "Block "+block+" of "+file+" is corrupt: "+dfe.getMessage(), dfe );
+		}
+
+		this.records = ByteBuffer.wrap( uncompressed, 0, uncompressedLength ).slice();
+		this.loadedBlock = block;
+		return records;
+	}
+
+	@Override
+	public int seek( int block, ByteBuffer records, long time )
+	{
+		int offset = records.position();
+		while( offset < records.limit() && RecordingSegment.getTime(records,offset) < time )
+			offset = RecordingSegment.next( records, offset );
+
+		return offset;
+	}
+
+	@Override
+	public boolean isComplete()
+	{
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+		inflater.end();
+		Utils.unmap( map );
+	}
+
+	private int indexPosition( int block )
+	{
+		return indexOffset + block*INDEX_ENTRY;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public long getSequence()
+	{
+		return map.getLong( OFFSET_SEQUENCE );
+	}
+
+	@Override
+	public long getFirstTime()
+	{
+		return map.getLong( OFFSET_FIRST );
+	}
+
+	public long getLastTime()
+	{
+		return map.getLong( OFFSET_LAST );
+	}
+
+	public int getRecordCount()
+	{
+		return map.getInt( OFFSET_RECORDS );
+	}
+
+	@Override
+	public int getBlockCount()
+	{
+		return this.blockCount;
+	}
+
+	/** @return Bytes of records the segment held before it was compressed */
+	public long getUncompressedSize()
+	{
+		return map.getLong( OFFSET_UNCOMPRESSED );
+	}
+
+	/** @return Size of the compressed file */
+	public long getCompressedSize()
+	{
+		return map.capacity();
+	}
+
+	public String toString()
+	{
+		return file.getName()+" [records="+getRecordCount()+", blocks="+blockCount+", bytes="+
+		       getUncompressedSize()+" -> "+getCompressedSize()+"]";
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Compress a segment into a new file, a block at a time. Checks for interruption between
+	 * blocks, so a compression that is taking too long can be abandoned.
+	 *
+	 * @param source    The segment, which should be sealed
+	 * @param target    File to write. Anything already there is replaced.
+	 * @param blockSize Bytes of records to put in each block
+	 * @param level     Deflate level, 1 (fastest) to 9 (smallest)
+	 * @return The size of the compressed file
+	 * @throws IOException If the file can't be written, or InterruptedIOException if the
+	 *                     thread was interrupted. Either way the target is left incomplete.
+	 */
+	public static long write( RecordingSegment source, File target, int blockSize, int level )
+		throws IOException
+	{
+		ByteBuffer records = source.getBlock( 0 );
+		int end = records.limit();
+
+		byte[] input = new byte[blockSize];
+		byte[] output = new byte[64*1024];
+		ByteBuffer index = ByteBuffer.allocate( INDEX_ENTRY*64 );
+		Deflater deflater = new Deflater( level );
+		try( RandomAccessFile raf = new RandomAccessFile(target,"rw") )
+		{
+			FileChannel channel = raf.getChannel();
+			channel.truncate( 0 );
+			long position = HEADER_LENGTH;
+			int offset = records.position();
+			int blocks = 0, recordCount = 0;
+			while( offset < end )
+			{
+				if( Thread.interrupted() )
+					throw new InterruptedIOException( "Interrupted compressing "+source.getFile() );
+
+				// whole records, as many as fit (and at least one)
+				int blockStart = offset;
+				long firstTime = RecordingSegment.getTime( records, offset );
+				int firstRecord = recordCount;
+				do
+				{
+					offset = RecordingSegment.next( records, offset );
+					++recordCount;
+				}
+				while( offset < end && RecordingSegment.next(records,offset)-blockStart <= blockSize );
+
+				int length = offset - blockStart;
+				if( input.length < length )
+					input = new byte[length];
+
+				ByteBuffer block = records.duplicate();
+				block.limit( offset ).position( blockStart );
+				block.get( input, 0, length );
+
+				deflater.reset();
+				deflater.setInput( input, 0, length );
+				deflater.finish();
+				long blockOffset = position;
+				while( !deflater.finished() )
+				{
+					int count = deflater.deflate( output );
+					position += writeFully( channel, ByteBuffer.wrap(output,0,count), position );
+				}
+
+				if( index.remaining() < INDEX_ENTRY )
+				{
+					ByteBuffer larger = ByteBuffer.wrap( Arrays.copyOf(index.array(),index.capacity()*2) );
+					larger.position( index.position() );
+					index = larger;
+				}
+
+				index.putLong( firstTime );
+				index.putLong( blockOffset );
+				index.putInt( (int)(position-blockOffset) );
+				index.putInt( length );
+				index.putInt( firstRecord );
+				index.putInt( 0 );
+				++blocks;
+			}
+
+			long indexOffset = position;
+			index.flip();
+			position += writeFully( channel, index, position );
+
+			ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+			header.putInt( OFFSET_MAGIC, MAGIC );
+			header.putInt( OFFSET_VERSION, VERSION );
+			header.putLong( OFFSET_SEQUENCE, source.getSequence() );
+			header.putLong( OFFSET_FIRST, source.getFirstTime() );
+			header.putLong( OFFSET_LAST, source.getLastTime() );
+			header.putInt( OFFSET_RECORDS, recordCount );
+			header.putInt( OFFSET_BLOCKS, blocks );
+			header.putLong( OFFSET_INDEX, indexOffset );
+			header.putInt( OFFSET_BLOCK_SIZE, blockSize );
+			header.putInt( OFFSET_LEVEL, level );
+			header.putLong( OFFSET_UNCOMPRESSED, end-RecordingSegment.HEADER_LENGTH );
+			writeFully( channel, header, 0 );
+			channel.force( true );
+			return position;
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	private static int writeFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+	{
+		int written = 0;
+		while( buffer.hasRemaining() )
+			written += channel.write( buffer, position+written );
+
+		return written;
+	}
+
+	/**
+	 * Read the receive time of the first record from a compressed segment's header without
+	 * mapping it.
+	 *
+	 * @return The time, or 0 if the segment is empty
+	 * @throws IOException If the file can't be read or isn't a compressed segment
+	 */
+	public static long readFirstTime( File file ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"r") )
+		{
+			ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+			FileChannel channel = raf.getChannel();
+			while( header.hasRemaining() && channel.read(header) != -1 )
+				;
+
+			if( header.hasRemaining() || header.getInt(OFFSET_MAGIC) != MAGIC )
+				throw new IOException( "Not a compressed recording segment: "+file );
+
+			return header.getLong( OFFSET_FIRST );
+		}
+	}
+
+	/**
+	 * Map a compressed segment for reading.
+	 *
+	 * @throws IOException If the file can't be mapped or isn't a compressed segment
+	 */
+	public static CompressedSegment open( File file ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"r") )
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map( MapMode.READ_ONLY, 0, channel.size() );
+			if( map.capacity() < HEADER_LENGTH || map.getInt(OFFSET_MAGIC) != MAGIC )
+			{
+				Utils.unmap( map );
+				throw new IOException( "Not a compressed recording segment: "+file );
+			}
+
+			return new CompressedSegment( file, map );
+		}
+	}
+}
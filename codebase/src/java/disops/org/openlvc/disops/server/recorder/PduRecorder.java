@@ -0,0 +1,353 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.Utils;
+import org.openlvc.disops.configuration.RecorderConfiguration;
+import org.openlvc.disops.server.dis.SpscRingBuffer;
+
+/**
+ * Keeps a full-fidelity record of everything the DIS receiver hears: the raw bytes of each
+ * packet and the time it arrived, in the order it arrived. InfluxDB only holds what the
+ * writers pick out of the traffic; the recording is there so an exercise can be replayed or
+ * re-analysed later.
+ * <p/>
+ * Each run records into a directory of its own under the recorder directory, named for the
+ * time it started. The recording is a series of fixed-size, memory-mapped
+ * {@link RecordingSegment}s, each with a sparse time index, so {@link RecordingReader} can
+ * find any moment of a long exercise with a couple of binary searches rather than reading
+ * through the files.
+ * <p/>
+ * The receiver thread only ever copies a packet into an {@link SpscRingBuffer}. A recorder
+ * thread of its own drains the ring into the segments, creating and sealing them as it
+ * goes, so file work never holds up ingest. If the recorder falls behind far enough to fill
+ * the ring, packets are left out of the recording (and counted) rather than make the
+ * receiver wait.
+ * <p/>
+ * When compression is enabled, each segment is handed to a {@link SegmentCompressor} as
+ * soon as it is sealed, and replaced with a {@link CompressedSegment} in the background.
+ */
+public class PduRecorder
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int DRAIN_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = 1000000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final RecorderConfiguration recorderConfiguration;
+	private final Logger logger;
+	private final SpscRingBuffer ring;
+	private final int segmentSize;
+	private final long indexInterval;
+
+	private File directory;
+	private Writer writer;
+	private final SegmentCompressor compressor; // may be null
+
+	// Recorder thread only
+	private RecordingSegment segment;
+	private long nextSequence;
+	private long retryAfter;
+
+	// Statistics - written only by the recorder thread
+	private volatile long pdusRecorded;
+	private volatile long bytesRecorded;
+	private volatile long pdusDiscarded;
+	private volatile int segmentCount;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public PduRecorder( RecorderConfiguration recorderConfiguration, Logger logger )
+	{
+		this.recorderConfiguration = recorderConfiguration;
+		this.logger = logger;
+		this.ring = new SpscRingBuffer( recorderConfiguration.getBufferSize() );
+		this.segmentSize = Math.max( RecordingSegment.MIN_SIZE, recorderConfiguration.getSegmentSize() );
+		this.indexInterval = Math.max( 1, recorderConfiguration.getIndexInterval() );
+
+		this.directory = null; // set in startup()
+		this.writer = null;
+		this.compressor = !recorderConfiguration.isCompressionEnabled() ? null :
+			new SegmentCompressor( recorderConfiguration.getCompressionThreads(),
+			                       recorderConfiguration.getCompressionBlockSize(),
+			                       recorderConfiguration.getCompressionLevel(),
+			                       logger );
+		this.segment = null;
+		this.nextSequence = 0;
+		this.retryAfter = 0;
+
+		this.pdusRecorded = 0;
+		this.bytesRecorded = 0;
+		this.pdusDiscarded = 0;
+		this.segmentCount = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Create this run's recording directory and start the recorder thread.
+	 *
+	 * @throws DisOpsException If the directory can't be created
+	 */
+	public void startup() throws DisOpsException
+	{
+		File parent = recorderConfiguration.getDirectory();
+		String name = new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() );
+		File candidate = new File( parent, name );
+		for( int i = 1; candidate.exists(); i++ )
+			candidate = new File( parent, name+"-"+i );
+
+		if( !candidate.mkdirs() )
+			throw new DisOpsException( "Could not create recording directory: "+candidate.getAbsolutePath() );
+
+		this.directory = candidate;
+		if( compressor != null )
+		{
+			compressor.startup();
+			compressor.compressLeftovers( parent );
+		}
+
+		this.writer = new Writer();
+		this.writer.start();
+		logger.info( "PDU recorder started: %s (segments=%s, buffer=%s)", directory.getAbsolutePath(),
+		             Utils.bytesToString(segmentSize), Utils.bytesToString(ring.getCapacity()) );
+	}
+
+	/**
+	 * Stop the recorder thread once it has written everything already queued, and seal the
+	 * last segment. Compressions still running are abandoned, and the segments are picked
+	 * up again next time the recorder starts. Stop whatever is calling {@link #record(ByteBuffer, long)} first.
+	 */
+	public void shutdown()
+	{
+		if( this.writer == null )
+			return;
+
+		this.writer.running = false;
+		LockSupport.unpark( writer );
+		try
+		{
+			this.writer.join( 10000 );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		this.writer = null;
+		if( compressor != null )
+			compressor.shutdown();
+
+		logger.info( "PDU recorder stopped [pdus=%d, bytes=%s, segments=%d, dropped=%d]",
+		             pdusRecorded, Utils.bytesToString(bytesRecorded), segmentCount, getDropped() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Recording Methods   ////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Queue a packet to be recorded. This only copies the packet, and never blocks. <b>Must
+	 * only ever be called from a single thread</b> (the DIS receiver).
+	 *
+	 * @param packet      The packet, from position to limit. Its position is left alone.
+	 * @param receiveTime Time it was received (millis since the epoch)
+	 * @return True if it was queued, false if the recorder is too far behind to take it
+	 */
+	public boolean record( ByteBuffer packet, long receiveTime )
+	{
+		return ring.offer( packet, receiveTime );
+	}
+
+	/** Write a packet drained from the ring. Recorder thread only. */
+	private void write( ByteBuffer packet, long receiveTime )
+	{
+		int length = packet.remaining();
+		if( segment == null || !segment.append(packet,receiveTime,indexInterval) )
+		{
+			if( !rollSegment() || !segment.append(packet,receiveTime,indexInterval) )
+			{
+				++pdusDiscarded;
+				return;
+			}
+		}
+
+		++pdusRecorded;
+		bytesRecorded += length;
+	}
+
+	/** Seal the current segment and start a new one. False if the new one can't be created. */
+	private boolean rollSegment()
+	{
+		// an empty segment that can't take the packet never will, don't make another
+		if( segment != null && segment.getRecordCount() == 0 )
+			return false;
+
+		closeSegment();
+
+		// if we couldn't create one a moment ago, don't hammer the disk trying again per packet
+		long now = System.currentTimeMillis();
+		if( now < retryAfter )
+			return false;
+
+		File file = new File( directory, RecordingSegment.getFileName(nextSequence) );
+		try
+		{
+			this.segment = RecordingSegment.create( file, nextSequence++, segmentSize );
+			this.segmentCount++;
+			return true;
+		}
+		catch( IOException ioex )
+		{
+			// keep draining so the ring doesn't fill, but there is nowhere to put anything
+			if( retryAfter == 0 )
+				logger.error( "Could not create recording segment %s, PDUs will not be recorded: %s", file, ioex.getMessage() );
+
+			this.retryAfter = now + 1000;
+			return false;
+		}
+	}
+
+	private void closeSegment()
+	{
+		if( segment == null )
+			return;
+
+		segment.seal();
+		segment.close();
+		logger.debug( "Sealed recording segment %s", segment );
+		if( compressor != null && writer != null && writer.running )
+			compressor.submit( segment.getFile() );
+
+		this.segment = null;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The directory this run is recording into, or null if it hasn't started */
+	public File getDirectory()
+	{
+		return this.directory;
+	}
+
+	public long getPdusRecorded()
+	{
+		return this.pdusRecorded;
+	}
+
+	/** @return Packet bytes recorded (not counting record headers and the index) */
+	public long getBytesRecorded()
+	{
+		return this.bytesRecorded;
+	}
+
+	/**
+	 * @return PDUs left out of the recording, because the recorder had fallen too far behind
+	 *         or a segment couldn't be created
+	 */
+	public long getDropped()
+	{
+		return ring.getRejected() + pdusDiscarded;
+	}
+
+	/** @return Bytes queued for the recorder thread */
+	public long getQueueDepth()
+	{
+		return ring.getDepth();
+	}
+
+	/** @return The compressor for finished segments, or null if compression is disabled */
+	public SegmentCompressor getCompressor()
+	{
+		return this.compressor;
+	}
+
+	/** @return Segment files written so far, including the one being written */
+	public int getSegmentCount()
+	{
+		return this.segmentCount;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Writer Thread   ///////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	private class Writer extends Thread implements SpscRingBuffer.Handler
+	{
+		private volatile boolean running;
+
+		Writer()
+		{
+			super( "pdu-recorder" );
+			setDaemon( true );
+			this.running = true;
+		}
+
+		public void run()
+		{
+			try
+			{
+				while( running )
+				{
+					if( ring.drain(this,DRAIN_BATCH) == 0 )
+						LockSupport.parkNanos( IDLE_PARK_NANOS );
+				}
+
+				// write whatever was left in the queue when we were stopped
+				while( ring.drain(this,DRAIN_BATCH) > 0 )
+					;
+			}
+			catch( Exception e )
+			{
+				logger.error( "PDU recorder stopped with exception: "+e.getMessage(), e );
+			}
+			finally
+			{
+				closeSegment();
+			}
+		}
+
+		@Override
+		public void onPacket( ByteBuffer packet, long timestamp )
+		{
+			write( packet, timestamp );
+		}
+	}
+}
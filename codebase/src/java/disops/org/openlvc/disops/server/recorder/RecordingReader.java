@@ -0,0 +1,347 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openlvc.disops.DisOpsException;
+
+/**
+ * Reads back a recording made by the {@link PduRecorder}, from any point in it, whether its
+ * segments have been compressed yet or not.
+ * <p/>
+ * {@link #seek(long)} finds the segment holding a given time with a binary search over the
+ * segments' start times (read from their headers when the reader is opened), then the
+ * place within it with a binary search of the segment's index: the time index of an
+ * uncompressed segment, or the block index of a compressed one, in which case only the
+ * block holding the time is inflated. After that, {@link #next()} steps through the records
+ * in the order they were received, moving from block to block and segment to segment as
+ * needed. Only one segment is open at a time.
+ * <p/>
+ * A recording that is still being made can be read; the reader sees the segments that
+ * existed when it was opened, up to the last record written to each when it gets there.
+ * <p/>
+ * A reader is not thread safe.
+ */
+public class RecordingReader implements AutoCloseable
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final File directory;
+	private final File[] files;
+	private final long[] firstTimes;
+
+	// Cursor
+	private int segmentIndex;
+	private SegmentSource segment;
+	private int block;
+	private ByteBuffer records;   // the current block
+	private ByteBuffer view;      // what getPacket() hands out
+	private int offset;           // record the cursor is on, -1 before the first call to next()
+	private int nextOffset;       // record next() will move to
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * Open the recording in the given directory and position the reader at its start.
+	 *
+	 * @param directory A recording directory, as created by the recorder
+	 * @throws DisOpsException If the directory doesn't hold a readable recording
+	 */
+	public RecordingReader( File directory ) throws DisOpsException
+	{
+		this.directory = directory;
+		this.files = listSegments( directory );
+		if( files.length == 0 )
+			throw new DisOpsException( "No recording found in "+directory.getAbsolutePath() );
+
+		this.firstTimes = new long[files.length];
+		try
+		{
+			// a segment with nothing in it yet (the one being written) sorts after everything
+			for( int i = 0; i < files.length; i++ )
+			{
+				long first = isCompressed(files[i]) ? CompressedSegment.readFirstTime(files[i]) :
+				                                      RecordingSegment.readFirstTime(files[i]);
+				firstTimes[i] = first == 0 ? Long.MAX_VALUE : first;
+			}
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not read recording: "+ioex.getMessage(), ioex );
+		}
+
+		this.segmentIndex = -1;
+		this.segment = null;
+		this.block = -1;
+		this.records = null;
+		this.view = null;
+		this.offset = -1;
+		this.nextOffset = -1;
+		openSegment( 0 );
+		loadBlock( 0 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Cursor Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Position the reader so the next call to {@link #next()} returns the first record
+	 * received at or after the given time.
+	 *
+	 * @param time Millis since the epoch
+	 * @throws DisOpsException If a segment can't be read
+	 */
+	public void seek( long time ) throws DisOpsException
+	{
+		// last segment starting before the time; the one before a segment that starts right
+		// on it may end with records received at that same time
+		int low = 0, high = files.length-1, found = 0;
+		while( low <= high )
+		{
+			int middle = (low+high) >>> 1;
+			if( firstTimes[middle] < time )
+			{
+				found = middle;
+				low = middle+1;
+			}
+			else
+			{
+				high = middle-1;
+			}
+		}
+
+		openSegment( found );
+		loadBlock( segment.findBlock(time) );
+		this.nextOffset = segment.seek( block, records, time );
+	}
+
+	/**
+	 * Move on to the next record.
+	 *
+	 * @return True if there is one, false if the end of the recording has been reached
+	 * @throws DisOpsException If a segment can't be read
+	 */
+	public boolean next() throws DisOpsException
+	{
+		while( nextOffset >= records.limit() )
+		{
+			if( block+1 < segment.getBlockCount() )
+			{
+				loadBlock( block+1 );
+			}
+			else if( !segment.isComplete() && refreshBlock() )
+			{
+				// more has been recorded since we loaded the block
+			}
+			else if( segmentIndex+1 < files.length )
+			{
+				openSegment( segmentIndex+1 );
+				loadBlock( 0 );
+			}
+			else
+			{
+				return false;
+			}
+		}
+
+		this.offset = nextOffset;
+		this.nextOffset = RecordingSegment.next( records, offset );
+		return true;
+	}
+
+	/** @return Receive time of the current record (millis since the epoch) */
+	public long getTime()
+	{
+		checkPositioned();
+		return RecordingSegment.getTime( records, offset );
+	}
+
+	/**
+	 * @return The packet in the current record, from position to limit. The buffer is
+	 *         reused, so it is only valid until the reader is moved or closed.
+	 */
+	public ByteBuffer getPacket()
+	{
+		checkPositioned();
+		int start = offset + RecordingSegment.RECORD_HEADER;
+		view.limit( start+RecordingSegment.getLength(records,offset) ).position( start );
+		return view;
+	}
+
+	@Override
+	public void close()
+	{
+		if( segment != null )
+			segment.close();
+
+		this.segment = null;
+		this.records = null;
+		this.view = null;
+		this.segmentIndex = -1;
+	}
+
+	private void openSegment( int index ) throws DisOpsException
+	{
+		if( index == segmentIndex )
+			return;
+
+		if( segment != null )
+			segment.close();
+
+		this.segment = null;
+		this.segmentIndex = -1;
+		this.block = -1;
+		try
+		{
+			File file = files[index];
+			if( !file.exists() && !isCompressed(file) )
+			{
+				// compressed since we were opened
+				file = compressedFile( file );
+				files[index] = file;
+			}
+
+			this.segment = isCompressed(file) ? CompressedSegment.open(file) : RecordingSegment.open(file);
+			this.segmentIndex = index;
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not open recording segment: "+ioex.getMessage(), ioex );
+		}
+	}
+
+	private void loadBlock( int index ) throws DisOpsException
+	{
+		try
+		{
+			this.records = segment.getBlock( index );
+			this.view = records.asReadOnlyBuffer();
+			this.block = index;
+			this.offset = -1;
+			this.nextOffset = records.position();
+		}
+		catch( IOException ioex )
+		{
+			throw new DisOpsException( "Could not read recording block: "+ioex.getMessage(), ioex );
+		}
+	}
+
+	/** Reload the current block of a segment still being written. True if it has grown. */
+	private boolean refreshBlock() throws DisOpsException
+	{
+		int limit = records.limit();
+		int position = nextOffset;
+		loadBlock( block );
+		this.nextOffset = position;
+		return records.limit() > limit;
+	}
+
+	private void checkPositioned()
+	{
+		if( offset < 0 )
+			throw new IllegalStateException( "Call next() before reading a record" );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public File getDirectory()
+	{
+		return this.directory;
+	}
+
+	/** @return Number of segment files in the recording */
+	public int getSegmentCount()
+	{
+		return this.files.length;
+	}
+
+	/** @return Receive time of the first record in the recording, or 0 if it is empty */
+	public long getStartTime()
+	{
+		return firstTimes[0] == Long.MAX_VALUE ? 0 : firstTimes[0];
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The segments of the recording in the given directory, in order. Where a segment
+	 *         exists in both forms (it is part way through being replaced by its compressed
+	 *         form), the compressed one is used.
+	 */
+	private static File[] listSegments( File directory )
+	{
+		File[] found = directory.listFiles( (dir,name) -> name.startsWith(RecordingSegment.PREFIX) &&
+		                                                  (name.endsWith(RecordingSegment.SUFFIX) ||
+		                                                   name.endsWith(CompressedSegment.SUFFIX)) );
+		if( found == null )
+			return new File[0];
+
+		// sequence numbers are zero padded, so name order is recording order
+		Arrays.sort( found );
+		List<File> segments = new ArrayList<>( found.length );
+		for( File file : found )
+		{
+			File previous = segments.isEmpty() ? null : segments.get( segments.size()-1 );
+			if( previous != null && baseName(previous).equals(baseName(file)) )
+			{
+				if( isCompressed(file) )
+					segments.set( segments.size()-1, file );
+
+				continue;
+			}
+
+			segments.add( file );
+		}
+
+		return segments.toArray( new File[segments.size()] );
+	}
+
+	private static boolean isCompressed( File file )
+	{
+		return file.getName().endsWith( CompressedSegment.SUFFIX );
+	}
+
+	private static File compressedFile( File segment )
+	{
+		return new File( segment.getParentFile(), baseName(segment)+CompressedSegment.SUFFIX );
+	}
+
+	private static String baseName( File file )
+	{
+		String name = file.getName();
+		return name.substring( 0, name.lastIndexOf('.') );
+	}
+}
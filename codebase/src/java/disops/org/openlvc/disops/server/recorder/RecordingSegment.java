@@ -0,0 +1,435 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.openlvc.disops.Utils;
+
+/**
+ * One fixed-size, memory-mapped file of a PDU recording.
+ * <p/>
+ * <b>Layout:</b> A 64 byte header, then records growing up from the front, then the time
+ * index growing down from the back. The segment is full when the two meet.
+ * <ul>
+ *   <li><b>Header:</b> <code>[int magic][int version][long sequence][long firstTime]
+ *       [long lastTime][int dataEnd][int indexCount][int recordCount][int flags]</code>,
+ *       padded out to 64 bytes.</li>
+ *   <li><b>Record:</b> <code>[int length][int unused][long time][data...]</code>, padded
+ *       to 8 bytes. The time is when the packet was received, in millis since the epoch.</li>
+ *   <li><b>Index entry:</b> <code>[long time][int offset][int record]</code>, where entry
+ *       <code>i</code> sits at <code>size - (i+1)*16</code>. The first record of a segment
+ *       always gets an entry, and after that a record gets one if it arrived at least the
+ *       index interval after the last record that did.</li>
+ * </ul>
+ * Each record is written before its length, and the header counts are only updated once
+ * the record (and its index entry) are in place, so another process reading a segment that
+ * is still being written never sees part of a record.
+ * <p/>
+ * Finding a time is a binary search of the index followed by a walk through at most an
+ * index interval's worth of records, however big the segment is. Index entries are taken
+ * in arrival order, so if the clock steps backwards a seek may land a little early or late
+ * around the step.
+ * <p/>
+ * A segment is written by a single thread. Segments opened with {@link #open(File)} are
+ * read-only.
+ */
+public class RecordingSegment implements SegmentSource
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	public static final String PREFIX = "segment-";
+	public static final String SUFFIX = ".rec";
+
+	/** Smallest segment we'll create, so the largest UDP packet always fits */
+	public static final int MIN_SIZE = 1024*1024;
+
+	public static final int HEADER_LENGTH = 64;
+	public static final int RECORD_HEADER = 16;
+	public static final int INDEX_ENTRY = 16;
+
+	private static final int MAGIC = 0x44524331;        // "DRC1"
+	private static final int VERSION = 1;
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_SEQUENCE = 8;
+	private static final int OFFSET_FIRST = 16;
+	private static final int OFFSET_LAST = 24;
+	private static final int OFFSET_END = 32;
+	private static final int OFFSET_INDEX = 36;
+	private static final int OFFSET_RECORDS = 40;
+	private static final int OFFSET_FLAGS = 44;
+	private static final int FLAG_SEALED = 1;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final File file;
+	private final MappedByteBuffer map;
+	private final ByteBuffer writer;        // duplicate used for bulk copies in
+	private final int capacity;
+	private final boolean writable;
+
+	private int dataEnd;
+	private int indexCount;
+	private int recordCount;
+	private long lastIndexed;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	private RecordingSegment( File file, MappedByteBuffer map, boolean writable )
+	{
+		this.file = file;
+		this.map = map;
+		this.writer = writable ? map.duplicate() : null;
+		this.capacity = map.capacity();
+		this.writable = writable;
+
+		this.dataEnd = map.getInt( OFFSET_END );
+		this.indexCount = map.getInt( OFFSET_INDEX );
+		this.recordCount = map.getInt( OFFSET_RECORDS );
+		this.lastIndexed = indexCount == 0 ? Long.MIN_VALUE : getIndexTime( indexCount-1 );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Append a packet. The packet's position is left where it was.
+	 *
+	 * @param packet        The packet, from position to limit
+	 * @param time          When it was received (millis since the epoch)
+	 * @param indexInterval Millis of recording between index entries
+	 * @return True if it was written, false if the segment doesn't have room for it
+	 */
+	public boolean append( ByteBuffer packet, long time, long indexInterval )
+	{
+		int length = packet.remaining();
+		int needed = align( RECORD_HEADER+length );
+		boolean indexed = indexCount == 0 || time >= lastIndexed+indexInterval;
+		int indexStart = capacity - (indexCount + (indexed ? 1 : 0)) * INDEX_ENTRY;
+		if( dataEnd+needed > indexStart )
+			return false;
+
+		int offset = dataEnd;
+		map.putLong( offset+8, time );
+		int packetPosition = packet.position();
+		writer.limit( offset+RECORD_HEADER+length ).position( offset+RECORD_HEADER );
+		writer.put( packet );
+		packet.position( packetPosition );
+		map.putInt( offset, length );
+
+		if( indexed )
+		{
+			map.putLong( indexStart, time );
+			map.putInt( indexStart+8, offset );
+			map.putInt( indexStart+12, recordCount );
+			this.lastIndexed = time;
+			map.putInt( OFFSET_INDEX, ++indexCount );
+		}
+
+		if( recordCount == 0 )
+			map.putLong( OFFSET_FIRST, time );
+
+		this.dataEnd = offset+needed;
+		map.putLong( OFFSET_LAST, time );
+		map.putInt( OFFSET_RECORDS, ++recordCount );
+		map.putInt( OFFSET_END, dataEnd );
+		return true;
+	}
+
+	/** Mark the segment as finished and flush it to disk. Nothing more may be appended. */
+	public void seal()
+	{
+		map.putInt( OFFSET_FLAGS, map.getInt(OFFSET_FLAGS) | FLAG_SEALED );
+		map.force();
+	}
+
+	/** Unmap the segment. It must not be used again afterwards. */
+	@Override
+	public void close()
+	{
+		if( writable )
+			map.force();
+
+		Utils.unmap( map );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Find the first record received at or after the given time.
+	 *
+	 * @return Offset of the record, or {@link #getDataEnd()} if every record is earlier
+	 */
+	public int seek( long time )
+	{
+		// last index entry at or before the time, then walk forward from there
+		int low = 0, high = indexCount-1, found = -1;
+		while( low <= high )
+		{
+			int middle = (low+high) >>> 1;
+			if( getIndexTime(middle) <= time )
+			{
+				found = middle;
+				low = middle+1;
+			}
+			else
+			{
+				high = middle-1;
+			}
+		}
+
+		int offset = found < 0 ? HEADER_LENGTH : map.getInt( indexPosition(found)+8 );
+		int end = getDataEnd();
+		while( offset < end && getTime(offset) < time )
+			offset = next( offset );
+
+		return offset;
+	}
+
+	/** @return Offset of the record after the one at the given offset */
+	public int next( int offset )
+	{
+		return offset + align( RECORD_HEADER+getLength(offset) );
+	}
+
+	@Override
+	public int getBlockCount()
+	{
+		return 1;
+	}
+
+	@Override
+	public int findBlock( long time )
+	{
+		return 0;
+	}
+
+	/** The whole segment is one block, up to the last record written so far */
+	@Override
+	public ByteBuffer getBlock( int block )
+	{
+		ByteBuffer records = map.asReadOnlyBuffer();
+		records.limit( getDataEnd() ).position( HEADER_LENGTH );
+		return records;
+	}
+
+	@Override
+	public int seek( int block, ByteBuffer records, long time )
+	{
+		return Math.min( seek(time), records.limit() );
+	}
+
+	@Override
+	public boolean isComplete()
+	{
+		return isSealed();
+	}
+
+	/** @return Receive time of the record at the given offset */
+	public long getTime( int offset )
+	{
+		return map.getLong( offset+8 );
+	}
+
+	/** @return Length of the packet in the record at the given offset */
+	public int getLength( int offset )
+	{
+		return map.getInt( offset );
+	}
+
+	private long getIndexTime( int entry )
+	{
+		return map.getLong( indexPosition(entry) );
+	}
+
+	private int indexPosition( int entry )
+	{
+		return capacity - (entry+1)*INDEX_ENTRY;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public long getSequence()
+	{
+		return map.getLong( OFFSET_SEQUENCE );
+	}
+
+	/** @return Receive time of the first record, or 0 if the segment is empty */
+	@Override
+	public long getFirstTime()
+	{
+		return map.getLong( OFFSET_FIRST );
+	}
+
+	/** @return Receive time of the last record, or 0 if the segment is empty */
+	public long getLastTime()
+	{
+		return map.getLong( OFFSET_LAST );
+	}
+
+	/** @return Offset just past the last record */
+	public int getDataEnd()
+	{
+		// segments opened read-only may still be being written by someone else
+		return writable ? dataEnd : map.getInt( OFFSET_END );
+	}
+
+	public int getRecordCount()
+	{
+		return writable ? recordCount : map.getInt( OFFSET_RECORDS );
+	}
+
+	public int getIndexCount()
+	{
+		return writable ? indexCount : map.getInt( OFFSET_INDEX );
+	}
+
+	public boolean isSealed()
+	{
+		return (map.getInt(OFFSET_FLAGS) & FLAG_SEALED) != 0;
+	}
+
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	public String toString()
+	{
+		return file.getName()+" [records="+getRecordCount()+", bytes="+getDataEnd()+", index="+getIndexCount()+"]";
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static int align( int length )
+	{
+		return (length + 7) & ~7;
+	}
+
+	/** @return Length of the packet in the record at the given offset of a block */
+	public static int getLength( ByteBuffer records, int offset )
+	{
+		return records.getInt( offset );
+	}
+
+	/** @return Receive time of the record at the given offset of a block */
+	public static long getTime( ByteBuffer records, int offset )
+	{
+		return records.getLong( offset+8 );
+	}
+
+	/** @return Offset of the record after the one at the given offset of a block */
+	public static int next( ByteBuffer records, int offset )
+	{
+		return offset + align( RECORD_HEADER+records.getInt(offset) );
+	}
+
+	/**
+	 * @return The name of the segment file with the given sequence number. Names are zero
+	 *         padded so that name order is recording order.
+	 */
+	public static String getFileName( long sequence )
+	{
+		return String.format( "%s%06d%s", PREFIX, sequence, SUFFIX );
+	}
+
+	/**
+	 * Read the receive time of the first record from a segment's header without mapping it.
+	 *
+	 * @return The time, or 0 if the segment is empty
+	 * @throws IOException If the file can't be read or isn't a recording segment
+	 */
+	public static long readFirstTime( File file ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"r") )
+		{
+			ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+			FileChannel channel = raf.getChannel();
+			while( header.hasRemaining() && channel.read(header) != -1 )
+				;
+
+			if( header.hasRemaining() || header.getInt(OFFSET_MAGIC) != MAGIC )
+				throw new IOException( "Not a recording segment: "+file );
+
+			return header.getLong( OFFSET_FIRST );
+		}
+	}
+
+	/**
+	 * Create and map a new, empty segment.
+	 *
+	 * @throws IOException If the file can't be created or mapped
+	 */
+	public static RecordingSegment create( File file, long sequence, int size ) throws IOException
+	{
+		size = Math.max( MIN_SIZE, size );
+		try( RandomAccessFile raf = new RandomAccessFile(file,"rw") )
+		{
+			raf.setLength( size );
+			MappedByteBuffer map = raf.getChannel().map( MapMode.READ_WRITE, 0, size );
+			map.putInt( OFFSET_MAGIC, MAGIC );
+			map.putInt( OFFSET_VERSION, VERSION );
+			map.putLong( OFFSET_SEQUENCE, sequence );
+			map.putInt( OFFSET_END, HEADER_LENGTH );
+			return new RecordingSegment( file, map, true );
+		}
+	}
+
+	/**
+	 * Map an existing segment for reading. It may still be being written by a recorder.
+	 *
+	 * @throws IOException If the file can't be mapped or isn't a recording segment
+	 */
+	public static RecordingSegment open( File file ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"r") )
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map( MapMode.READ_ONLY, 0, channel.size() );
+			if( map.capacity() < HEADER_LENGTH || map.getInt(OFFSET_MAGIC) != MAGIC )
+			{
+				Utils.unmap( map );
+				throw new IOException( "Not a recording segment: "+file );
+			}
+
+			return new RecordingSegment( file, map, false );
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.Utils;
+
+/**
+ * Compresses sealed recording segments into {@link CompressedSegment}s on a small pool of
+ * background threads, so the recorder thread only ever hands over a file name.
+ * <p/>
+ * Each segment is written to a temporary file next to it, forced to disk, renamed into
+ * place and only then is the original deleted, so a crash part way through leaves the
+ * segment as it was (plus a temporary file that is cleared up next time). Segments found
+ * sealed but uncompressed when the compressor starts, left over from earlier runs, are
+ * compressed too.
+ * <p/>
+ * On shutdown any compression in progress is abandoned and anything queued is left for
+ * next time. The threads run at low priority so they give way to ingest when the machine
+ * is busy.
+ */
+public class SegmentCompressor
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final int threads;
+	private final int blockSize;
+	private final int level;
+	private final Logger logger;
+	private ExecutorService pool;
+
+	// Statistics
+	private final AtomicInteger queued;
+	private final LongAdder segmentsCompressed;
+	private final LongAdder segmentsFailed;
+	private final LongAdder bytesIn;
+	private final LongAdder bytesOut;
+	private final LongAdder compressNanos;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param threads   Number of segments to compress at once
+	 * @param blockSize Bytes of records in each compressed block
+	 * @param level     Deflate level, 1 (fastest) to 9 (smallest)
+	 * @param logger    Logger to report on
+	 */
+	public SegmentCompressor( int threads, int blockSize, int level, Logger logger )
+	{
+		this.threads = Math.max( 1, threads );
+		this.blockSize = Math.max( 4096, blockSize );
+		this.level = Math.max( 1, Math.min(9,level) );
+		this.logger = logger;
+		this.pool = null; // set in startup()
+
+		this.queued = new AtomicInteger( 0 );
+		this.segmentsCompressed = new LongAdder();
+		this.segmentsFailed = new LongAdder();
+		this.bytesIn = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.compressNanos = new LongAdder();
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Lifecycle Management Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public void startup()
+	{
+		AtomicInteger count = new AtomicInteger( 0 );
+		this.pool = Executors.newFixedThreadPool( threads, runnable -> {
+			Thread thread = new Thread( runnable, "recorder-compressor-"+count.getAndIncrement() );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			return thread;
+		});
+
+		logger.info( "Recording compressor started: threads=%d, block=%s, level=%d",
+		             threads, Utils.bytesToString(blockSize), level );
+	}
+
+	/**
+	 * Abandon whatever is being compressed and stop the threads. Segments that were queued
+	 * stay uncompressed until they are found again by {@link #compressLeftovers(File)}.
+	 */
+	public void shutdown()
+	{
+		if( pool == null )
+			return;
+
+		pool.shutdownNow();
+		try
+		{
+			pool.awaitTermination( 10, TimeUnit.SECONDS );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		this.pool = null;
+		if( segmentsCompressed.sum() > 0 )
+		{
+			logger.info( "Recording compressor stopped [segments=%d, %s -> %s, ratio=%.2f]",
+			             segmentsCompressed.sum(), Utils.bytesToString(bytesIn.sum()),
+			             Utils.bytesToString(bytesOut.sum()), getRatio() );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Compression Methods   //////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Queue a sealed segment to be compressed.
+	 *
+	 * @param segment The segment's file. It must not be written to again.
+	 */
+	public void submit( File segment )
+	{
+		queued.incrementAndGet();
+		pool.execute( () -> {
+			try
+			{
+				compress( segment );
+			}
+			finally
+			{
+				queued.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Queue every sealed, uncompressed segment in the recordings under the given directory,
+	 * and remove any temporary files left by compressions that didn't finish.
+	 *
+	 * @param recordings The directory recordings are made in (each recording is a directory
+	 *                   of its own under it)
+	 * @return The number of segments queued
+	 */
+	public int compressLeftovers( File recordings )
+	{
+		File[] directories = recordings.listFiles( File::isDirectory );
+		if( directories == null )
+			return 0;
+
+		List<File> sealed = new ArrayList<>();
+		Arrays.sort( directories );
+		for( File directory : directories )
+		{
+			File[] files = directory.listFiles();
+			if( files == null )
+				continue;
+
+			Arrays.sort( files );
+			for( File file : files )
+			{
+				String name = file.getName();
+				if( name.endsWith(TEMP_SUFFIX) )
+					file.delete();
+				else if( name.endsWith(RecordingSegment.SUFFIX) && isSealed(file) )
+					sealed.add( file );
+			}
+		}
+
+		for( File file : sealed )
+			submit( file );
+
+		if( !sealed.isEmpty() )
+			logger.info( "Found %d uncompressed recording segment(s), compressing them", sealed.size() );
+
+		return sealed.size();
+	}
+
+	/**
+	 * Compress a segment now, on the calling thread, replacing it with its compressed form.
+	 *
+	 * @return The compressed file, or null if it couldn't be compressed (the reason is logged
+	 *         and the segment is left as it was)
+	 */
+	public File compress( File segmentFile )
+	{
+		String name = segmentFile.getName();
+		String base = name.substring( 0, name.length()-RecordingSegment.SUFFIX.length() );
+		File target = new File( segmentFile.getParentFile(), base+CompressedSegment.SUFFIX );
+		File temp = new File( segmentFile.getParentFile(), target.getName()+TEMP_SUFFIX );
+
+		long started = System.nanoTime();
+		long inputSize;
+		long outputSize;
+		RecordingSegment segment = null;
+		try
+		{
+			segment = RecordingSegment.open( segmentFile );
+			inputSize = segment.getDataEnd() - RecordingSegment.HEADER_LENGTH;
+			outputSize = CompressedSegment.write( segment, temp, blockSize, level );
+		}
+		catch( InterruptedIOException | ClosedByInterruptException interrupted )
+		{
+			// shutting down, leave it for next time
+			temp.delete();
+			return null;
+		}
+		catch( IOException ioex )
+		{
+			segmentsFailed.increment();
+			temp.delete();
+			logger.warn( "Could not compress recording segment %s: %s", segmentFile, ioex.getMessage() );
+			return null;
+		}
+		finally
+		{
+			if( segment != null )
+				segment.close();
+		}
+
+		try
+		{
+			Files.move( temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch( IOException ioex )
+		{
+			segmentsFailed.increment();
+			temp.delete();
+			logger.warn( "Could not move compressed segment into place %s: %s", target, ioex.getMessage() );
+			return null;
+		}
+
+		// a reader may still have it mapped, which Windows won't let us delete
+		if( !segmentFile.delete() )
+			logger.warn( "Compressed %s but could not delete the original", segmentFile );
+
+		long nanos = System.nanoTime() - started;
+		segmentsCompressed.increment();
+		bytesIn.add( inputSize );
+		bytesOut.add( outputSize );
+		compressNanos.add( nanos );
+		logger.debug( "Compressed %s: %s -> %s in %dms", segmentFile.getName(), Utils.bytesToString(inputSize),
+		              Utils.bytesToString(outputSize), TimeUnit.NANOSECONDS.toMillis(nanos) );
+		return target;
+	}
+
+	private boolean isSealed( File file )
+	{
+		try
+		{
+			RecordingSegment segment = RecordingSegment.open( file );
+			try
+			{
+				return segment.isSealed();
+			}
+			finally
+			{
+				segment.close();
+			}
+		}
+		catch( IOException ioex )
+		{
+			return false;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** @return Segments waiting to be compressed or being compressed */
+	public int getQueued()
+	{
+		return this.queued.get();
+	}
+
+	public long getSegmentsCompressed()
+	{
+		return segmentsCompressed.sum();
+	}
+
+	public long getSegmentsFailed()
+	{
+		return segmentsFailed.sum();
+	}
+
+	/** @return Bytes of records in the segments compressed so far */
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	/** @return Size of the compressed files written so far */
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	/** @return Uncompressed bytes for each compressed byte so far, or 0 if nothing has been compressed */
+	public double getRatio()
+	{
+		long out = bytesOut.sum();
+		return out == 0 ? 0.0 : bytesIn.sum() / (double)out;
+	}
+
+	/** @return Uncompressed bytes compressed per second of compressor thread time */
+	public double getThroughput()
+	{
+		long nanos = compressNanos.sum();
+		return nanos == 0 ? 0.0 : bytesIn.sum() * 1e9 / nanos;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
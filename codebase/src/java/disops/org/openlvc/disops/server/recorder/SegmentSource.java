@@ -0,0 +1,61 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A segment of a recording as the {@link RecordingReader} sees it: a series of blocks of
+ * records, each block laid out the same way as the records in a {@link RecordingSegment}.
+ * An uncompressed segment is a single block read straight from the mapped file; a
+ * {@link CompressedSegment} is many, each inflated only when it is asked for.
+ */
+interface SegmentSource
+{
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/** @return Receive time of the first record, or 0 if the segment is empty */
+	public long getFirstTime();
+
+	public int getBlockCount();
+
+	/** @return The last block whose first record was received before the time (0 if none) */
+	public int findBlock( long time );
+
+	/**
+	 * @return The records of the given block, from position to limit. The buffer may be
+	 *         reused, so it is only valid until the next call or the segment is closed.
+	 * @throws IOException If the block can't be read
+	 */
+	public ByteBuffer getBlock( int block ) throws IOException;
+
+	/**
+	 * @param records The block, as returned by {@link #getBlock(int)}
+	 * @return Offset of the first record in the block received at or after the time, or the
+	 *         block's limit if there isn't one
+	 */
+	public int seek( int block, ByteBuffer records, long time );
+
+	/** @return False if records may still be appended to the segment (it is being recorded) */
+	public boolean isComplete();
+
+	public void close();
+
+}
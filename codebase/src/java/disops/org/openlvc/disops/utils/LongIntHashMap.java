@@ -0,0 +1,225 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.utils;
+
+import java.util.Arrays;
+
+/**
+ * A minimal open-addressing map from primitive <code>long</code> keys to <code>int</code>
+ * values. It exists so that hot-path components can index per-entity state by packed
+ * Entity ID without boxing keys or allocating map entries.
+ * <p/>
+ * Linear probing is used, with backward-shift deletion so that no tombstones build up as
+ * entities come and go. Any long may be used as a key except {@link Long#MIN_VALUE}, which
+ * marks free slots.
+ * <p/>
+ * This class is <b>not</b> thread safe.
+ */
+public class LongIntHashMap
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Returned from {@link #get(long)} and {@link #remove(long)} when the key isn't present */
+	public static final int MISSING = -1;
+
+	private static final long FREE = Long.MIN_VALUE;
+	private static final double LOAD_FACTOR = 0.5;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+	private int threshold;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	public LongIntHashMap( int expectedSize )
+	{
+		int capacity = 16;
+		while( capacity * LOAD_FACTOR < expectedSize )
+			capacity <<= 1;
+
+		allocate( capacity );
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * @return The value for the key, or {@link #MISSING} if there isn't one
+	 */
+	public int get( long key )
+	{
+		int slot = hash(key) & mask;
+		while( true )
+		{
+			long existing = keys[slot];
+			if( existing == key )
+				return values[slot];
+			else if( existing == FREE )
+				return MISSING;
+
+			slot = (slot+1) & mask;
+		}
+	}
+
+	public boolean containsKey( long key )
+	{
+		return get( key ) != MISSING;
+	}
+
+	/**
+	 * Store the value against the key, replacing any existing value.
+	 *
+	 * @return The previous value, or {@link #MISSING} if there wasn't one
+	 */
+	public int put( long key, int value )
+	{
+		if( key == FREE )
+			throw new IllegalArgumentException( "Long.MIN_VALUE cannot be used as a key" );
+
+		int slot = hash(key) & mask;
+		while( true )
+		{
+			long existing = keys[slot];
+			if( existing == key )
+			{
+				int previous = values[slot];
+				values[slot] = value;
+				return previous;
+			}
+			else if( existing == FREE )
+			{
+				keys[slot] = key;
+				values[slot] = value;
+				if( ++size > threshold )
+					rehash( keys.length << 1 );
+
+				return MISSING;
+			}
+
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/**
+	 * Remove the key from the map.
+	 *
+	 * @return The value that was stored against it, or {@link #MISSING} if there wasn't one
+	 */
+	public int remove( long key )
+	{
+		int slot = hash(key) & mask;
+		while( true )
+		{
+			long existing = keys[slot];
+			if( existing == FREE )
+				return MISSING;
+			else if( existing == key )
+				break;
+
+			slot = (slot+1) & mask;
+		}
+
+		int removed = values[slot];
+		--size;
+
+		// Shift back any following entries that would no longer be reachable across the gap
+		int gap = slot;
+		int next = (gap+1) & mask;
+		while( keys[next] != FREE )
+		{
+			int ideal = hash(keys[next]) & mask;
+			// is "ideal" cyclically outside (gap, next]? if so the entry can move into the gap
+			if( ((next-ideal) & mask) >= ((next-gap) & mask) )
+			{
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+
+			next = (next+1) & mask;
+		}
+
+		keys[gap] = FREE;
+		return removed;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	public void clear()
+	{
+		Arrays.fill( keys, FREE );
+		this.size = 0;
+	}
+
+	/** @return Approximate heap bytes held by the key and value arrays */
+	public long getMemoryUsage()
+	{
+		return keys.length * 12L;
+	}
+
+	private void allocate( int capacity )
+	{
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		Arrays.fill( this.keys, FREE );
+		this.mask = capacity-1;
+		this.threshold = (int)(capacity * LOAD_FACTOR);
+	}
+
+	private void rehash( int capacity )
+	{
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		allocate( capacity );
+		this.size = 0;
+		for( int i = 0; i < oldKeys.length; i++ )
+		{
+			if( oldKeys[i] != FREE )
+				put( oldKeys[i], oldValues[i] );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Murmur3 finalizer - packed IDs are highly structured so they need spreading out */
+	private static int hash( long key )
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
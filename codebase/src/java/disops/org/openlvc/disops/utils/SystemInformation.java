@@ -17,9 +17,11 @@
  */
 package org.openlvc.disops.utils;
 
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.Properties;
 
 /**
  * This singleton provides a number of useful pieces of information about the current system.
@@ -56,6 +58,9 @@ public class SystemInformation
 	
 	private String          ipAddress;
 
+	private String          version;
+	private String          buildNumber;
+
 	//----------------------------------------------------------
 	//                      CONSTRUCTORS
 	//----------------------------------------------------------
@@ -86,6 +91,24 @@ public class SystemInformation
 			// give it a default value
 			this.ipAddress = "error: " + e.getMessage();
 		}
+
+		// the build puts its build.properties in the root of the jar
+		this.version = "unknown";
+		this.buildNumber = "0";
+		try( InputStream stream = SystemInformation.class.getResourceAsStream("/build.properties") )
+		{
+			if( stream != null )
+			{
+				Properties properties = new Properties();
+				properties.load( stream );
+				this.version = properties.getProperty( "build.version", version ).trim();
+				this.buildNumber = properties.getProperty( "build.number", buildNumber ).trim();
+			}
+		}
+		catch( Exception e )
+		{
+			// running from classes rather than the jar, leave the defaults
+		}
 	}
 	
 	//----------------------------------------------------------
@@ -152,6 +175,18 @@ public class SystemInformation
 		return this.launchDir;
 	}
 	
+	/** @return The DisOps version from the build, or "unknown" if not running from the jar */
+	public String getVersion()
+	{
+		return this.version;
+	}
+
+	/** @return The official build number, 0 for dev builds */
+	public String getBuildNumber()
+	{
+		return this.buildNumber;
+	}
+
 	/**
 	 * Gets the IP address of this computer, or, if there was a problem, a string with
 	 * the error in it
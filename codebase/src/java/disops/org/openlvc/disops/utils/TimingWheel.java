@@ -0,0 +1,405 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.utils;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A hashed hierarchical timing wheel of deadlines keyed on primitive <code>long</code>s
+ * (packed entity IDs, in practice). Scheduling, rescheduling and cancelling a key are all
+ * O(1), and advancing the clock only touches the keys that are actually due, so the cost of
+ * tracking timeouts doesn't grow with the number of keys being tracked.
+ * <p/>
+ * Time is divided into ticks of a fixed length. There are three levels of 64 slots: level 0
+ * covers the next 64 ticks one tick per slot, level 1 the next 4096 ticks 64 ticks per slot
+ * and level 2 the next 262,144 ticks 4096 ticks per slot. Each time the clock passes into a
+ * new level 1 (or level 2) slot, the keys in it are spread down into the finer level below,
+ * so by the time a key is due it is sitting in the level 0 slot for its tick. Deadlines past
+ * the end of level 2 are parked in its last slot and placed again when it comes around.
+ * <p/>
+ * Keys are never fired early: a deadline fires on the first advance to a time at or after
+ * it, rounded up to the tick. Every slot is a circular doubly-linked list threaded through
+ * primitive arrays, with a sentinel node as its head, so moving a key is a handful of array
+ * writes and nothing is allocated except when the node arrays have to grow.
+ * <p/>
+ * Pushing a deadline back doesn't move the key at all. Keys that are rescheduled far more
+ * often than they expire (heartbeats, which is what this is for) just have their deadline
+ * updated, and are only moved when the slot they are sitting in comes around and they turn
+ * out not to be due yet. Bringing a deadline forward moves the key straight away.
+ * <p/>
+ * This class is <b>not</b> thread safe.
+ */
+public class TimingWheel
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS-1;
+	private static final int LEVELS = 3;
+	private static final long SPAN = 1L << (SLOT_BITS*LEVELS);  // ticks covered by all levels
+
+	// Sentinel nodes: one per slot, then the list being expired or cascaded
+	private static final int PENDING = LEVELS * SLOTS;
+	private static final int FIRST_NODE = PENDING + 1;
+	private static final int NONE = -1;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private final long tickMillis;
+	private long currentTick;
+
+	// Node storage, indexed by node
+	private long[] keys;
+	private long[] ticks;      // the tick each node is due at (may be after the slot it is in)
+	private int[] links;       // next and previous node, side by side so they share a line
+	private int freeNode;      // head of the free list, linked through next()
+	private int highWater;     // nodes below this have been used at some point
+
+	private final LongIntHashMap index;  // key -> node
+	private long expired;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+	/**
+	 * @param tickMillis   Length of a tick. This is the resolution deadlines are kept to.
+	 * @param expectedKeys Number of keys to size the wheel for up front
+	 * @param now          The current time (millis). Nothing is due before this.
+	 */
+	public TimingWheel( long tickMillis, int expectedKeys, long now )
+	{
+		if( tickMillis < 1 )
+			throw new IllegalArgumentException( "Tick must be at least 1ms: "+tickMillis );
+
+		this.tickMillis = tickMillis;
+		this.currentTick = Math.floorDiv( now, tickMillis );
+
+		int capacity = FIRST_NODE + Math.max( 16, expectedKeys );
+		this.keys = new long[capacity];
+		this.ticks = new long[capacity];
+		this.links = new int[capacity*2];
+		for( int sentinel = 0; sentinel < FIRST_NODE; sentinel++ )
+		{
+			setNext( sentinel, sentinel );
+			setPrev( sentinel, sentinel );
+		}
+
+		this.freeNode = NONE;
+		this.highWater = FIRST_NODE;
+		this.index = new LongIntHashMap( expectedKeys );
+		this.expired = 0;
+	}
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Scheduling Methods   ///////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Schedule the key to expire at the given time, replacing any deadline it already had.
+	 * A deadline that has already passed fires on the next tick.
+	 *
+	 * @param key      The key. Any value except {@link Long#MIN_VALUE}.
+	 * @param deadline Time (millis) at which the key expires
+	 */
+	public void schedule( long key, long deadline )
+	{
+		long tick = -Math.floorDiv( -deadline, tickMillis ); // round up, never fire early
+		if( tick <= currentTick )
+			tick = currentTick+1;
+
+		int node = index.get( key );
+		if( node == LongIntHashMap.MISSING )
+		{
+			node = allocate();
+			keys[node] = key;
+			index.put( key, node );
+		}
+		else if( tick >= ticks[node] )
+		{
+			// later than where it sits - leave it, it is moved on when that slot comes up
+			ticks[node] = tick;
+			return;
+		}
+		else
+		{
+			unlink( node );
+		}
+
+		ticks[node] = tick;
+		place( node );
+	}
+
+	/**
+	 * Stop tracking the key.
+	 *
+	 * @return True if the key was scheduled
+	 */
+	public boolean cancel( long key )
+	{
+		int node = index.remove( key );
+		if( node == LongIntHashMap.MISSING )
+			return false;
+
+		unlink( node );
+		release( node );
+		return true;
+	}
+
+	/**
+	 * Move the clock forward to the given time, handing every key that falls due on the way
+	 * to the handler. Each key is removed before the handler is called, so the handler is
+	 * free to schedule it again or to schedule and cancel others. Times earlier than the
+	 * current time are ignored.
+	 *
+	 * @param now     The current time (millis)
+	 * @param handler Given each key that has expired, in deadline order to the tick
+	 * @return The number of keys that expired
+	 */
+	public int advance( long now, LongConsumer handler )
+	{
+		long target = Math.floorDiv( now, tickMillis );
+		int count = 0;
+		while( currentTick < target )
+		{
+			if( index.isEmpty() )
+			{
+				// nothing to find on the way, so don't walk there
+				this.currentTick = target;
+				break;
+			}
+
+			long tick = ++currentTick;
+			if( (tick & SLOT_MASK) == 0 )
+			{
+				// coarsest first, so anything it drops into level 1 is cascaded on again
+				if( (tick & ((1L << (SLOT_BITS*2))-1)) == 0 )
+					cascade( 2*SLOTS + (int)((tick >>> (SLOT_BITS*2)) & SLOT_MASK) );
+
+				cascade( SLOTS + (int)((tick >>> SLOT_BITS) & SLOT_MASK) );
+			}
+
+			count += expire( (int)(tick & SLOT_MASK), handler );
+		}
+
+		this.expired += count;
+		return count;
+	}
+
+	/**
+	 * Fire everything in a level 0 slot that is due. Everything in it was due at the current
+	 * tick when it was put there, but may have been pushed back since.
+	 */
+	private int expire( int slot, LongConsumer handler )
+	{
+		if( next(slot) == slot )
+			return 0;
+
+		// Move the slot aside first so that the handler can reschedule into it (or cancel
+		// keys that are still to be fired) without us tripping over the changes
+		splice( slot, PENDING );
+		int count = 0;
+		while( next(PENDING) != PENDING )
+		{
+			int node = next( PENDING );
+			unlink( node );
+			if( ticks[node] > currentTick )
+			{
+				place( node );
+				continue;
+			}
+
+			long key = keys[node];
+			index.remove( key );
+			release( node );
+			++count;
+			handler.accept( key );
+		}
+
+		return count;
+	}
+
+	/** Spread the keys in a level 1 or level 2 slot down into the finer levels */
+	private void cascade( int slot )
+	{
+		if( next(slot) == slot )
+			return;
+
+		splice( slot, PENDING );
+		while( next(PENDING) != PENDING )
+		{
+			int node = next( PENDING );
+			unlink( node );
+			place( node );
+		}
+	}
+
+	/** Link a node into the slot for its tick. The tick must not be before the current one. */
+	private void place( int node )
+	{
+		long tick = ticks[node];
+		long delta = tick - currentTick;
+		int slot;
+		if( delta < SLOTS )
+		{
+			slot = (int)(tick & SLOT_MASK);
+		}
+		else if( delta < SLOTS*SLOTS )
+		{
+			slot = SLOTS + (int)((tick >>> SLOT_BITS) & SLOT_MASK);
+		}
+		else
+		{
+			// beyond the wheel, park it in the furthest slot and place it again from there
+			long parked = Math.min( tick, currentTick+SPAN-1 );
+			slot = 2*SLOTS + (int)((parked >>> (SLOT_BITS*2)) & SLOT_MASK);
+		}
+
+		// append to the tail so keys due at the same tick fire in the order they were scheduled
+		int tail = prev( slot );
+		setNext( tail, node );
+		setPrev( node, tail );
+		setNext( node, slot );
+		setPrev( slot, node );
+	}
+
+	private void unlink( int node )
+	{
+		int before = prev( node );
+		int after = next( node );
+		setNext( before, after );
+		setPrev( after, before );
+	}
+
+	/** Move the whole list at one sentinel onto the end of the (empty) list at another */
+	private void splice( int from, int to )
+	{
+		int first = next( from );
+		int last = prev( from );
+		setNext( to, first );
+		setPrev( first, to );
+		setPrev( to, last );
+		setNext( last, to );
+
+		setNext( from, from );
+		setPrev( from, from );
+	}
+
+	private int next( int node )
+	{
+		return links[node<<1];
+	}
+
+	private int prev( int node )
+	{
+		return links[(node<<1)+1];
+	}
+
+	private void setNext( int node, int next )
+	{
+		links[node<<1] = next;
+	}
+
+	private void setPrev( int node, int prev )
+	{
+		links[(node<<1)+1] = prev;
+	}
+
+	private int allocate()
+	{
+		if( freeNode != NONE )
+		{
+			int node = freeNode;
+			this.freeNode = next( node );
+			return node;
+		}
+
+		if( highWater == keys.length )
+		{
+			int capacity = keys.length << 1;
+			this.keys = Arrays.copyOf( keys, capacity );
+			this.ticks = Arrays.copyOf( ticks, capacity );
+			this.links = Arrays.copyOf( links, capacity*2 );
+		}
+
+		return highWater++;
+	}
+
+	private void release( int node )
+	{
+		setNext( node, freeNode );
+		this.freeNode = node;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Accessor and Mutator Methods   /////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	public boolean contains( long key )
+	{
+		return index.containsKey( key );
+	}
+
+	/**
+	 * @return The time (millis) the key will expire, rounded up to the tick, or -1 if it
+	 *         isn't scheduled
+	 */
+	public long getDeadline( long key )
+	{
+		int node = index.get( key );
+		return node == LongIntHashMap.MISSING ? -1 : ticks[node] * tickMillis;
+	}
+
+	/** @return The number of keys scheduled */
+	public int size()
+	{
+		return index.size();
+	}
+
+	/** @return The number of keys that have expired since the wheel was created */
+	public long getExpiredCount()
+	{
+		return this.expired;
+	}
+
+	/** @return The time (millis) the wheel has been advanced to, to the tick */
+	public long getTime()
+	{
+		return currentTick * tickMillis;
+	}
+
+	public long getTickMillis()
+	{
+		return this.tickMillis;
+	}
+
+	/** @return Approximate heap bytes held by the node arrays and the key index */
+	public long getMemoryUsage()
+	{
+		return (keys.length * 24L) + index.getMemoryUsage();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
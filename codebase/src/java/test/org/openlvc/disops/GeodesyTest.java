@@ -0,0 +1,242 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test(groups={"GeodesyTest"})
+public class GeodesyTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int POSITIONS = 4096;
+
+	private static final double MAX_ROUND_TRIP = 1e-6;     // metres
+	private static final double MAX_DIFFERENCE = 1e-6;     // metres, or the same in degrees at the surface
+	private static final double METRES_PER_DEGREE = Math.toRadians( Geodesy.WGS84_A );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private double[] x, y, z;
+	private double[] latitude, longitude, altitude;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Positions spread over the whole globe: nine in ten on the ground, the rest in the air
+	 * up to 15km, plus a few at the poles and out to geostationary orbit. The same spread the
+	 * geodesy benchmark times.
+	 */
+	@BeforeClass(alwaysRun=true)
+	public void beforeClass()
+	{
+		Random random = new Random( 1 );
+		this.x = new double[POSITIONS];
+		this.y = new double[POSITIONS];
+		this.z = new double[POSITIONS];
+		this.latitude = new double[POSITIONS];
+		this.longitude = new double[POSITIONS];
+		this.altitude = new double[POSITIONS];
+
+		double[] point = new double[3];
+		for( int i = 0; i < POSITIONS; i++ )
+		{
+			double lat = Math.toDegrees( Math.asin(2.0*random.nextDouble()-1.0) );
+			double lon = random.nextDouble()*360.0 - 180.0;
+			double alt = i % 10 == 0 ? random.nextDouble()*15000.0 : random.nextDouble()*3000.0 - 400.0;
+			if( i < 8 )
+				lat = i % 2 == 0 ? 90.0 : -90.0;
+			else if( i < 16 )
+				alt = 35786000.0 * random.nextDouble();
+
+			Geodesy.toEcef( lat, lon, alt, point );
+			x[i] = point[0];
+			y[i] = point[1];
+			z[i] = point[2];
+		}
+
+		Geodesy.toGeodetic( x, y, z, latitude, longitude, altitude, POSITIONS );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////// Accuracy Methods /////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testRoundTrip()
+	{
+		double[] point = new double[3];
+		double worst = 0.0;
+		for( int i = 0; i < POSITIONS; i++ )
+		{
+			Geodesy.toEcef( latitude[i], longitude[i], altitude[i], point );
+			double dx = point[0]-x[i], dy = point[1]-y[i], dz = point[2]-z[i];
+			worst = Math.max( worst, Math.sqrt(dx*dx + dy*dy + dz*dz) );
+		}
+
+		Assert.assertTrue( worst < MAX_ROUND_TRIP, "Worst round trip error "+worst+"m" );
+	}
+
+	@Test
+	public void testAgreesWithIteration()
+	{
+		double[] point = new double[3];
+		double worst = 0.0;
+		for( int i = 0; i < POSITIONS; i++ )
+		{
+			iterativeToGeodetic( x[i], y[i], z[i], point );
+			worst = Math.max( worst, distance(point,latitude[i],longitude[i],altitude[i]) );
+		}
+
+		Assert.assertTrue( worst < MAX_DIFFERENCE, "Worst difference from iteration "+worst+"m" );
+	}
+
+	@Test
+	public void testSingleMatchesBatch()
+	{
+		double[] point = new double[3];
+		for( int i = 0; i < POSITIONS; i++ )
+		{
+			Geodesy.toGeodetic( x[i], y[i], z[i], point );
+			Assert.assertEquals( point[0], latitude[i], 0.0, "Latitude at "+i );
+			Assert.assertEquals( point[1], longitude[i], 0.0, "Longitude at "+i );
+			Assert.assertEquals( point[2], altitude[i], 0.0, "Altitude at "+i );
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////// Edge Case Methods ////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testPoles()
+	{
+		double[] point = new double[3];
+		double[] heights = { -400.0, 0.0, 15000.0, 35786000.0 };
+		for( double height : heights )
+		{
+			// right on the axis
+			check( 0.0, 0.0, Geodesy.WGS84_B+height, 90.0, 0.0, height );
+			check( 0.0, 0.0, -Geodesy.WGS84_B-height, -90.0, 0.0, height );
+
+			// and a millimetre or so off it, where the longitude is still meaningful
+			Geodesy.toEcef( 89.99999999, 45.0, height, point );
+			check( point[0], point[1], point[2], 89.99999999, 45.0, height );
+			Geodesy.toEcef( -89.99999999, -135.0, height, point );
+			check( point[0], point[1], point[2], -89.99999999, -135.0, height );
+		}
+	}
+
+	@Test
+	public void testAntimeridian()
+	{
+		double[] point = new double[3];
+
+		// exactly on it, from either side of zero, always comes out as +180
+		check( -Geodesy.WGS84_A, 0.0, 0.0, 0.0, 180.0, 0.0 );
+		check( -Geodesy.WGS84_A, -0.0, 0.0, 0.0, 180.0, 0.0 );
+
+		// just either side of it keeps its sign
+		double[] latitudes = { -60.0, 0.0, 45.0 };
+		for( double lat : latitudes )
+		{
+			Geodesy.toEcef( lat, 179.9999999, 100.0, point );
+			check( point[0], point[1], point[2], lat, 179.9999999, 100.0 );
+			Geodesy.toEcef( lat, -179.9999999, 100.0, point );
+			check( point[0], point[1], point[2], lat, -179.9999999, 100.0 );
+		}
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testBatchCountPastArrays()
+	{
+		double[] small = new double[2];
+		Geodesy.toGeodetic( x, y, z, small, small, small, 3 );
+	}
+
+	/**
+	 * Convert the given position both ways (single and batch) and check it lands on the
+	 * expected geodetic position. The longitude must be exact in sign, so no wrapping.
+	 */
+	private void check( double px, double py, double pz, double lat, double lon, double alt )
+	{
+		double[] point = new double[3];
+		Geodesy.toGeodetic( px, py, pz, point );
+		String where = "("+lat+","+lon+","+alt+")";
+		Assert.assertEquals( point[0], lat, 1e-9, "Latitude at "+where );
+		Assert.assertEquals( point[1], lon, 1e-9, "Longitude at "+where );
+		Assert.assertEquals( point[2], alt, MAX_ROUND_TRIP, "Altitude at "+where );
+
+		double[] batchLat = new double[1], batchLon = new double[1], batchAlt = new double[1];
+		Geodesy.toGeodetic( new double[]{px}, new double[]{py}, new double[]{pz},
+		                    batchLat, batchLon, batchAlt, 1 );
+		Assert.assertEquals( batchLat[0], point[0], 0.0, "Batch latitude at "+where );
+		Assert.assertEquals( batchLon[0], point[1], 0.0, "Batch longitude at "+where );
+		Assert.assertEquals( batchAlt[0], point[2], 0.0, "Batch altitude at "+where );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Angles compared as the distance they make at the surface, wrapping the longitude */
+	private static double distance( double[] point, double lat, double lon, double alt )
+	{
+		double dlon = Math.abs( point[1]-lon );
+		dlon = Math.min( dlon, 360.0-dlon ) * Math.cos( Math.toRadians(point[0]) );
+		double worst = Math.abs( point[0]-lat ) * METRES_PER_DEGREE;
+		worst = Math.max( worst, dlon * METRES_PER_DEGREE );
+		return Math.max( worst, Math.abs(point[2]-alt) );
+	}
+
+	/**
+	 * The usual fixed point iteration on latitude, run until it stops moving: guess, work out
+	 * the height from the guess, correct the latitude from the height, and go round again.
+	 */
+	private static void iterativeToGeodetic( double x, double y, double z, double[] out )
+	{
+		double p = Math.sqrt( x*x + y*y );
+		double lat = Math.atan2( z, p*(1.0-Geodesy.WGS84_E2) );
+		double alt = 0.0;
+		for( int iteration = 0; iteration < 20; iteration++ )
+		{
+			double sin = Math.sin( lat );
+			double n = Geodesy.WGS84_A / Math.sqrt( 1.0 - Geodesy.WGS84_E2*sin*sin );
+			double cos = Math.cos( lat );
+			// near the poles cos is ~0, so take the height off z instead
+			alt = Math.abs(cos) > 1e-3 ? p/cos - n : z/sin - n*(1.0-Geodesy.WGS84_E2);
+			double next = Math.atan2( z, p*(1.0 - Geodesy.WGS84_E2*n/(n+alt)) );
+			boolean settled = Math.abs( next-lat ) < 1e-15;
+			lat = next;
+			if( settled )
+				break;
+		}
+
+		out[0] = Math.toDegrees( lat );
+		out[1] = Math.toDegrees( Math.atan2(y,x) );
+		out[2] = alt;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.server.dis.pdu.PduHeader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"PduPipelineTest"})
+public class PduPipelineTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	/**
+	 * Anything too short to hold a PDU header is dropped and counted, rather than read past
+	 * the end of while working out which shard it belongs to.
+	 */
+	@Test
+	public void testRuntsAreDropped()
+	{
+		PduPipeline pipeline = new PduPipeline( 4, 4096 );
+		for( int length = 0; length < PduHeader.HEADER_LENGTH; length++ )
+		{
+			ByteBuffer packet = ByteBuffer.allocate( length );
+			Assert.assertEquals( pipeline.shardOf(packet), 0 );
+			Assert.assertFalse( pipeline.route(packet,0L), "Length "+length );
+		}
+
+		// a short packet sitting at the end of a larger buffer is still short
+		ByteBuffer packet = ByteBuffer.allocate( 64 );
+		packet.position( 60 );
+		Assert.assertFalse( pipeline.route(packet,0L) );
+
+		Assert.assertEquals( pipeline.getRunts(), PduHeader.HEADER_LENGTH+1 );
+		Assert.assertEquals( pipeline.getDropped(), 0 );
+		for( int shard = 0; shard < 4; shard++ )
+			Assert.assertEquals( pipeline.getQueueDepth(shard), 0 );
+	}
+
+	@Test
+	public void testHeaderOnlyIsRouted() throws Exception
+	{
+		PduPipeline pipeline = new PduPipeline( 4, 4096 );
+		CountDownLatch received = new CountDownLatch( 1 );
+		AtomicInteger length = new AtomicInteger();
+		pipeline.addPduListener( (buffer,time) -> {
+			length.set( buffer.remaining() );
+			received.countDown();
+		});
+
+		pipeline.startup( logger );
+		try
+		{
+			Assert.assertFalse( pipeline.route(ByteBuffer.allocate(1),0L) );
+
+			ByteBuffer packet = ByteBuffer.allocate( PduHeader.HEADER_LENGTH );
+			packet.put( 1, (byte)3 );
+			Assert.assertTrue( pipeline.route(packet,0L) );
+			Assert.assertTrue( received.await(5,TimeUnit.SECONDS) );
+			Assert.assertEquals( length.get(), PduHeader.HEADER_LENGTH );
+		}
+		finally
+		{
+			pipeline.shutdown();
+		}
+
+		// only the packet that could be routed ever reached a shard
+		Assert.assertEquals( pipeline.getProcessed(), 1 );
+		Assert.assertEquals( pipeline.getRunts(), 1 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,288 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"SpscRingBufferTest"})
+public class SpscRingBufferTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Test
+	public void testCapacityRoundsUp()
+	{
+		Assert.assertEquals( new SpscRingBuffer(1).getCapacity(), 4096 );
+		Assert.assertEquals( new SpscRingBuffer(5000).getCapacity(), 8192 );
+		Assert.assertEquals( new SpscRingBuffer(8192).getCapacity(), 8192 );
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		Assert.assertEquals( ring.drain((packet,time) -> Assert.fail("Drained from empty ring"),16), 0 );
+		Assert.assertEquals( ring.getDepth(), 0 );
+
+		// and empty again once everything offered has been drained
+		Assert.assertTrue( ring.offer(packet(0,100),1L) );
+		Assert.assertEquals( ring.drain((packet,time) -> {},16), 1 );
+		Assert.assertEquals( ring.drain((packet,time) -> Assert.fail("Drained twice"),16), 0 );
+		Assert.assertEquals( ring.getDepth(), 0 );
+	}
+
+	@Test
+	public void testOfferLeavesSourceAlone()
+	{
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		ByteBuffer source = packet( 3, 40 );
+		source.position( 8 );
+		Assert.assertTrue( ring.offer(source,99L) );
+		Assert.assertEquals( source.position(), 8 );
+		Assert.assertEquals( source.limit(), 40 );
+
+		List<byte[]> drained = new ArrayList<>();
+		ring.drain( (packet,time) -> {
+			Assert.assertEquals( time, 99L );
+			drained.add( copy(packet) );
+		}, 16 );
+
+		Assert.assertEquals( drained.size(), 1 );
+		Assert.assertEquals( drained.get(0).length, 32 );
+		Assert.assertEquals( drained.get(0)[0], (byte)(3+8) );
+	}
+
+	@Test
+	public void testFull()
+	{
+		// 100 bytes of data is a 128 byte record, so exactly 32 fit
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		for( int i = 0; i < 32; i++ )
+			Assert.assertTrue( ring.offer(packet(i,100),i), "Offer "+i );
+
+		Assert.assertEquals( ring.getDepth(), 4096 );
+		Assert.assertFalse( ring.offer(packet(32,100),32) );
+		Assert.assertFalse( ring.offer(packet(32,1),32) );
+		Assert.assertEquals( ring.getRejected(), 2 );
+
+		// taking one out makes room for exactly one more
+		Assert.assertEquals( ring.drain((packet,time) -> Assert.assertEquals(time,0L),1), 1 );
+		Assert.assertTrue( ring.offer(packet(32,100),32) );
+		Assert.assertFalse( ring.offer(packet(33,100),33) );
+		Assert.assertEquals( ring.getRejected(), 3 );
+
+		// everything comes out in order, with nothing lost from the rejections
+		long[] expected = { 1 };
+		Assert.assertEquals( drainAll(ring,(packet,time) -> {
+			Assert.assertEquals( time, expected[0] );
+			Assert.assertEquals( packet.get(packet.position()), (byte)expected[0]++ );
+		}), 32 );
+	}
+
+	@Test
+	public void testDrainLimit()
+	{
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		for( int i = 0; i < 10; i++ )
+			ring.offer( packet(i,20), i );
+
+		Assert.assertEquals( ring.drain((packet,time) -> {},4), 4 );
+		Assert.assertEquals( ring.drain((packet,time) -> {},4), 4 );
+		Assert.assertEquals( ring.drain((packet,time) -> Assert.assertTrue(time >= 8),4), 2 );
+	}
+
+	/**
+	 * Records never wrap, so one that won't fit before the end of the buffer goes to the front
+	 * behind a padding record. The space is needed at the end and the front, so a packet that
+	 * would fit in the free space as a whole can still be turned away.
+	 */
+	@Test
+	public void testWrap()
+	{
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		for( int i = 0; i < 31; i++ )
+			Assert.assertTrue( ring.offer(packet(i,100),i) );
+		Assert.assertEquals( ring.drain((packet,time) -> {},30), 30 );
+
+		// 128 bytes free at the end and 3840 at the front: a 200 byte packet skips the end
+		Assert.assertTrue( ring.offer(packet(31,200),31) );
+		Assert.assertEquals( ring.getDepth(), 128 + 128 + 224 );
+
+		List<byte[]> drained = new ArrayList<>();
+		Assert.assertEquals( drainAll(ring,(packet,time) -> drained.add(copy(packet))), 2 );
+		check( drained.get(0), 30, 100 );
+		check( drained.get(1), 31, 200 );
+		Assert.assertEquals( ring.getDepth(), 0 );
+	}
+
+	/**
+	 * Random sized packets through a small ring, many times round, with the contents checked
+	 * on the way out.
+	 */
+	@Test
+	public void testManyWraps()
+	{
+		Random random = new Random( 3 );
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		List<byte[]> drained = new ArrayList<>();
+		long offered = 0;
+		long checked = 0;
+		int[] lengths = new int[64];
+		while( offered < 20000 )
+		{
+			int burst = random.nextInt( 8 );
+			for( int i = 0; i < burst; i++ )
+			{
+				int length = 1 + random.nextInt( 1500 );
+				if( ring.offer(packet((int)offered,length),offered) )
+					lengths[(int)(offered++ & 63)] = length;
+			}
+
+			drained.clear();
+			ring.drain( (packet,time) -> drained.add(copy(packet)), 1+random.nextInt(8) );
+			for( byte[] packet : drained )
+			{
+				check( packet, (int)checked, lengths[(int)(checked & 63)] );
+				++checked;
+			}
+
+			Assert.assertTrue( offered-checked < 64 );
+		}
+	}
+
+	/**
+	 * A handler blowing up must not leave the packet at the head of the ring to be handed
+	 * back (and blow up) forever.
+	 */
+	@Test
+	public void testHandlerExceptionSkipsPacket()
+	{
+		SpscRingBuffer ring = new SpscRingBuffer( 4096 );
+		for( int i = 0; i < 3; i++ )
+			ring.offer( packet(i,20), i );
+
+		try
+		{
+			ring.drain( (packet,time) -> { if( time == 1 ) throw new IllegalStateException(); }, 16 );
+			Assert.fail( "Expected the handler's exception" );
+		}
+		catch( IllegalStateException expected )
+		{
+			// expected
+		}
+
+		List<Long> times = new ArrayList<>();
+		Assert.assertEquals( ring.drain((packet,time) -> times.add(time),16), 1 );
+		Assert.assertEquals( times.get(0), Long.valueOf(2) );
+	}
+
+	@Test(timeOut=30000)
+	public void testProducerAndConsumerThreads() throws Exception
+	{
+		final int packets = 200000;
+		SpscRingBuffer ring = new SpscRingBuffer( 8192 );
+		Thread producer = new Thread( () -> {
+			ByteBuffer packet = ByteBuffer.allocate( 64 );
+			for( int i = 0; i < packets; )
+			{
+				packet.clear();
+				packet.putInt( 0, i ).limit( 4 + (i % 60) );
+				if( ring.offer(packet,i) )
+					++i;
+				else
+					Thread.yield();
+			}
+		}, "producer" );
+		producer.start();
+
+		long[] next = { 0 };
+		while( next[0] < packets )
+		{
+			int drained = ring.drain( (packet,time) -> {
+				if( time != next[0] || packet.getInt(packet.position()) != (int)time ||
+				    packet.remaining() != 4 + (time % 60) )
+					throw new AssertionError( "Packet "+next[0]+" came out as "+time );
+				++next[0];
+			}, 256 );
+
+			if( drained == 0 )
+				Thread.yield();
+		}
+
+		producer.join();
+		Assert.assertEquals( ring.getDepth(), 0 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Drain until the ring is empty. A single drain only goes as far as the producer's
+	 * position when it last looked, so anything offered since comes out on the next one.
+	 */
+	private static int drainAll( SpscRingBuffer ring, SpscRingBuffer.Handler handler )
+	{
+		int total = 0;
+		int drained;
+		while( (drained = ring.drain(handler,Integer.MAX_VALUE)) > 0 )
+			total += drained;
+		return total;
+	}
+
+	/** A packet of the given length whose bytes count up from the given seed */
+	private static ByteBuffer packet( int seed, int length )
+	{
+		ByteBuffer packet = ByteBuffer.allocate( length );
+		for( int i = 0; i < length; i++ )
+			packet.put( i, (byte)(seed+i) );
+		return packet;
+	}
+
+	private static byte[] copy( ByteBuffer packet )
+	{
+		byte[] bytes = new byte[packet.remaining()];
+		packet.duplicate().get( bytes );
+		return bytes;
+	}
+
+	private static void check( byte[] packet, int seed, int length )
+	{
+		Assert.assertEquals( packet.length, length, "Length of packet "+seed );
+		for( int i = 0; i < length; i++ )
+			Assert.assertEquals( packet[i], (byte)(seed+i), "Byte "+i+" of packet "+seed );
+	}
+}
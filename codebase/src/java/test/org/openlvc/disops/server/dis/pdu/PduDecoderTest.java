@@ -0,0 +1,398 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.dis.pdu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"PduDecoderTest"})
+public class PduDecoderTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private PduDecoder decoder;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		this.decoder = new PduDecoder();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Header Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testHeader()
+	{
+		ByteBuffer buffer = header( 64, PduType.Comment, 32 );
+		buffer.putInt( 4, 0x80000001 );
+		buffer.put( 10, (byte)0x42 );
+
+		PduHeader pdu = decoder.decode( buffer );
+		Assert.assertSame( pdu, decoder.getHeader() );
+		Assert.assertEquals( pdu.getProtocolVersion(), 7 );
+		Assert.assertEquals( pdu.getExerciseId(), 9 );
+		Assert.assertEquals( pdu.getPduTypeValue(), 22 );
+		Assert.assertEquals( pdu.getPduType(), PduType.Comment );
+		Assert.assertEquals( pdu.getProtocolFamily(), 5 );
+		Assert.assertEquals( pdu.getTimestamp(), 0x80000001L );
+		Assert.assertEquals( pdu.getLength(), 32 );
+		Assert.assertEquals( pdu.getPduStatus(), 0x42 );
+	}
+
+	@Test
+	public void testUnknownTypeIsOther()
+	{
+		ByteBuffer buffer = header( 16, PduType.Other, 16 );
+		buffer.put( 2, (byte)200 );
+
+		PduHeader pdu = decoder.decode( buffer );
+		Assert.assertNotNull( pdu );
+		Assert.assertEquals( pdu.getPduTypeValue(), 200 );
+		Assert.assertEquals( pdu.getPduType(), PduType.Other );
+	}
+
+	@Test
+	public void testDecodeAtOffset()
+	{
+		// two PDUs back to back, as they would arrive in a bundled datagram
+		ByteBuffer buffer = ByteBuffer.allocate( 16+FirePdu.MINIMUM_LENGTH );
+		writeHeader( buffer, 0, PduType.Comment, 16 );
+		writeHeader( buffer, 16, PduType.Fire, FirePdu.MINIMUM_LENGTH );
+		buffer.putShort( 16+12, (short)3 );
+
+		PduHeader first = decoder.decode( buffer, 0 );
+		Assert.assertEquals( first.getPduType(), PduType.Comment );
+		PduHeader second = decoder.decode( buffer, 16 );
+		Assert.assertSame( second, decoder.getFire() );
+		Assert.assertEquals( second.getOffset(), 16 );
+		Assert.assertEquals( EntityIds.getSite(decoder.getFire().getFiringEntityId()), 3 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// PDU Type Methods   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testEntityState()
+	{
+		int length = EntityStatePdu.MINIMUM_LENGTH + 16;
+		ByteBuffer buffer = header( length, PduType.EntityState, length );
+		buffer.putShort( 12, (short)1 ).putShort( 14, (short)2 ).putShort( 16, (short)65535 );
+		buffer.put( 18, (byte)2 );
+		buffer.put( 19, (byte)1 );
+		buffer.putLong( 20, 0x0101_00e1_0101_0300L );
+		buffer.putLong( 28, 0x0102_00e1_0000_0000L );
+		buffer.putFloat( 36, 1.5f ).putFloat( 40, -2.5f ).putFloat( 44, 3.5f );
+		buffer.putDouble( 48, -2707000.25 ).putDouble( 56, -4353000.5 ).putDouble( 64, 3781000.75 );
+		buffer.putFloat( 72, 0.1f ).putFloat( 76, 0.2f ).putFloat( 80, 0.3f );
+		buffer.putInt( 84, 0x00800001 );
+		buffer.put( 88, (byte)4 );
+		buffer.putFloat( 104, 0.25f ).putFloat( 108, 0.5f ).putFloat( 112, 0.75f );
+		buffer.putFloat( 116, -0.01f ).putFloat( 120, 0.02f ).putFloat( 124, -0.03f );
+		buffer.put( 128, (byte)1 );
+		buffer.position( 129 );
+		buffer.put( "TANK 1".getBytes(StandardCharsets.US_ASCII) );
+		buffer.position( 0 );
+		buffer.putInt( 140, 0x12345678 );
+
+		EntityStatePdu pdu = (EntityStatePdu)decoder.decode( buffer );
+		Assert.assertSame( pdu, decoder.getEntityState() );
+		Assert.assertEquals( pdu.getEntityId(), EntityIds.pack(1,2,65535) );
+		Assert.assertEquals( pdu.getSiteId(), 1 );
+		Assert.assertEquals( pdu.getApplicationId(), 2 );
+		Assert.assertEquals( pdu.getEntityNumber(), 65535 );
+		Assert.assertEquals( pdu.getForceId(), 2 );
+		Assert.assertEquals( pdu.getArticulationParameterCount(), 1 );
+		Assert.assertEquals( pdu.getEntityType(), 0x0101_00e1_0101_0300L );
+		Assert.assertEquals( pdu.getAlternativeEntityType(), 0x0102_00e1_0000_0000L );
+		Assert.assertEquals( pdu.getVelocityX(), 1.5f );
+		Assert.assertEquals( pdu.getVelocityY(), -2.5f );
+		Assert.assertEquals( pdu.getVelocityZ(), 3.5f );
+		Assert.assertEquals( pdu.getLocationX(), -2707000.25 );
+		Assert.assertEquals( pdu.getLocationY(), -4353000.5 );
+		Assert.assertEquals( pdu.getLocationZ(), 3781000.75 );
+		Assert.assertEquals( pdu.getPsi(), 0.1f );
+		Assert.assertEquals( pdu.getTheta(), 0.2f );
+		Assert.assertEquals( pdu.getPhi(), 0.3f );
+		Assert.assertEquals( pdu.getAppearance(), 0x00800001 );
+		Assert.assertEquals( pdu.getDeadReckoningAlgorithm(), 4 );
+		Assert.assertEquals( pdu.getAccelerationX(), 0.25f );
+		Assert.assertEquals( pdu.getAccelerationY(), 0.5f );
+		Assert.assertEquals( pdu.getAccelerationZ(), 0.75f );
+		Assert.assertEquals( pdu.getAngularVelocityX(), -0.01f );
+		Assert.assertEquals( pdu.getAngularVelocityY(), 0.02f );
+		Assert.assertEquals( pdu.getAngularVelocityZ(), -0.03f );
+		Assert.assertEquals( pdu.getMarkingCharacterSet(), 1 );
+		Assert.assertEquals( pdu.getMarkingLength(), 6 );
+		Assert.assertEquals( pdu.getMarkingString(), "TANK 1" );
+		Assert.assertEquals( pdu.getMarkingOffset(), 129 );
+		Assert.assertEquals( pdu.getCapabilities(), 0x12345678 );
+		Assert.assertEquals( pdu.getArticulationParameterOffset(0), 144 );
+	}
+
+	@Test
+	public void testEntityStateMarkingFillsField()
+	{
+		ByteBuffer buffer = header( EntityStatePdu.MINIMUM_LENGTH,
+		                            PduType.EntityState,
+		                            EntityStatePdu.MINIMUM_LENGTH );
+		buffer.position( 129 );
+		buffer.put( "ABCDEFGHIJK".getBytes(StandardCharsets.US_ASCII) );
+		buffer.position( 0 );
+
+		EntityStatePdu pdu = (EntityStatePdu)decoder.decode( buffer );
+		Assert.assertEquals( pdu.getMarkingLength(), EntityStatePdu.MARKING_LENGTH );
+		Assert.assertEquals( pdu.getMarkingString(), "ABCDEFGHIJK" );
+	}
+
+	@Test
+	public void testFire()
+	{
+		ByteBuffer buffer = header( FirePdu.MINIMUM_LENGTH, PduType.Fire, FirePdu.MINIMUM_LENGTH );
+		putEntityId( buffer, 12, 1, 2, 3 );
+		putEntityId( buffer, 18, 4, 5, 6 );
+		putEntityId( buffer, 24, 7, 8, 9 );
+		putEntityId( buffer, 30, 10, 11, 12 );
+		buffer.putInt( 36, 0xfffffffe );
+		buffer.putDouble( 40, 1.0 ).putDouble( 48, 2.0 ).putDouble( 56, 3.0 );
+		buffer.putLong( 64, 0x0202_00e1_0201_0000L );
+		buffer.putShort( 72, (short)1000 ).putShort( 74, (short)2000 );
+		buffer.putShort( 76, (short)4 ).putShort( 78, (short)60 );
+		buffer.putFloat( 80, 100f ).putFloat( 84, 200f ).putFloat( 88, 300f );
+		buffer.putFloat( 92, 5000f );
+
+		FirePdu pdu = (FirePdu)decoder.decode( buffer );
+		Assert.assertSame( pdu, decoder.getFire() );
+		Assert.assertEquals( pdu.getFiringEntityId(), EntityIds.pack(1,2,3) );
+		Assert.assertEquals( pdu.getTargetEntityId(), EntityIds.pack(4,5,6) );
+		Assert.assertEquals( pdu.getMunitionEntityId(), EntityIds.pack(7,8,9) );
+		Assert.assertEquals( pdu.getEventId(), EntityIds.pack(10,11,12) );
+		Assert.assertEquals( pdu.getFireMissionIndex(), 0xfffffffeL );
+		Assert.assertEquals( pdu.getLocationX(), 1.0 );
+		Assert.assertEquals( pdu.getLocationY(), 2.0 );
+		Assert.assertEquals( pdu.getLocationZ(), 3.0 );
+		Assert.assertEquals( pdu.getMunitionType(), 0x0202_00e1_0201_0000L );
+		Assert.assertEquals( pdu.getWarhead(), 1000 );
+		Assert.assertEquals( pdu.getFuse(), 2000 );
+		Assert.assertEquals( pdu.getQuantity(), 4 );
+		Assert.assertEquals( pdu.getRate(), 60 );
+		Assert.assertEquals( pdu.getVelocityX(), 100f );
+		Assert.assertEquals( pdu.getVelocityY(), 200f );
+		Assert.assertEquals( pdu.getVelocityZ(), 300f );
+		Assert.assertEquals( pdu.getRange(), 5000f );
+	}
+
+	@Test
+	public void testDetonation()
+	{
+		ByteBuffer buffer = header( DetonationPdu.MINIMUM_LENGTH,
+		                            PduType.Detonation,
+		                            DetonationPdu.MINIMUM_LENGTH );
+		putEntityId( buffer, 12, 1, 2, 3 );
+		putEntityId( buffer, 18, 4, 5, 6 );
+		putEntityId( buffer, 24, 7, 8, 9 );
+		putEntityId( buffer, 30, 10, 11, 12 );
+		buffer.putFloat( 36, -1f ).putFloat( 40, -2f ).putFloat( 44, -3f );
+		buffer.putDouble( 48, 10.5 ).putDouble( 56, 20.5 ).putDouble( 64, 30.5 );
+		buffer.putLong( 72, 0x0202_00e1_0201_0000L );
+		buffer.putShort( 80, (short)1000 ).putShort( 82, (short)2000 );
+		buffer.putShort( 84, (short)1 ).putShort( 86, (short)0 );
+		buffer.putFloat( 88, 0.5f ).putFloat( 92, 1.5f ).putFloat( 96, 2.5f );
+		buffer.put( 100, (byte)5 );
+		buffer.put( 101, (byte)0 );
+
+		DetonationPdu pdu = (DetonationPdu)decoder.decode( buffer );
+		Assert.assertSame( pdu, decoder.getDetonation() );
+		Assert.assertEquals( pdu.getFiringEntityId(), EntityIds.pack(1,2,3) );
+		Assert.assertEquals( pdu.getTargetEntityId(), EntityIds.pack(4,5,6) );
+		Assert.assertEquals( pdu.getMunitionEntityId(), EntityIds.pack(7,8,9) );
+		Assert.assertEquals( pdu.getEventId(), EntityIds.pack(10,11,12) );
+		Assert.assertEquals( pdu.getVelocityX(), -1f );
+		Assert.assertEquals( pdu.getVelocityY(), -2f );
+		Assert.assertEquals( pdu.getVelocityZ(), -3f );
+		Assert.assertEquals( pdu.getLocationX(), 10.5 );
+		Assert.assertEquals( pdu.getLocationY(), 20.5 );
+		Assert.assertEquals( pdu.getLocationZ(), 30.5 );
+		Assert.assertEquals( pdu.getMunitionType(), 0x0202_00e1_0201_0000L );
+		Assert.assertEquals( pdu.getWarhead(), 1000 );
+		Assert.assertEquals( pdu.getFuse(), 2000 );
+		Assert.assertEquals( pdu.getQuantity(), 1 );
+		Assert.assertEquals( pdu.getRate(), 0 );
+		Assert.assertEquals( pdu.getEntityLocationX(), 0.5f );
+		Assert.assertEquals( pdu.getEntityLocationY(), 1.5f );
+		Assert.assertEquals( pdu.getEntityLocationZ(), 2.5f );
+		Assert.assertEquals( pdu.getDetonationResult(), 5 );
+		Assert.assertEquals( pdu.getArticulationParameterCount(), 0 );
+	}
+
+	@Test
+	public void testSignal()
+	{
+		int length = SignalPdu.MINIMUM_LENGTH + 4;
+		ByteBuffer buffer = header( length, PduType.Signal, length );
+		putEntityId( buffer, 12, 1, 2, 3 );
+		buffer.putShort( 18, (short)1 );
+		buffer.putShort( 20, (short)0x4001 );
+		buffer.putShort( 22, (short)0 );
+		buffer.putInt( 24, 8000 );
+		buffer.putShort( 28, (short)25 );
+		buffer.putShort( 30, (short)3 );
+
+		SignalPdu pdu = (SignalPdu)decoder.decode( buffer );
+		Assert.assertSame( pdu, decoder.getSignal() );
+		Assert.assertEquals( pdu.getEntityId(), EntityIds.pack(1,2,3) );
+		Assert.assertEquals( pdu.getRadioId(), 1 );
+		Assert.assertEquals( pdu.getEncodingScheme(), 0x4001 );
+		Assert.assertEquals( pdu.getTdlType(), 0 );
+		Assert.assertEquals( pdu.getSampleRate(), 8000L );
+		Assert.assertEquals( pdu.getDataLengthBits(), 25 );
+		Assert.assertEquals( pdu.getDataLengthBytes(), 4 );
+		Assert.assertEquals( pdu.getSampleCount(), 3 );
+		Assert.assertEquals( pdu.getDataOffset(), 32 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Validation Methods   ///////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testShorterThanHeader()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( PduHeader.HEADER_LENGTH-1 );
+		Assert.assertNull( decoder.decode(buffer) );
+		Assert.assertEquals( decoder.getInvalidCount(), 1 );
+
+		// a header at the end of a bundle that runs past the limit
+		buffer = header( 20, PduType.Comment, 12 );
+		Assert.assertNull( decoder.decode(buffer,10) );
+		Assert.assertEquals( decoder.getInvalidCount(), 2 );
+	}
+
+	@Test
+	public void testTruncatedBody()
+	{
+		// every type with a fixed body fails when the buffer stops one byte short of it
+		Object[][] types = new Object[][]{ { PduType.EntityState, EntityStatePdu.MINIMUM_LENGTH },
+		                                   { PduType.Fire,        FirePdu.MINIMUM_LENGTH },
+		                                   { PduType.Detonation,  DetonationPdu.MINIMUM_LENGTH },
+		                                   { PduType.Signal,      SignalPdu.MINIMUM_LENGTH } };
+		int expectedInvalid = 0;
+		for( Object[] type : types )
+		{
+			PduType pduType = (PduType)type[0];
+			int minimum = (Integer)type[1];
+
+			ByteBuffer buffer = header( minimum-1, pduType, minimum-1 );
+			Assert.assertNull( decoder.decode(buffer), pduType.name() );
+			Assert.assertEquals( decoder.getInvalidCount(), ++expectedInvalid );
+
+			// the header claims the full length but the datagram was cut short
+			buffer = header( minimum-1, pduType, minimum );
+			Assert.assertNull( decoder.decode(buffer), pduType.name() );
+			Assert.assertEquals( decoder.getInvalidCount(), ++expectedInvalid );
+
+			buffer = header( minimum, pduType, minimum );
+			Assert.assertNotNull( decoder.decode(buffer), pduType.name() );
+			Assert.assertEquals( decoder.getInvalidCount(), expectedInvalid );
+		}
+	}
+
+	@Test
+	public void testLengthMismatch()
+	{
+		int minimum = EntityStatePdu.MINIMUM_LENGTH;
+
+		// declared length longer than the bytes we have
+		ByteBuffer buffer = header( minimum+8, PduType.EntityState, minimum+16 );
+		Assert.assertNull( decoder.decode(buffer) );
+
+		// declared length shorter than the fixed part, even though the bytes are there
+		buffer = header( minimum+8, PduType.EntityState, minimum-4 );
+		Assert.assertNull( decoder.decode(buffer) );
+		Assert.assertEquals( decoder.getInvalidCount(), 2 );
+
+		// declared length shorter than the buffer is fine, the rest is the next PDU
+		buffer = header( minimum+8, PduType.EntityState, minimum );
+		Assert.assertNotNull( decoder.decode(buffer) );
+		Assert.assertEquals( decoder.getInvalidCount(), 2 );
+
+		// a limit set inside a larger array is honoured
+		buffer = header( minimum+8, PduType.EntityState, minimum );
+		buffer.limit( minimum-1 );
+		Assert.assertNull( decoder.decode(buffer) );
+		Assert.assertFalse( decoder.getEntityState().isValid() );
+	}
+
+	@Test
+	public void testHeaderValidity()
+	{
+		PduHeader header = new PduHeader();
+		Assert.assertTrue( header.wrap(header(12,PduType.Other,12)).isValid() );
+		Assert.assertFalse( header.wrap(header(12,PduType.Other,11)).isValid() );
+		Assert.assertFalse( header.wrap(header(12,PduType.Other,13)).isValid() );
+		Assert.assertFalse( header.wrap(header(12,PduType.Other,0)).isValid() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private ByteBuffer header( int capacity, PduType type, int length )
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( capacity );
+		writeHeader( buffer, 0, type, Math.min(length,0xffff) );
+		return buffer;
+	}
+
+	private void writeHeader( ByteBuffer buffer, int offset, PduType type, int length )
+	{
+		if( buffer.capacity()-offset < PduHeader.HEADER_LENGTH )
+			return;
+
+		buffer.put( offset, (byte)7 );
+		buffer.put( offset+1, (byte)9 );
+		buffer.put( offset+2, (byte)type.value() );
+		buffer.put( offset+3, (byte)5 );
+		buffer.putShort( offset+8, (short)length );
+	}
+
+	private void putEntityId( ByteBuffer buffer, int offset, int site, int app, int entity )
+	{
+		buffer.putShort( offset, (short)site )
+		      .putShort( offset+2, (short)app )
+		      .putShort( offset+4, (short)entity );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
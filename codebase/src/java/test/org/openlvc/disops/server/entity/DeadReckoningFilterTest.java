@@ -0,0 +1,465 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test(groups={"DeadReckoningFilterTest"})
+public class DeadReckoningFilterTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int EXERCISE = 1;
+
+	private static final double POSITION_THRESHOLD = 0.01;
+	private static final double ORIENTATION_THRESHOLD = 1e-4;
+	private static final long KEYFRAME_INTERVAL = 5000;
+
+	private static final int TRIALS = 25;
+	private static final int STEPS = 4000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ByteBuffer buffer = ByteBuffer.allocate( EntityStatePdu.MINIMUM_LENGTH );
+	private EntityStatePdu pdu = new EntityStatePdu();
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Extrapolation Methods   ////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@DataProvider(name="algorithms")
+	public Object[][] algorithms()
+	{
+		return new Object[][]{ { DeadReckoningFilter.DRM_FPW },
+		                       { DeadReckoningFilter.DRM_RPW },
+		                       { DeadReckoningFilter.DRM_RVW },
+		                       { DeadReckoningFilter.DRM_FVW },
+		                       { DeadReckoningFilter.DRM_FPB },
+		                       { DeadReckoningFilter.DRM_RPB },
+		                       { DeadReckoningFilter.DRM_RVB },
+		                       { DeadReckoningFilter.DRM_FVB } };
+	}
+
+	/**
+	 * Integrate the motion each algorithm describes step by step, and check that the filter
+	 * suppresses a PDU reporting exactly where the entity got to, but writes one that is off
+	 * by a little more than either threshold.
+	 */
+	@Test(dataProvider="algorithms")
+	public void testExtrapolationMatchesIntegration( int drm )
+	{
+		Random random = new Random( drm );
+		for( int trial = 0; trial < TRIALS; trial++ )
+		{
+			double[] p0 = { 4e6*random.nextDouble(), 4e6*random.nextDouble(), 4e6*random.nextDouble() };
+			double[] v0 = new double[3];
+			double[] a0 = new double[3];
+			double[] w0 = new double[3];
+			double[] e0 = { Math.PI * (2*random.nextDouble()-1),
+			                1.4 * (2*random.nextDouble()-1),
+			                Math.PI * (2*random.nextDouble()-1) };
+
+			// some trials turn slowly enough to take the series path through the coefficients
+			double turn = trial % 4 == 0 ? 1e-7 : 1.0;
+			for( int i = 0; i < 3; i++ )
+			{
+				// rounded to floats, as the PDU carries them
+				v0[i] = (float)(200 * random.nextGaussian());
+				a0[i] = (float)(10 * random.nextGaussian());
+				w0[i] = (float)(turn * random.nextGaussian());
+				e0[i] = (float)e0[i];
+			}
+
+			long elapsed = 500 + random.nextInt( 3000 );
+			double[] p = new double[3];
+			double[] e = new double[3];
+			integrate( drm, p0, v0, e0, a0, w0, elapsed/1000.0, p, e );
+
+			String trialName = "Algorithm "+drm+", trial "+trial;
+			DeadReckoningFilter filter = newFilter();
+			Assert.assertTrue( filter.filter(entityState(1,drm,0,p0,v0,e0,a0,w0),0) );
+			Assert.assertFalse( filter.filter(entityState(1,drm,0,p,v0,e,a0,w0),elapsed), trialName );
+
+			// off by more than the position threshold along one axis
+			filter = newFilter();
+			filter.filter( entityState(1,drm,0,p0,v0,e0,a0,w0), 0 );
+			double[] moved = p.clone();
+			moved[trial%3] += POSITION_THRESHOLD * 2;
+			Assert.assertTrue( filter.filter(entityState(1,drm,0,moved,v0,e,a0,w0),elapsed), trialName );
+
+			// turned by more than the orientation threshold
+			filter = newFilter();
+			filter.filter( entityState(1,drm,0,p0,v0,e0,a0,w0), 0 );
+			double[] turned = e.clone();
+			turned[2] += ORIENTATION_THRESHOLD * 3;
+			Assert.assertTrue( filter.filter(entityState(1,drm,0,p,v0,turned,a0,w0),elapsed), trialName );
+		}
+	}
+
+	@Test
+	public void testStaticIsNotExtrapolated()
+	{
+		double[] zero = new double[3];
+		double[] velocity = { 100, 0, 0 };
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_STATIC,0,zero,velocity,zero,zero,zero), 0 );
+
+		// a static entity that hasn't moved is suppressed whatever velocity it reports
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_STATIC,0,zero,velocity,zero,zero,zero),1000) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_STATIC,0,velocity,velocity,zero,zero,zero),2000) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Threshold Methods   ////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testPositionThreshold()
+	{
+		double[] zero = new double[3];
+		double[] velocity = { 10, 0, 0 };
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,velocity,zero,zero,zero), 0 );
+
+		// 1s later the entity should be 10m along x
+		double[] within = { 10 + POSITION_THRESHOLD*0.9, 0, 0 };
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,within,velocity,zero,zero,zero),1000) );
+		double[] beyond = { 10, POSITION_THRESHOLD*1.1, 0 };
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,beyond,velocity,zero,zero,zero),1000) );
+	}
+
+	@Test
+	public void testOrientationThreshold()
+	{
+		double[] zero = new double[3];
+		double threshold = 0.01;
+		DeadReckoningFilter filter = new DeadReckoningFilter( POSITION_THRESHOLD, threshold, KEYFRAME_INTERVAL, 16 );
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+
+		// about each axis in turn, just inside and just outside the threshold
+		for( int axis = 0; axis < 3; axis++ )
+		{
+			double[] within = new double[3];
+			within[axis] = threshold * 0.9;
+			Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,within,zero,zero),100),
+			                    "Axis "+axis );
+
+			double[] beyond = new double[3];
+			beyond[axis] = -threshold * 1.1;
+			Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,beyond,zero,zero),100),
+			                   "Axis "+axis );
+
+			// back to level for the next axis
+			filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,1,zero,zero,zero,zero,zero), 0 );
+			filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+		}
+
+		// the same small error split across axes is judged by the single combined rotation
+		double split = threshold * 0.8;
+		double[] combined = { split, 0, split };
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,combined,zero,zero),100) );
+	}
+
+	@Test
+	public void testRotatingOrientation()
+	{
+		double[] zero = new double[3];
+		double[] spin = { 0, 0, 0.5 };
+
+		// spinning about the body z axis, 1s later yaw should have moved on by 0.5 rad
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_RPW,0,zero,zero,zero,zero,spin), 0 );
+		double[] turned = { 0.5, 0, 0 };
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_RPW,0,zero,zero,turned,zero,spin),1000) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_RPW,0,zero,zero,zero,zero,spin),1000) );
+
+		// the fixed algorithms ignore angular velocity
+		filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,spin), 0 );
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,spin),1000) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,turned,zero,spin),1000) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Trigger Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testFirstSightingIsWritten()
+	{
+		double[] zero = new double[3];
+		DeadReckoningFilter filter = newFilter();
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),0) );
+		Assert.assertTrue( filter.filter(entityState(2,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),0) );
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),10) );
+		Assert.assertEquals( filter.getEntityCount(), 2 );
+	}
+
+	@Test
+	public void testKeyframe()
+	{
+		double[] zero = new double[3];
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),KEYFRAME_INTERVAL-1) );
+		Assert.assertEquals( filter.getKeyframes(), 0 );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),KEYFRAME_INTERVAL) );
+		Assert.assertEquals( filter.getKeyframes(), 1 );
+
+		// the keyframe is the new baseline, so the interval starts again from it
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),KEYFRAME_INTERVAL*2-1) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),KEYFRAME_INTERVAL*2) );
+		Assert.assertEquals( filter.getKeyframes(), 2 );
+	}
+
+	@Test
+	public void testAppearanceChange()
+	{
+		double[] zero = new double[3];
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0x00800000,zero,zero,zero,zero,zero),10) );
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0x00800000,zero,zero,zero,zero,zero),20) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),30) );
+		Assert.assertEquals( filter.getKeyframes(), 0 );
+	}
+
+	@Test
+	public void testAlgorithmChange()
+	{
+		double[] zero = new double[3];
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_RVW,0,zero,zero,zero,zero,zero),10) );
+		Assert.assertFalse( filter.filter(entityState(1,DeadReckoningFilter.DRM_RVW,0,zero,zero,zero,zero,zero),20) );
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_STATIC,0,zero,zero,zero,zero,zero),30) );
+	}
+
+	@Test
+	public void testRemove()
+	{
+		double[] zero = new double[3];
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+		filter.filter( entityState(2,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+
+		filter.remove( id(1) );
+		filter.remove( id(1) );
+		filter.remove( id(99) );
+		Assert.assertEquals( filter.getEntityCount(), 1 );
+
+		// forgotten, so its next PDU is written even though nothing changed
+		Assert.assertTrue( filter.filter(entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),10) );
+		Assert.assertFalse( filter.filter(entityState(2,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),10) );
+		Assert.assertEquals( filter.getEntityCount(), 2 );
+
+		// rows are reused without the old entity's state leaking into the new one
+		double[] velocity = { 50, 0, 0 };
+		for( int i = 0; i < 100; i++ )
+		{
+			filter.filter( entityState(10+i,DeadReckoningFilter.DRM_FPW,0,zero,velocity,zero,zero,zero), 0 );
+			filter.remove( id(10+i) );
+		}
+		Assert.assertTrue( filter.filter(entityState(500,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),0) );
+		Assert.assertFalse( filter.filter(entityState(500,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero),1000) );
+	}
+
+	@Test
+	public void testCounts()
+	{
+		double[] zero = new double[3];
+		double[] moved = { 1, 0, 0 };
+		DeadReckoningFilter filter = newFilter();
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 0 );
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 10 );
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,zero,zero,zero,zero,zero), 20 );
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,moved,zero,zero,zero,zero), 30 );
+		filter.filter( entityState(1,DeadReckoningFilter.DRM_FPW,0,moved,zero,zero,zero,zero), KEYFRAME_INTERVAL+30 );
+
+		Assert.assertEquals( filter.getReceived(), 5 );
+		Assert.assertEquals( filter.getWritten(), 3 );
+		Assert.assertEquals( filter.getSuppressed(), 2 );
+		Assert.assertEquals( filter.getKeyframes(), 1 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private DeadReckoningFilter newFilter()
+	{
+		return new DeadReckoningFilter( POSITION_THRESHOLD, ORIENTATION_THRESHOLD, KEYFRAME_INTERVAL, 16 );
+	}
+
+	private long id( int entity )
+	{
+		return EntityIds.withExercise( EXERCISE, EntityIds.pack(1,1,entity) );
+	}
+
+	private EntityStatePdu entityState( int entity,
+	                                    int drm,
+	                                    int appearance,
+	                                    double[] location,
+	                                    double[] velocity,
+	                                    double[] euler,
+	                                    double[] acceleration,
+	                                    double[] angular )
+	{
+		buffer.put( 0, (byte)6 );
+		buffer.put( 1, (byte)EXERCISE );
+		buffer.put( 2, (byte)1 );
+		buffer.put( 3, (byte)1 );
+		buffer.putShort( 8, (short)EntityStatePdu.MINIMUM_LENGTH );
+		buffer.putShort( 12, (short)1 ).putShort( 14, (short)1 ).putShort( 16, (short)entity );
+		for( int i = 0; i < 3; i++ )
+		{
+			buffer.putFloat( 36+i*4, (float)velocity[i] );
+			buffer.putDouble( 48+i*8, location[i] );
+			buffer.putFloat( 72+i*4, (float)euler[i] );
+			buffer.putFloat( 104+i*4, (float)acceleration[i] );
+			buffer.putFloat( 116+i*4, (float)angular[i] );
+		}
+		buffer.putInt( 84, appearance );
+		buffer.put( 88, (byte)drm );
+		return pdu.wrap( buffer, 0 );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/**
+	 * Step the motion the given algorithm describes forward by small increments, evaluating
+	 * the velocity and body orientation at the middle of each step. Leaves the final location
+	 * in "location" and the final DIS Euler angles in "euler".
+	 */
+	private static void integrate( int drm,
+	                               double[] p0,
+	                               double[] v0,
+	                               double[] e0,
+	                               double[] a0,
+	                               double[] w0,
+	                               double time,
+	                               double[] location,
+	                               double[] euler )
+	{
+		boolean rotating = drm == DeadReckoningFilter.DRM_RPW || drm == DeadReckoningFilter.DRM_RVW ||
+		                   drm == DeadReckoningFilter.DRM_RPB || drm == DeadReckoningFilter.DRM_RVB;
+		boolean body = drm >= DeadReckoningFilter.DRM_FPB;
+		boolean accelerating = drm == DeadReckoningFilter.DRM_RVW || drm == DeadReckoningFilter.DRM_FVW ||
+		                       drm == DeadReckoningFilter.DRM_RVB || drm == DeadReckoningFilter.DRM_FVB;
+
+		// body to world, and the baseline velocity in body axes
+		double[] initial = transpose( worldToBody(e0[0],e0[1],e0[2]) );
+		double[] bodyVelocity = new double[3];
+		for( int i = 0; i < 3; i++ )
+			bodyVelocity[i] = initial[i]*v0[0] + initial[3+i]*v0[1] + initial[6+i]*v0[2];
+
+		double[] rates = rotating ? w0 : new double[3];
+		double[] orientation = initial;
+		System.arraycopy( p0, 0, location, 0, 3 );
+		double step = time / STEPS;
+		for( int s = 0; s < STEPS; s++ )
+		{
+			double t = (s+0.5) * step;
+			double[] middle = body && rotating ? turn( orientation, rates, step/2 ) : initial;
+			for( int i = 0; i < 3; i++ )
+			{
+				double velocity;
+				if( body )
+				{
+					double bx = bodyVelocity[0] + (accelerating ? a0[0]*t : 0);
+					double by = bodyVelocity[1] + (accelerating ? a0[1]*t : 0);
+					double bz = bodyVelocity[2] + (accelerating ? a0[2]*t : 0);
+					velocity = middle[i*3]*bx + middle[i*3+1]*by + middle[i*3+2]*bz;
+				}
+				else
+				{
+					velocity = v0[i] + (accelerating ? a0[i]*t : 0);
+				}
+				location[i] += velocity * step;
+			}
+			orientation = turn( orientation, rates, step );
+		}
+
+		double[] end = transpose( orientation );
+		euler[0] = Math.atan2( end[1], end[0] );
+		euler[1] = -Math.asin( end[2] );
+		euler[2] = Math.atan2( end[5], end[8] );
+	}
+
+	/** World to body rotation matrix (row major) for the DIS Euler angles */
+	private static double[] worldToBody( double psi, double theta, double phi )
+	{
+		double cp = Math.cos( psi ),   sp = Math.sin( psi );
+		double ct = Math.cos( theta ), st = Math.sin( theta );
+		double cf = Math.cos( phi ),   sf = Math.sin( phi );
+		return new double[]{ ct*cp,            ct*sp,            -st,
+		                     sf*st*cp - cf*sp, sf*st*sp + cf*cp, sf*ct,
+		                     cf*st*cp + sf*sp, cf*st*sp - sf*cp, cf*ct };
+	}
+
+	/** @return The body to world matrix turned by the body rates over the given time */
+	private static double[] turn( double[] bodyToWorld, double[] rates, double time )
+	{
+		double[] exp = { 1,0,0, 0,1,0, 0,0,1 };
+		double rate = Math.sqrt( rates[0]*rates[0] + rates[1]*rates[1] + rates[2]*rates[2] );
+		if( rate > 0 )
+		{
+			// Rodrigues: I + sin(a)K + (1-cos(a))K^2 for the unit axis K
+			double sin = Math.sin( rate*time );
+			double cos = 1.0 - Math.cos( rate*time );
+			double x = rates[0]/rate, y = rates[1]/rate, z = rates[2]/rate;
+			double[] k = { 0,-z,y, z,0,-x, -y,x,0 };
+			double[] k2 = multiply( k, k );
+			for( int i = 0; i < 9; i++ )
+				exp[i] += sin*k[i] + cos*k2[i];
+		}
+		return multiply( bodyToWorld, exp );
+	}
+
+	private static double[] multiply( double[] a, double[] b )
+	{
+		double[] result = new double[9];
+		for( int i = 0; i < 3; i++ )
+			for( int j = 0; j < 3; j++ )
+				for( int k = 0; k < 3; k++ )
+					result[i*3+j] += a[i*3+k] * b[k*3+j];
+		return result;
+	}
+
+	private static double[] transpose( double[] m )
+	{
+		return new double[]{ m[0], m[3], m[6], m[1], m[4], m[7], m[2], m[5], m[8] };
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test(groups={"EntityTableTest"})
+public class EntityTableTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int EXERCISE = 1;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ByteBuffer buffer = ByteBuffer.allocate( EntityStatePdu.MINIMUM_LENGTH );
+	private EntityStatePdu pdu = new EntityStatePdu();
+	private EntityRecord record = new EntityRecord();
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@DataProvider(name="storage")
+	public Object[][] storage()
+	{
+		return new Object[][]{ {false}, {true} };
+	}
+
+	@Test(dataProvider="storage")
+	public void testUpdateAndGet( boolean offHeap )
+	{
+		EntityTable table = new EntityTable( 16, offHeap );
+		Assert.assertTrue( table.update(entityState(1,2,3,100.0),10L) );
+		Assert.assertFalse( table.update(entityState(1,2,3,200.0),20L) );
+		Assert.assertEquals( table.size(), 1 );
+
+		long id = id( 1, 2, 3 );
+		Assert.assertTrue( table.get(id,record) );
+		Assert.assertEquals( record.id, id );
+		Assert.assertEquals( record.locationX, 200.0 );
+		Assert.assertEquals( record.lastHeard, 20L );
+		Assert.assertFalse( table.get(id(1,2,4),record) );
+
+		// same entity in another exercise is a different entity
+		Assert.assertFalse( table.contains(EntityIds.withExercise(EXERCISE+1,EntityIds.pack(1,2,3))) );
+	}
+
+	@Test(dataProvider="storage")
+	public void testGrow( boolean offHeap )
+	{
+		EntityTable table = new EntityTable( 1, offHeap );
+		int initialCapacity = table.getCapacity();
+		for( int i = 0; i < 10000; i++ )
+			Assert.assertTrue( table.update(entityState(1,1+i/1000,i,i),i) );
+
+		Assert.assertEquals( table.size(), 10000 );
+		Assert.assertTrue( table.getCapacity() > initialCapacity );
+		Assert.assertTrue( table.getCapacity()*0.6 >= 10000 );
+
+		// every entity made it across every rehash with its state intact
+		for( int i = 0; i < 10000; i++ )
+		{
+			Assert.assertTrue( table.get(id(1,1+i/1000,i),record), "Missing entity "+i );
+			Assert.assertEquals( record.locationX, (double)i );
+			Assert.assertEquals( record.lastHeard, (long)i );
+		}
+
+		Set<Long> seen = new HashSet<>();
+		table.forEach( new EntityRecord(), visited -> seen.add(visited.id) );
+		Assert.assertEquals( seen.size(), 10000 );
+	}
+
+	@Test(dataProvider="storage")
+	public void testRemoveAndReinsert( boolean offHeap )
+	{
+		EntityTable table = new EntityTable( 16, offHeap );
+		for( int i = 0; i < 8; i++ )
+			table.update( entityState(1,1,i,i), i );
+
+		Assert.assertTrue( table.remove(id(1,1,3)) );
+		Assert.assertFalse( table.remove(id(1,1,3)) );
+		Assert.assertFalse( table.contains(id(1,1,3)) );
+		Assert.assertEquals( table.size(), 7 );
+
+		// the rest, including anything that probed past the removed slot, are still there
+		for( int i = 0; i < 8; i++ )
+			Assert.assertEquals( table.contains(id(1,1,i)), i != 3, "Entity "+i );
+
+		// back in as a new entity, with the new state rather than the old
+		Assert.assertTrue( table.update(entityState(1,1,3,33.0),99L) );
+		Assert.assertEquals( table.size(), 8 );
+		Assert.assertTrue( table.get(id(1,1,3),record) );
+		Assert.assertEquals( record.locationX, 33.0 );
+		Assert.assertEquals( record.lastHeard, 99L );
+	}
+
+	/**
+	 * Entities coming and going forever leave tombstones behind. They must get cleared out
+	 * rather than make the table grow without bound.
+	 */
+	@Test(dataProvider="storage")
+	public void testChurnDoesNotGrowTable( boolean offHeap )
+	{
+		EntityTable table = new EntityTable( 100, offHeap );
+		int capacity = table.getCapacity();
+		for( int i = 0; i < 100000; i++ )
+		{
+			table.update( entityState(1,1,i%60000,i), i );
+			if( i >= 50 )
+				table.remove( id(1,1,(i-50)%60000) );
+		}
+
+		Assert.assertEquals( table.size(), 50 );
+		Assert.assertEquals( table.getCapacity(), capacity );
+	}
+
+	/**
+	 * Random inserts, updates and removes on a small table (so there are plenty of long probe
+	 * chains and tombstones in them), checked against a HashMap after every step.
+	 */
+	@Test(dataProvider="storage")
+	public void testAgainstMap( boolean offHeap )
+	{
+		Random random = new Random( 7 );
+		EntityTable table = new EntityTable( 1, offHeap );
+		Map<Long,Double> expected = new HashMap<>();
+		for( int step = 0; step < 50000; step++ )
+		{
+			int entity = random.nextInt( 400 );
+			long id = id( 1, 1, entity );
+			if( random.nextInt(3) == 0 )
+			{
+				Assert.assertEquals( table.remove(id), expected.remove(id) != null );
+			}
+			else
+			{
+				double x = random.nextDouble();
+				Assert.assertEquals( table.update(entityState(1,1,entity,x),step),
+				                     expected.put(id,x) == null );
+			}
+
+			Assert.assertEquals( table.size(), expected.size() );
+			int probe = random.nextInt( 400 );
+			Double value = expected.get( id(1,1,probe) );
+			Assert.assertEquals( table.get(id(1,1,probe),record), value != null );
+			if( value != null )
+				Assert.assertEquals( record.locationX, value.doubleValue() );
+		}
+
+		for( Map.Entry<Long,Double> entry : expected.entrySet() )
+		{
+			Assert.assertTrue( table.get(entry.getKey(),record) );
+			Assert.assertEquals( record.locationX, entry.getValue().doubleValue() );
+		}
+	}
+
+	/**
+	 * Once the table is as big as it gets, new entities are turned away and counted rather
+	 * than inserted (which would eventually leave no empty slot to end a probe).
+	 */
+	@Test(dataProvider="storage")
+	public void testRejectWhenFull( boolean offHeap )
+	{
+		// 64 slots hold 38 entities at the load factor
+		EntityTable table = new EntityTable( 1, offHeap, null, 64 );
+		for( int i = 0; i < 38; i++ )
+			Assert.assertTrue( table.update(entityState(1,1,i,i),i) );
+
+		Assert.assertEquals( table.getCapacity(), 64 );
+		Assert.assertTrue( table.isFull() );
+		Assert.assertEquals( table.getRejected(), 0 );
+
+		for( int i = 38; i < 1000; i++ )
+			Assert.assertFalse( table.update(entityState(1,1,i,i),i) );
+
+		Assert.assertEquals( table.getRejected(), 962 );
+		Assert.assertEquals( table.size(), 38 );
+		Assert.assertEquals( table.getCapacity(), 64 );
+		Assert.assertFalse( table.contains(id(1,1,38)) );
+
+		// entities already in the table carry on updating
+		Assert.assertFalse( table.update(entityState(1,1,5,500.0),2000L) );
+		Assert.assertTrue( table.get(id(1,1,5),record) );
+		Assert.assertEquals( record.locationX, 500.0 );
+		Assert.assertEquals( table.getRejected(), 962 );
+
+		// and once one leaves there is room for another, over and over without filling up
+		// the table with tombstones
+		for( int i = 0; i < 10000; i++ )
+		{
+			Assert.assertTrue( table.remove(id(1,1,i%38)) );
+			Assert.assertFalse( table.isFull() );
+			Assert.assertTrue( table.update(entityState(1,1,i%38,i),i) );
+			Assert.assertTrue( table.isFull() );
+		}
+		Assert.assertEquals( table.size(), 38 );
+		Assert.assertEquals( table.getCapacity(), 64 );
+		Assert.assertEquals( table.getRejected(), 962 );
+	}
+
+	/** Fill the scratch buffer with an Entity State PDU and wrap it */
+	private EntityStatePdu entityState( int site, int application, int entity, double x )
+	{
+		buffer.clear();
+		buffer.put( 0, (byte)6 ).put( 1, (byte)EXERCISE ).put( 2, (byte)1 ).put( 3, (byte)1 );
+		buffer.putShort( 8, (short)EntityStatePdu.MINIMUM_LENGTH );
+		buffer.putShort( 12, (short)site ).putShort( 14, (short)application ).putShort( 16, (short)entity );
+		buffer.putDouble( 48, x );
+		return pdu.wrap( buffer );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long id( int site, int application, int entity )
+	{
+		return EntityIds.withExercise( EXERCISE, EntityIds.pack(site,application,entity) );
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openlvc.disops.server.dis.pdu.EntityIds;
+import org.openlvc.disops.server.dis.pdu.EntityStatePdu;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"ShardedSpatialIndexTest"})
+public class ShardedSpatialIndexTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int EXERCISE = 1;
+	private static final int SHARDS = 4;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private ByteBuffer buffer = ByteBuffer.allocate( EntityStatePdu.MINIMUM_LENGTH );
+	private EntityStatePdu pdu = new EntityStatePdu();
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Test
+	public void testAcrossPartitions()
+	{
+		ShardedEntityTable table = new ShardedEntityTable( SHARDS, 256, false );
+		ShardedSpatialIndex index = new ShardedSpatialIndex( table, 100.0, 256 );
+		Assert.assertEquals( index.getPartitionCount(), SHARDS );
+
+		// sites spread the entities over every partition
+		for( int site = 1; site <= 20; site++ )
+			for( int entity = 0; entity < 10; entity++ )
+				update( table, index, site, entity, site*1000.0 + entity*10.0 );
+
+		Assert.assertEquals( index.size(), 200 );
+		for( int shard = 0; shard < SHARDS; shard++ )
+			Assert.assertTrue( index.getPartition(shard).size() > 0, "Partition "+shard );
+
+		// sites 5 to 7
+		Region region = Region.ecefBox( 4999, -1, -1, 7095, 1, 1 );
+		Assert.assertEquals( index.count(region), 30 );
+
+		Set<Long> seen = new HashSet<>();
+		int visited = index.query( region, new EntityRecord(), record -> {
+			Assert.assertTrue( region.contains(record.locationX,record.locationY,record.locationZ) );
+			seen.add( record.id );
+		});
+		Assert.assertEquals( visited, 30 );
+		Assert.assertEquals( seen.size(), 30 );
+		for( int site = 5; site <= 7; site++ )
+			for( int entity = 0; entity < 10; entity++ )
+				Assert.assertTrue( seen.contains(id(site,entity)) );
+	}
+
+	/**
+	 * The table can be ahead of the index (the writer updates the table first), so entities
+	 * are checked against the region again using the state read from the table.
+	 */
+	@Test
+	public void testQueryRechecksTableState()
+	{
+		ShardedEntityTable table = new ShardedEntityTable( SHARDS, 64, false );
+		ShardedSpatialIndex index = new ShardedSpatialIndex( table, 100.0, 64 );
+		update( table, index, 1, 1, 50.0 );
+		update( table, index, 2, 1, 60.0 );
+
+		// entity 1 has moved away in the table, but the index hasn't heard yet
+		table.getPartitionFor(id(1,1)).update( entityState(1,1,5000.0), 1L );
+		Region region = Region.sphere( 50, 0, 0, 20 );
+		Assert.assertEquals( index.count(region), 2 );
+
+		Set<Long> seen = new HashSet<>();
+		Assert.assertEquals( index.query(region,new EntityRecord(),record -> seen.add(record.id)), 1 );
+		Assert.assertEquals( seen, Set.of(id(2,1)) );
+
+		// entity 2 has gone from the table but is still in the index
+		table.getPartitionFor(id(2,1)).remove( id(2,1) );
+		Assert.assertEquals( index.query(region,new EntityRecord(),record -> {}), 0 );
+	}
+
+	@Test
+	public void testRemove()
+	{
+		ShardedEntityTable table = new ShardedEntityTable( SHARDS, 64, false );
+		ShardedSpatialIndex index = new ShardedSpatialIndex( table, 100.0, 64 );
+		for( int site = 1; site <= 8; site++ )
+			update( table, index, site, 1, site*10.0 );
+
+		Assert.assertEquals( index.size(), 8 );
+		Assert.assertEquals( index.getCellCount(), SHARDS );
+
+		long id = id( 3, 1 );
+		Assert.assertTrue( index.getPartition(shardOf(table,id)).remove(id) );
+		Assert.assertEquals( index.size(), 7 );
+		Assert.assertEquals( index.count(Region.sphere(0,0,0,1000)), 7 );
+		Assert.assertTrue( index.getMemoryUsage() > 0 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** Update the table and the index as the shard's {@link EntityTableUpdater} would */
+	private void update( ShardedEntityTable table, ShardedSpatialIndex index, int site, int entity, double x )
+	{
+		long id = id( site, entity );
+		table.getPartitionFor(id).update( entityState(site,entity,x), 0L );
+		index.getPartition(shardOf(table,id)).update( id, x, 0, 0 );
+	}
+
+	private int shardOf( ShardedEntityTable table, long id )
+	{
+		EntityTable partition = table.getPartitionFor( id );
+		for( int shard = 0; shard < table.getPartitionCount(); shard++ )
+		{
+			if( table.getPartition(shard) == partition )
+				return shard;
+		}
+
+		throw new IllegalStateException( "No partition for "+EntityIds.toString(id) );
+	}
+
+	private EntityStatePdu entityState( int site, int entity, double x )
+	{
+		buffer.clear();
+		buffer.put( 0, (byte)6 ).put( 1, (byte)EXERCISE ).put( 2, (byte)1 ).put( 3, (byte)1 );
+		buffer.putShort( 8, (short)EntityStatePdu.MINIMUM_LENGTH );
+		buffer.putShort( 12, (short)site ).putShort( 14, (short)1 ).putShort( 16, (short)entity );
+		buffer.putDouble( 48, x );
+		return pdu.wrap( buffer );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static long id( int site, int entity )
+	{
+		return EntityIds.withExercise( EXERCISE, EntityIds.pack(site,1,entity) );
+	}
+}
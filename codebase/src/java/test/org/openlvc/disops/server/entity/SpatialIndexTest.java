@@ -0,0 +1,295 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.entity;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"SpatialIndexTest"})
+public class SpatialIndexTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final double CELL = 100.0;
+
+	// cells are 21 bit signed, so with 1m cells anything past about 1048km is clamped
+	private static final double CLAMP = 1 << 20;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Query Methods   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Small regions cover fewer cells than are occupied, so each cell in range is looked up.
+	 * Large ones cover more, so the occupied cells are walked instead. Either way the answer
+	 * has to be what testing every entity would give.
+	 */
+	@Test
+	public void testQueriesMatchBruteForce()
+	{
+		Random random = new Random( 22 );
+		int count = 3000;
+		double[][] positions = new double[count][];
+		SpatialIndex index = new SpatialIndex( CELL, 16 );
+		for( int i = 0; i < count; i++ )
+		{
+			// a 2km cube, so entities sit on both sides of plenty of cell boundaries
+			positions[i] = new double[]{ 2000*random.nextDouble() - 1000,
+			                             2000*random.nextDouble() - 1000,
+			                             2000*random.nextDouble() - 1000 };
+			index.update( i, positions[i][0], positions[i][1], positions[i][2] );
+		}
+
+		Assert.assertEquals( index.size(), count );
+		Assert.assertTrue( index.getCellCount() > 1000 );
+
+		for( int trial = 0; trial < 200; trial++ )
+		{
+			double x = 2400*random.nextDouble() - 1200;
+			double y = 2400*random.nextDouble() - 1200;
+			double z = 2400*random.nextDouble() - 1200;
+			double size = trial % 2 == 0 ? 300*random.nextDouble() : 5000*random.nextDouble();
+
+			Region sphere = Region.sphere( x, y, z, size );
+			Region box = Region.ecefBox( x-size, y-size*0.5, z, x+size, y+size*0.5, z+size*0.25 );
+			assertMatches( index, positions, sphere );
+			assertMatches( index, positions, box );
+		}
+
+		// everything, and nothing
+		Assert.assertEquals( index.count(Region.sphere(0,0,0,1e7)), count );
+		Assert.assertEquals( index.count(Region.sphere(5000,5000,5000,10)), 0 );
+	}
+
+	@Test
+	public void testCellBoundaries()
+	{
+		SpatialIndex index = new SpatialIndex( CELL, 16 );
+		index.update( 1, 99.999, 0, 0 );
+		index.update( 2, 100.0, 0, 0 );
+		index.update( 3, -0.001, 0, 0 );
+		index.update( 4, 0, 0, 0 );
+		Assert.assertEquals( index.getCellCount(), 3 );
+
+		// a box ending exactly on a boundary includes it, and reaches into the next cell
+		assertIds( index, Region.ecefBox(0,-1,-1,100,1,1), 1, 2, 4 );
+		assertIds( index, Region.ecefBox(-1,-1,-1,99.9995,1,1), 1, 3, 4 );
+		assertIds( index, Region.sphere(50,0,0,50), 1, 2, 4 );
+		assertIds( index, Region.sphere(0,0,0,0.01), 3, 4 );
+	}
+
+	@Test
+	public void testGeodeticRegions()
+	{
+		// entities scattered around a point on the antimeridian
+		Random random = new Random( 180 );
+		int count = 2000;
+		double[][] positions = new double[count][];
+		SpatialIndex index = new SpatialIndex( 4000.0, 16 );
+		for( int i = 0; i < count; i++ )
+		{
+			double latitude = Math.toRadians( -17.0 + random.nextDouble() );
+			double longitude = Math.toRadians( 179.5 + random.nextDouble() );
+			positions[i] = new double[3];
+			Region.toEcef( latitude, longitude, 20000*random.nextDouble()-2000, positions[i] );
+			index.update( i, positions[i][0], positions[i][1], positions[i][2] );
+		}
+
+		assertMatches( index, positions, Region.box(-16.8,179.7,-16.2,-179.8) );
+		assertMatches( index, positions, Region.box(-16.8,179.7,-16.2,-179.8,0,5000) );
+		assertMatches( index, positions, Region.circle(-16.5,180.0,30000) );
+		assertMatches( index, positions, Region.circle(-16.5,-179.9,10000,1000,15000) );
+		Assert.assertTrue( index.count(Region.circle(-16.5,180.0,30000)) > 0 );
+	}
+
+	@Test
+	public void testQueryVisitsEachOnce()
+	{
+		SpatialIndex index = new SpatialIndex( CELL, 16 );
+		for( int i = 0; i < 500; i++ )
+			index.update( i, i*10.0, 0, 0 );
+
+		Region region = Region.ecefBox( 995, -1, -1, 3005, 1, 1 );
+		Set<Long> seen = new HashSet<>();
+		int found = index.query( region, id -> Assert.assertTrue(seen.add(id),"Visited twice: "+id) );
+		Assert.assertEquals( found, 201 );
+		Assert.assertEquals( seen.size(), 201 );
+		Assert.assertEquals( index.count(region), 201 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Update Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testMoveBetweenCells()
+	{
+		SpatialIndex index = new SpatialIndex( CELL, 16 );
+		index.update( 1, 10, 10, 10 );
+		index.update( 2, 20, 20, 20 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+
+		// within its cell
+		index.update( 1, 90, 90, 90 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+		assertIds( index, Region.sphere(90,90,90,1), 1 );
+
+		// into the next cell over, leaving the other behind
+		index.update( 1, 150, 90, 90 );
+		Assert.assertEquals( index.getCellCount(), 2 );
+		assertIds( index, Region.ecefBox(0,0,0,99,99,99), 2 );
+		assertIds( index, Region.ecefBox(100,0,0,199,99,99), 1 );
+
+		// the last one out empties the cell, and the first one in makes it again
+		index.update( 2, 120, 20, 20 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+		index.update( 2, 20, 20, 20 );
+		Assert.assertEquals( index.getCellCount(), 2 );
+		assertIds( index, Region.ecefBox(-1000,-1000,-1000,1000,1000,1000), 1, 2 );
+		Assert.assertEquals( index.size(), 2 );
+
+		// a long way, many times over, without the cell table filling with dead cells
+		for( int i = 0; i < 10000; i++ )
+			index.update( 1, i*CELL, 0, 0 );
+
+		Assert.assertEquals( index.getCellCount(), 2 );
+		assertIds( index, Region.sphere(9999*CELL,0,0,1), 1 );
+		assertIds( index, Region.sphere(0,0,0,1) );
+	}
+
+	@Test
+	public void testRemove()
+	{
+		SpatialIndex index = new SpatialIndex( CELL, 16 );
+		index.update( 1, 10, 10, 10 );
+		index.update( 2, 20, 20, 20 );
+		index.update( 3, 500, 500, 500 );
+
+		Assert.assertTrue( index.remove(3) );
+		Assert.assertFalse( index.remove(3) );
+		Assert.assertFalse( index.remove(4) );
+		Assert.assertEquals( index.size(), 2 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+		assertIds( index, Region.sphere(0,0,0,1000), 1, 2 );
+
+		Assert.assertTrue( index.remove(1) );
+		assertIds( index, Region.sphere(0,0,0,1000), 2 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+
+		// nodes come back off the free list for new entities
+		for( int i = 0; i < 1000; i++ )
+		{
+			index.update( 100+i, i, 0, 0 );
+			Assert.assertTrue( index.remove(100+i) );
+		}
+		index.update( 5, 30, 30, 30 );
+		assertIds( index, Region.sphere(0,0,0,1000), 2, 5 );
+		Assert.assertEquals( index.size(), 2 );
+		Assert.assertEquals( index.getCellCount(), 1 );
+	}
+
+	/**
+	 * Far enough out, cell coordinates stop fitting in the key and are clamped to the last
+	 * cell. Everything out there shares that cell, and still has to be told apart by position.
+	 */
+	@Test
+	public void testClampedCoordinates()
+	{
+		SpatialIndex index = new SpatialIndex( 1.0, 16 );
+		index.update( 1, CLAMP*2, 0, 0 );
+		index.update( 2, CLAMP*3, 0, 0 );
+		index.update( 3, -CLAMP*2, 0, 0 );
+		index.update( 4, 0, CLAMP*1.5, -CLAMP*1.5 );
+		index.update( 5, CLAMP-2, 0, 0 );
+		Assert.assertEquals( index.getCellCount(), 4 );
+
+		assertIds( index, Region.sphere(CLAMP*3,0,0,10), 2 );
+		assertIds( index, Region.sphere(CLAMP*2,0,0,10), 1 );
+		assertIds( index, Region.ecefBox(CLAMP,-1,-1,CLAMP*10,1,1), 1, 2 );
+		assertIds( index, Region.ecefBox(CLAMP-3,-1,-1,CLAMP*2,1,1), 1, 5 );
+		assertIds( index, Region.sphere(-CLAMP*2,0,0,10), 3 );
+		assertIds( index, Region.ecefBox(-1,CLAMP,-CLAMP*2,1,CLAMP*2,-CLAMP), 4 );
+
+		// moving within the clamped cell is a move within a cell
+		index.update( 2, CLAMP*4, 0, 0 );
+		Assert.assertEquals( index.getCellCount(), 4 );
+		assertIds( index, Region.sphere(CLAMP*4,0,0,10), 2 );
+		assertIds( index, Region.sphere(CLAMP*3,0,0,10) );
+
+		// and positions that aren't numbers at all don't break anything
+		index.update( 6, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN );
+		Assert.assertEquals( index.size(), 6 );
+		assertIds( index, Region.sphere(CLAMP*2,0,0,10), 1 );
+		Assert.assertTrue( index.remove(6) );
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testBadCellSize()
+	{
+		new SpatialIndex( 0.5, 16 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void assertMatches( SpatialIndex index, double[][] positions, Region region )
+	{
+		Set<Long> expected = new HashSet<>();
+		for( int i = 0; i < positions.length; i++ )
+		{
+			if( region.contains(positions[i][0],positions[i][1],positions[i][2]) )
+				expected.add( (long)i );
+		}
+
+		Set<Long> found = new HashSet<>();
+		int count = index.query( region, found::add );
+		Assert.assertEquals( found, expected );
+		Assert.assertEquals( count, expected.size() );
+		Assert.assertEquals( index.count(region), expected.size() );
+	}
+
+	private void assertIds( SpatialIndex index, Region region, long... ids )
+	{
+		Set<Long> expected = new HashSet<>();
+		for( long id : ids )
+			expected.add( id );
+
+		Set<Long> found = new HashSet<>();
+		index.query( region, found::add );
+		Assert.assertEquals( found, expected );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
@@ -0,0 +1,303 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+@Test(groups={"InfluxWriterTest"})
+public class InfluxWriterTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int BATCH_SIZE = 10;
+	private static final byte[] LINE = "entity,site=1 x=1i 1500000000000".getBytes( StandardCharsets.UTF_8 );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+
+	// stand-in influxd, answering every request with the current status
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private AtomicInteger status = new AtomicInteger();
+	private AtomicLong linesReceived = new AtomicLong();
+
+	private InfluxConfiguration influxConfiguration;
+	private InfluxWriter writer;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeClass(alwaysRun=true)
+	public void beforeClass() throws IOException
+	{
+		this.server = HttpServer.create( new InetSocketAddress("127.0.0.1",0), 16 );
+		this.serverThreads = Executors.newFixedThreadPool( 2 );
+		this.server.setExecutor( serverThreads );
+		this.server.createContext( "/", this::handle );
+		this.server.start();
+	}
+
+	@AfterClass(alwaysRun=true)
+	public void afterClass()
+	{
+		server.stop( 0 );
+		serverThreads.shutdownNow();
+	}
+
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		this.status.set( 204 );
+		this.linesReceived.set( 0 );
+
+		Configuration configuration = new Configuration( new String[0] );
+		this.influxConfiguration = configuration.getInfluxConfiguration();
+		influxConfiguration.setUrl( "http://127.0.0.1:"+server.getAddress().getPort() );
+		influxConfiguration.setBatchSize( BATCH_SIZE );
+		influxConfiguration.setBatchInterval( 60000 );
+		influxConfiguration.setSpillEnabled( false );
+		this.writer = null;
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod()
+	{
+		if( writer != null )
+			writer.shutdown();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Counting Methods   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testPointsCountedWhenAccepted()
+	{
+		startWriter();
+		write( 25 );
+		writer.flush();
+
+		waitFor( writer::getBatchesWritten, 3 );
+		Assert.assertEquals( writer.getPointsWritten(), 25 );
+		Assert.assertEquals( writer.getBatchesFailed(), 0 );
+		Assert.assertEquals( linesReceived.get(), 25 );
+	}
+
+	@Test
+	public void testRejectedPointsNotCounted()
+	{
+		status.set( 400 );
+		startWriter();
+		write( 25 );
+		writer.flush();
+
+		waitFor( writer::getBatchesFailed, 3 );
+		Assert.assertEquals( writer.getPointsWritten(), 0 );
+		Assert.assertEquals( writer.getBatchesWritten(), 0 );
+
+		// and once influxd takes them again, only what it takes is counted
+		status.set( 204 );
+		write( 5 );
+		writer.flush();
+		waitFor( writer::getBatchesWritten, 1 );
+		Assert.assertEquals( writer.getPointsWritten(), 5 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Shutdown Methods   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testShutdownFlushes()
+	{
+		startWriter();
+		write( 5 );
+		writer.shutdown();
+
+		Assert.assertEquals( writer.getPointsWritten(), 5 );
+		Assert.assertEquals( linesReceived.get(), 5 );
+	}
+
+	/**
+	 * A writer racing with shutdown must not trip over a missing client. Its batch is counted
+	 * as failed instead.
+	 */
+	@Test
+	public void testWriteAfterShutdown()
+	{
+		startWriter();
+		writer.shutdown();
+
+		write( BATCH_SIZE );
+		writer.write( new String(LINE,StandardCharsets.UTF_8) );
+		writer.flush();
+		Assert.assertEquals( writer.getBatchesFailed(), 2 );
+		Assert.assertEquals( writer.getPointsWritten(), 0 );
+
+		// shutting down twice is harmless
+		writer.shutdown();
+	}
+
+	/**
+	 * Once shutdown has closed the spill log, a batch that would have been spilled (here,
+	 * because there is still a backlog) is counted as failed. It must not be appended, as that
+	 * would map a new segment that is never forced or unmapped.
+	 */
+	@Test
+	public void testSpillAfterShutdown() throws IOException
+	{
+		File directory = Files.createTempDirectory( "influxwriter" ).toFile();
+		influxConfiguration.setSpillEnabled( true );
+		influxConfiguration.setSpillDirectory( directory.getAbsolutePath() );
+		influxConfiguration.setSpillSegmentSize( 64*1024 );
+		influxConfiguration.setSpillMaxSize( 1024*1024 );
+		try
+		{
+			// influxd is struggling, so the batch ends up in the spill log and stays there
+			status.set( 503 );
+			startWriter();
+			write( BATCH_SIZE );
+			waitFor( writer.getSpillLog()::getBatchesSpilled, 1 );
+			Assert.assertFalse( writer.getSpillLog().isEmpty() );
+
+			writer.shutdown();
+			int segments = directory.list().length;
+
+			write( BATCH_SIZE );
+			Assert.assertEquals( writer.getBatchesFailed(), 1 );
+			Assert.assertEquals( writer.getSpillLog().getBatchesDropped(), 1 );
+			Assert.assertEquals( writer.getSpillLog().getBatchesSpilled(), 1 );
+			Assert.assertEquals( directory.list().length, segments );
+		}
+		finally
+		{
+			for( File file : directory.listFiles() )
+				file.delete();
+
+			directory.delete();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	private void startWriter()
+	{
+		this.writer = new InfluxWriter( influxConfiguration, logger );
+		this.writer.startup();
+	}
+
+	private void write( int points )
+	{
+		for( int i = 0; i < points; i++ )
+			writer.write( LINE, 0, LINE.length );
+	}
+
+	/** Wait for the counter to reach the given value, and fail if it takes too long */
+	private void waitFor( LongSupplier counter, long value )
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while( counter.getAsLong() < value )
+		{
+			if( System.currentTimeMillis() > deadline )
+				Assert.fail( "Timed out waiting for "+value+", got to "+counter.getAsLong() );
+
+			try
+			{
+				Thread.sleep( 5 );
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				Assert.fail( "Interrupted" );
+			}
+		}
+
+		Assert.assertEquals( counter.getAsLong(), value );
+	}
+
+	private void handle( HttpExchange exchange ) throws IOException
+	{
+		long lines = 0;
+		byte[] buffer = new byte[64*1024];
+		try( InputStream body = exchange.getRequestBody() )
+		{
+			int read;
+			while( (read = body.read(buffer)) != -1 )
+			{
+				for( int i = 0; i < read; i++ )
+				{
+					if( buffer[i] == '\n' )
+						++lines;
+				}
+			}
+		}
+
+		int code = status.get();
+		if( code < 300 )
+		{
+			linesReceived.addAndGet( lines );
+			exchange.sendResponseHeaders( code, -1 );
+		}
+		else
+		{
+			byte[] error = "{\"error\":\"test\"}".getBytes( StandardCharsets.UTF_8 );
+			exchange.sendResponseHeaders( code, error.length );
+			try( OutputStream out = exchange.getResponseBody() )
+			{
+				out.write( error );
+			}
+		}
+
+		exchange.close();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+}
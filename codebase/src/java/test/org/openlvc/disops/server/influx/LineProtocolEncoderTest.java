@@ -0,0 +1,371 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"LineProtocolEncoderTest"})
+public class LineProtocolEncoderTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final double[] EDGE_DOUBLES = {
+		0.0, -0.0, 1.0, -1.0, 0.1, 0.2, 0.3, 1.0/3.0, 2.0/3.0, Math.PI, Math.E, 4.35, 100.0, 1234.5,
+		Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Math.ulp(1.0), 1.0-Math.ulp(0.5),
+		// either side of the fast path limits
+		1e-6, Math.nextDown(1e-6), Math.nextUp(1e-6), 1e-7, 1e15, 1e16, 1e17, 1e22, 1e23,
+		9007199254740992.0, 9007199254740991.0, Math.nextUp(9007199254740992.0),
+		Math.nextDown(9007199254740992.0) + 0.5, 123456789012345678.0,
+		// need all 17 digits
+		0.30000000000000004, 2.2250738585072014E-308, 5.0E-324, 1.7976931348623157E308,
+		9.007199254740993E15, 1.0000000000000002, 0.9999999999999999, 4.999999999999999,
+		// typical entity state
+		-4460000.123456789, 2680000.5, -3690000.0000001, 35.26, -116.68, 1505480400123.0,
+		// came out a digit too long when shortened by rounding 17 digits a second time
+		4366.654
+	};
+
+	private static final float[] EDGE_FLOATS = {
+		0.0f, -0.0f, 1.0f, -1.0f, 0.1f, 0.2f, 0.3f, 1.0f/3.0f, (float)Math.PI, 1.5f, 10.0f,
+		Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE, Math.ulp(1.0f),
+		1e-6f, Math.nextDown(1e-6f), 1e15f, Math.nextDown(1e15f), 1e16f, 16777216f, 16777217f,
+		3.4028235E38f, 1.17549435E-38f, 9.999999f, 0.99999994f, 1.0000001f, 123456.79f
+	};
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private LineProtocolEncoder encoder;
+	private Capture sink;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		this.encoder = new LineProtocolEncoder( Precision.MILLISECONDS );
+		this.sink = new Capture();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////// Number Methods ///////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testDoubleEdgeValues()
+	{
+		for( double value : EDGE_DOUBLES )
+		{
+			checkDouble( value );
+			checkDouble( -value );
+			checkDouble( Math.nextUp(value) );
+			checkDouble( Math.nextDown(value) );
+		}
+
+		// every power of ten, and a ulp either side
+		for( int exponent = -323; exponent <= 308; exponent++ )
+		{
+			double value = Double.parseDouble( "1e"+exponent );
+			checkDouble( value );
+			checkDouble( Math.nextUp(value) );
+			checkDouble( Math.nextDown(value) );
+		}
+	}
+
+	@Test
+	public void testRandomDoubles()
+	{
+		Random random = new Random( 17 );
+		for( int i = 0; i < 500000; i++ )
+		{
+			// any bit pattern at all
+			double value = Double.longBitsToDouble( random.nextLong() );
+			if( Double.isFinite(value) )
+				checkDouble( value );
+
+			// and the sort of magnitudes that actually turn up
+			checkDouble( random.nextDouble() * Math.pow(10,random.nextInt(30)-10) );
+			checkDouble( random.nextInt(100000) / 100.0 );
+		}
+	}
+
+	@Test
+	public void testFloatEdgeValues()
+	{
+		for( float value : EDGE_FLOATS )
+		{
+			checkFloat( value );
+			checkFloat( -value );
+			checkFloat( Math.nextUp(value) );
+			checkFloat( Math.nextDown(value) );
+		}
+
+		for( int exponent = -45; exponent <= 38; exponent++ )
+		{
+			float value = Float.parseFloat( "1e"+exponent );
+			checkFloat( value );
+			checkFloat( Math.nextUp(value) );
+			checkFloat( Math.nextDown(value) );
+		}
+	}
+
+	@Test
+	public void testRandomFloats()
+	{
+		Random random = new Random( 19 );
+		for( int i = 0; i < 500000; i++ )
+		{
+			float value = Float.intBitsToFloat( random.nextInt() );
+			if( Float.isFinite(value) )
+				checkFloat( value );
+
+			checkFloat( (float)(random.nextDouble() * Math.pow(10,random.nextInt(20)-6)) );
+		}
+	}
+
+	@Test
+	public void testShortestDigits()
+	{
+		Assert.assertEquals( field(0.1), "0.1" );
+		Assert.assertEquals( field(100.0), "100" );
+		Assert.assertEquals( field(-0.0), "-0" );
+		Assert.assertEquals( field(1e15), "1000000000000000" );
+		Assert.assertEquals( field(0.30000000000000004), "0.30000000000000004" );
+		Assert.assertEquals( field(35.26f), "35.26" );
+		Assert.assertEquals( field(0.1f), "0.1" );
+		Assert.assertEquals( field(16777216f), "16777216" );
+	}
+
+	@Test
+	public void testIntegerAndBooleanFields()
+	{
+		encoder.measurement( "m" ).field( "min", Long.MIN_VALUE ).field( "max", Long.MAX_VALUE )
+		       .field( "zero", 0L ).field( "neg", -1L ).field( "yes", true ).field( "no", false )
+		       .timestamp( 5 );
+		Assert.assertTrue( encoder.writeTo(sink) );
+		Assert.assertEquals( sink.line, "m min=-9223372036854775808i,max=9223372036854775807i,"+
+		                                "zero=0i,neg=-1i,yes=t,no=f 5" );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	//////////////////////////////////// Escaping Methods //////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testEscaping()
+	{
+		// equals signs are only escaped in keys and tag values
+		encoder.measurement( "my measure,ment=x\\" )
+		       .tag( "tag key", "a,b=c d\\e" )
+		       .tag( "empty", "" )
+		       .tag( "site", 42L )
+		       .field( "field=key", 1L )
+		       .timestamp( 1 );
+		encoder.writeTo( sink );
+		Assert.assertEquals( sink.line, "my\\ measure\\,ment=x\\\\,tag\\ key=a\\,b\\=c\\ d\\\\e,site=42 field\\=key=1i 1" );
+	}
+
+	@Test
+	public void testUtf8()
+	{
+		// two, three and four byte characters, and a lone surrogate (which has no encoding)
+		encoder.measurement( "m" ).tag( "name", "\u00e9\u20ac\ud83d\ude80\ud800x" ).field( "v", 1L ).timestamp( 1 );
+		encoder.writeTo( sink );
+		Assert.assertEquals( sink.line, "m,name=\u00e9\u20ac\ud83d\ude80?x v=1i 1" );
+	}
+
+	/** Keys are cached by identity in slots picked by hash, so clashing keys must not mix */
+	@Test
+	public void testKeyCacheCollision()
+	{
+		Assert.assertEquals( "Aa".hashCode(), "BB".hashCode() );
+		for( int i = 0; i < 3; i++ )
+		{
+			encoder.measurement( "m" ).tag( "Aa", "1" ).tag( "BB", "2" ).field( "Aa", 3L ).timestamp( 1 );
+			encoder.writeTo( sink );
+			Assert.assertEquals( sink.line, "m,Aa=1,BB=2 Aa=3i 1" );
+		}
+	}
+
+	@Test
+	public void testSplicedTags()
+	{
+		encoder.measurement( "m" ).tags( ",a=1,b=2".getBytes() ).field( "v", 1L ).timestamp( 1 );
+		encoder.writeTo( sink );
+		Assert.assertEquals( sink.line, "m,a=1,b=2 v=1i 1" );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////// Point Methods ///////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testPrecision()
+	{
+		LineProtocolEncoder nanos = new LineProtocolEncoder( Precision.NANOSECONDS );
+		nanos.measurement( "m" ).field( "v", 1L ).timestamp( 1505480400123L );
+		nanos.writeTo( sink );
+		Assert.assertEquals( sink.line, "m v=1i 1505480400123000000" );
+
+		LineProtocolEncoder seconds = new LineProtocolEncoder( Precision.SECONDS );
+		seconds.measurement( "m" ).field( "v", 1L ).timestamp( 1505480400999L, TimeUnit.MILLISECONDS );
+		seconds.writeTo( sink );
+		Assert.assertEquals( sink.line, "m v=1i 1505480400" );
+	}
+
+	@Test
+	public void testNonFiniteFieldsLeftOut()
+	{
+		encoder.measurement( "m" ).tag( "t", "x" ).field( "a", Double.NaN ).field( "b", 2.5 )
+		       .field( "c", Float.POSITIVE_INFINITY ).field( "d", 1.5f ).timestamp( 1 );
+		Assert.assertTrue( encoder.writeTo(sink) );
+		Assert.assertEquals( sink.line, "m,t=x b=2.5,d=1.5 1" );
+		Assert.assertEquals( encoder.getSkippedFields(), 2 );
+		Assert.assertEquals( encoder.getSkippedPoints(), 0 );
+
+		// nothing left at all, so there is no point
+		sink.line = null;
+		encoder.measurement( "m" ).field( "a", Double.NEGATIVE_INFINITY ).field( "b", Float.NaN ).timestamp( 1 );
+		Assert.assertFalse( encoder.writeTo(sink) );
+		Assert.assertNull( sink.line );
+		Assert.assertEquals( encoder.getSkippedFields(), 4 );
+		Assert.assertEquals( encoder.getSkippedPoints(), 1 );
+
+		// and the next point is unaffected
+		encoder.measurement( "m" ).field( "a", 1L ).timestamp( 1 );
+		Assert.assertTrue( encoder.writeTo(sink) );
+		Assert.assertEquals( sink.line, "m a=1i 1" );
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testTagAfterField()
+	{
+		encoder.measurement( "m" ).field( "v", 1L ).tag( "t", "x" );
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testTimestampWithoutField()
+	{
+		encoder.measurement( "m" ).tag( "t", "x" ).timestamp( 1 );
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testWriteWithoutField()
+	{
+		encoder.measurement( "m" ).writeTo( sink );
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testSkippedFieldBeforeMeasurement()
+	{
+		new LineProtocolEncoder( Precision.MILLISECONDS ).field( "v", Double.NaN );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/** @return The text written for the value of a double field */
+	private String field( double value )
+	{
+		encoder.measurement( "m" ).field( "v", value ).timestamp( 0 );
+		encoder.writeTo( sink );
+		return sink.line.substring( 4, sink.line.length()-2 );
+	}
+
+	/** @return The text written for the value of a float field */
+	private String field( float value )
+	{
+		encoder.measurement( "m" ).field( "v", value ).timestamp( 0 );
+		encoder.writeTo( sink );
+		return sink.line.substring( 4, sink.line.length()-2 );
+	}
+
+	/**
+	 * InfluxDB must read back exactly the same double. The text may be a digit longer than
+	 * the JDK's where 16 digits can't be checked (see the encoder), but never more than that.
+	 */
+	private void checkDouble( double value )
+	{
+		if( !Double.isFinite(value) )
+			return;
+
+		String text = field( value );
+		Assert.assertEquals( Double.doubleToRawLongBits(Double.parseDouble(text)),
+		                     Double.doubleToRawLongBits(value),
+		                     "Wrote "+value+" as "+text );
+		Assert.assertTrue( digits(text) <= digits(Double.toString(value))+1,
+		                   "Wrote "+value+" as "+text+" (longer than "+value+")" );
+	}
+
+	/** InfluxDB reads every field as a double, and that has to come back to the same float */
+	private void checkFloat( float value )
+	{
+		if( !Float.isFinite(value) )
+			return;
+
+		String text = field( value );
+		Assert.assertEquals( Float.floatToRawIntBits((float)Double.parseDouble(text)),
+		                     Float.floatToRawIntBits(value),
+		                     "Wrote "+value+"f as "+text );
+		Assert.assertTrue( digits(text) <= digits(Float.toString(value)),
+		                   "Wrote "+value+"f as "+text+" (longer than "+value+")" );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return Significant digits in a decimal, in plain or scientific notation */
+	private static int digits( String text )
+	{
+		int e = text.indexOf( 'E' );
+		String mantissa = (e < 0 ? text : text.substring(0,e)).replace( "-", "" ).replace( ".", "" );
+		int start = 0;
+		while( start < mantissa.length()-1 && mantissa.charAt(start) == '0' )
+			++start;
+		int end = mantissa.length();
+		while( end > start+1 && mantissa.charAt(end-1) == '0' )
+			--end;
+		return end - start;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// Capture   /////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/** Keeps the last line written to it */
+	private static class Capture implements PointSink
+	{
+		private String line;
+
+		public void write( String lineProtocol )
+		{
+			this.line = lineProtocol;
+		}
+
+		public void flush()
+		{
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.influxdb.dto.QueryResult;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"QueryCacheTest"})
+public class QueryCacheTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long SECOND = 1000;
+	private static final long MINUTE = 60*SECOND;
+	private static final long HOUR = 60*MINUTE;
+	private static final long DAY = 24*HOUR;
+
+	private static final long HISTORIC_TTL = 10*MINUTE;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+	private InfluxConfiguration influxConfiguration;
+	private StubRouter router;
+	private ExecutorService threads;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		// default tiers: raw 7d, 1s 30d, 1m 365d, 1h forever
+		Configuration configuration = new Configuration( new String[0] );
+		this.influxConfiguration = configuration.getInfluxConfiguration();
+		this.router = new StubRouter();
+		this.threads = Executors.newCachedThreadPool();
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod()
+	{
+		router.gate.countDown();
+		threads.shutdownNow();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Alignment Methods   ////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testRoundUp()
+	{
+		Assert.assertEquals( QueryCache.roundUp(-5), 0 );
+		Assert.assertEquals( QueryCache.roundUp(0), 0 );
+		Assert.assertEquals( QueryCache.roundUp(1), 1 );
+		Assert.assertEquals( QueryCache.roundUp(2), 2 );
+		Assert.assertEquals( QueryCache.roundUp(3), 5 );
+		Assert.assertEquals( QueryCache.roundUp(5), 5 );
+		Assert.assertEquals( QueryCache.roundUp(6), 10 );
+		Assert.assertEquals( QueryCache.roundUp(11), 20 );
+		Assert.assertEquals( QueryCache.roundUp(21), 50 );
+		Assert.assertEquals( QueryCache.roundUp(999), 1000 );
+		Assert.assertEquals( QueryCache.roundUp(1001), 2000 );
+		Assert.assertEquals( QueryCache.roundUp(2500), 5000 );
+		Assert.assertEquals( QueryCache.roundUp(259200), 500000 );
+		Assert.assertEquals( QueryCache.roundUp(DAY), 100000000 );
+	}
+
+	@Test
+	public void testAlign()
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( 5*SECOND, HOUR );
+
+		// 3s rounds up to 5s, and the range widens out to whole 5s buckets
+		TieredQuery query = query( base+1234, base+MINUTE+1, 3*SECOND );
+		TieredQuery aligned = cache.align( query );
+		Assert.assertEquals( aligned.getResolution(), 5*SECOND );
+		Assert.assertEquals( aligned.getMaxPoints(), 0 );
+		Assert.assertEquals( aligned.getStart(), base );
+		Assert.assertEquals( aligned.getEnd(), base+MINUTE+5*SECOND );
+
+		// already aligned stays put, and the original is left alone
+		aligned = cache.align( query(base,base+MINUTE,5*SECOND) );
+		Assert.assertEquals( aligned.getStart(), base );
+		Assert.assertEquals( aligned.getEnd(), base+MINUTE );
+		Assert.assertEquals( query.getStart(), base+1234 );
+		Assert.assertEquals( query.getResolution(), 3*SECOND );
+
+		// every point has no bucket of its own, so it goes to the second
+		aligned = cache.align( query(base+1,base+1001,0) );
+		Assert.assertEquals( aligned.getResolution(), 0 );
+		Assert.assertEquals( aligned.getStart(), base );
+		Assert.assertEquals( aligned.getEnd(), base+2*SECOND );
+	}
+
+	/** Dashboards asking for the last three days moments apart ask for the same thing */
+	@Test
+	public void testAlignedQueriesMatch()
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( 500000, 4*DAY );
+
+		// three days over 1000 points is 259.2s, rounded up to 500s buckets
+		TieredQuery first = query( base+100, base+100+3*DAY, 0 );
+		first.setMaxPoints( 1000 );
+		TieredQuery second = query( base+1600, base+1600+3*DAY, 0 );
+		second.setMaxPoints( 1000 );
+
+		TieredQuery aligned = cache.align( first );
+		Assert.assertEquals( aligned.getResolution(), 500000 );
+		Assert.assertEquals( aligned.getStart(), base );
+		Assert.assertEquals( router.toInfluxQL(aligned), router.toInfluxQL(cache.align(second)) );
+		Assert.assertNotEquals( router.toInfluxQL(first), router.toInfluxQL(second) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Expiry Methods   ///////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * A range still filling in is kept until the next bucket boundary (but never for less
+	 * than a moment), and one that is finished is kept for the historic TTL.
+	 */
+	@Test
+	public void testTtlAtBucketBoundaries()
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( 5*SECOND, HOUR );
+		TieredQuery aligned = cache.align( query(base-MINUTE,base,5*SECOND) );
+		Assert.assertEquals( router.getBucketMillis(aligned), 5*SECOND );
+
+		// before the range ends
+		Assert.assertEquals( cache.getTtl(aligned,base-10*SECOND), 5*SECOND );
+		Assert.assertEquals( cache.getTtl(aligned,base-SECOND), SECOND );
+
+		// just after it, when the last bucket may still be getting points
+		Assert.assertEquals( cache.getTtl(aligned,base), 5*SECOND );
+		Assert.assertEquals( cache.getTtl(aligned,base+1234), 5*SECOND-1234 );
+		Assert.assertEquals( cache.getTtl(aligned,base+4900), 250 );
+		Assert.assertEquals( cache.getTtl(aligned,base+10*SECOND-1), 250 );
+
+		// two buckets on, it is done with
+		Assert.assertEquals( cache.getTtl(aligned,base+10*SECOND), HISTORIC_TTL );
+		Assert.assertEquals( cache.getTtl(aligned,base+DAY), HISTORIC_TTL );
+
+		// every point goes by the second
+		aligned = cache.align( query(base-MINUTE,base,0) );
+		Assert.assertEquals( cache.getTtl(aligned,base+600), 400 );
+		Assert.assertEquals( cache.getTtl(aligned,base+1999), 250 );
+		Assert.assertEquals( cache.getTtl(aligned,base+2000), HISTORIC_TTL );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Query Methods   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testHitsAndMisses()
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( HOUR, 400*DAY );
+
+		QueryResult result = cache.query( query(base+1,base+DAY,HOUR) );
+		Assert.assertSame( cache.query(query(base+1,base+DAY,HOUR)), result );
+		Assert.assertSame( cache.query(query(base+2,base+DAY-1,HOUR)), result );
+		Assert.assertEquals( router.calls.get(), 1 );
+
+		// something else goes to influxd
+		TieredQuery other = query( base+1, base+DAY, HOUR );
+		other.setFunction( "max" );
+		Assert.assertNotSame( cache.query(other), result );
+		Assert.assertEquals( router.calls.get(), 2 );
+
+		Assert.assertEquals( cache.getHits(), 2 );
+		Assert.assertEquals( cache.getMisses(), 2 );
+		Assert.assertEquals( cache.getHitRate(), 50 );
+		Assert.assertEquals( cache.getEntryCount(), 2 );
+
+		cache.clear();
+		Assert.assertEquals( cache.getEntryCount(), 0 );
+		Assert.assertEquals( cache.getMemoryUsage(), 0 );
+		cache.query( query(base+1,base+DAY,HOUR) );
+		Assert.assertEquals( router.calls.get(), 3 );
+	}
+
+	/** Everyone asking while the first caller waits on influxd gets its answer */
+	@Test
+	public void testInFlightCoalesced() throws Exception
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( HOUR, 400*DAY );
+		router.gate = new CountDownLatch( 1 );
+
+		List<Future<QueryResult>> futures = new ArrayList<>();
+		for( int i = 0; i < 4; i++ )
+			futures.add( threads.submit(() -> cache.query(query(base,base+DAY,HOUR))) );
+
+		Assert.assertTrue( router.entered.await(10,TimeUnit.SECONDS) );
+		waitForCoalesced( cache, 3 );
+		router.gate.countDown();
+
+		QueryResult result = futures.get(0).get( 10, TimeUnit.SECONDS );
+		for( Future<QueryResult> future : futures )
+			Assert.assertSame( future.get(10,TimeUnit.SECONDS), result );
+
+		Assert.assertEquals( router.calls.get(), 1 );
+		Assert.assertEquals( cache.getMisses(), 1 );
+		Assert.assertEquals( cache.getHits(), 0 );
+		Assert.assertEquals( cache.getHitRate(), 75 );
+	}
+
+	/** A failure is handed to everyone waiting on it, and not remembered */
+	@Test
+	public void testInFlightFailure() throws Exception
+	{
+		QueryCache cache = cache( 1024*1024 );
+		long base = bucketStart( HOUR, 400*DAY );
+		router.gate = new CountDownLatch( 1 );
+		router.failing = true;
+
+		List<Future<QueryResult>> futures = new ArrayList<>();
+		for( int i = 0; i < 2; i++ )
+			futures.add( threads.submit(() -> cache.query(query(base,base+DAY,HOUR))) );
+
+		Assert.assertTrue( router.entered.await(10,TimeUnit.SECONDS) );
+		waitForCoalesced( cache, 1 );
+		router.gate.countDown();
+
+		for( Future<QueryResult> future : futures )
+		{
+			try
+			{
+				future.get( 10, TimeUnit.SECONDS );
+				Assert.fail( "Expected the query to fail" );
+			}
+			catch( ExecutionException e )
+			{
+				Assert.assertTrue( e.getCause() instanceof DisOpsException, e.getCause().toString() );
+				Assert.assertEquals( e.getCause().getMessage(), "influxd said no" );
+			}
+		}
+
+		Assert.assertEquals( cache.getEntryCount(), 0 );
+		router.failing = false;
+		Assert.assertNotNull( cache.query(query(base,base+DAY,HOUR)) );
+		Assert.assertEquals( router.calls.get(), 2 );
+	}
+
+	@Test
+	public void testBoundedBySize()
+	{
+		QueryCache cache = cache( 20000 );
+		long base = bucketStart( HOUR, 400*DAY );
+		router.rows = 10;
+		for( int i = 0; i < 50; i++ )
+			cache.query( query("m"+i,base,base+DAY) );
+
+		Assert.assertTrue( cache.getMemoryUsage() <= 20000, ""+cache.getMemoryUsage() );
+		Assert.assertTrue( cache.getEntryCount() > 1 && cache.getEntryCount() < 50 );
+		Assert.assertEquals( cache.getEvictions(), 50-cache.getEntryCount() );
+
+		// the least recently used went first
+		cache.query( query("m49",base,base+DAY) );
+		Assert.assertEquals( router.calls.get(), 50 );
+		cache.query( query("m0",base,base+DAY) );
+		Assert.assertEquals( router.calls.get(), 51 );
+
+		// and one too big to be worth keeping isn't kept
+		int entries = cache.getEntryCount();
+		router.rows = 1000;
+		cache.query( query("huge",base,base+DAY) );
+		cache.query( query("huge",base,base+DAY) );
+		Assert.assertEquals( router.calls.get(), 53 );
+		Assert.assertEquals( cache.getEntryCount(), entries );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private QueryCache cache( long maxBytes )
+	{
+		return new QueryCache( router, maxBytes, HISTORIC_TTL );
+	}
+
+	private TieredQuery query( long start, long end, long resolution )
+	{
+		TieredQuery query = new TieredQuery( "entity_state", "x", "y" );
+		query.setTimeRange( start, end );
+		query.setResolution( resolution );
+		return query;
+	}
+
+	private TieredQuery query( String measurement, long start, long end )
+	{
+		TieredQuery query = new TieredQuery( measurement, "x", "y" );
+		query.setTimeRange( start, end );
+		query.setResolution( HOUR );
+		return query;
+	}
+
+	private void waitForCoalesced( QueryCache cache, long expected ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while( cache.getCoalesced() < expected && System.currentTimeMillis() < deadline )
+			Thread.sleep( 5 );
+
+		Assert.assertEquals( cache.getCoalesced(), expected );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** @return The start of the bucket of the given width that was the given time ago */
+	private static long bucketStart( long bucket, long ago )
+	{
+		return Math.floorDiv( System.currentTimeMillis()-ago, bucket ) * bucket;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/// StubRouter   //////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Routes queries like the real thing, but answers them itself rather than asking influxd.
+	 * Each answer is a new result, so they can be told apart.
+	 */
+	private class StubRouter extends QueryRouter
+	{
+		private AtomicInteger calls = new AtomicInteger();
+		private CountDownLatch entered = new CountDownLatch( 1 );
+		private volatile CountDownLatch gate = new CountDownLatch( 0 );
+		private volatile boolean failing = false;
+		private volatile int rows = 1;
+
+		private StubRouter()
+		{
+			super( influxConfiguration, new SchemaManager(influxConfiguration,logger), null );
+		}
+
+		@Override
+		public QueryResult query( TieredQuery query )
+		{
+			calls.incrementAndGet();
+			entered.countDown();
+			try
+			{
+				gate.await();
+			}
+			catch( InterruptedException ie )
+			{
+				throw new DisOpsException( "Interrupted", ie );
+			}
+
+			if( failing )
+				throw new DisOpsException( "influxd said no" );
+
+			List<List<Object>> values = new ArrayList<>();
+			for( int i = 0; i < rows; i++ )
+				values.add( Arrays.asList((double)i,1.0,2.0) );
+
+			QueryResult.Series series = new QueryResult.Series();
+			series.setName( query.getMeasurement() );
+			series.setColumns( Arrays.asList("time","x","y") );
+			series.setValues( values );
+			QueryResult.Result statement = new QueryResult.Result();
+			statement.setSeries( Collections.singletonList(series) );
+			QueryResult result = new QueryResult();
+			result.setResults( Collections.singletonList(statement) );
+			return result;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.DisOpsException;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"QueryRouterTest"})
+public class QueryRouterTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long SECOND = 1000;
+	private static final long MINUTE = 60*SECOND;
+	private static final long HOUR = 60*MINUTE;
+	private static final long DAY = 24*HOUR;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+	private InfluxConfiguration influxConfiguration;
+	private QueryRouter router;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		// default tiers: raw 7d, 1s 30d, 1m 365d, 1h forever
+		Configuration configuration = new Configuration( new String[0] );
+		this.influxConfiguration = configuration.getInfluxConfiguration();
+		influxConfiguration.setDatabase( "exercise" );
+		this.router = router();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Tier Selection Methods   ///////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Recent data is in every tier, so the resolution decides: the coarsest tier whose
+	 * buckets are no wider than what was asked for.
+	 */
+	@Test
+	public void testSelectByResolution()
+	{
+		Assert.assertEquals( tier(HOUR,0), "raw" );
+		Assert.assertEquals( tier(HOUR,500), "raw" );
+		Assert.assertEquals( tier(HOUR,SECOND), "1s" );
+		Assert.assertEquals( tier(HOUR,30*SECOND), "1s" );
+		Assert.assertEquals( tier(HOUR,MINUTE), "1m" );
+		Assert.assertEquals( tier(HOUR,59*MINUTE), "1m" );
+		Assert.assertEquals( tier(HOUR,HOUR), "1h" );
+		Assert.assertEquals( tier(HOUR,DAY), "1h" );
+	}
+
+	/**
+	 * Older data has aged out of the finer tiers, so it comes from the finest tier that
+	 * still has it, even if that is coarser than asked for.
+	 */
+	@Test
+	public void testSelectByAge()
+	{
+		// either side of the raw tier's 7 days
+		Assert.assertEquals( tier(7*DAY-MINUTE,0), "raw" );
+		Assert.assertEquals( tier(7*DAY+MINUTE,0), "1s" );
+
+		Assert.assertEquals( tier(10*DAY,0), "1s" );
+		Assert.assertEquals( tier(10*DAY,5*SECOND), "1s" );
+		Assert.assertEquals( tier(10*DAY,2*MINUTE), "1m" );
+		Assert.assertEquals( tier(100*DAY,0), "1m" );
+		Assert.assertEquals( tier(100*DAY,2*HOUR), "1h" );
+		Assert.assertEquals( tier(2*365*DAY,0), "1h" );
+	}
+
+	@Test
+	public void testSelectWithRetentionChanged()
+	{
+		influxConfiguration.setRawRetention( "INF" );
+		influxConfiguration.setHourRetention( "730d" );
+		this.router = router();
+
+		// raw keeps everything now, and nothing keeps anything older than the hour tier
+		Assert.assertEquals( tier(100*DAY,0), "raw" );
+		Assert.assertEquals( tier(1000*DAY,0), "raw" );
+		Assert.assertEquals( tier(1000*DAY,HOUR), "raw" );
+		Assert.assertEquals( tier(10*DAY,HOUR), "1h" );
+
+		// when no tier goes back far enough, the one that keeps the longest is the best bet
+		influxConfiguration.setRawRetention( "7d" );
+		this.router = router();
+		Assert.assertEquals( tier(1000*DAY,0), "1h" );
+	}
+
+	@Test
+	public void testSelectByMaxPoints()
+	{
+		// three days over 1000 points is a bucket every 4m19.2s
+		long now = System.currentTimeMillis();
+		TieredQuery query = new TieredQuery( "entity_state", "x" );
+		query.setTimeRange( now-3*DAY, now );
+		query.setMaxPoints( 1000 );
+		Assert.assertEquals( query.getEffectiveResolution(), 259200 );
+		Assert.assertEquals( router.selectTier(query).getName(), "1m" );
+		Assert.assertEquals( router.getBucketMillis(query), 259200 );
+
+		// a resolution coarser than the points allow wins
+		query.setResolution( 2*HOUR );
+		Assert.assertEquals( router.selectTier(query).getName(), "1h" );
+		Assert.assertEquals( router.getBucketMillis(query), 2*HOUR );
+	}
+
+	@Test
+	public void testSelectExplicitTier()
+	{
+		TieredQuery query = query( HOUR, 0 );
+		query.setTier( "1h" );
+		Assert.assertEquals( router.selectTier(query).getName(), "1h" );
+
+		query.setTier( "5m" );
+		try
+		{
+			router.selectTier( query );
+			Assert.fail( "Expected the unknown tier to be rejected" );
+		}
+		catch( DisOpsException de )
+		{
+			Assert.assertTrue( de.getMessage().contains("5m"), de.getMessage() );
+		}
+	}
+
+	@Test
+	public void testTiersDisabled()
+	{
+		influxConfiguration.setTiersEnabled( false );
+		this.router = router();
+		Assert.assertTrue( router.getTiers().isEmpty() );
+
+		TieredQuery query = query( 100*DAY, 0 );
+		Assert.assertNull( router.selectTier(query) );
+		Assert.assertEquals( router.getBucketMillis(query), 0 );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"x\", \"y\" FROM \"exercise\"..\"entity_state\""+range(query)+" GROUP BY *" );
+
+		query.setResolution( MINUTE );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT last(\"x\") AS \"x\", last(\"y\") AS \"y\" FROM \"exercise\"..\"entity_state\""+
+		                     range(query)+" GROUP BY time(60000ms), * fill(none)" );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// InfluxQL Methods   /////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testEveryPoint()
+	{
+		TieredQuery query = query( HOUR, 0 );
+		Assert.assertEquals( router.getBucketMillis(query), 0 );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"x\", \"y\" FROM \"exercise\".\"raw\".\"entity_state\""+range(query)+" GROUP BY *" );
+
+		// no tags to group by leaves no GROUP BY at all
+		query.setGroupBy();
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"x\", \"y\" FROM \"exercise\".\"raw\".\"entity_state\""+range(query) );
+	}
+
+	/** Asking for exactly a tier's buckets reads its rollups as they are */
+	@Test
+	public void testTierResolution()
+	{
+		TieredQuery query = query( HOUR, MINUTE );
+		Assert.assertEquals( router.getBucketMillis(query), MINUTE );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"x\", \"y\" FROM \"exercise\".\"1m\".\"entity_state\""+range(query)+" GROUP BY *" );
+
+		// and data too old for the finer tiers reads the rollups of the one that has it
+		query = query( 10*DAY, 0 );
+		Assert.assertEquals( router.getBucketMillis(query), SECOND );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"x\", \"y\" FROM \"exercise\".\"1s\".\"entity_state\""+range(query)+" GROUP BY *" );
+	}
+
+	/** Buckets wider than the tier's are aggregated from it */
+	@Test
+	public void testAggregated()
+	{
+		TieredQuery query = query( HOUR, 5*SECOND );
+		Assert.assertEquals( router.getBucketMillis(query), 5*SECOND );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT last(\"x\") AS \"x\", last(\"y\") AS \"y\""+
+		                     " FROM \"exercise\".\"1s\".\"entity_state\""+range(query)+
+		                     " GROUP BY time(5000ms), * fill(none)" );
+
+		query.setFunction( "mean" );
+		query.setGroupBy( "site", "app" );
+		query.setCondition( "\"site\" = '1'" );
+		query.setDatabase( "other" );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT mean(\"x\") AS \"x\", mean(\"y\") AS \"y\""+
+		                     " FROM \"other\".\"1s\".\"entity_state\""+range(query)+" AND (\"site\" = '1')"+
+		                     " GROUP BY time(5000ms), \"site\", \"app\" fill(none)" );
+
+		query.setGroupBy();
+		Assert.assertTrue( router.toInfluxQL(query).endsWith(" GROUP BY time(5000ms) fill(none)") );
+	}
+
+	@Test
+	public void testQuoting()
+	{
+		TieredQuery query = new TieredQuery( "my \"entities\"", "a\"b" );
+		query.setTimeRange( 1000, 2000 );
+		query.setTier( "raw" );
+		Assert.assertEquals( router.toInfluxQL(query),
+		                     "SELECT \"a\\\"b\" FROM \"exercise\".\"raw\".\"my \\\"entities\\\"\""+
+		                     " WHERE time >= 1000ms AND time < 2000ms GROUP BY *" );
+	}
+
+	@Test(expectedExceptions=DisOpsException.class)
+	public void testNoFields()
+	{
+		router.toInfluxQL( new TieredQuery("entity_state") );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/** Nothing is run against influxd, so there is no need for a writer */
+	private QueryRouter router()
+	{
+		return new QueryRouter( influxConfiguration, new SchemaManager(influxConfiguration,logger), null );
+	}
+
+	/** A query for the hour starting the given time ago, at the given resolution */
+	private TieredQuery query( long age, long resolution )
+	{
+		long start = System.currentTimeMillis() - age;
+		TieredQuery query = new TieredQuery( "entity_state", "x", "y" );
+		query.setTimeRange( start, start+HOUR );
+		query.setResolution( resolution );
+		return query;
+	}
+
+	private String tier( long age, long resolution )
+	{
+		return router.selectTier( query(age,resolution) ).getName();
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static String range( TieredQuery query )
+	{
+		return " WHERE time >= "+query.getStart()+"ms AND time < "+query.getEnd()+"ms";
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.ConfigurationException;
+import org.openlvc.disops.configuration.InfluxConfiguration;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+@Test(groups={"SchemaManagerTest"})
+public class SchemaManagerTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final String DATABASE = "disops";
+
+	private static final Pattern RETENTION_POLICY =
+		Pattern.compile( "(CREATE|ALTER) RETENTION POLICY \"([^\"]+)\" ON \"[^\"]+\" DURATION (\\S+)( REPLICATION 1)?( DEFAULT)?" );
+	private static final Pattern CONTINUOUS_QUERY =
+		Pattern.compile( "(CREATE|DROP) CONTINUOUS QUERY \"([^\"]+)\" ON \"([^\"]+)\".*" );
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+
+	// stand-in influxd that keeps retention policies and continuous queries like the real one
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private Map<String,Object[]> policies = new LinkedHashMap<>();              // name -> [seconds, default]
+	private Map<String,Map<String,String>> queries = new LinkedHashMap<>();     // database -> name -> statement
+	private List<String> statements = new ArrayList<>();
+
+	private InfluxConfiguration influxConfiguration;
+	private InfluxWriter writer;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeClass(alwaysRun=true)
+	public void beforeClass() throws IOException
+	{
+		this.server = HttpServer.create( new InetSocketAddress("127.0.0.1",0), 16 );
+		this.serverThreads = Executors.newFixedThreadPool( 2 );
+		this.server.setExecutor( serverThreads );
+		this.server.createContext( "/", this::handle );
+		this.server.start();
+	}
+
+	@AfterClass(alwaysRun=true)
+	public void afterClass()
+	{
+		server.stop( 0 );
+		serverThreads.shutdownNow();
+	}
+
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod()
+	{
+		synchronized( statements )
+		{
+			policies.clear();
+			queries.clear();
+			statements.clear();
+		}
+
+		Configuration configuration = new Configuration( new String[0] );
+		this.influxConfiguration = configuration.getInfluxConfiguration();
+		influxConfiguration.setUrl( "http://127.0.0.1:"+server.getAddress().getPort() );
+		influxConfiguration.setSpillEnabled( false );
+		this.writer = new InfluxWriter( influxConfiguration, logger );
+		this.writer.startup();
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod()
+	{
+		writer.shutdown();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Apply Methods   ////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testApplyCreatesTiers()
+	{
+		SchemaManager schema = schema( "x", "y" );
+		schema.apply( writer, DATABASE );
+
+		Assert.assertEquals( policies.keySet().toString(), "[raw, 1s, 1m, 1h]" );
+		Assert.assertEquals( policies.get("raw"), new Object[]{ 7*86400L, true } );
+		Assert.assertEquals( policies.get("1s"), new Object[]{ 30*86400L, false } );
+		Assert.assertEquals( policies.get("1m"), new Object[]{ 365*86400L, false } );
+		Assert.assertEquals( policies.get("1h"), new Object[]{ 0L, false } );
+
+		// each tier is filled from the one below it
+		List<String> created = new ArrayList<>( queries.get(DATABASE).values() );
+		Assert.assertEquals( created.size(), 3 );
+		String[][] cascade = { {"raw","1s","10s","1m"}, {"1s","1m","1m","5m"}, {"1m","1h","1h","2h"} };
+		for( int i = 0; i < cascade.length; i++ )
+		{
+			String[] tiers = cascade[i];
+			String expected = "RESAMPLE EVERY "+tiers[2]+" FOR "+tiers[3]+
+			                  " BEGIN SELECT last(\"x\") AS \"x\", last(\"y\") AS \"y\""+
+			                  " INTO \"disops\".\""+tiers[1]+"\".\"entity_state\""+
+			                  " FROM \"disops\".\""+tiers[0]+"\".\"entity_state\""+
+			                  " GROUP BY time("+tiers[1]+"), * END";
+			Assert.assertTrue( created.get(i).endsWith(expected), created.get(i) );
+		}
+
+		for( String name : queries.get(DATABASE).keySet() )
+			Assert.assertTrue( name.startsWith(SchemaManager.CQ_PREFIX), name );
+	}
+
+	@Test
+	public void testApplyIsIdempotent()
+	{
+		schema( "x", "y" ).apply( writer, DATABASE );
+		statements.clear();
+
+		// a restart with the same settings finds everything already in place
+		schema( "x", "y" ).apply( writer, DATABASE );
+		for( String statement : statements )
+			Assert.assertTrue( statement.startsWith("SHOW "), statement );
+		Assert.assertEquals( statements.size(), 2 );
+	}
+
+	@Test
+	public void testApplyReconcilesChanges()
+	{
+		schema( "x", "y" ).apply( writer, DATABASE );
+		Map<String,String> before = new LinkedHashMap<>( queries.get(DATABASE) );
+
+		// queries of our own in another database, and of someone else's in this one, are left
+		// alone; a raw policy that someone made not the default is put back
+		synchronized( statements )
+		{
+			queries.computeIfAbsent( "other", database -> new LinkedHashMap<>() )
+			       .put( SchemaManager.CQ_PREFIX+"1s_entity_state_0", "CREATE CONTINUOUS QUERY ..." );
+			queries.get( DATABASE ).put( "mine", "CREATE CONTINUOUS QUERY ..." );
+			policies.get( "raw" )[1] = false;
+			statements.clear();
+		}
+
+		influxConfiguration.setRawRetention( "3d" );
+		schema( "x", "y", "z" ).apply( writer, DATABASE );
+
+		Assert.assertEquals( policies.get("raw"), new Object[]{ 3*86400L, true } );
+		Assert.assertEquals( count("ALTER RETENTION POLICY"), 1 );
+		Assert.assertEquals( count("CREATE RETENTION POLICY"), 0 );
+
+		// the changed definition replaces each of the old queries
+		Assert.assertEquals( count("DROP CONTINUOUS QUERY"), 3 );
+		Assert.assertEquals( count("CREATE CONTINUOUS QUERY"), 3 );
+		Map<String,String> after = queries.get( DATABASE );
+		Assert.assertEquals( after.size(), 4 );
+		Assert.assertTrue( after.containsKey("mine") );
+		for( String name : before.keySet() )
+			Assert.assertFalse( after.containsKey(name), name );
+		for( String statement : after.values() )
+			Assert.assertTrue( statement.equals("CREATE CONTINUOUS QUERY ...") || statement.contains("last(\"z\") AS \"z\"") );
+		Assert.assertEquals( queries.get("other").size(), 1 );
+	}
+
+	@Test
+	public void testInvalidRetention()
+	{
+		influxConfiguration.setSecondRetention( "30days" );
+		try
+		{
+			schema( "x" ).apply( writer, DATABASE );
+			Assert.fail( "Expected the bad duration to be rejected" );
+		}
+		catch( ConfigurationException ce )
+		{
+			Assert.assertTrue( ce.getMessage().contains("30days"), ce.getMessage() );
+		}
+
+		// caught before anything was sent
+		Assert.assertTrue( statements.isEmpty() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Parsing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testParseDuration()
+	{
+		// as written in statements
+		Assert.assertEquals( SchemaManager.parseDuration("7d"), 604800 );
+		Assert.assertEquals( SchemaManager.parseDuration("2w"), 1209600 );
+		Assert.assertEquals( SchemaManager.parseDuration("1h30m"), 5400 );
+		Assert.assertEquals( SchemaManager.parseDuration("90s"), 90 );
+		Assert.assertEquals( SchemaManager.parseDuration("2500ms"), 2 );
+		Assert.assertEquals( SchemaManager.parseDuration("500u"), 0 );
+
+		// as InfluxDB reports them
+		Assert.assertEquals( SchemaManager.parseDuration("168h0m0s"), 604800 );
+		Assert.assertEquals( SchemaManager.parseDuration("8760h0m0s"), 365*86400 );
+
+		// forever
+		Assert.assertEquals( SchemaManager.parseDuration("INF"), 0 );
+		Assert.assertEquals( SchemaManager.parseDuration("inf"), 0 );
+		Assert.assertEquals( SchemaManager.parseDuration("0s"), 0 );
+
+		for( String invalid : new String[]{ "7", "d", "7days", "1h-", "h1", " 7d" } )
+		{
+			try
+			{
+				SchemaManager.parseDuration( invalid );
+				Assert.fail( "Expected "+invalid+" to be rejected" );
+			}
+			catch( IllegalArgumentException iae )
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testQuote()
+	{
+		Assert.assertEquals( SchemaManager.quote("entity_state"), "\"entity_state\"" );
+		Assert.assertEquals( SchemaManager.quote("1s"), "\"1s\"" );
+		Assert.assertEquals( SchemaManager.quote("a\"b"), "\"a\\\"b\"" );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private SchemaManager schema( String... fields )
+	{
+		SchemaManager schema = new SchemaManager( influxConfiguration, logger );
+		schema.addRollup( "entity_state", "last", fields );
+		return schema;
+	}
+
+	private int count( String prefix )
+	{
+		int count = 0;
+		for( String statement : statements )
+		{
+			if( statement.startsWith(prefix) )
+				++count;
+		}
+		return count;
+	}
+
+	private void handle( HttpExchange exchange ) throws IOException
+	{
+		String statement = null;
+		try( InputStream in = exchange.getRequestBody() )
+		{
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while( (read = in.read(buffer)) != -1 )
+				body.write( buffer, 0, read );
+
+			for( String parameter : body.toString("UTF-8").split("&") )
+			{
+				if( parameter.startsWith("q=") )
+					statement = URLDecoder.decode( parameter.substring(2), "UTF-8" );
+			}
+		}
+
+		String response;
+		synchronized( statements )
+		{
+			statements.add( statement );
+			response = run( statement );
+		}
+
+		byte[] bytes = response.getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+		exchange.sendResponseHeaders( 200, bytes.length );
+		try( OutputStream out = exchange.getResponseBody() )
+		{
+			out.write( bytes );
+		}
+	}
+
+	/** Do what influxd would with the statement and return its JSON response */
+	private String run( String statement )
+	{
+		if( statement.startsWith("SHOW RETENTION POLICIES") )
+		{
+			StringBuilder values = new StringBuilder();
+			for( Map.Entry<String,Object[]> policy : policies.entrySet() )
+			{
+				String duration = format( (Long)policy.getValue()[0] );
+				values.append( values.length() == 0 ? "" : "," )
+				      .append( "[\"" ).append( policy.getKey() ).append( "\",\"" ).append( duration )
+				      .append( "\",\"24h0m0s\",1," ).append( policy.getValue()[1] ).append( ']' );
+			}
+
+			return "{\"results\":[{\"statement_id\":0,\"series\":[{\"columns\":"+
+			       "[\"name\",\"duration\",\"shardGroupDuration\",\"replicaN\",\"default\"],"+
+			       "\"values\":["+values+"]}]}]}";
+		}
+
+		if( statement.startsWith("SHOW CONTINUOUS QUERIES") )
+		{
+			StringBuilder series = new StringBuilder();
+			for( Map.Entry<String,Map<String,String>> database : queries.entrySet() )
+			{
+				StringBuilder values = new StringBuilder();
+				for( Map.Entry<String,String> query : database.getValue().entrySet() )
+				{
+					values.append( values.length() == 0 ? "" : "," )
+					      .append( "[\"" ).append( query.getKey() ).append( "\",\"" )
+					      .append( query.getValue().replace("\\","\\\\").replace("\"","\\\"") ).append( "\"]" );
+				}
+
+				series.append( series.length() == 0 ? "" : "," )
+				      .append( "{\"name\":\"" ).append( database.getKey() ).append( "\",\"columns\":[\"name\",\"query\"]" )
+				      .append( values.length() == 0 ? "" : ",\"values\":["+values+"]" ).append( '}' );
+			}
+
+			return "{\"results\":[{\"statement_id\":0,\"series\":["+series+"]}]}";
+		}
+
+		Matcher policy = RETENTION_POLICY.matcher( statement );
+		Matcher query = CONTINUOUS_QUERY.matcher( statement );
+		if( policy.matches() )
+		{
+			boolean makeDefault = policy.group(5) != null;
+			if( makeDefault )
+				policies.values().forEach( existing -> existing[1] = false );
+
+			Object[] existing = policies.get( policy.group(2) );
+			boolean wasDefault = existing != null && (Boolean)existing[1];
+			policies.put( policy.group(2), new Object[]{ SchemaManager.parseDuration(policy.group(3)),
+			                                             makeDefault || wasDefault } );
+		}
+		else if( query.matches() )
+		{
+			Map<String,String> database = queries.computeIfAbsent( query.group(3), name -> new LinkedHashMap<>() );
+			if( query.group(1).equals("CREATE") )
+				database.put( query.group(2), statement );
+			else
+				database.remove( query.group(2) );
+		}
+		else
+		{
+			return "{\"results\":[{\"statement_id\":0,\"error\":\"unexpected statement\"}]}";
+		}
+
+		return "{\"results\":[{\"statement_id\":0}]}";
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** Format a duration the way influxd reports it */
+	private static String format( long seconds )
+	{
+		return (seconds/3600)+"h"+(seconds%3600/60)+"m"+(seconds%60)+"s";
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import okio.Buffer;
+
+@Test(groups={"SpillLogTest"})
+public class SpillLogTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final int SEGMENT_SIZE = 4096;
+	private static final int HEADER_LENGTH = 16;
+	private static final int RECORD_HEADER = 4;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+	private File directory;
+	private SpillLog log;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod() throws IOException
+	{
+		this.directory = Files.createTempDirectory( "spilllog" ).toFile();
+		this.log = open();
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod()
+	{
+		log.close();
+		File[] files = directory.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+				file.delete();
+		}
+
+		directory.delete();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	///////////////////////////////////// Replay Methods ///////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testPeekAndCommit()
+	{
+		Assert.assertTrue( log.isEmpty() );
+		Assert.assertEquals( log.peek(new Buffer(),1024), 0 );
+
+		append( "one" );
+		append( "two" );
+		append( "three" );
+		Assert.assertEquals( log.getDepth(), 3*RECORD_HEADER + 14 );
+
+		// not committing hands back the same batches again
+		Assert.assertEquals( peek(8), list("one","two") );
+		Assert.assertEquals( peek(8), list("one","two") );
+		log.commit();
+
+		Assert.assertEquals( peek(1024), list("three") );
+		log.commit();
+		Assert.assertTrue( log.isEmpty() );
+		Assert.assertEquals( log.getBatchesSpilled(), 3 );
+		Assert.assertEquals( log.getBatchesReplayed(), 3 );
+	}
+
+	@Test
+	public void testOversizedBatchStillComesOutAlone()
+	{
+		append( "0123456789" );
+		append( "x" );
+		Assert.assertEquals( peek(4), list("0123456789") );
+	}
+
+	@Test
+	public void testSegmentsRollOverInOrder()
+	{
+		List<String> expected = new ArrayList<>();
+		for( int i = 0; i < 100; i++ )
+		{
+			String batch = batch( i, 199 );
+			append( batch );
+			expected.add( batch );
+		}
+
+		Assert.assertTrue( log.getSegmentCount() > 1 );
+		Assert.assertEquals( drain(), expected );
+
+		// spent segments are deleted, but the write segment is kept for reuse
+		Assert.assertEquals( log.getSegmentCount(), 1 );
+		Assert.assertEquals( segmentFiles().length, 1 );
+	}
+
+	@Test
+	public void testFull()
+	{
+		log.close();
+		this.log = new SpillLog( directory, SEGMENT_SIZE, 2*SEGMENT_SIZE, logger );
+		log.open();
+
+		// a batch bigger than a segment can never be stored
+		Assert.assertFalse( log.append(new byte[SEGMENT_SIZE],0,SEGMENT_SIZE) );
+		Assert.assertEquals( log.getBatchesDropped(), 1 );
+
+		int stored = 0;
+		while( log.append(new byte[1000],0,1000) )
+			++stored;
+
+		Assert.assertEquals( stored, 8 );
+		Assert.assertEquals( log.getBatchesDropped(), 2 );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	//////////////////////////////////// Recovery Methods //////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testRecoverAfterClose()
+	{
+		for( int i = 0; i < 30; i++ )
+			append( batch(i,199) );
+
+		// replay some of it, then close with the rest still waiting
+		Assert.assertEquals( peek(1000).size(), 5 );
+		log.commit();
+		log.close();
+
+		this.log = open();
+		List<String> expected = new ArrayList<>();
+		for( int i = 5; i < 30; i++ )
+			expected.add( batch(i,199) );
+
+		Assert.assertEquals( log.getDepth(), 25 * (RECORD_HEADER+200) );
+		Assert.assertEquals( drain(), expected );
+	}
+
+	/**
+	 * The host went down part way through a record. The segment file ends in the middle of
+	 * it, so everything before it is replayed and the partial record is dropped.
+	 */
+	@Test
+	public void testRecoverTruncatedTailRecord() throws IOException
+	{
+		append( "first" );
+		append( "second" );
+		append( "third" );
+		log.close();
+
+		// cut anywhere from just inside the length to just short of the end of the payload
+		File segment = segmentFiles()[0];
+		int thirdStart = HEADER_LENGTH + 2*RECORD_HEADER + 13;
+		for( int cut = thirdStart+RECORD_HEADER+5; cut > thirdStart; cut-- )
+		{
+			truncate( segment, cut );
+			this.log = open();
+			Assert.assertEquals( log.getDepth(), 2*RECORD_HEADER + 13, "Cut at "+cut );
+			Assert.assertEquals( peek(1024), list("first","second"), "Cut at "+cut );
+			log.close();
+		}
+	}
+
+	/**
+	 * The record's length made it to disk but its payload didn't all make it, so the length
+	 * runs past the end of the file.
+	 */
+	@Test
+	public void testRecoverLengthPastEndOfFile() throws IOException
+	{
+		append( "first" );
+		append( "second" );
+		log.close();
+
+		File segment = segmentFiles()[0];
+		try( RandomAccessFile raf = new RandomAccessFile(segment,"rw") )
+		{
+			raf.seek( HEADER_LENGTH + RECORD_HEADER + 6 );
+			raf.writeInt( SEGMENT_SIZE );
+		}
+
+		this.log = open();
+		Assert.assertEquals( drain(), list("first") );
+	}
+
+	/**
+	 * Recovered segments are sealed. New batches go in a new segment after them and come
+	 * out after everything that was recovered.
+	 */
+	@Test
+	public void testAppendAfterRecovery() throws IOException
+	{
+		append( "old1" );
+		append( "old2" );
+		log.close();
+		truncate( segmentFiles()[0], HEADER_LENGTH + 2*RECORD_HEADER + 8 );
+
+		this.log = open();
+		append( "new1" );
+		append( "new2" );
+		Assert.assertEquals( segmentFiles().length, 2 );
+		Assert.assertEquals( drain(), list("old1","new1","new2") );
+	}
+
+	@Test
+	public void testRecoverIgnoresInvalidSegments() throws IOException
+	{
+		append( "kept" );
+		log.close();
+
+		// one with no magic number, and one too short to even have a header
+		truncate( new File(directory,"spill-00000000000000000098.log"), SEGMENT_SIZE );
+		truncate( new File(directory,"spill-00000000000000000099.log"), 8 );
+
+		this.log = open();
+		Assert.assertEquals( drain(), list("kept") );
+	}
+
+	/**
+	 * A write that fails after shutdown has closed the log must not map a new segment that
+	 * nothing will ever force or unmap.
+	 */
+	@Test
+	public void testAppendAfterClose()
+	{
+		append( "kept" );
+		log.close();
+
+		// fill the tail segment and more, so an open log would have to roll over
+		byte[] late = new byte[SEGMENT_SIZE/2];
+		for( int i = 0; i < 4; i++ )
+			Assert.assertFalse( log.append(late,0,late.length) );
+
+		Assert.assertEquals( log.getBatchesDropped(), 4 );
+		Assert.assertEquals( log.getBatchesSpilled(), 1 );
+		Assert.assertEquals( segmentFiles().length, 1 );
+
+		// and opening it again takes appends as normal
+		this.log = open();
+		append( "new" );
+		Assert.assertEquals( drain(), list("kept","new") );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private SpillLog open()
+	{
+		SpillLog opened = new SpillLog( directory, SEGMENT_SIZE, 64*SEGMENT_SIZE, logger );
+		opened.open();
+		return opened;
+	}
+
+	/** Append the batch as a line, so {@link #peek(int)} can split them apart again */
+	private void append( String batch )
+	{
+		byte[] bytes = (batch+"\n").getBytes( StandardCharsets.UTF_8 );
+		Assert.assertTrue( log.append(bytes,0,bytes.length), "Append "+batch );
+	}
+
+	/** Peek with the given limit and split what comes back into its batches */
+	private List<String> peek( int maxBytes )
+	{
+		Buffer buffer = new Buffer();
+		int count = log.peek( buffer, maxBytes );
+		List<String> batches = new ArrayList<>();
+		for( String batch : buffer.readUtf8().split("\n") )
+		{
+			if( !batch.isEmpty() )
+				batches.add( batch );
+		}
+
+		Assert.assertEquals( batches.size(), count );
+		return batches;
+	}
+
+	private List<String> drain()
+	{
+		List<String> all = new ArrayList<>();
+		List<String> batches;
+		while( !(batches = peek(1024)).isEmpty() )
+		{
+			all.addAll( batches );
+			log.commit();
+		}
+
+		Assert.assertTrue( log.isEmpty() );
+		return all;
+	}
+
+	private File[] segmentFiles()
+	{
+		File[] files = directory.listFiles( (dir,name) -> name.startsWith("spill-") );
+		Arrays.sort( files );
+		return files;
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** A batch of the given length (not counting its newline), different for each index */
+	private static String batch( int index, int length )
+	{
+		StringBuilder builder = new StringBuilder( length );
+		while( builder.length() < length )
+			builder.append( (char)('a' + (index+builder.length())%26) );
+		return builder.toString();
+	}
+
+	private static List<String> list( String... batches )
+	{
+		return Arrays.asList( batches );
+	}
+
+	private static void truncate( File file, long length ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"rw") )
+		{
+			raf.setLength( length );
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.influx;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"TagDictionaryTest"})
+public class TagDictionaryTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	/** Formats a key as a single tag holding its bytes in hex, so every key is distinct */
+	private static final TagDictionary.Formatter HEX = (raw,length,tags) -> {
+		StringBuilder hex = new StringBuilder();
+		for( int i = 0; i < length; i++ )
+			hex.append( String.format("%02x",raw[i]) );
+		TagDictionary.appendTag( tags, "key", hex );
+	};
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private int formatted;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testCapacityTooSmall()
+	{
+		new TagDictionary( 0, HEX );
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testKeyTooLong()
+	{
+		new TagDictionary( 4, HEX ).get( ByteBuffer.allocate(32), 0, TagDictionary.MAX_KEY_LENGTH+1 );
+	}
+
+	@Test
+	public void testHitAndMiss()
+	{
+		TagDictionary dictionary = counting( 16 );
+		byte[] first = dictionary.get( 0x0101E10101030000L );
+		Assert.assertEquals( string(first), ",key=0101e10101030000" );
+		Assert.assertSame( dictionary.get(0x0101E10101030000L), first );
+		Assert.assertEquals( formatted, 1 );
+		Assert.assertEquals( dictionary.getHits(), 1 );
+		Assert.assertEquals( dictionary.getMisses(), 1 );
+		Assert.assertEquals( dictionary.getHitRate(), 50 );
+		Assert.assertEquals( dictionary.size(), 1 );
+	}
+
+	/** Keys are compared on their length as well as their bytes, so zero padding doesn't alias */
+	@Test
+	public void testLengthIsPartOfKey()
+	{
+		TagDictionary dictionary = counting( 16 );
+		ByteBuffer buffer = ByteBuffer.allocate( 32 );
+		buffer.put( 0, (byte)'A' );
+		Assert.assertEquals( string(dictionary.get(buffer,0,1)), ",key=41" );
+		Assert.assertEquals( string(dictionary.get(buffer,0,2)), ",key=4100" );
+		Assert.assertEquals( string(dictionary.get(buffer,0,0)), "" );
+		Assert.assertEquals( formatted, 3 );
+	}
+
+	/**
+	 * Keys near the end of a buffer are read a byte at a time rather than as whole longs.
+	 * Both ways must see the same key, and neither may see the bytes after it.
+	 */
+	@Test
+	public void testBufferEdges()
+	{
+		TagDictionary dictionary = counting( 64 );
+		byte[] marking = "TANK01".getBytes( StandardCharsets.US_ASCII );
+		ByteBuffer roomy = ByteBuffer.allocate( 64 );
+		ByteBuffer tight = ByteBuffer.allocate( 8 );
+		for( int i = 0; i < 64; i++ )
+			roomy.put( i, (byte)0x7f );
+		roomy.position( 10 );
+		roomy.put( marking );
+		tight.put( 2, marking, 0, 6 );
+
+		byte[] fast = dictionary.get( roomy, 10, 6 );
+		Assert.assertSame( dictionary.get(tight,2,6), fast );
+		Assert.assertEquals( string(fast), ",key=54414e4b3031" );
+
+		// every length across the 8 byte boundary, both ways
+		ByteBuffer whole = ByteBuffer.allocate( 64 );
+		ByteBuffer end = ByteBuffer.allocate( TagDictionary.MAX_KEY_LENGTH );
+		for( int i = 0; i < TagDictionary.MAX_KEY_LENGTH; i++ )
+		{
+			whole.put( i, (byte)(i+1) );
+			end.put( i, (byte)(i+1) );
+		}
+		for( int length = 1; length <= TagDictionary.MAX_KEY_LENGTH; length++ )
+			Assert.assertSame( dictionary.get(end,TagDictionary.MAX_KEY_LENGTH-length,length),
+			                   dictionary.get(whole,TagDictionary.MAX_KEY_LENGTH-length,length),
+			                   "Length "+length );
+	}
+
+	/**
+	 * Entries used since the hand last came past are skipped over (and unmarked), and the
+	 * first one that hasn't been is evicted.
+	 */
+	@Test
+	public void testClockEviction()
+	{
+		TagDictionary dictionary = counting( 4 );
+		for( long key = 1; key <= 4; key++ )
+			dictionary.get( key );
+		dictionary.get( 1L );
+		dictionary.get( 2L );
+		formatted = 0;
+
+		dictionary.get( 5L );     // 1 and 2 were used, so 3 goes
+		dictionary.get( 6L );     // then 4
+		Assert.assertEquals( dictionary.getEvictions(), 2 );
+		Assert.assertEquals( formatted, 2 );
+
+		dictionary.get( 1L );
+		dictionary.get( 2L );
+		dictionary.get( 5L );
+		dictionary.get( 6L );
+		Assert.assertEquals( formatted, 2 );
+
+		dictionary.get( 3L );
+		Assert.assertEquals( formatted, 3 );
+		Assert.assertEquals( dictionary.size(), 4 );
+	}
+
+	/**
+	 * Lots of lookups over a set of keys a few times bigger than the dictionary, so entries
+	 * are evicted out of the middle of probe runs all the time, checked against a plain model
+	 * of CLOCK. If removing an entry ever broke the probe run for another, that entry would
+	 * be missed while the model still holds it.
+	 */
+	@Test
+	public void testEvictionKeepsProbeChains()
+	{
+		Random random = new Random( 5 );
+		for( int capacity : new int[]{ 1, 2, 3, 7, 8, 64, 1000 } )
+		{
+			TagDictionary dictionary = counting( capacity );
+			long[] held = new long[capacity];
+			boolean[] referenced = new boolean[capacity];
+			int size = 0;
+			int hand = 0;
+			for( int i = 0; i < 200000; i++ )
+			{
+				// skewed, so some keys stay hot and others come and go
+				long key = random.nextBoolean() ? random.nextInt(capacity/2+1) : random.nextInt(capacity*4);
+
+				int entry = -1;
+				for( int e = 0; e < size && entry < 0; e++ )
+					entry = held[e] == key ? e : -1;
+
+				int before = formatted;
+				dictionary.get( key );
+				if( entry >= 0 )
+				{
+					Assert.assertEquals( formatted, before, "Lost key "+key+" (capacity "+capacity+")" );
+					referenced[entry] = true;
+					continue;
+				}
+
+				Assert.assertEquals( formatted, before+1, "Key "+key+" (capacity "+capacity+")" );
+				if( size < capacity )
+				{
+					entry = size++;
+				}
+				else
+				{
+					while( referenced[hand] )
+					{
+						referenced[hand] = false;
+						hand = (hand+1) % capacity;
+					}
+					entry = hand;
+					hand = (hand+1) % capacity;
+				}
+
+				held[entry] = key;
+				referenced[entry] = false;
+			}
+
+			Assert.assertEquals( dictionary.size(), size );
+			for( int e = 0; e < size; e++ )
+				Assert.assertEquals( string(dictionary.get(held[e])), string(format(held[e])) );
+		}
+	}
+
+	@Test
+	public void testAppendTagEscaping()
+	{
+		StringBuilder tags = new StringBuilder();
+		TagDictionary.appendTag( tags, "marking", "a b,c=d\\e" );
+		Assert.assertEquals( tags.toString(), ",marking=a\\ b\\,c\\=d\\\\e" );
+
+		// anything that isn't printable ASCII is replaced
+		tags.setLength( 0 );
+		byte[] raw = { 'T', 0, (byte)0xe9, '\n', 0x7f, '~' };
+		TagDictionary.appendTag( tags, "marking", raw, 0, raw.length );
+		Assert.assertEquals( tags.toString(), ",marking=T____~" );
+
+		// line protocol can't have an empty tag value, so there is no tag at all
+		tags.setLength( 0 );
+		TagDictionary.appendTag( tags, "marking", "" );
+		TagDictionary.appendTag( tags, "marking", raw, 2, 0 );
+		Assert.assertEquals( tags.toString(), "" );
+
+		TagDictionary.appendTag( tags, "site", -12L );
+		Assert.assertEquals( tags.toString(), ",site=-12" );
+	}
+
+	private TagDictionary counting( int capacity )
+	{
+		this.formatted = 0;
+		return new TagDictionary( capacity, (raw,length,tags) -> {
+			++formatted;
+			HEX.format( raw, length, tags );
+		} );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static String string( byte[] value )
+	{
+		return new String( value, StandardCharsets.US_ASCII );
+	}
+
+	/** What {@link #HEX} makes of an eight byte key */
+	private static byte[] format( long key )
+	{
+		StringBuilder tags = new StringBuilder();
+		HEX.format( ByteBuffer.allocate(8).putLong(0,key).array(), 8, tags );
+		return tags.toString().getBytes( StandardCharsets.US_ASCII );
+	}
+}
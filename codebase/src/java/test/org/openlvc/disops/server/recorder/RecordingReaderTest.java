@@ -0,0 +1,304 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.openlvc.disops.DisOpsException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"RecordingReaderTest"})
+public class RecordingReaderTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long START = 1500000000000L;
+	private static final long INDEX_INTERVAL = 1000;
+	private static final int RECORDS = 5000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+	private RecordingSegment writing;    // last segment, still open if the recording is
+	private int recorded;
+	private List<AutoCloseable> opened;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod() throws IOException
+	{
+		this.directory = Files.createTempDirectory( "recording" ).toFile();
+		this.writing = null;
+		this.recorded = 0;
+		this.opened = new ArrayList<>();
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod() throws Exception
+	{
+		for( AutoCloseable closeable : opened )
+			closeable.close();
+		if( writing != null )
+			writing.close();
+
+		File[] files = directory.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+				file.delete();
+		}
+
+		directory.delete();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Reading Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testReadBack() throws IOException
+	{
+		record( RECORDS );
+		finish();
+
+		RecordingReader reader = open();
+		Assert.assertEquals( reader.getSegmentCount(), segmentFiles().length );
+		Assert.assertTrue( reader.getSegmentCount() > 2 );
+		Assert.assertEquals( reader.getStartTime(), time(0) );
+
+		checkFrom( reader, 0 );
+		Assert.assertFalse( reader.next() );
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testNotPositioned() throws IOException
+	{
+		record( 10 );
+		finish();
+		open().getTime();
+	}
+
+	@Test(expectedExceptions=DisOpsException.class)
+	public void testNoRecording()
+	{
+		new RecordingReader( directory );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Seek Methods   /////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Seeking to any time, in any segment, lands on the first record at or after it and
+	 * reads on from there across the segment boundaries.
+	 */
+	@Test
+	public void testSeek() throws IOException
+	{
+		record( RECORDS );
+		finish();
+		RecordingReader reader = open();
+
+		// where each segment starts, and either side of it
+		List<Long> times = new ArrayList<>();
+		for( File file : segmentFiles() )
+		{
+			long first = RecordingSegment.readFirstTime( file );
+			times.addAll( Arrays.asList(first-1,first,first+1) );
+		}
+
+		Random random = new Random( 5 );
+		for( int i = 0; i < 300; i++ )
+			times.add( time(0) - 5 + random.nextInt((int)(time(RECORDS-1)-time(0)+10)) );
+
+		for( long time : times )
+		{
+			reader.seek( time );
+			int expected = firstAtOrAfter( time );
+			if( expected == RECORDS )
+			{
+				Assert.assertFalse( reader.next(), "Seek to "+time );
+				continue;
+			}
+
+			// a few records on, or to the end if that is close
+			for( int i = expected; i < Math.min(RECORDS,expected+50); i++ )
+				check( reader, i );
+		}
+
+		// right back to the start, and all the way through
+		reader.seek( Long.MIN_VALUE );
+		checkFrom( reader, 0 );
+
+		reader.seek( Long.MAX_VALUE );
+		Assert.assertFalse( reader.next() );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Live Recording Methods   ///////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/** A reader keeps up with a recording still being made, as far as the segments it found */
+	@Test
+	public void testReadWhileRecording() throws IOException
+	{
+		record( 2000 );
+		RecordingReader reader = open();
+		checkFrom( reader, 0 );
+		Assert.assertFalse( reader.next() );
+
+		// more in the same segment
+		int before = recorded;
+		append( 10 );
+		checkFrom( reader, before );
+		Assert.assertFalse( reader.next() );
+	}
+
+	/** The segment being written may have nothing in it yet when the reader opens it */
+	@Test
+	public void testEmptyLastSegment() throws IOException
+	{
+		record( 2000 );
+		rollOver();
+		RecordingReader reader = open();
+		Assert.assertEquals( reader.getStartTime(), time(0) );
+
+		// an empty segment starts after everything, so a seek past the end still lands there
+		reader.seek( time(1999)+1 );
+		Assert.assertFalse( reader.next() );
+
+		append( 10 );
+		checkFrom( reader, 2000 );
+		Assert.assertFalse( reader.next() );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/** Record packets the way the recorder does, starting a new segment when one fills up */
+	private void record( int count ) throws IOException
+	{
+		if( writing == null )
+			rollOver();
+
+		append( count );
+	}
+
+	private void append( int count ) throws IOException
+	{
+		for( int i = 0; i < count; i++, recorded++ )
+		{
+			if( !writing.append(packet(recorded),time(recorded),INDEX_INTERVAL) )
+			{
+				rollOver();
+				Assert.assertTrue( writing.append(packet(recorded),time(recorded),INDEX_INTERVAL) );
+			}
+		}
+	}
+
+	private void rollOver() throws IOException
+	{
+		long sequence = 0;
+		if( writing != null )
+		{
+			sequence = writing.getSequence()+1;
+			finish();
+		}
+
+		File file = new File( directory, RecordingSegment.getFileName(sequence) );
+		this.writing = RecordingSegment.create( file, sequence, RecordingSegment.MIN_SIZE );
+	}
+
+	/** Seal and close the segment being written */
+	private void finish()
+	{
+		writing.seal();
+		writing.close();
+		this.writing = null;
+	}
+
+	private RecordingReader open()
+	{
+		RecordingReader reader = new RecordingReader( directory );
+		opened.add( reader );
+		return reader;
+	}
+
+	private File[] segmentFiles()
+	{
+		File[] files = directory.listFiles();
+		Arrays.sort( files );
+		return files;
+	}
+
+	/** Read on to the end of what has been recorded so far, checking every record */
+	private void checkFrom( RecordingReader reader, int first )
+	{
+		for( int i = first; i < recorded; i++ )
+			check( reader, i );
+	}
+
+	private void check( RecordingReader reader, int index )
+	{
+		Assert.assertTrue( reader.next(), "Record "+index );
+		Assert.assertEquals( reader.getTime(), time(index), "Record "+index );
+		Assert.assertEquals( reader.getPacket(), packet(index), "Record "+index );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** A packet of 1 to 1400 bytes, different for each index */
+	private static ByteBuffer packet( int index )
+	{
+		byte[] packet = new byte[1 + (index*37) % 1400];
+		for( int i = 0; i < packet.length; i++ )
+			packet[i] = (byte)(index*31 + i);
+		return ByteBuffer.wrap( packet );
+	}
+
+	/** Three records every 10ms, all three with the same time */
+	private static long time( int index )
+	{
+		return START + (index/3)*10;
+	}
+
+	/** @return Index of the first record at or after the time, or RECORDS if there isn't one */
+	private static int firstAtOrAfter( long time )
+	{
+		int index = 0;
+		while( index < RECORDS && time(index) < time )
+			index++;
+		return index;
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"RecordingSegmentTest"})
+public class RecordingSegmentTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long START = 1500000000000L;
+	private static final long INDEX_INTERVAL = 1000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private File directory;
+	private File file;
+	private List<RecordingSegment> opened;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod() throws IOException
+	{
+		this.directory = Files.createTempDirectory( "segment" ).toFile();
+		this.file = new File( directory, RecordingSegment.getFileName(7) );
+		this.opened = new ArrayList<>();
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod()
+	{
+		for( RecordingSegment segment : opened )
+			segment.close();
+
+		File[] files = directory.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+				file.delete();
+		}
+
+		directory.delete();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Writing Methods   //////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	@Test
+	public void testAppendAndReadBack() throws IOException
+	{
+		RecordingSegment segment = create();
+		Assert.assertEquals( segment.getFirstTime(), 0 );
+		Assert.assertEquals( segment.getDataEnd(), RecordingSegment.HEADER_LENGTH );
+		Assert.assertEquals( RecordingSegment.readFirstTime(file), 0 );
+
+		for( int i = 0; i < 100; i++ )
+		{
+			ByteBuffer packet = packet( i );
+			int position = packet.position();
+			Assert.assertTrue( segment.append(packet,time(i),INDEX_INTERVAL) );
+			Assert.assertEquals( packet.position(), position );
+		}
+
+		Assert.assertEquals( segment.getRecordCount(), 100 );
+		Assert.assertEquals( segment.getFirstTime(), time(0) );
+		Assert.assertEquals( segment.getLastTime(), time(99) );
+		Assert.assertEquals( segment.getSequence(), 7 );
+		Assert.assertFalse( segment.isSealed() );
+		checkRecords( segment, 100 );
+
+		// another process can read it as it is being written, then once it is finished
+		RecordingSegment reader = open();
+		Assert.assertFalse( reader.isSealed() );
+		checkRecords( reader, 100 );
+		segment.append( packet(100), time(100), INDEX_INTERVAL );
+		Assert.assertEquals( reader.getRecordCount(), 101 );
+		Assert.assertEquals( reader.getDataEnd(), segment.getDataEnd() );
+
+		segment.seal();
+		Assert.assertTrue( reader.isSealed() );
+		checkRecords( open(), 101 );
+		Assert.assertEquals( RecordingSegment.readFirstTime(file), time(0) );
+	}
+
+	/**
+	 * Records and the index grow towards each other. Once they meet the segment is full, and
+	 * none of either has been written over.
+	 */
+	@Test
+	public void testFull() throws IOException
+	{
+		RecordingSegment segment = create();
+		int count = 0;
+		while( segment.append(packet(count),time(count),1) )
+			++count;
+
+		// every record here is a new index entry
+		Assert.assertEquals( segment.getRecordCount(), count );
+		Assert.assertEquals( segment.getIndexCount(), count );
+		int indexStart = segment.getCapacity() - count*RecordingSegment.INDEX_ENTRY;
+		Assert.assertTrue( segment.getDataEnd() <= indexStart );
+		Assert.assertTrue( segment.getDataEnd() + 1500 > indexStart );
+
+		// a smaller packet may still fit in what's left, but nothing can once it is truly full
+		while( segment.append(ByteBuffer.allocate(0),time(count),1) )
+			++count;
+		Assert.assertTrue( segment.getDataEnd() + RecordingSegment.RECORD_HEADER + RecordingSegment.INDEX_ENTRY >
+		                   segment.getCapacity() - count*RecordingSegment.INDEX_ENTRY );
+
+		segment.seal();
+		RecordingSegment reader = open();
+		Assert.assertEquals( reader.getRecordCount(), count );
+		for( int i = 0; i < count; i += 97 )
+			Assert.assertEquals( reader.getTime(reader.seek(time(i))), time(i) );
+	}
+
+	@Test
+	public void testMinimumSize() throws IOException
+	{
+		RecordingSegment segment = RecordingSegment.create( file, 7, 1024 );
+		opened.add( segment );
+		Assert.assertEquals( segment.getCapacity(), RecordingSegment.MIN_SIZE );
+		Assert.assertEquals( file.length(), RecordingSegment.MIN_SIZE );
+	}
+
+	@Test
+	public void testNotASegment() throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"rw") )
+		{
+			raf.setLength( RecordingSegment.MIN_SIZE );
+		}
+
+		try
+		{
+			open();
+			Assert.fail( "Expected a file of zeros to be rejected" );
+		}
+		catch( IOException ioex )
+		{
+			// expected
+		}
+
+		try
+		{
+			RecordingSegment.readFirstTime( file );
+			Assert.fail( "Expected a file of zeros to be rejected" );
+		}
+		catch( IOException ioex )
+		{
+			// expected
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Seek Methods   /////////////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Three records every 10ms, all three with the same time, and an index entry every second.
+	 * Seeking to any time lands on the first record at or after it.
+	 */
+	@Test
+	public void testSeekWithIndex() throws IOException
+	{
+		RecordingSegment segment = create();
+		for( int i = 0; i < 6000; i++ )
+			Assert.assertTrue( segment.append(ByteBuffer.allocate(40),START+(i/3)*10,INDEX_INTERVAL) );
+
+		Assert.assertEquals( segment.getIndexCount(), 20 );
+		segment.seal();
+
+		for( RecordingSegment reader : new RecordingSegment[]{ segment, open() } )
+		{
+			// either end
+			Assert.assertEquals( reader.seek(Long.MIN_VALUE), RecordingSegment.HEADER_LENGTH );
+			Assert.assertEquals( reader.seek(START), RecordingSegment.HEADER_LENGTH );
+			Assert.assertEquals( reader.seek(START+20000), reader.getDataEnd() );
+			Assert.assertEquals( reader.seek(Long.MAX_VALUE), reader.getDataEnd() );
+
+			// right on index entries, either side of them, and anywhere
+			List<Long> times = new ArrayList<>();
+			for( long second = 0; second < 20; second++ )
+			{
+				times.add( START + second*1000 - 1 );
+				times.add( START + second*1000 );
+				times.add( START + second*1000 + 1 );
+			}
+
+			Random random = new Random( 11 );
+			for( int i = 0; i < 500; i++ )
+				times.add( START - 5 + random.nextInt(20010) );
+
+			for( long time : times )
+				Assert.assertEquals( reader.seek(time), scan(reader,time), "Seek to "+time );
+		}
+	}
+
+	/** The first record is always indexed, and after that only once the interval has passed */
+	@Test
+	public void testIndexInterval() throws IOException
+	{
+		RecordingSegment segment = create();
+		long[] times = { START, START+999, START+1000, START+1000, START+1500, START+2999, START+3000 };
+		for( long time : times )
+			segment.append( packet(0), time, INDEX_INTERVAL );
+
+		// entries at START, START+1000, START+2999
+		Assert.assertEquals( segment.getIndexCount(), 3 );
+		Assert.assertEquals( segment.seek(START+1000), offset(segment,2) );
+		Assert.assertEquals( segment.seek(START+1001), offset(segment,4) );
+		Assert.assertEquals( segment.seek(START+3000), offset(segment,6) );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	private RecordingSegment create() throws IOException
+	{
+		RecordingSegment segment = RecordingSegment.create( file, 7, RecordingSegment.MIN_SIZE );
+		opened.add( segment );
+		return segment;
+	}
+
+	private RecordingSegment open() throws IOException
+	{
+		RecordingSegment segment = RecordingSegment.open( file );
+		opened.add( segment );
+		return segment;
+	}
+
+	/** Walk the records from the start, checking each against what was appended */
+	private void checkRecords( RecordingSegment segment, int count ) throws IOException
+	{
+		int offset = RecordingSegment.HEADER_LENGTH;
+		for( int i = 0; i < count; i++ )
+		{
+			Assert.assertTrue( offset < segment.getDataEnd() );
+			Assert.assertEquals( offset % 8, 0 );
+			Assert.assertEquals( segment.getTime(offset), time(i) );
+			Assert.assertEquals( segment.getLength(offset), packet(i).remaining() );
+			Assert.assertEquals( read(offset), packet(i), "Record "+i );
+			offset = segment.next( offset );
+		}
+
+		Assert.assertEquals( offset, segment.getDataEnd() );
+	}
+
+	/** Read a record's packet straight from the file, rather than through the segment */
+	private ByteBuffer read( int offset ) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(file,"r") )
+		{
+			raf.seek( offset );
+			byte[] packet = new byte[raf.readInt()];
+			raf.seek( offset+RecordingSegment.RECORD_HEADER );
+			raf.readFully( packet );
+			return ByteBuffer.wrap( packet );
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** A packet of 1 to 1400 bytes, different for each index, with some space either side */
+	private static ByteBuffer packet( int index )
+	{
+		int length = 1 + (index*37) % 1400;
+		ByteBuffer buffer = ByteBuffer.allocate( length+20 );
+		buffer.position( 10 );
+		for( int i = 0; i < length; i++ )
+			buffer.put( (byte)(index*31 + i) );
+
+		buffer.flip().position( 10 );
+		return buffer;
+	}
+
+	private static long time( int index )
+	{
+		return START + index*7;
+	}
+
+	/** The first record at or after the time, found the slow way */
+	private static int scan( RecordingSegment segment, long time )
+	{
+		int offset = RecordingSegment.HEADER_LENGTH;
+		while( offset < segment.getDataEnd() && segment.getTime(offset) < time )
+			offset = segment.next( offset );
+		return offset;
+	}
+
+	private static int offset( RecordingSegment segment, int record )
+	{
+		int offset = RecordingSegment.HEADER_LENGTH;
+		for( int i = 0; i < record; i++ )
+			offset = segment.next( offset );
+		return offset;
+	}
+}
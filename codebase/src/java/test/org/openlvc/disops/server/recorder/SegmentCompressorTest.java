@@ -0,0 +1,384 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.server.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openlvc.disops.configuration.Configuration;
+import org.openlvc.disops.configuration.RecorderConfiguration;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups={"SegmentCompressorTest"})
+public class SegmentCompressorTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	private static final long START = 1500000000000L;
+	private static final long INDEX_INTERVAL = 100;
+	private static final int BLOCK_SIZE = 16*1024;
+	private static final int RECORDS = 5000;
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+	private Logger logger = LogManager.getFormatterLogger( "disops.test" );
+	private File parent;        // where recordings are made
+	private File directory;     // the recording
+	private List<AutoCloseable> opened;
+	private SegmentCompressor compressor;
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@BeforeMethod(alwaysRun=true)
+	public void beforeMethod() throws IOException
+	{
+		this.parent = Files.createTempDirectory( "recordings" ).toFile();
+		this.directory = new File( parent, "recording" );
+		this.directory.mkdirs();
+		this.opened = new ArrayList<>();
+		this.compressor = new SegmentCompressor( 1, BLOCK_SIZE, 1, logger );
+	}
+
+	@AfterMethod(alwaysRun=true)
+	public void afterMethod() throws Exception
+	{
+		compressor.shutdown();
+		for( AutoCloseable closeable : opened )
+			closeable.close();
+
+		for( File recording : parent.listFiles() )
+		{
+			File[] files = recording.listFiles();
+			for( int i = 0; files != null && i < files.length; i++ )
+				files[i].delete();
+			recording.delete();
+		}
+
+		parent.delete();
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Round Trip Methods   ///////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Record through the recorder, which seals each segment as it fills and has it
+	 * compressed in the background, then read the whole lot back and seek around in it.
+	 */
+	@Test
+	public void testRecordCompressReadBack() throws IOException
+	{
+		RecorderConfiguration configuration = new Configuration( new String[0] ).getRecorderConfiguration();
+		configuration.setDirectory( parent.getAbsolutePath() );
+		configuration.setSegmentSize( RecordingSegment.MIN_SIZE );
+		configuration.setBufferSize( 8*1024*1024 );
+		configuration.setIndexInterval( INDEX_INTERVAL );
+		configuration.setCompressionEnabled( true );
+		configuration.setCompressionThreads( 1 );
+		configuration.setCompressionBlockSize( BLOCK_SIZE );
+		configuration.setCompressionLevel( 1 );
+
+		PduRecorder recorder = new PduRecorder( configuration, logger );
+		recorder.startup();
+		try
+		{
+			for( int i = 0; i < RECORDS; i++ )
+				Assert.assertTrue( recorder.record(packet(i),time(i)) );
+
+			// every segment but the one still being written gets compressed
+			waitFor( recorder::getPdusRecorded, RECORDS );
+			waitFor( () -> recorder.getCompressor().getQueued(), 0 );
+			Assert.assertTrue( recorder.getSegmentCount() > 2 );
+			Assert.assertEquals( recorder.getCompressor().getSegmentsCompressed(), recorder.getSegmentCount()-1 );
+			Assert.assertEquals( recorder.getCompressor().getSegmentsFailed(), 0 );
+			Assert.assertTrue( recorder.getCompressor().getRatio() > 1.0 );
+		}
+		finally
+		{
+			recorder.shutdown();
+		}
+
+		// the last was sealed at shutdown; compress it here rather than on the next start
+		this.directory = recorder.getDirectory();
+		File[] files = segmentFiles();
+		File last = files[files.length-1];
+		Assert.assertTrue( last.getName().endsWith(RecordingSegment.SUFFIX) );
+		File compressed = compressor.compress( last );
+		Assert.assertEquals( compressed.getName(), last.getName().replace(RecordingSegment.SUFFIX,CompressedSegment.SUFFIX) );
+		Assert.assertFalse( last.exists() );
+
+		for( File file : segmentFiles() )
+			Assert.assertTrue( file.getName().endsWith(CompressedSegment.SUFFIX), file.getName() );
+
+		RecordingReader reader = open();
+		Assert.assertEquals( reader.getStartTime(), time(0) );
+		checkFrom( reader, 0, RECORDS );
+		Assert.assertFalse( reader.next() );
+		checkSeeks( reader, new Random(3) );
+	}
+
+	/**
+	 * Blocks hold whole records, and seeking finds the first record at or after a time even
+	 * when it is shared with the end of the block before.
+	 */
+	@Test
+	public void testCompressedSegment() throws IOException
+	{
+		File source = recordSegment( 0, 0, 1000 );
+		File target = new File( directory, "compressed"+CompressedSegment.SUFFIX );
+		RecordingSegment segment = RecordingSegment.open( source );
+		int dataEnd = segment.getDataEnd();
+		long written = CompressedSegment.write( segment, target, 4096, 6 );
+		segment.close();
+		Assert.assertEquals( written, target.length() );
+
+		CompressedSegment compressed = CompressedSegment.open( target );
+		opened.add( compressed::close );
+		Assert.assertEquals( compressed.getRecordCount(), 1000 );
+		Assert.assertEquals( compressed.getFirstTime(), time(0) );
+		Assert.assertEquals( compressed.getLastTime(), time(999) );
+		Assert.assertEquals( compressed.getUncompressedSize(), dataEnd-RecordingSegment.HEADER_LENGTH );
+		Assert.assertEquals( compressed.getCompressedSize(), target.length() );
+		Assert.assertTrue( compressed.getCompressedSize() < compressed.getUncompressedSize() );
+		Assert.assertEquals( CompressedSegment.readFirstTime(target), time(0) );
+
+		// every record comes out of one block or another, in order
+		long[] blockStarts = new long[compressed.getBlockCount()];
+		Assert.assertTrue( blockStarts.length > 10 );
+		int index = 0;
+		for( int block = 0; block < blockStarts.length; block++ )
+		{
+			ByteBuffer records = compressed.getBlock( block );
+			Assert.assertTrue( records.hasRemaining() );
+			blockStarts[block] = RecordingSegment.getTime( records, records.position() );
+			for( int offset = records.position(); offset < records.limit(); offset = RecordingSegment.next(records,offset) )
+			{
+				Assert.assertEquals( RecordingSegment.getTime(records,offset), time(index) );
+				Assert.assertEquals( RecordingSegment.getLength(records,offset), packet(index).remaining() );
+				index++;
+			}
+		}
+		Assert.assertEquals( index, 1000 );
+
+		// the last block starting before the time, and from there the first record at or after it
+		for( long time = time(0)-1; time <= time(999)+1; time++ )
+		{
+			int expected = 0;
+			while( expected+1 < blockStarts.length && blockStarts[expected+1] < time )
+				expected++;
+			Assert.assertEquals( compressed.findBlock(time), expected, "Find "+time );
+		}
+	}
+
+	/** A reader part way through a segment carries on when it is compressed underneath it */
+	@Test
+	public void testCompressedWhileReading() throws IOException
+	{
+		recordSegment( 0, 0, 1500 );
+		recordSegment( 1, 1500, 1500 );
+		recordSegment( 2, 3000, 1500 );
+
+		RecordingReader reader = open();
+		checkFrom( reader, 0, 700 );
+		for( File file : segmentFiles() )
+			Assert.assertNotNull( compressor.compress(file) );
+		checkFrom( reader, 700, 4500 );
+		Assert.assertFalse( reader.next() );
+
+		// a recording with both kinds reads the same
+		recordSegment( 3, 4500, 1500 );
+		reader = open();
+		Assert.assertEquals( reader.getSegmentCount(), 4 );
+		checkFrom( reader, 0, 6000 );
+		checkSeeks( reader, new Random(4) );
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/// Compressor Methods   ///////////////////////////////////////////////////////////////////
+	////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Sealed segments left from an earlier run are compressed in the background, and
+	 * temporary files from compressions that didn't finish are cleared away.
+	 */
+	@Test
+	public void testCompressLeftovers() throws IOException
+	{
+		File sealed = recordSegment( 0, 0, 500 );
+		File unsealed = new File( directory, RecordingSegment.getFileName(1) );
+		RecordingSegment segment = RecordingSegment.create( unsealed, 1, RecordingSegment.MIN_SIZE );
+		segment.append( packet(500), time(500), INDEX_INTERVAL );
+		segment.close();
+		File compressed = new File( directory, RecordingSegment.PREFIX+"000000"+CompressedSegment.SUFFIX );
+		File temp = new File( directory, RecordingSegment.PREFIX+"000005"+CompressedSegment.SUFFIX+".tmp" );
+		Assert.assertTrue( temp.createNewFile() );
+
+		compressor.startup();
+		Assert.assertEquals( compressor.compressLeftovers(parent), 1 );
+		Assert.assertFalse( temp.exists() );
+		waitFor( compressor::getSegmentsCompressed, 1 );
+		waitFor( compressor::getQueued, 0 );
+
+		Assert.assertFalse( sealed.exists() );
+		Assert.assertTrue( unsealed.exists() );
+		Assert.assertTrue( compressed.exists() );
+		Assert.assertEquals( directory.list().length, 2 );
+		Assert.assertEquals( compressor.getBytesOut(), compressed.length() );
+
+		// and nothing is left to do the next time round
+		Assert.assertEquals( compressor.compressLeftovers(parent), 0 );
+	}
+
+	/** A segment that can't be read is counted and left as it was */
+	@Test
+	public void testCorruptSegment() throws IOException
+	{
+		File junk = new File( directory, RecordingSegment.getFileName(0) );
+		try( RandomAccessFile raf = new RandomAccessFile(junk,"rw") )
+		{
+			raf.setLength( 1024 );
+		}
+
+		Assert.assertNull( compressor.compress(junk) );
+		Assert.assertEquals( compressor.getSegmentsFailed(), 1 );
+		Assert.assertEquals( compressor.getSegmentsCompressed(), 0 );
+		Assert.assertTrue( junk.exists() );
+		Assert.assertEquals( directory.list().length, 1 );
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/// Helper Methods   /////////////////////////////////////////////////////////////////////
+	//////////////////////////////////////////////////////////////////////////////////////////
+	/** Write and seal a segment holding the given run of records */
+	private File recordSegment( long sequence, int first, int count ) throws IOException
+	{
+		File file = new File( directory, RecordingSegment.getFileName(sequence) );
+		RecordingSegment segment = RecordingSegment.create( file, sequence, 2*RecordingSegment.MIN_SIZE );
+		for( int i = first; i < first+count; i++ )
+			Assert.assertTrue( segment.append(packet(i),time(i),INDEX_INTERVAL) );
+
+		segment.seal();
+		segment.close();
+		return file;
+	}
+
+	private RecordingReader open()
+	{
+		RecordingReader reader = new RecordingReader( directory );
+		opened.add( reader );
+		return reader;
+	}
+
+	private File[] segmentFiles()
+	{
+		File[] files = directory.listFiles();
+		Arrays.sort( files );
+		return files;
+	}
+
+	private void checkFrom( RecordingReader reader, int first, int end )
+	{
+		for( int i = first; i < end; i++ )
+			check( reader, i );
+	}
+
+	private void check( RecordingReader reader, int index )
+	{
+		Assert.assertTrue( reader.next(), "Record "+index );
+		Assert.assertEquals( reader.getTime(), time(index), "Record "+index );
+		Assert.assertEquals( reader.getPacket(), packet(index), "Record "+index );
+	}
+
+	/** Seek to random times, and check the reader lands on the first record at or after each */
+	private void checkSeeks( RecordingReader reader, Random random )
+	{
+		int records = 0;
+		reader.seek( Long.MIN_VALUE );
+		while( reader.next() )
+			records++;
+
+		for( int i = 0; i < 200; i++ )
+		{
+			long time = time(0) - 5 + random.nextInt( (int)(time(records-1)-time(0)+10) );
+			reader.seek( time );
+			int expected = 0;
+			while( expected < records && time(expected) < time )
+				expected++;
+
+			if( expected == records )
+				Assert.assertFalse( reader.next() );
+			else
+				checkFrom( reader, expected, Math.min(records,expected+20) );
+		}
+	}
+
+	private void waitFor( LongSupplier counter, long expected )
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while( counter.getAsLong() != expected && System.currentTimeMillis() < deadline )
+		{
+			try
+			{
+				Thread.sleep( 5 );
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		Assert.assertEquals( counter.getAsLong(), expected );
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	/** A packet of 1 to 1400 bytes, different for each index, that compresses a little */
+	private static ByteBuffer packet( int index )
+	{
+		byte[] packet = new byte[1 + (index*37) % 1400];
+		for( int i = 0; i < packet.length; i++ )
+			packet[i] = (byte)(index + (i/16));
+		return ByteBuffer.wrap( packet );
+	}
+
+	/** Three records every 10ms, all three with the same time */
+	private static long time( int index )
+	{
+		return START + (index/3)*10;
+	}
+}
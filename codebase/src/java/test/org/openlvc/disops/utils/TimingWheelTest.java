@@ -0,0 +1,241 @@
+/*
+ *   Copyright 2017 Open LVC Project.
+ *
+ *   This file is part of Open LVC DisOps.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openlvc.disops.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"TimingWheelTest"})
+public class TimingWheelTest
+{
+	//----------------------------------------------------------
+	//                    STATIC VARIABLES
+	//----------------------------------------------------------
+	// ticks at which a key moves between levels, and either side of them
+	private static final long[] BOUNDARIES = { 1, 2, 63, 64, 65, 127, 128, 129, 4095, 4096, 4097,
+	                                           8191, 8192, 8193, 262143, 262144, 262145,
+	                                           300000, 524288, 1000000 };
+
+	//----------------------------------------------------------
+	//                   INSTANCE VARIABLES
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                      CONSTRUCTORS
+	//----------------------------------------------------------
+
+	//----------------------------------------------------------
+	//                    INSTANCE METHODS
+	//----------------------------------------------------------
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testTickTooShort()
+	{
+		new TimingWheel( 0, 16, 0 );
+	}
+
+	@Test
+	public void testNeverEarly()
+	{
+		TimingWheel wheel = new TimingWheel( 10, 16, 1000 );
+		wheel.schedule( 1L, 1001 );
+		Assert.assertEquals( wheel.getDeadline(1L), 1010 );
+
+		List<Long> fired = new ArrayList<>();
+		Assert.assertEquals( wheel.advance(1009,fired::add), 0 );
+		Assert.assertEquals( wheel.advance(1010,fired::add), 1 );
+		Assert.assertEquals( fired, list(1L) );
+		Assert.assertFalse( wheel.contains(1L) );
+		Assert.assertEquals( wheel.getDeadline(1L), -1 );
+
+		// a deadline already passed fires on the next tick, not this one
+		wheel.schedule( 2L, 0 );
+		Assert.assertEquals( wheel.advance(1019,fired::add), 0 );
+		Assert.assertEquals( wheel.advance(1020,fired::add), 1 );
+		Assert.assertEquals( wheel.getExpiredCount(), 2 );
+
+		// going backwards does nothing
+		wheel.schedule( 3L, 1030 );
+		Assert.assertEquals( wheel.advance(0,fired::add), 0 );
+		Assert.assertEquals( wheel.getTime(), 1020 );
+	}
+
+	/**
+	 * Deadlines either side of each level boundary (and past the end of the wheel) fire on
+	 * exactly their tick when the clock is walked forward a tick at a time, so they have to
+	 * come through every cascade correctly.
+	 */
+	@Test
+	public void testExpiryAcrossCascadesTickByTick()
+	{
+		for( long start : new long[]{ 0, 37, 4090, 262100 } )
+		{
+			TimingWheel wheel = new TimingWheel( 1, 16, start );
+			for( long offset : BOUNDARIES )
+				wheel.schedule( offset, start+offset );
+
+			long[] firedAt = new long[1];
+			Map<Long,Long> fired = new HashMap<>();
+			for( long now = start+1; now <= start+1000000; now++ )
+			{
+				firedAt[0] = now;
+				wheel.advance( now, key -> fired.put(key,firedAt[0]) );
+			}
+
+			for( long offset : BOUNDARIES )
+				Assert.assertEquals( fired.get(offset), Long.valueOf(start+offset), "Start "+start+", offset "+offset );
+			Assert.assertEquals( wheel.size(), 0 );
+		}
+	}
+
+	/** The same deadlines, reached in one jump, come out in deadline order */
+	@Test
+	public void testExpiryAcrossCascadesInOneJump()
+	{
+		TimingWheel wheel = new TimingWheel( 1, 16, 0 );
+		for( int i = BOUNDARIES.length-1; i >= 0; i-- )
+			wheel.schedule( BOUNDARIES[i], BOUNDARIES[i] );
+
+		List<Long> fired = new ArrayList<>();
+		Assert.assertEquals( wheel.advance(262144,fired::add), 16 );
+		Assert.assertEquals( wheel.advance(1000000,fired::add), 4 );
+
+		List<Long> expected = new ArrayList<>();
+		for( long offset : BOUNDARIES )
+			expected.add( offset );
+		Assert.assertEquals( fired, expected );
+	}
+
+	@Test
+	public void testRescheduleAndCancel()
+	{
+		TimingWheel wheel = new TimingWheel( 1, 16, 0 );
+		wheel.schedule( 1L, 100 );
+		wheel.schedule( 2L, 100 );
+		wheel.schedule( 3L, 100 );
+
+		// pushed back past a cascade, pulled forward, and cancelled
+		wheel.schedule( 1L, 5000 );
+		wheel.schedule( 2L, 50 );
+		Assert.assertTrue( wheel.cancel(3L) );
+		Assert.assertFalse( wheel.cancel(3L) );
+		Assert.assertEquals( wheel.getDeadline(1L), 5000 );
+		Assert.assertEquals( wheel.size(), 2 );
+
+		List<Long> fired = new ArrayList<>();
+		wheel.advance( 50, fired::add );
+		Assert.assertEquals( fired, list(2L) );
+		wheel.advance( 4999, fired::add );
+		Assert.assertEquals( fired, list(2L) );
+		wheel.advance( 5000, fired::add );
+		Assert.assertEquals( fired, list(2L,1L) );
+	}
+
+	/** The handler can put keys back in, including the one it was just handed */
+	@Test
+	public void testRescheduleFromHandler()
+	{
+		TimingWheel wheel = new TimingWheel( 1, 16, 0 );
+		wheel.schedule( 1L, 10 );
+		wheel.schedule( 2L, 10 );
+
+		List<Long> fired = new ArrayList<>();
+		wheel.advance( 10, key -> {
+			fired.add( key );
+			if( key == 1L )
+			{
+				wheel.schedule( 1L, 20 );
+				wheel.cancel( 2L );
+			}
+		} );
+
+		Assert.assertEquals( fired, list(1L) );
+		Assert.assertEquals( wheel.getDeadline(1L), 20 );
+		Assert.assertEquals( wheel.advance(100,fired::add), 1 );
+		Assert.assertEquals( fired, list(1L,1L) );
+	}
+
+	/**
+	 * Random schedules, reschedules, cancels and advances of random length, checked against
+	 * a map of deadlines. Everything due must come out, in tick order, and nothing else.
+	 */
+	@Test
+	public void testAgainstMap()
+	{
+		Random random = new Random( 11 );
+		TimingWheel wheel = new TimingWheel( 1, 16, 0 );
+		Map<Long,Long> deadlines = new HashMap<>();
+		long now = 0;
+		for( int step = 0; step < 20000; step++ )
+		{
+			int operations = random.nextInt( 20 );
+			for( int i = 0; i < operations; i++ )
+			{
+				long key = random.nextInt( 2000 );
+				if( random.nextInt(4) == 0 )
+				{
+					Assert.assertEquals( wheel.cancel(key), deadlines.remove(key) != null );
+				}
+				else
+				{
+					// mostly short, sometimes across levels, occasionally past the wheel
+					int range = random.nextInt(10) == 0 ? 400000 : random.nextInt(5) == 0 ? 10000 : 200;
+					long deadline = now + 1 + random.nextInt( range );
+					wheel.schedule( key, deadline );
+					deadlines.put( key, deadline );
+				}
+			}
+
+			long target = now + (random.nextInt(50) == 0 ? random.nextInt(100000) : random.nextInt(64));
+			Set<Long> due = new HashSet<>();
+			for( Map.Entry<Long,Long> entry : deadlines.entrySet() )
+			{
+				if( entry.getValue() <= target )
+					due.add( entry.getKey() );
+			}
+
+			List<Long> fired = new ArrayList<>();
+			Assert.assertEquals( wheel.advance(target,fired::add), due.size() );
+			Assert.assertEquals( new HashSet<>(fired), due, "Advance from "+now+" to "+target );
+			for( int i = 1; i < fired.size(); i++ )
+				Assert.assertTrue( deadlines.get(fired.get(i-1)) <= deadlines.get(fired.get(i)) );
+
+			deadlines.keySet().removeAll( due );
+			Assert.assertEquals( wheel.size(), deadlines.size() );
+			now = target;
+		}
+	}
+
+	//----------------------------------------------------------
+	//                     STATIC METHODS
+	//----------------------------------------------------------
+	private static List<Long> list( Long... keys )
+	{
+		List<Long> list = new ArrayList<>();
+		for( Long key : keys )
+			list.add( key );
+		return list;
+	}
+}